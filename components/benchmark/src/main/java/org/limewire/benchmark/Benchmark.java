@@ -0,0 +1,43 @@
+package org.limewire.benchmark;
+
+/**
+ * A single timed operation.  {@link BenchmarkRunner} calls
+ * {@link #operation()} in a loop and reports the average time per call.
+ * <p>
+ * Implementations should return a value that depends on the work done,
+ * for example a size or a hash code, so the JIT cannot discard the
+ * operation as dead code.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    /**
+     * @param name the name results are reported under, by convention
+     * <code>suite.Class.operation</code>
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Prepares the state the operation works on.  Called once before the
+     * warmup iterations and not timed.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Performs one operation.
+     */
+    public abstract int operation() throws Exception;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,126 @@
+package org.limewire.benchmark;
+
+import java.util.Locale;
+
+/**
+ * The measured iterations of one benchmark, in nanoseconds per operation.
+ */
+public class BenchmarkResult {
+
+    /**
+     * Student's t quantiles for a 99.9% confidence interval, indexed by
+     * degrees of freedom.  Past the end of the table the last value is used.
+     */
+    private static final double[] T_999 = { Double.NaN, 636.619, 31.599, 12.924, 8.610, 6.869,
+            5.959, 5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965,
+            3.922, 3.883, 3.850 };
+
+    private final String name;
+
+    private final double[] scores;
+
+    private final long operations;
+
+    public BenchmarkResult(String name, double[] scores, long operations) {
+        this.name = name;
+        this.scores = scores.clone();
+        this.operations = operations;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the score of each measured iteration
+     */
+    public double[] getScores() {
+        return scores.clone();
+    }
+
+    /**
+     * @return the total number of operations over all measured iterations
+     */
+    public long getOperations() {
+        return operations;
+    }
+
+    /**
+     * @return the mean time per operation, in nanoseconds
+     */
+    public double getScore() {
+        double sum = 0;
+        for (double score : scores)
+            sum += score;
+        return sum / scores.length;
+    }
+
+    /**
+     * @return the half-width of the 99.9% confidence interval of the score,
+     * or NaN if there was only one iteration
+     */
+    public double getScoreError() {
+        int n = scores.length;
+        if (n < 2)
+            return Double.NaN;
+        double mean = getScore();
+        double squares = 0;
+        for (double score : scores)
+            squares += (score - mean) * (score - mean);
+        double stddev = Math.sqrt(squares / (n - 1));
+        double t = T_999[Math.min(n - 1, T_999.length - 1)];
+        return t * stddev / Math.sqrt(n);
+    }
+
+    /**
+     * Returns this result as a JSON object, with the field names JMH uses
+     * for its own JSON output so the same tools can read both.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"benchmark\":\"").append(escape(name)).append('"');
+        sb.append(",\"mode\":\"avgt\"");
+        sb.append(",\"jdkVersion\":\"").append(escape(System.getProperty("java.version"))).append('"');
+        sb.append(",\"vmName\":\"").append(escape(System.getProperty("java.vm.name"))).append('"');
+        sb.append(",\"measurementIterations\":").append(scores.length);
+        sb.append(",\"operations\":").append(operations);
+        sb.append(",\"primaryMetric\":{");
+        sb.append("\"score\":").append(format(getScore()));
+        sb.append(",\"scoreError\":").append(format(getScoreError()));
+        sb.append(",\"scoreUnit\":\"ns/op\"");
+        sb.append(",\"rawData\":[[");
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(format(scores[i]));
+        }
+        sb.append("]]}}");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%-50s %12.3f +- %10.3f ns/op", name, getScore(),
+                getScoreError());
+    }
+
+    static String format(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return "\"NaN\"";
+        return String.format(Locale.US, "%.3f", value);
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+}
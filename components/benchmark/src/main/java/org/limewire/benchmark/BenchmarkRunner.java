@@ -0,0 +1,157 @@
+package org.limewire.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Runs benchmarks for a fixed number of timed iterations after a number of
+ * warmup iterations, and writes the results as a JSON array.
+ * <p>
+ * Each iteration calls the operation in batches, doubling the batch size
+ * until a batch takes long enough for <code>System.nanoTime()</code> to
+ * be accurate, and runs batches until the iteration time is used up.
+ * <p>
+ * Usage: <code>BenchmarkRunner [-o results.json] [-w warmup] [-i iterations]
+ * [-t millis] [regex]</code>
+ */
+public class BenchmarkRunner {
+
+    /** The shortest batch whose time is trusted, in nanoseconds. */
+    private static final long MIN_BATCH_NANOS = 100 * 1000;
+
+    private final int warmupIterations;
+
+    private final int measurementIterations;
+
+    private final long iterationNanos;
+
+    /** Where operation results go, so they are not optimized away. */
+    private volatile int sink;
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis) {
+        if (measurementIterations < 1)
+            throw new IllegalArgumentException("at least one iteration is needed");
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000 * 1000;
+    }
+
+    /**
+     * Sets up and measures <code>benchmark</code>.
+     */
+    public BenchmarkResult run(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        long[] operations = new long[1];
+        for (int i = 0; i < warmupIterations; i++)
+            iterate(benchmark, operations);
+        operations[0] = 0;
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < scores.length; i++)
+            scores[i] = iterate(benchmark, operations);
+        return new BenchmarkResult(benchmark.getName(), scores, operations[0]);
+    }
+
+    /**
+     * Runs one iteration, adding the number of operations to
+     * <code>operations[0]</code>.
+     *
+     * @return the average nanoseconds per operation
+     */
+    private double iterate(Benchmark benchmark, long[] operations) throws Exception {
+        int batch = 1;
+        long ops = 0;
+        long elapsed = 0;
+        int result = 0;
+        while (elapsed < iterationNanos) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++)
+                result += benchmark.operation();
+            long time = System.nanoTime() - start;
+            elapsed += time;
+            ops += batch;
+            if (time < MIN_BATCH_NANOS && batch < (1 << 30))
+                batch <<= 1;
+        }
+        sink += result;
+        operations[0] += ops;
+        return (double) elapsed / ops;
+    }
+
+    /**
+     * @return all benchmarks in the tree
+     */
+    public static List<Benchmark> getBenchmarks() throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.addAll(CollectionBenchmarks.create());
+        benchmarks.addAll(MessageBenchmarks.create());
+        benchmarks.addAll(DatabaseBenchmarks.create());
+        benchmarks.addAll(SchedulerBenchmarks.create());
+        benchmarks.addAll(IPFilterBenchmarks.create());
+        benchmarks.addAll(SpamBenchmarks.create());
+        benchmarks.addAll(MessageDispatchBenchmarks.create());
+        benchmarks.addAll(DownloadSerializerBenchmarks.create());
+        benchmarks.addAll(RouteTableBenchmarks.create());
+        benchmarks.addAll(QueryRouteTableBenchmarks.create());
+        return benchmarks;
+    }
+
+    /**
+     * Writes <code>results</code> to <code>file</code> as a JSON array.
+     */
+    public static void writeResults(List<BenchmarkResult> results, File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                out.write("    ");
+                out.write(results.get(i).toJson());
+                out.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            out.write("]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File output = null;
+        int warmup = 3;
+        int iterations = 5;
+        long millis = 1000;
+        Pattern include = Pattern.compile(".*");
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o"))
+                output = new File(args[++i]);
+            else if (args[i].equals("-w"))
+                warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-i"))
+                iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-t"))
+                millis = Long.parseLong(args[++i]);
+            else
+                include = Pattern.compile(args[i]);
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, millis);
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        for (Benchmark benchmark : getBenchmarks()) {
+            if (!include.matcher(benchmark.getName()).matches())
+                continue;
+            BenchmarkResult result = runner.run(benchmark);
+            System.out.println(result);
+            results.add(result);
+        }
+        if (output != null) {
+            writeResults(results, output);
+            System.out.println("wrote " + results.size() + " results to " + output);
+        } else if (results.isEmpty()) {
+            System.out.println("no benchmarks match " + include.pattern());
+        }
+    }
+}
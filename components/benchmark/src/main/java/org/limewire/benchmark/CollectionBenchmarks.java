@@ -0,0 +1,263 @@
+package org.limewire.benchmark;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.limewire.collection.BitSet;
+import org.limewire.collection.CharSequenceKeyAnalyzer;
+import org.limewire.collection.FixedsizeForgetfulHashMap;
+import org.limewire.collection.IntervalSet;
+import org.limewire.collection.PatriciaTrie;
+import org.limewire.collection.Range;
+import org.limewire.collection.TreeList;
+
+/**
+ * Benchmarks for the structures in <code>org.limewire.collection</code>,
+ * sized like their common uses: keyword tries of a shared library, interval
+ * sets of a partially downloaded file, and route table sized bit sets.
+ */
+public class CollectionBenchmarks {
+
+    /** Number of precomputed random values each benchmark cycles through. */
+    private static final int RANDOMS = 1 << 14;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new TrieBenchmark("collection.PatriciaTrie.select") {
+            @Override
+            public int operation() {
+                return trie.select(next()).length();
+            }
+        });
+        benchmarks.add(new TrieBenchmark("collection.PatriciaTrie.prefix") {
+            @Override
+            public int operation() {
+                String key = next();
+                return trie.getPrefixedBy(key, 0, Math.min(3, key.length())).size();
+            }
+        });
+        benchmarks.add(new TrieBenchmark("collection.PatriciaTrie.putRemove") {
+            @Override
+            public int operation() {
+                String key = next() + "x";
+                trie.put(key, key);
+                return trie.remove(key).length();
+            }
+        });
+
+        benchmarks.add(new IntervalBenchmark("collection.IntervalSet.addDelete") {
+            @Override
+            public int operation() {
+                Range range = nextRange();
+                set.add(range);
+                set.delete(range);
+                return set.getNumberOfIntervals();
+            }
+        });
+        benchmarks.add(new IntervalBenchmark("collection.IntervalSet.contains") {
+            @Override
+            public int operation() {
+                return set.contains(nextRange()) ? 1 : 0;
+            }
+        });
+        benchmarks.add(new IntervalBenchmark("collection.IntervalSet.neededIntervals") {
+            @Override
+            public int operation() {
+                int count = 0;
+                for (Iterator<Range> i = set.getNeededIntervals(FILE_SIZE); i.hasNext(); i.next())
+                    count++;
+                return count;
+            }
+        });
+
+        benchmarks.add(new BitSetBenchmark("collection.BitSet.setGet") {
+            @Override
+            public int operation() {
+                int i = nextInt();
+                bits.set(i);
+                boolean set = bits.get(i ^ 1);
+                bits.clear(i);
+                return set ? 1 : 0;
+            }
+        });
+        benchmarks.add(new BitSetBenchmark("collection.BitSet.nextSetBit") {
+            @Override
+            public int operation() {
+                return bits.nextSetBit(nextInt());
+            }
+        });
+        benchmarks.add(new BitSetBenchmark("collection.BitSet.cardinality") {
+            @Override
+            public int operation() {
+                return bits.cardinality();
+            }
+        });
+
+        benchmarks.add(new TreeListBenchmark("collection.TreeList.get") {
+            @Override
+            public int operation() {
+                return list.get(nextInt()).intValue();
+            }
+        });
+        benchmarks.add(new TreeListBenchmark("collection.TreeList.addRemove") {
+            @Override
+            public int operation() {
+                int index = nextInt();
+                list.add(index, index);
+                return list.remove(nextInt()).intValue();
+            }
+        });
+
+        benchmarks.add(new ForgetfulMapBenchmark("collection.FixedsizeForgetfulHashMap.put") {
+            @Override
+            public int operation() {
+                Integer key = nextInt();
+                map.put(key, key);
+                return map.size();
+            }
+        });
+        benchmarks.add(new ForgetfulMapBenchmark("collection.FixedsizeForgetfulHashMap.get") {
+            @Override
+            public int operation() {
+                Integer value = map.get(nextInt());
+                return value == null ? 0 : value.intValue();
+            }
+        });
+        return benchmarks;
+    }
+
+    /**
+     * A benchmark that cycles through precomputed random numbers, so that
+     * generating them is not part of the measurement.
+     */
+    private abstract static class RandomBenchmark extends Benchmark {
+        private final int[] randoms = new int[RANDOMS];
+
+        private int next;
+
+        RandomBenchmark(String name, int bound) {
+            super(name);
+            Random random = new Random(name.hashCode());
+            for (int i = 0; i < randoms.length; i++)
+                randoms[i] = random.nextInt(bound);
+        }
+
+        int nextInt() {
+            next = (next + 1) & (RANDOMS - 1);
+            return randoms[next];
+        }
+    }
+
+    /** A trie of 20,000 keywords. */
+    private abstract static class TrieBenchmark extends RandomBenchmark {
+        private static final int KEYS = 20000;
+
+        final PatriciaTrie<String, String> trie =
+            new PatriciaTrie<String, String>(new CharSequenceKeyAnalyzer());
+
+        private final String[] keys = new String[KEYS];
+
+        TrieBenchmark(String name) {
+            super(name, KEYS);
+        }
+
+        @Override
+        public void setUp() {
+            Random random = new Random(1);
+            for (int i = 0; i < keys.length; i++) {
+                StringBuilder sb = new StringBuilder();
+                int length = 3 + random.nextInt(8);
+                for (int j = 0; j < length; j++)
+                    sb.append((char) ('a' + random.nextInt(26)));
+                keys[i] = sb.toString();
+                trie.put(keys[i], keys[i]);
+            }
+        }
+
+        String next() {
+            return keys[nextInt()];
+        }
+    }
+
+    /** A 700 MB file with 1,000 downloaded 256 KB chunks. */
+    private abstract static class IntervalBenchmark extends RandomBenchmark {
+        static final long FILE_SIZE = 700L * 1024 * 1024;
+
+        private static final int CHUNK = 256 * 1024;
+
+        final IntervalSet set = new IntervalSet();
+
+        IntervalBenchmark(String name) {
+            super(name, (int) (FILE_SIZE / CHUNK));
+        }
+
+        @Override
+        public void setUp() {
+            Random random = new Random(1);
+            for (int i = 0; i < 1000; i++) {
+                long start = (long) random.nextInt((int) (FILE_SIZE / CHUNK)) * CHUNK;
+                set.add(Range.createRange(start, start + CHUNK - 1));
+            }
+        }
+
+        Range nextRange() {
+            long start = (long) nextInt() * CHUNK;
+            return Range.createRange(start, start + CHUNK / 2 - 1);
+        }
+    }
+
+    /** A 64k bit set with about a quarter of its bits set. */
+    private abstract static class BitSetBenchmark extends RandomBenchmark {
+        private static final int SIZE = 64 * 1024;
+
+        final BitSet bits = new BitSet(SIZE);
+
+        BitSetBenchmark(String name) {
+            super(name, SIZE);
+        }
+
+        @Override
+        public void setUp() {
+            Random random = new Random(1);
+            for (int i = 0; i < SIZE / 4; i++)
+                bits.set(random.nextInt(SIZE));
+        }
+    }
+
+    /** A list of 10,000 elements. */
+    private abstract static class TreeListBenchmark extends RandomBenchmark {
+        private static final int SIZE = 10000;
+
+        final TreeList<Integer> list = new TreeList<Integer>();
+
+        TreeListBenchmark(String name) {
+            super(name, SIZE);
+        }
+
+        @Override
+        public void setUp() {
+            for (int i = 0; i < SIZE; i++)
+                list.add(i);
+        }
+    }
+
+    /** A map holding 1,000 of 4,000 keys in use. */
+    private abstract static class ForgetfulMapBenchmark extends RandomBenchmark {
+        private static final int SIZE = 1000;
+
+        final Map<Integer, Integer> map = new FixedsizeForgetfulHashMap<Integer, Integer>(SIZE);
+
+        ForgetfulMapBenchmark(String name) {
+            super(name, SIZE * 4);
+        }
+
+        @Override
+        public void setUp() {
+            for (int i = 0; i < SIZE * 4; i++)
+                map.put(nextInt(), i);
+        }
+    }
+}
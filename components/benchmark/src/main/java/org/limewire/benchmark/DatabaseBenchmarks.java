@@ -0,0 +1,186 @@
+package org.limewire.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.db.DHTValueEntity;
+import org.limewire.mojito.db.DHTValueFactoryManager;
+import org.limewire.mojito.db.DHTValueType;
+import org.limewire.mojito.db.Database;
+import org.limewire.mojito.db.impl.DHTValueImpl;
+import org.limewire.mojito.db.impl.DatabaseImpl;
+import org.limewire.mojito.db.impl.DiskDatabaseImpl;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.ContactFactory;
+import org.limewire.mojito.routing.Vendor;
+import org.limewire.mojito.routing.Version;
+
+/**
+ * Benchmarks comparing the in-memory Mojito {@link DatabaseImpl} with the
+ * log-structured {@link DiskDatabaseImpl}, filled like the database of an
+ * active node: a few values of about the size of an AltLoc under each key.
+ * <p>
+ * <code>get</code> returns all values under a key, as for a FIND_VALUE
+ * request; <code>contains</code> checks for one value, as before a store
+ * is forwarded; <code>store</code> replaces a value with a newer one.
+ * <p>
+ * Run as a program it prints the heap each database needs per value.
+ * <p>
+ * Usage: <code>DatabaseBenchmarks [values]</code>
+ */
+public class DatabaseBenchmarks {
+
+    /** Number of keys the benchmarks store values under. */
+    private static final int KEYS = 4096;
+
+    /** Number of values under each key, below the default limit. */
+    private static final int VALUES_PER_KEY = 4;
+
+    /** Number of bytes of each value. */
+    private static final int VALUE_SIZE = 64;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final boolean disk : new boolean[] { false, true }) {
+            String prefix = disk ? "mojito.DiskDatabaseImpl." : "mojito.DatabaseImpl.";
+            benchmarks.add(new DatabaseBenchmark(prefix + "get", disk) {
+                @Override
+                public int operation() {
+                    return database.get(keys[next()]).size();
+                }
+            });
+            benchmarks.add(new DatabaseBenchmark(prefix + "contains", disk) {
+                @Override
+                public int operation() {
+                    int i = next();
+                    return database.contains(keys[i], values[i].getSecondaryKey()) ? 1 : 0;
+                }
+            });
+            benchmarks.add(new DatabaseBenchmark(prefix + "store", disk) {
+                @Override
+                public int operation() {
+                    int i = next();
+                    DHTValueEntity value = values[i];
+                    return database.store(DHTValueEntity.createFromRemote(value.getCreator(),
+                            value.getSender(), value.getPrimaryKey(), value.getValue())) ? 1 : 0;
+                }
+            });
+        }
+        return benchmarks;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : KEYS * VALUES_PER_KEY;
+        printFootprint("DatabaseImpl", createDatabase(false), count);
+        printFootprint("DiskDatabaseImpl", createDatabase(true), count);
+    }
+
+    private static void printFootprint(String name, Database database, int count) throws Exception {
+        ValueGenerator generator = new ValueGenerator();
+        long before = usedMemory();
+        KUID primaryKey = null;
+        for (int i = 0; i < count; i++) {
+            if (i % VALUES_PER_KEY == 0)
+                primaryKey = KUID.createRandomID();
+            database.store(generator.next(primaryKey));
+        }
+        long after = usedMemory();
+        System.out.println(name + ": " + database.getValueCount() + " values, "
+                + (after - before) / database.getValueCount() + " bytes/value");
+        if (database instanceof DiskDatabaseImpl) {
+            DiskDatabaseImpl disk = (DiskDatabaseImpl) database;
+            System.out.println(name + ": " + disk.getFile().length() / database.getValueCount()
+                    + " bytes/value on disk");
+            disk.close();
+        }
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static Database createDatabase(boolean disk) throws IOException {
+        if (!disk)
+            return new DatabaseImpl();
+        File file = File.createTempFile("mojito", ".db");
+        file.deleteOnExit();
+        return new DiskDatabaseImpl(file, new DHTValueFactoryManager());
+    }
+
+    /**
+     * Creates values from distinct public addresses so that none of the
+     * flooding limits apply.
+     */
+    private static class ValueGenerator {
+        private final Random random = new Random(42);
+
+        private int host;
+
+        DHTValueEntity next(KUID primaryKey) throws IOException {
+            host++;
+            byte[] address = { (byte) (1 + host % 200), (byte) (host >> 16), (byte) (host >> 8),
+                    (byte) host };
+            SocketAddress addr = new InetSocketAddress(InetAddress.getByAddress(address), 6346);
+            Contact creator = ContactFactory.createUnknownContact(addr, Vendor.UNKNOWN,
+                    Version.ZERO, KUID.createRandomID(), addr, random.nextInt(), Contact.DEFAULT_FLAG);
+            byte[] value = new byte[VALUE_SIZE];
+            random.nextBytes(value);
+            return DHTValueEntity.createFromRemote(creator, creator, primaryKey,
+                    new DHTValueImpl(DHTValueType.TEST, Version.ZERO, value));
+        }
+    }
+
+    /**
+     * A benchmark cycling through the values of a filled database.
+     */
+    private abstract static class DatabaseBenchmark extends Benchmark {
+        private final boolean disk;
+
+        Database database;
+
+        /** The primary key of each value. */
+        KUID[] keys;
+
+        /** One value of each key. */
+        DHTValueEntity[] values;
+
+        private int next;
+
+        DatabaseBenchmark(String name, boolean disk) {
+            super(name);
+            this.disk = disk;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            database = createDatabase(disk);
+            ValueGenerator generator = new ValueGenerator();
+            keys = new KUID[KEYS];
+            values = new DHTValueEntity[KEYS];
+            for (int i = 0; i < KEYS; i++) {
+                keys[i] = KUID.createRandomID();
+                for (int j = 0; j < VALUES_PER_KEY; j++) {
+                    values[i] = generator.next(keys[i]);
+                    database.store(values[i]);
+                }
+            }
+        }
+
+        int next() {
+            next = next + 1 == KEYS ? 0 : next + 1;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.limewire.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.limewire.collection.Range;
+import org.limewire.core.settings.DownloadSettings;
+import org.limewire.io.ConnectableImpl;
+import org.limewire.io.GUID;
+import org.limewire.net.address.AddressFactory;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.downloader.DownloaderType;
+import com.limegroup.gnutella.downloader.serial.DownloadMemento;
+import com.limegroup.gnutella.downloader.serial.DownloadSerializeSettings;
+import com.limegroup.gnutella.downloader.serial.DownloadSerializer;
+import com.limegroup.gnutella.downloader.serial.DownloadSerializerImpl;
+import com.limegroup.gnutella.downloader.serial.GnutellaDownloadMementoImpl;
+import com.limegroup.gnutella.downloader.serial.RemoteHostMemento;
+
+/**
+ * Benchmarks for saving and loading 5,000 downloads, each with sources and
+ * saved ranges, with the serialized downloads.dat file and with the
+ * download journal.
+ * <p>
+ * <code>startup</code> reads all downloads, as happens when LimeWire
+ * starts; <code>checkpoint</code> saves the downloads after one in a
+ * hundred of them made progress, as the periodic checkpoint does.
+ */
+public class DownloadSerializerBenchmarks {
+
+    /** Number of downloads. */
+    private static final int DOWNLOADS = 5000;
+
+    /** Number of sources of each download. */
+    private static final int SOURCES = 5;
+
+    /** Number of saved ranges of each download. */
+    private static final int RANGES = 20;
+
+    /** Number of downloads that change between checkpoints. */
+    private static final int CHANGED = DOWNLOADS / 100;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final boolean journal : new boolean[] { false, true }) {
+            String mode = journal ? "journal" : "object";
+            benchmarks.add(new SerializerBenchmark("download.DownloadSerializer.startup." + mode,
+                    journal) {
+                @Override
+                public int operation() throws Exception {
+                    return createSerializer().readFromDisk().size();
+                }
+            });
+            benchmarks.add(new SerializerBenchmark("download.DownloadSerializer.checkpoint."
+                    + mode, journal) {
+                private int next;
+
+                @Override
+                public int operation() throws Exception {
+                    for (int i = 0; i < CHANGED; i++) {
+                        next = next + 1 == mementos.size() ? 0 : next + 1;
+                        mementos.set(next, progressed(mementos.get(next)));
+                    }
+                    return serializer.writeToDisk(mementos) ? 1 : 0;
+                }
+            });
+        }
+        return benchmarks;
+    }
+
+    /**
+     * A benchmark with a saved list of downloads in a temporary directory.
+     */
+    private abstract static class SerializerBenchmark extends Benchmark {
+
+        private final boolean journal;
+
+        private DownloadSerializeSettings settings;
+
+        List<GnutellaDownloadMementoImpl> mementos;
+
+        DownloadSerializer serializer;
+
+        SerializerBenchmark(String name, boolean journal) {
+            super(name);
+            this.journal = journal;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            settings = createSettings();
+            AddressFactory addressFactory =
+                MessageBenchmarks.getInjector().getInstance(AddressFactory.class);
+            Random random = new Random(42);
+            mementos = new ArrayList<GnutellaDownloadMementoImpl>(DOWNLOADS);
+            for (int i = 0; i < DOWNLOADS; i++)
+                mementos.add(createMemento(addressFactory, random, i));
+            serializer = createSerializer();
+            if (!serializer.writeToDisk(mementos))
+                throw new IOException("Unable to write downloads");
+        }
+
+        DownloadSerializer createSerializer() {
+            DownloadSettings.DOWNLOAD_JOURNAL.setValue(journal);
+            return new DownloadSerializerImpl(settings);
+        }
+
+        private static DownloadSerializeSettings createSettings() throws IOException {
+            final File dir = File.createTempFile("downloads", "");
+            dir.delete();
+            dir.mkdirs();
+            dir.deleteOnExit();
+            final File save = new File(dir, "downloads.dat");
+            final File backup = new File(dir, "downloads.bak");
+            final File journal = new File(dir, "downloads.journal");
+            save.deleteOnExit();
+            backup.deleteOnExit();
+            journal.deleteOnExit();
+            return new DownloadSerializeSettings() {
+                public File getSaveFile() {
+                    return save;
+                }
+
+                public File getBackupFile() {
+                    return backup;
+                }
+
+                public File getJournalFile() {
+                    return journal;
+                }
+            };
+        }
+
+        private static GnutellaDownloadMementoImpl createMemento(AddressFactory addressFactory,
+                Random random, int index) throws IOException {
+            byte[] hash = new byte[20];
+            random.nextBytes(hash);
+            URN sha1 = URN.createSHA1UrnFromBytes(hash);
+            String name = "file " + index + " track " + random.nextInt(5000) + ".mp3";
+            long length = 1000000 + random.nextInt(50000000);
+
+            Set<RemoteHostMemento> sources = new LinkedHashSet<RemoteHostMemento>();
+            for (int i = 0; i < SOURCES; i++) {
+                ConnectableImpl address = new ConnectableImpl("18." + random.nextInt(256) + "."
+                        + random.nextInt(256) + "." + (1 + random.nextInt(254)), 6346, false);
+                sources.add(new RemoteHostMemento(address, name, i, GUID.makeGuid(), 3, length,
+                        3, false, null, Collections.singleton(sha1), false, "LIME", true,
+                        "PUSH", addressFactory));
+            }
+            List<Range> ranges = new ArrayList<Range>(RANGES);
+            long chunk = length / (RANGES * 2);
+            for (int i = 0; i < RANGES; i++)
+                ranges.add(Range.createRange(i * 2 * chunk, i * 2 * chunk + chunk - 1));
+            Map<String, Object> attributes = new HashMap<String, Object>();
+
+            GnutellaDownloadMementoImpl memento = new GnutellaDownloadMementoImpl();
+            memento.setDownloadType(DownloaderType.MANAGED);
+            memento.setDefaultFileName(name);
+            memento.setContentLength(length);
+            memento.setSha1Urn(sha1);
+            memento.setSaveFile(new File("/downloads", name));
+            memento.setIncompleteFile(new File("/incomplete", "T-" + length + "-" + name));
+            memento.setRemoteHosts(sources);
+            memento.setSavedBlocks(ranges);
+            memento.setAttributes(attributes);
+            return memento;
+        }
+
+        /**
+         * Returns a copy of the memento with more content, as a downloader
+         * builds a new memento when it makes progress.
+         */
+        static GnutellaDownloadMementoImpl progressed(GnutellaDownloadMementoImpl memento) {
+            GnutellaDownloadMementoImpl copy = new GnutellaDownloadMementoImpl();
+            copy.setDownloadType(memento.getDownloadType());
+            copy.setDefaultFileName(memento.getDefaultFileName());
+            copy.setContentLength(memento.getContentLength() + 1);
+            copy.setSha1Urn(memento.getSha1Urn());
+            copy.setSaveFile(memento.getSaveFile());
+            copy.setIncompleteFile(memento.getIncompleteFile());
+            copy.setRemoteHosts(memento.getRemoteHosts());
+            copy.setSavedBlocks(memento.getSavedBlocks());
+            copy.setAttributes(memento.getAttributes());
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.limewire.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.limewire.io.GGEP;
+import org.limewire.io.GUID;
+import org.limewire.io.IpPort;
+import org.limewire.io.IpPortImpl;
+
+import com.google.inject.Injector;
+import com.limegroup.gnutella.Response;
+import com.limegroup.gnutella.ResponseFactory;
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.messages.Message;
+import com.limegroup.gnutella.messages.PingReplyFactory;
+import com.limegroup.gnutella.messages.QueryReplyFactory;
+import com.limegroup.gnutella.messages.QueryRequestFactory;
+
+/**
+ * Writes the message fixtures {@link MessageBenchmarks} reads.  Each fixture
+ * holds messages exactly as they are sent on the wire, one after the other,
+ * so a capture of real traffic can replace a fixture without changes to the
+ * benchmarks.
+ * <p>
+ * Usage: <code>FixtureRecorder directory</code>
+ */
+public class FixtureRecorder {
+
+    private static final String[] QUERIES = { "madonna", "linux iso", "free software song",
+            "beethoven symphony 9", "the beatles abbey road", "avi", "jazz", "podcast episode 12",
+            "creative commons", "lecture notes pdf", "guitar tab", "open source movie",
+            "public domain", "field recording rain", "chiptune", "ubuntu 8.04 desktop" };
+
+    private final Injector injector;
+
+    private final Random random = new Random(42);
+
+    public FixtureRecorder(Injector injector) {
+        this.injector = injector;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : ".");
+        dir.mkdirs();
+        FixtureRecorder recorder = new FixtureRecorder(MessageBenchmarks.getInjector());
+        write(new File(dir, MessageBenchmarks.QUERIES), recorder.queries());
+        write(new File(dir, MessageBenchmarks.QUERY_REPLIES), recorder.queryReplies());
+        write(new File(dir, MessageBenchmarks.PING_REPLIES), recorder.pingReplies());
+        write(new File(dir, MessageBenchmarks.GGEPS), recorder.ggeps());
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        System.out.println("wrote " + data.length + " bytes to " + file);
+    }
+
+    byte[] queries() throws IOException {
+        QueryRequestFactory factory = injector.getInstance(QueryRequestFactory.class);
+        List<Message> messages = new ArrayList<Message>();
+        for (String query : QUERIES) {
+            messages.add(factory.createQuery(query));
+            messages.add(factory.createOutOfBandQuery(query, randomAddress(), 6346));
+        }
+        messages.add(factory.createQuery("", "<?xml version=\"1.0\"?><audios xsi:noNamespaceSchemaLocation=" +
+                "\"http://www.limewire.com/schemas/audio.xsd\"><audio artist=\"miles davis\"/></audios>"));
+        for (int i = 0; i < 4; i++)
+            messages.add(factory.createQuery(randomUrn()));
+        return toBytes(messages);
+    }
+
+    byte[] queryReplies() throws IOException {
+        QueryReplyFactory factory = injector.getInstance(QueryReplyFactory.class);
+        ResponseFactory responseFactory = injector.getInstance(ResponseFactory.class);
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 8; i++) {
+            Response[] responses = new Response[1 + random.nextInt(12)];
+            for (int j = 0; j < responses.length; j++) {
+                String name = QUERIES[random.nextInt(QUERIES.length)].replace(' ', '_') + "_" + j + ".mp3";
+                responses[j] = responseFactory.createResponse(j, 1000000 + random.nextInt(9000000),
+                        name, randomUrn());
+            }
+            boolean firewalled = i % 2 == 0;
+            messages.add(factory.createQueryReply(GUID.makeGuid(), (byte) 3, 6346, randomAddress(),
+                    350, responses, GUID.makeGuid(), new byte[0], firewalled, false, true, true,
+                    false, false, firewalled ? randomHosts(3) : Collections.<IpPort>emptySet()));
+        }
+        return toBytes(messages);
+    }
+
+    byte[] pingReplies() throws IOException {
+        PingReplyFactory factory = injector.getInstance(PingReplyFactory.class);
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 8; i++) {
+            IpPort returnAddress = new IpPortImpl(randomAddress(), 6346);
+            messages.add(factory.create(GUID.makeGuid(), (byte) 1, 6346, randomAddress(),
+                    returnAddress, i % 2 == 0 ? randomHosts(10) : null, null));
+        }
+        return toBytes(messages);
+    }
+
+    byte[] ggeps() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 8; i++) {
+            GGEP ggep = new GGEP(true);
+            ggep.put("DU", 3600 + random.nextInt(100000));
+            ggep.put("UP", new byte[] { 0x01, 0x1E, 0x20 });
+            ggep.put("LOC", "en");
+            byte[] hosts = new byte[6 * 10];
+            random.nextBytes(hosts);
+            ggep.put("IPP", hosts);
+            ggep.put("H", randomUrn().getBytes());
+            if (i % 2 == 0)
+                ggep.put("BH");
+            ggep.write(out);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] randomAddress() {
+        // 10.x.x.x, so fixtures never name a real host
+        return new byte[] { 10, (byte) random.nextInt(256), (byte) random.nextInt(256),
+                (byte) (1 + random.nextInt(254)) };
+    }
+
+    private Set<IpPort> randomHosts(int count) {
+        Set<IpPort> hosts = new HashSet<IpPort>();
+        while (hosts.size() < count)
+            hosts.add(new IpPortImpl(randomAddress(), 1024 + random.nextInt(60000)));
+        return hosts;
+    }
+
+    private URN randomUrn() throws IOException {
+        byte[] hash = new byte[20];
+        random.nextBytes(hash);
+        return URN.createSHA1UrnFromBytes(hash);
+    }
+
+    private static byte[] toBytes(List<Message> messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Message m : messages)
+            m.write(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,132 @@
+package org.limewire.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.limewire.io.IP;
+
+import com.limegroup.gnutella.filters.IPList;
+
+/**
+ * Benchmarks for the {@link IPList} behind the IP filters, with a blocklist
+ * of a million entries: mostly single addresses, some small networks and a
+ * few large ones, clustered the way published blocklists are.
+ * <p>
+ * <code>contains</code> looks up an address in the compiled intervals,
+ * half of them blocked; <code>trie</code> is the baseline of the same
+ * lookups in the PATRICIA Trie, which <code>minDistanceTo</code> still
+ * searches; <code>compile</code> rebuilds the intervals after a change,
+ * as a reload does.
+ */
+public class IPFilterBenchmarks {
+
+    /** Number of entries in the blocklist. */
+    private static final int ENTRIES = 1000000;
+
+    /** Number of addresses that are looked up in turn. */
+    private static final int LOOKUPS = 1 << 16;
+
+    private static IPList blocklist;
+
+    private static IP[] lookups;
+
+    /**
+     * Creates the blocklist on first use, so the benchmarks share it.
+     */
+    static synchronized void createBlocklist() {
+        if (blocklist != null)
+            return;
+        Random random = new Random(42);
+        blocklist = new IPList();
+        IP[] entries = new IP[ENTRIES];
+        // Entries are spread over a few thousand /16 networks
+        int[] networks = new int[4096];
+        for (int i = 0; i < networks.length; i++)
+            networks[i] = ((1 + random.nextInt(222)) << 24) | (random.nextInt(256) << 16);
+        for (int i = 0; i < ENTRIES; i++) {
+            int type = random.nextInt(100);
+            int bits;
+            if (type < 80)
+                bits = 32;
+            else if (type < 98)
+                bits = 24 + random.nextInt(8);
+            else
+                bits = 16 + random.nextInt(8);
+            int mask = -1 << (32 - bits);
+            int addr = networks[random.nextInt(networks.length)] | (random.nextInt() & 0xFFFF);
+            entries[i] = new IP(addr & mask, mask);
+            blocklist.add(entries[i]);
+        }
+        blocklist.compile();
+
+        lookups = new IP[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int addr;
+            if (random.nextBoolean()) {
+                IP entry = entries[random.nextInt(ENTRIES)];
+                addr = entry.addr | (random.nextInt() & ~entry.mask);
+            } else {
+                addr = ((1 + random.nextInt(222)) << 24) | (random.nextInt() & 0xFFFFFF);
+            }
+            lookups[i] = new IP(addr, -1);
+        }
+    }
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new BlocklistBenchmark("filters.IPList.contains") {
+            @Override
+            public int operation() {
+                return blocklist.contains(next()) ? 1 : 0;
+            }
+        });
+        benchmarks.add(new BlocklistBenchmark("filters.IPList.trie") {
+            @Override
+            public int operation() {
+                return blocklist.minDistanceTo(next()) == 0 ? 1 : 0;
+            }
+        });
+        benchmarks.add(new BlocklistBenchmark("filters.IPList.compile") {
+            @Override
+            public int operation() {
+                // Adding an entry that is already covered changes nothing
+                // but the need to compile again
+                blocklist.add(next());
+                blocklist.compile();
+                return blocklist.size();
+            }
+
+            @Override
+            IP next() {
+                IP lookup = super.next();
+                while (!blocklist.contains(lookup))
+                    lookup = super.next();
+                return lookup;
+            }
+        });
+        return benchmarks;
+    }
+
+    /**
+     * A benchmark that looks up the addresses in turn.
+     */
+    private abstract static class BlocklistBenchmark extends Benchmark {
+
+        private int next;
+
+        BlocklistBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() {
+            createBlocklist();
+        }
+
+        IP next() {
+            next = (next + 1) & (LOOKUPS - 1);
+            return lookups[next];
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package org.limewire.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.limewire.io.GGEP;
+import org.limewire.io.IOUtils;
+import org.limewire.io.IpPortImpl;
+import org.limewire.util.ByteUtils;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.limegroup.gnutella.ActivityCallbackAdapter;
+import com.limegroup.gnutella.LimeWireCoreModule;
+import com.limegroup.gnutella.messages.Message;
+import com.limegroup.gnutella.messages.MessageFactory;
+import com.limegroup.gnutella.messages.PingReply;
+import com.limegroup.gnutella.messages.PingReplyFactory;
+import com.limegroup.gnutella.messages.QueryReply;
+import com.limegroup.gnutella.messages.QueryReplyFactory;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.messages.QueryRequestFactory;
+import com.limegroup.gnutella.messages.Message.Network;
+
+/**
+ * Benchmarks for parsing and serializing Gnutella messages and GGEP blocks,
+ * using the wire fixtures written by {@link FixtureRecorder}.
+ * <p>
+ * <code>parse</code> reads a message from its wire bytes and decodes the
+ * fields a router looks at; <code>write</code> serializes a parsed message,
+ * as when it is forwarded; <code>create</code> builds a message from its
+ * fields, as when we originate it.
+ */
+public class MessageBenchmarks {
+
+    static final String QUERIES = "query.bin";
+
+    static final String QUERY_REPLIES = "queryreply.bin";
+
+    static final String PING_REPLIES = "pingreply.bin";
+
+    static final String GGEPS = "ggep.bin";
+
+    private static Injector injector;
+
+    /**
+     * @return an injector for the core, created on first use so that
+     * running only the collection benchmarks does not start it
+     */
+    static synchronized Injector getInjector() {
+        if (injector == null)
+            injector = Guice.createInjector(Stage.DEVELOPMENT,
+                    new LimeWireCoreModule(ActivityCallbackAdapter.class));
+        return injector;
+    }
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new FixtureBenchmark("messages.QueryRequestImpl.parse", QUERIES) {
+            @Override
+            public int operation() throws Exception {
+                QueryRequest query = (QueryRequest) read(next());
+                return query.getQuery().length() + query.getQueryUrns().size()
+                        + (query.desiresOutOfBandReplies() ? 1 : 0);
+            }
+        });
+        benchmarks.add(new FixtureBenchmark("messages.QueryRequestImpl.write", QUERIES) {
+            @Override
+            public int operation() throws Exception {
+                return write(nextMessage());
+            }
+        });
+        benchmarks.add(new FixtureBenchmark("messages.QueryRequestImpl.create", QUERIES) {
+            private QueryRequestFactory factory;
+
+            @Override
+            public void setUp() throws Exception {
+                super.setUp();
+                factory = getInjector().getInstance(QueryRequestFactory.class);
+            }
+
+            @Override
+            public int operation() throws Exception {
+                QueryRequest parsed = (QueryRequest) nextMessage();
+                return write(factory.createQuery(parsed, parsed.getTTL()));
+            }
+        });
+
+        benchmarks.add(new FixtureBenchmark("messages.QueryReplyImpl.parse", QUERY_REPLIES) {
+            @Override
+            public int operation() throws Exception {
+                QueryReply reply = (QueryReply) read(next());
+                return reply.getResultsArray().length + reply.getPushProxies().size()
+                        + reply.getPort();
+            }
+        });
+        benchmarks.add(new FixtureBenchmark("messages.QueryReplyImpl.write", QUERY_REPLIES) {
+            @Override
+            public int operation() throws Exception {
+                return write(nextMessage());
+            }
+        });
+        benchmarks.add(new FixtureBenchmark("messages.QueryReplyImpl.create", QUERY_REPLIES) {
+            private QueryReplyFactory factory;
+
+            @Override
+            public void setUp() throws Exception {
+                super.setUp();
+                factory = getInjector().getInstance(QueryReplyFactory.class);
+            }
+
+            @Override
+            public int operation() throws Exception {
+                QueryReply parsed = (QueryReply) nextMessage();
+                return write(factory.createQueryReply(parsed.getGUID(), parsed.getTTL(),
+                        parsed.getPort(), parsed.getIPBytes(), parsed.getSpeed(),
+                        parsed.getResultsArray(), parsed.getClientGUID(), new byte[0],
+                        parsed.getNeedsPush(), false, true, true, false, false,
+                        parsed.getPushProxies()));
+            }
+        });
+
+        benchmarks.add(new FixtureBenchmark("messages.PingReplyImpl.parse", PING_REPLIES) {
+            @Override
+            public int operation() throws Exception {
+                PingReply reply = (PingReply) read(next());
+                return reply.getPackedIPPorts().size() + reply.getPort()
+                        + reply.getDailyUptime();
+            }
+        });
+        benchmarks.add(new FixtureBenchmark("messages.PingReplyImpl.write", PING_REPLIES) {
+            @Override
+            public int operation() throws Exception {
+                return write(nextMessage());
+            }
+        });
+        benchmarks.add(new FixtureBenchmark("messages.PingReplyImpl.create", PING_REPLIES) {
+            private PingReplyFactory factory;
+
+            @Override
+            public void setUp() throws Exception {
+                super.setUp();
+                factory = getInjector().getInstance(PingReplyFactory.class);
+            }
+
+            @Override
+            public int operation() throws Exception {
+                PingReply parsed = (PingReply) nextMessage();
+                return write(factory.create(parsed.getGUID(), parsed.getTTL(), parsed.getPort(),
+                        parsed.getIPBytes(), new IpPortImpl(parsed.getMyInetAddress(), parsed.getMyPort()),
+                        parsed.getPackedIPPorts(), null));
+            }
+        });
+
+        benchmarks.add(new GGEPBenchmark("messages.GGEP.parse") {
+            @Override
+            public int operation() throws Exception {
+                int index = next();
+                return new GGEP(data, offsets[index]).getHeaders().size();
+            }
+        });
+        benchmarks.add(new GGEPBenchmark("messages.GGEP.write") {
+            @Override
+            public int operation() throws Exception {
+                return blocks[next()].toByteArray().length;
+            }
+        });
+        return benchmarks;
+    }
+
+    /**
+     * Reads a fixture from the classpath.
+     */
+    static byte[] readFixture(String name) throws IOException {
+        InputStream in = MessageBenchmarks.class.getResourceAsStream("fixtures/" + name);
+        if (in == null)
+            throw new IOException("missing fixture " + name);
+        try {
+            return IOUtils.readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A benchmark cycling through the messages of one fixture.
+     */
+    private abstract static class FixtureBenchmark extends Benchmark {
+        private final String fixture;
+
+        private MessageFactory messageFactory;
+
+        /** The wire bytes of each message. */
+        private byte[][] wire;
+
+        /** Each message, parsed once. */
+        private Message[] messages;
+
+        private int next;
+
+        private final ByteCounter counter = new ByteCounter();
+
+        FixtureBenchmark(String name, String fixture) {
+            super(name);
+            this.fixture = fixture;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            messageFactory = getInjector().getInstance(MessageFactory.class);
+            byte[] data = readFixture(fixture);
+            List<byte[]> wireList = new ArrayList<byte[]>();
+            List<Message> messageList = new ArrayList<Message>();
+            for (int offset = 0; offset < data.length; ) {
+                // header is 23 bytes, with the payload length at 19
+                int length = 23 + ByteUtils.leb2int(data, offset + 19);
+                byte[] bytes = Arrays.copyOfRange(data, offset, offset + length);
+                wireList.add(bytes);
+                messageList.add(read(bytes));
+                offset += length;
+            }
+            wire = wireList.toArray(new byte[wireList.size()][]);
+            messages = messageList.toArray(new Message[messageList.size()]);
+        }
+
+        Message read(byte[] bytes) throws Exception {
+            return messageFactory.read(new ByteArrayInputStream(bytes), Network.TCP);
+        }
+
+        private int advance() {
+            next = next + 1 == wire.length ? 0 : next + 1;
+            return next;
+        }
+
+        byte[] next() {
+            return wire[advance()];
+        }
+
+        Message nextMessage() {
+            return messages[advance()];
+        }
+
+        int write(Message message) throws IOException {
+            counter.count = 0;
+            message.write(counter);
+            return counter.count;
+        }
+    }
+
+    /**
+     * A benchmark cycling through the blocks of the GGEP fixture.
+     */
+    private abstract static class GGEPBenchmark extends Benchmark {
+        byte[] data;
+
+        int[] offsets;
+
+        GGEP[] blocks;
+
+        private int next;
+
+        GGEPBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            data = readFixture(GGEPS);
+            List<GGEP> blockList = new ArrayList<GGEP>();
+            List<Integer> offsetList = new ArrayList<Integer>();
+            int[] end = new int[1];
+            for (int offset = 0; offset < data.length; offset = end[0]) {
+                offsetList.add(offset);
+                blockList.add(new GGEP(data, offset, end));
+            }
+            blocks = blockList.toArray(new GGEP[blockList.size()]);
+            offsets = new int[offsetList.size()];
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = offsetList.get(i);
+        }
+
+        int next() {
+            next = next + 1 == blocks.length ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    /** Counts the bytes written to it and drops them. */
+    private static class ByteCounter extends OutputStream {
+        private int count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
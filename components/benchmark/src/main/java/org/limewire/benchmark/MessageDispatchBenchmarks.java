@@ -0,0 +1,101 @@
+package org.limewire.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.core.settings.MessageSettings;
+import org.limewire.io.GUID;
+
+import com.limegroup.gnutella.MessageDispatcher;
+import com.limegroup.gnutella.MessageRouter;
+import com.limegroup.gnutella.messages.Message;
+import com.limegroup.gnutella.messages.PingRequestFactoryImpl;
+
+/**
+ * Benchmarks for dispatching a burst of UDP messages from many hosts with
+ * one, two, four and eight dispatch lanes. Each message costs the router
+ * some CPU time, so the time per burst shows how dispatch scales with the
+ * number of lanes.
+ */
+public class MessageDispatchBenchmarks {
+
+    /** Number of hosts that send messages. */
+    private static final int HOSTS = 64;
+
+    /** Number of messages in a burst. */
+    private static final int BURST = 512;
+
+    /** Nanoseconds of work the router does for each message. */
+    private static final long HANDLER_NANOS = 20000;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (int lanes = 1; lanes <= 8; lanes *= 2)
+            benchmarks.add(new DispatchBenchmark(lanes));
+        return benchmarks;
+    }
+
+    private static class DispatchBenchmark extends Benchmark {
+
+        private final int lanes;
+
+        private MessageDispatcher dispatcher;
+
+        private Message[] messages;
+
+        private InetSocketAddress[] addresses;
+
+        private volatile CountDownLatch handled;
+
+        DispatchBenchmark(int lanes) {
+            super("dispatch.MessageDispatcher.lanes" + lanes);
+            this.lanes = lanes;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            MessageRouter router = (MessageRouter) Proxy.newProxyInstance(
+                    getClass().getClassLoader(), new Class<?>[] { MessageRouter.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("handleUDPMessage")) {
+                                long end = System.nanoTime() + HANDLER_NANOS;
+                                while (System.nanoTime() < end)
+                                    ;
+                                handled.countDown();
+                            }
+                            return null;
+                        }
+                    });
+            MessageSettings.MESSAGE_DISPATCH_LANES.setValue(lanes);
+            try {
+                dispatcher = new MessageDispatcher(router,
+                        ExecutorsHelper.newProcessingQueue("DispatchBenchmark"), null);
+            } finally {
+                MessageSettings.MESSAGE_DISPATCH_LANES.revertToDefault();
+            }
+            PingRequestFactoryImpl pings = new PingRequestFactoryImpl(null, null);
+            messages = new Message[BURST];
+            addresses = new InetSocketAddress[BURST];
+            for (int i = 0; i < BURST; i++) {
+                messages[i] = pings.createPingRequest(GUID.makeGuid(), (byte) 1, (byte) 0);
+                addresses[i] = new InetSocketAddress("18.0." + (i % HOSTS) + ".1", 6346);
+            }
+        }
+
+        @Override
+        public int operation() throws Exception {
+            handled = new CountDownLatch(BURST);
+            for (int i = 0; i < BURST; i++)
+                dispatcher.dispatchUDP(messages[i], addresses[i]);
+            handled.await();
+            return BURST;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.limewire.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.messages.QueryRequestFactory;
+import com.limegroup.gnutella.routing.PatchTableMessage;
+import com.limegroup.gnutella.routing.QueryKeywordHashes;
+import com.limegroup.gnutella.routing.QueryRouteTable;
+import com.limegroup.gnutella.routing.ResetTableMessage;
+import com.limegroup.gnutella.routing.RouteTableMessage;
+
+/**
+ * Benchmarks for the query route tables of an ultrapeer's leaves, filled
+ * from generated file names: checking a query against every leaf, hashing
+ * the query again for each leaf or once for all of them, and applying the
+ * patches that fill a table.
+ */
+public class QueryRouteTableBenchmarks {
+
+    private static final int TABLE_SIZE = 64 * 1024;
+
+    /** Number of leaves whose tables a query is checked against. */
+    private static final int LEAVES = 300;
+
+    /** Number of queries each benchmark cycles through. */
+    private static final int QUERIES = 5000;
+
+    /** Number of different words in file names and queries. */
+    private static final int VOCABULARY = 50000;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new LeavesBenchmark("routing.QueryRouteTable.containsPerLeaf") {
+            @Override
+            public int operation() {
+                QueryRequest query = nextQuery();
+                int hits = 0;
+                for (QueryRouteTable table : tables) {
+                    if (table.contains(query))
+                        hits++;
+                }
+                return hits;
+            }
+        });
+        benchmarks.add(new LeavesBenchmark("routing.QueryRouteTable.containsShared") {
+            @Override
+            public int operation() {
+                QueryKeywordHashes hashes = new QueryKeywordHashes(nextQuery());
+                int hits = 0;
+                for (QueryRouteTable table : tables) {
+                    if (table.contains(hashes))
+                        hits++;
+                }
+                return hits;
+            }
+        });
+        benchmarks.add(new LeavesBenchmark("routing.QueryRouteTable.patch") {
+            private List<RouteTableMessage> messages;
+
+            @Override
+            public void setUp() throws Exception {
+                super.setUp();
+                // the busiest leaf gives the largest patch
+                QueryRouteTable busiest = tables[0];
+                for (QueryRouteTable table : tables) {
+                    if (table.getPercentFull() > busiest.getPercentFull())
+                        busiest = table;
+                }
+                messages = busiest.encode(null);
+            }
+
+            @Override
+            public int operation() throws Exception {
+                QueryRouteTable table = new QueryRouteTable(TABLE_SIZE);
+                for (RouteTableMessage m : messages) {
+                    if (m instanceof ResetTableMessage)
+                        table.reset((ResetTableMessage) m);
+                    else
+                        table.patch((PatchTableMessage) m);
+                }
+                return table.getMemoryUsed();
+            }
+        });
+        return benchmarks;
+    }
+
+    private abstract static class LeavesBenchmark extends Benchmark {
+
+        private final Random random = new Random(42);
+
+        private final String[] words = new String[VOCABULARY];
+
+        protected final QueryRouteTable[] tables = new QueryRouteTable[LEAVES];
+
+        private final QueryRequest[] queries = new QueryRequest[QUERIES];
+
+        private int next;
+
+        LeavesBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            for (int i = 0; i < words.length; i++) {
+                StringBuilder sb = new StringBuilder();
+                int length = 3 + random.nextInt(8);
+                for (int j = 0; j < length; j++)
+                    sb.append((char) ('a' + random.nextInt(26)));
+                words[i] = sb.toString();
+            }
+            for (int i = 0; i < tables.length; i++) {
+                tables[i] = new QueryRouteTable(TABLE_SIZE);
+                // most leaves share little, a few share a lot
+                int files = (int) Math.pow(3000, random.nextDouble());
+                for (int j = 0; j < files; j++)
+                    tables[i].add(fileName());
+            }
+            QueryRequestFactory factory = MessageBenchmarks.getInjector().getInstance(
+                    QueryRequestFactory.class);
+            for (int i = 0; i < queries.length; i++) {
+                StringBuilder sb = new StringBuilder(words[zipf()]);
+                if (random.nextBoolean())
+                    sb.append(' ').append(words[zipf()]);
+                queries[i] = factory.createQuery(sb.toString());
+            }
+        }
+
+        private String fileName() {
+            StringBuilder sb = new StringBuilder();
+            int count = 3 + random.nextInt(4);
+            for (int i = 0; i < count; i++)
+                sb.append(words[zipf()]).append(' ');
+            return sb.append("mp3").toString();
+        }
+
+        /** Picks common words more often than rare ones. */
+        private int zipf() {
+            return (int) Math.min(VOCABULARY - 1, Math.pow(VOCABULARY, random.nextDouble()) - 1);
+        }
+
+        QueryRequest nextQuery() {
+            QueryRequest query = queries[next];
+            next = (next + 1) % queries.length;
+            return query;
+        }
+    }
+}
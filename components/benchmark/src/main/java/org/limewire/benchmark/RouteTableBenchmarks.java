@@ -0,0 +1,154 @@
+package org.limewire.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.io.GUID;
+
+import com.limegroup.gnutella.ConcurrentRouteTable;
+import com.limegroup.gnutella.ReplyHandler;
+import com.limegroup.gnutella.RouteTable;
+
+/**
+ * Benchmarks for the reply route tables, with one, two, four and eight
+ * threads routing GUIDs and looking up the routes of replies at the same
+ * time. Each operation is a batch of lookups and routes spread over the
+ * threads, so the time per batch shows how a table scales with the number
+ * of threads.
+ */
+public class RouteTableBenchmarks {
+
+    /** Number of GUIDs in the table. */
+    private static final int GUIDS = 50000;
+
+    /** Number of table operations in a batch. */
+    private static final int BATCH = 8192;
+
+    /** Percentage of the table operations that route a GUID. */
+    private static final int ROUTE_PERCENTAGE = 20;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            benchmarks.add(new TableBenchmark("routing.RouteTable.threads" + threads, threads) {
+                private final RouteTable table = new RouteTable(5 * 60, Integer.MAX_VALUE);
+
+                @Override
+                void route(byte[] guid, ReplyHandler handler) {
+                    table.routeReply(guid, handler);
+                }
+
+                @Override
+                boolean reply(byte[] guid) {
+                    return table.getReplyHandler(guid, 1000, (short) 5, (short) 0, 0, true) != null;
+                }
+            });
+            benchmarks.add(new TableBenchmark("routing.ConcurrentRouteTable.threads" + threads, threads) {
+                private final ConcurrentRouteTable table = new ConcurrentRouteTable(5 * 60, Integer.MAX_VALUE);
+
+                @Override
+                void route(byte[] guid, ReplyHandler handler) {
+                    table.routeReply(guid, handler);
+                }
+
+                @Override
+                boolean reply(byte[] guid) {
+                    return table.getReplyHandler(guid, 1000, (short) 5, (short) 0, 0, true) != null;
+                }
+            });
+        }
+        return benchmarks;
+    }
+
+    /**
+     * Returns a handler that is always open, as reply handlers are while
+     * their routes are used.
+     */
+    private static ReplyHandler createHandler() {
+        return (ReplyHandler) Proxy.newProxyInstance(RouteTableBenchmarks.class.getClassLoader(),
+                new Class<?>[] { ReplyHandler.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("isOpen"))
+                            return true;
+                        if (name.equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        if (name.equals("equals"))
+                            return proxy == args[0];
+                        return null;
+                    }
+                });
+    }
+
+    private abstract static class TableBenchmark extends Benchmark {
+
+        private final int threads;
+
+        private final byte[][] guids = new byte[GUIDS][];
+
+        private final ReplyHandler[] handlers = new ReplyHandler[32];
+
+        private ExecutorService executor;
+
+        private Random[] randoms;
+
+        TableBenchmark(String name, int threads) {
+            super(name);
+            this.threads = threads;
+        }
+
+        /** Routes replies for the GUID to the handler. */
+        abstract void route(byte[] guid, ReplyHandler handler);
+
+        /** Returns true if there is a route for replies to the GUID. */
+        abstract boolean reply(byte[] guid);
+
+        @Override
+        public void setUp() throws Exception {
+            for (int i = 0; i < handlers.length; i++)
+                handlers[i] = createHandler();
+            for (int i = 0; i < guids.length; i++) {
+                guids[i] = GUID.makeGuid();
+                route(guids[i], handlers[i % handlers.length]);
+            }
+            executor = ExecutorsHelper.newFixedSizeThreadPool(threads, "RouteTableBenchmark");
+            randoms = new Random[threads];
+            for (int i = 0; i < threads; i++)
+                randoms[i] = new Random(i);
+        }
+
+        @Override
+        public int operation() throws Exception {
+            final CountDownLatch done = new CountDownLatch(threads);
+            final int[] found = new int[threads];
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        Random random = randoms[thread];
+                        for (int i = 0; i < BATCH / threads; i++) {
+                            int index = random.nextInt(guids.length);
+                            if (random.nextInt(100) < ROUTE_PERCENTAGE)
+                                route(guids[index], handlers[index % handlers.length]);
+                            else if (reply(guids[index]))
+                                found[thread]++;
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            int sum = 0;
+            for (int count : found)
+                sum += count;
+            return sum;
+        }
+    }
+}
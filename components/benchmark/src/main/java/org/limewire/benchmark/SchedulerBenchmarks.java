@@ -0,0 +1,169 @@
+package org.limewire.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.limewire.collection.TimerWheel;
+
+/**
+ * Benchmarks for the {@link TimerWheel} behind the RUDP
+ * <code>UDPScheduler</code>, with the timers of 10,000 simulated
+ * connections: an ack timeout, a keepalive and a write event each.
+ * <p>
+ * <code>send</code> moves the ack timeout and the write event of a
+ * connection as sending a data message does; <code>ack</code> cancels
+ * the ack timeout and schedules it again; <code>tick</code> advances the
+ * clock by a millisecond and reschedules the timers that fired.
+ * <code>rescan</code> is the baseline of the list based scheduler the
+ * wheel replaces, which looked at every event to find the next one
+ * after each event it ran.
+ */
+public class SchedulerBenchmarks {
+
+    /** Number of simulated connections. */
+    private static final int CONNECTIONS = 10000;
+
+    /** The round trip timeout of the connections. */
+    private static final int RTO = 500;
+
+    /** The time between keepalives. */
+    private static final int KEEPALIVE = 10000;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new SchedulerBenchmark("rudp.TimerWheel.send") {
+            @Override
+            public int operation() {
+                Connection connection = connections[next()];
+                connection.ack.time = now + RTO;
+                wheel.schedule(connection.ack);
+                connection.write.time = now + RTO / 4;
+                wheel.schedule(connection.write);
+                return wheel.size();
+            }
+        });
+        benchmarks.add(new SchedulerBenchmark("rudp.TimerWheel.ack") {
+            @Override
+            public int operation() {
+                Connection connection = connections[next()];
+                wheel.cancel(connection.ack);
+                connection.ack.time = now + RTO;
+                wheel.schedule(connection.ack);
+                return wheel.size();
+            }
+        });
+        benchmarks.add(new SchedulerBenchmark("rudp.TimerWheel.tick") {
+            private final List<SimulatedTimer> expired = new ArrayList<SimulatedTimer>();
+
+            @Override
+            public int operation() {
+                now++;
+                int count = wheel.expire(now, expired);
+                for (int i = 0; i < count; i++) {
+                    SimulatedTimer timer = expired.get(i);
+                    timer.time = now + timer.period;
+                    wheel.schedule(timer);
+                }
+                expired.clear();
+                return count;
+            }
+        });
+        benchmarks.add(new SchedulerBenchmark("rudp.LinearScheduler.rescan") {
+            @Override
+            public int operation() {
+                // Run the next event and look for the one after it
+                SimulatedTimer next = timers.get(0);
+                for (int i = 1; i < timers.size(); i++) {
+                    SimulatedTimer timer = timers.get(i);
+                    if (timer.time < next.time) {
+                        next = timer;
+                    }
+                }
+                next.time += next.period;
+                return (int)next.time;
+            }
+        });
+        return benchmarks;
+    }
+
+    /**
+     * A timer that fires every <code>period</code> milliseconds.
+     */
+    private static class SimulatedTimer extends TimerWheel.Timer {
+
+        private final int period;
+
+        private long time;
+
+        SimulatedTimer(int period, long time) {
+            this.period = period;
+            this.time = time;
+        }
+
+        @Override
+        public long getEventTime() {
+            return time;
+        }
+    }
+
+    private static class Connection {
+
+        private final SimulatedTimer ack;
+
+        private final SimulatedTimer keepalive;
+
+        private final SimulatedTimer write;
+
+        Connection(Random random, long now) {
+            ack = new SimulatedTimer(RTO, now + random.nextInt(RTO));
+            keepalive = new SimulatedTimer(KEEPALIVE, now + random.nextInt(KEEPALIVE));
+            write = new SimulatedTimer(RTO / 4, now + random.nextInt(RTO / 4));
+        }
+    }
+
+    /**
+     * A benchmark with the timers of all connections scheduled.
+     */
+    private abstract static class SchedulerBenchmark extends Benchmark {
+
+        TimerWheel<SimulatedTimer> wheel;
+
+        Connection[] connections;
+
+        /** All timers, for the baseline. */
+        List<SimulatedTimer> timers;
+
+        /** The simulated time. */
+        long now;
+
+        private int next;
+
+        SchedulerBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() {
+            Random random = new Random(42);
+            now = 1000000L;
+            wheel = new TimerWheel<SimulatedTimer>(1L, now);
+            connections = new Connection[CONNECTIONS];
+            timers = new ArrayList<SimulatedTimer>();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                Connection connection = new Connection(random, now);
+                connections[i] = connection;
+                for (SimulatedTimer timer : new SimulatedTimer[] {
+                        connection.ack, connection.keepalive, connection.write }) {
+                    wheel.schedule(timer);
+                    timers.add(timer);
+                }
+            }
+        }
+
+        int next() {
+            next = next + 1 == CONNECTIONS ? 0 : next + 1;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.limewire.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.limewire.core.settings.SearchSettings;
+import org.limewire.io.ConnectableImpl;
+import org.limewire.io.GUID;
+
+import com.limegroup.gnutella.RemoteFileDesc;
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.downloader.RemoteFileDescFactory;
+import com.limegroup.gnutella.spam.SpamManager;
+
+/**
+ * Benchmarks for rating search results with the spam filter, with a full
+ * rating table of tokens from results that were marked as spam.
+ * <p>
+ * <code>result</code> rates a single result; <code>reply</code> rates the
+ * ten results of a reply at once, as the search result handler does.
+ */
+public class SpamBenchmarks {
+
+    /** Number of results in a reply. */
+    private static final int REPLY_SIZE = 10;
+
+    /** Number of replies that are rated in turn. */
+    private static final int REPLIES = 100;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new SpamBenchmark("spam.RatingTable.result") {
+            private int next;
+
+            @Override
+            public int operation() {
+                next = next + 1 == replies.length * REPLY_SIZE ? 0 : next + 1;
+                RemoteFileDesc rfd = replies[next / REPLY_SIZE][next % REPLY_SIZE];
+                return Float.floatToIntBits(spamManager.calculateSpamRating(rfd));
+            }
+        });
+        benchmarks.add(new SpamBenchmark("spam.RatingTable.reply") {
+            private int next;
+
+            @Override
+            public int operation() {
+                next = next + 1 == replies.length ? 0 : next + 1;
+                float[] ratings = spamManager.calculateSpamRatings(replies[next]);
+                return Float.floatToIntBits(ratings[0]);
+            }
+        });
+        return benchmarks;
+    }
+
+    /**
+     * A benchmark with a full rating table and replies to rate.
+     */
+    private abstract static class SpamBenchmark extends Benchmark {
+
+        SpamManager spamManager;
+
+        RemoteFileDesc[][] replies;
+
+        SpamBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            SearchSettings.ENABLE_SPAM_FILTER.setValue(true);
+            spamManager = MessageBenchmarks.getInjector().getInstance(SpamManager.class);
+            RemoteFileDescFactory factory =
+                MessageBenchmarks.getInjector().getInstance(RemoteFileDescFactory.class);
+            Random random = new Random(42);
+            // Each spam result has six tokens: the table fills up
+            for (int i = 0; i < 1000; i++) {
+                RemoteFileDesc spam = createReply(factory, random, 1)[0];
+                spamManager.handleUserMarkedSpam(new RemoteFileDesc[] { spam });
+            }
+            replies = new RemoteFileDesc[REPLIES][];
+            for (int i = 0; i < REPLIES; i++)
+                replies[i] = createReply(factory, random, REPLY_SIZE);
+        }
+
+        private RemoteFileDesc[] createReply(RemoteFileDescFactory factory, Random random,
+                int size) throws Exception {
+            ConnectableImpl address = new ConnectableImpl("18." + random.nextInt(256) + "."
+                    + random.nextInt(256) + "." + (1 + random.nextInt(254)), 6346, false);
+            byte[] clientGUID = GUID.makeGuid();
+            RemoteFileDesc[] reply = new RemoteFileDesc[size];
+            for (int i = 0; i < size; i++) {
+                String name = "file " + random.nextInt(5000) + " track "
+                        + random.nextInt(5000) + ".mp3";
+                reply[i] = factory.createRemoteFileDesc(address, i, name,
+                        1000000 + random.nextInt(5000000), clientGUID, 3, 3, false, null,
+                        URN.NO_URN_SET, false, "LIME", 0L, false, null);
+            }
+            return reply;
+        }
+    }
+}
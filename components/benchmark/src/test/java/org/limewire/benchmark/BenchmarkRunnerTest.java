@@ -0,0 +1,83 @@
+package org.limewire.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.FileUtils;
+
+public class BenchmarkRunnerTest extends BaseTestCase {
+
+    public BenchmarkRunnerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(BenchmarkRunnerTest.class);
+    }
+
+    public void testRunCountsOperations() throws Exception {
+        final int[] calls = new int[2];
+        Benchmark benchmark = new Benchmark("test.count") {
+            @Override
+            public void setUp() {
+                calls[0]++;
+            }
+
+            @Override
+            public int operation() {
+                return calls[1]++;
+            }
+        };
+        BenchmarkResult result = new BenchmarkRunner(1, 3, 10).run(benchmark);
+        assertEquals("test.count", result.getName());
+        assertEquals(1, calls[0]);
+        assertEquals(3, result.getScores().length);
+        assertGreaterThan(0, result.getOperations());
+        // the warmup iteration is not counted
+        assertLessThan(calls[1], result.getOperations());
+        for (double score : result.getScores())
+            assertGreaterThan(0.0, score);
+    }
+
+    public void testScoreError() throws Exception {
+        BenchmarkResult result = new BenchmarkResult("a", new double[] { 10, 12, 14 }, 30);
+        assertEquals(12.0, result.getScore(), 0.0001);
+        // t(0.9995, 2) * stddev / sqrt(3) = 31.599 * 2 / 1.732
+        assertEquals(36.487, result.getScoreError(), 0.001);
+        assertTrue(Double.isNaN(new BenchmarkResult("b", new double[] { 1 }, 1).getScoreError()));
+    }
+
+    public void testJson() throws Exception {
+        BenchmarkResult result = new BenchmarkResult("a\"b", new double[] { 1.5 }, 7);
+        String json = result.toJson();
+        assertTrue(json, json.startsWith("{\"benchmark\":\"a\\\"b\",\"mode\":\"avgt\""));
+        assertTrue(json, json.contains("\"operations\":7,"));
+        assertTrue(json, json.contains("\"score\":1.500,\"scoreError\":\"NaN\",\"scoreUnit\":\"ns/op\""));
+        assertTrue(json, json.endsWith("\"rawData\":[[1.500]]}}"));
+
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        results.add(result);
+        results.add(new BenchmarkResult("c", new double[] { 2, 3 }, 2));
+        File file = File.createTempFile("benchmark", ".json");
+        file.deleteOnExit();
+        BenchmarkRunner.writeResults(results, file);
+        String written = new String(FileUtils.readFileFully(file), "UTF-8");
+        assertEquals("[\n    " + result.toJson() + ",\n    " + results.get(1).toJson() + "\n]\n",
+                written);
+    }
+
+    public void testBenchmarkNamesAreUnique() throws Exception {
+        List<String> names = new ArrayList<String>();
+        for (Benchmark benchmark : BenchmarkRunner.getBenchmarks()) {
+            assertFalse(benchmark.getName(), names.contains(benchmark.getName()));
+            names.add(benchmark.getName());
+        }
+        assertTrue(names.containsAll(Arrays.asList("collection.PatriciaTrie.select",
+                "messages.QueryReplyImpl.parse", "messages.GGEP.write")));
+    }
+}
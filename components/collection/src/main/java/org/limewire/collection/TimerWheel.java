@@ -0,0 +1,342 @@
+package org.limewire.collection;
+
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel with constant time scheduling and cancelling
+ * of {@link Timer Timers}.
+ * <p>
+ * The wheel has four levels of 256 slots. A slot of the first level spans
+ * one tick, a slot of each higher level spans all the slots of the level
+ * below it, so the levels reach about 256 ticks, 65 thousand ticks,
+ * 16 million ticks and 4 billion ticks into the future. A Timer is put
+ * into the slot of the lowest level that reaches its tick, in a doubly
+ * linked list threaded through the Timer itself. Whenever the first level
+ * has gone around once, the next slot of the second level is cascaded
+ * into it, and so on up the levels.
+ * <p>
+ * Timers that are due at <code>Long.MAX_VALUE</code> are not scheduled
+ * at all. A Timer whose time changes while it is scheduled stays in its
+ * slot until it comes up and is then moved to the slot of its new time,
+ * so a later time needs no call to {@link #schedule(Timer)} while an
+ * earlier time does.
+ * <p>
+ * {@link #peek()} finds the Timer that is due first by looking at the
+ * first occupied slot of each level, so it takes time in the number of
+ * slots and is meant for rare uses like evicting.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class TimerWheel<T extends TimerWheel.Timer> {
+
+    /** The number of bits of a level index. */
+    private static final int BITS = 8;
+
+    /** The number of slots of each level. */
+    private static final int SLOTS = 1 << BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    /** The number of levels. */
+    private static final int LEVELS = 4;
+
+    /** The number of ticks the highest level reaches. */
+    private static final long MAX_DELTA = 1L << (BITS * LEVELS);
+
+    /**
+     * A Timer that can be scheduled in a TimerWheel. Each Timer can be
+     * scheduled in only one TimerWheel.
+     */
+    public static abstract class Timer {
+
+        /** The neighbours of this Timer in its slot. */
+        Timer prev, next;
+
+        /** The index of the slot of this Timer or -1. */
+        int slot = -1;
+
+        /**
+         * Returns the time when this Timer is due in milliseconds.
+         */
+        public abstract long getEventTime();
+
+        /**
+         * Returns whether or not this Timer is scheduled.
+         */
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    /** The first Timer of each slot, level by level. */
+    private final Timer[] slots = new Timer[SLOTS * LEVELS];
+
+    private final long tickMillis;
+
+    /** The next tick to expire. */
+    private long cursor;
+
+    /** The number of scheduled Timers. */
+    private int size;
+
+    /** The number of scheduled Timers of each level. */
+    private final int[] counts = new int[LEVELS];
+
+    /**
+     * @param tickMillis the length of a tick in milliseconds
+     * @param now the current time in milliseconds
+     */
+    public TimerWheel(long tickMillis, long now) {
+        if (tickMillis <= 0L) {
+            throw new IllegalArgumentException("tickMillis: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.cursor = now / tickMillis;
+    }
+
+    /**
+     * Schedules the Timer for its current time, moving it if it
+     * is scheduled already. Timers that are due now or earlier
+     * are due with the next tick.
+     */
+    public void schedule(T timer) {
+        unlink(timer);
+
+        long time = timer.getEventTime();
+        if (time == Long.MAX_VALUE) {
+            return;
+        }
+
+        long tick = Math.max(time / tickMillis, cursor);
+        link(timer, tick);
+    }
+
+    /**
+     * Removes the Timer from the wheel and returns true if it was
+     * scheduled.
+     */
+    public boolean cancel(T timer) {
+        return unlink(timer);
+    }
+
+    /**
+     * Returns the number of scheduled Timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all Timers from the wheel.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            while (slots[i] != null) {
+                unlink(slots[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes the Timers that are due at the given time and adds them
+     * to the given List in the order of their ticks. Only Timers of
+     * this wheel's type are ever scheduled in it.
+     *
+     * @return the number of Timers that were added
+     */
+    @SuppressWarnings("unchecked")
+    public int expire(long now, List<? super T> expired) {
+        long last = now / tickMillis;
+        int count = 0;
+
+        if (size == 0) {
+            cursor = Math.max(cursor, last + 1L);
+            return 0;
+        }
+
+        while (cursor <= last) {
+            int index = (int)(cursor & MASK);
+            if (index == 0) {
+                cascade();
+            }
+
+            if (counts[0] == 0) {
+                // Nothing can expire before the next cascade
+                cursor = Math.min(getNextCascade(), last + 1L);
+                continue;
+            }
+
+            Timer timer;
+            while ((timer = slots[index]) != null) {
+                unlink(timer);
+
+                long tick = timer.getEventTime() / tickMillis;
+                if (tick > cursor) {
+                    // The time has changed since it was scheduled
+                    schedule((T)timer);
+                } else {
+                    expired.add((T)timer);
+                    count++;
+                }
+            }
+            cursor++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the scheduled Timer that is due first or null if no Timer
+     * is scheduled. A Timer whose time changed since it was scheduled is
+     * looked for in the slot of its old time.
+     */
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        Timer first = null;
+        for (int level = 0; level < LEVELS && size > 0; level++) {
+            if (counts[level] == 0) {
+                continue;
+            }
+
+            // The slot of the cursor has cascaded already unless the
+            // cursor is at the start of it
+            int shift = BITS * level;
+            long start = cursor >>> shift;
+            if ((cursor & ((1L << shift) - 1L)) != 0L) {
+                start++;
+            }
+
+            for (int i = 0; i < SLOTS; i++) {
+                Timer timer = slots[level * SLOTS + (int)((start + i) & MASK)];
+                if (timer != null) {
+                    for (; timer != null; timer = timer.next) {
+                        if (first == null || timer.getEventTime() < first.getEventTime()) {
+                            first = timer;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        return (T)first;
+    }
+
+    /**
+     * Returns the earliest time {@link #expire(long, List)} might return
+     * a Timer at, or <code>Long.MAX_VALUE</code> if no Timer is scheduled.
+     * Timers in the higher levels are found at the time the first level
+     * goes around.
+     */
+    public long getNextExpiration() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        // The higher levels cascade before the next tick
+        if ((cursor & MASK) == 0) {
+            return cursor * tickMillis;
+        }
+
+        // The rest of the current revolution of the first level
+        if (counts[0] > 0) {
+            for (long tick = cursor; (tick & MASK) != 0; tick++) {
+                if (slots[(int)(tick & MASK)] != null) {
+                    return tick * tickMillis;
+                }
+            }
+        }
+        return getNextCascade() * tickMillis;
+    }
+
+    /**
+     * Returns the next tick at which Timers of the lowest level
+     * above the first one that has any are cascaded.
+     */
+    private long getNextCascade() {
+        int level = 1;
+        while (level < LEVELS - 1 && counts[level] == 0) {
+            level++;
+        }
+        return (cursor | ((1L << (BITS * level)) - 1L)) + 1L;
+    }
+
+    /**
+     * Moves the Timers of the next slots of the higher levels into
+     * the lower levels.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            int index = (int)((cursor >>> (BITS * level)) & MASK);
+            int slot = level * SLOTS + index;
+
+            Timer timer;
+            while ((timer = slots[slot]) != null) {
+                unlink(timer);
+
+                long time = timer.getEventTime();
+                if (time != Long.MAX_VALUE) {
+                    link(timer, Math.max(time / tickMillis, cursor));
+                }
+            }
+
+            // Only cascade the next level if this one went around as well
+            if (index != 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds the Timer to the slot of the given tick.
+     */
+    private void link(Timer timer, long tick) {
+        long delta = tick - cursor;
+        int level = 0;
+        if (delta >= MAX_DELTA) {
+            // Comes up again with the last slot of the highest level
+            tick = cursor + MAX_DELTA - 1L;
+            level = LEVELS - 1;
+        } else {
+            while (delta >= (1L << (BITS * (level + 1)))) {
+                level++;
+            }
+        }
+
+        int slot = level * SLOTS + (int)((tick >>> (BITS * level)) & MASK);
+        Timer first = slots[slot];
+        timer.prev = null;
+        timer.next = first;
+        if (first != null) {
+            first.prev = timer;
+        }
+        slots[slot] = timer;
+        timer.slot = slot;
+        counts[level]++;
+        size++;
+    }
+
+    /**
+     * Removes the Timer from its slot and returns true
+     * if it was in one.
+     */
+    private boolean unlink(Timer timer) {
+        if (timer.slot < 0) {
+            return false;
+        }
+
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+
+        counts[timer.slot / SLOTS]--;
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+        size--;
+        return true;
+    }
+}
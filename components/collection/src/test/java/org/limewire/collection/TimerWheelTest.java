@@ -0,0 +1,270 @@
+package org.limewire.collection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+/**
+ * Tests the TimerWheel class.
+ */
+public final class TimerWheelTest extends BaseTestCase {
+
+    private TimerWheel<TestTimer> wheel;
+
+    private List<TestTimer> expired;
+
+    public TimerWheelTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(TimerWheelTest.class);
+    }
+
+    /**
+     * Runs this test individually.
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        wheel = new TimerWheel<TestTimer>(1L, 1000L);
+        expired = new ArrayList<TestTimer>();
+    }
+
+    public void testExpiresInOrder() throws Exception {
+        TestTimer late = new TestTimer(1200L);
+        TestTimer early = new TestTimer(1010L);
+        TestTimer due = new TestTimer(500L);
+        wheel.schedule(late);
+        wheel.schedule(early);
+        wheel.schedule(due);
+        assertEquals(3, wheel.size());
+        assertTrue(early.isScheduled());
+
+        assertEquals(1, wheel.expire(1000L, expired));
+        assertSame(due, expired.get(0));
+        assertFalse(due.isScheduled());
+
+        assertEquals(0, wheel.expire(1009L, expired));
+        assertEquals(1, wheel.expire(1100L, expired));
+        assertSame(early, expired.get(1));
+        assertEquals(1, wheel.expire(1200L, expired));
+        assertSame(late, expired.get(2));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testCancel() throws Exception {
+        TestTimer timer = new TestTimer(1050L);
+        wheel.schedule(timer);
+        assertTrue(wheel.cancel(timer));
+        assertFalse(wheel.cancel(timer));
+        assertFalse(timer.isScheduled());
+        assertEquals(0, wheel.size());
+
+        assertEquals(0, wheel.expire(2000L, expired));
+        assertEquals(Long.MAX_VALUE, wheel.getNextExpiration());
+    }
+
+    public void testReschedule() throws Exception {
+        TestTimer timer = new TestTimer(1050L);
+        wheel.schedule(timer);
+
+        // Earlier
+        timer.time = 1020L;
+        wheel.schedule(timer);
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.expire(1020L, expired));
+
+        // Later without telling the wheel
+        timer.time = 1040L;
+        wheel.schedule(timer);
+        timer.time = 1500L;
+        assertEquals(0, wheel.expire(1499L, expired));
+        assertTrue(timer.isScheduled());
+        assertEquals(1, wheel.expire(1500L, expired));
+
+        // Never
+        timer.time = 1600L;
+        wheel.schedule(timer);
+        timer.time = Long.MAX_VALUE;
+        wheel.schedule(timer);
+        assertFalse(timer.isScheduled());
+        assertEquals(0, wheel.size());
+    }
+
+    public void testCascadesFromAllLevels() throws Exception {
+        long[] delays = { 255L, 256L, 300L, 65535L, 65536L, 70000L, 16777216L,
+                20000000L, 1L << 32, (1L << 32) + 1000L, 1L << 40 };
+        List<TestTimer> timers = new ArrayList<TestTimer>();
+        for (long delay : delays) {
+            TestTimer timer = new TestTimer(1000L + delay);
+            wheel.schedule(timer);
+            timers.add(timer);
+        }
+
+        for (TestTimer timer : timers) {
+            assertEquals(0, wheel.expire(timer.time - 1L, expired));
+            assertEquals(1, wheel.expire(timer.time, expired));
+            assertSame(timer, expired.get(expired.size() - 1));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    public void testRandomSchedule() throws Exception {
+        Random random = new Random(7);
+        List<TestTimer> timers = new ArrayList<TestTimer>();
+        for (int i = 0; i < 10000; i++) {
+            TestTimer timer = new TestTimer(1000L + random.nextInt(200000));
+            wheel.schedule(timer);
+            timers.add(timer);
+        }
+        for (int i = 0; i < timers.size(); i += 3) {
+            wheel.cancel(timers.get(i));
+        }
+        assertEquals(10000 - 3334, wheel.size());
+
+        long now = 1000L;
+        while (wheel.size() > 0) {
+            now += random.nextInt(1000);
+            wheel.expire(now, expired);
+            for (TestTimer timer : expired) {
+                assertLessThanOrEquals(now, timer.time);
+                assertGreaterThan(now - 1000L, timer.time);
+                timer.fired++;
+            }
+            expired.clear();
+        }
+
+        for (int i = 0; i < timers.size(); i++) {
+            assertEquals(i % 3 == 0 ? 0 : 1, timers.get(i).fired);
+        }
+    }
+
+    public void testNextExpiration() throws Exception {
+        assertEquals(Long.MAX_VALUE, wheel.getNextExpiration());
+
+        TestTimer timer = new TestTimer(1010L);
+        wheel.schedule(timer);
+        assertEquals(1010L, wheel.getNextExpiration());
+
+        // A timer of the second level is found when the first level goes around
+        timer.time = 1000L + 5000L;
+        wheel.schedule(timer);
+        long next = wheel.getNextExpiration();
+        assertGreaterThan(1000L, next);
+        assertLessThanOrEquals(timer.time, next);
+
+        long now = 1000L;
+        while (wheel.expire(now, expired) == 0) {
+            now = Math.max(now + 1L, wheel.getNextExpiration());
+        }
+        assertEquals(timer.time, now);
+    }
+
+    public void testExpiringFarAheadCatchesUp() throws Exception {
+        for (int i = 1; i <= 20; i++) {
+            wheel.schedule(new TestTimer(1000L + i * 100L));
+        }
+        assertEquals(20, wheel.expire(1000000L, expired));
+        assertEquals(0, wheel.size());
+        for (int i = 1; i < expired.size(); i++) {
+            assertLessThan(expired.get(i).time, expired.get(i - 1).time);
+        }
+
+        // Timers due in the past are due with the next tick
+        TestTimer past = new TestTimer(0L);
+        wheel.schedule(past);
+        assertEquals(1, wheel.expire(1000001L, expired));
+        assertSame(past, expired.get(20));
+    }
+
+    public void testClear() throws Exception {
+        TestTimer near = new TestTimer(1010L);
+        TestTimer far = new TestTimer(100000L);
+        wheel.schedule(near);
+        wheel.schedule(far);
+        wheel.clear();
+        assertEquals(0, wheel.size());
+        assertFalse(near.isScheduled());
+        assertFalse(far.isScheduled());
+        assertNull(wheel.peek());
+        assertEquals(0, wheel.expire(200000L, expired));
+    }
+
+    public void testPeek() throws Exception {
+        assertNull(wheel.peek());
+
+        TestTimer far = new TestTimer(1000L + 70000L);
+        wheel.schedule(far);
+        assertSame(far, wheel.peek());
+
+        TestTimer second = new TestTimer(1000L + 300L);
+        wheel.schedule(second);
+        assertSame(second, wheel.peek());
+
+        // Once the first level went around part of the way, a Timer in
+        // its far slots is due after one that is still in the second level
+        assertEquals(0, wheel.expire(1200L, expired));
+        TestTimer first = new TestTimer(1200L + 250L);
+        wheel.schedule(first);
+        assertSame(second, wheel.peek());
+
+        TestTimer next = new TestTimer(1250L);
+        wheel.schedule(next);
+        assertSame(next, wheel.peek());
+
+        wheel.cancel(next);
+        wheel.cancel(second);
+        assertSame(first, wheel.peek());
+        wheel.cancel(first);
+        assertSame(far, wheel.peek());
+    }
+
+    public void testPeekFindsEarliestTimer() throws Exception {
+        Random random = new Random(11);
+        List<TestTimer> timers = new ArrayList<TestTimer>();
+        for (int i = 0; i < 2000; i++) {
+            TestTimer timer = new TestTimer(1000L + random.nextInt(100000000));
+            wheel.schedule(timer);
+            timers.add(timer);
+        }
+
+        long now = 1000L;
+        while (wheel.size() > 0) {
+            TestTimer earliest = null;
+            for (TestTimer timer : timers) {
+                if (timer.isScheduled() && (earliest == null || timer.time < earliest.time)) {
+                    earliest = timer;
+                }
+            }
+            assertEquals(earliest.time, wheel.peek().time);
+
+            now += random.nextInt(200000);
+            wheel.expire(now, expired);
+        }
+        assertNull(wheel.peek());
+    }
+
+    private static class TestTimer extends TimerWheel.Timer {
+
+        private long time;
+
+        private int fired;
+
+        TestTimer(long time) {
+            this.time = time;
+        }
+
+        @Override
+        public long getEventTime() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.limewire.util;
+
+/** A utility class for hashing primitive values. */
+public class HashUtils {
+
+    private HashUtils() {
+    }
+
+    /**
+     * Returns the 64-bit finalizer of MurmurHash3 (fmix64) of <code>h</code>,
+     * which spreads every input bit over the whole result. The function is a
+     * bijection, so distinct inputs never collide.
+     */
+    public static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,26 @@
+package org.limewire.util;
+
+public class HashUtilsTest extends BaseTestCase {
+
+    public HashUtilsTest(String name) {
+        super(name);
+    }
+
+    public void testMix64() {
+        // reference values of MurmurHash3's fmix64
+        assertEquals(0L, HashUtils.mix64(0L));
+        assertEquals(0xb456bcfc34c2cb2cL, HashUtils.mix64(1L));
+        assertEquals(0x18b8c062f6f42398L, HashUtils.mix64(0x123456789abcdef0L));
+        assertEquals(0x64b5720b4b825f21L, HashUtils.mix64(-1L));
+    }
+
+    public void testMix64KeepsLowBit() {
+        // an even multiplier would make every odd input collide with an even one
+        assertNotEquals(HashUtils.mix64(2L), HashUtils.mix64(3L));
+        int odd = 0;
+        for (long i = 0; i < 1000; i++)
+            odd += (int)(HashUtils.mix64(i) & 1);
+        assertGreaterThan(400, odd);
+        assertLessThan(600, odd);
+    }
+}
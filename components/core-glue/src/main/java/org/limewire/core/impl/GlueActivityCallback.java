@@ -121,6 +121,17 @@ class GlueActivityCallback implements ActivityCallback, QueryReplyListenerList,
         }
     }
 
+    @Override
+    public void handleQueryResults(QueryReply queryReply, List<? extends RemoteFileDesc> rfds,
+            List<? extends Set<? extends IpPort>> locs) {
+        List<QueryReplyListener> listeners = queryReplyListeners.get(queryReply.getGUID());
+        if (listeners != null) {
+            for (QueryReplyListener listener : listeners) {
+                listener.handleQueryReplies(queryReply, rfds, locs);
+            }
+        }
+    }
+
     // TODO: address and port - are ignored
     @Override
     public void handleQuery(QueryRequest query, String address, int port) {
@@ -1,5 +1,6 @@
 package org.limewire.core.impl.browse;
 
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -102,5 +103,13 @@ class CoreBrowse implements Browse {
         public void handleQueryReply(RemoteFileDesc rfd, QueryReply queryReply, Set<? extends IpPort> locs) {
             browseListener.handleBrowseResult(remoteFileDescAdapterFactory.create(rfd, locs));
         }
+
+        @Override
+        public void handleQueryReplies(QueryReply queryReply, List<? extends RemoteFileDesc> rfds,
+                List<? extends Set<? extends IpPort>> locs) {
+            for (int i = 0; i < rfds.size(); i++) {
+                browseListener.handleBrowseResult(remoteFileDescAdapterFactory.create(rfds.get(i), locs.get(i)));
+            }
+        }
     }
 }
@@ -1,5 +1,6 @@
 package org.limewire.core.impl.search;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -7,6 +8,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.limewire.core.api.FilePropertyKey;
@@ -43,6 +45,17 @@ import com.limegroup.gnutella.xml.LimeXMLDocumentFactory;
 
 public class CoreSearch implements Search, SearchListener {
 
+    /**
+     * Time in milliseconds that Gnutella results are held back, so the
+     * results of many replies reach the listeners as one batch.
+     */
+    static final long RESULT_BATCH_WINDOW = 100;
+    
+    /**
+     * Number of held back results after which they are sent at once.
+     */
+    static final int MAX_RESULT_BATCH = 100;
+
     private final SearchDetails searchDetails;
     private final SearchServices searchServices;
     private final QueryReplyListenerList listenerList;
@@ -76,6 +89,12 @@ public class CoreSearch implements Search, SearchListener {
     private final TorrentWebSearchFactory torrentWebSearchFactory;
     
     private volatile Search torrentWebSearch;
+    
+    /**
+     * The Gnutella results that have not been sent to the listeners yet,
+     * or null.  LOCKING: qrListener.
+     */
+    private List<SearchResult> resultBatch;
 
     @Inject
     public CoreSearch(@Assisted SearchDetails searchDetails,
@@ -257,6 +276,7 @@ public class CoreSearch implements Search, SearchListener {
         searchEventBroadcaster.broadcast(new SearchEvent(this, SearchEvent.Type.STOPPED));
         listenerList.removeQueryReplyListener(searchGuid, qrListener);
         searchServices.stopQuery(new GUID(searchGuid));
+        qrListener.flush(null);
         
         for(SearchListener listener : searchListeners) {
             listener.searchStopped(CoreSearch.this);
@@ -306,6 +326,57 @@ public class CoreSearch implements Search, SearchListener {
             
             handleSearchResult(CoreSearch.this, rfdAdapter);
         }
+        
+        /**
+         * Adds the results of a reply to the current batch.  The first
+         * results of a batch schedule it to be sent after the batch window;
+         * a full batch is sent right away.
+         */
+        @Override
+        public void handleQueryReplies(QueryReply queryReply, List<? extends RemoteFileDesc> rfds,
+                List<? extends Set<? extends IpPort>> locs) {
+            List<SearchResult> results = new ArrayList<SearchResult>(rfds.size());
+            for (int i = 0; i < rfds.size(); i++) {
+                results.add(remoteFileDescAdapterFactory.create(rfds.get(i), locs.get(i)));
+            }
+            
+            final List<SearchResult> batch;
+            boolean full;
+            synchronized (this) {
+                if (resultBatch == null) {
+                    resultBatch = new ArrayList<SearchResult>(results);
+                    batch = resultBatch;
+                    backgroundExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush(batch);
+                        }
+                    }, RESULT_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+                } else {
+                    batch = resultBatch;
+                    batch.addAll(results);
+                }
+                full = batch.size() >= MAX_RESULT_BATCH;
+            }
+            if (full) {
+                flush(batch);
+            }
+        }
+        
+        /**
+         * Sends the given batch to the listeners unless it was sent already,
+         * or sends the current batch if <code>batch</code> is null.
+         */
+        void flush(List<SearchResult> batch) {
+            synchronized (this) {
+                if (resultBatch == null || (batch != null && batch != resultBatch)) {
+                    return;
+                }
+                batch = resultBatch;
+                resultBatch = null;
+            }
+            handleSearchResults(CoreSearch.this, batch);
+        }
     }
 
     private class FriendSearchListenerImpl implements FriendSearchListener {
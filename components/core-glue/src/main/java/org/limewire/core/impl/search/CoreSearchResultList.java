@@ -4,7 +4,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.limewire.collection.glazedlists.GlazedListsFactory;
 import org.limewire.core.api.URN;
@@ -149,52 +151,74 @@ class CoreSearchResultList implements SearchResultList {
     
     /**
      * Adds the specified collection of results to the list of grouped results.
-     * This method obtains a write lock on the list because results may be 
-     * generated by different threads for Gnutella and friend results.
+     * The results are grouped by URN first, so each grouping is found and
+     * updated once per batch.  This method obtains a write lock on the list 
+     * because results may be generated by different threads for Gnutella and 
+     * friend results.
      */
     private void addResultsInternal(Collection<? extends SearchResult> results) {
-        // Create list of new results.
-        List<GroupedSearchResult> newResults = new ArrayList<GroupedSearchResult>();
-        
-        // Obtain write lock on result list.
-        Lock lock = groupedUrnResultList.getReadWriteLock().writeLock();
-        lock.lock();
-        try {
+        // Group the batch by URN, in order of arrival.
+        Map<URN, List<SearchResult>> batch;
+        if (results.size() == 1) {
+            SearchResult result = results.iterator().next();
+            batch = result.getUrn() == null ? Collections.<URN, List<SearchResult>>emptyMap() :
+                Collections.singletonMap(result.getUrn(), Collections.singletonList(result));
+        } else {
+            batch = new LinkedHashMap<URN, List<SearchResult>>();
             for (SearchResult result : results) {
                 URN urn = result.getUrn();
                 // Some results can be missing a URN, specifically secure results.
                 // For now, we drop these.  We should figure out a way to show 
                 // them later on.
                 if (urn != null) {
-                    int idx = Collections.binarySearch(groupedUrnResultList, urn, resultFinder);
-                    if (idx >= 0) {
-                        // Found URN so add result to grouping.
-                        GroupedSearchResultImpl gsr = (GroupedSearchResultImpl) groupedUrnResultList.get(idx);
-                        gsr.addNewSource(result, searchDetails.getSearchQuery());
-                        groupedUrnResultList.set(idx, gsr);
-                        newResults.add(gsr);
-
-                    } else {
-                        // URN not found so add new result at insertion point.
-                        // This keeps the list in sorted order.
-                        idx = -(idx + 1);
-                        GroupedSearchResult gsr = new GroupedSearchResultImpl(result,
-                                searchDetails.getSearchQuery());
-                        groupedUrnResultList.add(idx, gsr);
-                        newResults.add(gsr);
+                    List<SearchResult> group = batch.get(urn);
+                    if (group == null) {
+                        group = new ArrayList<SearchResult>(1);
+                        batch.put(urn, group);
                     }
-                    resultCount++;
+                    group.add(result);
                 }
             }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        
+        // Create list of new results.
+        List<GroupedSearchResult> newResults = new ArrayList<GroupedSearchResult>(batch.size());
+        
+        // Obtain write lock on result list.
+        Lock lock = groupedUrnResultList.getReadWriteLock().writeLock();
+        lock.lock();
+        try {
+            for (Map.Entry<URN, List<SearchResult>> entry : batch.entrySet()) {
+                List<SearchResult> group = entry.getValue();
+                int idx = Collections.binarySearch(groupedUrnResultList, entry.getKey(), resultFinder);
+                if (idx >= 0) {
+                    // Found URN so add results to grouping.
+                    GroupedSearchResultImpl gsr = (GroupedSearchResultImpl) groupedUrnResultList.get(idx);
+                    gsr.addNewSources(group, searchDetails.getSearchQuery());
+                    groupedUrnResultList.set(idx, gsr);
+                    newResults.add(gsr);
+
+                } else {
+                    // URN not found so add new result at insertion point.
+                    // This keeps the list in sorted order.
+                    idx = -(idx + 1);
+                    GroupedSearchResult gsr = new GroupedSearchResultImpl(group,
+                            searchDetails.getSearchQuery());
+                    groupedUrnResultList.add(idx, gsr);
+                    newResults.add(gsr);
+                }
+                resultCount += group.size();
+            }
         } finally {
             // Release lock.
             lock.unlock();
         }
         
         // Forward added results to list listeners.
-        if (newResults.size() > 0) {
-            notifyResultsAdded(newResults);
-        }
+        notifyResultsAdded(newResults);
     }
     
     /**
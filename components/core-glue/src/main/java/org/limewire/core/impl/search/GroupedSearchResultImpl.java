@@ -1,8 +1,10 @@
 package org.limewire.core.impl.search;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -43,6 +45,16 @@ class GroupedSearchResultImpl implements GroupedSearchResult {
         addNewSource(searchResult, query);
     }
 
+    /**
+     * Constructs a GroupedSearchResult containing the specified search
+     * results, which must not be empty.
+     */
+    public GroupedSearchResultImpl(List<? extends SearchResult> searchResults, String query) {
+        this.remoteHosts = new ConcurrentSkipListSet<RemoteHost>(REMOTE_HOST_COMPARATOR);
+        
+        addNewSources(searchResults, query);
+    }
+
     /**
      * Adds the specified search result to the grouping.  The specified query
      * text is used to adjust the relevance score.  This method is only called 
@@ -50,40 +62,67 @@ class GroupedSearchResultImpl implements GroupedSearchResult {
      * list.
      */
     void addNewSource(SearchResult result, String query) {
+        addNewSources(Collections.singletonList(result), query);
+    }
+
+    /**
+     * Adds the specified search results to the grouping at once, so the list
+     * of results is copied once per batch rather than once per result.  This
+     * method is only called by CoreSearchResultList after a write lock is
+     * obtained on the parent list.
+     */
+    void addNewSources(List<? extends SearchResult> results, String query) {
         // Optimize for only having a single result.
-        if (coreResults == null) {
-            coreResults = Collections.singletonList(result);
-        } else {
-            if (coreResults.size() == 1) {
-                coreResults = new CopyOnWriteArrayList<SearchResult>(coreResults);
+        if (coreResults == null && results.size() == 1) {
+            coreResults = Collections.<SearchResult>singletonList(results.get(0));
+        } else if (coreResults == null || coreResults.size() == 1) {
+            List<SearchResult> newResults = new ArrayList<SearchResult>(results.size() + 1);
+            if (coreResults != null) {
+                newResults.addAll(coreResults);
             }
-            coreResults.add(result);
+            newResults.addAll(results);
+            coreResults = new CopyOnWriteArrayList<SearchResult>(newResults);
+        } else {
+            coreResults.addAll(results);
         }
         
-        // Accumulate relevance score.
-        relevance += result.getRelevance(query);
-        
-        // Build collection of non-anonymous friends for filtering.
-        RemoteHost host = result.getSource();
-        remoteHosts.add(host);
+        float addedRelevance = 0;
+        Set<Friend> newFriends = null;
+        for (SearchResult result : results) {
+            // Accumulate relevance score.
+            addedRelevance += result.getRelevance(query);
+            
+            // Build collection of non-anonymous friends for filtering.
+            RemoteHost host = result.getSource();
+            remoteHosts.add(host);
 
-        Friend friend = host.getFriendPresence().getFriend();
-        if (friend.isAnonymous()) {
-            anonymous = true;
-        } else {
-            if (friends == null) {
+            Friend friend = host.getFriendPresence().getFriend();
+            if (friend.isAnonymous()) {
+                anonymous = true;
+            } else {
+                if (newFriends == null) {
+                    newFriends = new LinkedHashSet<Friend>();
+                }
+                newFriends.add(friend);
+            }
+        }
+        relevance += addedRelevance;
+        
+        if (newFriends != null) {
+            if (friends == null && newFriends.size() == 1) {
                 // optimize for a single friend having it
-                friends = Collections.singleton(friend);
+                friends = Collections.singleton(newFriends.iterator().next());
             } else {
                 // convert to CopyOnWriteArraySet if we need to.
                 if (!(friends instanceof CopyOnWriteArraySet)) {
-                    Set<Friend> newFriends = new CopyOnWriteArraySet<Friend>();
-                    newFriends.addAll(friends);
-                    friends = newFriends;
+                    Set<Friend> allFriends = new CopyOnWriteArraySet<Friend>();
+                    if (friends != null) {
+                        allFriends.addAll(friends);
+                    }
+                    friends = allFriends;
                 }
-                friends.add(friend);
+                friends.addAll(newFriends);
             }
-
         }
     }
     
@@ -1,5 +1,6 @@
 package org.limewire.core.impl.search;
 
+import java.util.List;
 import java.util.Set;
 
 import org.limewire.io.IpPort;
@@ -11,4 +12,11 @@ public interface QueryReplyListener {
     
     void handleQueryReply(RemoteFileDesc rfd, QueryReply queryReply, Set<? extends IpPort> locs);
 
+    /**
+     * Handles all the results of a query reply at once. <code>locs</code>
+     * holds the alternate locations of each result.
+     */
+    void handleQueryReplies(QueryReply queryReply, List<? extends RemoteFileDesc> rfds,
+            List<? extends Set<? extends IpPort>> locs);
+
 }
@@ -2,7 +2,10 @@ package org.limewire.core.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.jmock.Expectations;
@@ -282,6 +285,10 @@ public class GlueActivityCallbackTest extends BaseTestCase {
         final QueryReply queryReply1 = context.mock(QueryReply.class);
         final QueryReply queryReply2 = context.mock(QueryReply.class);
         final Set<? extends IpPort> locs = new HashSet<IpPort>();
+        final List<RemoteFileDesc> rfds = Arrays.asList(rfd, rfd);
+        final List<Set<? extends IpPort>> allLocs = new ArrayList<Set<? extends IpPort>>();
+        allLocs.add(locs);
+        allLocs.add(locs);
         
         GlueActivityCallback activityCallback = new GlueActivityCallback(null);
         
@@ -294,6 +301,7 @@ public class GlueActivityCallbackTest extends BaseTestCase {
             exactly(1).of(listener1).handleQueryReply(rfd, queryReply1, locs);
             exactly(1).of(listener2a).handleQueryReply(rfd, queryReply2, locs);
             exactly(2).of(listener2b).handleQueryReply(rfd, queryReply2, locs);
+            exactly(1).of(listener2b).handleQueryReplies(queryReply2, rfds, allLocs);
         }});
         
         activityCallback.addQueryReplyListener(guid1, listener1);
@@ -308,6 +316,8 @@ public class GlueActivityCallbackTest extends BaseTestCase {
         activityCallback.removeQueryReplyListener(guid2, listener2a);
         activityCallback.handleQueryResult(rfd, queryReply1, locs);
         activityCallback.handleQueryResult(rfd, queryReply2, locs); 
+        activityCallback.handleQueryResults(queryReply1, rfds, allLocs);
+        activityCallback.handleQueryResults(queryReply2, rfds, allLocs);
         
         context.assertIsSatisfied();
     }
@@ -142,6 +142,32 @@ public class CoreSearchResultListTest extends BaseTestCase {
         assertEquals(1, listener.getCount());
     }
     
+    /** Tests that a batch is grouped by URN before listeners are notified. */
+    public void testListListenerWithBatch() throws Exception {
+        TestSearchListListener listener = new TestSearchListListener();
+        resultList.addListener(listener);
+        
+        URN urn1 = URN.createUrnFromString("urn:sha1:AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA1");
+        List<SearchResult> list = new ArrayList<SearchResult>();
+        list.add(new TestSearchResult(urn1, "test0"));
+        list.add(new TestSearchResult(URN.createUrnFromString("urn:sha1:AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA2")));
+        list.add(new TestSearchResult(urn1, "test1"));
+        resultList.addResults(list);
+        assertEquals(2, listener.getCount());
+        assertEquals(2, resultList.getGroupedResult(urn1).getSearchResults().size());
+        
+        // Add another batch to the existing group.
+        listener.reset();
+        list.clear();
+        list.add(new TestSearchResult(urn1, "test2"));
+        list.add(new TestSearchResult(urn1, "test3"));
+        resultList.addResults(list);
+        assertEquals(1, listener.getCount());
+        assertEquals(2, resultList.getGroupedResults().size());
+        assertEquals(4, resultList.getGroupedResult(urn1).getSearchResults().size());
+        assertEquals(5, resultList.getResultCount());
+    }
+    
     /**
      * Test implementation of SearchResultListListener.
      */
@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.hamcrest.BaseMatcher;
@@ -448,6 +449,92 @@ public class CoreSearchTest extends BaseTestCase {
         context.assertIsSatisfied();
     }
     
+    @SuppressWarnings("unchecked")
+    public void testQueryRepliesAreBatched() {
+        Mockery context = new Mockery() {{
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }};
+        
+        final byte[] guid = new byte[] {0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15};
+        
+        final EventBroadcaster<SearchEvent> searchEventBroadcaster = context.mock(EventBroadcaster.class);
+        final QueryReplyListenerList listenerList = context.mock(QueryReplyListenerList.class);
+        final SearchServices searchServices = context.mock(SearchServices.class);
+        final ScheduledExecutorService backgroundExecutor = context.mock(ScheduledExecutorService.class);
+        final RemoteFileDescAdapter.Factory rfdaFactory = context.mock(RemoteFileDescAdapter.Factory.class);
+        final SearchListener listener = context.mock(SearchListener.class);
+        final QueryReply queryReply = context.mock(QueryReply.class);
+        final RemoteFileDesc rfd1 = context.mock(RemoteFileDesc.class);
+        final RemoteFileDesc rfd2 = context.mock(RemoteFileDesc.class);
+        final RemoteFileDescAdapter rfda1 = context.mock(RemoteFileDescAdapter.class);
+        final RemoteFileDescAdapter rfda2 = context.mock(RemoteFileDescAdapter.class);
+        final Set<IpPort> locs = new HashSet<IpPort>();
+        final AtomicReference<QueryReplyListener> queryReplyListener = new AtomicReference<QueryReplyListener>();
+        final AtomicReference<Runnable> flush = new AtomicReference<Runnable>();
+        
+        final CoreSearch search = new CoreSearch(null, searchServices, listenerList, null, null, null,
+                backgroundExecutor, searchEventBroadcaster, null, null, null, rfdaFactory, null);
+        search.searchGuid = guid;
+        search.processingStarted.set(true);
+        search.addSearchListener(listener);
+        
+        context.checking(new Expectations() {{
+            allowing(searchEventBroadcaster).broadcast(with(any(SearchEvent.class)));
+            allowing(listenerList).removeQueryReplyListener(with(same(guid)),
+                    with(any(QueryReplyListener.class)));
+            will(new AssignParameterAction<QueryReplyListener>(queryReplyListener, 1));
+            allowing(searchServices).stopQuery(new GUID(guid));
+            allowing(listener).searchStopped(search);
+            allowing(rfdaFactory).create(rfd1, locs);
+            will(returnValue(rfda1));
+            allowing(rfdaFactory).create(rfd2, locs);
+            will(returnValue(rfda2));
+        }});
+        search.stop();
+        
+        // The results of two replies are sent at the end of the batch window
+        context.checking(new Expectations() {{
+            one(backgroundExecutor).schedule(with(any(Runnable.class)),
+                    with(equal(CoreSearch.RESULT_BATCH_WINDOW)), with(equal(TimeUnit.MILLISECONDS)));
+            will(new AssignParameterAction<Runnable>(flush, 0));
+            one(listener).handleSearchResults(with(same(search)),
+                    with(equal(Arrays.asList(rfda1, rfda2))));
+        }});
+        queryReplyListener.get().handleQueryReplies(queryReply, Arrays.asList(rfd1),
+                Collections.singletonList(locs));
+        queryReplyListener.get().handleQueryReplies(queryReply, Arrays.asList(rfd2),
+                Collections.singletonList(locs));
+        flush.get().run();
+        flush.get().run();
+        context.assertIsSatisfied();
+        
+        // A full batch is sent right away
+        final List<RemoteFileDesc> rfds = Collections.nCopies(CoreSearch.MAX_RESULT_BATCH, rfd1);
+        final List<Set<IpPort>> allLocs = Collections.nCopies(CoreSearch.MAX_RESULT_BATCH, locs);
+        context.checking(new Expectations() {{
+            one(backgroundExecutor).schedule(with(any(Runnable.class)),
+                    with(equal(CoreSearch.RESULT_BATCH_WINDOW)), with(equal(TimeUnit.MILLISECONDS)));
+            will(new AssignParameterAction<Runnable>(flush, 0));
+            one(listener).handleSearchResults(with(same(search)),
+                    with(equal(Collections.nCopies(CoreSearch.MAX_RESULT_BATCH, rfda1))));
+        }});
+        queryReplyListener.get().handleQueryReplies(queryReply, rfds, allLocs);
+        flush.get().run();
+        context.assertIsSatisfied();
+        
+        // Stopping the search sends the held back results
+        context.checking(new Expectations() {{
+            one(backgroundExecutor).schedule(with(any(Runnable.class)),
+                    with(equal(CoreSearch.RESULT_BATCH_WINDOW)), with(equal(TimeUnit.MILLISECONDS)));
+            one(listener).handleSearchResults(with(same(search)),
+                    with(equal(Arrays.asList(rfda2))));
+        }});
+        queryReplyListener.get().handleQueryReplies(queryReply, Arrays.asList(rfd2),
+                Collections.singletonList(locs));
+        search.stop();
+        context.assertIsSatisfied();
+    }
+    
     @SuppressWarnings("unchecked")
     public void testRestart() {
         Mockery context = new Mockery();
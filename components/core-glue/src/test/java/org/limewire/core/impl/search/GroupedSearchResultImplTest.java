@@ -1,5 +1,7 @@
 package org.limewire.core.impl.search;
 
+import java.util.Arrays;
+
 import org.limewire.core.api.search.SearchResult;
 import org.limewire.util.BaseTestCase;
 
@@ -51,4 +53,20 @@ public class GroupedSearchResultImplTest extends BaseTestCase {
         assertEquals(2, groupedResult.getFriends().size());
         assertEquals(2, groupedResult.getSources().size());
     }
+    
+    /** Tests method to add many sources at once. */
+    public void testAddNewSources() {
+        groupedResult.addNewSources(Arrays.asList(new TestSearchResult(urn, "test1"),
+                new TestSearchResult(urn, "test2")), "test");
+        
+        assertEquals(3, groupedResult.getSearchResults().size());
+        assertEquals(3, groupedResult.getFriends().size());
+        assertEquals(3, groupedResult.getSources().size());
+        
+        groupedResult = new GroupedSearchResultImpl(Arrays.asList(new TestSearchResult(urn, "test0"),
+                new TestSearchResult(urn, "test0")), "test");
+        assertEquals(2, groupedResult.getSearchResults().size());
+        assertEquals(1, groupedResult.getFriends().size());
+        assertEquals(urn, groupedResult.getUrn());
+    }
 }
@@ -322,6 +322,20 @@ public final class ConnectionSettings extends LimeProps {
     public static final IntSetting BOOTSTRAP_DELAY = FACTORY.createRemoteIntSetting(
             "BOOTSTRAP_DELAY", 20000, "ConnectionSettings.BootstrapDelay", 10000, 600000);
 
+    /**
+     * Whether the host catcher keeps its hosts in a concurrent store that
+     * scores them and saves them incrementally, rather than in its queues
+     * and gnutella.net.
+     */
+    public static final BooleanSetting ENDPOINT_STORE = FACTORY.createRemoteBooleanSetting(
+            "ENDPOINT_STORE", false, "ConnectionSettings.EndpointStore");
+
+    /**
+     * Whether UDP reads datagrams in batches before handling them.
+     */
+    public static final BooleanSetting UDP_BATCHED_IO = FACTORY.createRemoteBooleanSetting(
+            "UDP_BATCHED_IO", true, "ConnectionSettings.UDPBatchedIO");
+
     /**
      * Time in milliseconds to delay prior to flushing data on peer -> peer.
      * connections.
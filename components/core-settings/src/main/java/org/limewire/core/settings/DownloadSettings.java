@@ -53,6 +53,12 @@ public class DownloadSettings extends LimeProps {
     public static final BooleanSetting SKIP_ACKS = FACTORY.createRemoteBooleanSetting("SKIP_ACKS",
             true, "skip_acks");
 
+    /**
+     * Enable/disable selective acks of RUDP data.
+     */
+    public static final BooleanSetting SELECTIVE_ACKS = FACTORY.createRemoteBooleanSetting("SELECTIVE_ACKS",
+            true, "selective_acks");
+
     /**
      * Various parameters of the formulas for skipping acks.
      */
@@ -171,6 +177,13 @@ public class DownloadSettings extends LimeProps {
     
     @InspectionPoint("num av mementos resumed")
     public static final IntSetting NUM_AV_MEMENTOS_RESUMED = FACTORY.createIntSetting("NUM_AV_MEMENTOS_RESUMED", 0);
+
+    /**
+     * Whether downloads are saved by appending the changed ones to a
+     * journal, rather than by rewriting downloads.dat.
+     */
+    public static final BooleanSetting DOWNLOAD_JOURNAL = FACTORY.createRemoteBooleanSetting(
+            "DOWNLOAD_JOURNAL", true, "DownloadSettings.downloadJournal");
                 
   
 }
@@ -79,6 +79,16 @@ public class MessageSettings extends LimeProps {
         FACTORY.createRemoteBooleanSetting("ULTRAPEER_FIREWALL_FILTERING",true,
                 "MessageSettings.ultrapeerFirewallFiltering");
     
+    /**
+     * The number of threads that handle incoming messages.  Messages from
+     * the same connection or address are always handled by the same thread,
+     * in the order they arrived.  Read once at startup.  Not remotely
+     * controllable because many handlers still assume a single message
+     * thread; raise it only for testing.
+     */
+    public static final IntSetting MESSAGE_DISPATCH_LANES =
+        FACTORY.createIntSetting("MESSAGE_DISPATCH_LANES", 1, 1, 16);
+    
     /** 
      * The maximum number of UDP replies to buffer up.  For testing.
      */
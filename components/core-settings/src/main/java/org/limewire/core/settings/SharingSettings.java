@@ -434,6 +434,19 @@ public class SharingSettings extends LimeProps {
     public static final BooleanSetting LOAD_PARTIAL_KEYWORDS = FACTORY.createRemoteBooleanSetting(
             "LOAD_PARTIAL_KEYWORDS", true, "SharingSettings.loadPartialKeywords");
 
+    /**
+     * Whether to keep the keywords of shared files in a compact index outside
+     * of the heap instead of a trie.
+     */
+    public static final BooleanSetting USE_COMPACT_KEYWORD_INDEX = FACTORY.createBooleanSetting(
+            "USE_COMPACT_KEYWORD_INDEX", false);
+
+    /**
+     * The number of threads that compute the hash trees of shared files.
+     */
+    public static final IntSetting HASH_TREE_THREADS = FACTORY.createRemoteIntSetting(
+            "HASH_TREE_THREADS", 2, "SharingSettings.hashTreeThreads", 1, 8);
+
     public static final StringSetting LAST_WARNED_SAVE_DIRECTORY = FACTORY.createStringSetting(
             "LAST_WARNED_SAVED_DIRECTORY", "");
 
@@ -25,6 +25,13 @@ public final class UploadSettings extends LimeProps {
      */
     public static final BooleanSetting LIMIT_MAX_UPLOAD_SPEED = FACTORY.createBooleanSetting("LIMIT_MAX_UPLOAD_SPEED", false);
     
+    /**
+     * Whether uploads over unencrypted connections should be written directly
+     * from the file to the socket if the upload speed is not limited.
+     */
+    public static final BooleanSetting DIRECT_FILE_UPLOADS =
+        FACTORY.createBooleanSetting("DIRECT_FILE_UPLOADS", true);
+    
     /**
      *  Setting for the number of bytes/second to allow for all uploads.
      *  
@@ -1,6 +1,7 @@
 package com.limegroup.gnutella;
 
 import java.io.File;
+import java.util.List;
 import java.util.Set;
 
 import org.limewire.core.api.download.DownloadAction;
@@ -39,6 +40,17 @@ public interface ActivityCallback extends DownloadCallback
      */
 	public void handleQueryResult(RemoteFileDesc rfd, QueryReply queryReply, Set<? extends IpPort> locs);
 
+    /**
+     * Notifies the UI that the results of a query reply have come in to the
+     * backend, all at once.
+     * 
+     * @param queryReply the reply the results came in
+     * @param rfds the descriptors for the remote files
+     * @param locs the <tt>Set</tt>s of alternate locations for each file
+     */
+    public void handleQueryResults(QueryReply queryReply, List<? extends RemoteFileDesc> rfds,
+            List<? extends Set<? extends IpPort>> locs);
+
     /**
      * Add a query string to the monitor screen
      */
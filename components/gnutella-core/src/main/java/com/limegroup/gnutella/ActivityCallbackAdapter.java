@@ -1,6 +1,7 @@
 package com.limegroup.gnutella;
 
 import java.io.File;
+import java.util.List;
 import java.util.Set;
 
 import org.limewire.bittorrent.Torrent;
@@ -38,6 +39,13 @@ public class ActivityCallbackAdapter implements ActivityCallback {
         
     }
 
+    @Override
+    public void handleQueryResults(QueryReply queryReply, List<? extends RemoteFileDesc> rfds,
+            List<? extends Set<? extends IpPort>> locs) {
+        for(int i = 0; i < rfds.size(); i++)
+            handleQueryResult(rfds.get(i), queryReply, locs.get(i));
+    }
+
     @Override
     public void handleQuery(QueryRequest query, String address, int port) {
         
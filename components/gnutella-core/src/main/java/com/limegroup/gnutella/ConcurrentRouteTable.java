@@ -0,0 +1,703 @@
+package com.limegroup.gnutella;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.limewire.core.settings.MessageSettings;
+import org.limewire.inspection.Inspectable;
+import org.limewire.io.GUID;
+import org.limewire.util.Base32;
+
+import com.limegroup.gnutella.messages.QueryReply;
+import com.limegroup.gnutella.messages.Message.Network;
+import com.limegroup.gnutella.search.ResultCounter;
+import com.limegroup.gnutella.util.ClassCNetworks;
+
+/**
+ * A reply routing table that can be shared by many threads.  It has the same
+ * semantics as {@link RouteTable}: GUIDs are mapped to numeric IDs that stand
+ * for reply handlers, and the mappings of the last N to 2N seconds are kept
+ * by switching between two generations of maps.<p>
+ *
+ * Instead of guarding everything with a single monitor, GUIDs are spread over
+ * a fixed number of stripes, each with its own lock and its own pair of
+ * generations.  Which generation is current is decided for the whole table,
+ * and a stripe catches up on the switches it missed the next time it is
+ * locked, so expiry happens at the same time for all GUIDs.  GUIDs are stored
+ * as two longs in open-addressed arrays rather than as byte arrays in a tree.
+ */
+public final class ConcurrentRouteTable implements Inspectable {
+
+    /** The number of bits of a GUID's hash used to select its stripe. */
+    private static final int STRIPE_BITS = 5;
+
+    /** The bits of the first half of a GUID that are kept by the zero experiment. */
+    private static final long OOB_HI_MASK = 0x00000000FFFFFFFFL;
+
+    /** The bits of the second half of a GUID that are kept by the zero experiment. */
+    private static final long OOB_LO_MASK = 0xFFFFFFFFFF0000FFL;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    private final int mseconds;
+
+    private final int maxSize;
+
+    /** Held while switching generations. */
+    private final Object purgeLock = new Object();
+
+    /** The current generation, only incremented while holding purgeLock. */
+    private volatile int generation;
+
+    private volatile long nextSwitchTime;
+
+    /** The number of GUIDs added to the current generation. */
+    private final AtomicInteger newEntries = new AtomicInteger();
+
+    /** Held while allocating or removing handler IDs. */
+    private final Object idLock = new Object();
+
+    private final ConcurrentMap<Integer, ReplyHandler> idMap = new ConcurrentHashMap<Integer, ReplyHandler>();
+
+    private final ConcurrentMap<ReplyHandler, Integer> handlerMap = new ConcurrentHashMap<ReplyHandler, Integer>();
+
+    private int nextID;
+
+    /**
+     * Creates a new route table with enough space to hold the last seconds to
+     * 2*seconds worth of entries, or maxSize elements, whichever is smaller.
+     *
+     * @see RouteTable#RouteTable(int, int)
+     */
+    public ConcurrentRouteTable(int seconds, int maxSize) {
+        this.mseconds = seconds * 1000;
+        this.nextSwitchTime = System.currentTimeMillis() + mseconds;
+        this.maxSize = maxSize;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Adds a new routing entry, replacing any routing entries for guid.
+     *
+     * @return the entry for the guid or <tt>null</tt> if
+     *         <code>replyHandler</code> is closed
+     * @see RouteTable#routeReply(byte[], ReplyHandler)
+     */
+    public ResultCounter routeReply(byte[] guid, ReplyHandler replyHandler) {
+        purge();
+        if (replyHandler == null) {
+            throw new NullPointerException("null reply handler");
+        }
+
+        if (!replyHandler.isOpen())
+            return null;
+
+        int id = handler2id(replyHandler);
+        long hi = hi(guid), lo = lo(guid);
+        Stripe stripe = getStripe(hi, lo);
+        synchronized (stripe) {
+            stripe.catchUp(generation);
+            // if the guid is found in the new map, don't look in the old map
+            Entry entry = stripe.newMap.remove(hi, lo);
+            if (entry == null) {
+                entry = stripe.oldMap.remove(hi, lo);
+                newEntries.incrementAndGet();
+            }
+
+            if (entry == null)
+                entry = new Entry(id);
+            else
+                entry.handlerID = id;
+            stripe.newMap.put(hi, lo, entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Adds a new routing entry if one doesn't exist.
+     *
+     * @return the new entry, or <tt>null</tt> if there already was an entry
+     *         for the guid or <code>replyHandler</code> is closed
+     * @see RouteTable#tryToRouteReply(byte[], ReplyHandler)
+     */
+    public ResultCounter tryToRouteReply(byte[] guid, ReplyHandler replyHandler) {
+        purge();
+        assert replyHandler != null;
+        assert guid != null : "Null GUID in tryToRouteReply";
+
+        if (!replyHandler.isOpen())
+            return null;
+
+        long hi = hi(guid), lo = lo(guid);
+        Stripe stripe = getStripe(hi, lo);
+        synchronized (stripe) {
+            stripe.catchUp(generation);
+            if (stripe.newMap.get(hi, lo) != null || stripe.oldMap.get(hi, lo) != null)
+                return null;
+
+            Entry entry = new Entry(handler2id(replyHandler));
+            stripe.newMap.put(hi, lo, entry);
+            newEntries.incrementAndGet();
+            return entry;
+        }
+    }
+
+    /**
+     * Remembers the TTL associated with an entry returned by this table.
+     *
+     * @param ttl should be greater than 0.
+     * @exception IllegalArgumentException thrown if !(ttl > 0), or if entry
+     *            is null or was not returned by this table
+     */
+    public void setTTL(ResultCounter entry, byte ttl) {
+        if (entry == null)
+            throw new IllegalArgumentException("Null entry!!");
+        if (!(entry instanceof Entry))
+            throw new IllegalArgumentException("entry is not recognized.");
+        if (!(ttl > 0))
+            throw new IllegalArgumentException("Input TTL too small: " + ttl);
+
+        ((Entry) entry).setTTL(ttl);
+    }
+
+    /**
+     * Atomically sets the TTL of the entry for <code>guid</code> to
+     * <code>setTTL</code> if it currently is <code>getTTL</code>.
+     *
+     * @return true if the TTL was set as you desired.
+     * @throws IllegalArgumentException if getTTL or setTTL is less than 1, or
+     *         if setTTL < getTTL
+     */
+    public boolean getAndSetTTL(byte[] guid, byte getTTL, byte setTTL) {
+        if ((getTTL < 1) || (setTTL <= getTTL))
+            throw new IllegalArgumentException("Bad ttl input (get/set): " + getTTL + "/" + setTTL);
+
+        Entry entry = getEntry(guid);
+        return entry != null && entry.compareAndSetTTL(getTTL, setTTL);
+    }
+
+    /**
+     * Looks up the reply route for a given guid.
+     *
+     * @return the corresponding ReplyHandler for this GUID, or null if there
+     *         is no mapping for guid or the handler was removed
+     */
+    public ReplyHandler getReplyHandler(byte[] guid) {
+        Entry entry = getEntry(guid);
+        return (entry == null) ? null : idMap.get(entry.handlerID);
+    }
+
+    public RouteTable.ReplyRoutePair getReplyHandler(byte[] guid, int replyBytes, short numReplies,
+            short partialReplies) {
+        return getReplyHandler(guid, replyBytes, numReplies, partialReplies, 0, true);
+    }
+
+    /**
+     * Looks up the reply route and route volume for a given guid, incrementing
+     * the count of bytes routed for that GUID.
+     *
+     * @see RouteTable#getReplyHandler(byte[], int, short, short, int, boolean)
+     */
+    public RouteTable.ReplyRoutePair getReplyHandler(byte[] guid, int replyBytes, short numReplies,
+            short partialReplies, int classCNetwork, boolean count) {
+        long hi = hi(guid), lo = lo(guid);
+        Stripe stripe = getStripe(hi, lo);
+        synchronized (stripe) {
+            Entry entry = stripe.get(generation, hi, lo);
+            if (entry == null)
+                return null;
+            ReplyHandler handler = idMap.get(entry.handlerID);
+            if (handler == null)
+                return null;
+
+            RouteTable.ReplyRoutePair ret = new RouteTable.ReplyRoutePair(handler,
+                    entry.bytesRouted, entry.repliesRouted);
+            if (count) {
+                entry.bytesRouted += replyBytes;
+                entry.repliesRouted += numReplies;
+                entry.partialRepliesRouted += partialReplies;
+            } else {
+                entry.repliesNotCounted += numReplies;
+            }
+            if (classCNetwork != 0)
+                entry.getStats().classCnetworks.add(classCNetwork, numReplies);
+            return ret;
+        }
+    }
+
+    /** Remembers that the specified number of results came now */
+    public void timeStampResults(QueryReply reply) {
+        byte[] guid = reply.getGUID();
+        long hi = hi(guid), lo = lo(guid);
+        Stripe stripe = getStripe(hi, lo);
+        synchronized (stripe) {
+            Entry entry = stripe.get(generation, hi, lo);
+            if (entry != null)
+                entry.getStats().timeStampResults(entry.creationTime, reply.getUniqueResultCount());
+        }
+    }
+
+    public void countHopsTTLNet(QueryReply reply) {
+        byte[] guid = reply.getGUID();
+        long hi = hi(guid), lo = lo(guid);
+        Stripe stripe = getStripe(hi, lo);
+        synchronized (stripe) {
+            Entry entry = stripe.get(generation, hi, lo);
+            if (entry != null)
+                entry.getStats().countHopsTTLNet(reply.getNetwork(), reply.getHops(), reply.getTTL());
+        }
+    }
+
+    /**
+     * Clears references to a given ReplyHandler.  Entries routed to it will
+     * route to null afterwards.
+     */
+    public void removeReplyHandler(ReplyHandler replyHandler) {
+        assert replyHandler != null : "Null replyHandler in removeReplyHandler";
+
+        synchronized (idLock) {
+            Integer id = handlerMap.remove(replyHandler);
+            if (id != null)
+                idMap.remove(id);
+        }
+    }
+
+    /** Returns the number of reply handlers that have an ID. */
+    int getNumReplyHandlers() {
+        return idMap.size();
+    }
+
+    /**
+     * Returns a unique ID for the given handler, allocating one if the handler
+     * has not been encountered before.
+     */
+    private int handler2id(ReplyHandler handler) {
+        Integer id = handlerMap.get(handler);
+        if (id != null)
+            return id;
+
+        synchronized (idLock) {
+            id = handlerMap.get(handler);
+            if (id != null)
+                return id;
+
+            // don't worry about overflow, IDs wrap around
+            do {
+                id = nextID++;
+            } while (idMap.containsKey(id));
+
+            handlerMap.put(handler, id);
+            idMap.put(id, handler);
+            // the handler may have been closed and removed since it was
+            // checked, don't keep a reference to it in that case
+            if (!handler.isOpen()) {
+                handlerMap.remove(handler);
+                idMap.remove(id);
+            }
+            return id;
+        }
+    }
+
+    private Entry getEntry(byte[] guid) {
+        long hi = hi(guid), lo = lo(guid);
+        Stripe stripe = getStripe(hi, lo);
+        synchronized (stripe) {
+            return stripe.get(generation, hi, lo);
+        }
+    }
+
+    /**
+     * Switches to the next generation if enough time has elapsed since the
+     * last switch or too many GUIDs were added to the current generation.
+     */
+    private void purge() {
+        long now = System.currentTimeMillis();
+        if (now < nextSwitchTime && newEntries.get() < maxSize)
+            return;
+
+        synchronized (purgeLock) {
+            if (now < nextSwitchTime && newEntries.get() < maxSize)
+                return;
+            newEntries.set(0);
+            nextSwitchTime = now + mseconds;
+            generation++;
+        }
+    }
+
+    private Stripe getStripe(long hi, long lo) {
+        return stripes[hash(hi, lo) >>> (32 - STRIPE_BITS)];
+    }
+
+    /**
+     * Returns the hash of a GUID.  The high bits select the stripe, the low
+     * bits the slot in the stripe's maps.
+     */
+    private static int hash(long hi, long lo) {
+        long h = (hi ^ Long.rotateLeft(lo, 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the first 8 bytes of the guid, with the OOB-affected bytes
+     * zeroed if the zero guid experiment is enabled.
+     */
+    private static long hi(byte[] guid) {
+        long hi = toLong(guid, 0);
+        return MessageSettings.GUID_ZERO_EXPERIMENT.getValue() ? hi & OOB_HI_MASK : hi;
+    }
+
+    /**
+     * Returns the last 8 bytes of the guid, with the OOB-affected bytes
+     * zeroed if the zero guid experiment is enabled.
+     */
+    private static long lo(byte[] guid) {
+        long lo = toLong(guid, 8);
+        return MessageSettings.GUID_ZERO_EXPERIMENT.getValue() ? lo & OOB_LO_MASK : lo;
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long l = 0;
+        for (int i = offset; i < offset + 8; i++)
+            l = (l << 8) | (bytes[i] & 0xFF);
+        return l;
+    }
+
+    private static byte[] toGUID(long hi, long lo) {
+        return ByteBuffer.allocate(16).putLong(hi).putLong(lo).array();
+    }
+
+    /** Returns all entries sorted by GUID. */
+    private Map<byte[], Entry> getAllEntries() {
+        Map<byte[], Entry> all = new TreeMap<byte[], Entry>(new GUID.GUIDByteComparator());
+        int current = generation;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.catchUp(current);
+                stripe.oldMap.addTo(all);
+                stripe.newMap.addTo(all);
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("{");
+        Iterator<Map.Entry<byte[], Entry>> iter = getAllEntries().entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<byte[], Entry> entry = iter.next();
+            buf.append(new GUID(entry.getKey()));
+            buf.append("->");
+            ReplyHandler handler = idMap.get(entry.getValue().handlerID);
+            buf.append(handler == null ? "null" : handler.toString());
+            if (iter.hasNext())
+                buf.append(", ");
+        }
+        buf.append("}");
+        return buf.toString();
+    }
+
+    /**
+     * An actual dump of the routing table, in the same format as
+     * {@link RouteTable#inspect()}.
+     */
+    @Override
+    public Object inspect() {
+        Map<String, Object> ret = new HashMap<String, Object>();
+        for (Map.Entry<byte[], Entry> entry : getAllEntries().entrySet()) {
+            Entry e = entry.getValue();
+            Map<String, Object> m = new HashMap<String, Object>();
+            synchronized (getStripe(hi(entry.getKey()), lo(entry.getKey()))) {
+                m.put("br", e.bytesRouted);
+                m.put("ttl", e.getTTL());
+                m.put("rr", e.repliesRouted);
+                m.put("rnc", e.repliesNotCounted);
+                m.put("prr", e.partialRepliesRouted);
+                m.put("ct", e.creationTime);
+                m.put("id", e.handlerID);
+                (e.stats != null ? e.stats : new EntryStats()).inspect(m);
+            }
+            ret.put(Base32.encode(entry.getKey()), m);
+        }
+        for (Map.Entry<Integer, ReplyHandler> entry : idMap.entrySet()) {
+            ReplyHandler r = entry.getValue();
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("ip", r.getAddress());
+            m.put("port", r.getPort());
+            m.put("cguid", r.getClientGUID());
+            ret.put(String.valueOf(entry.getKey()), m);
+        }
+        return ret;
+    }
+
+    /** The entry for a GUID, guarded by the lock of the GUID's stripe. */
+    private static final class Entry implements ResultCounter {
+        /** The numericID of the reply connection. */
+        private volatile int handlerID;
+
+        /** The bytes already routed for this GUID. */
+        private int bytesRouted;
+
+        /** The number of replies already routed for this GUID. */
+        private int repliesRouted;
+
+        /** The number of replies for partial files already routed for this GUID */
+        private int partialRepliesRouted;
+
+        /** The number of replies not counted for flow control */
+        private int repliesNotCounted;
+
+        /** The ttl associated with this entry - meaningful only if > 0. */
+        private byte ttl;
+
+        /** Timestamp when this entry was created */
+        private final long creationTime = System.currentTimeMillis();
+
+        /** Statistics about the replies, created when the first one is counted. */
+        private EntryStats stats;
+
+        Entry(int handlerID) {
+            this.handlerID = handlerID;
+        }
+
+        public int getNumResults() {
+            return Math.max(0, repliesRouted - partialRepliesRouted);
+        }
+
+        synchronized void setTTL(byte ttl) {
+            this.ttl = ttl;
+        }
+
+        synchronized byte getTTL() {
+            return ttl;
+        }
+
+        synchronized boolean compareAndSetTTL(byte expect, byte update) {
+            if (ttl != expect)
+                return false;
+            ttl = update;
+            return true;
+        }
+
+        EntryStats getStats() {
+            if (stats == null)
+                stats = new EntryStats();
+            return stats;
+        }
+    }
+
+    /** Statistics about the replies routed for a GUID, kept for inspection. */
+    private static final class EntryStats {
+        /** The class C networks that have returned a reply for this query */
+        private final ClassCNetworks classCnetworks = new ClassCNetworks();
+
+        /** The times since creation when results for this query arrived */
+        private int[] resultTimeStamps = new int[4];
+
+        /** The number of results that came each time */
+        private int[] resultCounts = new int[4];
+
+        private int numTimeStamps;
+
+        /** The network from which the replies came */
+        private final int[] networks = new int[4];
+
+        /** The hops of the replies */
+        private final int[] hops = new int[5];
+
+        /** The ttls of the replies */
+        private final int[] ttls = new int[5];
+
+        void timeStampResults(long creationTime, int count) {
+            if (numTimeStamps == resultTimeStamps.length) {
+                resultTimeStamps = Arrays.copyOf(resultTimeStamps, numTimeStamps * 2);
+                resultCounts = Arrays.copyOf(resultCounts, numTimeStamps * 2);
+            }
+            resultTimeStamps[numTimeStamps] = (int) (System.currentTimeMillis() - creationTime);
+            resultCounts[numTimeStamps] = count;
+            numTimeStamps++;
+        }
+
+        void countHopsTTLNet(Network network, byte hop, byte ttl) {
+            networks[Math.max(0, Math.min(network.ordinal(), networks.length - 1))]++;
+            hops[Math.min(hops.length - 1, Math.max(0, hop - 1))]++;
+            ttls[Math.min(ttls.length - 1, Math.max(0, ttl - 1))]++;
+        }
+
+        void inspect(Map<String, Object> m) {
+            List<Double> times = new ArrayList<Double>(numTimeStamps);
+            List<Double> counts = new ArrayList<Double>(numTimeStamps);
+            for (int i = 0; i < numTimeStamps; i++) {
+                times.add((double) resultTimeStamps[i]);
+                counts.add((double) resultCounts[i]);
+            }
+            m.put("cc", classCnetworks.getMap());
+            m.put("rt", times);
+            m.put("rc", counts);
+            m.put("nets", getBytes(networks));
+            m.put("hops", getBytes(hops));
+            m.put("ttls", getBytes(ttls));
+        }
+
+        private static byte[] getBytes(int[] ints) {
+            ByteBuffer b = ByteBuffer.allocate(ints.length * 4);
+            b.asIntBuffer().put(ints);
+            return b.array();
+        }
+    }
+
+    /** A pair of generations of GUID mappings, guarded by its own monitor. */
+    private static final class Stripe {
+        private GuidMap newMap = new GuidMap();
+
+        private GuidMap oldMap = new GuidMap();
+
+        /** The generation of the table newMap belongs to. */
+        private int generation;
+
+        /**
+         * Switches generations until newMap belongs to the current generation
+         * of the table.
+         */
+        void catchUp(int current) {
+            if (generation == current)
+                return;
+            oldMap.clear();
+            if (current - generation == 1) {
+                GuidMap tmp = oldMap;
+                oldMap = newMap;
+                newMap = tmp;
+            } else {
+                newMap.clear();
+            }
+            generation = current;
+        }
+
+        /** Looks up a GUID in the new map, then the old map. */
+        Entry get(int current, long hi, long lo) {
+            catchUp(current);
+            Entry entry = newMap.get(hi, lo);
+            if (entry == null)
+                entry = oldMap.get(hi, lo);
+            return entry;
+        }
+    }
+
+    /**
+     * An open-addressed hash map from GUIDs, stored as two longs, to entries.
+     * Collisions are resolved by linear probing.
+     */
+    private static final class GuidMap {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private long[] his;
+
+        private long[] los;
+
+        private Entry[] values;
+
+        private int size;
+
+        GuidMap() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            his = new long[capacity];
+            los = new long[capacity];
+            values = new Entry[capacity];
+            size = 0;
+        }
+
+        /** Returns the slot of the GUID, or the empty slot it would go into. */
+        private int indexOf(long hi, long lo) {
+            int mask = values.length - 1;
+            int i = hash(hi, lo) & mask;
+            while (values[i] != null && (his[i] != hi || los[i] != lo))
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        Entry get(long hi, long lo) {
+            return values[indexOf(hi, lo)];
+        }
+
+        void put(long hi, long lo, Entry value) {
+            int i = indexOf(hi, lo);
+            if (values[i] == null) {
+                his[i] = hi;
+                los[i] = lo;
+                size++;
+            }
+            values[i] = value;
+            if (size * 4 > values.length * 3)
+                resize(values.length * 2);
+        }
+
+        Entry remove(long hi, long lo) {
+            int i = indexOf(hi, lo);
+            Entry old = values[i];
+            if (old == null)
+                return null;
+            values[i] = null;
+            size--;
+
+            // shift back the following entries of the probe sequence that
+            // would no longer be found
+            int mask = values.length - 1;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int k = hash(his[j], los[j]) & mask;
+                boolean reachable = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+                if (!reachable) {
+                    his[i] = his[j];
+                    los[i] = los[j];
+                    values[i] = values[j];
+                    values[j] = null;
+                    i = j;
+                }
+            }
+            return old;
+        }
+
+        private void resize(int capacity) {
+            long[] oldHis = his;
+            long[] oldLos = los;
+            Entry[] oldValues = values;
+            allocate(capacity);
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null)
+                    put(oldHis[i], oldLos[i], oldValues[i]);
+            }
+        }
+
+        void clear() {
+            if (size == 0)
+                return;
+            // don't hold on to the space of a burst of GUIDs forever
+            if (values.length > INITIAL_CAPACITY && size < values.length / 8)
+                allocate(INITIAL_CAPACITY);
+            else {
+                Arrays.fill(values, null);
+                size = 0;
+            }
+        }
+
+        void addTo(Map<byte[], Entry> map) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null)
+                    map.put(toGUID(his[i], los[i]), values[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,732 @@
+package com.limegroup.gnutella;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.collection.IntSet;
+import org.limewire.io.IpPort;
+import org.limewire.io.RecordStore;
+import org.limewire.util.ByteUtils;
+import org.limewire.util.StringUtils;
+
+/**
+ * A concurrent store of the hosts the {@link HostCatcher} hands out to
+ * connection fetchers. It takes the place of the catcher's queues when
+ * <code>ConnectionSettings.ENDPOINT_STORE</code> is on.
+ * <p>
+ * Hosts are sharded by their class C network into stripes that are locked
+ * separately, so adding the hosts of a burst of pongs rarely contends with
+ * handing hosts out. A network keeps at most {@link #MAX_PER_NETWORK} hosts.
+ * Each host is scored by the outcome of the last attempt to connect to it,
+ * the slots and ultrapeer status it advertised, its daily uptime and the
+ * time it took to connect to it before. {@link #poll(boolean)} hands out the
+ * best host of the better of two stripes, one of which is taken in turn, so
+ * consecutive hosts come from different networks.
+ * <p>
+ * Hosts that were handed out stay in the store until they are removed or
+ * evicted by better hosts, so {@link #doneWithConnect(ExtendedEndpoint,
+ * boolean)} can score them. All of them are kept in a {@link RecordStore};
+ * {@link #flush()} writes only the hosts that changed since the last flush.
+ */
+final class EndpointStore {
+
+    private static final Log LOG = LogFactory.getLog(EndpointStore.class);
+
+    /** Flag of hosts that are known to be ultrapeers. */
+    static final int ULTRAPEER = 1;
+
+    /** Flag of ultrapeers that advertised free leaf slots. */
+    static final int FREE_LEAF_SLOTS = 2;
+
+    /** Flag of ultrapeers that advertised free ultrapeer slots. */
+    static final int FREE_ULTRAPEER_SLOTS = 4;
+
+    /** The number of stripes, a power of two. */
+    static final int STRIPES = 32;
+
+    /** The number of hosts kept of each class C network. */
+    static final int MAX_PER_NETWORK = 4;
+
+    /** The version of the records. */
+    static final int VERSION = 1;
+
+    private static final int NETWORK_MASK = 0xFFFFFF00;
+
+    /** The score of a host the last connection attempt to which succeeded. */
+    private static final int CONNECT_SCORE = 1000;
+
+    /** The score of a host with free slots of any kind. */
+    private static final int FREE_SLOTS_SCORE = 400;
+
+    /** The additional score of a host with free slots for our mode. */
+    private static final int PREFERRED_SLOTS_SCORE = 400;
+
+    /** The score of a host that is known to be an ultrapeer. */
+    private static final int ULTRAPEER_SCORE = 200;
+
+    /** The score of a host that is up all day. */
+    private static final int UPTIME_SCORE = 200;
+
+    /** A connect latency of this many milliseconds costs a point. */
+    private static final int LATENCY_PER_POINT = 50;
+
+    /** The most points the connect latency can cost. */
+    private static final int MAX_LATENCY_PENALTY = 200;
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** The number of hosts each stripe keeps. */
+    private final int stripeCapacity;
+
+    /** Where the hosts are saved, null if they are not. */
+    private final RecordStore records;
+
+    /** Whether {@link #load()} was called. */
+    private volatile boolean loaded;
+
+    /** The stripe {@link #poll(boolean)} starts with next. */
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    /** Picks the second stripe {@link #poll(boolean)} looks at. */
+    private final Random random = new Random();
+
+    /** The number of hosts that can be handed out. */
+    private final AtomicInteger available = new AtomicInteger();
+
+    /** The number of available hosts with each flag. */
+    private final AtomicInteger ultrapeers = new AtomicInteger();
+    private final AtomicInteger freeLeafSlots = new AtomicInteger();
+    private final AtomicInteger freeUltrapeerSlots = new AtomicInteger();
+
+    /** Statistics of the hosts that were handed out. */
+    private final AtomicLong handedOut = new AtomicLong();
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong latencyTotal = new AtomicLong();
+
+    /**
+     * @param capacity the number of hosts to keep
+     * @param records where the hosts are saved, or null
+     */
+    EndpointStore(int capacity, RecordStore records) {
+        this.stripeCapacity = Math.max(MAX_PER_NETWORK, (capacity + STRIPES - 1) / STRIPES);
+        this.records = records;
+        for(int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Adds a host that can be handed out, or makes a host that was handed
+     * out available again. Flags are added to those the host already has.
+     *
+     * @param flags any of {@link #ULTRAPEER}, {@link #FREE_LEAF_SLOTS} and
+     *        {@link #FREE_ULTRAPEER_SLOTS}
+     * @return true if the host can be handed out and could not before
+     */
+    boolean add(ExtendedEndpoint host, int flags) {
+        return add(host, flags, true);
+    }
+
+    /**
+     * Adds a host that was loaded by {@link #load()} and forgets it if
+     * it is not kept.
+     *
+     * @return true if the host was added
+     */
+    boolean addRestored(ExtendedEndpoint host) {
+        if(add(host, 0, false))
+            return true;
+        if(get(host) == null)
+            remove(host);
+        return false;
+    }
+
+    private boolean add(ExtendedEndpoint host, int flags, boolean changed) {
+        int network = getNetwork(host);
+        if(network == 0)
+            return false;
+        Stripe stripe = getStripe(network);
+        synchronized(stripe) {
+            Entry entry = stripe.entries.get(host);
+            if(entry != null) {
+                if(host.isTLSCapable())
+                    entry.host.setTLSCapable(true);
+                boolean added = !entry.available;
+                if(!added)
+                    count(entry, -1);
+                entry.flags |= flags;
+                entry.available = true;
+                count(entry, 1);
+                return added;
+            }
+
+            entry = new Entry(host, network, flags);
+            if(!makeRoom(stripe, entry)) {
+                if(LOG.isTraceEnabled())
+                    LOG.trace("Not adding host with low score " + host);
+                return false;
+            }
+            entry.available = true;
+            entry.dirty = changed;
+            stripe.entries.put(host, entry);
+            count(entry, 1);
+            return true;
+        }
+    }
+
+    /**
+     * Evicts the worst host of the network of the given entry if the
+     * network is full, or else the worst host of the stripe if the stripe
+     * is full, unless it is at least as good as the entry.
+     *
+     * LOCKING: stripe
+     *
+     * @return true if the entry can be added
+     */
+    private boolean makeRoom(Stripe stripe, Entry entry) {
+        Entry worst = null;
+        Entry worstOfNetwork = null;
+        int inNetwork = 0;
+        for(Entry e : stripe.entries.values()) {
+            if(worst == null || e.getScore() < worst.getScore())
+                worst = e;
+            if(e.network == entry.network) {
+                inNetwork++;
+                if(worstOfNetwork == null || e.getScore() < worstOfNetwork.getScore())
+                    worstOfNetwork = e;
+            }
+        }
+
+        Entry victim;
+        if(inNetwork >= MAX_PER_NETWORK)
+            victim = worstOfNetwork;
+        else if(stripe.entries.size() >= stripeCapacity)
+            victim = worst;
+        else
+            return true;
+        if(victim.getScore() >= entry.getScore())
+            return false;
+
+        if(LOG.isTraceEnabled())
+            LOG.trace("Evicting host " + victim.host);
+        removeEntry(stripe, victim);
+        return true;
+    }
+
+    /**
+     * Removes and returns the best host of the next stripe with available
+     * hosts, or of a random stripe if its best host is better. Returns null
+     * if no hosts are available.
+     *
+     * @param supernode whether we are an ultrapeer, which prefers hosts
+     *        with free ultrapeer slots to those with free leaf slots
+     */
+    ExtendedEndpoint poll(boolean supernode) {
+        while(available.get() > 0) {
+            Stripe a = nextStripe();
+            if(a == null)
+                return null;
+            Stripe b = stripes[random.nextInt(STRIPES)];
+            if(b != a && getBestScore(b, supernode) > getBestScore(a, supernode))
+                a = b;
+            ExtendedEndpoint host = take(a, supernode);
+            if(host != null)
+                return host;
+            // Another thread took the last host of the stripe
+        }
+        return null;
+    }
+
+    /**
+     * Moves the cursor past the next stripe with available hosts and
+     * returns it, or returns null if there is none.
+     */
+    private Stripe nextStripe() {
+        for(int i = 0; i < STRIPES; i++) {
+            Stripe stripe = stripes[cursor.getAndIncrement() & (STRIPES - 1)];
+            if(stripe.available > 0)
+                return stripe;
+        }
+        return null;
+    }
+
+    private int getBestScore(Stripe stripe, boolean supernode) {
+        synchronized(stripe) {
+            Entry best = getBest(stripe, supernode);
+            return best == null ? Integer.MIN_VALUE : best.getScore(supernode);
+        }
+    }
+
+    /**
+     * Removes and returns the best available host of the stripe.
+     */
+    private ExtendedEndpoint take(Stripe stripe, boolean supernode) {
+        synchronized(stripe) {
+            Entry best = getBest(stripe, supernode);
+            if(best == null)
+                return null;
+            count(best, -1);
+            best.available = false;
+            best.handedOutAt = System.currentTimeMillis();
+            handedOut.incrementAndGet();
+            return best.host;
+        }
+    }
+
+    /**
+     * LOCKING: stripe
+     */
+    private Entry getBest(Stripe stripe, boolean supernode) {
+        if(stripe.available == 0)
+            return null;
+        Entry best = null;
+        int bestScore = Integer.MIN_VALUE;
+        for(Entry e : stripe.entries.values()) {
+            if(e.available) {
+                int score = e.getScore(supernode);
+                if(best == null || score > bestScore) {
+                    best = e;
+                    bestScore = score;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Records the outcome of an attempt to connect to a host, and how long
+     * it took since the host was handed out if it succeeded.
+     */
+    void doneWithConnect(ExtendedEndpoint host, boolean success) {
+        if(success)
+            successes.incrementAndGet();
+        else
+            failures.incrementAndGet();
+
+        int network = getNetwork(host);
+        Stripe stripe = getStripe(network);
+        synchronized(stripe) {
+            Entry entry = network == 0 ? null : stripe.entries.get(host);
+            ExtendedEndpoint known = entry == null ? host : entry.host;
+            if(success)
+                known.recordConnectionSuccess();
+            else
+                known.recordConnectionFailure();
+            if(entry == null)
+                return;
+
+            if(success && entry.handedOutAt > 0) {
+                int latency = (int)Math.min(Integer.MAX_VALUE,
+                        System.currentTimeMillis() - entry.handedOutAt);
+                latencyTotal.addAndGet(latency);
+                entry.latency = entry.latency < 0 ? latency
+                        : (3 * entry.latency + latency) / 4;
+            }
+            entry.handedOutAt = 0;
+            entry.dirty = true;
+        }
+    }
+
+    /**
+     * Removes a host from the store and the saved hosts.
+     *
+     * @return true if the host was in the store
+     */
+    boolean remove(Endpoint host) {
+        int network = getNetwork(host);
+        Stripe stripe = getStripe(network);
+        synchronized(stripe) {
+            Entry entry = network == 0 ? null : stripe.entries.get(host);
+            if(entry != null) {
+                removeEntry(stripe, entry);
+                return true;
+            }
+            stripe.removed.add(host);
+            return false;
+        }
+    }
+
+    /**
+     * LOCKING: stripe
+     */
+    private void removeEntry(Stripe stripe, Entry entry) {
+        if(entry.available)
+            count(entry, -1);
+        stripe.entries.remove(entry.host);
+        stripe.removed.add(entry.host);
+    }
+
+    /**
+     * Returns the host in the store with the address and port of the
+     * given one, whether it is available or not, or null.
+     */
+    ExtendedEndpoint get(Endpoint host) {
+        int network = getNetwork(host);
+        if(network == 0)
+            return null;
+        Stripe stripe = getStripe(network);
+        synchronized(stripe) {
+            Entry entry = stripe.entries.get(host);
+            return entry == null ? null : entry.host;
+        }
+    }
+
+    /**
+     * Returns the number of hosts that can be handed out.
+     */
+    int size() {
+        return available.get();
+    }
+
+    /**
+     * Returns the number of available hosts with the given flag.
+     */
+    int size(int flag) {
+        switch(flag) {
+        case ULTRAPEER:
+            return ultrapeers.get();
+        case FREE_LEAF_SLOTS:
+            return freeLeafSlots.get();
+        case FREE_ULTRAPEER_SLOTS:
+            return freeUltrapeerSlots.get();
+        default:
+            throw new IllegalArgumentException("flag: " + flag);
+        }
+    }
+
+    /**
+     * Returns the hosts that can be handed out.
+     */
+    List<ExtendedEndpoint> getHosts() {
+        List<ExtendedEndpoint> hosts = new ArrayList<ExtendedEndpoint>(size());
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                for(Entry e : stripe.entries.values()) {
+                    if(e.available)
+                        hosts.add(e.host);
+                }
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Returns up to the given number of available hosts with the given flag,
+     * one of each class C network, preferring those with the given locale.
+     * The returned collection can be modified.
+     */
+    Collection<IpPort> getHosts(int flag, String locale, int num) {
+        List<ExtendedEndpoint> matching = new ArrayList<ExtendedEndpoint>();
+        List<ExtendedEndpoint> others = new ArrayList<ExtendedEndpoint>();
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                for(Entry e : stripe.entries.values()) {
+                    if(e.available && (e.flags & flag) != 0) {
+                        if(e.host.getClientLocale().equals(locale))
+                            matching.add(e.host);
+                        else
+                            others.add(e.host);
+                    }
+                }
+            }
+        }
+
+        Collection<IpPort> hosts = new LinkedHashSet<IpPort>();
+        IntSet networks = new IntSet();
+        addDiverse(matching, hosts, networks, num);
+        addDiverse(others, hosts, networks, num);
+        return hosts;
+    }
+
+    /**
+     * Adds hosts of networks that are not in the given set until there
+     * are <code>num</code> hosts.
+     */
+    private static void addDiverse(List<ExtendedEndpoint> from, Collection<IpPort> to,
+            IntSet networks, int num) {
+        for(ExtendedEndpoint host : from) {
+            if(to.size() >= num)
+                return;
+            if(networks.add(getNetwork(host)))
+                to.add(host);
+        }
+    }
+
+    /**
+     * Makes all hosts that were handed out available again.
+     */
+    void restore() {
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                for(Entry e : stripe.entries.values()) {
+                    if(!e.available) {
+                        e.available = true;
+                        e.handedOutAt = 0;
+                        count(e, 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all hosts from the store and deletes the saved hosts.
+     */
+    void clear() {
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                for(Entry e : stripe.entries.values()) {
+                    if(e.available)
+                        count(e, -1);
+                }
+                stripe.entries.clear();
+                stripe.removed.clear();
+            }
+        }
+        if(records != null)
+            records.clear();
+    }
+
+    /**
+     * Returns whether {@link #load()} was called.
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Opens the saved hosts and returns them. They are not added to the
+     * store; {@link #addRestored(ExtendedEndpoint)} adds those that are
+     * still valid and {@link #remove(Endpoint)} forgets the others.
+     */
+    List<ExtendedEndpoint> load() throws IOException {
+        if(loaded)
+            throw new IllegalStateException("already loaded");
+        loaded = true;
+
+        List<ExtendedEndpoint> hosts = new ArrayList<ExtendedEndpoint>();
+        if(records == null)
+            return hosts;
+        records.open();
+        for(byte[] key : records.keys()) {
+            byte[] value = records.get(key);
+            if(value == null)
+                continue;
+            try {
+                hosts.add(ExtendedEndpoint.read(StringUtils.getUTF8String(value)));
+            } catch(ParseException pe) {
+                LOG.info("Exception parsing saved host", pe);
+                records.remove(key);
+            }
+        }
+        if(LOG.isDebugEnabled())
+            LOG.debug("Loaded " + hosts.size() + " hosts");
+        return hosts;
+    }
+
+    /**
+     * Saves the hosts that were added, changed or removed since the last
+     * flush. Does nothing before the store was loaded.
+     */
+    void flush() throws IOException {
+        if(records == null || !loaded)
+            return;
+
+        int written = 0;
+        for(Stripe stripe : stripes) {
+            List<Endpoint> removed;
+            List<byte[]> changed = new ArrayList<byte[]>();
+            synchronized(stripe) {
+                removed = new ArrayList<Endpoint>(stripe.removed);
+                stripe.removed.clear();
+                for(Entry e : stripe.entries.values()) {
+                    if(e.dirty) {
+                        changed.add(getKey(e.host));
+                        changed.add(getValue(e.host));
+                        e.dirty = false;
+                    }
+                }
+            }
+            for(Endpoint host : removed)
+                records.remove(getKey(host));
+            for(int i = 0; i < changed.size(); i += 2)
+                records.put(changed.get(i), changed.get(i + 1));
+            written += removed.size() + changed.size() / 2;
+        }
+        records.flush();
+        if(LOG.isTraceEnabled())
+            LOG.trace("Saved " + written + " changed hosts");
+    }
+
+    /**
+     * Returns statistics of the store for inspection.
+     */
+    Map<String, Object> inspect() {
+        Map<String, Object> ret = new HashMap<String, Object>();
+        int hosts = 0;
+        int used = 0;
+        IntSet networks = new IntSet();
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                hosts += stripe.entries.size();
+                if(!stripe.entries.isEmpty())
+                    used++;
+                for(Entry e : stripe.entries.values())
+                    networks.add(e.network);
+            }
+        }
+        long ok = successes.get();
+        ret.put("hosts", hosts);
+        ret.put("avail", size());
+        ret.put("up", size(ULTRAPEER));
+        ret.put("fl", size(FREE_LEAF_SLOTS));
+        ret.put("fu", size(FREE_ULTRAPEER_SLOTS));
+        ret.put("nets", networks.size());
+        ret.put("stripes", used);
+        ret.put("out", handedOut.get());
+        ret.put("ok", ok);
+        ret.put("fail", failures.get());
+        ret.put("lat", ok == 0 ? -1 : latencyTotal.get() / ok);
+        return ret;
+    }
+
+    /**
+     * Adds the delta to the counts of available hosts the entry is in.
+     *
+     * LOCKING: the stripe of the entry
+     */
+    private void count(Entry entry, int delta) {
+        getStripe(entry.network).available += delta;
+        available.addAndGet(delta);
+        if((entry.flags & ULTRAPEER) != 0)
+            ultrapeers.addAndGet(delta);
+        if((entry.flags & FREE_LEAF_SLOTS) != 0)
+            freeLeafSlots.addAndGet(delta);
+        if((entry.flags & FREE_ULTRAPEER_SLOTS) != 0)
+            freeUltrapeerSlots.addAndGet(delta);
+    }
+
+    private Stripe getStripe(int network) {
+        return stripes[getStripeIndex(network)];
+    }
+
+    /**
+     * Returns the index of the stripe of a class C network. Package access
+     * for testing.
+     */
+    static int getStripeIndex(int network) {
+        int hash = (network >>> 8) * 0x9E3779B9;
+        return hash >>> (32 - Integer.numberOfTrailingZeros(STRIPES));
+    }
+
+    /**
+     * Returns the class C network of the host, or 0 if its address is
+     * not known.
+     */
+    private static int getNetwork(Endpoint host) {
+        try {
+            return ByteUtils.beb2int(host.getHostBytes(), 0) & NETWORK_MASK;
+        } catch(UnknownHostException uhe) {
+            return 0;
+        }
+    }
+
+    private static byte[] getKey(Endpoint host) {
+        return StringUtils.toUTF8Bytes(host.getAddress() + ":" + host.getPort());
+    }
+
+    private static byte[] getValue(ExtendedEndpoint host) {
+        StringWriter out = new StringWriter();
+        try {
+            host.write(out);
+        } catch(IOException impossible) {
+            throw new RuntimeException(impossible);
+        }
+        return StringUtils.toUTF8Bytes(out.toString().trim());
+    }
+
+    /**
+     * The hosts of the class C networks that share a lock.
+     */
+    private static class Stripe {
+        /** All hosts of the stripe, available or not. */
+        private final Map<Endpoint, Entry> entries = new HashMap<Endpoint, Entry>();
+
+        /** Hosts that were removed since the last flush. */
+        private final List<Endpoint> removed = new ArrayList<Endpoint>();
+
+        /** The number of available hosts, read without the lock. */
+        private volatile int available;
+    }
+
+    /**
+     * A host with what the store knows about it.
+     */
+    private static class Entry {
+        private final ExtendedEndpoint host;
+
+        /** The class C network of the host. */
+        private final int network;
+
+        private int flags;
+
+        /** Whether the host can be handed out. */
+        private boolean available;
+
+        /** When the host was last handed out, or 0. */
+        private long handedOutAt;
+
+        /** The average time it took to connect, or -1 if unknown. */
+        private int latency = -1;
+
+        /** Whether the host has changed since the last flush. */
+        private boolean dirty;
+
+        Entry(ExtendedEndpoint host, int network, int flags) {
+            this.host = host;
+            this.network = network;
+            this.flags = flags;
+        }
+
+        /**
+         * Returns the score of the host regardless of our mode.
+         */
+        int getScore() {
+            int score = host.connectScore() * CONNECT_SCORE;
+            if((flags & (FREE_LEAF_SLOTS | FREE_ULTRAPEER_SLOTS)) != 0)
+                score += FREE_SLOTS_SCORE;
+            else if((flags & ULTRAPEER) != 0)
+                score += ULTRAPEER_SCORE;
+            int uptime = Math.min(Math.max(host.getDailyUptime(), 0), SECONDS_PER_DAY);
+            score += (int)((long)uptime * UPTIME_SCORE / SECONDS_PER_DAY);
+            if(latency >= 0)
+                score -= Math.min(latency / LATENCY_PER_POINT, MAX_LATENCY_PENALTY);
+            return score;
+        }
+
+        /**
+         * Returns the score of the host for a leaf or an ultrapeer.
+         */
+        int getScore(boolean supernode) {
+            int preferred = supernode ? FREE_ULTRAPEER_SLOTS : FREE_LEAF_SLOTS;
+            if((flags & preferred) != 0)
+                return getScore() + PREFERRED_SLOTS_SCORE;
+            return getScore();
+        }
+    }
+}
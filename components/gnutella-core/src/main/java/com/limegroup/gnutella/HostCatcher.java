@@ -23,9 +23,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -49,6 +51,7 @@ import org.limewire.io.IpPort;
 import org.limewire.io.IpPortSet;
 import org.limewire.io.NetworkInstanceUtils;
 import org.limewire.io.NetworkUtils;
+import org.limewire.io.RecordStore;
 import org.limewire.lifecycle.Service;
 import org.limewire.util.CommonUtils;
 
@@ -70,6 +73,11 @@ import com.limegroup.gnutella.util.ClassCNetworks;
  * between sessions. The servent may attempt to connect to these addresses as
  * necessary to maintain full connectivity. Hosts that are known to be
  * ultrapeers are preferred when caching and returning addresses. 
+ * <p>
+ * If <code>ConnectionSettings.ENDPOINT_STORE</code> is on when the catcher is
+ * created, the hosts are kept in an {@link EndpointStore} instead, which
+ * hands them out without the catcher's lock and saves them incrementally;
+ * gnutella.net then only holds the UDP host caches.
  */
 @EagerSingleton
 public class HostCatcher implements Service, Bootstrapper.Listener {
@@ -212,24 +220,28 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
     private final ListPartitioner<ExtendedEndpoint> uptimePartitions = 
         new ListPartitioner<ExtendedEndpoint>(restoredHosts, 3);
 
+    /**
+     * The store of the hosts to try, or null if the collections above are
+     * used instead.
+     */
+    private final EndpointStore store;
+
     /**
      * Hosts to which we could not create a TCP connection, and which should
      * therefore not be tried again. Fixed size, which is package accessible
-     * for testing.
-     * 
-     * LOCKING: this
+     * for testing. Concurrent, so validating hosts needs no lock.
      */
-    private final Set<Endpoint> EXPIRED_HOSTS = new HashSet<Endpoint>();
+    private final Set<Endpoint> EXPIRED_HOSTS =
+        Collections.newSetFromMap(new ConcurrentHashMap<Endpoint, Boolean>());
     protected static final int EXPIRED_HOSTS_SIZE = 500;
 
     /**
      * Hosts that accepted a TCP connection but not a Gnutella connection, and
      * which are therefore "on probation". Fixed size, which is package
-     * accessible for testing.
-     * 
-     * LOCKING: this
+     * accessible for testing. Concurrent, so validating hosts needs no lock.
      */    
-    private final Set<Endpoint> PROBATION_HOSTS = new HashSet<Endpoint>();
+    private final Set<Endpoint> PROBATION_HOSTS =
+        Collections.newSetFromMap(new ConcurrentHashMap<Endpoint, Boolean>());
     protected static final int PROBATION_HOSTS_SIZE = 500;
 
     /**
@@ -250,6 +262,12 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
     private final List<EndpointObserver> _catchersWaiting =
         new LinkedList<EndpointObserver>();
 
+    /**
+     * Whether _catchersWaiting is not empty, so adding a host can skip
+     * the lock when no one is waiting.
+     */
+    private volatile boolean observersWaiting = false;
+
     /**
      * How long (in milliseconds) to send pings after the host catcher
      * is initialized.
@@ -288,6 +306,27 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
     @InspectablePrimitive("restored host file")
     @SuppressWarnings("unused")
     private boolean loadedHostFile = false;
+
+    /**
+     * The time connect() was last called, or 0 once a connection succeeded
+     * after it.
+     */
+    private volatile long connectTime = 0;
+
+    /**
+     * The number of connection attempts since connect() was last called.
+     */
+    private final AtomicInteger connectAttempts = new AtomicInteger();
+
+    /**
+     * Inspection points for how long it took to connect to the first host
+     * after connect() was last called, and how many attempts it took.
+     */
+    @InspectablePrimitive("time to first connection")
+    private volatile long timeToFirstConnection = -1;
+    @InspectablePrimitive("attempts to first connection")
+    @SuppressWarnings("unused")
+    private volatile int attemptsToFirstConnection = -1;
     
     private final ScheduledExecutorService backgroundExecutor;
     private final ConnectionServices connectionServices;
@@ -322,6 +361,12 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
         this.uniqueHostPinger = uniqueHostPinger;
         this.networkInstanceUtils = networkInstanceUtils;
         this.bootstrapper = bootstrapper;
+        if(ConnectionSettings.ENDPOINT_STORE.getValue()) {
+            store = new EndpointStore(GOOD_SIZE + NORMAL_SIZE, new RecordStore(
+                    CommonUtils.getUserSettingsDir(), "hosts", EndpointStore.VERSION));
+        } else {
+            store = null;
+        }
     }
     
     /**
@@ -332,17 +377,18 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
         Runnable probationRestorer = new Runnable() {
             public void run() {
                 // Restore probated hosts
-                List<Endpoint> toAdd;
-                synchronized(HostCatcher.this) {
-                    if(LOG.isTraceEnabled()) {
-                        LOG.trace("Restoring " + PROBATION_HOSTS.size() +
-                        " probated hosts");
-                    }
-                    toAdd = new ArrayList<Endpoint>(PROBATION_HOSTS);
-                    PROBATION_HOSTS.clear();
+                if(LOG.isTraceEnabled()) {
+                    LOG.trace("Restoring " + PROBATION_HOSTS.size() +
+                    " probated hosts");
                 }
-                for(Endpoint e : toAdd)
+                for(Iterator<Endpoint> i = PROBATION_HOSTS.iterator(); i.hasNext(); ) {
+                    Endpoint e = i.next();
+                    i.remove();
                     add(e, false);
+                }
+                // Save the hosts that changed since the last time
+                if(store != null)
+                    flushStore();
                 // Take this opportunity to do some logging
                 if(LOG.isTraceEnabled()) {
                     LOG.trace(ENDPOINT_SET.size() + " ordinary, " +
@@ -351,6 +397,7 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
                             LOCALE_SET_MAP.size() + " locales, " +
                             permanentHostsSet.size() + " permanent, " +
                             restoredHosts.size() + " restored, " +
+                            (store == null ? 0 : store.size()) + " stored, " +
                             EXPIRED_HOSTS.size() + " expired, " +
                             PROBATION_HOSTS.size() + " on probation, " +
                             _catchersWaiting.size() + " waiting");
@@ -404,6 +451,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * reads the host file and starts pinging.
      */
     public void connect() {
+        connectTime = System.currentTimeMillis();
+        connectAttempts.set(0);
         // Allow pings to be sent for the next PONG_RANKING_EXPIRE_TIME msecs
         lastAllowedPongRankTime =
             System.currentTimeMillis() + PONG_RANKING_EXPIRE_TIME;
@@ -428,6 +477,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
             hosts.addAll(ENDPOINT_SET.keySet());
             hosts.addAll(restoredHosts);
         }
+        if(store != null)
+            hosts.addAll(store.getHosts());
         Collections.shuffle(hosts);
         rank(hosts);
     }
@@ -466,6 +517,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
         hosts.addAll(FREE_LEAF_SLOTS_SET.keySet());
         hosts.addAll(ENDPOINT_SET.keySet());
         hosts.addAll(restoredHosts);
+        if(store != null)
+            hosts.addAll(store.getHosts());
         return hosts;
     }
     
@@ -513,7 +566,10 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
             return false;
         }
         int size;
-        if(connectionServices.isSupernode()) {
+        if(store != null) {
+            size = store.size(connectionServices.isSupernode() ?
+                    EndpointStore.FREE_ULTRAPEER_SLOTS : EndpointStore.FREE_LEAF_SLOTS);
+        } else if(connectionServices.isSupernode()) {
             synchronized(this) {
                 size = FREE_ULTRAPEER_SLOTS_SET.size();
             }
@@ -533,6 +589,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * Reads the host file from the default location.
      */
     private void read() {
+        if(store != null)
+            readStore();
         try {
             read(getHostsFile());
         } catch (IOException e) {
@@ -568,6 +626,13 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
                     ExtendedEndpoint e = ExtendedEndpoint.read(line); 
                     if(e.isUDPHostCache()) {
                         bootstrapper.addUDPHostCache(e);
+                    } else if(store != null) {
+                        // Move the host from the file to the store
+                        if(isValidHost(e) && store.add(e, 0))
+                            endpointAdded();
+                        synchronized(this) {
+                            dirty = true;
+                        }
                     } else if(isValidHost(e)) {
                         synchronized(this) {
                             addPermanent(e);
@@ -594,10 +659,50 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
         }
     }
 
+    /**
+     * Loads the saved hosts into the store the first time, and makes the
+     * hosts that were handed out available again after that.
+     */
+    private void readStore() {
+        if(store.isLoaded()) {
+            store.restore();
+            endpointAdded();
+            return;
+        }
+        List<ExtendedEndpoint> hosts;
+        try {
+            hosts = store.load();
+        } catch(IOException e) {
+            LOG.info("Exception loading saved hosts", e);
+            return;
+        }
+        for(ExtendedEndpoint e : hosts) {
+            if(isValidHost(e) && store.addRestored(e)) {
+                loadedHostFile = true;
+                endpointAdded();
+            } else {
+                store.remove(e);
+            }
+        }
+    }
+
+    /**
+     * Saves the hosts of the store that changed since the last flush.
+     */
+    private void flushStore() {
+        try {
+            store.flush();
+        } catch(IOException e) {
+            LOG.info("Exception saving hosts", e);
+        }
+    }
+
     /**
      * Writes the host file to the default location. Package access for testing.
      */
     protected void write() {
+        if(store != null)
+            flushStore();
         try {
             write(getHostsFile());
         } catch(IOException e) {
@@ -805,6 +910,13 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      */
     private void addToFreeSlotSet(ExtendedEndpoint host,
             Map<? super ExtendedEndpoint, ? super ExtendedEndpoint> hosts) {
+        if(store != null) {
+            int flag = hosts == FREE_LEAF_SLOTS_SET ?
+                    EndpointStore.FREE_LEAF_SLOTS : EndpointStore.FREE_ULTRAPEER_SLOTS;
+            if(store.add(host, EndpointStore.ULTRAPEER | flag))
+                endpointAdded();
+            return;
+        }
         synchronized(this) {
             hosts.put(host, host);
             addPermanent(host);
@@ -913,6 +1025,15 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
             LOG.trace("Adding host as UHC");
             return bootstrapper.addUDPHostCache(e);
         }
+
+        if(store != null) {
+            if(!store.add(e, priority == GOOD_PRIORITY ? EndpointStore.ULTRAPEER : 0)) {
+                LOG.trace("Not adding duplicate host");
+                return false;
+            }
+            endpointAdded();
+            return true;
+        }
         
         boolean added = false;
         synchronized(this) {
@@ -1031,15 +1152,13 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
         }
 
         // Don't add the host if it has previously failed
-        synchronized(this) {
-            if(EXPIRED_HOSTS.contains(host)) {
-                LOG.trace("Host is invalid: expired");
-                return false;
-            }
-            if(PROBATION_HOSTS.contains(host)) {
-                LOG.trace("Host is invalid: on probation");
-                return false;
-            }
+        if(EXPIRED_HOSTS.contains(host)) {
+            LOG.trace("Host is invalid: expired");
+            return false;
+        }
+        if(PROBATION_HOSTS.contains(host)) {
+            LOG.trace("Host is invalid: on probation");
+            return false;
         }
 
         LOG.trace("Host is valid");
@@ -1060,12 +1179,16 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
         Endpoint p = new Endpoint(ipp.getAddress(), ipp.getPort());
         ExtendedEndpoint ee;
         // Look everywhere
-        synchronized(this) {
-            ee = ENDPOINT_SET.get(p);
-            if(ee == null)
-                ee = FREE_ULTRAPEER_SLOTS_SET.get(p);
-            if(ee == null)
-                ee = FREE_LEAF_SLOTS_SET.get(p);
+        if(store != null) {
+            ee = store.get(p);
+        } else {
+            synchronized(this) {
+                ee = ENDPOINT_SET.get(p);
+                if(ee == null)
+                    ee = FREE_ULTRAPEER_SLOTS_SET.get(p);
+                if(ee == null)
+                    ee = FREE_LEAF_SLOTS_SET.get(p);
+            }
         }
         
         if(ee == null) {
@@ -1084,6 +1207,10 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * Notifies one waiting observer that an endpoint is now available.
      */
     private void endpointAdded() {
+        if(!observersWaiting) {
+            LOG.trace("No observers waiting");
+            return;
+        }
         Endpoint p;
         EndpointObserver observer;
         synchronized (this) {
@@ -1099,6 +1226,7 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
             }
             
             observer = _catchersWaiting.remove(0);
+            observersWaiting = !_catchersWaiting.isEmpty();
         }
         // It's important that this is outside the lock, otherwise
         // HostCatcher's lock is exposed to the outside world
@@ -1112,18 +1240,7 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * of waiting observers.
      */
     public void getAnEndpoint(EndpointObserver observer) {
-        Endpoint p;
-        
-        // We can only lock around endpoint retrieval & _catchersWaiting,
-        // we don't want to expose our lock to the observer.
-        synchronized(this) {
-            p = getAnEndpointInternal();
-            if(p == null) {
-                LOG.trace("Couldn't get a host immediately; waiting");
-                _catchersWaiting.add(observer);
-            }
-        }
-        
+        Endpoint p = getAnEndpointImmediate(observer);
         if(p != null)
             observer.handleEndpoint(p);
     }
@@ -1136,17 +1253,33 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * null and schedules no future callback.
      */
     public Endpoint getAnEndpointImmediate(EndpointObserver observer) {
-        Endpoint p;
-        
+        // The store needs no lock to hand out a host
+        if(store != null) {
+            Endpoint p = store.poll(connectionServices.isSupernode());
+            if(p != null)
+                return p;
+        }
+
+        // We can only lock around endpoint retrieval & _catchersWaiting,
+        // we don't want to expose our lock to the observer.
         synchronized(this) {
-            p = getAnEndpointInternal();
+            Endpoint p = getAnEndpointInternal();
             if(p == null && observer != null) {
                 LOG.trace("Couldn't get a host immediately; waiting");
                 _catchersWaiting.add(observer);
+                observersWaiting = true;
+                // A host may have been added to the store without the lock
+                // before it could see the observer, so try once more
+                if(store != null) {
+                    p = getAnEndpointInternal();
+                    if(p != null) {
+                        _catchersWaiting.remove(observer);
+                        observersWaiting = !_catchersWaiting.isEmpty();
+                    }
+                }
             }
+            return p;
         }
-        
-        return p;
     }
     
     /**
@@ -1155,6 +1288,7 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
     public synchronized void removeEndpointObserver(EndpointObserver observer) {
         LOG.trace("Removing waiting observer");
         _catchersWaiting.remove(observer);
+        observersWaiting = !_catchersWaiting.isEmpty();
     }
 
     /**
@@ -1177,11 +1311,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
             }
         } catch (InterruptedException ie) {
             // If we got interrupted, we must remove the waiting observer.
-            synchronized (this) {
-                LOG.trace("Removing waiting observer");
-                _catchersWaiting.remove(observer);
-                throw ie;
-            }
+            removeEndpointObserver(observer);
+            throw ie;
         }
     }
   
@@ -1190,7 +1321,18 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * a connection to the given host. This allows the catcher to update the
      * host's connection history.
      */
-    public synchronized void doneWithConnect(Endpoint e, boolean success) {
+    public void doneWithConnect(Endpoint e, boolean success) {
+        int attempts = connectAttempts.incrementAndGet();
+        long started = connectTime;
+        if(success && started != 0) {
+            connectTime = 0;
+            timeToFirstConnection = System.currentTimeMillis() - started;
+            attemptsToFirstConnection = attempts;
+            if(LOG.isDebugEnabled())
+                LOG.debug("First connection after " + timeToFirstConnection +
+                        " ms and " + attempts + " attempts");
+        }
+
         //Normal host: update key.  TODO: adjustKey() operation may be more
         //efficient.
         if(!(e instanceof ExtendedEndpoint)) {
@@ -1202,13 +1344,29 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
         
         ExtendedEndpoint ee = (ExtendedEndpoint)e;
 
-        removePermanent(ee);
-        if(success) {
-            ee.recordConnectionSuccess();
-        } else {
-            ee.recordConnectionFailure();
+        if(store != null) {
+            store.doneWithConnect(ee, success);
+            return;
+        }
+
+        synchronized(this) {
+            removePermanent(ee);
+            if(success) {
+                ee.recordConnectionSuccess();
+            } else {
+                ee.recordConnectionFailure();
+            }
+            addPermanent(ee);
         }
-        addPermanent(ee);
+    }
+
+    /**
+     * Returns how long it took to connect to the first host after connect()
+     * was last called, or -1 if that has not happened yet. Package access
+     * for testing.
+     */
+    long getTimeToFirstConnection() {
+        return connectTime == 0 ? timeToFirstConnection : -1;
     }
 
     /**
@@ -1218,6 +1376,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * LOCKING: this
      */
     protected ExtendedEndpoint getAnEndpointInternal() {
+        if(store != null)
+            return store.poll(connectionServices.isSupernode());
         if(connectionServices.isSupernode()) {
             // Ultrapeer - prefer hosts with free ultrapeer slots
             if(!FREE_ULTRAPEER_SLOTS_SET.isEmpty()) {
@@ -1302,6 +1462,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
     public synchronized int getNumHosts() {
         int hosts = ENDPOINT_QUEUE.size()+FREE_LEAF_SLOTS_SET.size()+
             FREE_ULTRAPEER_SLOTS_SET.size()+restoredHosts.size();
+        if(store != null)
+            hosts += store.size();
         if(LOG.isTraceEnabled())
             LOG.trace(hosts + " hosts");
         return hosts;
@@ -1312,8 +1474,11 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * Package access for testing.
      */
     protected synchronized int getNumUltrapeerHosts() {
-        return ENDPOINT_QUEUE.size(GOOD_PRIORITY)+FREE_LEAF_SLOTS_SET.size()+
+        int hosts = ENDPOINT_QUEUE.size(GOOD_PRIORITY)+FREE_LEAF_SLOTS_SET.size()+
             FREE_ULTRAPEER_SLOTS_SET.size();
+        if(store != null)
+            hosts += store.size(EndpointStore.ULTRAPEER);
+        return hosts;
     }
 
     /**
@@ -1331,6 +1496,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      */
     public synchronized Collection<IpPort>
     getUltrapeersWithFreeUltrapeerSlots(String locale, int num) {
+        if(store != null)
+            return store.getHosts(EndpointStore.FREE_ULTRAPEER_SLOTS, locale, num);
         return getPreferencedCollection(FREE_ULTRAPEER_SLOTS_SET, locale, num);
     }
     
@@ -1341,6 +1508,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      */
     public synchronized Collection<IpPort>
     getUltrapeersWithFreeLeafSlots(String locale, int num) {
+        if(store != null)
+            return store.getHosts(EndpointStore.FREE_LEAF_SLOTS, locale, num);
         return getPreferencedCollection(FREE_LEAF_SLOTS_SET, locale, num);
     }
 
@@ -1422,6 +1591,8 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
         EXPIRED_HOSTS.clear();
         permanentHosts.clear();
         permanentHostsSet.clear();
+        if(store != null)
+            store.clear();
         bootstrapper.reset();
         uniqueHostPinger.resetData();
     }
@@ -1454,12 +1625,9 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * These are hosts that are on the network but that have rejected a 
      * connection attempt.  They will periodically be re-activated as needed.
      */
-    public synchronized void putHostOnProbation(Endpoint host) {
+    public void putHostOnProbation(Endpoint host) {
         LOG.trace("Putting a host on probation");
-        PROBATION_HOSTS.add(host);
-        if(PROBATION_HOSTS.size() > PROBATION_HOSTS_SIZE) {
-            PROBATION_HOSTS.remove(PROBATION_HOSTS.iterator().next());
-        }
+        addBounded(PROBATION_HOSTS, host, PROBATION_HOSTS_SIZE);
     }
     
     /**
@@ -1467,11 +1635,24 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
      * that we have been unable to create a TCP connection to, let alone a 
      * Gnutella connection.
      */
-    public synchronized void expireHost(Endpoint host) {
+    public void expireHost(Endpoint host) {
         LOG.trace("Expiring a host");
-        EXPIRED_HOSTS.add(host);
-        if(EXPIRED_HOSTS.size() > EXPIRED_HOSTS_SIZE) {
-            EXPIRED_HOSTS.remove(EXPIRED_HOSTS.iterator().next());
+        addBounded(EXPIRED_HOSTS, host, EXPIRED_HOSTS_SIZE);
+        if(store != null)
+            store.remove(host);
+    }
+
+    /**
+     * Adds a host to one of the concurrent sets of failed hosts, removing
+     * other hosts while the set is larger than the given size.
+     */
+    private static void addBounded(Set<Endpoint> hosts, Endpoint host, int size) {
+        if(hosts.add(host) && hosts.size() > size) {
+            Iterator<Endpoint> i = hosts.iterator();
+            while(hosts.size() > size && i.hasNext()) {
+                if(!i.next().equals(host))
+                    i.remove();
+            }
         }
     }
     
@@ -1549,6 +1730,19 @@ public class HostCatcher implements Service, Bootstrapper.Listener {
             }
         };
         
+        /** Inspectable with the stats of the endpoint store */
+        @InspectionPoint("endpoint store stats")
+        public final Inspectable storeStats = new Inspectable() {
+            @Override
+            public Object inspect() {
+                Map<String, Object> ret = store == null ?
+                        new HashMap<String, Object>() : store.inspect();
+                ret.put("ver",1);
+                ret.put("on", store != null);
+                return ret;
+            }
+        };
+        
         /** Inspectable with some tls stats */
         @InspectionPoint("tls stats of known hosts")
         public final Inspectable tlsStats = new Inspectable() {
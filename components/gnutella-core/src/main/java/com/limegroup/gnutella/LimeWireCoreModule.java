@@ -483,6 +483,11 @@ public class LimeWireCoreModule extends AbstractModule {
         return nd.getBufferCache();
     }
     
+    /**
+     * The executors named NIO run things on the primary event loop.  Work
+     * that touches a channel should use the executor of the channel's loop,
+     * see {@link NIODispatcher#getScheduledExecutorService(java.nio.channels.SelectableChannel)}.
+     */
     private static final String NIO = "nioExecutor";
     @Provides @LazySingleton @Named(NIO) ScheduledExecutorService nioSES(NIODispatcher nd) {
         return nd.getScheduledExecutorService(); 
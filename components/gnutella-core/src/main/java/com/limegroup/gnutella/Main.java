@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.List;
 import java.util.Set;
 import java.util.Vector;
 
@@ -224,6 +225,13 @@ public class Main {
                 System.out.println("   "+rfd.getFileName());
             }
         }
+
+        @Override
+        public void handleQueryResults(QueryReply queryReply,
+                List<? extends RemoteFileDesc> rfds, List<? extends Set<? extends IpPort>> locs) {
+            for(int i = 0; i < rfds.size(); i++)
+                handleQueryResult(rfds.get(i), queryReply, locs.get(i));
+        }
         
         @Override
         public boolean promptTorrentFilePriorities(Torrent torrent) {
@@ -1,8 +1,19 @@
 package com.limegroup.gnutella;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.core.settings.MessageSettings;
+import org.limewire.inspection.Inspectable;
 import org.limewire.inspection.InspectionPoint;
 import org.limewire.listener.EventBroadcaster;
 
@@ -15,51 +26,107 @@ import com.limegroup.gnutella.util.LimeWireUtils;
 
 /**
  * Dispatches messages to the MessageRouter.
+ * <p>
+ * Messages are handled on one or more lanes, each a single thread.  TCP
+ * messages are assigned to a lane by the connection they came from, UDP and
+ * multicast messages by the address they came from, so the messages of each
+ * peer are handled in order while unrelated traffic is handled in parallel.
+ * Arbitrary runnables are processed on the first lane, which is the
+ * message thread.
  */
 @Singleton
 public class MessageDispatcher {
     
-    private final Executor DISPATCH;
+    private final Lane[] lanes;
 
     private final MessageRouter messageRouter;
     
     @InspectionPoint("routed messages")
     private final Message.MessageCounter messageCounter = new Message.MessageCounter(LimeWireUtils.isBetaRelease() ? 300 : 30);
     
+    /** The time spent handling each type of message. */
+    private final ConcurrentMap<Class<?>, ServiceTime> serviceTimes =
+        new ConcurrentHashMap<Class<?>, ServiceTime>();
+    
+    /**
+     * The depth of the queue of each lane, the time messages waited in it,
+     * and the time spent handling each type of message.
+     */
+    @InspectionPoint("message dispatch")
+    @SuppressWarnings("unused")
+    private final Inspectable dispatchStats = new Inspectable() {
+        @Override
+        public Object inspect() {
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("ver", 1);
+            ret.put("lanes", lanes.length);
+            List<Integer> depths = new ArrayList<Integer>(lanes.length);
+            List<Integer> maxDepths = new ArrayList<Integer>(lanes.length);
+            List<Long> dispatched = new ArrayList<Long>(lanes.length);
+            List<Long> waits = new ArrayList<Long>(lanes.length);
+            for (Lane lane : lanes) {
+                depths.add(lane.depth.get());
+                maxDepths.add(lane.maxDepth);
+                dispatched.add(lane.dispatched);
+                waits.add(lane.waitNanos);
+            }
+            ret.put("depth", depths);
+            ret.put("maxdepth", maxDepths);
+            ret.put("n", dispatched);
+            ret.put("waitns", waits);
+            Map<String, Object> service = new HashMap<String, Object>();
+            for (Map.Entry<Class<?>, ServiceTime> entry : serviceTimes.entrySet())
+                service.put(entry.getKey().getSimpleName(), entry.getValue().inspect());
+            ret.put("service", service);
+            return ret;
+        }
+    };
+    
     private final EventBroadcaster<MessageSentEvent> messageSentEventBroadcaster;
     
     @Inject
     public MessageDispatcher(MessageRouter messageRouter, @Named("messageExecutor") Executor dispatch,
             EventBroadcaster<MessageSentEvent> messageSentEventBroadcaster) {
         this.messageRouter = messageRouter;
-        this.DISPATCH = dispatch;
         this.messageSentEventBroadcaster = messageSentEventBroadcaster;
+        lanes = new Lane[MessageSettings.MESSAGE_DISPATCH_LANES.getValue()];
+        lanes[0] = new Lane(dispatch);
+        for (int i = 1; i < lanes.length; i++)
+            lanes[i] = new Lane(ExecutorsHelper.newProcessingQueue("Message-Executor-" + i));
     }
     
     /** Dispatches a runnable, to allow arbitrary runnables to be processed on the message thread. */
     public void dispatch(Runnable r) {
-        DISPATCH.execute(r);
+        lanes[0].executor.execute(r);
+    }
+    
+    /**
+     * Dispatches a runnable to be processed after the messages that were
+     * dispatched from <code>conn</code> so far.
+     */
+    public void dispatch(Runnable r, RoutedConnection conn) {
+        laneFor(System.identityHashCode(conn)).executor.execute(r);
     }
     
     /**
      * Dispatches a UDP message.
      */
     public void dispatchUDP(Message m, InetSocketAddress addr) {
-        DISPATCH.execute(new UDPDispatch(messageRouter, m, addr, messageCounter));
+        laneFor(addr.hashCode()).execute(new UDPDispatch(messageRouter, m, addr, messageCounter));
     }
     
     /**
      * Dispatches a Multicast message.
      */
     public void dispatchMulticast(Message m, InetSocketAddress addr) {
-        DISPATCH.execute(new MulticastDispatch(messageRouter, m, addr, messageCounter));
+        laneFor(addr.hashCode()).execute(new MulticastDispatch(messageRouter, m, addr, messageCounter));
     }
     
     /**
      * Dispatches a TCP message.
      */
     public void dispatchTCP(Message m, RoutedConnection conn) {
-        DISPATCH.execute(new TCPDispatch(messageRouter, m, conn, messageCounter));
+        laneFor(System.identityHashCode(conn)).execute(new TCPDispatch(messageRouter, m, conn, messageCounter));
     }
     
     /**
@@ -69,11 +136,100 @@ public class MessageDispatcher {
         messageSentEventBroadcaster.broadcast(new MessageSentEvent(routedConnection, message));        
     }
     
-    private static abstract class Dispatch implements Runnable {
+    /**
+     * Returns the lane for a peer with the given hash code.
+     */
+    private Lane laneFor(int hash) {
+        if (lanes.length == 1)
+            return lanes[0];
+        // Spread the bits, since the low bits of hash codes are often similar
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+    }
+    
+    /**
+     * Returns the number of lanes.
+     */
+    int getLaneCount() {
+        return lanes.length;
+    }
+    
+    /**
+     * Returns the number of messages that are waiting in all lanes.
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes)
+            depth += lane.depth.get();
+        return depth;
+    }
+    
+    /**
+     * A single thread that handles messages in order, and its stats.
+     */
+    private static class Lane {
+        final Executor executor;
+        
+        /** The number of messages waiting to be handled. */
+        final AtomicInteger depth = new AtomicInteger();
+        
+        /** The largest depth so far; racing updates may lose a maximum. */
+        volatile int maxDepth;
+        
+        // Only written by the thread of the lane
+        volatile long dispatched, waitNanos;
+        
+        Lane(Executor executor) {
+            this.executor = executor;
+        }
+        
+        void execute(Dispatch dispatch) {
+            dispatch.lane = this;
+            dispatch.queued = System.nanoTime();
+            int d = depth.incrementAndGet();
+            if (d > maxDepth)
+                maxDepth = d;
+            executor.execute(dispatch);
+        }
+    }
+    
+    /**
+     * The time spent handling one type of message.
+     */
+    private static class ServiceTime {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        
+        Map<String, Object> inspect() {
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("n", count.get());
+            ret.put("ns", nanos.get());
+            return ret;
+        }
+    }
+    
+    private ServiceTime getServiceTime(Class<?> type) {
+        ServiceTime time = serviceTimes.get(type);
+        if (time == null) {
+            time = new ServiceTime();
+            ServiceTime existing = serviceTimes.putIfAbsent(type, time);
+            if (existing != null)
+                time = existing;
+        }
+        return time;
+    }
+    
+    private abstract class Dispatch implements Runnable {
         protected final MessageRouter messageRouter;
         protected final Message m;
         protected final Message.MessageCounter counter;
         
+        /** The lane and the time this was queued at. */
+        Lane lane;
+        long queued;
+        
         Dispatch(MessageRouter messageRouter, Message m, 
                 Message.MessageCounter counter) {
             this.messageRouter = messageRouter;
@@ -82,14 +238,21 @@ public class MessageDispatcher {
         }
         
         public void run() {
+            long start = System.nanoTime();
+            lane.depth.decrementAndGet();
+            lane.dispatched++;
+            lane.waitNanos += start - queued;
             counter.countMessage(m);
             dispatch();
+            ServiceTime time = getServiceTime(m.getClass());
+            time.count.incrementAndGet();
+            time.nanos.addAndGet(System.nanoTime() - start);
         }
         
         protected abstract void dispatch();
     }
     
-    private static class UDPDispatch extends Dispatch {
+    private class UDPDispatch extends Dispatch {
         
         private final InetSocketAddress addr;
 
@@ -107,7 +270,7 @@ public class MessageDispatcher {
         }
     }
     
-    private static class MulticastDispatch extends Dispatch {
+    private class MulticastDispatch extends Dispatch {
         
         private final InetSocketAddress addr;
         
@@ -125,7 +288,7 @@ public class MessageDispatcher {
         }
     }
     
-    private static class TCPDispatch extends Dispatch {
+    private class TCPDispatch extends Dispatch {
         
         private final RoutedConnection conn;
         
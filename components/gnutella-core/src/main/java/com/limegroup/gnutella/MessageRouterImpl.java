@@ -114,6 +114,7 @@ import com.limegroup.gnutella.messages.vendor.UpdateResponse;
 import com.limegroup.gnutella.messages.vendor.VendorMessage;
 import com.limegroup.gnutella.routing.PatchTableMessage;
 import com.limegroup.gnutella.routing.QRPUpdater;
+import com.limegroup.gnutella.routing.QueryKeywordHashes;
 import com.limegroup.gnutella.routing.QueryRouteTable;
 import com.limegroup.gnutella.routing.ResetTableMessage;
 import com.limegroup.gnutella.routing.RouteTableMessage;
@@ -160,31 +161,31 @@ public abstract class MessageRouterImpl implements MessageRouter {
      * typically around 2500 entries, but never more than 100,000 entries.
      */
     @InspectionPoint("ping routing table dump")
-    private RouteTable _pingRouteTable = 
-        new RouteTable(2*60, MAX_ROUTE_TABLE_SIZE);
+    private ConcurrentRouteTable _pingRouteTable = 
+        new ConcurrentRouteTable(2*60, MAX_ROUTE_TABLE_SIZE);
     /**
      * Maps QueryRequest GUIDs to QueryReplyHandlers.  Stores 5-10 minutes,
      * typically around 13000 entries, but never more than 100,000 entries.
      */
     @InspectionPoint("query routing table dump")
-    private RouteTable _queryRouteTable = 
-        new RouteTable(5*60, MAX_ROUTE_TABLE_SIZE);
+    private ConcurrentRouteTable _queryRouteTable = 
+        new ConcurrentRouteTable(5*60, MAX_ROUTE_TABLE_SIZE);
     /**
      * Maps QueryReply client GUIDs to PushRequestHandlers.  Stores 7-14
      * minutes, typically around 3500 entries, but never more than 100,000
      * entries.  
      */
     @InspectionPoint("push routing table dump")
-    private RouteTable _pushRouteTable = 
-        new RouteTable(7*60, MAX_ROUTE_TABLE_SIZE);
+    private ConcurrentRouteTable _pushRouteTable = 
+        new ConcurrentRouteTable(7*60, MAX_ROUTE_TABLE_SIZE);
     
     /**
      * Maps HeadPong guids to the originating pingers.  Short-lived since
      * we expect replies from our leaves quickly.
      */
     @InspectionPoint("headpong routing table dump")
-    private RouteTable _headPongRouteTable = 
-    	new RouteTable(10, MAX_ROUTE_TABLE_SIZE);
+    private ConcurrentRouteTable _headPongRouteTable = 
+    	new ConcurrentRouteTable(10, MAX_ROUTE_TABLE_SIZE);
 
     /**
      * The amount of time after which to expire an OOBSession.
@@ -299,6 +300,31 @@ public abstract class MessageRouterImpl implements MessageRouter {
     @InspectablePrimitive("leaf connection qrp hits")
     private final InspectionHistogram<Integer> leafQRPHits = new InspectionHistogram<Integer>();
     
+    @InspectionPoint("leaf qrt memory")
+    @SuppressWarnings("unused")
+    private final Inspectable leafQRTMemory = new Inspectable() {
+        public Object inspect() {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("ver", 1);
+            int tables = 0;
+            long total = 0;
+            int max = 0;
+            for (RoutedConnection mc : connectionManager.getInitializedClientConnections()) {
+                QueryRouteTable qrt = mc.getRoutedConnectionStatistics().getQueryRouteTableReceived();
+                if (qrt == null)
+                    continue;
+                int memory = qrt.getMemoryUsed();
+                tables++;
+                total += memory;
+                max = Math.max(max, memory);
+            }
+            data.put("tables", tables);
+            data.put("total", total);
+            data.put("max", max);
+            return data;
+        }
+    };
+    
     protected final NetworkManager networkManager;
     protected final QueryRequestFactory queryRequestFactory;
     protected final QueryHandlerFactory queryHandlerFactory;
@@ -1578,9 +1604,11 @@ public abstract class MessageRouterImpl implements MessageRouter {
         //table has been received
         List<RoutedConnection> list = connectionManager.getInitializedClientConnections();
         List<RoutedConnection> hitConnections = new ArrayList<RoutedConnection>();
+        // hash the query once for all leaves
+        QueryKeywordHashes hashes = new QueryKeywordHashes(query);
         for(RoutedConnection mc : list) {
             if(mc == handler) continue;
-            if(mc.shouldForwardQuery(query)) {
+            if(mc.shouldForwardQuery(hashes)) {
                 hitConnections.add(mc);
             }
         }
@@ -1941,6 +1969,10 @@ public abstract class MessageRouterImpl implements MessageRouter {
 
             ReplyHandler rh = rrp.getReplyHandler();
             
+            // a dynamic query for us or a leaf may have enough results now
+            if (rh == forMeReplyHandler || rh.isSupernodeClientConnection())
+                queryDispatcher.updateResultsForQuery(new GUID(queryReply.getGUID()));
+            
             // remember more stats
             _queryRouteTable.countHopsTTLNet(queryReply);
             // if this reply is for us, remember even more stats
@@ -2615,11 +2647,11 @@ public abstract class MessageRouterImpl implements MessageRouter {
     /**
      * Should only be used for testing.
      */
-    RouteTable getPushRouteTable() {
+    ConcurrentRouteTable getPushRouteTable() {
         return _pushRouteTable;
     }
     
-    RouteTable getHeadPongRouteTable() {
+    ConcurrentRouteTable getHeadPongRouteTable() {
         return _headPongRouteTable;
     }
     
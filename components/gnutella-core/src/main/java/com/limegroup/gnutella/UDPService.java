@@ -9,10 +9,14 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +35,7 @@ import org.limewire.io.NetworkUtils;
 import org.limewire.listener.AsynchronousEventBroadcaster;
 import org.limewire.listener.EventListener;
 import org.limewire.listener.ListenerSupport;
+import org.limewire.nio.ByteBufferCache;
 import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.observer.ReadWriteObserver;
 import org.limewire.rudp.ConnectionState;
@@ -81,19 +86,34 @@ public class UDPService implements ReadWriteObserver {
 	private DatagramChannel _channel;
 	
 	/**
-	 * The list of messages to be sent, as SendBundles.
+	 * The messages to be sent, as SendBundles.  Any thread may add to the
+	 * queue, only handleWrite takes from it.
 	 */
-	private final List<SendBundle> OUTGOING_MSGS;
+	private final Queue<SendBundle> OUTGOING_MSGS = new ConcurrentLinkedQueue<SendBundle>();
 	
 	/**
-	 * The buffer that's re-used for reading incoming messages.
+	 * Whether write interest is on, or about to be turned on, because
+	 * there are messages to send.
 	 */
-	private final ByteBuffer BUFFER;
+	private final AtomicBoolean writeInterest = new AtomicBoolean();
+	
+	/**
+	 * The buffers that are re-used for reading incoming messages, and the
+	 * addresses the messages in them came from.
+	 */
+	private final ByteBuffer[] BUFFERS;
+	private final InetSocketAddress[] BUFFER_ADDRS;
     
 	/**
 	 * The maximum size of a UDP message we'll accept.
 	 */
 	private final int BUFFER_SIZE = 1024 * 2;
+	
+	/**
+	 * The number of datagrams that are read before they are handled, if
+	 * batched I/O is on.
+	 */
+	private static final int READ_BATCH = 32;
     
     /** True if the UDPService has ever received a solicited incoming UDP
      *  packet.
@@ -189,6 +209,21 @@ public class UDPService implements ReadWriteObserver {
     @InspectionPoint("udp sent messages")
     private final Message.MessageCounter sentMessageCounter = new Message.MessageCounter(50);
     
+    private final IOStats ioStats = new IOStats();
+    
+    /**
+     * Counts of datagrams read and written, datagrams that were dropped,
+     * and the time outgoing messages waited to be sent.
+     */
+    @InspectionPoint("udp io stats")
+    @SuppressWarnings("unused")
+    private final Inspectable ioStatsInspectable = new Inspectable() {
+        @Override
+        public Object inspect() {
+            return ioStats.inspect();
+        }
+    };
+    
     @InspectionPoint("fwt capable")
     @SuppressWarnings("unused")
     private final Inspectable fwtCapable = new Inspectable() {
@@ -226,9 +261,10 @@ public class UDPService implements ReadWriteObserver {
         this.networkInstanceUtils = networkInstanceUtils;
         this.fwtStatusBroadcaster = fwtStatusBroadcaster;
 
-        OUTGOING_MSGS = new LinkedList<SendBundle>();
-	    byte[] backing = new byte[BUFFER_SIZE];
-	    BUFFER = ByteBuffer.wrap(backing);
+        BUFFERS = new ByteBuffer[READ_BATCH];
+        for(int i = 0; i < READ_BATCH; i++)
+            BUFFERS[i] = ByteBuffer.allocate(BUFFER_SIZE);
+        BUFFER_ADDRS = new InetSocketAddress[READ_BATCH];
         // TODO convert this to a Service and move this
         // TODO initialize()
         fwtStatusBroadcaster.broadcast(new FirewallTransferStatusEvent(
@@ -323,6 +359,8 @@ public class UDPService implements ReadWriteObserver {
 	                throw new IllegalArgumentException("No channel!");
                 
 	            wasStarted = _started;
+	            // the next message sends turn on write interest for the new channel
+	            writeInterest.set(false);
 
 	            // set the port in the FWT records
 	            _lastReportedPort=_channel.socket().getLocalPort();
@@ -356,57 +394,15 @@ public class UDPService implements ReadWriteObserver {
 	 */
 	public void handleRead() throws IOException {
         try {
+            int batch = ConnectionSettings.UDP_BATCHED_IO.getValue() ? READ_BATCH : 1;
             while (true) {
-                BUFFER.clear();
-
-                SocketAddress from;
-                try {
-                    from = _channel.receive(BUFFER);
-                } catch (IOException iox) {
-                    break;
-                } catch (Error error) {
-                    // Stupid implementations giving bogus errors. Grrr!.
-                    break;
-                }
-
-                // no packet.
-                if (from == null)
-                    break;
-
-                if (!(from instanceof InetSocketAddress)) {
-                    ErrorService.error(new RuntimeException("non-inet SocketAddress: " + from));
-                    continue;
-                }
-
-                InetSocketAddress addr = (InetSocketAddress) from;
-
-                if (!NetworkUtils.isValidAddress(addr.getAddress()))
-                    continue;
-                if (!NetworkUtils.isValidPort(addr.getPort()))
-                    continue;
-
-                // don't go further if filtered.
-                if(!ipFilter.get().allow(addr.getAddress().getAddress())) {
-                    LOG.debug("Received packet from hostile host");
-                    return;
-                }
+                int read = receive(batch);
+                for (int i = 0; i < read; i++)
+                    handleDatagram(BUFFERS[i], BUFFER_ADDRS[i]);
                 
-                byte[] data = BUFFER.array();
-                int length = BUFFER.position();
-                try {
-                    // we do things the old way temporarily
-                    InputStream in = new ByteArrayInputStream(data, 0, length);
-                    Message message = messageFactory.read(in, Network.UDP, IN_HEADER_BUF, addr);
-                    if(message == null) {
-                        LOG.debug("Received a null message");
-                        continue;
-                    }
-                    processMessage(message, addr);
-                } catch(IOException e) {
-                    LOG.debug("Could not parse message", e);
-                } catch(BadPacketException e) {
-                    LOG.debug("Could not parse message", e);
-                }
+                // no packets left.
+                if (read < batch)
+                    break;
             } 
         } catch(Throwable t) {
             // Do not let the exceptions propogate out, as that could
@@ -415,6 +411,81 @@ public class UDPService implements ReadWriteObserver {
         }
 	}
 	
+	/**
+	 * Reads up to <code>batch</code> datagrams into the read buffers, so
+	 * that the socket's buffer is emptied before the datagrams are parsed.
+	 * 
+	 * @return the number of datagrams that were read
+	 */
+	private int receive(int batch) {
+	    int read = 0;
+	    while (read < batch) {
+	        ByteBuffer buffer = BUFFERS[read];
+	        buffer.clear();
+
+	        SocketAddress from;
+	        try {
+	            from = _channel.receive(buffer);
+	        } catch (IOException iox) {
+	            break;
+	        } catch (Error error) {
+	            // Stupid implementations giving bogus errors. Grrr!.
+	            break;
+	        }
+
+	        // no packet.
+	        if (from == null)
+	            break;
+
+	        ioStats.received(buffer.position());
+	        if (!(from instanceof InetSocketAddress)) {
+	            ErrorService.error(new RuntimeException("non-inet SocketAddress: " + from));
+	            ioStats.invalid.incrementAndGet();
+	            continue;
+	        }
+	        BUFFER_ADDRS[read++] = (InetSocketAddress) from;
+	    }
+	    return read;
+	}
+	
+	/**
+	 * Parses and processes a datagram that was read into the buffer.
+	 */
+	private void handleDatagram(ByteBuffer buffer, InetSocketAddress addr) {
+        if (!NetworkUtils.isValidAddress(addr.getAddress())
+                || !NetworkUtils.isValidPort(addr.getPort())) {
+            ioStats.invalid.incrementAndGet();
+            return;
+        }
+
+        // don't go further if filtered.
+        if(!ipFilter.get().allow(addr.getAddress().getAddress())) {
+            LOG.debug("Received packet from hostile host");
+            ioStats.filtered.incrementAndGet();
+            return;
+        }
+        
+        byte[] data = buffer.array();
+        int length = buffer.position();
+        try {
+            // we do things the old way temporarily
+            InputStream in = new ByteArrayInputStream(data, 0, length);
+            Message message = messageFactory.read(in, Network.UDP, IN_HEADER_BUF, addr);
+            if(message == null) {
+                LOG.debug("Received a null message");
+                ioStats.unparsed.incrementAndGet();
+                return;
+            }
+            processMessage(message, addr);
+        } catch(IOException e) {
+            LOG.debug("Could not parse message", e);
+            ioStats.unparsed.incrementAndGet();
+        } catch(BadPacketException e) {
+            LOG.debug("Could not parse message", e);
+            ioStats.unparsed.incrementAndGet();
+        }
+	}
+	
 	/**
 	 * Notification that an IOException occurred while reading/writing.
 	 */
@@ -431,6 +502,7 @@ public class UDPService implements ReadWriteObserver {
 	void processMessage(Message message, InetSocketAddress addr) {
 	    if(!ipFilter.get().allow(message)) {
 	        LOG.debug("Received packet from hostile host");
+	        ioStats.filtered.incrementAndGet();
 	        return;
 	    }
 	    // FIXME: why do we mutate the GUIDs of ping replies?
@@ -512,6 +584,16 @@ public class UDPService implements ReadWriteObserver {
             guid[i] =(byte)(guid[i] ^ qk[i]);
     }
     
+    /**
+     * Mutates the GUID at the start of a buffer, which need not have a
+     * backing array.
+     */
+    private static void mutateGUID(ByteBuffer message, InetAddress ip, int port) {
+        byte[] qk = PING_GENERATOR.getMACBytes(new AddressSecurityToken.AddressTokenData(ip,port));
+        for (int i = 0; i < qk.length; i++)
+            message.put(i, (byte)(message.get(i) ^ qk[i]));
+    }
+    
 	/**
 	 * Determines whether or not the specified message is valid for setting
 	 * LimeWire as accepting UDP messages (solicited or unsolicited).
@@ -567,16 +649,11 @@ public class UDPService implements ReadWriteObserver {
             throw new IllegalArgumentException("Invalid addr: " + addr);
         if(_channel == null || _channel.socket().isClosed()) {
             LOG.debug("Socket not ready for writing");
+            ioStats.unsent.incrementAndGet();
             return;
         }
         int length = msg.getTotalLength();
-        ByteBuffer buffer = NIODispatcher.instance().getBufferCache().getHeap(length);
-        if(buffer.remaining() != length)
-            throw new IllegalStateException("retrieved a buffer with wrong remaining! " +
-                                            "wanted: " + length +
-                                            ", had: " + buffer.remaining() +
-                                            ", position: " + buffer.position() +
-                                            ", limit: " + buffer.limit());
+        ByteBuffer buffer = getSendBuffer(length);
 
         ByteBufferOutputStream baos = new ByteBufferOutputStream(buffer);
         try {
@@ -585,60 +662,87 @@ public class UDPService implements ReadWriteObserver {
             // this should not happen -- we should always be able to write
             // to this output stream in memory
             ErrorService.error(e);
+            NIODispatcher.instance().getBufferCache().release(buffer);
             // can't send the hit, so return
             return;
         }
        
         buffer.flip();
         if (msg instanceof PingRequest)
-            mutateGUID(buffer.array(), addr.getAddress(), addr.getPort());
+            mutateGUID(buffer, addr.getAddress(), addr.getPort());
         
         sentMessageCounter.countMessage(msg);
         send(buffer, addr, false);
     }
     
+    /**
+     * Returns a pooled heap buffer with exactly <code>length</code> bytes
+     * remaining.
+     */
+    private ByteBuffer getSendBuffer(int length) {
+        ByteBufferCache cache = NIODispatcher.instance().getBufferCache();
+        ByteBuffer buffer = cache.getHeap(length);
+        if(buffer.remaining() != length)
+            throw new IllegalStateException("retrieved a buffer with wrong remaining! " +
+                                            "wanted: " + length +
+                                            ", had: " + buffer.remaining() +
+                                            ", position: " + buffer.position() +
+                                            ", limit: " + buffer.limit());
+        return buffer;
+    }
+    
     public void send(ByteBuffer buffer, InetSocketAddress addr, boolean custom) { 
-        synchronized(OUTGOING_MSGS) {
-            OUTGOING_MSGS.add(new SendBundle(buffer, addr, custom));
-            if(_channel != null)
-                NIODispatcher.instance().interestWrite(_channel, true);
+        OUTGOING_MSGS.offer(new SendBundle(buffer, addr, custom));
+        // only the first message since the queue was emptied turns on interest
+        if(writeInterest.compareAndSet(false, true)) {
+            DatagramChannel channel = _channel;
+            if(channel != null)
+                NIODispatcher.instance().interestWrite(channel, true);
+            else
+                writeInterest.set(false);
         }
 	}
 	
 	/**
-	 * Notification that a write can happen.
+	 * Notification that a write can happen.  Sends as many queued messages
+	 * as the socket takes.
 	 */
 	public boolean handleWrite() throws IOException {
         try {
-    	    synchronized(OUTGOING_MSGS) {
-    	        while(!OUTGOING_MSGS.isEmpty()) {
-                    boolean releaseBuffer = true;
-                    SendBundle bundle = OUTGOING_MSGS.remove(0);
-    	            try {
-        	            if(_channel.send(bundle.buffer, bundle.addr) == 0) {
-        	                // we removed the bundle from the list but couldn't send it,
-        	                // so we have to put it back in.
-        	                OUTGOING_MSGS.add(0, bundle);
-                            releaseBuffer = false;
-        	                return true; // no room left to send.
-                        }
-                    } catch(IOException ignored) {
-                        LOG.warn("Ignoring exception on socket", ignored);
-                    } finally {
-                        if(bundle.custom) {
+            SendBundle bundle;
+            while((bundle = OUTGOING_MSGS.peek()) != null) {
+                boolean full = false;
+                int length = bundle.buffer.remaining();
+                try {
+                    full = _channel.send(bundle.buffer, bundle.addr) == 0;
+                    if(!full)
+                        ioStats.sent(length, System.nanoTime() - bundle.queued);
+                } catch(IOException ignored) {
+                    LOG.warn("Ignoring exception on socket", ignored);
+                    ioStats.failed.incrementAndGet();
+                } finally {
+                    // a bundle that couldn't be sent stays at the head of the queue
+                    if(!full) {
+                        OUTGOING_MSGS.poll();
+                        if(bundle.custom)
                             bundle.buffer.rewind();
-                            releaseBuffer = false;
-                        }
-                        
-                        if (releaseBuffer)
+                        else
                             NIODispatcher.instance().getBufferCache().release(bundle.buffer);
                     }
-    	        }
-    	        
-    	        // if there's no data left to send, we don't wanna be notified of write events.
-    	        NIODispatcher.instance().interestWrite(_channel, false);
-    	        return false;
-    	    }
+                }
+                if(full)
+                    return true; // no room left to send.
+            }
+            
+            // if there's no data left to send, we don't wanna be notified of write events.
+            NIODispatcher.instance().interestWrite(_channel, false);
+            writeInterest.set(false);
+            // a message that was queued before interest was cleared didn't turn it on
+            if(!OUTGOING_MSGS.isEmpty() && writeInterest.compareAndSet(false, true)) {
+                NIODispatcher.instance().interestWrite(_channel, true);
+                return true;
+            }
+            return false;
         } catch(Throwable t) {
             // Don't let it propogate, since that could close UDPService!
             ErrorService.error(t);
@@ -651,6 +755,8 @@ public class UDPService implements ReadWriteObserver {
 	    private final ByteBuffer buffer;
 	    private final SocketAddress addr;
         private final boolean custom;
+        /** The time the bundle was queued, in nanoseconds. */
+        private final long queued = System.nanoTime();
 	    
 	    SendBundle(ByteBuffer b, InetSocketAddress addr, boolean custom) {
 	        buffer = b;
@@ -658,6 +764,77 @@ public class UDPService implements ReadWriteObserver {
             this.custom = custom;
 	    }
 	}
+	
+	/**
+	 * Counters of the datagrams that were read and written.
+	 */
+	private static class IOStats {
+	    final AtomicLong received = new AtomicLong();
+	    final AtomicLong receivedBytes = new AtomicLong();
+	    /** Datagrams from invalid addresses. */
+	    final AtomicLong invalid = new AtomicLong();
+	    /** Datagrams from hostile hosts, or with hostile messages. */
+	    final AtomicLong filtered = new AtomicLong();
+	    /** Datagrams that could not be parsed. */
+	    final AtomicLong unparsed = new AtomicLong();
+	    final AtomicLong sent = new AtomicLong();
+	    final AtomicLong sentBytes = new AtomicLong();
+	    /** Messages that were not queued because the socket was closed. */
+	    final AtomicLong unsent = new AtomicLong();
+	    /** Messages the socket failed to send. */
+	    final AtomicLong failed = new AtomicLong();
+	    /** The total and maximum time sent messages were queued. */
+	    final AtomicLong queueNanos = new AtomicLong();
+	    volatile long maxQueueNanos;
+	    
+	    /** The time of the last inspection and the counts at that time. */
+	    private long lastTime = System.currentTimeMillis();
+	    private long lastReceived, lastSent;
+	    
+	    void received(int bytes) {
+	        received.incrementAndGet();
+	        receivedBytes.addAndGet(bytes);
+	    }
+	    
+	    /** Called by the NIO thread only. */
+	    void sent(int bytes, long nanos) {
+	        sent.incrementAndGet();
+	        sentBytes.addAndGet(bytes);
+	        queueNanos.addAndGet(nanos);
+	        if(nanos > maxQueueNanos)
+	            maxQueueNanos = nanos;
+	    }
+	    
+	    /**
+	     * Returns the counts, and the datagrams read and written per second
+	     * since the last inspection.
+	     */
+	    synchronized Map<String, Object> inspect() {
+	        long now = System.currentTimeMillis();
+	        long elapsed = Math.max(1, now - lastTime);
+	        long received = this.received.get();
+	        long sent = this.sent.get();
+	        Map<String, Object> ret = new HashMap<String, Object>();
+	        ret.put("ver", 1);
+	        ret.put("recv", received);
+	        ret.put("recvb", receivedBytes.get());
+	        ret.put("recvps", (received - lastReceived) * 1000 / elapsed);
+	        ret.put("invalid", invalid.get());
+	        ret.put("filtered", filtered.get());
+	        ret.put("unparsed", unparsed.get());
+	        ret.put("sent", sent);
+	        ret.put("sentb", sentBytes.get());
+	        ret.put("sentps", (sent - lastSent) * 1000 / elapsed);
+	        ret.put("unsent", unsent.get());
+	        ret.put("failed", failed.get());
+	        ret.put("queuens", queueNanos.get());
+	        ret.put("maxqueuens", maxQueueNanos);
+	        lastTime = now;
+	        lastReceived = received;
+	        lastSent = sent;
+	        return ret;
+	    }
+	}
 
 
 	/**
@@ -836,6 +836,68 @@ public final class URN implements HTTPHeaderValue, Serializable, org.limewire.co
         return ret;
 	}
 	
+	/**
+	 * Creates the SHA1 and tiger tree root URNs for the specified file on disk,
+	 * along with its non-metadata SHA1 if <tt>nms1Length</tt> is positive,
+	 * reading the file only once. The non-metadata hash covers the
+	 * <tt>nms1Length</tt> bytes starting at <tt>nms1Offset</tt> and is left out
+	 * if that range does not fit in the file.
+	 *
+	 * @throws <tt>IOException</tt> if there is an error reading the file
+	 * @throws <tt>InterruptedException</tt> if the calling thread was 
+	 *  interrupted while hashing
+	 */
+	public static UrnSet generateUrnsFromFile(final File file, long nms1Offset, long nms1Length)
+	  throws IOException, InterruptedException {
+	    long length = file.length();
+	    if(length <= 0)
+	        throw new IOException("invalid offset or length while calculating URN");
+	    
+	    MessageDigest sha1 = new SHA1();
+	    MessageDigest tt = new MerkleTree(new Tiger());
+	    MessageDigest nms1 = null;
+	    if(nms1Length > 0 && nms1Offset >= 0 && nms1Offset + nms1Length <= length)
+	        nms1 = new SHA1();
+	    
+	    byte[] buffer = threadLocal.get();
+	    long position = 0;
+	    AtomicInteger progress = new AtomicInteger(0);
+	    progressMap.put( file, progress );
+	    InputStream fis = null;
+	    try {
+	        fis = new FileInputStream(file);
+	        while(position < length) {
+	            int read = fis.read(buffer, 0, (int)Math.min(buffer.length, length - position));
+	            if(read == -1)
+	                break;
+	            
+	            long start = System.nanoTime();
+	            sha1.update(buffer, 0, read);
+	            tt.update(buffer, 0, read);
+	            if(nms1 != null) {
+	                long from = Math.max(position, nms1Offset);
+	                long to = Math.min(position + read, nms1Offset + nms1Length);
+	                if(from < to)
+	                    nms1.update(buffer, (int)(from - position), (int)(to - from));
+	            }
+	            position += read;
+	            progress.addAndGet(read);
+	            throttle(start);
+	        }
+	    } finally {
+	        progressMap.remove(file);
+	        IOUtils.close(fis);
+	    }
+	    
+	    UrnSet ret = new UrnSet();
+	    ret.add(createUrn(Type.SHA1, sha1));
+	    ret.add(createUrn(Type.TTROOT, tt));
+	    // a short read leaves the non-metadata range incomplete
+	    if(nms1 != null && position >= nms1Offset + nms1Length)
+	        ret.add(createUrn(Type.NMSA1, nms1));
+	    return ret;
+	}
+	
 	/**
 	 *  Create a new SHA1 hash string for the specified file on disk. This SHA1 
 	 *  tries to ignore any metadata attached to the file that can be detected, 
@@ -880,25 +942,37 @@ public final class URN implements HTTPHeaderValue, Serializable, org.limewire.co
 	                long start = System.nanoTime();
 	                md.update(buffer,0,read);
 	                progress.addAndGet(read);
-	                if(SystemUtils.getIdleTime() < SharingSettings.MIN_IDLE_TIME_FOR_FULL_HASHING.getValue()
-	                        && SharingSettings.FRIENDLY_HASHING.getValue()) {
-	                    long interval = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
-	                    if (interval > 0) 
-	                        Thread.sleep(interval * 3);
-	                    else 
-	                        Thread.yield();
-	                }
+	                throttle(start);
 	            }
 	        } finally {     
 	            progressMap.remove(file);
 	            IOUtils.close(fis);
 	        }
 	        
-	        // preferred casing: lowercase "urn:sha1:", uppercase encoded value
-	        // note that all URNs are case-insensitive for the "urn:<type>:" part,
-	        // but some MAY be case-sensitive thereafter (SHA1/Base32 is case 
-	        // insensitive)
-	        return new URN(Type.URN_NAMESPACE_ID + type.getDescriptor() + Base32.encode(md.digest()), type);
+	        return createUrn(type, md);
+	}
+	
+	/**
+	 * Backs off after hashing a chunk that was started at <tt>start</tt>
+	 * nanos if friendly hashing is on and the user is not idle.
+	 */
+	private static void throttle(long start) throws InterruptedException {
+	    if(SystemUtils.getIdleTime() < SharingSettings.MIN_IDLE_TIME_FOR_FULL_HASHING.getValue()
+	            && SharingSettings.FRIENDLY_HASHING.getValue()) {
+	        long interval = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	        if (interval > 0) 
+	            Thread.sleep(interval * 3);
+	        else 
+	            Thread.yield();
+	    }
+	}
+	
+	private static URN createUrn(Type type, MessageDigest md) {
+	    // preferred casing: lowercase "urn:sha1:", uppercase encoded value
+	    // note that all URNs are case-insensitive for the "urn:<type>:" part,
+	    // but some MAY be case-sensitive thereafter (SHA1/Base32 is case 
+	    // insensitive)
+	    return new URN(Type.URN_NAMESPACE_ID + type.getDescriptor() + Base32.encode(md.digest()), type);
 	}
 
 	/**
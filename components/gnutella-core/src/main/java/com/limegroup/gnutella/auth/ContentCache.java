@@ -1,27 +1,32 @@
 package com.limegroup.gnutella.auth;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.io.IOUtils;
+import org.limewire.io.RecordStore;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.GenericsUtils;
+import org.limewire.util.StringUtils;
 
 import com.limegroup.gnutella.URN;
 
 /**
  * A repository of content responses.
+ * <p>
+ * Responses are kept in a {@link RecordStore}, so only the responses that
+ * changed are written out.
  */
 class ContentCache {
     
@@ -30,41 +35,66 @@ class ContentCache {
     /** The amount of time to keep a response in the cache. */
     private static final long EXPIRY_TIME = 7 * 24 * 60 * 60 * 1000; // one week.    
     
-    /** File where the licenses are serialized. */
+    /** Name of the store where the responses are stored. */
+    private static final String STORE_NAME = "responses";
+    
+    /** Version of the records in the store. */
+    private static final int STORE_VERSION = 1;
+    
+    /** File where the responses were serialized by older versions. */
     private final File CACHE_FILE =
         new File(CommonUtils.getUserSettingsDir(), "responses.cache");
     
-    /** Map of SHA1 to Responses. */
-    private Map<URN, ContentResponseData> responses = new HashMap<URN, ContentResponseData>();    
+    /** Where the responses are stored, keyed by SHA1. */
+    private RecordStore store;
+    
+    /** Map of SHA1 to the Responses read from the store so far. */
+    private final Map<URN, ContentResponseData> responses = new HashMap<URN, ContentResponseData>();    
     
     /** Whether or not data is dirty since the last time we wrote to disk. */
     private boolean dirty = false;
     
     /** Returns the number of items in the map. */
     synchronized int getSize() {
-        return responses.size();
+        return getStore().size();
     }
     
     /** Determines if there is a response for the given URN. */
     synchronized boolean hasResponseFor(URN urn) {
-        return responses.containsKey(urn);
+        if(urn == null)
+            return false;
+        return responses.containsKey(urn) || getStore().contains(toKey(urn));
     }
     
-    /** Adds the given response for the given URN. */
+    /** Adds the given response for the given URN, unless the URN is null. */
     synchronized void addResponse(URN urn, ContentResponseData response) {
+        if(urn == null)
+            return;
         responses.put(urn, response);
+        getStore().put(toKey(urn), toValue(response));
         dirty = true;
     }
     
     /** Gets the response for the given URN. */
     synchronized ContentResponseData getResponse(URN urn) {
-        return responses.get(urn);
+        if(urn == null)
+            return null;
+        ContentResponseData response = responses.get(urn);
+        if(response == null) {
+            byte[] value = getStore().get(toKey(urn));
+            if(value != null) {
+                response = fromValue(value);
+                if(response != null)
+                    responses.put(urn, response);
+            }
+        }
+        return response;
     }
     
     /** Initializes this cache. */
     synchronized void initialize() {
         dirty = false;        
-        deserialize();
+        open();
     }
     
     /** Writes to disk. */
@@ -74,55 +104,116 @@ class ContentCache {
         dirty = false;
     }
     
-   /**
-     * Loads values from cache file, if available.
+    /** Returns the store, opening it if this cache was not initialized. */
+    private RecordStore getStore() {
+        if(store == null)
+            open();
+        return store;
+    }
+    
+    /**
+     * Opens the store and removes old responses from it.  If there is no
+     * store yet, it is filled from the cache file of older versions, which
+     * is then deleted.
      */
-    private void deserialize() {
-        long cutoff = System.currentTimeMillis() - EXPIRY_TIME;
+    private void open() {
+        responses.clear();
+        store = new RecordStore(CommonUtils.getUserSettingsDir(), STORE_NAME, STORE_VERSION);
+        try {
+            if(store.open()) {
+                removeOldEntries();
+                return;
+            }
+        } catch(IOException e) {
+            LOG.error("Can't read responses", e);
+            store.clear();
+            return;
+        }
         
+        if(CACHE_FILE.exists()) {
+            migrate();
+        }
+    }
+    
+   /**
+     * Copies the responses of the cache file into the store and deletes
+     * the cache file.
+     */
+    private void migrate() {
         ObjectInputStream ois = null;
         try {
             ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(CACHE_FILE)));
             Map map = (Map)ois.readObject();
             Map<URN, ContentResponseData> checked = 
                 GenericsUtils.scanForMap(map, URN.class, ContentResponseData.class, GenericsUtils.ScanMode.REMOVE);
-            if(checked.size() != map.size())
-                dirty = true;
-            
-            for(Iterator<ContentResponseData> i = checked.values().iterator(); i.hasNext(); ) {
-                ContentResponseData data = i.next();
-                if(data.getCreationTime() < cutoff) {
-                    if(LOG.isWarnEnabled())
-                        LOG.warn("Removing old response [" + data + "]");
-                    i.remove();
-                    dirty = true;
-                }
-            }
-            
-            responses = checked;
+            for(Map.Entry<URN, ContentResponseData> entry : checked.entrySet())
+                store.put(toKey(entry.getKey()), toValue(entry.getValue()));
         } catch(Throwable t) {
-            dirty = true;
             LOG.error("Can't read responses", t);
         } finally {
             IOUtils.close(ois);
-            if(responses == null)
-                responses = new HashMap<URN, ContentResponseData>();
+        }
+        
+        removeOldEntries();
+        try {
+            store.compact();
+            CACHE_FILE.delete();
+        } catch(IOException e) {
+            LOG.error("Can't migrate responses", e);
+        }
+    }
+    
+    /** Removes responses that are older than the expiry time. */
+    private void removeOldEntries() {
+        long cutoff = System.currentTimeMillis() - EXPIRY_TIME;
+        for(byte[] key : store.keys()) {
+            byte[] value = store.get(key);
+            ContentResponseData data = value == null ? null : fromValue(value);
+            if(data == null || data.getCreationTime() < cutoff) {
+                if(LOG.isWarnEnabled())
+                    LOG.warn("Removing old response [" + data + "]");
+                store.remove(key);
+                dirty = true;
+            }
         }
     }
 
     /**
      * Write cache so that we only have to calculate them once.
      */
-    public void persistCache() {
-        ObjectOutputStream oos = null;
+    public synchronized void persistCache() {
         try {
-            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(CACHE_FILE)));
-            oos.writeObject(responses);
-            oos.flush();
+            getStore().flush();
         } catch (IOException e) {
             LOG.error(e);
-        } finally {
-            IOUtils.close(oos);
         }
     }
-}
\ No newline at end of file
+    
+    private static byte[] toKey(URN urn) {
+        return StringUtils.toUTF8Bytes(urn.httpStringValue());
+    }
+    
+    /** Writes the creation time and whether the response is OK. */
+    private static byte[] toValue(ContentResponseData response) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(response.getCreationTime());
+            out.writeBoolean(response.isOK());
+        } catch(IOException impossible) {
+            throw new RuntimeException(impossible);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /** Returns the response written by {@link #toValue(ContentResponseData)}, or null if it's invalid. */
+    private static ContentResponseData fromValue(byte[] value) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        try {
+            return new ContentResponseData(in.readLong(), in.readBoolean());
+        } catch(IOException e) {
+            LOG.warn("Invalid response", e);
+            return null;
+        }
+    }
+}
@@ -18,8 +18,11 @@ public class ContentResponseData implements Serializable {
         this(System.currentTimeMillis(), msg.getOK());
     }
     
-    /** Hook for tests to create Responses at different times. */
-    private ContentResponseData(long now, boolean ok) {
+    /**
+     * Constructs a ContentResponseData created at the given time; used by
+     * ContentCache to read responses back and by tests.
+     */
+    ContentResponseData(long now, boolean ok) {
         this.created = now;
         this.ok = ok;
     }
@@ -28,6 +28,7 @@ import org.limewire.logging.LogFactory;
 import org.limewire.net.SocketsManager;
 import org.limewire.net.SocketsManager.ConnectType;
 import org.limewire.nio.NBThrottle;
+import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.Throttle;
 import org.limewire.nio.channel.ChannelWriter;
 import org.limewire.nio.channel.DeflaterWriter;
@@ -94,6 +95,7 @@ import com.limegroup.gnutella.messages.vendor.UDPConnectBackVendorMessage;
 import com.limegroup.gnutella.messages.vendor.UpdateRequest;
 import com.limegroup.gnutella.messages.vendor.VendorMessage;
 import com.limegroup.gnutella.routing.PatchTableMessage;
+import com.limegroup.gnutella.routing.QueryKeywordHashes;
 import com.limegroup.gnutella.routing.QueryRouteTable;
 import com.limegroup.gnutella.routing.ResetTableMessage;
 import com.limegroup.gnutella.search.SearchResultHandler;
@@ -617,6 +619,16 @@ public class GnutellaConnection extends AbstractConnection implements ReplyHandl
      * @see com.limegroup.gnutella.RoutedConnection#shouldForwardQuery(com.limegroup.gnutella.messages.QueryRequest)
      */
     public boolean shouldForwardQuery(QueryRequest query) {
+        return shouldForwardQuery(new QueryKeywordHashes(query));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.limegroup.gnutella.RoutedConnection#shouldForwardQuery(com.limegroup.gnutella.routing.QueryKeywordHashes)
+     */
+    public boolean shouldForwardQuery(QueryKeywordHashes hashes) {
+        QueryRequest query = hashes.getQuery();
         // special what is queries have version numbers attached to them - make
         // sure that the remote host can answer the query....
         if (query.isFeatureQuery()) {
@@ -628,16 +640,16 @@ public class GnutellaConnection extends AbstractConnection implements ReplyHandl
             else
                 return false;
         }
-        return hitsQueryRouteTable(query);
+        return hitsQueryRouteTable(hashes);
     }
 
     /**
      * Determines whether or not this query hits the QRT.
      */
-    protected boolean hitsQueryRouteTable(QueryRequest query) {
+    protected boolean hitsQueryRouteTable(QueryKeywordHashes hashes) {
         if (_lastQRPTableReceived == null)
             return false;
-        return _lastQRPTableReceived.contains(query);
+        return _lastQRPTableReceived.contains(hashes);
     }
 
     /*
@@ -732,7 +744,8 @@ public class GnutellaConnection extends AbstractConnection implements ReplyHandl
                 writer = addWriter(writer, statsWriters.get(StatsWriters.DEFLATER));
         }
         
-        writer = addWriter(writer, new DelayedBufferWriter(1400));
+        writer = addWriter(writer, new DelayedBufferWriter(1400,
+                NIODispatcher.instance().getScheduledExecutorService(getSocket().getChannel())));
         if (statsWriters.containsKey(StatsWriters.DELAYER))
             writer = addWriter(writer, statsWriters.get(StatsWriters.DELAYER));
         
@@ -884,13 +897,14 @@ public class GnutellaConnection extends AbstractConnection implements ReplyHandl
      */
     public void messagingClosed() {
         // we must run this in another thread, as manager.remove
-        // obtains locks, but this can be called from the NIO thread
+        // obtains locks, but this can be called from the NIO thread.
+        // It runs after the messages of this connection were handled.
         if (connectionManager != null) {
             messageDispatcher.dispatch(new Runnable() {
                 public void run() {
                     connectionManager.remove(GnutellaConnection.this);
                 }
-            });
+            }, this);
         }
     }
 
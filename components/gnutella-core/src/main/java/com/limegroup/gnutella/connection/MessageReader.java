@@ -39,6 +39,8 @@ public class MessageReader implements ChannelReadObserver {
     private final ByteBuffer header;
     /** the buffer used for parsing the payload -- recreated for each message */
     private ByteBuffer payload;
+    /** counts the payload buffers this reader allocates */
+    private final PayloadAllocationStats payloadStats;
     
     /** The sole receiver of messages. */
     private final MessageReceiver receiver;
@@ -62,7 +64,17 @@ public class MessageReader implements ChannelReadObserver {
      * Constructs a new MessageReader with the given source channel & receiver.
      */
     MessageReader(InterestReadableByteChannel channel, MessageReceiver receiver, MessageFactory messageFactory) {
+        this(channel, receiver, messageFactory, new PayloadAllocationStats());
+    }
+    
+    /**
+     * Constructs a new MessageReader with the given source channel & receiver
+     * that counts its payload allocations in <code>payloadStats</code>.
+     */
+    MessageReader(InterestReadableByteChannel channel, MessageReceiver receiver,
+            MessageFactory messageFactory, PayloadAllocationStats payloadStats) {
         this.messageFactory = messageFactory;
+        this.payloadStats = payloadStats;
         if(receiver == null)
             throw new NullPointerException("null receiver");
             
@@ -121,6 +133,7 @@ public class MessageReader implements ChannelReadObserver {
                 } else {
                     try {
                         payload = ByteBuffer.allocate(payloadLength);
+                        payloadStats.allocated(payloadLength);
                     } catch(OutOfMemoryError oome) {
                         throw new IOException("message too large.");
                     }
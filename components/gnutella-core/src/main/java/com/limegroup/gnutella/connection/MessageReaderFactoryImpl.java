@@ -1,5 +1,6 @@
 package com.limegroup.gnutella.connection;
 
+import org.limewire.inspection.InspectionPoint;
 import org.limewire.nio.channel.InterestReadableByteChannel;
 
 import com.google.inject.Inject;
@@ -10,6 +11,10 @@ import com.limegroup.gnutella.messages.MessageFactory;
 public class MessageReaderFactoryImpl implements MessageReaderFactory {
 
     private final MessageFactory messageFactory;
+    
+    /** Payload allocations of all readers. */
+    @InspectionPoint("message reader payload buffers")
+    private final PayloadAllocationStats payloadStats = new PayloadAllocationStats();
 
     @Inject
     public MessageReaderFactoryImpl(MessageFactory messageFactory) {
@@ -17,12 +22,12 @@ public class MessageReaderFactoryImpl implements MessageReaderFactory {
     }
     
     public MessageReader createMessageReader(MessageReceiver receiver) {
-        return new MessageReader(receiver, messageFactory);
+        return new MessageReader(null, receiver, messageFactory, payloadStats);
     }
 
     public MessageReader createMessageReader(InterestReadableByteChannel channel, 
             MessageReceiver receiver) {
-            return new MessageReader(channel, receiver, messageFactory);
+            return new MessageReader(channel, receiver, messageFactory, payloadStats);
     }
 
 }
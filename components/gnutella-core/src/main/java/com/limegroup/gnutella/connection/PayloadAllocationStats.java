@@ -0,0 +1,49 @@
+package com.limegroup.gnutella.connection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.inspection.Inspectable;
+
+/**
+ * Counts the buffers {@link MessageReader} allocates for message payloads,
+ * so that the allocation rate of incoming messages can be inspected.
+ * <p>
+ * Payload buffers are not pooled: every message type except route table
+ * updates keeps a reference to the array it was parsed from, so almost no
+ * buffer could be given back to a pool.
+ * <p>
+ * This class is thread-safe and does not lock.
+ */
+public class PayloadAllocationStats implements Inspectable {
+
+    private final AtomicLong payloads = new AtomicLong();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /** Notification that a payload buffer of <code>size</code> bytes was allocated. */
+    void allocated(int size) {
+        payloads.incrementAndGet();
+        allocatedBytes.addAndGet(size);
+    }
+
+    /** Returns the number of payload buffers that were allocated. */
+    public long getPayloads() {
+        return payloads.get();
+    }
+
+    /** Returns the number of bytes that were allocated for payload buffers. */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    @Override
+    public Object inspect() {
+        Map<String, Object> ret = new HashMap<String, Object>();
+        ret.put("ver", 2);
+        ret.put("payloads", payloads.get());
+        ret.put("allocB", allocatedBytes.get());
+        return ret;
+    }
+}
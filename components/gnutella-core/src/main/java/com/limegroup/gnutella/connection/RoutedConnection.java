@@ -8,6 +8,7 @@ import com.limegroup.gnutella.filters.SpamFilter;
 import com.limegroup.gnutella.messages.Message;
 import com.limegroup.gnutella.messages.QueryRequest;
 import com.limegroup.gnutella.routing.PatchTableMessage;
+import com.limegroup.gnutella.routing.QueryKeywordHashes;
 import com.limegroup.gnutella.routing.ResetTableMessage;
 import com.limegroup.gnutella.routing.RouteTableMessage;
 
@@ -76,6 +77,17 @@ public interface RoutedConnection extends Connection, ReplyHandler {
      */
     public boolean shouldForwardQuery(QueryRequest query);
 
+    /**
+     * Same as {@link #shouldForwardQuery(QueryRequest)}, but checks the QRP
+     * table against hashes that can be shared by all connections the query
+     * is checked against.
+     * 
+     * @param hashes the hashes of the <tt>QueryRequest</tt> to check
+     * @return <tt>true</tt> if the <tt>QueryRequest</tt> should be sent to
+     *         this connection, otherwise <tt>false</tt>
+     */
+    public boolean shouldForwardQuery(QueryKeywordHashes hashes);
+
     /**
      * This is a specialized send method for queries that we originate, either
      * from ourselves directly, or on behalf of one of our leaves when we're an
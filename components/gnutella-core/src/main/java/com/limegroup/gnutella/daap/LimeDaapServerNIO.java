@@ -9,8 +9,12 @@ import java.net.SocketException;
 import java.nio.channels.Channel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -35,13 +39,16 @@ import de.kapsi.net.daap.nio.DaapServerNIO;
 
 /**
  * A DAAP Server that uses LimeWire's I/O libraries for NIO.
+ * <p>
+ * Each connection is only touched on the event loop that services its
+ * channel; the state the connections share is guarded by the server.
  */
 public class LimeDaapServerNIO extends DaapServerNIO {
     
     private static final Log LOG = LogFactory.getLog(LimeDaapServerNIO.class);
     
     private final Map<DaapConnectionNIO, DaapController> allConnections =
-        new HashMap<DaapConnectionNIO, DaapController>();
+        Collections.synchronizedMap(new HashMap<DaapConnectionNIO, DaapController>());
     private ServerSocket serverSocket;
     private final ScheduledExecutorService backgroundExecutor;
 
@@ -54,24 +61,26 @@ public class LimeDaapServerNIO extends DaapServerNIO {
     
     /**
      * Schedules a repeated service that will process any connections
-     * that should be timed out.
+     * that should be timed out.  Timed out connections are cancelled on
+     * the loops that service them.
      */
     private void scheduleServices() {
         backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
             public void run() {
-                NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
-                    public void run() {
-                        synchronized (LimeDaapServerNIO.this) {
-                            if (!running)
-                                return;
-                        }
-                        processTimeout();
-                    }
-                });
+                synchronized (LimeDaapServerNIO.this) {
+                    if (!running)
+                        return;
+                }
+                processTimeout();
             }
         }, 30000, 30000, TimeUnit.MILLISECONDS);
     }
     
+    /** Returns the executor that runs things on the event loop of the connection. */
+    private static Executor getExecutor(DaapConnectionNIO connection) {
+        return NIODispatcher.instance().getScheduledExecutorService(connection.getChannel());
+    }
+    
     /**
      * Binds this server to the SocketAddress supplied by DaapConfig.
      * 
@@ -109,7 +118,7 @@ public class LimeDaapServerNIO extends DaapServerNIO {
      */
     @Override
     protected void cancelConnection(final DaapConnectionNIO connection) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        getExecutor(connection).execute(new Runnable() {
             public void run() {
                 Channel channel = connection.getChannel();
                 try {
@@ -124,19 +133,15 @@ public class LimeDaapServerNIO extends DaapServerNIO {
      */
     @Override
     public void disconnectAll() {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
-            public void run() {
-                for(DaapConnectionNIO next : allConnections.keySet()) {
-                    Channel channel = next.getChannel();
-                    try {
-                        channel.close();
-                    } catch(IOException ignored) {}
-                    synchronized(LimeDaapServerNIO.this) {
-                        libraryQueue.clear();
-                    }
-                }
-            }
-        });
+        List<DaapConnectionNIO> connections;
+        synchronized(allConnections) {
+            connections = new ArrayList<DaapConnectionNIO>(allConnections.keySet());
+        }
+        synchronized(this) {
+            libraryQueue.clear();
+        }
+        for(DaapConnectionNIO next : connections)
+            cancelConnection(next);
     }
 
     /**
@@ -159,29 +164,34 @@ public class LimeDaapServerNIO extends DaapServerNIO {
      */
     @Override
     protected void update() {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
-            public void run() {
-                synchronized (LimeDaapServerNIO.this) {
-                    for(DaapConnectionNIO connection : getDaapConnections()) {
-                        for (Library aLibraryQueue : libraryQueue) connection.enqueueLibrary(aLibraryQueue);
+        final List<Library> libraries;
+        List<DaapConnectionNIO> connections;
+        synchronized (this) {
+            libraries = new ArrayList<Library>(libraryQueue);
+            libraryQueue.clear();
+            connections = getDaapConnections();
+        }
+        for (final DaapConnectionNIO connection : connections) {
+            getExecutor(connection).execute(new Runnable() {
+                public void run() {
+                    for (Library library : libraries)
+                        connection.enqueueLibrary(library);
 
-                        SelectableChannel channel = connection.getChannel();
-                        try {
-                            connection.update();
-                            DaapController controller = allConnections.get(connection);
+                    SelectableChannel channel = connection.getChannel();
+                    try {
+                        connection.update();
+                        DaapController controller = allConnections.get(connection);
+                        if (controller != null)
                             controller.setOps();
-                        } catch (IOException ignored) {
-                            try {
-                                channel.close();
-                            } catch (IOException ignoredToo) {
-                            }
+                    } catch (IOException ignored) {
+                        try {
+                            channel.close();
+                        } catch (IOException ignoredToo) {
                         }
                     }
-
-                    libraryQueue.clear();
                 }
-            }
-        });
+            });
+        }
     }    
     
     /**
@@ -17,13 +17,15 @@ import org.limewire.io.IOUtils;
 import org.limewire.io.IpPort;
 import org.limewire.io.SecureInputStream;
 import org.limewire.io.SecureOutputStream;
+import org.limewire.mojito.Context;
 import org.limewire.mojito.MojitoDHT;
 import org.limewire.mojito.MojitoFactory;
-import org.limewire.mojito.db.Database;
+import org.limewire.mojito.db.impl.DiskDatabaseImpl;
 import org.limewire.mojito.routing.RouteTable;
 import org.limewire.mojito.routing.Vendor;
 import org.limewire.mojito.routing.Version;
 import org.limewire.util.CommonUtils;
+import org.limewire.util.FileUtils;
 
 import com.limegroup.gnutella.connection.Connection;
 import com.limegroup.gnutella.connection.ConnectionLifecycleEvent;
@@ -44,6 +46,16 @@ public class ActiveDHTNodeController extends AbstractDHTController {
      */
     private static final File FILE = new File(CommonUtils.getUserSettingsDir(), "active.mojito");
     
+    /**
+     * The file to persist the Database of this Mojito DHT
+     */
+    private static final File DATABASE_FILE = new File(CommonUtils.getUserSettingsDir(), "active.mojito.db");
+    
+    /**
+     * The Database if it's persisted, null otherwise
+     */
+    private DiskDatabaseImpl database;
+    
     ActiveDHTNodeController(Vendor vendor, Version version,
             EventDispatcher<DHTEvent, DHTEventListener> dispatcher,
             DHTControllerFacade dhtControllerFacade) {
@@ -54,6 +66,7 @@ public class ActiveDHTNodeController extends AbstractDHTController {
     protected MojitoDHT createMojitoDHT(Vendor vendor, Version version) {
         MojitoDHT dht = MojitoFactory.createDHT("ActiveMojitoDHT", vendor, version);
         
+        boolean restored = false;
         if (DHTSettings.PERSIST_ACTIVE_DHT_ROUTETABLE.getValue() 
                 && FILE.exists() && FILE.isFile()) {
             ObjectInputStream in = null;
@@ -71,15 +84,6 @@ public class ActiveDHTNodeController extends AbstractDHTController {
                 int routeTableVersion = in.readInt();
                 if (routeTableVersion >= getRouteTableVersion()) {
                     RouteTable routeTable = (RouteTable)in.readObject();
-
-                    Database database = null;
-                    try {
-                        if (DHTSettings.PERSIST_DHT_DATABASE.getValue()) {
-                            database = (Database)in.readObject();                                                        
-                        }
-                    } catch (Throwable ignored) {
-                        LOG.error("Throwable", ignored);
-                    }
                     
                     // The Database depends on the RouteTable!
                     if (routeTable != null) {
@@ -89,9 +93,7 @@ public class ActiveDHTNodeController extends AbstractDHTController {
                         }
                         
                         dht.setRouteTable(routeTable);
-                        if (database != null) {
-                            dht.setDatabase(database);
-                        }
+                        restored = true;
                     }
                 }
             } catch (Throwable ignored) {
@@ -100,6 +102,18 @@ public class ActiveDHTNodeController extends AbstractDHTController {
                 IOUtils.close(in);
             }
         }
+        
+        if (DHTSettings.PERSIST_DHT_DATABASE.getValue()) {
+            try {
+                database = new DiskDatabaseImpl(DATABASE_FILE, 
+                        dht.getDHTValueFactoryManager());
+                // The values are only of use with the same RouteTable
+                ((Context)dht).setDatabase(database, !restored);
+            } catch (IOException err) {
+                LOG.error("IOException", err);
+                FileUtils.delete(DATABASE_FILE, false);
+            }
+        }
         return dht;
     }
     
@@ -126,11 +140,8 @@ public class ActiveDHTNodeController extends AbstractDHTController {
                 synchronized (dht) {
                     out.writeObject(dht.getRouteTable());
                     
-                    Database database = null;
-                    if (DHTSettings.PERSIST_DHT_DATABASE.getValue()) {
-                        database = dht.getDatabase();
-                    }                    
-                    out.writeObject(database);
+                    // The Database is persisted in its own file
+                    out.writeObject(null);
                 }
                 out.flush();
             } catch (IOException ignored) {
@@ -138,6 +149,10 @@ public class ActiveDHTNodeController extends AbstractDHTController {
                 IOUtils.close(out);
             }
         }
+        
+        if (database != null) {
+            database.close();
+        }
     }
 
     @Override
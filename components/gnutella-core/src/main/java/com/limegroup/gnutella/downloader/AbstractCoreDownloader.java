@@ -50,6 +50,12 @@ public abstract class AbstractCoreDownloader implements CoreDownloader {
 	
 	/** The default fileName this should use. */
 	private String defaultFileName;
+	
+	/** The memento returned by the last call to toMemento, if any. */
+	private DownloadMemento memento;
+	
+	/** Whether the download changed since its memento was built. */
+	private volatile boolean mementoDirty = true;
 
 	private final SaveLocationManager saveLocationManager;
 	private final CategoryManager categoryManager;
@@ -77,7 +83,9 @@ public abstract class AbstractCoreDownloader implements CoreDownloader {
      * @see com.limegroup.gnutella.downloader.CoreDownloader#setAttribute(java.lang.String, java.io.Serializable)
      */
 	public Object setAttribute(String key, Object value, boolean serialize) {
-	    return attributes.put( key, new Attribute(serialize, value) );
+	    Object old = attributes.put( key, new Attribute(serialize, value) );
+	    setMementoDirty();
+	    return old;
 	}
 
 	/* (non-Javadoc)
@@ -95,7 +103,9 @@ public abstract class AbstractCoreDownloader implements CoreDownloader {
      * @see com.limegroup.gnutella.downloader.CoreDownloader#removeAttribute(java.lang.String)
      */
 	public Object removeAttribute(String key) {
-	    return attributes.remove( key );
+	    Object old = attributes.remove( key );
+	    setMementoDirty();
+	    return old;
 	}
 	
 	/* (non-Javadoc)
@@ -178,6 +188,7 @@ public abstract class AbstractCoreDownloader implements CoreDownloader {
 	
 	protected synchronized void setSaveFileInternal(File saveFile) {
 	    this.saveFile = saveFile;
+	    setMementoDirty();
 	}
 	
 	public synchronized File getSaveFile() {
@@ -210,6 +221,7 @@ public abstract class AbstractCoreDownloader implements CoreDownloader {
     /** Sets the default filename this will use. */
     protected synchronized void setDefaultFileName(String defaultFileName) {
         this.defaultFileName = defaultFileName;
+        setMementoDirty();
     }
     
     public synchronized void initFromMemento(DownloadMemento memento) throws InvalidDataException {
@@ -220,14 +232,42 @@ public abstract class AbstractCoreDownloader implements CoreDownloader {
                 attributes.put(entry.getKey(), new Attribute(true, entry.getValue()));
             }
         }
+        setMementoDirty();
     }
     
+    /**
+     * Returns the memento of this download. The same memento is returned
+     * until the download changes, so it must not be modified.
+     */
     public final synchronized DownloadMemento toMemento() {
-        DownloadMemento memento = createMemento();
-        fillInMemento(memento);
+        if (memento == null || isMementoDirty()) {
+            // cleared first, so a change made while filling in is kept
+            mementoDirty = false;
+            memento = createMemento();
+            fillInMemento(memento);
+        }
         return memento;
     }
     
+    /** Marks the download as changed, so its next memento is built anew. */
+    protected void setMementoDirty() {
+        mementoDirty = true;
+    }
+    
+    /**
+     * Returns true if the download changed since its memento was built.
+     * Subclasses that mark every change with {@link #setMementoDirty()}
+     * return the flag; others are rebuilt every time.
+     */
+    protected boolean isMementoDirty() {
+        return true;
+    }
+    
+    /** Returns the flag set by {@link #setMementoDirty()}. */
+    protected final boolean isMementoMarkedDirty() {
+        return mementoDirty;
+    }
+    
     /** Constructs the correct type of memento. */
     protected abstract DownloadMemento createMemento();
 
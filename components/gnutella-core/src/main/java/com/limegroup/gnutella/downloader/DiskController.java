@@ -1,7 +1,15 @@
 package com.limegroup.gnutella.downloader;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -11,15 +19,24 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.collection.ByteArrayCache;
 import org.limewire.collection.PowerOf2ByteArrayCache;
+import org.limewire.collection.Range;
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.concurrent.ManagedThread;
 import org.limewire.inject.EagerSingleton;
+import org.limewire.inspection.Inspectable;
+import org.limewire.inspection.InspectionPoint;
 import org.limewire.lifecycle.ServiceScheduler;
 
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
-/** Manages writing / reading from / to disk. */
+/**
+ * Manages writing / reading from / to disk.
+ * <p>
+ * Chunks are written behind: they are queued per file, and all chunks
+ * queued for a file by the time its write job runs are sorted and written
+ * with one gathering write per run of adjacent ranges.
+ */
 @EagerSingleton
 public class DiskController {
     
@@ -49,6 +66,44 @@ public class DiskController {
     private int chunksScheduled = 0;
     /** A lock to use for the queue size + chunksScheduled. */
     private final Object SCHEDULE_LOCK = new Object();
+    /**
+     * The chunks waiting to be written, per file.
+     * LOCKING: SCHEDULE_LOCK.
+     */
+    private final Map<WriteBehindFile, List<QueuedChunk>> WRITE_BEHIND =
+        new HashMap<WriteBehindFile, List<QueuedChunk>>();
+    /** The most chunks that were scheduled at once. LOCKING: SCHEDULE_LOCK. */
+    private int maxChunksScheduled = 0;
+    
+    // the following are only written by the QUEUE thread
+    /** The number of write calls made to file channels. */
+    private volatile long writeCalls = 0;
+    /** The number of bytes written. */
+    private volatile long bytesWritten = 0;
+    /** The number of chunks written. */
+    private volatile long chunksWritten = 0;
+    /** The number of runs of adjacent chunks written. */
+    private volatile long rangesWritten = 0;
+    
+    @InspectionPoint("disk controller write behind")
+    @SuppressWarnings("unused")
+    private final Inspectable writeBehindStats = new Inspectable() {
+        @Override
+        public Object inspect() {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("ver", 1);
+            synchronized(SCHEDULE_LOCK) {
+                data.put("depth", chunksScheduled);
+                data.put("max depth", maxChunksScheduled);
+            }
+            data.put("writes", writeCalls);
+            data.put("bytes", bytesWritten);
+            data.put("chunks", chunksWritten);
+            data.put("ranges", rangesWritten);
+            data.put("bytes per write", getBytesPerWrite());
+            return data;
+        }
+    };
     
     @Inject
     public DiskController() {
@@ -79,25 +134,22 @@ public class DiskController {
         return CACHE.getQuick();
     }
     
-    /** Adds a job to be performed on the disk. */
-    public void addDiskJob(final ChunkDiskJob job) {
+    /**
+     * Schedules a chunk from {@link #getWriteChunk()} to be written to
+     * <code>range</code> of the file. The chunk is released once written.
+     */
+    void addWrite(WriteBehindFile file, Range range, byte[] chunk) {
         synchronized(SCHEDULE_LOCK) {
             chunksScheduled++;
-            QUEUE.execute(new Runnable() {
-                public void run() {
-                    try {
-                        job.runChunkJob(job.getChunk());
-                    } finally {
-                        synchronized(SCHEDULE_LOCK) {
-                            chunksScheduled--;
-                        }
-                        
-                        releaseChunk(job.getChunk(), true);
-                        
-                        job.finish();
-                    }
-                }
-            });
+            if(chunksScheduled > maxChunksScheduled)
+                maxChunksScheduled = chunksScheduled;
+            List<QueuedChunk> queued = WRITE_BEHIND.get(file);
+            if(queued == null) {
+                queued = new ArrayList<QueuedChunk>();
+                WRITE_BEHIND.put(file, queued);
+                QUEUE.execute(new WriteBehindJob(file));
+            }
+            queued.add(new QueuedChunk(range, chunk));
         }
     }
     
@@ -111,6 +163,106 @@ public class DiskController {
         return CHUNK_CACHE.get(size);
     }
     
+    /**
+     * Writes the chunks queued for a file, coalescing adjacent ranges, and
+     * releases them.
+     */
+    private class WriteBehindJob implements Runnable {
+        private final WriteBehindFile file;
+        
+        WriteBehindJob(WriteBehindFile file) {
+            this.file = file;
+        }
+        
+        public void run() {
+            List<QueuedChunk> chunks;
+            synchronized(SCHEDULE_LOCK) {
+                chunks = WRITE_BEHIND.remove(file);
+            }
+            int start = 0;
+            try {
+                Collections.sort(chunks);
+                for(int i = 1; i <= chunks.size(); i++) {
+                    if(i == chunks.size() ||
+                            chunks.get(i).range.getLow() != chunks.get(i - 1).range.getHigh() + 1) {
+                        write(chunks.subList(start, i));
+                        start = i;
+                    }
+                }
+            } finally {
+                // if a write threw, the file must not wait for the rest forever
+                if(start < chunks.size()) {
+                    IOException failure = new IOException("write-behind job failed");
+                    for(QueuedChunk chunk : chunks.subList(start, chunks.size()))
+                        file.rangeFailed(chunk.range, failure);
+                }
+                synchronized(SCHEDULE_LOCK) {
+                    chunksScheduled -= chunks.size();
+                }
+                for(QueuedChunk chunk : chunks)
+                    releaseChunk(chunk.data, false);
+                runDelayedWrites();
+                
+                file.chunksFinished(chunks.size());
+            }
+        }
+        
+        /** Writes a run of adjacent chunks with gathering writes. */
+        private void write(List<QueuedChunk> run) {
+            Range range = Range.createRange(run.get(0).range.getLow(),
+                    run.get(run.size() - 1).range.getHigh());
+            ByteBuffer[] data = new ByteBuffer[run.size()];
+            for(int i = 0; i < data.length; i++) {
+                QueuedChunk chunk = run.get(i);
+                data[i] = ByteBuffer.wrap(chunk.data, 0, (int)chunk.range.getLength());
+            }
+            
+            if (LOG.isTraceEnabled())
+                LOG.trace("Writing " + run.size() + " chunks in intvl: " + range);
+            
+            try {
+                RandomAccessFile raf = file.getFile();
+                synchronized(raf) {
+                    FileChannel channel = raf.getChannel();
+                    channel.position(range.getLow());
+                    long remaining = range.getLength();
+                    while(remaining > 0) {
+                        remaining -= channel.write(data);
+                        writeCalls++;
+                    }
+                }
+            } catch(IOException diskIO) {
+                file.rangeFailed(range, diskIO);
+                return;
+            }
+            
+            bytesWritten += range.getLength();
+            chunksWritten += run.size();
+            rangesWritten++;
+            
+            for(ByteBuffer buffer : data)
+                buffer.rewind();
+            file.rangeWritten(range, data);
+        }
+    }
+    
+    /** A chunk waiting to be written. */
+    private static class QueuedChunk implements Comparable<QueuedChunk> {
+        private final Range range;
+        private final byte[] data;
+        
+        QueuedChunk(Range range, byte[] data) {
+            this.range = range;
+            this.data = data;
+        }
+        
+        public int compareTo(QueuedChunk other) {
+            long low = range.getLow();
+            long otherLow = other.range.getLow();
+            return low < otherLow ? -1 : low == otherLow ? 0 : 1;
+        }
+    }
+    
     /**
      * A Runnable that clears the cache used for storing byte[]s used for
      * writing data read from network to disk, and schedules a ChunkCacheCleaner.
@@ -192,5 +344,18 @@ public class DiskController {
     public int getNumPendingItems() {
         return QUEUE.getQueue().size();
     }
+    
+    /** Returns the number of chunks waiting to be written. */
+    public int getQueueDepth() {
+        synchronized(SCHEDULE_LOCK) {
+            return chunksScheduled;
+        }
+    }
+    
+    /** Returns the average number of bytes written per write call. */
+    public long getBytesPerWrite() {
+        long writes = writeCalls;
+        return writes == 0 ? 0 : bytesWritten / writes;
+    }
 
 }
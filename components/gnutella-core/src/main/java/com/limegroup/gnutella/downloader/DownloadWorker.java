@@ -5,6 +5,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -235,6 +236,7 @@ public class DownloadWorker {
     
     private final HTTPDownloaderFactory httpDownloaderFactory;
     private final ScheduledExecutorService backgroundExecutor;
+    /** Runs things on the primary event loop, used when there is no connection. */
     private final ScheduledExecutorService nioExecutor;
     private final Provider<PushDownloadManager> pushDownloadManager;
     private final SocketsManager socketsManager;
@@ -656,7 +658,9 @@ public class DownloadWorker {
                     }
                 }
 
-                nioExecutor.execute(
+                HTTPDownloader downloader = _downloader;
+                Executor executor = downloader != null ? downloader.getNIOExecutor() : nioExecutor;
+                executor.execute(
                         new Runnable() {
                             public void run() {
                                 incrementState(null);
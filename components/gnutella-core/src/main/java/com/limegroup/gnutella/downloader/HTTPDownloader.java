@@ -6,6 +6,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -17,6 +18,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -441,7 +443,8 @@ public class HTTPDownloader implements BandwidthTracker {
         }
         observerHandler = new Observer();
         ((AbstractNBSocket)_socket).setReadThrottleChannel(new ThrottleReader(bandwidthManager.getReadThrottle()));
-        _stateMachine = new IOStateMachine(observerHandler, new LinkedList<IOState>(), BUF_LENGTH);
+        _stateMachine = new IOStateMachine(observerHandler, new LinkedList<IOState>(), BUF_LENGTH,
+                ((AbstractNBSocket)_socket).getNIOExecutor());
         ((NIOMultiplexor) _socket).setReadObserver(_stateMachine);
         ((NIOMultiplexor) _socket).setWriteObserver(_stateMachine);
 
@@ -1656,7 +1659,7 @@ public class HTTPDownloader implements BandwidthTracker {
                         irc.interestRead(false);
                         doingWrite = true;
                         _incompleteFile.registerWriteCallback(request, new DownloadRestarter(irc,
-                                buffer, this));
+                                buffer, this, _socket.getChannel()));
                         return true;
                     }
                 } catch (AssertFailure bad) {
@@ -1700,16 +1703,20 @@ public class HTTPDownloader implements BandwidthTracker {
 
         private final ByteBuffer buffer;
 
+        /** The channel whose NIO thread restarts the download. */
+        private final SelectableChannel channel;
+
         DownloadRestarter(InterestReadableByteChannel irc, ByteBuffer buffer,
-                DownloadState downloader) {
+                DownloadState downloader, SelectableChannel channel) {
             this.irc = irc;
             this.buffer = buffer;
             this.downloader = downloader;
+            this.channel = channel;
         }
 
         public void writeScheduled() {
             LOG.debug("Delayed write scheduled");
-            NIODispatcher.instance().executeLaterAlways(this);
+            NIODispatcher.instance().executeLaterAlways(channel, this);
         }
 
         public void run() {
@@ -1733,13 +1740,24 @@ public class HTTPDownloader implements BandwidthTracker {
         }
 
         // Close in the NIO thread, so everything stays there.
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        getNIOExecutor().execute(new Runnable() {
             public void run() {
                 IOUtils.close(_socket);
             }
         });
     }
 
+    /**
+     * Returns the executor that runs things on the event loop that services
+     * the socket of this downloader, or on the primary loop if there is no
+     * socket yet.
+     */
+    ScheduledExecutorService getNIOExecutor() {
+        Socket socket = _socket;
+        return NIODispatcher.instance().getScheduledExecutorService(
+                socket == null ? null : socket.getChannel());
+    }
+
     /**
      * Instructs this stop just before reading the given byte. This cannot be
      * used to increase the initial range.
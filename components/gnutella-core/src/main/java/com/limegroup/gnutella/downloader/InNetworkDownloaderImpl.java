@@ -118,14 +118,17 @@ class InNetworkDownloaderImpl extends ManagedDownloaderImpl implements InNetwork
     
     protected synchronized void setDownloadAttempts(int i) {
         this.downloadAttempts = i;
+        setMementoDirty();
     }
 
     protected synchronized void setStartTime(long startTime) {
         this.startTime = startTime;
+        setMementoDirty();
     }
 
     protected synchronized void setTigerTreeRoot(String tigerTreeRoot) {
         this.tigerTreeRoot = tigerTreeRoot;
+        setMementoDirty();
     }
 
     /**
@@ -159,6 +162,7 @@ class InNetworkDownloaderImpl extends ManagedDownloaderImpl implements InNetwork
     
     private synchronized void incrementDownloadAttempts() {
         downloadAttempts++;
+        setMementoDirty();
     }
 
     @Override
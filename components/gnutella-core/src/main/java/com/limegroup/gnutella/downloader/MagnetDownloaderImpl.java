@@ -169,6 +169,7 @@ class MagnetDownloaderImpl extends ManagedDownloaderImpl implements MagnetDownlo
         if(getMagnet() != null)
             throw new IllegalStateException("magnet already set!");
         this.magnet = magnet;
+        setMementoDirty();
 	}
     
     /**
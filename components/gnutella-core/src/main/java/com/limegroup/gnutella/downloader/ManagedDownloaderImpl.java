@@ -351,6 +351,14 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
      */
     protected volatile VerifyingFile commonOutFile;
 
+    /**
+     * The file whose blocks the memento holds and its count of changes
+     * then. LOCKING: this.
+     */
+    private VerifyingFile mementoBlocksFile;
+
+    private long mementoBlockChanges;
+
     /**
      * A list of pushing hosts.
      */
@@ -564,7 +572,8 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
             rfds = Collections.emptyList();
         }
 
-        cachedRFDs.addAll(rfds);
+        if (cachedRFDs.addAll(rfds))
+            setMementoDirty();
         for (RemoteFileDesc rfd : rfds) {
             if (rfd.getAddress() instanceof PermanentAddress) {
                 permanentRFDs.add(rfd);
@@ -796,6 +805,7 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
             if (complete) {
                 synchronized (this) {
                     cachedRFDs.clear(); // the call right before this serializes. 
+                    setMementoDirty();
                 }
             }
         }
@@ -1056,6 +1066,7 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
             commonOutFile.setScanForExistingBlocks(true, incompleteFile.length());
             incompleteFileManager.addEntry(incompleteFile, commonOutFile, shouldPublishIFD());
         }
+        setMementoDirty();
     }
 
     protected void initializeIncompleteFile() throws IOException {
@@ -1070,6 +1081,7 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
             incompleteFile = getIncompleteFile(getSaveFile().getName(), sha1,
                     getContentLength());
         }
+        setMementoDirty();
 
         if (LOG.isWarnEnabled())
             LOG.warn("Incomplete File: " + incompleteFile);
@@ -1461,8 +1473,8 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
         }
 
         //add to allFiles for resume purposes if caching...
-        if (cache || rfd.getAddress() instanceof PermanentAddress)
-            cachedRFDs.add(rfd);
+        if ((cache || rfd.getAddress() instanceof PermanentAddress) && cachedRFDs.add(rfd))
+            setMementoDirty();
     }
 
     /* (non-Javadoc)
@@ -1651,8 +1663,8 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
         if (LOG.isDebugEnabled())
             LOG.debug("informing mesh that " + rfd + " is " + good);
 
-        if (good)
-            cachedRFDs.add(rfd);
+        if (good && cachedRFDs.add(rfd))
+            setMementoDirty();
 
         if (!rfd.isAltLocCapable())
             return;
@@ -1811,6 +1823,7 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
         if (downloadSHA1 != null && !sha1.equals(downloadSHA1))
             throw new IllegalStateException("sha1 already set to: " + downloadSHA1);
         this.downloadSHA1 = sha1;
+        setMementoDirty();
     }
 
     /* (non-Javadoc)
@@ -2602,9 +2615,13 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
             permanentRFDs.add(rfd);
             return;
         }
-        if (cachedRFDs.remove(rfd) && cachedRFDs.isEmpty()) {
-            // remember our last RFD
-            cachedRFDs.add(rfd);
+        if (cachedRFDs.remove(rfd)) {
+            if (cachedRFDs.isEmpty()) {
+                // remember our last RFD
+                cachedRFDs.add(rfd);
+            } else {
+                setMementoDirty();
+            }
         }
     }
 
@@ -2791,6 +2808,7 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
 
     protected synchronized void setContentLength(long contentLength) {
         this.contentLength = contentLength;
+        setMementoDirty();
     }
 
     /* (non-Javadoc)
@@ -3223,6 +3241,7 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
 
     protected synchronized void setIncompleteFile(File incompleteFile) {
         this.incompleteFile = incompleteFile;
+        setMementoDirty();
     }
 
     protected synchronized File getIncompleteFile() {
@@ -3264,12 +3283,28 @@ class ManagedDownloaderImpl extends AbstractCoreDownloader implements AltLocList
         super.fillInMemento(gmem);
         gmem.setContentLength(getContentLength());
         gmem.setSha1Urn(getSha1Urn());
-        if (commonOutFile != null)
-            gmem.setSavedBlocks(commonOutFile.getSerializableBlocks());
+        VerifyingFile file = commonOutFile;
+        mementoBlocksFile = file;
+        if (file != null) {
+            // read first, so blocks written meanwhile make the memento dirty
+            mementoBlockChanges = file.getSerializableChanges();
+            gmem.setSavedBlocks(file.getSerializableBlocks());
+        }
         gmem.setIncompleteFile(getIncompleteFile());
         gmem.setRemoteHosts(getRemoteHostMementos());
     }
 
+    /**
+     * Returns true if a change was marked or blocks were written since the
+     * memento was built.
+     */
+    @Override
+    protected boolean isMementoDirty() {
+        VerifyingFile file = commonOutFile;
+        return isMementoMarkedDirty() || file != mementoBlocksFile
+                || (file != null && file.getSerializableChanges() != mementoBlockChanges);
+    }
+
     private Set<RemoteHostMemento> getRemoteHostMementos() {
         Set<RemoteHostMemento> mementos = new HashSet<RemoteHostMemento>(cachedRFDs.size());
         for (RemoteFileDesc rfd : cachedRFDs) {
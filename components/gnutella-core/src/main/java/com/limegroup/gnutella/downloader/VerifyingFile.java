@@ -4,6 +4,7 @@ package com.limegroup.gnutella.downloader;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -163,12 +164,21 @@ public class VerifyingFile {
      */
     private int chunksScheduledPerFile = 0;
     
+    /** Receives the results of this file's writes from the DiskController. */
+    private final WriteBehindFile writeBehind = new WriteBehind();
+    
     /**
      * Holds the iterable for all blocks, is lazily instantiated when
      * needed for the first time.
      */
     private MultiIterable<Range> allBlocksIterable = null;
     
+    /**
+     * Counts the changes to the blocks returned by
+     * {@link #getSerializableBlocks()}.
+     */
+    private long serializableChanges;
+    
     /** The controller for doing disk reads/writes. */
     private final Provider<DiskController> diskController;
         
@@ -225,6 +235,7 @@ public class VerifyingFile {
     public synchronized void addInterval(Range interval) {
         //delegates to underlying IntervalSet
         partialBlocks.add(interval);
+        serializableChanges++;
     }
 
     public void registerWriteCallback(WriteRequest request, WriteCallback callback) {
@@ -280,7 +291,7 @@ public class VerifyingFile {
             chunksScheduledPerFile++;
         }
         
-        diskController.get().addDiskJob(new ChunkHandler(temp, request.in));
+        diskController.get().addWrite(writeBehind, request.in, temp);
         return true;
     }
     
@@ -442,6 +453,14 @@ public class VerifyingFile {
         return ret.getAllIntervalsAsList();
         
     }
+    /**
+     * Returns a count that changes whenever the blocks returned by
+     * {@link #getSerializableBlocks()} may have changed.
+     */
+    public synchronized long getSerializableChanges() {
+        return serializableChanges;
+    }
+    
     /**
      * While iterating over the result a lock to the verifying file should
      * be held to ensure the interval lists are not modified elsewhere.
@@ -750,26 +769,29 @@ public class VerifyingFile {
         return hashTree == null ? DEFAULT_CHUNK_SIZE : hashTree.getNodeSize();
     }
     
-    /**
-     * Stub for calling verifyChunks(-1).
-     */
-    private void verifyChunks() {
-        verifyChunks(-1);
-    }
-    
     /**
      * Schedules those chunks that can be verified against the hash tree for
      * verification.
+     * <p>
+     * If <code>written</code> is not null, it is the range that was just
+     * written from <code>data</code>; chunks that lie entirely within it are
+     * verified from memory instead of being read back from disk.
      */
-    private void verifyChunks(long existingFileSize) {
+    private void verifyChunks(long existingFileSize, Range written, ByteBuffer[] data) {
         boolean fullScan = existingFileSize != -1;
         HashTree tree = getHashTree(); // capture the tree.
         // if we have a tree, see if there is a completed chunk in the partial list
         if(tree != null) {
             for(Range i : findVerifyableBlocks(existingFileSize, tree.getNodeSize())) {
-                byte[] tmp = diskController.get().getPowerOf2Chunk(Math.min(VERIFYABLE_CHUNK,tree.getNodeSize()));
-                boolean good = !tree.isCorrupt(i, fos, tmp);
+                boolean good;
+                if(written != null && written.getLow() <= i.getLow() && i.getHigh() <= written.getHigh()) {
+                    good = !tree.isCorrupt(i, slice(data, i.getLow() - written.getLow(), i.getLength()));
+                } else {
+                    byte[] tmp = diskController.get().getPowerOf2Chunk(Math.min(VERIFYABLE_CHUNK,tree.getNodeSize()));
+                    good = !tree.isCorrupt(i, fos, tmp);
+                }
                 synchronized (this) {
+                    serializableChanges++;
                     partialBlocks.delete(i);
                     if (good)
                         verifiedBlocks.add(i);
@@ -866,61 +888,58 @@ public class VerifyingFile {
     }
     
     /**
-     * Runnable that writes chunks to disk & verifies partial blocks.
+     * Returns buffers over <code>length</code> bytes of <code>data</code>,
+     * starting <code>offset</code> bytes in.
      */
-    private class ChunkHandler extends ChunkDiskJob {
-        
-        /** The interval that we are about to write */
-        private final Range intvl;
+    private static ByteBuffer[] slice(ByteBuffer[] data, long offset, long length) {
+        List<ByteBuffer> slice = new ArrayList<ByteBuffer>();
+        for(ByteBuffer buffer : data) {
+            if(length == 0)
+                break;
+            if(offset >= buffer.remaining()) {
+                offset -= buffer.remaining();
+                continue;
+            }
+            ByteBuffer part = buffer.duplicate();
+            part.position(part.position() + (int)offset);
+            part.limit(part.position() + (int)Math.min(length, part.remaining()));
+            length -= part.remaining();
+            offset = 0;
+            slice.add(part);
+        }
+        return slice.toArray(new ByteBuffer[slice.size()]);
+    }
+    
+    /**
+     * Receives the results of writing chunks to disk & verifies partial blocks.
+     */
+    private class WriteBehind implements WriteBehindFile {
         
-        /** Whether or not running the job freed a pending block. */
-        private boolean freedPending = false;
+        public RandomAccessFile getFile() {
+            return fos;
+        }
         
-        public ChunkHandler(byte[] buf, Range intvl) {
-            super(buf);
-            this.intvl = intvl;
-            long length = intvl.getHigh() - intvl.getLow() + 1;
-            assert length <= buf.length : 
-                "invalid length "+length+ " vs buf "+buf.length;
+        public void rangeWritten(Range range, ByteBuffer[] data) {
+            synchronized (VerifyingFile.this) {
+                pendingBlocks.delete(range);
+                partialBlocks.add(range);
+                serializableChanges++;
+            }
+            
+            verifyChunks(-1, range, data);
         }
         
-        @Override
-        public void runChunkJob(byte[] buf) {
-            try {
-                if (LOG.isTraceEnabled())
-                    LOG.trace("Writing intvl: " + intvl);
-
-                synchronized (fos) {
-                    fos.seek(intvl.getLow());
-                    fos.write(buf, 0, (int) (intvl.getHigh() - intvl.getLow() + 1));
-                }
-
-                synchronized (VerifyingFile.this) {
-                    pendingBlocks.delete(intvl);
-                    partialBlocks.add(intvl);
-                    freedPending = true;
-                }
-
-                verifyChunks();
-            } catch (IOException diskIO) {
-                synchronized(VerifyingFile.this) {
-                    pendingBlocks.delete(intvl);
-                    storedException = diskIO;
-                }
+        public void rangeFailed(Range range, IOException diskIO) {
+            synchronized(VerifyingFile.this) {
+                pendingBlocks.delete(range);
+                storedException = diskIO;
             }
         }
         
-        @Override
-        public void finish() {
+        public void chunksFinished(int chunks) {
             synchronized(VerifyingFile.this) {
-                try {
-                    if (!freedPending)
-                        pendingBlocks.delete(intvl);
-                
-                } finally {
-                    --chunksScheduledPerFile;
-                    VerifyingFile.this.notifyAll();
-                }
+                chunksScheduledPerFile -= chunks;
+                VerifyingFile.this.notifyAll();
             }
         }
     }
@@ -934,7 +953,7 @@ public class VerifyingFile {
         }
 
         public void run() {
-            verifyChunks(existingFileSize);
+            verifyChunks(existingFileSize, null, null);
             synchronized (VerifyingFile.this) {
                 VerifyingFile.this.notify();
             }
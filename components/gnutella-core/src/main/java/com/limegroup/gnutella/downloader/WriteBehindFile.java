@@ -0,0 +1,30 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.limewire.collection.Range;
+
+/** A file that is written to by the write-behind queue of the {@link DiskController}. */
+interface WriteBehindFile {
+    
+    /**
+     * Returns the file to write to. Anything that moves its file pointer
+     * must lock on it.
+     */
+    RandomAccessFile getFile();
+    
+    /**
+     * Notifies that a range was written. The buffers hold the written data
+     * and may only be used until this returns.
+     */
+    void rangeWritten(Range range, ByteBuffer[] data);
+    
+    /** Notifies that writing a range failed. */
+    void rangeFailed(Range range, IOException e);
+    
+    /** Notifies that the given number of chunks have been written and released. */
+    void chunksFinished(int chunks);
+
+}
@@ -0,0 +1,218 @@
+package com.limegroup.gnutella.downloader.serial;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.io.RecordStore;
+import org.limewire.util.ConverterObjectInputStream;
+
+/**
+ * A journal of download mementos, kept in a {@link RecordStore} that holds
+ * each memento under its own ID and the order of the downloads under one
+ * more key.
+ * <p>
+ * Downloaders hand out the same memento until they change, so a memento
+ * the journal has already stored is recognized by identity and not
+ * serialized again: a write only stores the mementos that are new since the
+ * last one, the order, and the removal of the mementos that are gone. The
+ * first write of a journal stores every memento.
+ * <p>
+ * The order is written after the mementos it names and before the removals,
+ * so a write torn by a crash leaves the previous order and its mementos in
+ * place. The store compacts itself into a new snapshot as its log grows.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class DownloadJournal {
+
+    private static final Log LOG = LogFactory.getLog(DownloadJournal.class);
+
+    private static final int VERSION = 1;
+
+    /** The first byte of the key of a memento, followed by its ID. */
+    private static final byte MEMENTO = 'M';
+
+    /** The key of the order, whose value is the IDs of the mementos. */
+    private static final byte[] ORDER = { 'O' };
+
+    private final RecordStore store;
+
+    /** The IDs of the mementos the journal has stored, by memento. */
+    private Map<DownloadMemento, Long> ids = new IdentityHashMap<DownloadMemento, Long>();
+
+    /** The IDs of all mementos in the store. */
+    private final Set<Long> stored = new HashSet<Long>();
+
+    /** The IDs of the mementos in the store, in order. */
+    private long[] order = new long[0];
+
+    /** The ID given to the next memento that is stored. */
+    private long nextId;
+
+    private DownloadJournal(RecordStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Opens the journal whose files are named after <code>file</code>.
+     */
+    static DownloadJournal open(File file) throws IOException {
+        DownloadJournal journal = new DownloadJournal(createStore(file));
+        journal.store.open();
+        for (byte[] key : journal.store.keys()) {
+            if (key.length == 9 && key[0] == MEMENTO) {
+                long id = toLong(key, 1);
+                journal.stored.add(id);
+                journal.nextId = Math.max(journal.nextId, id + 1);
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Returns the time the journal whose files are named after
+     * <code>file</code> was last written, or 0 if there is none.
+     */
+    static long lastModified(File file) {
+        return createStore(file).lastModified();
+    }
+
+    /**
+     * Deletes the journal whose files are named after <code>file</code>.
+     */
+    static void delete(File file) {
+        createStore(file).clear();
+    }
+
+    private static RecordStore createStore(File file) {
+        return new RecordStore(file.getAbsoluteFile().getParentFile(), file.getName(), VERSION);
+    }
+
+    /**
+     * Returns the mementos in the journal, in order.
+     *
+     * @throws IOException if the journal holds no order
+     */
+    List<DownloadMemento> read() throws IOException {
+        byte[] value = store.get(ORDER);
+        if (value == null)
+            throw new IOException("No downloads in journal");
+        long[] ids = toLongs(value);
+        List<DownloadMemento> mementos = new ArrayList<DownloadMemento>(ids.length);
+        for (long id : ids) {
+            DownloadMemento memento = readMemento(id);
+            if (memento != null)
+                mementos.add(memento);
+        }
+        return mementos;
+    }
+
+    private DownloadMemento readMemento(long id) {
+        byte[] value = store.get(toKey(id));
+        if (value == null) {
+            LOG.warn("Missing memento: " + id);
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ConverterObjectInputStream(new ByteArrayInputStream(value));
+            Object memento = in.readObject();
+            if (memento instanceof DownloadMemento)
+                return (DownloadMemento) memento;
+            LOG.warn("Not a memento: " + memento);
+        } catch (ClassNotFoundException e) {
+            LOG.warn("Unable to read memento", e);
+        } catch (IOException e) {
+            LOG.warn("Unable to read memento", e);
+        }
+        return null;
+    }
+
+    /**
+     * Makes the journal hold the mementos, storing the ones it has not
+     * stored yet.
+     */
+    void write(List<? extends DownloadMemento> mementos) throws IOException {
+        Map<DownloadMemento, Long> newIds = new IdentityHashMap<DownloadMemento, Long>();
+        long[] newOrder = new long[mementos.size()];
+        boolean changed = false;
+        for (int i = 0; i < newOrder.length; i++) {
+            DownloadMemento memento = mementos.get(i);
+            Long id = newIds.get(memento);
+            if (id == null)
+                id = ids.get(memento);
+            if (id == null) {
+                id = nextId++;
+                store.put(toKey(id), toBytes(memento));
+                changed = true;
+            }
+            newIds.put(memento, id);
+            newOrder[i] = id;
+        }
+        if (!changed && Arrays.equals(order, newOrder))
+            return;
+
+        store.put(ORDER, toBytes(newOrder));
+        Set<Long> live = new HashSet<Long>(newIds.values());
+        for (Long id : stored) {
+            if (!live.contains(id))
+                store.remove(toKey(id));
+        }
+        store.flush();
+        stored.clear();
+        stored.addAll(live);
+        ids = newIds;
+        order = newOrder;
+    }
+
+    private static byte[] toBytes(DownloadMemento memento) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(memento);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] toKey(long id) {
+        byte[] key = new byte[9];
+        key[0] = MEMENTO;
+        for (int i = 1, shift = 56; shift >= 0; i++, shift -= 8)
+            key[i] = (byte) (id >>> shift);
+        return key;
+    }
+
+    private static byte[] toBytes(long[] ids) {
+        byte[] bytes = new byte[ids.length * 8];
+        for (int i = 0, j = 0; i < ids.length; i++) {
+            for (int shift = 56; shift >= 0; shift -= 8)
+                bytes[j++] = (byte) (ids[i] >>> shift);
+        }
+        return bytes;
+    }
+
+    private static long[] toLongs(byte[] bytes) {
+        long[] ids = new long[bytes.length / 8];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = toLong(bytes, i * 8);
+        return ids;
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++)
+            value = (value << 8) | (bytes[i] & 0xff);
+        return value;
+    }
+}
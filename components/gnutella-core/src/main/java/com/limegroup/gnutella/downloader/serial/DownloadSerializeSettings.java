@@ -7,5 +7,11 @@ public interface DownloadSerializeSettings {
     public File getSaveFile();
     
     public File getBackupFile();
+    
+    /**
+     * The file that names the files downloads are journaled to, if the
+     * journal is enabled.
+     */
+    public File getJournalFile();
 
 }
@@ -13,5 +13,9 @@ public class DownloadSerializeSettingsImpl implements DownloadSerializeSettings
     public File getSaveFile() {
         return new File(CommonUtils.getUserSettingsDir(), "downloads.dat");
     }
+    
+    public File getJournalFile() {
+        return new File(CommonUtils.getUserSettingsDir(), "downloads.journal");
+    }
 
 }
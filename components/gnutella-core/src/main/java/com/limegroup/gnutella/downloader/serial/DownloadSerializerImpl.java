@@ -1,6 +1,7 @@
 package com.limegroup.gnutella.downloader.serial;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -9,6 +10,7 @@ import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.limewire.core.settings.DownloadSettings;
 import org.limewire.io.IOUtils;
 import org.limewire.util.ConverterObjectInputStream;
 import org.limewire.util.FileUtils;
@@ -24,6 +26,9 @@ public class DownloadSerializerImpl implements DownloadSerializer {
     
     private final DownloadSerializeSettings downloadSerializeSettings;
     
+    /** The journal that downloads are written to, once it is opened. */
+    private DownloadJournal journal;
+    
     @Inject
     public DownloadSerializerImpl(DownloadSerializeSettings downloadSerializeSettings) {
         this.downloadSerializeSettings = downloadSerializeSettings;
@@ -35,8 +40,22 @@ public class DownloadSerializerImpl implements DownloadSerializer {
      * This works by first attempting to read from the save file described in the settings,
      * and then attempting to read from the backup file if there were any errors while
      * reading the normal file.  If both files fail, this returns an empty list.
+     * <p>
+     * If there is a download journal that is newer than the save file, or the
+     * journal is enabled, the journal is read instead.
      */
     public List<DownloadMemento> readFromDisk() throws IOException {
+        long journalModified = DownloadJournal.lastModified(downloadSerializeSettings.getJournalFile());
+        if(journalModified > 0 && (DownloadSettings.DOWNLOAD_JOURNAL.getValue()
+                || journalModified >= downloadSerializeSettings.getSaveFile().lastModified())) {
+            try {
+                return openJournal().read();
+            } catch(IOException ignored) {
+                LOG.warn("Error reading journal.", ignored);
+                closeJournal();
+            }
+        }
+        
         if(!downloadSerializeSettings.getSaveFile().exists() && !downloadSerializeSettings.getSaveFile().exists())
             return Collections.emptyList();
         
@@ -73,11 +92,41 @@ public class DownloadSerializerImpl implements DownloadSerializer {
      * Writes the mementos to disk. This works by first writing to the backup
      * file and then renaming the backup file to the save file. If the backup
      * file cannot be written, this fails.
+     * <p>
+     * If the journal is enabled, the mementos are written to the journal
+     * instead, which only serializes the ones that changed since the last
+     * write.
      */
     // synchronized to prevent more than one person at a time from possibly writing
     public synchronized boolean writeToDisk(List<? extends DownloadMemento> mementos) {
-        return FileUtils.writeWithBackupFile(mementos, downloadSerializeSettings.getBackupFile(),
-                downloadSerializeSettings.getSaveFile(), LOG);
-
+        if(!DownloadSettings.DOWNLOAD_JOURNAL.getValue()) {
+            closeJournal();
+            boolean written = FileUtils.writeWithBackupFile(mementos, downloadSerializeSettings.getBackupFile(),
+                    downloadSerializeSettings.getSaveFile(), LOG);
+            // a stale journal must not be read instead of the save file
+            if(written)
+                DownloadJournal.delete(downloadSerializeSettings.getJournalFile());
+            return written;
+        }
+        
+        try {
+            openJournal().write(mementos);
+            return true;
+        } catch(IOException e) {
+            LOG.warn("Error writing journal.", e);
+            // the next write reopens the journal and stores every memento
+            closeJournal();
+            return false;
+        }
+    }
+    
+    private synchronized DownloadJournal openJournal() throws IOException {
+        if(journal == null)
+            journal = DownloadJournal.open(downloadSerializeSettings.getJournalFile());
+        return journal;
+    }
+    
+    private synchronized void closeJournal() {
+        journal = null;
     }
 }
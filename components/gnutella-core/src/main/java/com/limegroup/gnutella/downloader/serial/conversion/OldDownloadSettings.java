@@ -18,4 +18,9 @@ public class OldDownloadSettings implements DownloadSerializeSettings {
         return SharingSettings.OLD_DOWNLOAD_SNAPSHOT_FILE.get();
     }
 
+    /** Old downloads were never journaled. */
+    public File getJournalFile() {
+        return new File(getSaveFile().getPath() + ".journal");
+    }
+
 }
@@ -1,5 +1,12 @@
 package com.limegroup.gnutella.filters;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.inspection.Inspectable;
 import org.limewire.inspection.InspectionHistogram;
 import org.limewire.inspection.InspectionPoint;
 import org.limewire.logging.Log;
@@ -11,30 +18,131 @@ public class CompositeFilter implements SpamFilter {
 
     private static Log LOG = LogFactory.getLog(CompositeFilter.class);
 
+    /**
+     * One in this many messages is timed and counted by the filter stats,
+     * a power of two.
+     */
+    static final int SAMPLE_INTERVAL = 16;
+
     @InspectionPoint("filter hits")
     private static final InspectionHistogram<String> hitCounts =
         new InspectionHistogram<String>();
 
+    /** The stats of each kind of filter, by name. */
+    private static final ConcurrentMap<String, FilterStats> filterStats =
+        new ConcurrentHashMap<String, FilterStats>();
+
+    /**
+     * The number of sampled messages each kind of filter was asked about,
+     * how many it blocked, and how many nanoseconds it took.
+     */
+    @InspectionPoint("filter stats")
+    @SuppressWarnings("unused")
+    private static final Inspectable statsInspectable = new Inspectable() {
+        @Override
+        public Object inspect() {
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("ver", 1);
+            ret.put("sample", SAMPLE_INTERVAL);
+            for(Map.Entry<String, FilterStats> entry : filterStats.entrySet())
+                ret.put(entry.getKey(), entry.getValue().inspect());
+            return ret;
+        }
+    };
+
     SpamFilter[] delegates;
 
+    private final FilterStats[] delegateStats;
+
+    /** The number of messages this filter was asked about. */
+    private int messages;
+
     /**
      * @requires filters not modified while this is in use (rep is exposed!),
      *           filters contains no null elements
      * @effects creates a new spam filter from a number of other filters.
+     *          Cheap filters should come first, since the first filter that
+     *          blocks a message ends the search.
      */
     public CompositeFilter(SpamFilter[] filters) {
         this.delegates = filters;
+        this.delegateStats = new FilterStats[filters.length];
+        for(int i = 0; i < filters.length; i++)
+            delegateStats[i] = getStats(filters[i].getClass().getSimpleName());
     }
 
     public boolean allow(Message m) {
+        // Racing increments only change which messages are sampled
+        if((++messages & (SAMPLE_INTERVAL - 1)) == 0)
+            return allowSampled(m);
         for(int i = 0; i < delegates.length; i++) {
             if(!delegates[i].allow(m)) {
-                String name = delegates[i].getClass().getSimpleName();
-                hitCounts.count(name);
-                LOG.debugf("{0} blocked {1}", name, m);
+                blocked(i, m);
                 return false;
             }
         }
         return true;
     }
+
+    /**
+     * Like allow, but also counts and times each filter.
+     */
+    private boolean allowSampled(Message m) {
+        for(int i = 0; i < delegates.length; i++) {
+            long start = System.nanoTime();
+            boolean allowed = delegates[i].allow(m);
+            delegateStats[i].record(System.nanoTime() - start, !allowed);
+            if(!allowed) {
+                blocked(i, m);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void blocked(int i, Message m) {
+        String name = delegates[i].getClass().getSimpleName();
+        hitCounts.count(name);
+        LOG.debugf("{0} blocked {1}", name, m);
+    }
+
+    private static FilterStats getStats(String name) {
+        FilterStats stats = filterStats.get(name);
+        if(stats == null) {
+            stats = new FilterStats();
+            FilterStats existing = filterStats.putIfAbsent(name, stats);
+            if(existing != null)
+                stats = existing;
+        }
+        return stats;
+    }
+
+    /**
+     * Counts for one kind of filter, shared by all composite filters.
+     */
+    static class FilterStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+
+        void record(long time, boolean hit) {
+            calls.incrementAndGet();
+            if(hit)
+                hits.incrementAndGet();
+            nanos.addAndGet(time);
+        }
+
+        Map<String, Object> inspect() {
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("calls", calls.get());
+            ret.put("hits", hits.get());
+            ret.put("ns", nanos.get());
+            return ret;
+        }
+    }
+
+    // For testing
+    static FilterStats getStats(Class<? extends SpamFilter> filterClass) {
+        return getStats(filterClass.getSimpleName());
+    }
 }
@@ -1,9 +1,8 @@
 package com.limegroup.gnutella.filters;
 
-import org.limewire.collection.Buffer;
-import org.limewire.io.GUID;
 import org.limewire.logging.Log;
 import org.limewire.logging.LogFactory;
+import org.limewire.util.ByteUtils;
 
 import com.limegroup.gnutella.messages.Message;
 import com.limegroup.gnutella.messages.PingRequest;
@@ -15,6 +14,10 @@ import com.limegroup.gnutella.messages.QueryRequest;
  * heuristic: two pings or queries are considered duplicates if they have
  * similar GUIDs, arrived within BUF_SIZE messages of each other, and arrived
  * not more than LAG milliseconds apart.
+ * <p>
+ * Messages with equal GUIDs are found in a set of fingerprints of all the
+ * messages within LAG milliseconds, however many there are; messages with
+ * GUIDs that are merely similar are found among the last BUF_SIZE messages.
  */
 public class DuplicateFilter implements SpamFilter {
     
@@ -39,11 +42,27 @@ public class DuplicateFilter implements SpamFilter {
     private static final int TOLERANCE = 2;
 
     /**
-     * A list of the GUIDs of the last messages we saw, their timestamps and
-     * hop counts.
+     * The fingerprints of the GUIDs and hop counts of the messages we saw
+     * within the last LAG milliseconds, for GUIDs that are equal.
+     */
+    private FingerprintSet seen = new FingerprintSet(LAG);
+
+    /**
+     * The GUIDs of the last messages we saw, their timestamps and hop counts,
+     * for GUIDs that are similar.  Each GUID is kept as two longs, so no
+     * objects are allocated per message.
      * INVARIANT: the youngest entries have largest timestamps
      */
-    private final Buffer<GUIDPair> guids = new Buffer<GUIDPair>(BUF_SIZE);
+    private final long[] highs = new long[BUF_SIZE];
+    private final long[] lows = new long[BUF_SIZE];
+    private final long[] times = new long[BUF_SIZE];
+    private final int[] hops = new int[BUF_SIZE];
+
+    /** The index of the next entry to replace. */
+    private int next;
+
+    /** The number of entries in use. */
+    private int size;
 
     private int lag = LAG;
 
@@ -54,40 +73,62 @@ public class DuplicateFilter implements SpamFilter {
         if(!(m instanceof QueryRequest || m instanceof PingRequest))
             return true;
 
-        GUIDPair me = new GUIDPair(m.getGUID(),
-                System.currentTimeMillis(), m.getHops());
-
-        //Consider all messages that came in within GUID_LAG milliseconds 
-        //of this...
-        int size = guids.getSize();
-        for(int i = 0; i < size; i++) {             
-            GUIDPair other = guids.get(i);
-            //The following assertion fails for mysterious reasons on the
-            //Macintosh.  Also, it can fail if the user adjusts the clock, e.g.,
-            //for daylight savings time.  Luckily it need not hold for the code
-            //to work correctly.  
-            //  Assert.that(me.time>=other.time,"Unexpected clock behavior");
-            if(me.time - other.time > lag)
-                //All remaining pings have smaller timestamps.
+        byte[] guid = m.getGUID();
+        int myHops = m.getHops();
+        long now = System.currentTimeMillis();
+        long high = ByteUtils.beb2long(guid, 0, 8);
+        long low = ByteUtils.beb2long(guid, 8, 8);
+
+        boolean allowed = seen.add(FingerprintSet.fingerprint(high, low, myHops), now)
+                && !isSimilarToRecent(high, low, now, myHops);
+        if(!allowed && LOG.isDebugEnabled())
+            LOG.debugf("not allowing: {0}", m);
+
+        highs[next] = high;
+        lows[next] = low;
+        times[next] = now;
+        hops[next] = myHops;
+        next = (next + 1) % BUF_SIZE;
+        if(size < BUF_SIZE)
+            size++;
+        return allowed;
+    }
+
+    /**
+     * Returns true if a recent message with the same hop count arrived
+     * within lag milliseconds and has a GUID that differs in no more than
+     * TOLERANCE bytes.
+     */
+    private boolean isSimilarToRecent(long high, long low, long now, int myHops) {
+        //Consider all messages that came in within lag milliseconds 
+        //of this, youngest first...
+        for(int n = 1; n <= size; n++) {
+            int i = (next - n + BUF_SIZE) % BUF_SIZE;
+            //This can fail if the user adjusts the clock, e.g., for daylight
+            //savings time.  Luckily it need not hold for the code to work
+            //correctly.
+            if(now - times[i] > lag)
+                //All remaining messages have smaller timestamps.
                 break;
             //If different hops, keep looking
-            if(other.hops != me.hops)
+            if(hops[i] != myHops)
                 continue;
             //Are the GUIDs similar?
-            int misses = 0;
-            for(int j = 0; j < me.guid.length && misses <= TOLERANCE; j++) {
-                if(me.guid[j] != other.guid[j])
-                    misses++;
-            }
-            if(misses <= TOLERANCE) {//really close GUIDS
-                if (LOG.isDebugEnabled()) 
-                    LOG.debugf("not allowing: {0}", m);
-                guids.add(me);
-                return false;
-            }
+            int misses = differingBytes(high ^ highs[i]) + differingBytes(low ^ lows[i]);
+            if(misses <= TOLERANCE)
+                return true;
         }
-        guids.add(me);
-        return true;        
+        return false;
+    }
+
+    /**
+     * Returns the number of bytes of <code>diff</code> that are not zero.
+     */
+    private static int differingBytes(long diff) {
+        diff |= diff >>> 4;
+        diff |= diff >>> 2;
+        diff |= diff >>> 1;
+        return Long.bitCount(diff & 0x0101010101010101L);
     }
 
     // For testing
@@ -98,22 +139,6 @@ public class DuplicateFilter implements SpamFilter {
     // For testing
     void setLag(int lag) {
         this.lag = lag;
+        seen = new FingerprintSet(lag);
     }
-
-    private static class GUIDPair {
-        byte[] guid;
-        long time;
-        int hops;
-
-        GUIDPair(byte[] guid, long time, int hops) {
-            this.guid = guid;
-            this.time = time;
-            this.hops = hops;
-        }
-
-        @Override
-        public String toString() {
-            return "[" + (new GUID(guid)).toString() + ", " + time + "]";
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+package com.limegroup.gnutella.filters;
+
+import java.util.Arrays;
+
+import org.limewire.util.HashUtils;
+
+/**
+ * A set of 64-bit message fingerprints that were seen within a time window.
+ * <p>
+ * Fingerprints are kept in two generations, each an open-addressing hash
+ * table of primitive arrays. New fingerprints go into the current
+ * generation; when it is older than the window it becomes the previous
+ * generation and the previous one is emptied by advancing its epoch, so
+ * rotation takes constant time however many fingerprints there are. A slot
+ * is only in use if it carries the epoch of its generation.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class FingerprintSet {
+
+    /** Initial number of slots of a generation, a power of two. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The time, in milliseconds, that a fingerprint is remembered. */
+    private final long window;
+
+    private Generation current;
+
+    private Generation previous;
+
+    FingerprintSet(long window) {
+        this.window = window;
+        current = new Generation();
+        previous = new Generation();
+    }
+
+    /**
+     * Adds a fingerprint that was seen at <code>now</code>.
+     *
+     * @return true if the fingerprint was not seen within the window before
+     */
+    boolean add(long fingerprint, long now) {
+        rotate(now);
+        boolean seen = current.contains(fingerprint, now - window)
+                || previous.contains(fingerprint, now - window);
+        current.put(fingerprint, now);
+        return !seen;
+    }
+
+    /**
+     * Returns true if the fingerprint was seen within the window before
+     * <code>now</code>.
+     */
+    boolean contains(long fingerprint, long now) {
+        rotate(now);
+        return current.contains(fingerprint, now - window)
+                || previous.contains(fingerprint, now - window);
+    }
+
+    /**
+     * Returns the number of fingerprints in both generations, including
+     * ones that are older than the window but not discarded yet.
+     */
+    int size() {
+        return current.size + previous.size;
+    }
+
+    private void rotate(long now) {
+        if (now - current.start < window)
+            return;
+        Generation emptied = previous;
+        emptied.clear(now);
+        if (now - current.start >= window * 2) {
+            // Nothing in the current generation is within the window either
+            current.clear(now);
+        }
+        previous = current;
+        current = emptied;
+    }
+
+    /**
+     * Returns a fingerprint of a GUID, given as its high and low eight
+     * bytes, and a hop count.
+     */
+    static long fingerprint(long high, long low, int hops) {
+        return HashUtils.mix64(high ^ HashUtils.mix64(low + hops));
+    }
+
+    /**
+     * The fingerprints of one generation.
+     */
+    private static final class Generation {
+
+        long[] keys = new long[INITIAL_CAPACITY];
+
+        long[] times = new long[INITIAL_CAPACITY];
+
+        int[] epochs = new int[INITIAL_CAPACITY];
+
+        /** The epoch of the slots in use, never 0. */
+        int epoch = 1;
+
+        /** The time this generation was started. */
+        long start;
+
+        int size;
+
+        void clear(long now) {
+            epoch++;
+            if (epoch == 0) {
+                // The epoch wrapped: free the slots for real
+                Arrays.fill(epochs, 0);
+                epoch = 1;
+            }
+            size = 0;
+            start = now;
+        }
+
+        /**
+         * Returns true if the fingerprint was seen after <code>since</code>.
+         */
+        boolean contains(long key, long since) {
+            int mask = keys.length - 1;
+            for (int i = (int) key & mask; epochs[i] == epoch; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return times[i] >= since;
+            }
+            return false;
+        }
+
+        void put(long key, long time) {
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while (epochs[i] == epoch) {
+                if (keys[i] == key) {
+                    times[i] = time;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            times[i] = time;
+            epochs[i] = epoch;
+            if (++size > keys.length * 3 / 4)
+                grow();
+        }
+
+        private void grow() {
+            long[] oldKeys = keys, oldTimes = times;
+            int[] oldEpochs = epochs;
+            int oldEpoch = epoch;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            times = new long[capacity];
+            epochs = new int[capacity];
+            epoch = 1;
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldEpochs[j] != oldEpoch)
+                    continue;
+                int i = (int) oldKeys[j] & mask;
+                while (epochs[i] == epoch)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                times[i] = oldTimes[j];
+                epochs[i] = epoch;
+            }
+        }
+    }
+}
@@ -59,10 +59,9 @@ public class GreedyQueryFilter implements SpamFilter {
             return true;
 
         if (length == 5) { //could by of type "*.mp3" or "*.mpg"
-            String fileFormat = queryString.substring(2,5);
             if ((queryString.charAt(1) == '.') &&
-                ( (fileFormat.equalsIgnoreCase("mp3")) ||
-                  (fileFormat.equalsIgnoreCase("mpg")) ) )
+                ( (queryString.regionMatches(true, 2, "mp3", 0, 3)) ||
+                  (queryString.regionMatches(true, 2, "mpg", 0, 3)) ) )
                 return true;
         }
         
@@ -47,6 +47,7 @@ public class HostileFilter extends  AbstractIPFilter {
                 newHostile.add(new IP(ip));
             if(newHostile.isValidFilter(false, networkInstanceUtils)) {
                 LOG.debug("Filter was valid");
+                newHostile.compile();
                 hostileHosts = newHostile;
             } else {
                 LOG.debug("Filter was invalid");
@@ -1,6 +1,7 @@
 package com.limegroup.gnutella.filters;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +49,9 @@ public class IPList {
     
     /** The list of IPs. */
     private Trie<IP, IP> ips = new PatriciaTrie<IP, IP>(new IPKeyAnalyzer());
+    
+    /** The compiled ranges, null if the list changed since they were built. */
+    private volatile Intervals intervals;
 
     public IPList () {}
     
@@ -87,6 +91,7 @@ public class IPList {
         // then we must clear the trie.  The AddFilter trick will not
         // work in this case.
         if(ip.equals(NULL_IP)) {
+            intervals = null;
             ips.clear();
             ips.put(ip, ip);
             return;
@@ -95,6 +100,8 @@ public class IPList {
         if(!NetworkUtils.isValidAddress(ip)) {
             return;
         }
+        
+        intervals = null;
                 
         // If we already had it (or an address that contained it),
         // then don't include.  Also remove any IPs we encountered
@@ -118,11 +125,41 @@ public class IPList {
     /**
      * @returns true if ip_address is contained somewhere in the list of IPs
      */
-    public synchronized boolean contains(IP lookup) {
+    public boolean contains(IP lookup) {
+        Intervals compiled = intervals;
+        if(compiled == null)
+            compiled = compileIntervals();
+        if(compiled.trie)
+            return trieContains(lookup);
+        return compiled.contains(lookup);
+    }
+    
+    /** Looks up an address in the Trie, for lists that cannot be compiled. */
+    private synchronized boolean trieContains(IP lookup) {
         IP ip = ips.select(lookup);        
         return ip != null && ip.contains(lookup);
     }
     
+    /**
+     * Builds the arrays that {@link #contains(IP)} searches, if the list
+     * changed since they were last built.  Lists that are loaded in the
+     * background should be compiled before they are put to use, so the
+     * first lookup does not have to.
+     */
+    public void compile() {
+        if(intervals == null)
+            compileIntervals();
+    }
+    
+    private synchronized Intervals compileIntervals() {
+        Intervals compiled = intervals;
+        if(compiled == null) {
+            compiled = Intervals.compile(ips);
+            intervals = compiled;
+        }
+        return compiled;
+    }
+    
     /**
      * Determines if this filter is valid.  If private IPs are not allowed,
      * NetworkInstanceUtils must be non-null in order to check if an address
@@ -178,6 +215,102 @@ public class IPList {
             return ip.getDistanceTo(lookup);
     }
     
+    /**
+     * The ranges of an IPList as sorted, disjoint intervals.  Ranges that
+     * overlap or touch are merged into one.  Addresses are stored with
+     * the sign bit flipped, so that signed comparisons order them as
+     * unsigned.  Immutable.
+     */
+    static final class Intervals {
+        
+        /** The first address of each interval. */
+        private final int[] starts;
+        
+        /** The last address of each interval. */
+        private final int[] ends;
+        
+        /**
+         * Whether the list has ranges that are not a prefix, like
+         * "1.2.3.4/255.0.255.0", and can only be searched in the Trie.
+         */
+        private final boolean trie;
+        
+        private Intervals(int[] starts, int[] ends, boolean trie) {
+            this.starts = starts;
+            this.ends = ends;
+            this.trie = trie;
+        }
+        
+        static Intervals compile(Trie<IP, IP> ips) {
+            final long[] ranges = new long[ips.size()];
+            final boolean[] trie = new boolean[1];
+            ips.traverse(new Trie.Cursor<IP, IP>() {
+                private int i;
+                
+                public SelectStatus select(Entry<? extends IP, ? extends IP> entry) {
+                    IP ip = entry.getKey();
+                    int hostBits = ~ip.mask;
+                    if((hostBits & (hostBits + 1)) != 0) {
+                        trie[0] = true;
+                        return SelectStatus.EXIT;
+                    }
+                    // Sorting the start in the high bits sorts the ranges
+                    int start = (ip.addr & ip.mask) ^ Integer.MIN_VALUE;
+                    ranges[i++] = ((long)start << 32) | (hostBits & 0xFFFFFFFFL);
+                    return SelectStatus.CONTINUE;
+                }
+            });
+            if(trie[0])
+                return new Intervals(new int[0], new int[0], true);
+            
+            Arrays.sort(ranges);
+            int[] starts = new int[ranges.length];
+            int[] ends = new int[ranges.length];
+            int count = 0;
+            for(long range : ranges) {
+                int start = (int)(range >> 32);
+                int end = start + (int)range;
+                if(count > 0 && ends[count - 1] != Integer.MAX_VALUE
+                        && start <= ends[count - 1] + 1) {
+                    ends[count - 1] = Math.max(end, ends[count - 1]);
+                } else {
+                    starts[count] = start;
+                    ends[count] = end;
+                    count++;
+                }
+            }
+            return new Intervals(Arrays.copyOf(starts, count),
+                    Arrays.copyOf(ends, count), false);
+        }
+        
+        /** Returns the number of intervals. */
+        int size() {
+            return starts.length;
+        }
+        
+        /**
+         * Determines if every address of <code>lookup</code> is within
+         * one interval.
+         */
+        boolean contains(IP lookup) {
+            int low = (lookup.addr & lookup.mask) ^ Integer.MIN_VALUE;
+            int high = low + ~lookup.mask;
+            int[] s = starts;
+            int n = s.length;
+            if(n == 0)
+                return false;
+            // Finds the last interval that starts at or before low, with
+            // a loop whose only branch is its condition.
+            int base = 0;
+            while(n > 1) {
+                int half = n >>> 1;
+                base = s[base + half] <= low ? base + half : base;
+                n -= half;
+            }
+            return s[base] <= low && high <= ends[base];
+        }
+    }
+    
     /**
      *  A trie cursor that determines if the IP list contained in the
      *  trie is valid or not. 
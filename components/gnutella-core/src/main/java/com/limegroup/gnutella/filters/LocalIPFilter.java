@@ -130,7 +130,10 @@ public final class LocalIPFilter extends AbstractIPFilter {
             }
         }
         
-        badHosts = new MultiIPList(newBad, hostilesTXTHosts);
+        IPList newBadHosts = new MultiIPList(newBad, hostilesTXTHosts);
+        newBadHosts.compile();
+        newGood.compile();
+        badHosts = newBadHosts;
         goodHosts = newGood;
     }
     
@@ -4,7 +4,8 @@ import org.limewire.io.IP;
 import org.limewire.io.NetworkInstanceUtils;
 
 /**
- * A view over several IPLists.
+ * A view over several IPLists.  The lists are searched one after the
+ * other, each without locking.
  */
 public class MultiIPList extends IPList {
 
@@ -16,12 +17,12 @@ public class MultiIPList extends IPList {
     }
     
     @Override
-    public synchronized void add(IP ip) {
+    public void add(IP ip) {
         throw new UnsupportedOperationException();
     }
     
     @Override
-    public synchronized boolean contains(IP lookup) {
+    public boolean contains(IP lookup) {
         for (IPList ipl : lists) {
             if (ipl.contains(lookup))
                 return true;
@@ -29,8 +30,17 @@ public class MultiIPList extends IPList {
         return false;
     }
     
+    /**
+     * Compiles each list of this view.
+     */
     @Override
-    public synchronized boolean isEmpty() {
+    public void compile() {
+        for (IPList ipl : lists)
+            ipl.compile();
+    }
+    
+    @Override
+    public boolean isEmpty() {
         for (IPList ipl : lists) {
             if (!ipl.isEmpty())
                 return false;
@@ -39,7 +49,7 @@ public class MultiIPList extends IPList {
     }
     
     @Override
-    public synchronized boolean isValidFilter(boolean allowPrivateIPs, NetworkInstanceUtils networkInstanceUtils) {
+    public boolean isValidFilter(boolean allowPrivateIPs, NetworkInstanceUtils networkInstanceUtils) {
         for (IPList ipl : lists) {
             if (!ipl.isValidFilter(allowPrivateIPs, networkInstanceUtils))
                 return false;
@@ -48,7 +58,7 @@ public class MultiIPList extends IPList {
     }
     
     @Override
-    public synchronized int minDistanceTo(IP lookup) {
+    public int minDistanceTo(IP lookup) {
         int ret = Integer.MAX_VALUE;
         for (IPList ipl : lists) 
             ret = Math.min(ret, ipl.minDistanceTo(lookup));
@@ -56,7 +66,7 @@ public class MultiIPList extends IPList {
     }
     
     @Override
-    public synchronized int size() {
+    public int size() {
         int ret = 0;
         for (IPList ipl : lists) 
             ret += ipl.size();
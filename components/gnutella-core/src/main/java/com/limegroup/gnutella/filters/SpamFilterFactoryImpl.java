@@ -65,7 +65,8 @@ class SpamFilterFactoryImpl implements SpamFilterFactory {
      * @see com.limegroup.gnutella.filters.SpamFilterFactory#createRouteFilter()
      */
     public SpamFilter createRouteFilter() {
-        //Assemble spam filters. Order matters a little bit.
+        //Assemble spam filters. Order matters a little bit: cheap checks
+        //without state come first, so that they short-circuit the rest.
 
         ArrayList<SpamFilter> buf = new ArrayList<SpamFilter>();
 
@@ -75,23 +76,25 @@ class SpamFilterFactoryImpl implements SpamFilterFactory {
         //1b. Eliminate runaway Qtrax queries. (TODO: do these still exist?)
         buf.add(new GUIDFilter());
 
-        //2. Duplicate-based techniques.
+        //2. Queries containing hash urns.
+        if (FilterSettings.FILTER_HASH_QUERIES.getValue())
+            buf.add(new HashFilter());
+
+        //3. Hostile IP addresses.
+        buf.add(hostileFilter.get());
+
+        //4. Duplicate-based techniques.
         if (FilterSettings.FILTER_DUPLICATES.getValue()) {
             buf.add(new DuplicateFilter());
             buf.add(repetitiveQueryFilter.get());
         }
 
-        //3. Greedy queries.  Yes, this is a route filter issue.
+        //5. Greedy queries.  Yes, this is a route filter issue.  This comes
+        //   after the duplicate-based techniques because it may change the
+        //   TTL that they look at.
         if (FilterSettings.FILTER_GREEDY_QUERIES.getValue())
             buf.add(new GreedyQueryFilter());
 
-        //4. Queries containing hash urns.
-        if (FilterSettings.FILTER_HASH_QUERIES.getValue())
-            buf.add(new HashFilter());
-
-        //5. Hostile IP addresses.
-        buf.add(hostileFilter.get());
-
         //6. Query replies with suspicious GUIDs.
         if (FilterSettings.CLIENT_GUID_FILTER.getValue())
             buf.add(new ClientGuidFilter());
@@ -0,0 +1,537 @@
+package com.limegroup.gnutella.library;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.limewire.collection.IntSet;
+import org.limewire.util.StringUtils;
+
+/**
+ * A {@link KeywordIndex} that keeps its keywords in a sorted,
+ * prefix-compressed dictionary with delta and varint encoded lists of
+ * indices, stored in direct buffers outside of the heap.
+ * <p>
+ * The dictionary is immutable. Changes go into a small delta on the heap,
+ * which is merged into a new dictionary once it has grown to half the size
+ * of the dictionary, or when the index is trimmed. Queries never lock: they
+ * read the dictionary and delta of the current generation, which changes by
+ * a single volatile write. Updates are serialized on this.
+ * <p>
+ * Keywords are stored as UTF-8, which sorts in code point order, so all
+ * keywords with a given prefix are next to each other in the dictionary.
+ */
+class CompactKeywordIndex implements KeywordIndex {
+
+    /**
+     * The number of keywords per block of the dictionary. The first keyword
+     * of each block is stored in full, the others only store the part that
+     * differs from the keyword before.
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    /** The minimum number of changes in the delta before it is merged. */
+    private static final int MIN_MERGE_SIZE = 4096;
+
+    private static final Comparator<byte[]> UTF8_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return CompactKeywordIndex.compare(a, a.length, b, b.length);
+        }
+    };
+
+    private volatile Generation generation = new Generation(Dictionary.EMPTY);
+
+    /** The number of changes in the delta of the current generation. */
+    private int deltaSize;
+
+    @Override
+    public String canonicalCase(String s) {
+        return s.toUpperCase(Locale.US).toLowerCase(Locale.US);
+    }
+
+    @Override
+    public synchronized void add(String[] keywords, int index) {
+        Generation current = generation;
+        for (String keyword : keywords) {
+            String key = canonicalCase(keyword);
+            int[] indices = current.added.get(key);
+            if (indices == null) {
+                current.added.put(key, new int[] { index });
+                deltaSize++;
+            } else if (Arrays.binarySearch(indices, index) < 0) {
+                current.added.put(key, insert(indices, index));
+                deltaSize++;
+            }
+        }
+        mergeIfNeeded();
+    }
+
+    @Override
+    public synchronized void remove(String[] keywords, int index) {
+        Generation current = generation;
+        for (String keyword : keywords) {
+            String key = canonicalCase(keyword);
+            int[] indices = current.added.get(key);
+            if (indices != null) {
+                int[] removed = remove(indices, index);
+                if (removed == null)
+                    current.added.remove(key);
+                else if (removed != indices)
+                    current.added.put(key, removed);
+            }
+        }
+        // the dictionary is immutable, mask all its entries for the index
+        if (current.dictionary.size() > 0 && current.removed.put(index, Boolean.TRUE) == null)
+            deltaSize++;
+        mergeIfNeeded();
+    }
+
+    @Override
+    public IntSet getPrefixedBy(String query, int startOffset, int stopOffset, boolean shared) {
+        Generation current = generation;
+        String prefix = query.substring(startOffset, stopOffset);
+        IntSet matches = new IntSet();
+        current.dictionary.addPrefixedBy(StringUtils.toUTF8Bytes(prefix),
+                current.removed.isEmpty() ? null : current.removed.keySet(), matches);
+        for (Map.Entry<String, int[]> entry : current.added.tailMap(prefix).entrySet()) {
+            if (!entry.getKey().startsWith(prefix))
+                break;
+            for (int index : entry.getValue())
+                matches.add(index);
+        }
+        return matches.size() == 0 ? null : matches;
+    }
+
+    @Override
+    public synchronized void clear() {
+        generation = new Generation(Dictionary.EMPTY);
+        deltaSize = 0;
+    }
+
+    @Override
+    public synchronized void trim() {
+        if (deltaSize > 0)
+            merge();
+    }
+
+    @Override
+    public int size() {
+        Generation current = generation;
+        return current.dictionary.size() + current.added.size();
+    }
+
+    /** Returns the number of bytes the dictionary uses outside of the heap. */
+    long getDictionaryBytes() {
+        return generation.dictionary.getBytes();
+    }
+
+    private void mergeIfNeeded() {
+        if (deltaSize >= Math.max(MIN_MERGE_SIZE, generation.dictionary.getIndexCount() / 2))
+            merge();
+    }
+
+    /**
+     * Writes a new dictionary with the changes of the delta and publishes it
+     * with an empty delta.
+     */
+    private void merge() {
+        Generation current = generation;
+        Set<Integer> removed = current.removed.isEmpty() ? null : current.removed.keySet();
+
+        byte[][] keys = new byte[current.added.size()][];
+        int[][] values = new int[keys.length][];
+        int n = 0;
+        for (Map.Entry<String, int[]> entry : current.added.entrySet()) {
+            keys[n] = StringUtils.toUTF8Bytes(entry.getKey());
+            values[n++] = entry.getValue();
+        }
+        // String order differs from UTF-8 order for supplementary characters
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        final byte[][] sortKeys = keys;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return UTF8_ORDER.compare(sortKeys[a], sortKeys[b]);
+            }
+        });
+
+        DictionaryWriter writer = new DictionaryWriter();
+        Dictionary.Cursor cursor = current.dictionary.cursor();
+        boolean hasOld = cursor.next();
+        int next = 0;
+        IntSet merged = new IntSet();
+        while (hasOld || next < n) {
+            byte[] added = next < n ? keys[order[next]] : null;
+            int cmp = !hasOld ? 1 : added == null ? -1
+                    : compare(cursor.term, cursor.termLength, added, added.length);
+            merged.clear();
+            byte[] term;
+            int termLength;
+            if (cmp <= 0) {
+                term = cursor.term;
+                termLength = cursor.termLength;
+                cursor.addIndices(removed, merged);
+            } else {
+                term = added;
+                termLength = added.length;
+            }
+            if (cmp >= 0) {
+                for (int index : values[order[next++]])
+                    merged.add(index);
+            }
+            // write before advancing, the cursor reuses its term buffer
+            writer.add(term, termLength, merged);
+            if (cmp <= 0)
+                hasOld = cursor.next();
+        }
+
+        generation = new Generation(writer.toDictionary());
+        deltaSize = 0;
+    }
+
+    /** Returns a copy of the sorted array with <code>index</code> added. */
+    private static int[] insert(int[] indices, int index) {
+        int at = -Arrays.binarySearch(indices, index) - 1;
+        int[] copy = new int[indices.length + 1];
+        System.arraycopy(indices, 0, copy, 0, at);
+        copy[at] = index;
+        System.arraycopy(indices, at, copy, at + 1, indices.length - at);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of the sorted array without <code>index</code>, the
+     * same array if it didn't contain it, or null if it would be empty.
+     */
+    private static int[] remove(int[] indices, int index) {
+        int at = Arrays.binarySearch(indices, index);
+        if (at < 0)
+            return indices;
+        if (indices.length == 1)
+            return null;
+        int[] copy = new int[indices.length - 1];
+        System.arraycopy(indices, 0, copy, 0, at);
+        System.arraycopy(indices, at + 1, copy, at, copy.length - at);
+        return copy;
+    }
+
+    /** Compares two byte strings as unsigned bytes. */
+    private static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return aLength - bLength;
+    }
+
+    private static boolean startsWith(byte[] term, int termLength, byte[] prefix) {
+        if (termLength < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (term[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int readVarint(ByteBuffer buffer, int[] position) {
+        int pos = position[0];
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(pos++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        position[0] = pos;
+        return value;
+    }
+
+    /**
+     * A dictionary with the changes made since, which is replaced as a
+     * whole when the changes are merged.
+     */
+    private static class Generation {
+        final Dictionary dictionary;
+
+        /** Keywords added since the dictionary was written. */
+        final ConcurrentSkipListMap<String, int[]> added = new ConcurrentSkipListMap<String, int[]>();
+
+        /** Indices whose entries in the dictionary are no longer valid. */
+        final ConcurrentHashMap<Integer, Boolean> removed = new ConcurrentHashMap<Integer, Boolean>();
+
+        Generation(Dictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+    }
+
+    /**
+     * The immutable, encoded keywords and indices. Only absolute reads are
+     * made from the buffers, so any number of threads can read at once.
+     * <p>
+     * Each keyword is stored as the varint length of the prefix it shares
+     * with the keyword before, the varint length of the rest and its bytes,
+     * then the varint number of indices and the varint length of their
+     * encoding. The indices are stored in ascending order as varint
+     * differences to the index before.
+     */
+    private static class Dictionary {
+
+        static final Dictionary EMPTY = new Dictionary(ByteBuffer.allocateDirect(0),
+                ByteBuffer.allocateDirect(0), new int[0], new int[0], 0, 0);
+
+        private final ByteBuffer terms;
+
+        private final ByteBuffer indices;
+
+        /** The offset in terms of the first keyword of each block. */
+        private final int[] blockTerms;
+
+        /** The offset in indices of the first keyword of each block. */
+        private final int[] blockIndices;
+
+        private final int size;
+
+        private final int indexCount;
+
+        Dictionary(ByteBuffer terms, ByteBuffer indices, int[] blockTerms, int[] blockIndices,
+                int size, int indexCount) {
+            this.terms = terms;
+            this.indices = indices;
+            this.blockTerms = blockTerms;
+            this.blockIndices = blockIndices;
+            this.size = size;
+            this.indexCount = indexCount;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getIndexCount() {
+            return indexCount;
+        }
+
+        long getBytes() {
+            return terms.capacity() + indices.capacity();
+        }
+
+        Cursor cursor() {
+            return new Cursor(0);
+        }
+
+        /**
+         * Adds the indices of all keywords starting with <code>prefix</code>
+         * to <code>matches</code>, skipping the ones in <code>removed</code>.
+         */
+        void addPrefixedBy(byte[] prefix, Set<Integer> removed, IntSet matches) {
+            if (size == 0)
+                return;
+            Cursor cursor = new Cursor(findBlock(prefix));
+            while (cursor.next()) {
+                if (startsWith(cursor.term, cursor.termLength, prefix))
+                    cursor.addIndices(removed, matches);
+                else if (compare(cursor.term, cursor.termLength, prefix, prefix.length) > 0)
+                    break;
+            }
+        }
+
+        /**
+         * Returns the last block whose first keyword is not greater than the
+         * prefix, or the first block if there is none.
+         */
+        private int findBlock(byte[] prefix) {
+            int low = 0;
+            int high = blockTerms.length - 1;
+            int[] position = new int[1];
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                position[0] = blockTerms[mid];
+                readVarint(terms, position); // always 0 at block starts
+                int length = readVarint(terms, position);
+                if (compareAt(position[0], length, prefix) <= 0)
+                    low = mid;
+                else
+                    high = mid - 1;
+            }
+            return low;
+        }
+
+        private int compareAt(int offset, int length, byte[] b) {
+            int common = Math.min(length, b.length);
+            for (int i = 0; i < common; i++) {
+                int cmp = (terms.get(offset + i) & 0xFF) - (b[i] & 0xFF);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return length - b.length;
+        }
+
+        /** Decodes keywords in order, starting at a block. */
+        class Cursor {
+            byte[] term = new byte[32];
+
+            int termLength;
+
+            private int count;
+
+            private int indicesLength;
+
+            private int keyword;
+
+            private final int[] termPosition = new int[1];
+
+            private int indexPosition;
+
+            Cursor(int block) {
+                if (block < blockTerms.length) {
+                    termPosition[0] = blockTerms[block];
+                    indexPosition = blockIndices[block];
+                }
+                keyword = block * BLOCK_SIZE;
+            }
+
+            /** Moves to the next keyword, returning false at the end. */
+            boolean next() {
+                if (keyword >= size)
+                    return false;
+                indexPosition += indicesLength;
+                int shared = readVarint(terms, termPosition);
+                int suffix = readVarint(terms, termPosition);
+                termLength = shared + suffix;
+                if (termLength > term.length)
+                    term = Arrays.copyOf(term, Math.max(termLength, term.length * 2));
+                for (int i = 0; i < suffix; i++)
+                    term[shared + i] = terms.get(termPosition[0] + i);
+                termPosition[0] += suffix;
+                count = readVarint(terms, termPosition);
+                indicesLength = readVarint(terms, termPosition);
+                keyword++;
+                return true;
+            }
+
+            /** Adds the indices of the current keyword that aren't removed. */
+            void addIndices(Set<Integer> removed, IntSet matches) {
+                int[] position = new int[] { indexPosition };
+                int index = 0;
+                for (int i = 0; i < count; i++) {
+                    index += readVarint(indices, position);
+                    if (removed == null || !removed.contains(index))
+                        matches.add(index);
+                }
+            }
+        }
+    }
+
+    /** Encodes keywords, given in UTF-8 order, into a new dictionary. */
+    private static class DictionaryWriter {
+        private byte[] terms = new byte[1024];
+
+        private int termsLength;
+
+        private byte[] indices = new byte[1024];
+
+        private int indicesLength;
+
+        private int[] blockTerms = new int[16];
+
+        private int[] blockIndices = new int[16];
+
+        private byte[] last = new byte[32];
+
+        private int lastLength;
+
+        private int size;
+
+        private int indexCount;
+
+        /** Adds the keyword unless it has no indices left. */
+        void add(byte[] term, int termLength, IntSet values) {
+            if (values.size() == 0)
+                return;
+            int shared = 0;
+            if (size % BLOCK_SIZE == 0) {
+                int block = size / BLOCK_SIZE;
+                if (block == blockTerms.length) {
+                    blockTerms = Arrays.copyOf(blockTerms, block * 2);
+                    blockIndices = Arrays.copyOf(blockIndices, block * 2);
+                }
+                blockTerms[block] = termsLength;
+                blockIndices[block] = indicesLength;
+            } else {
+                int max = Math.min(termLength, lastLength);
+                while (shared < max && term[shared] == last[shared])
+                    shared++;
+            }
+
+            int start = indicesLength;
+            int previous = 0;
+            for (IntSet.IntSetIterator iter = values.iterator(); iter.hasNext();) {
+                int index = iter.next();
+                writeIndex(index - previous);
+                previous = index;
+            }
+
+            ensureTerms(termLength - shared + 20);
+            writeTerm(shared);
+            writeTerm(termLength - shared);
+            System.arraycopy(term, shared, terms, termsLength, termLength - shared);
+            termsLength += termLength - shared;
+            writeTerm(values.size());
+            writeTerm(indicesLength - start);
+
+            if (termLength > last.length)
+                last = new byte[Math.max(termLength, last.length * 2)];
+            System.arraycopy(term, 0, last, 0, termLength);
+            lastLength = termLength;
+            size++;
+            indexCount += values.size();
+        }
+
+        Dictionary toDictionary() {
+            if (size == 0)
+                return Dictionary.EMPTY;
+            ByteBuffer termBuffer = ByteBuffer.allocateDirect(termsLength);
+            termBuffer.put(terms, 0, termsLength);
+            ByteBuffer indexBuffer = ByteBuffer.allocateDirect(indicesLength);
+            indexBuffer.put(indices, 0, indicesLength);
+            int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            return new Dictionary(termBuffer, indexBuffer, Arrays.copyOf(blockTerms, blocks),
+                    Arrays.copyOf(blockIndices, blocks), size, indexCount);
+        }
+
+        private void ensureTerms(int length) {
+            if (termsLength + length > terms.length)
+                terms = Arrays.copyOf(terms, Math.max(termsLength + length, terms.length * 2));
+        }
+
+        private void writeTerm(int value) {
+            while ((value & ~0x7F) != 0) {
+                terms[termsLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            terms[termsLength++] = (byte) value;
+        }
+
+        private void writeIndex(int value) {
+            if (indicesLength + 5 > indices.length)
+                indices = Arrays.copyOf(indices, indices.length * 2);
+            while ((value & ~0x7F) != 0) {
+                indices[indicesLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            indices[indicesLength++] = (byte) value;
+        }
+    }
+}
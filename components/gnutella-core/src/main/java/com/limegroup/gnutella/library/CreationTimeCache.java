@@ -1,13 +1,11 @@
 package com.limegroup.gnutella.library;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -30,6 +28,7 @@ import org.limewire.collection.Comparators;
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.inject.EagerSingleton;
 import org.limewire.io.IOUtils;
+import org.limewire.io.RecordStore;
 import org.limewire.lifecycle.Service;
 import org.limewire.lifecycle.ServiceRegistry;
 import org.limewire.listener.EventListener;
@@ -37,6 +36,7 @@ import org.limewire.util.CommonUtils;
 import org.limewire.util.ConverterObjectInputStream;
 import org.limewire.util.FileUtils;
 import org.limewire.util.GenericsUtils;
+import org.limewire.util.StringUtils;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
@@ -62,6 +62,9 @@ import com.limegroup.gnutella.messages.QueryRequest;
  * lookup. This is a consequence of partial file sharing. It is the case that
  * the URNs in the sets of the Time->URNSet lookup are a subset of the URNs in
  * the URN->Time lookup. For more details, see addTime and commitTime.
+ * <p>
+ * The URN->Time lookup is persisted in a {@link RecordStore}, so only the
+ * times that changed are written out.
  */
 @EagerSingleton
 public class CreationTimeCache {
@@ -69,11 +72,25 @@ public class CreationTimeCache {
     private static final Log LOG = LogFactory.getLog(CreationTimeCache.class);
 
     /**
-     * File where creation times for files are stored.
+     * Name of the store where creation times for files are stored.
+     */
+    private static final String CTIME_STORE_NAME = "createtimes";
+
+    /**
+     * Version of the records in the store.
+     */
+    private static final int CTIME_STORE_VERSION = 1;
+
+    /**
+     * File where creation times for files were serialized by older versions;
+     * read once to fill the store.
      */
     private final File CTIME_CACHE_FILE = new File(CommonUtils.getUserSettingsDir(),
             "createtimes.cache");
 
+    private final RecordStore store = new RecordStore(CommonUtils.getUserSettingsDir(),
+            CTIME_STORE_NAME, CTIME_STORE_VERSION);
+
     /**
      * Whether or not data is dirty since the last time we saved.
      */
@@ -216,8 +233,10 @@ public class CreationTimeCache {
     synchronized void removeTime(URN urn) {
         Long time = getUrnToTime().remove(urn);
         removeURNFromURNSet(urn, time);
-        if (time != null)
+        if (time != null) {
+            store.remove(toKey(urn));
             dirty = true;
+        }
     }
 
     /**
@@ -242,6 +261,7 @@ public class CreationTimeCache {
                 if ((fd == null) || (fd.getFile() == null) || !fd.getFile().exists()) {
                     dirty = true;
                     iter.remove();
+                    store.remove(toKey(currURN));
                     if (shouldClearURNSetMap)
                         removeURNFromURNSet(currURN, cTime);
                 }
@@ -277,6 +297,7 @@ public class CreationTimeCache {
         if (existing == null || !existing.equals(cTime)) {
             dirty = true;
             getUrnToTime().put(urn, cTime);
+            store.put(toKey(urn), toValue(time));
         }
     }
 
@@ -394,18 +415,13 @@ public class CreationTimeCache {
         if (!dirty)
             return;
 
-        // It's not ideal to hold a lock while writing to disk, but I doubt
-        // think
-        // it's a problem in practice.
-        ObjectOutputStream oos = null;
+        // It's not ideal to hold a lock while writing to disk, but only
+        // the changes are written.
+        getMaps();
         try {
-            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
-                    CTIME_CACHE_FILE)));
-            oos.writeObject(getUrnToTime());
+            store.flush();
         } catch (IOException e) {
             LOG.error("Unable to write creation cache", e);
-        } finally {
-            IOUtils.close(oos);
         }
 
         dirty = false;
@@ -467,9 +483,58 @@ public class CreationTimeCache {
     }
 
     /**
-     * Loads values from cache file, if available.
+     * Loads values from the store, filling it from the serialized cache file
+     * of older versions if there is no store yet.
+     */
+    private Map<URN, Long> createMap() {
+        try {
+            if (store.open()) {
+                return readStore();
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to open creation time store", e);
+            store.clear();
+            return new HashMap<URN, Long>();
+        }
+        
+        Map<URN, Long> map = readCacheFile();
+        for (Map.Entry<URN, Long> entry : map.entrySet()) {
+            store.put(toKey(entry.getKey()), toValue(entry.getValue()));
+        }
+        try {
+            store.compact();
+            CTIME_CACHE_FILE.delete();
+        } catch (IOException e) {
+            LOG.error("Unable to migrate creation time file", e);
+        }
+        return map;
+    }
+
+    /**
+     * Reads every creation time in the store. Invalid records are removed.
      */
-    Map<URN, Long> createMap() {
+    private Map<URN, Long> readStore() {
+        Map<URN, Long> map = new HashMap<URN, Long>(store.size());
+        for (byte[] key : store.keys()) {
+            byte[] value = store.get(key);
+            try {
+                if (value == null || value.length != 8)
+                    throw new IOException("invalid time");
+                long time = ByteBuffer.wrap(value).getLong();
+                map.put(URN.createUrnFromString(StringUtils.getUTF8String(key)), time);
+            } catch (IOException e) {
+                LOG.warn("Removing invalid creation time", e);
+                store.remove(key);
+                dirty = true;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Loads values from the serialized cache file, if available.
+     */
+    private Map<URN, Long> readCacheFile() {
         if (!CTIME_CACHE_FILE.exists()) {
             dirty = true;
             return new HashMap<URN, Long>();
@@ -490,6 +555,14 @@ public class CreationTimeCache {
         }
     }
 
+    private static byte[] toKey(URN urn) {
+        return StringUtils.toUTF8Bytes(urn.httpStringValue());
+    }
+
+    private static byte[] toValue(long time) {
+        return ByteBuffer.allocate(8).putLong(time).array();
+    }
+
     private static class Maps {
         /** URN -> Creation Time (Long) */
         private final Map<URN, Long> urnToTime;
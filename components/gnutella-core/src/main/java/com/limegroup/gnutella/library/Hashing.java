@@ -0,0 +1,18 @@
+package com.limegroup.gnutella.library;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+
+import com.google.inject.BindingAnnotation;
+
+/** Marker annotation indicating the executorservice that files are hashed in. */
+@BindingAnnotation
+@Target( { FIELD, PARAMETER, METHOD })
+@Retention(RUNTIME)
+@interface Hashing {
+}
@@ -0,0 +1,41 @@
+package com.limegroup.gnutella.library;
+
+import org.limewire.collection.IntSet;
+
+/**
+ * Maps the keywords of shared files to the indices of the files.
+ * Keywords are matched ignoring case.
+ */
+interface KeywordIndex {
+
+    /**
+     * Returns the case that keywords are stored in. Queries passed to
+     * {@link #getPrefixedBy(String, int, int, boolean)} must be in this case.
+     */
+    String canonicalCase(String s);
+
+    /** Adds <code>index</code> to the indices of each keyword. */
+    void add(String[] keywords, int index);
+
+    /** Removes <code>index</code> from the indices of each keyword. */
+    void remove(String[] keywords, int index);
+
+    /**
+     * Returns the indices of all files with a keyword starting with
+     * <code>query[startOffset...stopOffset - 1]</code>, or null if there
+     * are none.
+     * 
+     * @param shared if true the returned set may belong to the index and
+     *        must not be mutated or kept, otherwise it belongs to the caller
+     */
+    IntSet getPrefixedBy(String query, int startOffset, int stopOffset, boolean shared);
+
+    /** Removes all keywords. */
+    void clear();
+
+    /** Compacts the index, only affects performance, not correctness. */
+    void trim();
+
+    /** Returns the number of keywords in the index. */
+    int size();
+}
@@ -1,5 +1,6 @@
 package com.limegroup.gnutella.library;
 
+import java.io.File;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 
@@ -72,11 +73,25 @@ public class LimeWireLibraryModule extends AbstractModule {
         bind(ExecutorService.class).annotatedWith(DiskIo.class).toInstance(diskE);
         bind(Executor.class).annotatedWith(DiskIo.class).toInstance(diskE);
         
+        ListeningExecutorService hashingE = ExecutorsHelper.newFixedSizeThreadPool(getHashingThreads(), "Library Hashing Thread");
+        bind(ListeningExecutorService.class).annotatedWith(Hashing.class).toInstance(hashingE);
+        
         EventListenerList<FileProcessingEvent> processingList = new EventListenerList<FileProcessingEvent>();
         bind(new TypeLiteral<EventListenerList<FileProcessingEvent>>(){}).toInstance(processingList);
         bind(new TypeLiteral<EventBroadcaster<FileProcessingEvent>>(){}).toInstance(processingList);
     }
     
+    /**
+     * Returns the number of files that are hashed at once: two per file
+     * system root, so one file can be read while another is digested, but
+     * never more than there are processors.
+     */
+    static int getHashingThreads() {
+        File[] roots = File.listRoots();
+        int disks = roots == null ? 1 : Math.max(1, roots.length);
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), disks * 2));
+    }
+    
     @Provides LibraryFileData lfd(LibraryImpl library) {
         return library.getLibraryData();
     }
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import org.limewire.concurrent.FutureEvent;
 import org.limewire.concurrent.ListeningFuture;
@@ -21,6 +22,7 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
 import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.UrnSet;
 import com.limegroup.gnutella.hashing.AudioHashingUtils;
 import com.limegroup.gnutella.library.SharedFileCollectionChangeEvent.Type;
 import com.limegroup.gnutella.tigertree.HashTreeCache;
@@ -126,25 +128,12 @@ class SharedFileCollectionImpl extends AbstractFileCollection implements SharedF
     @Override
     protected boolean addFileDescImpl(FileDesc fileDesc) {
         if(super.addFileDescImpl(fileDesc)) {
-            // if no root, calculate one and propagate it.
-            if(fileDesc.getTTROOTUrn() == null) {
-                // Schedule all additions for having a hash tree root.
-                URN root = treeCache.getOrScheduleHashTreeRoot(fileDesc);
-                if(root != null) {
-                	for(FileDesc fd : library.getFileDescsMatching(fileDesc.getSHA1Urn())) {
-                	    fd.addUrn(root);
-                	}
-                }
-            } 
-            // if this file already has a SHA1, try creating the nms1.
-            // we want to ensure the SHA1 and FD are valid for this list
-            // so if they don't exist, we will wait till after the SHA1
-            // has been calculated. the nms1 and sha1 use the same thread
-            // and calculating the SHA1 is more important. 
+            // if this file already has a SHA1, fill in the tree root and nms1.
             // if no SHA1 exists yet, we're guarenteed to recieve
-            // a FILE_META_CHANGED event
+            // a FILE_META_CHANGED event once the pass that calculates
+            // the SHA1 has calculated the others too.
             if(fileDesc.getSHA1Urn() != null) {
-                calculateNonMetaDataHash(fileDesc);
+                calculateMissingUrns(fileDesc);
             }
             return true;
         } else {
@@ -156,35 +145,60 @@ class SharedFileCollectionImpl extends AbstractFileCollection implements SharedF
     protected void fileMetaChanged(final FileDesc fileDesc) {
         super.fileMetaChanged(fileDesc);
         
-        // if this FileDesc still exists in this list, try creating NMS1.
-        // this will only be called on a new library load or if a file
-        // was added directly to the shared list. 
-        if(contains(fileDesc)) {
-            calculateNonMetaDataHash(fileDesc);
+        // if this FileDesc still exists in this list, try creating the
+        // root and NMS1. this will only be called on a new library load or
+        // if a file was added directly to the shared list. 
+        if(contains(fileDesc) && fileDesc.getSHA1Urn() != null) {
+            calculateMissingUrns(fileDesc);
         }
     }
     
     /**
-     * Attempts to calculate the NMS1 for this FileDesc if we're
-     * allowing NMS1 and the FileDesc doesn't already contain it 
-     * and it can be created for this file type.
+     * Adds the tiger tree root and, if we're allowing NMS1 and it can be
+     * created for this file type, the NMS1 to this FileDesc if it doesn't
+     * contain them. A root known by the tree cache is used as is, anything
+     * else is calculated by the UrnCache in a single pass over the file.
      */
-    private void calculateNonMetaDataHash(final FileDesc fileDesc) {
-        if(URNSettings.USE_NON_METADATA_HASH.get() && 
-            fileDesc.getNMS1Urn() == null &&
-            AudioHashingUtils.canCreateNonMetaDataSHA1(fileDesc.getFile())) {
-                ListeningFuture<URN> urnFuture = urnCache.calculateAndCacheNMS1(fileDesc.getFile());
-                urnFuture.addFutureListener(new EventListener<FutureEvent<URN>>(){
-                    @Override
-                    public void handleEvent(FutureEvent<URN> event) {
-                        URN urn = event.getResult();
-                        if(urn != null && urn.isNMS1()) {
-                            for(FileDesc fd : library.getFileDescsMatching(fileDesc.getSHA1Urn())) {
-                                fd.addUrn(urn);
+    private void calculateMissingUrns(final FileDesc fileDesc) {
+        if(fileDesc.getTTROOTUrn() == null) {
+            URN root = treeCache.getHashTreeRootForSha1(fileDesc.getSHA1Urn());
+            if(root != null) {
+                addUrn(fileDesc.getSHA1Urn(), root);
+            }
+        }
+        if(fileDesc instanceof IncompleteFileDesc) {
+            return;
+        }
+        if(fileDesc.getTTROOTUrn() == null || needsNonMetaDataHash(fileDesc)) {
+            ListeningFuture<Set<URN>> urnFuture = urnCache.calculateAndCacheUrns(fileDesc.getFile());
+            urnFuture.addFutureListener(new EventListener<FutureEvent<Set<URN>>>() {
+                @Override
+                public void handleEvent(FutureEvent<Set<URN>> event) {
+                    Set<URN> urns = event.getResult();
+                    URN sha1 = fileDesc.getSHA1Urn();
+                    // the file may have changed since the fd was created
+                    if(urns != null && sha1.equals(UrnSet.getSha1(urns))) {
+                        for(URN urn : urns) {
+                            if(urn.isTTRoot() || urn.isNMS1()) {
+                                addUrn(sha1, urn);
                             }
                         }
                     }
-                });
+                }
+            });
+        }
+    }
+    
+    private boolean needsNonMetaDataHash(FileDesc fileDesc) {
+        return URNSettings.USE_NON_METADATA_HASH.get() && 
+            fileDesc.getNMS1Urn() == null &&
+            AudioHashingUtils.canCreateNonMetaDataSHA1(fileDesc.getFile());
+    }
+    
+    /** Adds the URN to all FileDescs of the file with the given SHA1. */
+    private void addUrn(URN sha1, URN urn) {
+        for(FileDesc fd : library.getFileDescsMatching(sha1)) {
+            fd.addUrn(urn);
         }
     }
 
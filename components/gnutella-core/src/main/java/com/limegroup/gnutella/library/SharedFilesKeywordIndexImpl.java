@@ -5,15 +5,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
-import org.limewire.collection.Function;
 import org.limewire.collection.IdentityHashSet;
 import org.limewire.collection.IntSet;
-import org.limewire.collection.MultiIterator;
-import org.limewire.collection.StringTrie;
 import org.limewire.core.api.Category;
 import org.limewire.core.settings.SearchSettings;
 import org.limewire.core.settings.SharingSettings;
@@ -51,7 +47,7 @@ import com.limegroup.gnutella.xml.SchemaReplyCollectionMapper;
 class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
 
     /**
-     * A trie mapping keywords in complete filenames to the indices in _files.
+     * An index mapping keywords in complete filenames to the indices in _files.
      * Keywords are the tokens when the filename is tokenized with the
      * characters from DELIMITERS as delimiters.
      * 
@@ -61,20 +57,16 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
      * _keywordTrie.get(k), _files[i]._path.substring(k)!=-1. Likewise for all
      * i, for all k in _files[i]._path where _files[i] is not an
      * IncompleteFileDesc, _keywordTrie.get(k) contains i.
-     * 
-     * Not threadsafe, hold lock on field.
      */
     @InspectableForSize(value = "size of keyword trie", category = DataCategory.USAGE)
-    private final StringTrie<IntSet> keywordTrie = new StringTrie<IntSet>(true);
+    private final KeywordIndex keywordTrie = createKeywordIndex();
 
     /**
-     * A trie mapping keywords in complete filenames to the indices in _files.
+     * An index mapping keywords in complete filenames to the indices in _files.
      * Contains ONLY incomplete keywords.
-     * 
-     * Not threadsafe, hold lock on field.
      */
     @InspectableForSize(value = "size of incomplete keyword trie", category = DataCategory.USAGE)
-    private final StringTrie<IntSet> incompleteKeywordTrieV2 = new StringTrie<IntSet>(true);
+    private final KeywordIndex incompleteKeywordTrieV2 = createKeywordIndex();
 
     private final Provider<CreationTimeCache> creationTimeCache;
 
@@ -111,6 +103,14 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
         this.mediaTypeAggregator = mediaTypeAggregator;
     }
     
+    private static KeywordIndex createKeywordIndex() {
+        if (SharingSettings.USE_COMPACT_KEYWORD_INDEX.getValue()) {
+            return new CompactKeywordIndex();
+        } else {
+            return new TrieKeywordIndex();
+        }
+    }
+    
     @Inject void register(ServiceRegistry registry, final ListenerSupport<FileDescChangeEvent> fileDescSupport) {
         registry.register(new Service() {
             @Override
@@ -395,38 +395,14 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
      * @param trie to update
      * @param fd to load keywords from
      */
-    private void loadKeywords(StringTrie<IntSet> trie, FileDesc fd) {
-        // Index the filename. For each keyword...
-        String[] keywords = extractKeywords(fd);
-
-        for (String keyword : keywords) {
-            synchronized (trie) {
-                // Ensure the _keywordTrie has a set of indices associated with
-                // keyword.
-                IntSet indices = trie.get(keyword);
-                if (indices == null) {
-                    indices = new IntSet();
-                    trie.add(keyword, indices);
-                }
-                // Add fileIndex to the set.
-                indices.add(fd.getIndex());
-            }
-        }
+    private void loadKeywords(KeywordIndex trie, FileDesc fd) {
+        // Index the filename.
+        trie.add(extractKeywords(fd), fd.getIndex());
     }
 
-    private void removeKeywords(StringTrie<IntSet> trie, FileDesc fd) {
+    private void removeKeywords(KeywordIndex trie, FileDesc fd) {
         // Remove references to this from index.
-        String[] keywords = extractKeywords(fd);
-        for (String keyword : keywords) {
-            synchronized (trie) {
-                IntSet indices = trie.get(keyword);
-                if (indices != null) {
-                    indices.remove(fd.getIndex());
-                    if (indices.size() == 0)
-                        trie.remove(keyword);
-                }
-            }
-        }
+        trie.remove(extractKeywords(fd), fd.getIndex());
     }
 
     /**
@@ -454,59 +430,37 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
                     break;
             }
 
-            // Search for keyword, i.e., keywords[i...j-1].
-            Iterator<IntSet> iter;
-            synchronized (keywordTrie) {
-                iter = keywordTrie.getPrefixedBy(query, i, j);
-            }
-            if (SharingSettings.ALLOW_PARTIAL_SHARING.getValue()
-                    && SharingSettings.ALLOW_PARTIAL_RESPONSES.getValue() && partial) {
-                Iterator<IntSet> incompleteIndices;
-                synchronized (incompleteKeywordTrieV2) {
-                    incompleteIndices = incompleteKeywordTrieV2.getPrefixedBy(query, i, j);
-                }
-                iter = new MultiIterator<IntSet>(iter, incompleteIndices);
+            // Search for keyword, i.e., keywords[i...j-1]. As an
+            // optimization, if this is the only keyword and there is only
+            // one set of matches, the index returns that set without copying.
+            boolean includeIncomplete = SharingSettings.ALLOW_PARTIAL_SHARING.getValue()
+                    && SharingSettings.ALLOW_PARTIAL_RESPONSES.getValue() && partial;
+            boolean shared = !includeIncomplete && ret == null && i == 0 && j == query.length();
+            IntSet matches = keywordTrie.getPrefixedBy(query, i, j, shared);
+            if (includeIncomplete) {
+                IntSet incompleteMatches = incompleteKeywordTrieV2.getPrefixedBy(query, i, j, false);
+                if (matches == null)
+                    matches = incompleteMatches;
+                else if (incompleteMatches != null)
+                    matches.addAll(incompleteMatches);
             }
 
-            synchronized (keywordTrie) {
-                synchronized (incompleteKeywordTrieV2) {
-                    if (iter.hasNext()) {
-                        // Got match. Union contents of the iterator and store
-                        // in
-                        // matches. As an optimization, if this is the only
-                        // keyword and
-                        // there is only one set returned, return that set
-                        // without
-                        // copying.
-                        IntSet matches = null;
-                        while (iter.hasNext()) {
-                            IntSet s = iter.next();
-                            if (matches == null) {
-                                if (i == 0 && j == query.length() && !(iter.hasNext()))
-                                    return s;
-                                matches = new IntSet();
-                            }
-                            matches.addAll(s);
-                        }
-
-                        // Intersect matches with ret. If ret isn't allocated,
-                        // initialize to matches.
-                        if (ret == null)
-                            ret = matches;
-                        else
-                            ret.retainAll(matches);
-                    } else {
-                        // No match. Optimization: no matches for keyword =>
-                        // failure
-                        return null;
-                    }
-
-                    // Optimization: no matches after intersect => failure
-                    if (ret.size() == 0)
-                        return null;
-                    i = j;
-                }
+            if (matches == null) {
+                // No match. Optimization: no matches for keyword => failure
+                return null;
             }
+
+            // Intersect matches with ret. If ret isn't allocated, initialize
+            // to matches.
+            if (ret == null)
+                ret = matches;
+            else
+                ret.retainAll(matches);
+
+            // Optimization: no matches after intersect => failure
+            if (ret.size() == 0)
+                return null;
+            i = j;
         }
         if (ret == null || ret.size() == 0)
             return null;
@@ -532,16 +486,8 @@ class SharedFilesKeywordIndexImpl implements SharedFilesKeywordIndex {
      * performance, not correctness; hence no modifies clause.
      */
     private void trim() {
-        for (StringTrie<IntSet> trie : new StringTrie[] { keywordTrie, incompleteKeywordTrieV2 }) {
-            synchronized (trie) {
-                trie.trim(new Function<IntSet, IntSet>() {
-                    public IntSet apply(IntSet intSet) {
-                        intSet.trim();
-                        return intSet;
-                    }
-                });
-            }
-        }
+        keywordTrie.trim();
+        incompleteKeywordTrieV2.trim();
     }
 
     /**
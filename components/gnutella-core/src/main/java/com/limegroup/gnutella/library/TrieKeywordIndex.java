@@ -0,0 +1,97 @@
+package com.limegroup.gnutella.library;
+
+import java.util.Iterator;
+
+import org.limewire.collection.Function;
+import org.limewire.collection.IntSet;
+import org.limewire.collection.StringTrie;
+
+/**
+ * A {@link KeywordIndex} that keeps keywords in a {@link StringTrie} of
+ * {@link IntSet IntSets}, guarded by the lock of the trie.
+ */
+class TrieKeywordIndex implements KeywordIndex {
+
+    private final StringTrie<IntSet> trie = new StringTrie<IntSet>(true);
+
+    @Override
+    public String canonicalCase(String s) {
+        return trie.canonicalCase(s);
+    }
+
+    @Override
+    public void add(String[] keywords, int index) {
+        for (String keyword : keywords) {
+            synchronized (trie) {
+                // Ensure the trie has a set of indices associated with
+                // keyword.
+                IntSet indices = trie.get(keyword);
+                if (indices == null) {
+                    indices = new IntSet();
+                    trie.add(keyword, indices);
+                }
+                // Add fileIndex to the set.
+                indices.add(index);
+            }
+        }
+    }
+
+    @Override
+    public void remove(String[] keywords, int index) {
+        for (String keyword : keywords) {
+            synchronized (trie) {
+                IntSet indices = trie.get(keyword);
+                if (indices != null) {
+                    indices.remove(index);
+                    if (indices.size() == 0)
+                        trie.remove(keyword);
+                }
+            }
+        }
+    }
+
+    @Override
+    public IntSet getPrefixedBy(String query, int startOffset, int stopOffset, boolean shared) {
+        synchronized (trie) {
+            Iterator<IntSet> iter = trie.getPrefixedBy(query, startOffset, stopOffset);
+            if (!iter.hasNext())
+                return null;
+            // As an optimization, if there is only one set and the caller
+            // doesn't need its own, return that set without copying.
+            IntSet s = iter.next();
+            if (shared && !iter.hasNext())
+                return s;
+            IntSet matches = new IntSet();
+            matches.addAll(s);
+            while (iter.hasNext())
+                matches.addAll(iter.next());
+            return matches;
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (trie) {
+            trie.clear();
+        }
+    }
+
+    @Override
+    public void trim() {
+        synchronized (trie) {
+            trie.trim(new Function<IntSet, IntSet>() {
+                public IntSet apply(IntSet intSet) {
+                    intSet.trim();
+                    return intSet;
+                }
+            });
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (trie) {
+            return trie.size();
+        }
+    }
+}
@@ -1,12 +1,18 @@
 package com.limegroup.gnutella.library;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -24,25 +30,34 @@ import org.limewire.concurrent.ListeningExecutorService;
 import org.limewire.concurrent.ListeningFuture;
 import org.limewire.concurrent.SimpleFuture;
 import org.limewire.core.api.library.FileProcessingEvent;
+import org.limewire.core.settings.URNSettings;
 import org.limewire.inject.EagerSingleton;
 import org.limewire.io.IOUtils;
+import org.limewire.io.RecordStore;
 import org.limewire.lifecycle.ServiceScheduler;
 import org.limewire.listener.EventBroadcaster;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.ConverterObjectInputStream;
-import org.limewire.util.FileUtils;
 import org.limewire.util.GenericsUtils;
+import org.limewire.util.StringUtils;
 
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.name.Named;
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.UrnSet;
 import com.limegroup.gnutella.hashing.AudioHashingUtils;
+import com.limegroup.gnutella.hashing.NonMetaDataHasher;
+import com.limegroup.gnutella.tigertree.HashTreeCache;
 
 /**
  * This class contains a systemwide URN cache that persists file URNs (hashes)
  * across sessions.
  * <p>
+ * The URNs are kept in a {@link RecordStore} keyed by file path, so starting
+ * up only reads the paths; the URNs of a file are read when it is first
+ * looked up, and only changed entries are written out.
+ * <p>
  * Modified by Gordon Mohr (2002/02/19): Added URN storage, calculation, caching
  * Repackaged by Greg Bildson (2002/02/19): Moved to dedicated class.
  * 
@@ -54,7 +69,18 @@ public final class UrnCache {
     private static final Log LOG = LogFactory.getLog(UrnCache.class);
 
     /**
-     * File where urns (currently SHA1 urns) for files are stored.
+     * Name of the store where urns for files are stored.
+     */
+    private static final String URN_STORE_NAME = "fileurns";
+
+    /**
+     * Version of the records in the store.
+     */
+    private static final int URN_STORE_VERSION = 1;
+
+    /**
+     * File where urns (currently SHA1 urns) for files were serialized by
+     * older versions; read once to fill the store.
      */
     private static final File URN_CACHE_FILE = new File(CommonUtils.getUserSettingsDir(),
             "fileurns.cache");
@@ -66,36 +92,61 @@ public final class UrnCache {
             "fileurns.bak");
 
     /**
-     * The ProcessingQueue that Files are hashed in.
+     * The ProcessingQueue that the cache is read in.
      */
     private final ListeningExecutorService QUEUE;
 
+    /**
+     * The bounded pool that Files are hashed in.
+     */
+    private final ListeningExecutorService hashingExecutor;
+
+    /**
+     * Files whose SHA1 is being calculated, so that concurrent requests for
+     * the same file share a single pass over it. Guarded by this.
+     */
+    private final Map<File, ListeningFuture<Set<URN>>> pendingSHA1s =
+        new HashMap<File, ListeningFuture<Set<URN>>>();
+
     /**
      * Whether or not data is dirty since the last time we saved.
      */
     private volatile boolean dirty = false;
 
-    /** The future that will contain the URN_MAP when it is done. */
-    private final Future<Map<UrnSetKey, Set<URN>>> deserializer;
+    /**
+     * The entries read from the store so far, by path. Guarded by this.
+     */
+    private final Map<String, UrnEntry> entries = new HashMap<String, UrnEntry>();
+
+    /** The future that will contain the opened store when it is done. */
+    private final Future<RecordStore> deserializer;
     
     private final EventBroadcaster<FileProcessingEvent> broadcaster;
 
+    /** The cache that is told the tree roots calculated here, null if none. */
+    private volatile Provider<HashTreeCache> treeCache;
+
     /**
      * Create and initialize urn cache.
      */
     @Inject
-    UrnCache(@DiskIo ListeningExecutorService diskIoExecutor, EventBroadcaster<FileProcessingEvent> broadcaster) {
+    UrnCache(@DiskIo ListeningExecutorService diskIoExecutor,
+            @Hashing ListeningExecutorService hashingExecutor,
+            EventBroadcaster<FileProcessingEvent> broadcaster) {
         this.QUEUE = diskIoExecutor;
+        this.hashingExecutor = hashingExecutor;
         this.broadcaster = broadcaster;
-        deserializer = QUEUE.submit(new Callable<Map<UrnSetKey, Set<URN>>>() {
-            @SuppressWarnings("unchecked")
-            public Map<UrnSetKey, Set<URN>> call() {
+        deserializer = QUEUE.submit(new Callable<RecordStore>() {
+            public RecordStore call() {
                 // This cannot be inside a synchronized block, otherwise other
                 // methods
                 // can block its construction.
-                Map map = createMap();
-                dirty = scanAndRemoveOldEntries(map);
-                return map;
+                return openStore();
+            }
+        });
+        QUEUE.execute(new Runnable() {
+            public void run() {
+                removeStaleEntries();
             }
         });
     }
@@ -111,11 +162,24 @@ public final class UrnCache {
         }, 30, 30, TimeUnit.SECONDS, scheduledExecutorService);
     }
 
+    /**
+     * Sets the cache that the tiger tree roots calculated by this are added
+     * to. This is not part of the constructor because the tree cache depends
+     * on the library, which depends on this.
+     */
+    @Inject
+    void setHashTreeCache(Provider<HashTreeCache> treeCache) {
+        this.treeCache = treeCache;
+    }
+
     /**
      * Calculates the given File's URN and caches it. The callback will be
      * notified of the URNs. If they're already calculated, the callback will be
      * notified immediately. Otherwise, it will be notified when hashing
      * completes, fails, or is interrupted.
+     * <p>
+     * The tiger tree root is calculated in the same pass over the file, as is
+     * the non-metadata SHA1 of audio files if non-metadata hashes are enabled.
      */
     public ListeningFuture<Set<URN>> calculateAndCacheSHA1(File file) {
         Set<URN> urns;
@@ -123,9 +187,7 @@ public final class UrnCache {
             urns = getUrns(file);
             // check that a SHA1 doesn't yet exist for this file.
             if (UrnSet.getSha1(urns) == null) {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("Adding: " + file + " to be hashed.");
-                return QUEUE.submit(new SHA1Processor(file));
+                return scheduleHashing(file);
             }
         }
 
@@ -134,27 +196,55 @@ public final class UrnCache {
     }
     
     /**
-     * Calculates the NonMetaData SHA1 for a File and caches it. The callback will be
-     * notified of the URN. If its already calculated, the callback will be
-     * notified immediately. Otherwise, it will be notified when hashing
-     * completes, fails, or is interrupted.
+     * Calculates the URNs of the given File that are not cached yet: the
+     * SHA1, the tiger tree root and, for audio files if non-metadata hashes
+     * are enabled, the non-metadata SHA1. All of them are calculated in a
+     * single pass over the file, which is shared with
+     * {@link #calculateAndCacheSHA1(File)}. If all of them are already cached,
+     * the callback will be notified immediately.
      */
-    public ListeningFuture<URN> calculateAndCacheNMS1(File file) {
-        URN nms1 = null;
-        synchronized(this) {
-            nms1 = UrnSet.getNMS1(getUrns(file));
-            // calculate nms1 if it doesn't exist already
-            if(nms1 == null) {
-                return QUEUE.submit(new NMS1Processor(file));
+    public ListeningFuture<Set<URN>> calculateAndCacheUrns(File file) {
+        Set<URN> urns;
+        synchronized (this) {
+            urns = getUrns(file);
+            if (!hasAllUrns(file, urns)) {
+                return scheduleHashing(file);
             }
         }
-        return new SimpleFuture<URN>(nms1);
+        return new SimpleFuture<Set<URN>>(urns);
     }
-
+    
+    /**
+     * Returns the pass that is calculating the URNs of the file, scheduling
+     * one if there is none.
+     */
+    private synchronized ListeningFuture<Set<URN>> scheduleHashing(File file) {
+        ListeningFuture<Set<URN>> pending = pendingSHA1s.get(file);
+        if (pending == null) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Adding: " + file + " to be hashed.");
+            pending = hashingExecutor.submit(new SHA1Processor(file));
+            pendingSHA1s.put(file, pending);
+        }
+        return pending;
+    }
+    
+    /**
+     * Returns true if <code>urns</code> contains every URN a pass over the
+     * file calculates.
+     */
+    private static boolean hasAllUrns(File file, Set<URN> urns) {
+        if (UrnSet.getSha1(urns) == null || UrnSet.resolve(urns).getTTRoot() == null)
+            return false;
+        return UrnSet.getNMS1(urns) != null || !URNSettings.USE_NON_METADATA_HASH.getValue()
+                || !AudioHashingUtils.canCreateNonMetaDataSHA1(file);
+    }
+    
     /**
      * Find any URNs remembered from a previous session for the specified
-     * <tt>File</tt> instance. The returned <tt>Set</tt> is guaranteed to be
-     * non-null, but it may be empty.
+     * <tt>File</tt> instance. URNs are only returned if the file still has the
+     * size and modification time it had when they were calculated. The
+     * returned <tt>Set</tt> is guaranteed to be non-null, but it may be empty.
      * 
      * @param file the <tt>File</tt> instance to look up URNs for
      * @return a new <tt>Set</tt> containing any cached URNs for the specified
@@ -168,16 +258,12 @@ public final class UrnCache {
             return Collections.emptySet();
         }
 
-        UrnSetKey key = new UrnSetKey(file);
-        if (key._modTime != modified) {
+        // entries only match if size and modification time are unchanged
+        UrnEntry entry = getEntry(file.getAbsolutePath());
+        if (entry == null || entry.modTime != modified || entry.length != file.length()) {
             return Collections.emptySet();
         } else {
-            Set<URN> cachedUrns = getUrnMap().get(key);
-            if (cachedUrns == null) {
-                return Collections.emptySet();
-            } else {
-                return cachedUrns;
-            }
+            return entry.urns;
         }
     }
 
@@ -185,8 +271,9 @@ public final class UrnCache {
      * Removes any URNs that associated with a specified file.
      */
     public synchronized void removeUrns(File f) {
-        UrnSetKey k = new UrnSetKey(f);
-        getUrnMap().remove(k);
+        String path = f.getAbsolutePath();
+        entries.remove(path);
+        getStore().remove(StringUtils.toUTF8Bytes(path));
         dirty = true;
     }
 
@@ -196,11 +283,101 @@ public final class UrnCache {
      * @param file the <tt>File</tt> instance containing URNs to store
      */
     public synchronized void addUrns(File file, Set<? extends URN> urns) {
-        UrnSetKey key = new UrnSetKey(file);
-        getUrnMap().put(key, UrnSet.unmodifiableSet(urns));
+        UrnEntry entry = new UrnEntry(file.lastModified(), file.length(), UrnSet.unmodifiableSet(urns));
+        String path = file.getAbsolutePath();
+        entries.put(path, entry);
+        getStore().put(StringUtils.toUTF8Bytes(path), entry.toBytes());
         dirty = true;
     }
 
+    /**
+     * Returns the entry for the path, reading it from the store if it hasn't
+     * been read yet.
+     */
+    private synchronized UrnEntry getEntry(String path) {
+        UrnEntry entry = entries.get(path);
+        if (entry == null) {
+            byte[] data = getStore().get(StringUtils.toUTF8Bytes(path));
+            if (data != null) {
+                entry = UrnEntry.fromBytes(data);
+                if (entry != null)
+                    entries.put(path, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Opens the store. If there is no store yet, it is filled from the
+     * serialized cache of older versions, which is then deleted.
+     */
+    private static RecordStore openStore() {
+        RecordStore store = new RecordStore(CommonUtils.getUserSettingsDir(), URN_STORE_NAME,
+                URN_STORE_VERSION);
+        try {
+            if (store.open())
+                return store;
+        } catch (IOException e) {
+            LOG.error("Unable to open UrnCache", e);
+            store.clear();
+            return store;
+        }
+
+        if (URN_CACHE_FILE.exists() || URN_CACHE_BACKUP_FILE.exists()) {
+            migrate(store);
+        }
+        return store;
+    }
+
+    /**
+     * Copies the entries of the serialized cache into the store and deletes
+     * the serialized cache.
+     */
+    @SuppressWarnings("unchecked")
+    private static void migrate(RecordStore store) {
+        Map map = createMap();
+        scanAndRemoveOldEntries(map);
+        for (Map.Entry<UrnSetKey, Set<URN>> entry : ((Map<UrnSetKey, Set<URN>>)map).entrySet()) {
+            UrnSetKey key = entry.getKey();
+            UrnEntry value = new UrnEntry(key._modTime, key._length, entry.getValue());
+            store.put(StringUtils.toUTF8Bytes(key._path), value.toBytes());
+        }
+        try {
+            store.compact();
+            URN_CACHE_FILE.delete();
+            URN_CACHE_BACKUP_FILE.delete();
+            if (LOG.isDebugEnabled())
+                LOG.debug("Migrated " + map.size() + " entries to the store");
+        } catch (IOException e) {
+            LOG.error("Unable to migrate UrnCache", e);
+        }
+    }
+
+    /**
+     * Removes the entries of files that were deleted or changed since they
+     * were hashed. This runs in the background after the store is opened,
+     * without holding up lookups.
+     */
+    private void removeStaleEntries() {
+        RecordStore store = getStore();
+        for (byte[] key : store.keys()) {
+            byte[] data = store.get(key);
+            UrnEntry entry = data == null ? null : UrnEntry.fromBytes(data);
+            File f = new File(StringUtils.getUTF8String(key));
+            if (entry == null || !f.exists() || f.lastModified() != entry.modTime
+                    || f.length() != entry.length) {
+                synchronized (this) {
+                    // unless the file was hashed again meanwhile
+                    if (Arrays.equals(data, store.get(key))) {
+                        store.remove(key);
+                        entries.remove(f.getPath());
+                        dirty = true;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Loads values from cache file, if available. If the cache file is not
      * readable, tries the backup.
@@ -245,28 +422,32 @@ public final class UrnCache {
      * 
      * @param map the <tt>Map</tt> to check
      */
-    private static boolean scanAndRemoveOldEntries(Map<Object, Object> map) {
+    private static void scanAndRemoveOldEntries(Map<Object, Object> map) {
         // discard outdated info
-        boolean dirty = false;
         for (Iterator<Map.Entry<Object, Object>> i = map.entrySet().iterator(); i.hasNext();) {
             Map.Entry<Object, Object> entry = i.next();
             if (!(entry.getKey() instanceof UrnSetKey)) {
                 i.remove();
-                dirty = true;
                 continue;
             }
 
             UrnSetKey key = (UrnSetKey) entry.getKey();
             File f = new File(key._path);
             if (!f.exists() || f.lastModified() != key._modTime) {
-                dirty = true;
+                i.remove();
+                continue;
+            }
+            
+            if (key._length == -1) {
+                // entry from before sizes were stored, the mod time matches
+                key._length = f.length();
+            } else if (key._length != f.length()) {
                 i.remove();
                 continue;
             }
 
             if (!(entry.getValue() instanceof Set)) {
                 i.remove();
-                dirty = true;
                 continue;
             }
 
@@ -274,17 +455,14 @@ public final class UrnCache {
                     GenericsUtils.ScanMode.NEW_COPY_REMOVED, UrnSet.class);
             if (set.isEmpty()) {
                 i.remove();
-                dirty = true;
                 continue;
             }
 
             if (set != entry.getValue()) { // if it changed, replace the value
                                            // w/ unmodifiable
-                dirty = true;
                 entry.setValue(UrnSet.unmodifiableSet(set));
             }
         }
-        return dirty;
     }
 
     /**
@@ -298,12 +476,15 @@ public final class UrnCache {
             return;
         }
         
-        if(FileUtils.writeWithBackupFile(getUrnMap(), URN_CACHE_BACKUP_FILE, URN_CACHE_FILE, LOG)) {
+        try {
+            getStore().flush();
             dirty = false;
+        } catch (IOException e) {
+            LOG.error("Unable to write UrnCache", e);
         }
     }
 
-    private Map<UrnSetKey, Set<URN>> getUrnMap() {
+    private RecordStore getStore() {
         boolean interrupted = Thread.interrupted();
         try {
             while (true) {
@@ -329,6 +510,16 @@ public final class UrnCache {
         }
 
         public Set<URN> call() {
+            try {
+                return calculate();
+            } finally {
+                synchronized (UrnCache.this) {
+                    pendingSHA1s.remove(file);
+                }
+            }
+        }
+        
+        private Set<URN> calculate() {
             if(broadcaster != null) {
                 broadcaster.broadcast(new FileProcessingEvent(FileProcessingEvent.Type.PROCESSING, file));
             }
@@ -339,11 +530,11 @@ public final class UrnCache {
             }
 
             // If not calculated, calculate OUTSIDE OF LOCK.
-            if(UrnSet.getSha1(urns) == null) {
+            if(!hasAllUrns(file, urns)) {
                 if (LOG.isDebugEnabled())
                     LOG.debug("Hashing sha1 file: " + file);
                 try {
-                    UrnSet calculatedUrns = URN.generateUrnsFromFile(file);
+                    UrnSet calculatedUrns = generateUrns(file);
                     UrnSet set = new UrnSet();
                     synchronized (UrnCache.this) {
                         set.addAll(getUrns(file));
@@ -351,6 +542,7 @@ public final class UrnCache {
                         addUrns(file, set);
                     }
                     urns = set;
+                    addRoot(calculatedUrns);
                 } catch (IOException ignored) {
                     LOG.warn("Unable to calculate SHA1", ignored);
                 } catch (InterruptedException ignored) {
@@ -363,54 +555,100 @@ public final class UrnCache {
     }
     
     /**
-     * Tries to calculate the Non-metadata sha1 of this file. If a 
-     * SHA1 is successfully created, the URNSet is updated and saved
-     * to disk.
+     * Passes the tiger tree root of a file to the tree cache, so that roots
+     * are known by SHA1 without reading the file again.
      */
-    private class NMS1Processor implements Callable<URN> {
-        private final File file;
-
-        NMS1Processor(File file) {
-            this.file = file;
+    private void addRoot(UrnSet urns) {
+        Provider<HashTreeCache> cache = treeCache;
+        URN sha1 = urns.getSHA1();
+        URN ttroot = urns.getTTRoot();
+        if (cache != null && sha1 != null && ttroot != null) {
+            cache.get().addRoot(sha1, ttroot);
         }
+    }
+    
+    /**
+     * Reads the file once to calculate its SHA1 and tiger tree root, and its
+     * non-metadata SHA1 if it is an audio file and non-metadata hashes are
+     * enabled.
+     */
+    private static UrnSet generateUrns(File file) throws IOException, InterruptedException {
+        long nms1Offset = 0;
+        long nms1Length = 0;
+        if (URNSettings.USE_NON_METADATA_HASH.getValue()
+                && AudioHashingUtils.canCreateNonMetaDataSHA1(file)) {
+            try {
+                NonMetaDataHasher hasher = AudioHashingUtils.getHasher(file);
+                nms1Offset = hasher.getStartPosition();
+                nms1Length = hasher.getEndPosition() - nms1Offset;
+            } catch (IOException e) {
+                LOG.warn("Unable to locate audio data", e);
+            } catch (NumberFormatException e) {
+                LOG.warn("Illegal value while parsing tag size", e);
+            }
+        }
+        return URN.generateUrnsFromFile(file, nms1Offset, nms1Length);
+    }
+    
+    /**
+     * The URNs of a file, with the modification time and size the file had
+     * when they were calculated.
+     */
+    private static class UrnEntry {
+        private final long modTime;
 
-        public URN call() {
-            Set<URN> urns;
-            URN nms1 = null;
+        private final long length;
 
-            synchronized (UrnCache.this) {
-                urns = getUrns(file); // already calculated?
+        private final Set<URN> urns;
+
+        UrnEntry(long modTime, long length, Set<URN> urns) {
+            this.modTime = modTime;
+            this.length = length;
+            this.urns = urns;
+        }
+
+        /**
+         * Writes the modification time, the size, the number of URNs and
+         * each URN as a string.
+         */
+        byte[] toBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeLong(modTime);
+                out.writeLong(length);
+                out.writeByte(urns.size());
+                for (URN urn : urns)
+                    out.writeUTF(urn.httpStringValue());
+            } catch (IOException impossible) {
+                throw new RuntimeException(impossible);
             }
+            return bytes.toByteArray();
+        }
 
-            // if the sha1 has not been calculated yet, don't calculate the
-            // non-metadata hash.
-            if (UrnSet.getNMS1(urns) == null) {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("Hashing nmsa file: " + file);
-                if(AudioHashingUtils.canCreateNonMetaDataSHA1(file)) {
-                    try {
-                        nms1 = AudioHashingUtils.generateNonMetaDataSHA1FromFile(file);
-                        if(nms1 != null) {
-                            UrnSet set = new UrnSet();
-                            synchronized (UrnCache.this) {
-                                set.addAll(getUrns(file));
-                                set.add(nms1);
-                                addUrns(file, set);
-                            }
-                        }
-                    } catch (InterruptedException ignored) {
-                        LOG.warn("Unable to calculate NMS1", ignored);
-                    }
-                }
-            } else {
-            	nms1 = UrnSet.getNMS1(urns);
+        /** Returns the entry written by {@link #toBytes()}, or null if it's invalid. */
+        static UrnEntry fromBytes(byte[] data) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            try {
+                long modTime = in.readLong();
+                long length = in.readLong();
+                int count = in.readUnsignedByte();
+                UrnSet urns = new UrnSet();
+                for (int i = 0; i < count; i++)
+                    urns.add(URN.createUrnFromString(in.readUTF()));
+                if (urns.isEmpty())
+                    return null;
+                return new UrnEntry(modTime, length, UrnSet.unmodifiableSet(urns));
+            } catch (IOException e) {
+                LOG.warn("Invalid UrnCache entry", e);
+                return null;
             }
-            return nms1;
         }
     }
 
     /**
-     * Private class for the key for the set of URNs for files.
+     * Private class for the key for the set of URNs for files, in the
+     * serialized cache of older versions.
      */
     private static class UrnSetKey implements Serializable {
 
@@ -423,6 +661,14 @@ public final class UrnCache {
          */
         transient long _modTime;
 
+        /**
+         * Constant for the file size, -1 if the key was read from a cache
+         * that didn't store sizes.
+         * 
+         * @serial
+         */
+        transient long _length;
+
         /**
          * Constant for the file path.
          * 
@@ -446,6 +692,7 @@ public final class UrnCache {
          */
         UrnSetKey(File file) {
             _modTime = file.lastModified();
+            _length = file.length();
             _path = file.getAbsolutePath();
             _hashCode = calculateHashCode();
         }
@@ -462,13 +709,13 @@ public final class UrnCache {
         }
 
         /**
-         * Overrides Object.equals so that keys with equal paths will be
-         * considered equal.
+         * Overrides Object.equals so that keys with equal paths, sizes and
+         * modification times will be considered equal.
          * 
          * @param o the <tt>Object</tt> instance to compare for equality
          * @return <tt>true</tt> if the specified object is the same instance as
-         *         this object, or if it has the same path, otherwise returns
-         *         <tt>false</tt>
+         *         this object, or if it has the same path, size and
+         *         modification time, otherwise returns <tt>false</tt>
          */
         @Override
         public boolean equals(Object o) {
@@ -479,7 +726,8 @@ public final class UrnCache {
             UrnSetKey key = (UrnSetKey) o;
 
             // note that the path is guaranteed to be non-null
-            return _path.equals(key._path);
+            return _modTime == key._modTime && _length == key._length
+                    && _path.equals(key._path);
         }
 
         /**
@@ -496,12 +744,14 @@ public final class UrnCache {
         /**
          * Serializes this instance.
          * 
-         * @serialData the modification time followed by the file path
+         * @serialData the modification time followed by the file path and
+         *             the file size
          */
         private void writeObject(ObjectOutputStream s) throws IOException {
             s.defaultWriteObject();
             s.writeLong(_modTime);
             s.writeObject(_path);
+            s.writeLong(_length);
         }
 
         /**
@@ -511,6 +761,12 @@ public final class UrnCache {
             s.defaultReadObject();
             _modTime = s.readLong();
             _path = ((String) s.readObject()).intern();
+            try {
+                _length = s.readLong();
+            } catch (EOFException noSize) {
+                // written before sizes were stored
+                _length = -1;
+            }
             _hashCode = calculateHashCode();
         }
     }
@@ -1,30 +1,38 @@
 package com.limegroup.gnutella.licenses;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.limewire.io.IOUtils;
+import org.limewire.io.RecordStore;
 import org.limewire.service.ErrorService;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.GenericsUtils;
+import org.limewire.util.StringUtils;
 
 import com.google.inject.Singleton;
 import com.limegroup.gnutella.URN;
 
 /**
  * A repository of licenses.
+ * <p>
+ * Licenses and data are kept in a {@link RecordStore}, so only the records
+ * that changed are written out, and a license is only deserialized when it
+ * is first asked for.
  */
 @Singleton
 public class LicenseCache {
@@ -36,22 +44,33 @@ public class LicenseCache {
      */
     private static final long EXPIRY_TIME = 7 * 24 * 60 * 60 * 1000; // one week.    
     
+    /** Name of the store where licenses and data are stored. */
+    private static final String STORE_NAME = "licenses";
+    
+    /** Version of the records in the store. */
+    private static final int STORE_VERSION = 1;
+    
+    /** Prefix of the keys of licenses, followed by the license URI. */
+    private static final byte LICENSE_KEY = 'L';
+    
+    /** Prefix of the keys of data, followed by the data key. */
+    private static final byte DATA_KEY = 'D';
+    
     /**
-     * File where the licenses are serialized.
+     * File where the licenses were serialized by older versions; read
+     * once to fill the store.
      */
     private final File CACHE_FILE =
         new File(CommonUtils.getUserSettingsDir(), "licenses.cache");        
     
-    /**
-     * A map of Licenses.  One License per URI.
-     */
-    private Map<URI, License> licenses;
+    /** Where the licenses and data are stored. */
+    private final RecordStore store =
+        new RecordStore(CommonUtils.getUserSettingsDir(), STORE_NAME, STORE_VERSION);
     
     /**
-     * An extra map of data that Licenses can use
-     * to cache info.  This information lasts forever.
+     * The licenses read from the store or added so far.  One License per URI.
      */
-    private Map<Object, Object> data;
+    private final Map<URI, License> licenses = new HashMap<URI, License>();
     
     /**
      * Whether or not data is dirty since the last time we wrote to disk.
@@ -60,22 +79,29 @@ public class LicenseCache {
 
     LicenseCache() {
         // TODO move this out of construction
-        deserialize(); 
+        open(); 
     }
     
     /**
      * Adds a verified license.
      */
     synchronized void addVerifiedLicense(License license) {
-        licenses.put(license.getLicenseURI(), license);
+        putLicense(license.getLicenseURI(), license);
+    }
+    
+    private void putLicense(URI uri, License license) {
+        licenses.put(uri, license);
+        byte[] value = toValue(license);
+        if(value != null)
+            store.put(toKey(LICENSE_KEY, uri.toString()), value);
         dirty = true;
     }
     
     /**
-     * Adds data.
+     * Adds data.  Data lasts forever.
      */
-    synchronized void addData(Object key, Object value) {
-        data.put(key, value);
+    synchronized void addData(String key, String value) {
+        store.put(toKey(DATA_KEY, key), StringUtils.toUTF8Bytes(value));
         dirty = true;
     }
     
@@ -84,7 +110,7 @@ public class LicenseCache {
      * the license string for a new one.
      */
     synchronized License getLicense(String licenseString, URI licenseURI) {
-        License license = licenses.get(licenseURI);
+        License license = getLicense(licenseURI);
         if(license != null)
             return license.copy(licenseString, licenseURI);
         else
@@ -94,63 +120,120 @@ public class LicenseCache {
     /**
      * Gets details.
      */
-    synchronized Object getData(Object key) {
-        return data.get(key);
+    synchronized String getData(String key) {
+        byte[] value = store.get(toKey(DATA_KEY, key));
+        return value == null ? null : StringUtils.getUTF8String(value);
     } 
     
     /**
      * Determines if the license is verified for the given URN and URI.
      */
     synchronized boolean isVerifiedAndValid(URN urn, URI uri) {
-        License license = licenses.get(uri);
+        License license = getLicense(uri);
         return license != null && license.isValid(urn);
     }
     
-   /**
-     * Loads values from cache file, if available
+    /**
+     * Returns the license for the URI, reading it from the store if it
+     * hasn't been read yet.
      */
-    private void deserialize() {
-        ObjectInputStream ois = null;
+    private License getLicense(URI uri) {
+        License license = licenses.get(uri);
+        if(license == null) {
+            byte[] key = toKey(LICENSE_KEY, uri.toString());
+            byte[] value = store.get(key);
+            if(value != null) {
+                license = fromValue(value);
+                if(license != null) {
+                    licenses.put(uri, license);
+                } else {
+                    store.remove(key);
+                    dirty = true;
+                }
+            }
+        }
+        return license;
+    }
+    
+    /**
+     * Opens the store and removes expired licenses from it. If there is no
+     * store yet, it is filled from the cache file of older versions, which
+     * is then deleted.
+     */
+    private void open() {
         try {
-            if (!CACHE_FILE.exists()) {
-                // finally-block will initialize maps
+            if(store.open()) {
+                removeOldEntries();
                 return;
             }
+        } catch(IOException e) {
+            LOG.error("Can't read licenses", e);
+            store.clear();
+            return;
+        }
+        
+        if(CACHE_FILE.exists()) {
+            migrate();
+        }
+    }
+    
+   /**
+     * Copies the licenses and data of the cache file into the store and
+     * deletes the cache file.
+     */
+    private void migrate() {
+        ObjectInputStream ois = null;
+        try {
             ois = new ObjectInputStream(
                     new BufferedInputStream(
                         new FileInputStream(CACHE_FILE)));
             Object o = ois.readObject();
-            if(o != null) 
-                licenses = GenericsUtils.scanForMap(o, URI.class, License.class, GenericsUtils.ScanMode.REMOVE);
+            if(o != null) {
+                Map<URI, License> old = GenericsUtils.scanForMap(o, URI.class, License.class, GenericsUtils.ScanMode.REMOVE);
+                for(Map.Entry<URI, License> entry : old.entrySet())
+                    putLicense(entry.getKey(), entry.getValue());
+            }
             o = ois.readObject();
-            if(o != null)
-                data = GenericsUtils.scanForMap(o, Object.class, Object.class, GenericsUtils.ScanMode.REMOVE);
-            removeOldEntries();
+            if(o != null) {
+                Map<Object, Object> data = GenericsUtils.scanForMap(o, Object.class, Object.class, GenericsUtils.ScanMode.REMOVE);
+                for(Map.Entry<Object, Object> entry : data.entrySet()) {
+                    if(entry.getKey() instanceof String && entry.getValue() instanceof String)
+                        addData((String)entry.getKey(), (String)entry.getValue());
+                }
+            }
         } catch(Throwable t) {
             LOG.error("Can't read licenses", t);
         } finally {
             IOUtils.close(ois);
-            
-            if(licenses == null)
-                licenses = new HashMap<URI, License>();
-            if(data == null)
-                data = new HashMap<Object, Object>();
+        }
+        
+        removeOldEntries();
+        try {
+            store.compact();
+            CACHE_FILE.delete();
+            dirty = false;
+        } catch(IOException e) {
+            LOG.error("Can't migrate licenses", e);
         }
     }
     
    /**
-     * Removes any stale entries from the map so that they will automatically
-     * be replaced.
+     * Removes any stale entries from the store so that they will
+     * automatically be replaced.  Only the verification time at the start
+     * of each license record is read.
      */
     private void removeOldEntries() {
         long cutoff = System.currentTimeMillis() - EXPIRY_TIME;
         
         // discard outdated info
-        for(Iterator<License> i = licenses.values().iterator(); i.hasNext(); ) {
-            License license = i.next();
-            if(license.getLastVerifiedTime() < cutoff) {
+        for(byte[] key : store.keys()) {
+            if(key[0] != LICENSE_KEY)
+                continue;
+            byte[] value = store.get(key);
+            if(value == null || value.length < 8 || readLong(value) < cutoff) {
+                licenses.remove(toURI(key));
+                store.remove(key);
                 dirty = true;
-                i.remove();
             }
         }
     }
@@ -162,19 +245,68 @@ public class LicenseCache {
         if(!dirty)
             return;
         
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(CACHE_FILE)));
-            oos.writeObject(licenses);
-            oos.writeObject(data);
-            oos.flush();
+            store.flush();
         } catch (IOException e) {
             ErrorService.error(e);
-        } finally {
-            IOUtils.close(oos);
         }
         
         dirty = false;
     }
-}
\ No newline at end of file
+    
+    private static byte[] toKey(byte type, String key) {
+        byte[] bytes = StringUtils.toUTF8Bytes(key);
+        byte[] ret = new byte[bytes.length + 1];
+        ret[0] = type;
+        System.arraycopy(bytes, 0, ret, 1, bytes.length);
+        return ret;
+    }
+    
+    /** Returns the URI of a license key, or null if it's invalid. */
+    private static URI toURI(byte[] key) {
+        try {
+            return new URI(StringUtils.getUTF8String(key, 1, key.length - 1));
+        } catch(URISyntaxException e) {
+            return null;
+        }
+    }
+    
+    private static long readLong(byte[] value) {
+        long ret = 0;
+        for(int i = 0; i < 8; i++)
+            ret = (ret << 8) | (value[i] & 0xFF);
+        return ret;
+    }
+    
+    /**
+     * Writes the time the license was last verified followed by the
+     * serialized license, or returns null if the license can't be serialized.
+     */
+    private static byte[] toValue(License license) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(license.getLastVerifiedTime());
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(license);
+            oos.flush();
+        } catch(IOException e) {
+            LOG.warn("Can't write license", e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+    
+    /** Returns the license written by {@link #toValue(License)}, or null if it's invalid. */
+    private static License fromValue(byte[] value) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            in.readLong();
+            Object o = new ObjectInputStream(in).readObject();
+            return o instanceof License ? (License)o : null;
+        } catch(Throwable t) {
+            LOG.warn("Can't read license", t);
+            return null;
+        }
+    }
+}
@@ -88,8 +88,10 @@ abstract class RestrictedResponder implements SimppListener, MessageHandler {
         try {
             for (String ip : setting.get())
                 newCrawlers.add(new IP(ip));
-            if (newCrawlers.isValidFilter(false, networkInstanceUtils))
+            if (newCrawlers.isValidFilter(false, networkInstanceUtils)) {
+                newCrawlers.compile();
                 allowed = newCrawlers;
+            }
         } catch (IllegalArgumentException badSimpp) {}
     }
     
@@ -3,12 +3,15 @@ package com.limegroup.gnutella.messages;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import org.limewire.collection.Buffer;
 import org.limewire.inspection.Inspectable;
 import org.limewire.util.ByteUtils;
 
@@ -136,8 +139,8 @@ public interface Message extends Comparable<Message> {
      */
     public static class MessageCounter implements Inspectable {
         
-        private final Map<Class, EnumMap<Network, MessageTypeCounter>> counts = 
-            new HashMap<Class, EnumMap<Network,MessageTypeCounter>>();
+        private final ConcurrentMap<Class, ConcurrentMap<Network, MessageTypeCounter>> counts = 
+            new ConcurrentHashMap<Class, ConcurrentMap<Network,MessageTypeCounter>>();
         
         private final int history;
         
@@ -149,43 +152,54 @@ public interface Message extends Comparable<Message> {
         }
 
 
-        public synchronized void countMessage(Message msg) {
-            EnumMap<Network, MessageTypeCounter> m = counts.get(msg.getClass());
+        public void countMessage(Message msg) {
+            ConcurrentMap<Network, MessageTypeCounter> m = counts.get(msg.getClass());
             if (m == null) {
-                m = new EnumMap<Network, MessageTypeCounter>(Network.class);
-                counts.put(msg.getClass(),m);
+                m = new ConcurrentHashMap<Network, MessageTypeCounter>();
+                ConcurrentMap<Network, MessageTypeCounter> existing = counts.putIfAbsent(msg.getClass(), m);
+                if (existing != null)
+                    m = existing;
             }
             MessageTypeCounter count = m.get(msg.getNetwork());
             if (count == null) {
                 count = new MessageTypeCounter(msg.getClass(), msg.getNetwork(), history);
-                m.put(msg.getNetwork(),count);
+                MessageTypeCounter existing = m.putIfAbsent(msg.getNetwork(), count);
+                if (existing != null)
+                    count = existing;
             }
             count.countMessage(msg);
         }
 
         @Override
-        public synchronized Object inspect() {
+        public Object inspect() {
             List<Map<String,Object>> ret = new ArrayList<Map<String,Object>>(counts.size());
-            for (EnumMap<Network, MessageTypeCounter> e : counts.values()) {
-                for (MessageTypeCounter mtc : e.values())
-                    ret.add(mtc.inspect());
+            for (Map<Network, MessageTypeCounter> e : counts.values()) {
+                for (Network net : Network.values()) {
+                    MessageTypeCounter mtc = e.get(net);
+                    if (mtc != null)
+                        ret.add(mtc.inspect());
+                }
             }
             return ret;
         }
 
         /** 
-         * Keeps track of traffic information about a specific type of message
+         * Keeps track of traffic information about a specific type of message.
+         * The history is a ring written without locking, so an inspection racing
+         * with a count may see a sample that is only partly written.
          */
         private static class MessageTypeCounter {
             private final Class clazz;
             private final Network net;
-            private long num, size;
-            private Buffer<Long> timestamps;
-            private Buffer<Integer> sizes;
-            private Buffer<Byte> hops;
-            private Buffer<Byte> ttls;
-            private long[] totalTtls = new long[5];
-            private long[] totalHops = new long[5];
+            private final int history;
+            private final AtomicLong num = new AtomicLong();
+            private final AtomicLong size = new AtomicLong();
+            private final AtomicLongArray timestamps;
+            private final AtomicIntegerArray sizes;
+            private final AtomicIntegerArray hops;
+            private final AtomicIntegerArray ttls;
+            private final AtomicLongArray totalTtls = new AtomicLongArray(5);
+            private final AtomicLongArray totalHops = new AtomicLongArray(5);
 
             /**
              * @param clazz the message class this is counting
@@ -195,59 +209,64 @@ public interface Message extends Comparable<Message> {
             MessageTypeCounter(Class<? extends Message> clazz, Network net, int history) {
                 this.clazz = clazz;
                 this.net = net;
-                timestamps = new Buffer<Long>(history); // each entry 6 bytes on network
-                sizes = new Buffer<Integer>(history); // each entry 2 bytes on network
-                hops = new Buffer<Byte>(history);
-                ttls = new Buffer<Byte>(history);
+                this.history = history;
+                timestamps = new AtomicLongArray(history); // each entry 6 bytes on network
+                sizes = new AtomicIntegerArray(history); // each entry 2 bytes on network
+                hops = new AtomicIntegerArray(history);
+                ttls = new AtomicIntegerArray(history);
             }
 
             void countMessage(Message m) {
-                num++;
-                size += m.getLength();
-                timestamps.add(System.currentTimeMillis());
-                sizes.add(m.getLength());
-                hops.add(m.getHops());
-                ttls.add(m.getTTL());
+                int slot = (int)(num.getAndIncrement() % history);
+                size.addAndGet(m.getLength());
+                timestamps.set(slot, System.currentTimeMillis());
+                sizes.set(slot, m.getLength());
+                hops.set(slot, m.getHops());
+                ttls.set(slot, m.getTTL());
                 // the last element is "or more"
-                totalTtls[Math.min(4,m.getTTL())]++;
-                totalHops[Math.min(4,m.getHops())]++;
+                totalTtls.incrementAndGet(Math.min(4,m.getTTL()));
+                totalHops.incrementAndGet(Math.min(4,m.getHops()));
             }
 
             Map<String,Object> inspect() {
+                long count = num.get();
+                int samples = (int)Math.min(count, history);
                 Map<String,Object> ret = new HashMap<String,Object>();
                 ret.put("class",clazz.toString());
                 ret.put("net",net.toString());
-                ret.put("num",num);
-                ret.put("size",size);
-                byte [] timesByte = new byte[timestamps.getSize() * 6]; // 6 bytes per timestamp
-                byte [] sizesByte = new byte[sizes.getSize() * 2]; // 2 bytes per size
-                byte [] hopsByte = new byte[hops.getSize()];
-                byte [] ttlsByte = new byte[ttls.getSize()];
-
-                for (int i = 0; i < timestamps.getSize(); i++) {
-                    long timestamp = timestamps.get(i);
+                ret.put("num",count);
+                ret.put("size",size.get());
+                byte [] timesByte = new byte[samples * 6]; // 6 bytes per timestamp
+                byte [] sizesByte = new byte[samples * 2]; // 2 bytes per size
+                byte [] hopsByte = new byte[samples];
+                byte [] ttlsByte = new byte[samples];
+
+                // most recent sample first
+                for (int i = 0; i < samples; i++) {
+                    int slot = (int)((count - 1 - i) % history);
+                    long timestamp = timestamps.get(slot);
                     timesByte[i * 6] = (byte)((timestamp >> 40) & 0xFF);
                     timesByte[i * 6 + 1] = (byte)((timestamp >> 32) & 0xFF);
                     ByteUtils.int2beb((int)timestamp, timesByte, i * 6 + 2);
-                }
-
-                for (int i = 0; i < sizes.getSize(); i++) {
-                    short size = (short) Math.min(0xFFFF,sizes.get(i));
+                    short size = (short) Math.min(0xFFFF,sizes.get(slot));
                     ByteUtils.short2beb(size, sizesByte, i * 2);
+                    hopsByte[i] = (byte)hops.get(slot);
+                    ttlsByte[i] = (byte)ttls.get(slot);
                 }
-
-                for (int i = 0; i < hops.getSize(); i++) 
-                    hopsByte[i] = hops.get(i);
-                
-                for (int i = 0; i < ttls.getSize(); i++) 
-                    ttlsByte[i] = ttls.get(i);
                 
                 ret.put("times",timesByte);
                 ret.put("sizes",sizesByte);
                 ret.put("hops", hopsByte);
                 ret.put("ttls", ttlsByte);
-                ret.put("totalTttls",totalTtls);
-                ret.put("totalHops",totalHops);
+                ret.put("totalTttls",toArray(totalTtls));
+                ret.put("totalHops",toArray(totalHops));
+                return ret;
+            }
+            
+            private static long[] toArray(AtomicLongArray array) {
+                long[] ret = new long[array.length()];
+                for (int i = 0; i < ret.length; i++)
+                    ret[i] = array.get(i);
                 return ret;
             }
         }
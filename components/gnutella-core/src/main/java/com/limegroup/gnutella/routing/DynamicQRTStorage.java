@@ -4,13 +4,13 @@ import java.util.Iterator;
 
 /**
  * A delegating QRTTableStorage that switches between
- * SparseSetStorage and BitSetStorage implementation depending
+ * SparseSetStorage and PackedQRTStorage implementation depending
  * on the number of entries. 
  */
 class DynamicQRTStorage implements QRTTableStorage {
 
     /**
-     * A treshold at which a 128kbit BitSetStorage will use less memory
+     * A treshold at which a PackedQRTStorage will use less memory
      * than a SparseSetStorage.  Determined experimentally.
      */
     private final float TRESHOLD = 2.5f;
@@ -43,11 +43,11 @@ class DynamicQRTStorage implements QRTTableStorage {
     private void changeStorage() {
         if (storage.getPercentFull() > TRESHOLD) {
             if (storage instanceof SparseSetStorage) {
-                QRTTableStorage bitSet = new BitSetQRTTableStorage(storage.maxSize());
-                bitSet.or(storage);
-                storage = bitSet;
+                QRTTableStorage packed = new PackedQRTStorage(storage.maxSize());
+                packed.or(storage);
+                storage = packed;
             }
-        } else if (storage instanceof BitSetQRTTableStorage) {
+        } else if (storage instanceof PackedQRTStorage) {
             QRTTableStorage sparse = new SparseSetStorage(storage.maxSize());
             sparse.or(storage);
             storage = sparse;
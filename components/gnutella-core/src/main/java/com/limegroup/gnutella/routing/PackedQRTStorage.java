@@ -0,0 +1,233 @@
+package com.limegroup.gnutella.routing;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.limewire.collection.UnmodifiableIterator;
+
+/**
+ * A QRTTableStorage that packs the table into a fixed <tt>long[]</tt>, one
+ * bit per slot.  Unlike {@link BitSetQRTTableStorage} the array never grows
+ * or shrinks, so a lookup is a single array read with no bounds bookkeeping
+ * and the memory used by a table is known up front: a 64k-slot table always
+ * takes 8 KB.
+ */
+class PackedQRTStorage implements QRTTableStorage {
+
+    private final long[] words;
+    private final int length;
+
+    /** The number of set bits, kept up to date by set and clear. */
+    private int cardinality;
+
+    PackedQRTStorage(int length) {
+        this(new long[(length + 63) >>> 6], length, 0);
+    }
+
+    private PackedQRTStorage(long[] words, int length, int cardinality) {
+        this.words = words;
+        this.length = length;
+        this.cardinality = cardinality;
+    }
+
+    public boolean get(int i) {
+        return i >= 0 && i < length && (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public void set(int hash) {
+        long mask = 1L << hash;
+        long word = words[hash >>> 6];
+        if ((word & mask) == 0) {
+            words[hash >>> 6] = word | mask;
+            cardinality++;
+        }
+    }
+
+    public void clear(int hash) {
+        long mask = 1L << hash;
+        long word = words[hash >>> 6];
+        if ((word & mask) != 0) {
+            words[hash >>> 6] = word & ~mask;
+            cardinality--;
+        }
+    }
+
+    public void compact() {
+        // the array is sized for the table and never changes.
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public int maxSize() {
+        return length;
+    }
+
+    public double getPercentFull() {
+        return cardinality * 100.0 / length;
+    }
+
+    public int getUnitsInUse() {
+        return words.length;
+    }
+
+    public int getUnusedUnits() {
+        return numUnitsWithLoad(0);
+    }
+
+    public int numUnitsWithLoad(int load) {
+        int sum = 0;
+        for (long word : words) {
+            if (Long.bitCount(word) == load)
+                sum++;
+        }
+        return sum;
+    }
+
+    public int nextSetBit(int i) {
+        if (i < 0)
+            i = 0;
+        if (i >= length)
+            return -1;
+        int index = i >>> 6;
+        long word = words[index] & (-1L << i);
+        while (true) {
+            if (word != 0)
+                return (index << 6) + Long.numberOfTrailingZeros(word);
+            if (++index == words.length)
+                return -1;
+            word = words[index];
+        }
+    }
+
+    /**
+     * @return the index of the next clear bit, or {@link #maxSize()} if
+     * all remaining bits are set
+     */
+    public int nextClearBit(int i) {
+        if (i < 0)
+            i = 0;
+        if (i >= length)
+            return length;
+        int index = i >>> 6;
+        long word = ~words[index] & (-1L << i);
+        while (true) {
+            if (word != 0)
+                return Math.min(length, (index << 6) + Long.numberOfTrailingZeros(word));
+            if (++index == words.length)
+                return length;
+            word = ~words[index];
+        }
+    }
+
+    public void or(QRTTableStorage other) {
+        if (other instanceof PackedQRTStorage && other.maxSize() == length) {
+            long[] theirs = ((PackedQRTStorage) other).words;
+            for (int i = 0; i < words.length; i++)
+                words[i] |= theirs[i];
+            recount();
+        } else {
+            for (int i : other)
+                set(i);
+        }
+    }
+
+    public void xor(QRTTableStorage other) {
+        if (other instanceof PackedQRTStorage && other.maxSize() == length) {
+            long[] theirs = ((PackedQRTStorage) other).words;
+            for (int i = 0; i < words.length; i++)
+                words[i] ^= theirs[i];
+            recount();
+        } else {
+            for (int i : other) {
+                if (get(i))
+                    clear(i);
+                else
+                    set(i);
+            }
+        }
+    }
+
+    private void recount() {
+        int sum = 0;
+        for (long word : words)
+            sum += Long.bitCount(word);
+        cardinality = sum;
+    }
+
+    public QRTTableStorage resize(int newSize) {
+        if (newSize == length)
+            return this;
+
+        // Same scaling as BitSetQRTTableStorage: each run of set bits
+        // [i, j) maps to [floor(i*m2/m), ceil(j*m2/m)).
+        PackedQRTStorage resized = new PackedQRTStorage(newSize);
+        final int m = length;
+        final int m2 = newSize;
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            final int firstSet = (int) (((long) i * m2) / m);
+            i = nextClearBit(i + 1);
+            final int lastNotSet = (int) (((long) i * m2 - 1) / m + 1);
+            for (int j = firstSet; j < lastNotSet; j++)
+                resized.set(j);
+        }
+        return resized;
+    }
+
+    @Override
+    public PackedQRTStorage clone() {
+        return new PackedQRTStorage(words.clone(), length, cardinality);
+    }
+
+    public Iterator<Integer> iterator() {
+        return new PackedIterator();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof QRTTableStorage))
+            return false;
+
+        if (o instanceof PackedQRTStorage) {
+            PackedQRTStorage other = (PackedQRTStorage) o;
+            return length == other.length && Arrays.equals(words, other.words);
+        }
+
+        QRTTableStorage other = (QRTTableStorage) o;
+        if (cardinality != other.cardinality())
+            return false;
+        for (int i : other) {
+            if (!get(i))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        return "PackedQRTStorage: " + cardinality + "/" + length;
+    }
+
+    private class PackedIterator extends UnmodifiableIterator<Integer> {
+        private int current = nextSetBit(0);
+
+        public boolean hasNext() {
+            return current >= 0;
+        }
+
+        public Integer next() {
+            if (current < 0)
+                throw new NoSuchElementException();
+            int ret = current;
+            current = nextSetBit(ret + 1);
+            return ret;
+        }
+    }
+}
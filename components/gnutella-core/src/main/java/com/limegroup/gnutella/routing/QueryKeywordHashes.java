@@ -0,0 +1,171 @@
+package com.limegroup.gnutella.routing;
+
+import java.util.Set;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.util.Utilities;
+import com.limegroup.gnutella.xml.LimeXMLDocument;
+
+/**
+ * The route table hashes of a query, computed once and then checked against
+ * the tables of any number of connections with
+ * {@link QueryRouteTable#contains(QueryKeywordHashes)}.  An ultrapeer
+ * forwarding a query to its leaves would otherwise hash every keyword again
+ * for every leaf.
+ * <p>
+ * Hashes depend on the size of the table, so they are computed when a table
+ * first asks for them and kept for the last size used.  In practice all
+ * leaves use the same table size.
+ * <p>
+ * <b>This class is NOT synchronized.</b>
+ */
+public class QueryKeywordHashes {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final QueryRequest query;
+
+    /** The bits the hashes below were computed for, or -1 if none yet. */
+    private byte bits = -1;
+
+    /** Hashes of the query URNs, any one of which is a match. */
+    private int[] urnHashes;
+
+    /** Hashes of the plain keywords, all of which must match. */
+    private int[] keywordHashes;
+
+    /** Hash of the rich query's schema URI, if there is a rich query. */
+    private int schemaHash;
+
+    /** Hashes of the rich query's keywords, enough of which must match. */
+    private int[] richHashes;
+
+    public QueryKeywordHashes(QueryRequest query) {
+        this.query = query;
+    }
+
+    /**
+     * @return the query whose hashes these are
+     */
+    public QueryRequest getQuery() {
+        return query;
+    }
+
+    /**
+     * Returns true if a table of <code>storage</code> with size
+     * <code>tableLength</code> could generate a response for the query.
+     * Same rules as {@link QueryRouteTable#contains(QueryRequest)}.
+     */
+    boolean matches(QRTTableStorage storage, int tableLength) {
+        byte tableBits = Utilities.log2(tableLength);
+        if (tableBits != bits)
+            computeHashes(tableBits);
+
+        //1. Any URN matches, otherwise all plain keywords must match.
+        if (urnHashes != null) {
+            for (int hash : urnHashes) {
+                if (storage.get(hash))
+                    return true;
+            }
+            return false;
+        }
+        if (keywordHashes == null)
+            return false;
+        for (int hash : keywordHashes) {
+            if (!storage.get(hash))
+                return false;
+        }
+
+        //2. If there is meta information the schema URI must match...
+        if (richHashes == null)
+            return true;
+        if (!storage.get(schemaHash))
+            return false;
+
+        //3. ...and 2/3 or 3 of its keywords, whichever is more.
+        int matchCount = 0;
+        for (int hash : richHashes) {
+            if (storage.get(hash))
+                matchCount++;
+        }
+        int wordCount = richHashes.length;
+        if (wordCount < 3)
+            return wordCount == matchCount;
+        else
+            return ((float)matchCount / (float)wordCount) > 0.67;
+    }
+
+    private void computeHashes(byte bits) {
+        this.bits = bits;
+        urnHashes = null;
+        keywordHashes = null;
+        richHashes = null;
+
+        String text = query.getQuery();
+        LimeXMLDocument richQuery = query.getRichQuery();
+        if (query.hasQueryUrns()) {
+            Set<URN> urns = query.getQueryUrns();
+            urnHashes = new int[urns.size()];
+            int i = 0;
+            for (URN urn : urns)
+                urnHashes[i++] = HashFunction.hash(urn.toString(), bits);
+            return;
+        }
+        if (text.length() == 0 && richQuery == null)
+            return;
+
+        keywordHashes = hashKeywords(text, EMPTY, bits);
+        if (richQuery == null)
+            return;
+
+        schemaHash = HashFunction.hash(richQuery.getSchemaURI(), bits);
+        int[] hashes = EMPTY;
+        for (String words : richQuery.getKeyWords())
+            hashes = hashKeywords(words, hashes, bits);
+        for (String indivisible : richQuery.getKeyWordsIndivisible()) {
+            hashes = grow(hashes, 1);
+            hashes[hashes.length - 1] = HashFunction.hash(indivisible, bits);
+        }
+        richHashes = hashes;
+    }
+
+    /**
+     * Appends the hashes of each keyword in <code>words</code> to
+     * <code>hashes</code>.
+     */
+    private static int[] hashKeywords(String words, int[] hashes, byte bits) {
+        int count = 0;
+        for (int i = 0; ; ) {
+            //Find next keyword...
+            //    _ _ W O R D _ _ _ A B
+            //    i   j       k
+            int j = HashFunction.keywordStart(words, i);
+            if (j < 0)
+                break;
+            int k = HashFunction.keywordEnd(words, j);
+            count++;
+            i = k + 1;
+        }
+        if (count == 0)
+            return hashes;
+
+        int n = hashes.length;
+        hashes = grow(hashes, count);
+        for (int i = 0; ; ) {
+            int j = HashFunction.keywordStart(words, i);
+            if (j < 0)
+                break;
+            int k = HashFunction.keywordEnd(words, j);
+            hashes[n++] = HashFunction.hash(words, j, k, bits);
+            i = k + 1;
+        }
+        return hashes;
+    }
+
+    private static int[] grow(int[] array, int more) {
+        int[] grown = new int[array.length + more];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -1,10 +1,7 @@
 package com.limegroup.gnutella.routing;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
@@ -12,11 +9,9 @@ import java.util.zip.Inflater;
 import org.limewire.core.settings.ConnectionSettings;
 import org.limewire.io.IOUtils;
 
-import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.messages.BadPacketException;
 import com.limegroup.gnutella.messages.QueryRequest;
 import com.limegroup.gnutella.util.Utilities;
-import com.limegroup.gnutella.xml.LimeXMLDocument;
 
 //Please note that &#60; and &#62; are the HTML escapes for '<' and '>'.
 
@@ -106,6 +101,9 @@ public class QueryRouteTable {
      *  in message N.) */
     private volatile Inflater uncompressor;
     
+    /** The buffer patches are inflated into, while uncompressor is set. */
+    private byte[] inflateBuffer;
+    
     /////////////////////////////// Basic Methods ///////////////////////////
 
 
@@ -197,6 +195,13 @@ public class QueryRouteTable {
         return storage.numUnitsWithLoad(load);
     }
     
+    /**
+     * Returns the approximate number of bytes used to store this table.
+     */
+    public int getMemoryUsed() {
+        return storage.getUnitsInUse() * 8;
+    }
+    
     /**
      * Returns true if a response could be generated for qr.  Note that a return
      * value of true does not necessarily mean that a response will be
@@ -204,102 +209,18 @@ public class QueryRouteTable {
      * been decremented, i.e., is the outbound not inbound TTL.  
      */
     public boolean contains(QueryRequest qr) {
-        byte bits=Utilities.log2(bitTableLength);
-
-        //1. First we check that all the normal keywords of qr are in the route
-        //   table.  Note that this is done with zero allocations!  Also note
-        //   that HashFunction.hash() takes cares of the capitalization.
-        String query = qr.getQuery();
-        LimeXMLDocument richQuery = qr.getRichQuery();
-        if (query.length() == 0 && richQuery == null && !qr.hasQueryUrns()) {
-            return false;
-        }
-        if (qr.hasQueryUrns()) {
-            Set<URN> urns = qr.getQueryUrns();
-            for (URN qurn : urns) {
-                int hash = HashFunction.hash(qurn.toString(), bits);
-                if (contains(hash)) {
-                    // we note a match if any one of the hashes matches
-                    return true;
-                }
-            }
-            return false;
-        }
-        for (int i=0 ; ; ) {
-            //Find next keyword...
-            //    _ _ W O R D _ _ _ A B
-            //    i   j       k
-            int j=HashFunction.keywordStart(query, i);     
-            if (j<0)
-                break;
-            int k=HashFunction.keywordEnd(query, j);
-
-            //...and look up its hash.
-            int hash=HashFunction.hash(query, j, k, bits);
-            if (!contains(hash))
-                return false;
-            i=k+1;
-        }        
-        
-        //2. Now we extract meta information in the query.  If there isn't any,
-        //   declare success now.  Otherwise ensure that the URI is in the 
-        //   table.
-        if (richQuery == null) //Normal case for matching query with no metadata.
-            return true;
-        String docSchemaURI = richQuery.getSchemaURI();
-        int hash = HashFunction.hash(docSchemaURI, bits);
-        if (!contains(hash))//don't know the URI? can't answer query
-            return false;
-            
-        //3. Finally check that "enough" of the meta information keywords are in
-        //   the table: 2/3 or 3, whichever is more.
-        int wordCount=0;
-        int matchCount=0;
-        for(String words : richQuery.getKeyWords()) {
-            //getKeyWords only returns all the fields, so we still need to split
-            //the words.  The code is copied from part (1) above.  It could be
-            //factored, but that's slightly tricky; the above code terminates if
-            //a match fails--a nice optimization--while this code simply counts
-            //the number of words and matches.
-            for (int i=0 ; ; ) {
-                //Find next keyword...
-                //    _ _ W O R D _ _ _ A B
-                //    i   j       k
-                int j=HashFunction.keywordStart(words, i);     
-                if (j<0)
-                    break;
-                int k=HashFunction.keywordEnd(words, j);
-                
-                //...and look up its hash.
-                int wordHash = HashFunction.hash(words, j, k, bits);
-                if (contains(wordHash))
-                    matchCount++;
-                wordCount++;
-                i=k+1;
-            }
-        }
-
-        // some parts of the query are indivisible, so do some nonstandard
-        // matching
-        for(String str : richQuery.getKeyWordsIndivisible()) {
-            hash = HashFunction.hash(str, bits);
-            if (contains(hash))
-                matchCount++;
-            wordCount++;
-        }
-
-        if (wordCount<3)
-            //less than three word? 100% match required
-            return wordCount==matchCount;
-        else 
-            //a 67% match will do...
-            return ((float)matchCount/(float)wordCount) > 0.67;
+        return contains(new QueryKeywordHashes(qr));
     }
     
-    // In the new version, we will not accept TTLs for methods.  Tables are only
-    // 1 hop deep....
-    private final boolean contains(int hash) {
-        return storage.get(hash);
+    /**
+     * Same as {@link #contains(QueryRequest)}, but with the hashes of the
+     * query computed once, so that the same hashes can be checked against
+     * many tables.
+     */
+    public boolean contains(QueryKeywordHashes hashes) {
+        // In the new version, we will not accept TTLs for methods.  Tables
+        // are only 1 hop deep....
+        return hashes.matches(storage, bitTableLength);
     }
 
     /**
@@ -407,9 +328,9 @@ public class QueryRouteTable {
     }
 
 
-    //All encoding/decoding works in a pipelined manner, by continually
-    //modifying a byte array called 'data'.  TODO2: we could avoid a lot of
-    //allocations here if memory is at a premium.
+    //Encoding works in a pipelined manner, by continually modifying a byte
+    //array called 'data'.  Decoding applies each entry as soon as it has
+    //been inflated.
 
     private void handlePatch(PatchTableMessage m) throws BadPacketException {
         //0. Verify that m belongs in this sequence.  If we haven't just been
@@ -427,47 +348,38 @@ public class QueryRouteTable {
                                          +" vs. "+sequenceNumber);
 
         byte[] data=m.getData();
+        byte entryBits=m.getEntryBits();
+        if (entryBits!=4 && entryBits!=8)
+            throw new BadPacketException("Unknown value for entry bits");
 
-        //1. Start pipelined uncompression.
+        //1. Inflate into a small buffer and apply each piece as it comes
+        //   out, so that the whole uncompressed patch never exists at once.
         //TODO: check that compression is same as last message.
         if (m.getCompressor()==PatchTableMessage.COMPRESSOR_DEFLATE) {
+            //a) If first message, create uncompressor (if needed).
+            if (m.getSequenceNumber()==1) {
+                uncompressor = new Inflater();
+                inflateBuffer = new byte[1024];
+            }       
+            assert uncompressor!=null : 
+                "Null uncompressor.  Sequence: "+m.getSequenceNumber();
+            uncompressor.setInput(data);
             try {
-                //a) If first message, create uncompressor (if needed).
-                if (m.getSequenceNumber()==1) {
-                    uncompressor = new Inflater();
-                }       
-                assert uncompressor!=null : 
-                    "Null uncompressor.  Sequence: "+m.getSequenceNumber();
-                data=uncompress(data);            
-            } catch (IOException e) {
+                while (true) {
+                    int read=uncompressor.inflate(inflateBuffer);
+                    //Needs input?
+                    if (read==0)
+                        break;
+                    applyPatch(inflateBuffer, read, entryBits);
+                }
+            } catch (DataFormatException e) {
                 throw new BadPacketException("Couldn't uncompress data: "+e);
             }
-        } else if (m.getCompressor()!=PatchTableMessage.COMPRESSOR_NONE) {
+        } else if (m.getCompressor()==PatchTableMessage.COMPRESSOR_NONE) {
+            applyPatch(data, data.length, entryBits);
+        } else {
             throw new BadPacketException("Unknown compressor");
         }
-        
-        //2. Expand nibbles if necessary.
-        if (m.getEntryBits()==4) 
-            data=unhalve(data);
-        else if (m.getEntryBits()!=8)
-            throw new BadPacketException("Unknown value for entry bits");
-
-        //3. Add data[0...] to table[nextPatch...]            
-        for (int i=0; i<data.length; i++) {
-            if(nextPatch >= bitTableLength)
-                throw new BadPacketException("Tried to patch "+nextPatch
-                                             +" on a bitTable of size "
-                                             + bitTableLength);
-            // All negative values indicate presence
-            if (data[i] < 0) {
-                storage.set(nextPatch);
-            }
-            // All positive values indicate absence
-            else if (data[i] > 0) {
-                storage.clear(nextPatch);
-            }
-            nextPatch++;
-        }
         storage.compact();
 
         //4. Update sequence numbers.
@@ -483,10 +395,43 @@ public class QueryRouteTable {
             if( this.uncompressor != null ) {
                 IOUtils.close(uncompressor);
                 this.uncompressor = null;
+                this.inflateBuffer = null;
             }
         }   
     }
     
+    /**
+     * Adds data[0...length) to table[nextPatch...], expanding nibbles
+     * if entryBits is 4.
+     */
+    private void applyPatch(byte[] data, int length, byte entryBits)
+      throws BadPacketException {
+        for (int i=0; i<length; i++) {
+            if (entryBits==4) {
+                applyEntry((byte)(data[i]>>4));     //sign extension
+                applyEntry(extendNibble((byte)(data[i]&0xF)));
+            } else {
+                applyEntry(data[i]);
+            }
+        }
+    }
+    
+    private void applyEntry(byte entry) throws BadPacketException {
+        if(nextPatch >= bitTableLength)
+            throw new BadPacketException("Tried to patch "+nextPatch
+                                         +" on a bitTable of size "
+                                         + bitTableLength);
+        // All negative values indicate presence
+        if (entry < 0) {
+            storage.set(nextPatch);
+        }
+        // All positive values indicate absence
+        else if (entry > 0) {
+            storage.clear(nextPatch);
+        }
+        nextPatch++;
+    }
+    
     /**
      * Stub for calling encode(QueryRouteTable, true).
      */
@@ -618,31 +563,6 @@ public class QueryRouteTable {
 
     ///////////////// Helper Functions for Codec ////////////////////////
 
-    /** Returns the uncompressed version of the given defaulted bytes, using
-     *  any dictionaries in uncompressor.  Throws IOException if the data is
-     *  corrupt.
-     *      @requires inflater initialized 
-     *      @modifies inflater */
-    private byte[] uncompress(byte[] data) throws IOException {
-        ByteArrayOutputStream baos=new ByteArrayOutputStream();
-        uncompressor.setInput(data);
-        
-        try {
-            byte[] buf=new byte[1024];
-            while (true) {
-                int read=uncompressor.inflate(buf);
-                //Needs input?
-                if (read==0)
-                    break;
-                baos.write(buf, 0, read);                
-            }
-            baos.flush();
-            return baos.toByteArray();
-        } catch (DataFormatException e) {
-            throw new IOException("Bad deflate format");
-        }
-    }
-
     /**
      * @return a byte[] copy of this routing table.  
      */
@@ -28,4 +28,8 @@ class LimeRUDPSettings implements RUDPSettings {
         return DownloadSettings.SKIP_ACKS.getValue();
     }
 
+    public boolean isSelectiveAckEnabled() {
+        return DownloadSettings.SELECTIVE_ACKS.getValue();
+    }
+
 }
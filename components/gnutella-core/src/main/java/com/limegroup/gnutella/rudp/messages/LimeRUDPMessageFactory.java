@@ -59,6 +59,11 @@ class LimeRUDPMessageFactory implements RUDPMessageFactory {
                 delegate.createAckMessage(connectionID, sequenceNumber, windowStart, windowSpace));
     }
 
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, int selectiveAcks) {
+        return new LimeAckMessageImpl(
+                delegate.createAckMessage(connectionID, sequenceNumber, windowStart, windowSpace, selectiveAcks));
+    }
+
     public DataMessage createDataMessage(byte connectionID, long sequenceNumber, ByteBuffer chunk) {
         return new LimeDataMessageImpl(
                 delegate.createDataMessage(connectionID, sequenceNumber, chunk));
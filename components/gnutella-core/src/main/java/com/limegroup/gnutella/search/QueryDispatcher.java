@@ -26,6 +26,12 @@ public interface QueryDispatcher extends Runnable {
      */
     public void updateLeafResultsForQuery(GUID queryGUID, int numResults);
 
+    /**
+     * Notifies the query that replies were routed for it, so that it stops
+     * as soon as it has enough results.
+     */
+    public void updateResultsForQuery(GUID queryGUID);
+
     /** Gets the number of results the Leaf has reported so far.
      *  @return a non-negative number if the guid exists, else -1.
      */
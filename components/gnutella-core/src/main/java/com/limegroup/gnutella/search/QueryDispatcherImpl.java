@@ -1,14 +1,19 @@
 package com.limegroup.gnutella.search;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.limewire.collection.TimerWheel;
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.inspection.Inspectable;
 import org.limewire.inspection.InspectableForSize;
@@ -27,15 +32,30 @@ import com.limegroup.gnutella.ReplyHandler;
  * of its leaves, also providing an interface for removing active queries.
  * Queries may be removed, for example, when a leaf node with an active query
  * disconnects from the Ultrapeer.
+ * <p>
+ * Each query is kept on a timing wheel at the time its handler wants to
+ * send the next query, so a tick only wakes the queries that are due rather
+ * than every active query. A query that gets enough results, from routed
+ * replies or from its leaf, is removed as soon as it is told about them.
  */
 @Singleton
 public final class QueryDispatcherImpl implements QueryDispatcher {
 
+    /** The time between ticks of the wheel, in milliseconds. */
+    static final long TICK = 100;
+
+    /**
+     * The longest time a query waits before it is woken again, so that
+     * queries that ran out of time are removed.
+     */
+    static final long MAX_WAIT = 6000;
+
     /**
      * <tt>Map</tt> of outstanding queries.  
      */
     @InspectableForSize("number of dispatched queries")
-    private final Map<GUID, QueryHandler> QUERIES = new HashMap<GUID, QueryHandler>();
+    private final ConcurrentMap<GUID, QueryHandler> QUERIES =
+        new ConcurrentHashMap<GUID, QueryHandler>();
 
     /** Details about the queries. */
     @InspectionPoint("dispatched queries details")
@@ -50,13 +70,38 @@ public final class QueryDispatcherImpl implements QueryDispatcher {
     };
     
     /**
-     * <tt>List</tt> of new queries to add.
-     * LOCKING: Thread-safe, although you must obtain a lock on NEW_QUERIES if
-     * it's ever iterated over.  
+     * The time ticks took, the number of queries that were woken and the
+     * queries that were added and woken per second.
+     */
+    @InspectionPoint("query dispatcher stats")
+    @SuppressWarnings("unused")
+    private final Inspectable statsInspectable = new Inspectable() {
+        @Override
+        public Object inspect() {
+            return stats.inspect();
+        }
+    };
+    
+    /**
+     * <tt>Queue</tt> of new queries to put on the wheel.
+     * LOCKING: Thread-safe, lock NEW_QUERIES to start or stop processing.
      */
     @InspectableForSize("number of newly dispatched queries")
-	private final List<QueryHandler> NEW_QUERIES =
-        Collections.synchronizedList(new LinkedList<QueryHandler>());
+	private final Queue<QueryHandler> NEW_QUERIES =
+        new ConcurrentLinkedQueue<QueryHandler>();
+    
+    /** The queries by the time they are due.  Only used by the processor. */
+    private final TimerWheel<QueryTimer> wheel =
+        new TimerWheel<QueryTimer>(TICK, System.currentTimeMillis());
+    
+    /** The timers of the queries that are on the wheel.  Only used by the processor. */
+    private final Map<QueryHandler, QueryTimer> scheduled =
+        new IdentityHashMap<QueryHandler, QueryTimer>();
+    
+    /** The queries that are due in a tick.  Only used by the processor. */
+    private final List<QueryTimer> due = new ArrayList<QueryTimer>();
+    
+    private final Stats stats = new Stats();
     
     /**
      * The ProcessingQueue that handles sending queries out.
@@ -77,9 +122,11 @@ public final class QueryDispatcherImpl implements QueryDispatcher {
      */
 	public void addQuery(QueryHandler handler) {
         handler.sendQuery();  // immediately send out one query.
+        QUERIES.put(handler.getGUID(), handler);
+        NEW_QUERIES.offer(handler);
+        stats.added.incrementAndGet();
         synchronized(NEW_QUERIES) {
-            NEW_QUERIES.add(handler);
-            if(NEW_QUERIES.size() == 1 && !_active) {
+            if(!_active) {
                 _active = true;
                 PROCESSOR.execute(this);
             }
@@ -101,73 +148,62 @@ public final class QueryDispatcherImpl implements QueryDispatcher {
      * @see com.limegroup.gnutella.search.QueryDispatcher#updateLeafResultsForQuery(com.limegroup.gnutella.GUID, int)
      */
     public void updateLeafResultsForQuery(GUID queryGUID, int numResults) {
-        synchronized (QUERIES) {
-            QueryHandler qh = QUERIES.get(queryGUID);
-            if (qh != null)
-                qh.updateLeafResults(numResults);
+        QueryHandler qh = QUERIES.get(queryGUID);
+        if (qh != null) {
+            qh.updateLeafResults(numResults);
+            removeIfDone(qh);
         }
     }
 
+    /* (non-Javadoc)
+     * @see com.limegroup.gnutella.search.QueryDispatcher#updateResultsForQuery(com.limegroup.gnutella.GUID)
+     */
+    public void updateResultsForQuery(GUID queryGUID) {
+        QueryHandler qh = QUERIES.get(queryGUID);
+        if (qh != null)
+            removeIfDone(qh);
+    }
+
+    /**
+     * Removes a query that has enough results.  It is taken off the wheel
+     * when it is next due.
+     */
+    private void removeIfDone(QueryHandler qh) {
+        if (qh.hasEnoughResults() && QUERIES.remove(qh.getGUID(), qh))
+            stats.satisfied.incrementAndGet();
+    }
+
     /* (non-Javadoc)
      * @see com.limegroup.gnutella.search.QueryDispatcher#getLeafResultsForQuery(com.limegroup.gnutella.GUID)
      */
     public int getLeafResultsForQuery(GUID queryGUID) {
-        synchronized (QUERIES) {
-            QueryHandler qh = QUERIES.get(queryGUID);
-            if (qh == null)
-                return -1;
-            else
-                return qh.getNumResultsReportedByLeaf();
-        }
+        QueryHandler qh = QUERIES.get(queryGUID);
+        if (qh == null)
+            return -1;
+        else
+            return qh.getNumResultsReportedByLeaf();
     }
 
     /**
      * Removes all queries using the specified <tt>ReplyHandler</tt>
-     * from NEW_QUERIES & QUERIES.
+     * from QUERIES.  They are taken off the wheel when they are next due.
      *
      * @param handler the <tt>ReplyHandler</tt> to remove
      */
     private void remove(ReplyHandler handler) {
-        synchronized(NEW_QUERIES) {
-            Iterator<QueryHandler> iter = NEW_QUERIES.iterator();
-            while(iter.hasNext()) {
-                QueryHandler qh = iter.next();
-                if(qh.getReplyHandler() == handler)
-                    iter.remove();
-            }
-        }
-        
-        synchronized(QUERIES) {
-            Iterator<QueryHandler> iter = QUERIES.values().iterator();
-            while(iter.hasNext()) {
-                QueryHandler qh = iter.next();
-                if(qh.getReplyHandler() == handler)
-                    iter.remove();
-            }
+        Iterator<QueryHandler> iter = QUERIES.values().iterator();
+        while(iter.hasNext()) {
+            QueryHandler qh = iter.next();
+            if(qh.getReplyHandler() == handler)
+                iter.remove();
         }
     }
     
     /**
-     * Removes the specified <tt>ReplyHandler</tt> from NEW_QUERIES & QUERIES.
+     * Removes the query with the specified GUID from QUERIES.
      */
     private void remove(GUID guid) {
-        synchronized(NEW_QUERIES) {
-            Iterator<QueryHandler> iter = NEW_QUERIES.iterator();
-            while(iter.hasNext()) {
-                QueryHandler qh = iter.next();
-                if(qh.getGUID().equals(guid))
-                    iter.remove();
-            }
-        }
-        
-        synchronized(QUERIES) {
-            Iterator<QueryHandler> iter = QUERIES.values().iterator();
-            while(iter.hasNext()) {
-                QueryHandler qh = iter.next();
-                if(qh.getGUID().equals(guid))
-                    iter.remove();
-            }
-        }
+        QUERIES.remove(guid);
     }
 
 	/* (non-Javadoc)
@@ -176,7 +212,7 @@ public final class QueryDispatcherImpl implements QueryDispatcher {
 	public void run() {
         while(true) {
             try {
-                Thread.sleep(400);
+                Thread.sleep(TICK);
             } catch(InterruptedException ignored) {}
             
             try {
@@ -200,30 +236,63 @@ public final class QueryDispatcherImpl implements QueryDispatcher {
     }
 
 	/**
-     * Processes current queries.
+     * Puts new queries on the wheel and sends the queries that are due.
+     * 
+     * @return true if there are queries left
      */
     private boolean processQueries() {
-        synchronized (NEW_QUERIES) {
-            synchronized (QUERIES) {
-                for (QueryHandler qh : NEW_QUERIES)
-                    QUERIES.put(qh.getGUID(), qh);
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        QueryHandler handler;
+        while((handler = NEW_QUERIES.poll()) != null) {
+            // a query that was removed and added again may still be on the wheel
+            if(!scheduled.containsKey(handler)) {
+                QueryTimer timer = new QueryTimer(handler);
+                scheduled.put(handler, timer);
+                timer.time = nextQueryTime(handler, now);
+                wheel.schedule(timer);
             }
-            NEW_QUERIES.clear();
         }
-
     
-        synchronized(QUERIES) {
-            Iterator<QueryHandler> iter = QUERIES.values().iterator();
-            while(iter.hasNext()) {
-                QueryHandler handler = iter.next();
-                handler.sendQuery();
-                if(handler.hasEnoughResults())
-                    iter.remove();
+        due.clear();
+        wheel.expire(now, due);
+        for(int i = 0; i < due.size(); i++) {
+            QueryTimer timer = due.get(i);
+            handler = timer.handler;
+            GUID guid = handler.getGUID();
+            if(QUERIES.get(guid) != handler) {
+                // removed while it was waiting
+                scheduled.remove(handler);
+                continue;
             }
-            
-            return !QUERIES.isEmpty();
+            handler.sendQuery();
+            if(handler.hasEnoughResults()) {
+                QUERIES.remove(guid, handler);
+                scheduled.remove(handler);
+            } else {
+                timer.time = nextQueryTime(handler, System.currentTimeMillis());
+                wheel.schedule(timer);
+            }
+        }
+        stats.tick(System.nanoTime() - start, due.size());
+        due.clear();
+        
+        if(QUERIES.isEmpty()) {
+            wheel.clear();
+            scheduled.clear();
+            return false;
         }
+        return true;
 	}
+    
+    /**
+     * Returns the time a query should be woken at: when it wants to send
+     * its next query, but after the next tick and no later than MAX_WAIT.
+     */
+    private static long nextQueryTime(QueryHandler handler, long now) {
+        long next = Math.max(handler.getNextQueryTime(), now + TICK);
+        return Math.min(next, now + MAX_WAIT);
+    }
 
     
     /* (non-Javadoc)
@@ -232,7 +301,68 @@ public final class QueryDispatcherImpl implements QueryDispatcher {
     public void addToRemove(GUID g) {
         remove(g);
     }
-}
-
-
 
+    /**
+     * Counters of the ticks and the queries that were added and woken.
+     */
+    private static class Stats {
+        final AtomicLong added = new AtomicLong();
+        /** Queries removed as soon as they were told about their results. */
+        final AtomicLong satisfied = new AtomicLong();
+        /** Written by the processor only. */
+        volatile long ticks, tickNanos, maxTickNanos, woken;
+        
+        /** The time of the last inspection and the counts at that time. */
+        private long lastTime = System.currentTimeMillis();
+        private long lastAdded, lastWoken;
+        
+        void tick(long nanos, int wokenQueries) {
+            ticks++;
+            tickNanos += nanos;
+            if(nanos > maxTickNanos)
+                maxTickNanos = nanos;
+            woken += wokenQueries;
+        }
+        
+        /**
+         * Returns the counts, and the queries added and woken per second
+         * since the last inspection.
+         */
+        synchronized Map<String, Object> inspect() {
+            long now = System.currentTimeMillis();
+            long elapsed = Math.max(1, now - lastTime);
+            long added = this.added.get();
+            long woken = this.woken;
+            Map<String, Object> ret = new HashMap<String, Object>();
+            ret.put("ver", 1);
+            ret.put("ticks", ticks);
+            ret.put("tickns", tickNanos);
+            ret.put("maxtickns", maxTickNanos);
+            ret.put("added", added);
+            ret.put("addedps", (added - lastAdded) * 1000 / elapsed);
+            ret.put("woken", woken);
+            ret.put("wokenps", (woken - lastWoken) * 1000 / elapsed);
+            ret.put("satisfied", satisfied.get());
+            lastTime = now;
+            lastAdded = added;
+            lastWoken = woken;
+            return ret;
+        }
+    }
+    
+    /** The time a query is due on the wheel. */
+    private static final class QueryTimer extends TimerWheel.Timer {
+        private final QueryHandler handler;
+        
+        private long time;
+        
+        QueryTimer(QueryHandler handler) {
+            this.handler = handler;
+        }
+        
+        @Override
+        public long getEventTime() {
+            return time;
+        }
+    }
+}
@@ -77,6 +77,13 @@ public interface QueryHandler {
      */
     public long getTimeToWaitPerHop();
 
+    /**
+     * Accessor for the time after which the next query should be sent.
+     *
+     * @return the time in milliseconds, or 0 if no query was sent yet
+     */
+    public long getNextQueryTime();
+
     /** @return simply returns the guid of the query this is handling.
      */
     public GUID getGUID();
@@ -647,6 +647,15 @@ final class QueryHandlerImpl implements Inspectable, QueryHandler {
         return _timeToWaitPerHop;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.limegroup.gnutella.search.QueryHandler#getNextQueryTime()
+     */
+    public long getNextQueryTime() {
+        return _nextQueryTime;
+    }
+
     // overrides Object.toString
     @Override
     public String toString() {
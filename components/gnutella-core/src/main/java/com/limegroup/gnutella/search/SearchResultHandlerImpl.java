@@ -298,6 +298,9 @@ final class SearchResultHandlerImpl implements SearchResultHandler {
         if(SearchSettings.ENABLE_SPAM_FILTER.getValue())
             spamThreshold = SearchSettings.FILTER_SPAM_RESULTS.getValue();
         
+        List<RemoteFileDesc> rfds = new ArrayList<RemoteFileDesc>(results.size());
+        List<Set<? extends IpPort>> alts =
+            new ArrayList<Set<? extends IpPort>>(results.size());
         for(Response response : results) {
             if(!responseFilter.allow(qr, response)) {
                 LOG.debug("Ignoring result because of response filter");
@@ -329,19 +332,24 @@ final class SearchResultHandlerImpl implements SearchResultHandler {
                 throw new RuntimeException("should not have happened", e);
             }
             rfd.setSecureStatus(secureStatus);
-            Set<? extends IpPort> alts = response.getLocations();
-            
-            // Set the spam rating for the RemoteFileDesc
-            float spamRating = spamManager.get().calculateSpamRating(rfd);
-            
-            // Count non-spam results for dynamic querying
-            if(skipSpam || spamRating < spamThreshold)
+            rfds.add(rfd);
+            alts.add(response.getLocations());
+        }
+        
+        // Set the spam ratings for all the results of the reply at once
+        float[] spamRatings = spamManager.get().calculateSpamRatings(
+                rfds.toArray(new RemoteFileDesc[rfds.size()]));
+        
+        // Count non-spam results for dynamic querying
+        for(int i = 0; i < rfds.size(); i++) {
+            if(skipSpam || spamRatings[i] < spamThreshold)
                 numGoodSentToFrontEnd++;
-            
-            // Send the result to the UI
-            activityCallback.get().handleQueryResult(rfd, qr, alts);
         }
         
+        // Send the results to the UI
+        if(!rfds.isEmpty())
+            activityCallback.get().handleQueryResults(qr, rfds, alts);
+        
         if(LOG.isDebugEnabled())
             LOG.debug(numGoodSentToFrontEnd + " responses sent to the UI");
         
@@ -72,12 +72,15 @@ public class MerkleTree extends MessageDigest {
         nodes.ensureCapacity(log2Ceil(byteCount / BLOCKSIZE));
 
         if (bufferOffset > 0) {
-            int remaining = BLOCKSIZE - bufferOffset;
+            int remaining = Math.min(BLOCKSIZE - bufferOffset, length);
             System.arraycopy(in, offset, buffer, bufferOffset, remaining);
-            blockUpdate();
-            bufferOffset = 0;
+            bufferOffset += remaining;
             length -= remaining;
             offset += remaining;
+            if (bufferOffset < BLOCKSIZE)
+                return;
+            blockUpdate();
+            bufferOffset = 0;
         }
 
         while (length >= BLOCKSIZE) {
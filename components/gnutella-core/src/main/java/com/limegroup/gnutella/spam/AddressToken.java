@@ -5,6 +5,8 @@ package com.limegroup.gnutella.spam;
  */
 public class AddressToken extends KeywordToken {
 
+    private static final long serialVersionUID = -2666143362429810722L;
+
     /**
      * A node is unlikely to return spam and non-spam results in the same
      * session. However, the user may mark unwanted results as spam even if
@@ -31,6 +33,11 @@ public class AddressToken extends KeywordToken {
         return keyword.equals(((AddressToken)o).keyword);
     }
 
+    @Override
+    byte getType() {
+        return ADDRESS;
+    }
+
     @Override
     public String toString() {
         return "address " + keyword;
@@ -5,6 +5,8 @@ package com.limegroup.gnutella.spam;
  */
 public class ApproximateSizeToken extends Token {
 
+    private static final long serialVersionUID = -200782197135172733L;
+
     /** 
      * Spammers sometimes modify their files to make it more difficult to
      * filter by URN or size - we consider the approximate size, but give it
@@ -28,6 +30,16 @@ public class ApproximateSizeToken extends Token {
         return APPROXIMATE_SIZE_WEIGHT;
     }
     
+    @Override
+    byte getType() {
+        return APPROXIMATE_SIZE;
+    }
+
+    @Override
+    long computeKey() {
+        return hash(getType(), size);
+    }
+
     @Override
     public int hashCode() {
         return (int)size;
@@ -5,6 +5,8 @@ package com.limegroup.gnutella.spam;
  */
 public class ClientGUIDToken extends KeywordToken {
 
+    private static final long serialVersionUID = 8714145342646167782L;
+
     /**
      * Unlike an IP address, a client GUID should never be shared by spammers
      * and non-spammers, so we can give it a high weight as a spam indicator.
@@ -27,6 +29,11 @@ public class ClientGUIDToken extends KeywordToken {
         return keyword.equals(((ClientGUIDToken)o).keyword);
     }
     
+    @Override
+    byte getType() {
+        return CLIENT_GUID;
+    }
+
     @Override
     public String toString() {
         return "guid " + keyword;
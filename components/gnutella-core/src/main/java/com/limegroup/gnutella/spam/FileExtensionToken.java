@@ -5,6 +5,8 @@ package com.limegroup.gnutella.spam;
  */
 public class FileExtensionToken extends KeywordToken {
 
+    private static final long serialVersionUID = -3149322870568173985L;
+
     /**
      * A file extension is a poor indicator of spam, so we give it a lower
      * weight than other keywords.
@@ -27,6 +29,11 @@ public class FileExtensionToken extends KeywordToken {
         return keyword.equals(((FileExtensionToken)o).keyword);
     }
     
+    @Override
+    byte getType() {
+        return EXTENSION;
+    }
+
     @Override
     public String toString() {
         return "extension " + keyword;
@@ -5,6 +5,8 @@ package com.limegroup.gnutella.spam;
  * extension) or a query string.
  */
 public class KeywordToken extends Token {
+
+    private static final long serialVersionUID = -8232287775001052021L;
     
     /**
      * Spammers often echo the search tokens in the result, but we ignore
@@ -25,6 +27,16 @@ public class KeywordToken extends Token {
         return KEYWORD_WEIGHT;
     }
     
+    @Override
+    byte getType() {
+        return KEYWORD;
+    }
+    
+    @Override
+    long computeKey() {
+        return hash(getType(), keyword);
+    }
+    
     @Override
     public int hashCode() {
         return keyword.hashCode();
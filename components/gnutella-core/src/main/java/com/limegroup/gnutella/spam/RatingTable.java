@@ -2,20 +2,20 @@ package com.limegroup.gnutella.spam;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -41,6 +41,14 @@ import com.limegroup.gnutella.messages.QueryRequest;
 import com.limegroup.gnutella.simpp.SimppListener;
 import com.limegroup.gnutella.simpp.SimppManager;
 
+/**
+ * Stores the spam ratings of tokens.
+ * <p>
+ * Ratings are held in a {@link TokenTable} under the 64-bit keys of the
+ * tokens, so rating search results does not lock and does not keep token
+ * objects. The ratings are saved in a compact binary format; ratings that
+ * were saved as serialized tokens by older versions are still loaded.
+ */
 @EagerSingleton
 public class RatingTable implements Service, SimppListener {
     private static final Log LOG = LogFactory.getLog(RatingTable.class);
@@ -53,10 +61,15 @@ public class RatingTable implements Service, SimppListener {
     private static final int MAX_SIZE = 5000;
 
     /**
-     * Initial size of the rating table - should not be too large as many
-     * users probably don't use the spam filter.
+     * The first bytes of a file of ratings in the binary format, which
+     * can't be mistaken for the start of a serialized object.
      */
-    private static final int INITIAL_SIZE = 100;
+    private static final int MAGIC = 0x4C575352;
+
+    /**
+     * The version of the binary format.
+     */
+    private static final int VERSION = 1;
 
     /**
      * The file for storing tokens between sessions.
@@ -64,44 +77,27 @@ public class RatingTable implements Service, SimppListener {
     private final File spamDat;
 
     /**
-     * A map containing a limited number of tokens. We use a map rather than
-     * a set so that we can retrieve a stored token by using an equivalent
-     * token as a key. This allows us to use a token without rating data to
-     * retrieve an equivalent token that has rating data.
-     * <p>
-     * The size of the map is limited. Entries are discarded in
-     * least-recently-used order when the map is full, on the assumption that
-     * the least-recently-used token is the least important to keep. Tokens
-     * with zero ratings are not stored in the map.
-     * <p>
-     * LOCKING: this.
+     * The ratings of a limited number of tokens, discarded in approximately
+     * least-recently-used order when the table is full. The size is
+     * limited to MAX_SIZE, and the initial size is small as many users
+     * probably don't use the spam filter. Tokens with zero ratings are not
+     * stored.
      */
-    private final Map<Token, Token> tokenMap
-    = new LinkedHashMap<Token, Token>(INITIAL_SIZE, 0.75f, true) {
-        // This method will be called on every get(), put(), and putAll()
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Token, Token> e) {
-            if(size() > MAX_SIZE) {
-                if(LOG.isDebugEnabled())
-                    LOG.debug("Discarding token " + e.getValue());
-                return true;
-            }
-            return false;
-        }
-    };
+    private final TokenTable table = new TokenTable(MAX_SIZE);
 
     /**
-     * Tokens that the user has searched for during this session (could be
-     * keywords, XML metadata, and maybe URNs in the future). They will not
-     * contribute to the spam ratings of search results, because spammers
-     * often echo the search terms.
+     * The keys of tokens that the user has searched for during this session
+     * (could be keywords, XML metadata, and maybe URNs in the future). They
+     * will not contribute to the spam ratings of search results, because
+     * spammers often echo the search terms.
      */
-    private final HashSet<Token> searchTokens = new HashSet<Token>();
+    private final Set<Long> searchTokens =
+        Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 
     /**
-     * Whether the rating table needs to be saved. LOCKING: this.
+     * Whether the rating table needs to be saved.
      */
-    private boolean dirty = false;
+    private volatile boolean dirty = false;
 
     private final Tokenizer tokenizer;
     private final TemplateHashTokenFactory templateHashTokenFactory;
@@ -155,7 +151,7 @@ public class RatingTable implements Service, SimppListener {
         loadSpamTokensFromSettings();
     }
 
-    synchronized void loadSpamTokensFromSettings() {
+    void loadSpamTokensFromSettings() {
         if(!FilterSettings.USE_NETWORK_FILTER.getValue())
             return;
         // Rate the received template hashes as spam
@@ -176,9 +172,9 @@ public class RatingTable implements Service, SimppListener {
     /**
      * Clears the filter data
      */
-    synchronized void clear() {
+    void clear() {
         LOG.debug("Clearing ratings");
-        tokenMap.clear();
+        table.clear();
         dirty = true;
     }
 
@@ -188,8 +184,27 @@ public class RatingTable implements Service, SimppListener {
      * @param desc the RemoteFileDesc to rate
      * @return the rating for the RemoteFileDesc
      */
-    synchronized float getRating(RemoteFileDesc desc) {
-        float rating = getRating(lookup(tokenizer.getTokens(desc)));
+    float getRating(RemoteFileDesc desc) {
+        return getRating(desc, table.tick());
+    }
+
+    /**
+     * Returns the ratings for the RemoteFileDescs of one reply, which share
+     * a tick of the clock that stamps their tokens as used.
+     * 
+     * @param descs the RemoteFileDescs to rate
+     * @return the ratings, in the order of the RemoteFileDescs
+     */
+    float[] getRatings(RemoteFileDesc[] descs) {
+        float[] ratings = new float[descs.length];
+        int time = table.tick();
+        for(int i = 0; i < descs.length; i++)
+            ratings[i] = getRating(descs[i], time);
+        return ratings;
+    }
+
+    private float getRating(RemoteFileDesc desc, int time) {
+        float rating = getRating(tokenizer.getTokens(desc), time);
         if(LOG.isDebugEnabled()) {
             String addr = desc.getAddress().getAddressDescription();
             LOG.debug("Result from " + addr + " rated " + rating);
@@ -198,15 +213,25 @@ public class RatingTable implements Service, SimppListener {
     }
 
     /**
-     * Returns the combined rating for a set of tokens.
+     * Returns the combined rating for a set of tokens, ignoring any that
+     * have been searched for during this session.
      * 
      * @param tokens a set of tokens to be rated
+     * @param time the time to stamp the tokens as used at
      * @return the combined rating for the tokens
      */
-    private float getRating(Set<Token> tokens) {
+    private float getRating(Set<Token> tokens, int time) {
         float rating = 1;
-        for(Token t : tokens)
-            rating *= 1 - t.getRating();
+        boolean searched = !searchTokens.isEmpty();
+        for(Token t : tokens) {
+            long key = t.getKey();
+            if(searched && searchTokens.contains(key)) {
+                if(LOG.isDebugEnabled())
+                    LOG.debug("Ignoring search token " + t);
+                continue;
+            }
+            rating *= 1 - table.get(key, time);
+        }
         return 1 - rating;
     }
 
@@ -216,8 +241,8 @@ public class RatingTable implements Service, SimppListener {
      * @param descs an array of RemoteFileDescs to be rated
      * @param rating a rating between 0 (not spam) and 1 (spam)
      */
-    synchronized void rate(RemoteFileDesc[] descs, float rating) {
-        rateInternal(lookup(tokenizer.getTokens(descs)), rating);
+    void rate(RemoteFileDesc[] descs, float rating) {
+        rateInternal(tokenizer.getTokens(descs), rating);
     }
 
     /**
@@ -226,24 +251,20 @@ public class RatingTable implements Service, SimppListener {
      * @param qr a QueryReply to be rated
      * @param rating a rating between 0 (not spam) and 1 (spam)
      */
-    synchronized void rate(QueryReply qr, float rating) {
-        rateInternal(lookup(tokenizer.getNonKeywordTokens(qr)), rating);
+    void rate(QueryReply qr, float rating) {
+        rateInternal(tokenizer.getNonKeywordTokens(qr), rating);
     }
 
     /**
      * Assigns the given rating to the given token and stores it, unless the
      * token is already stored, in which case the existing rating is preserved.
-     * LOCKING: this.
      */
     private void setRatingIfUnrated(Token t, float rating) {
         if(rating == 0f)
             return;
-        Token stored = tokenMap.get(t);
-        if(stored == null) {
+        if(table.putIfAbsent(t.getKey(), t.getType(), rating)) {
             if(LOG.isDebugEnabled())
                 LOG.debug("Setting rating of " + t + " to " + rating);
-            t.setRating(rating);
-            tokenMap.put(t, t);
             dirty = true;
         } else {
             if(LOG.isDebugEnabled())
@@ -257,119 +278,68 @@ public class RatingTable implements Service, SimppListener {
      * 
      * @param qr the QueryRequest to clear
      */
-    synchronized void clear(QueryRequest qr) {
+    void clear(QueryRequest qr) {
         for(Token t : tokenizer.getTokens(qr)) {
             if(LOG.isDebugEnabled())
                 LOG.debug("Clearing search token " + t);
-            searchTokens.add(t); // Ignore the token for this session
+            searchTokens.add(t.getKey()); // Ignore the token for this session
             // Clear the rating for future sessions
-            if(tokenMap.remove(t) != null)
+            if(table.remove(t.getKey()))
                 dirty = true;
         }
     }
 
     /**
      * Assigns the given rating to a set of tokens, storing any that have
-     * non-zero ratings after being updated and removing from the map any that
-     * have zero ratings after being updated. LOCKING: this.
+     * non-zero ratings after being updated and removing from the table any
+     * that have zero ratings after being updated. Tokens that have been
+     * searched for during this session are ignored.
      * 
      * @param tokens a set of tokens to be rated
      * @param rating a rating between 0 (not spam) and 1 (spam)
      */
     private void rateInternal(Set<Token> tokens, float rating) {
         for(Token t : tokens) {
-            float before = t.getRating();
-            t.updateRating(rating);
-            float after = t.getRating();
+            long key = t.getKey();
+            if(searchTokens.contains(key)) {
+                if(LOG.isDebugEnabled())
+                    LOG.debug("Ignoring search token " + t);
+                continue;
+            }
+            float after = table.update(key, t.getType(), t.getWeight(), rating);
             if(LOG.isDebugEnabled())
-                LOG.debug(t + " was rated " + before + ", now rated " + after);
-            if(after == 0f)
-                tokenMap.remove(t);
-            else
-                tokenMap.put(t, t);
+                LOG.debug(t + " now rated " + after);
             dirty = true;
         }
     }
 
-    /**
-     * Replaces each token with an equivalent previously stored token, or
-     * returns the token that was passed in if no equivalent exists. Tokens
-     * that have been searched for during this session are not returned.
-     * 
-     * @param tokens a set of tokens to be replaced
-     * @return a set of equivalent tokens, with search tokens removed
-     */
-    private Set<Token> lookup(Set<Token> tokens) {
-        Set<Token> newTokens = new HashSet<Token>();
-        for(Token t : tokens) {
-            if(!searchTokens.contains(t))
-                newTokens.add(lookup(t));
-            else if(LOG.isDebugEnabled())
-                LOG.debug("Ignoring search token " + t);
-        }
-        return newTokens;
-    }
-
-    /**
-     * Returns an equivalent previously stored token if any such token exists,
-     * otherwise returns the token that was passed in. LOCKING: this.
-     * 
-     * @param token the token to look up
-     * @return the same token or a previously stored equivalent
-     */
-    private Token lookup(Token token) {
-        Token stored = tokenMap.get(token);
-        return stored == null ? token : stored;
-    }
-
     /**
      * Looks up a single token and returns its rating (for testing).
      */
-    synchronized float lookupAndGetRating(Token token) {
-        return getRating(Collections.singleton(lookup(token)));
+    float lookupAndGetRating(Token token) {
+        return table.peek(token.getKey());
     }
 
     /**
-     * Loads ratings from disk. Package access for testing.
+     * Loads ratings from disk, in the binary format or as serialized tokens.
+     * Package access for testing.
      */
     void load(File file) {
         if(!file.exists()) {
             LOG.debug("No ratings to load");
             return;
         }
-        Map<Token, Token> temporaryMap = new HashMap<Token, Token>();
-        ObjectInputStream is = null;
+        DataInputStream in = null;
         try {
-            is = new ObjectInputStream(
+            in = new DataInputStream(
                     new BufferedInputStream(
                             new FileInputStream(file)));
-            List<Token> list = GenericsUtils.scanForList(is.readObject(),
-                    Token.class, GenericsUtils.ScanMode.REMOVE);
-            int zeroes = 0, converted = 0;
-            for(Token t : list) {
-                // Convert old template tokens into template hash tokens
-                if(t instanceof TemplateToken) {
-                    t = templateHashTokenFactory.convert((TemplateToken) t);
-                    converted++;
-                }
-                if(t.getRating() > 0f) {
-                    if(LOG.isDebugEnabled())
-                        LOG.debug("Loading " + t + ", rated " + t.getRating());
-                    temporaryMap.put(t, t);
-                } else {
-                    zeroes++;
-                }
-            }
-            synchronized(this) {
-                tokenMap.clear();
-                tokenMap.putAll(temporaryMap);
-                if(zeroes > 0 || converted > 0)
-                    dirty = true;
-                if(LOG.isDebugEnabled()) {
-                    LOG.debug("Loaded " + tokenMap.size() +
-                            " entries, converted " + converted + ", skipped " +
-                            zeroes + " with zero scores");
-                }
+            in.mark(4);
+            if(in.readInt() == MAGIC) {
+                loadRatings(in);
+            } else {
+                in.reset();
+                loadTokens(in);
             }
         } catch(IOException e) {
             LOG.debug("Error loading spam ratings: ", e);
@@ -378,60 +348,118 @@ public class RatingTable implements Service, SimppListener {
         } catch(ClassCastException e) {
             LOG.debug("Error loading spam ratings: ", e);
         } finally {
-            IOUtils.close(is);
+            IOUtils.close(in);
         }
     }
 
     /**
-     * Saves ratings to disk.
+     * Loads ratings in the binary format, least recently used first.
+     */
+    private void loadRatings(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if(version != VERSION)
+            throw new IOException("unknown version " + version);
+        int count = in.readInt();
+        if(count < 0 || count > MAX_SIZE)
+            throw new IOException("bad count " + count);
+        long[] keys = new long[count];
+        byte[] types = new byte[count];
+        float[] ratings = new float[count];
+        for(int i = 0; i < count; i++) {
+            keys[i] = in.readLong();
+            types[i] = in.readByte();
+            ratings[i] = in.readFloat();
+            if(types[i] <= 0 || types[i] >= Token.TYPE_NAMES.length)
+                throw new IOException("bad type " + types[i]);
+        }
+        table.clear();
+        for(int i = 0; i < count; i++)
+            table.put(keys[i], types[i], ratings[i]);
+        if(LOG.isDebugEnabled())
+            LOG.debug("Loaded " + table.size() + " entries");
+    }
+
+    /**
+     * Loads a list of serialized tokens, as saved by older versions.
      */
-    void save() {
-        ArrayList<Token> list;
-        synchronized(this) {
-            if(!dirty) {
-                LOG.debug("Ratings do not need to be saved");
-                return;
+    private void loadTokens(InputStream in)
+    throws IOException, ClassNotFoundException {
+        ObjectInputStream is = new ObjectInputStream(in);
+        List<Token> list = GenericsUtils.scanForList(is.readObject(),
+                Token.class, GenericsUtils.ScanMode.REMOVE);
+        int zeroes = 0, converted = 0;
+        table.clear();
+        for(Token t : list) {
+            // Convert old template tokens into template hash tokens
+            if(t instanceof TemplateToken) {
+                t = templateHashTokenFactory.convert((TemplateToken) t);
+                converted++;
             }
-            dirty = false;
-            list = new ArrayList<Token>(tokenMap.size());
-            // The iterator returns the least-recently-used entry first
-            for(Map.Entry<Token,Token> e : tokenMap.entrySet()) {
-                Token t = e.getKey();
+            if(t.getRating() > 0f) {
                 if(LOG.isDebugEnabled())
-                    LOG.debug("Saving " + t + ", rated " + t.getRating());
-                list.add(t);
+                    LOG.debug("Loading " + t + ", rated " + t.getRating());
+                table.put(t.getKey(), t.getType(), t.getRating());
+            } else {
+                zeroes++;
             }
         }
-        ObjectOutputStream oos = null;
+        // Save the ratings in the binary format
+        dirty = true;
+        if(LOG.isDebugEnabled()) {
+            LOG.debug("Loaded " + table.size() +
+                    " entries, converted " + converted + ", skipped " +
+                    zeroes + " with zero scores");
+        }
+    }
+
+    /**
+     * Saves ratings to disk.
+     */
+    synchronized void save() {
+        if(!dirty) {
+            LOG.debug("Ratings do not need to be saved");
+            return;
+        }
+        dirty = false;
+        // The snapshot lists the least-recently-used entry first
+        TokenTable.Snapshot snapshot = table.snapshot();
+        DataOutputStream out = null;
         try {
-            oos = new ObjectOutputStream(
+            out = new DataOutputStream(
                     new BufferedOutputStream(
                             new FileOutputStream(spamDat)));
-            oos.writeObject(list);
-            oos.flush();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for(int i = 0; i < snapshot.size(); i++) {
+                out.writeLong(snapshot.keys[i]);
+                out.writeByte(snapshot.types[i]);
+                out.writeFloat(snapshot.ratings[i]);
+            }
+            out.flush();
             if(LOG.isDebugEnabled())
-                LOG.debug("Saved " + list.size() + " entries");
+                LOG.debug("Saved " + snapshot.size() + " entries");
         } catch (IOException iox) {
             LOG.debug("Error saving spam ratings: ", iox);
         } finally {
-            IOUtils.close(oos);
+            IOUtils.close(out);
         }
     }
 
     /**
      * @return the number of tokens in the rating table (for testing)
      */
-    synchronized int size() {
-        return tokenMap.size();
+    int size() {
+        return table.size();
     }
 
     /**
-     * @return the least-recently-used token in the table (for testing)
+     * @return the key of the least-recently-used token in the table, or 0
+     * if the table is empty (for testing)
      */
-    synchronized Token getLeastRecentlyUsed() {
-        for(Map.Entry<Token,Token> e : tokenMap.entrySet())
-            return e.getKey();
-        return null; // Empty
+    long getLeastRecentlyUsed() {
+        TokenTable.Snapshot snapshot = table.snapshot();
+        return snapshot.size() == 0 ? 0 : snapshot.keys[0];
     }
 
     /** Inspectable that returns the number of each type of token */
@@ -441,15 +469,14 @@ public class RatingTable implements Service, SimppListener {
         public Object inspect() {
             Map<String, Object> m = new HashMap<String, Object>();
             m.put("ver",1);
-            synchronized(RatingTable.this) {
-                for(Token t : tokenMap.values()) {
-                    String clazz = t.getClass().getSimpleName();
-                    Integer i = (Integer)m.get(clazz);
-                    if(i == null)
-                        m.put(clazz, 1);
-                    else
-                        m.put(clazz, i + 1);
-                }
+            TokenTable.Snapshot snapshot = table.snapshot();
+            for(int j = 0; j < snapshot.size(); j++) {
+                String clazz = Token.TYPE_NAMES[snapshot.types[j]];
+                Integer i = (Integer)m.get(clazz);
+                if(i == null)
+                    m.put(clazz, 1);
+                else
+                    m.put(clazz, i + 1);
             }
             return m;
         }
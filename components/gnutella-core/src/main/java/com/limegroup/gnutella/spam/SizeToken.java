@@ -5,6 +5,8 @@ package com.limegroup.gnutella.spam;
  */
 public class SizeToken extends Token {
 
+    private static final long serialVersionUID = 5272280344076962502L;
+
     /** 
      * Exact file size is a fairly accurate identifier of a file, so we will
      * consider a certain file size spam after only a couple of bad ratings.
@@ -22,6 +24,16 @@ public class SizeToken extends Token {
         return SIZE_WEIGHT;
     }
     
+    @Override
+    byte getType() {
+        return SIZE;
+    }
+
+    @Override
+    long computeKey() {
+        return hash(getType(), size);
+    }
+
     @Override
     public int hashCode() {
         return (int)size;
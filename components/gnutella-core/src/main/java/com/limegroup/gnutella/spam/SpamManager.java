@@ -32,6 +32,15 @@ public interface SpamManager {
      */
     public float calculateSpamRating(RemoteFileDesc rfd);
 
+    /**
+     * Calculates and sets the spam ratings for the RemoteFileDescs of one
+     * query reply.
+     * 
+     * @param rfds the RemoteFileDescs to rate
+     * @return the spam ratings of the RemoteFileDescs, in the same order
+     */
+    public float[] calculateSpamRatings(RemoteFileDesc[] rfds);
+
     /**
      * Increases the spam ratings of tokens associated with a spam query reply.
      */
@@ -60,6 +60,24 @@ class SpamManagerImpl implements SpamManager {
         return rating;
     }
 
+    /**
+     * Calculates and sets the spam ratings for the RemoteFileDescs of one
+     * query reply.
+     * 
+     * @param rfds the RemoteFileDescs to rate
+     * @return the spam ratings of the RemoteFileDescs, in the same order
+     */
+    @Override
+    public float[] calculateSpamRatings(RemoteFileDesc[] rfds) {
+        if (!SearchSettings.ENABLE_SPAM_FILTER.getValue())
+            return new float[rfds.length];
+
+        float[] ratings = ratingTable.getRatings(rfds);
+        for (int i = 0; i < rfds.length; i++)
+            rfds[i].setSpamRating(ratings[i]);
+        return ratings;
+    }
+
     /**
      * Increases the spam ratings of tokens associated with a spam query reply.
      */
@@ -10,6 +10,8 @@ import org.limewire.util.Base32;
  */
 public class TemplateHashToken extends Token {
 
+    private static final long serialVersionUID = -6173088825374048510L;
+
     /**
      * Unlike keywords or file extensions, templates should be quite unlikely to
      * occur in both spam and non-spam responses, so we give them a high weight.
@@ -27,6 +29,16 @@ public class TemplateHashToken extends Token {
         return TEMPLATE_HASH_WEIGHT;
     }
 
+    @Override
+    byte getType() {
+        return TEMPLATE_HASH;
+    }
+
+    @Override
+    long computeKey() {
+        return hash(getType(), hash);
+    }
+
     @Override
     public int hashCode() {
         return Arrays.hashCode(hash);
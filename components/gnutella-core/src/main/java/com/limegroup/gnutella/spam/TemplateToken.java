@@ -7,6 +7,8 @@ import java.util.Locale;
  */
 public class TemplateToken extends KeywordToken {
 
+    private static final long serialVersionUID = -3045267287564809109L;
+
     /**
      * Unlike keywords or file extensions, templates should be quite unlikely to
      * occur in both spam and non-spam responses, so we can give them a fairly
@@ -68,6 +70,11 @@ public class TemplateToken extends KeywordToken {
         return keyword.equals(((TemplateToken)o).keyword);
     }
 
+    @Override
+    byte getType() {
+        return TEMPLATE;
+    }
+
     @Override
     public String toString() {
         return "template " + keyword;
@@ -2,21 +2,48 @@ package com.limegroup.gnutella.spam;
 
 import java.io.Serializable;
 
+import org.limewire.util.HashUtils;
+
 /**
  * An abstract Token class that uses an exponential moving average to update
  * its spam rating. Each subclass can have a different weight that determines
  * how sensitive its spam rating is to updates. 
+ * <p>
+ * Older versions saved the ratings as serialized tokens. Subclasses declare
+ * the serialVersionUID they had then, so those tokens can still be read.
  */
 public abstract class Token implements Serializable {
 
     private static final long serialVersionUID = -1519906405576105402L;
 
+    // The types of tokens, stored with their ratings
+    static final byte KEYWORD = 1;
+    static final byte ADDRESS = 2;
+    static final byte EXTENSION = 3;
+    static final byte URN = 4;
+    static final byte CLIENT_GUID = 5;
+    static final byte XML_KEYWORD = 6;
+    static final byte SIZE = 7;
+    static final byte APPROXIMATE_SIZE = 8;
+    static final byte TEMPLATE = 9;
+    static final byte TEMPLATE_HASH = 10;
+
+    /** The names of the types of tokens, indexed by type. */
+    static final String[] TYPE_NAMES = {
+        null, "KeywordToken", "AddressToken", "FileExtensionToken",
+        "UrnToken", "ClientGUIDToken", "XMLKeywordToken", "SizeToken",
+        "ApproximateSizeToken", "TemplateToken", "TemplateHashToken"
+    };
+
     /**
      * The spam rating of this token, between 0 (not spam) and 1 (spam).
      * Initialised to 0.
      */
     protected float rating = 0;
 
+    /** The key of this token, 0 until it is first needed. */
+    private transient long key;
+
     /**
      * Returns a weight between 0 and 1 that determines how sensitive this
      * token's spam rating is to updates - 0 means an update has no effect on
@@ -54,4 +81,61 @@ public abstract class Token implements Serializable {
         float weight = getWeight();
         rating = rating * (1 - weight) + update * weight;
     }
+
+    /**
+     * Returns the type of this token.
+     */
+    abstract byte getType();
+
+    /**
+     * Returns a 64-bit hash of this token's type and value, which the
+     * RatingTable stores in place of the token. Never returns 0.
+     */
+    final long getKey() {
+        long k = key;
+        if(k == 0) {
+            k = computeKey();
+            if(k == 0)
+                k = 1;
+            key = k;
+        }
+        return k;
+    }
+
+    /**
+     * Returns a 64-bit hash of this token's type and value, using
+     * {@link #hash(byte, long)} and its overloads.
+     */
+    abstract long computeKey();
+
+    /**
+     * Hashes a type and a number.
+     */
+    static long hash(byte type, long value) {
+        return HashUtils.mix64(FNV_BASIS ^ type) ^ HashUtils.mix64(value);
+    }
+
+    /**
+     * Hashes a type and a string.
+     */
+    static long hash(byte type, String value) {
+        long h = FNV_BASIS ^ type;
+        for(int i = 0; i < value.length(); i++)
+            h = (h ^ value.charAt(i)) * FNV_PRIME;
+        return HashUtils.mix64(h);
+    }
+
+    /**
+     * Hashes a type and an array of bytes.
+     */
+    static long hash(byte type, byte[] value) {
+        long h = FNV_BASIS ^ type;
+        for(byte b : value)
+            h = (h ^ (b & 0xFF)) * FNV_PRIME;
+        return HashUtils.mix64(h);
+    }
+
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
 }
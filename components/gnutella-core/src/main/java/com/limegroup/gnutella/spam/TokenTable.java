@@ -0,0 +1,360 @@
+package com.limegroup.gnutella.spam;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A table of token ratings, keyed by {@link Token#getKey()}.
+ * <p>
+ * The table is split into segments by the high bits of the key. Each
+ * segment is an open-addressing hash table of primitive arrays, so a
+ * rating costs a few bytes rather than a token object and a map entry.
+ * Lookups do not lock: writers change a segment while holding its lock and
+ * then write its volatile slots field, which publishes the change. A
+ * lookup that races with a change may miss a token that is being added,
+ * but never sees a rating of another token.
+ * <p>
+ * Each lookup stamps the token with the time of a shared clock. When a
+ * segment is full, the token it has used least recently is discarded, so
+ * the table as a whole discards tokens in approximately least-recently-used
+ * order. Tokens with zero ratings are not stored.
+ */
+final class TokenTable {
+
+    /** Number of segments, a power of two. */
+    private static final int SEGMENTS = 16;
+
+    /** Initial number of slots of a segment, a power of two. */
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /** Maximum number of tokens in each segment. */
+    private final int maxPerSegment;
+
+    /** The clock that lookups stamp tokens with. */
+    private final AtomicInteger clock = new AtomicInteger();
+
+    TokenTable(int maxSize) {
+        maxPerSegment = (maxSize + SEGMENTS - 1) / SEGMENTS;
+        for(int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment();
+    }
+
+    /**
+     * Advances the clock, for the lookups of one batch.
+     */
+    int tick() {
+        return clock.incrementAndGet();
+    }
+
+    /**
+     * Returns the rating of a token, or 0 if the token is not stored, and
+     * stamps the token as used at <code>time</code>.
+     */
+    float get(long key, int time) {
+        Slots slots = segmentFor(key).slots;
+        int i = slots.find(key);
+        if(i < 0)
+            return 0f;
+        // Racing stamps are fine, the order is approximate
+        slots.times[i] = time;
+        return slots.ratings[i];
+    }
+
+    /**
+     * Returns the rating of a token without stamping it.
+     */
+    float peek(long key) {
+        Slots slots = segmentFor(key).slots;
+        int i = slots.find(key);
+        return i < 0 ? 0f : slots.ratings[i];
+    }
+
+    /**
+     * Stores a token with the given rating, or removes the token if the
+     * rating is 0.
+     */
+    void put(long key, byte type, float rating) {
+        Segment segment = segmentFor(key);
+        synchronized(segment) {
+            if(rating == 0f)
+                segment.remove(key);
+            else
+                segment.put(key, type, rating, tick());
+        }
+    }
+
+    /**
+     * Stores a token with the given rating unless it is already stored.
+     *
+     * @return true if the token was stored
+     */
+    boolean putIfAbsent(long key, byte type, float rating) {
+        Segment segment = segmentFor(key);
+        synchronized(segment) {
+            if(segment.slots.find(key) >= 0)
+                return false;
+            segment.put(key, type, rating, tick());
+            return true;
+        }
+    }
+
+    /**
+     * Updates the rating of a token using an exponential moving average
+     * with the given weight. A token that is not stored has a rating of 0.
+     *
+     * @return the rating after the update
+     */
+    float update(long key, byte type, float weight, float update) {
+        Segment segment = segmentFor(key);
+        synchronized(segment) {
+            Slots slots = segment.slots;
+            int i = slots.find(key);
+            float rating = i < 0 ? 0f : slots.ratings[i];
+            rating = rating * (1 - weight) + update * weight;
+            if(rating == 0f)
+                segment.remove(key);
+            else
+                segment.put(key, type, rating, tick());
+            return rating;
+        }
+    }
+
+    /**
+     * Removes a token.
+     *
+     * @return true if the token was stored
+     */
+    boolean remove(long key) {
+        Segment segment = segmentFor(key);
+        synchronized(segment) {
+            return segment.remove(key);
+        }
+    }
+
+    /**
+     * Removes all tokens.
+     */
+    void clear() {
+        for(Segment segment : segments) {
+            synchronized(segment) {
+                segment.live = 0;
+                segment.used = 0;
+                segment.slots = new Slots(INITIAL_CAPACITY);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tokens.
+     */
+    int size() {
+        int size = 0;
+        for(Segment segment : segments)
+            size += segment.live;
+        return size;
+    }
+
+    /**
+     * Returns the stored tokens, least recently used first.
+     */
+    Snapshot snapshot() {
+        int count = 0;
+        long[] keys = new long[size() + SEGMENTS];
+        byte[] types = new byte[keys.length];
+        float[] ratings = new float[keys.length];
+        int[] times = new int[keys.length];
+        for(Segment segment : segments) {
+            synchronized(segment) {
+                Slots slots = segment.slots;
+                for(int i = 0; i < slots.keys.length; i++) {
+                    if(slots.keys[i] == 0 || slots.types[i] == 0)
+                        continue;
+                    if(count == keys.length) {
+                        int length = keys.length * 2;
+                        keys = Arrays.copyOf(keys, length);
+                        types = Arrays.copyOf(types, length);
+                        ratings = Arrays.copyOf(ratings, length);
+                        times = Arrays.copyOf(times, length);
+                    }
+                    keys[count] = slots.keys[i];
+                    types[count] = slots.types[i];
+                    ratings[count] = slots.ratings[i];
+                    times[count] = slots.times[i];
+                    count++;
+                }
+            }
+        }
+        // Sort by time, relative to the clock so that wrapping is harmless
+        int now = clock.get();
+        long[] order = new long[count];
+        for(int i = 0; i < count; i++)
+            order[i] = ((long)(now - times[i]) << 32) | i;
+        Arrays.sort(order);
+        Snapshot snapshot = new Snapshot(count);
+        for(int j = 0; j < count; j++) {
+            int i = (int)order[count - 1 - j];
+            snapshot.keys[j] = keys[i];
+            snapshot.types[j] = types[i];
+            snapshot.ratings[j] = ratings[i];
+        }
+        return snapshot;
+    }
+
+    private Segment segmentFor(long key) {
+        return segments[(int)(key >>> 60) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * The tokens of a table, least recently used first.
+     */
+    static final class Snapshot {
+        final long[] keys;
+        final byte[] types;
+        final float[] ratings;
+
+        Snapshot(int size) {
+            keys = new long[size];
+            types = new byte[size];
+            ratings = new float[size];
+        }
+
+        int size() {
+            return keys.length;
+        }
+    }
+
+    /**
+     * The arrays of a segment. A key of 0 marks a free slot and a type of 0
+     * marks a removed token, whose key is kept until the segment is resized
+     * so that the slots after it can still be found.
+     */
+    private static final class Slots {
+        final long[] keys;
+        final byte[] types;
+        final float[] ratings;
+        final int[] times;
+
+        Slots(int capacity) {
+            keys = new long[capacity];
+            types = new byte[capacity];
+            ratings = new float[capacity];
+            times = new int[capacity];
+        }
+
+        /**
+         * Returns the slot of a stored token, or -1.
+         */
+        int find(long key) {
+            int mask = keys.length - 1;
+            for(int i = (int)key & mask; ; i = (i + 1) & mask) {
+                long k = keys[i];
+                if(k == key)
+                    return types[i] == 0 ? -1 : i;
+                if(k == 0)
+                    return -1;
+            }
+        }
+    }
+
+    /**
+     * A part of the table. LOCKING: this, except for reading slots.
+     */
+    private final class Segment {
+
+        volatile Slots slots = new Slots(INITIAL_CAPACITY);
+
+        /** Number of stored tokens, read without locking by size(). */
+        volatile int live;
+
+        /** Number of slots with a key, including removed tokens. */
+        int used;
+
+        void put(long key, byte type, float rating, int time) {
+            Slots s = slots;
+            int mask = s.keys.length - 1;
+            int i = (int)key & mask;
+            while(s.keys[i] != 0 && s.keys[i] != key)
+                i = (i + 1) & mask;
+            if(s.keys[i] == key) {
+                if(s.types[i] == 0)
+                    live = live + 1;
+                s.ratings[i] = rating;
+                s.times[i] = time;
+                s.types[i] = type;
+            } else {
+                // Free slots are never reused until the segment is resized,
+                // and the key is written last, so a racing lookup does not
+                // find the key with another token's rating
+                s.ratings[i] = rating;
+                s.times[i] = time;
+                s.types[i] = type;
+                s.keys[i] = key;
+                live = live + 1;
+                used++;
+            }
+            if(live > maxPerSegment)
+                evict(key);
+            if(used > s.keys.length * 3 / 4)
+                resize();
+            else
+                slots = s; // Publishes the change
+        }
+
+        boolean remove(long key) {
+            Slots s = slots;
+            int i = s.find(key);
+            if(i < 0)
+                return false;
+            s.types[i] = 0;
+            live = live - 1;
+            slots = s;
+            return true;
+        }
+
+        /**
+         * Discards the least recently used token, other than the given one.
+         */
+        private void evict(long keep) {
+            Slots s = slots;
+            int now = clock.get();
+            int oldest = -1;
+            for(int i = 0; i < s.keys.length; i++) {
+                if(s.keys[i] == 0 || s.types[i] == 0 || s.keys[i] == keep)
+                    continue;
+                if(oldest < 0 || now - s.times[i] > now - s.times[oldest])
+                    oldest = i;
+            }
+            if(oldest >= 0) {
+                s.types[oldest] = 0;
+                live = live - 1;
+            }
+        }
+
+        /**
+         * Copies the stored tokens into new slots, dropping removed ones.
+         */
+        private void resize() {
+            Slots old = slots;
+            int capacity = INITIAL_CAPACITY;
+            while(live * 2 >= capacity)
+                capacity *= 2;
+            Slots s = new Slots(capacity);
+            int mask = capacity - 1;
+            for(int j = 0; j < old.keys.length; j++) {
+                if(old.keys[j] == 0 || old.types[j] == 0)
+                    continue;
+                int i = (int)old.keys[j] & mask;
+                while(s.keys[i] != 0)
+                    i = (i + 1) & mask;
+                s.keys[i] = old.keys[j];
+                s.types[i] = old.types[j];
+                s.ratings[i] = old.ratings[j];
+                s.times[i] = old.times[j];
+            }
+            used = live;
+            slots = s;
+        }
+    }
+}
@@ -5,6 +5,8 @@ package com.limegroup.gnutella.spam;
  */
 public class UrnToken extends KeywordToken {
 
+    private static final long serialVersionUID = 7892490046869962791L;
+
     /**
      * We consider a URN to be a very accurate spam indicator - if the user
      * marks it as spam once, it should always be considered spam.
@@ -27,6 +29,11 @@ public class UrnToken extends KeywordToken {
         return keyword.equals(((UrnToken)o).keyword);
     }
     
+    @Override
+    byte getType() {
+        return URN;
+    }
+
     @Override
     public String toString() {
         return "urn " + keyword;
@@ -4,6 +4,8 @@ package com.limegroup.gnutella.spam;
  * A token representing a name/value pair from XML metadata.
  */
 public class XMLKeywordToken extends KeywordToken {
+
+    private static final long serialVersionUID = -4981345414931214287L;
     
     /**
      * Like keywords, XML name/value pairs may occur in a large number of
@@ -28,6 +30,11 @@ public class XMLKeywordToken extends KeywordToken {
         return keyword.equals(((XMLKeywordToken)o).keyword);
     }
     
+    @Override
+    byte getType() {
+        return XML_KEYWORD;
+    }
+
     @Override
     public String toString() {
         return "xml " + keyword;
@@ -1,6 +1,7 @@
 package com.limegroup.gnutella.tigertree;
 
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.limewire.collection.Range;
@@ -23,6 +24,13 @@ public interface HashTree extends HTTPHeaderValue {
      */
     public boolean isCorrupt(Range in, byte[] data, int length);
 
+    /**
+     * Checks whether the specific area of the file matches the hash tree,
+     * reading its data from the remaining bytes of the buffers in order.
+     * The buffers must be backed by arrays and are not modified.
+     */
+    public boolean isCorrupt(Range in, ByteBuffer[] data);
+
     /**
      * Checks whether the specified range in the provided file matches
      * the hash tree.
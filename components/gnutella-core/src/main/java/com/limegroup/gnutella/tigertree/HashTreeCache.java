@@ -58,7 +58,8 @@ public interface HashTreeCache {
     public void addRoot(URN sha1, URN ttroot);
 
     /**
-     * Write cache so that we only have to calculate them once.
+     * Write cache so that we only have to calculate them once. This is done
+     * on shutdown; trees are no longer read from disk afterwards.
      */
     public void persistCache(Library library, DownloadManager downloadManager);
 
@@ -21,6 +21,7 @@ import org.apache.commons.logging.LogFactory;
 import org.limewire.collection.Tuple;
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.concurrent.SimpleFuture;
+import org.limewire.core.settings.SharingSettings;
 import org.limewire.util.CommonUtils;
 import org.limewire.util.FileUtils;
 import org.limewire.util.GenericsUtils;
@@ -33,7 +34,13 @@ import com.limegroup.gnutella.library.FileDesc;
 import com.limegroup.gnutella.library.IncompleteFileDesc;
 import com.limegroup.gnutella.library.Library;
 
-/** This class maps SHA1_URNs to hash trees and roots. */
+/**
+ * This class maps SHA1_URNs to hash trees and roots.
+ * <p>
+ * Trees that are calculated or added are kept in a {@link HashTreeStore}
+ * on disk and read from it when they are needed; only trees that are being
+ * calculated are in memory, along with the roots.
+ */
 /* This is public for tests, but only the interface should be used. */
 @Singleton
 public final class HashTreeCacheImpl implements HashTreeCache {
@@ -41,21 +48,25 @@ public final class HashTreeCacheImpl implements HashTreeCache {
     private static final Log LOG = LogFactory.getLog(HashTreeCacheImpl.class);
     
     /**
-     * The ProcessingQueue to do the hashing.
+     * The thread pool to do the hashing.
      */
-    private final ExecutorService QUEUE = ExecutorsHelper.newProcessingQueue("TreeHashTread"); 
+    private final ExecutorService QUEUE = ExecutorsHelper.newFixedSizeThreadPool(
+            SharingSettings.HASH_TREE_THREADS.getValue(), "TreeHashTread"); 
     
     /** A copy of the SHA1 -> Tiger Tree Root */
     private final Map<URN /* sha1 */, Future<URN> /* ttroot */> SHA1_TO_ROOT_MAP = new HashMap<URN, Future<URN>>();
     
-    /** TigerTreeCache container. */
+    /** The trees that are being calculated, or could not be stored. */
     private final Map<URN /* sha1 */, Future<HashTree>> TTREE_MAP = new HashMap<URN, Future<HashTree>>();
     
     /** Where the SHA1 -> ttRoot info is stored. */
     private final File ROOTS_FILE = new File(CommonUtils.getUserSettingsDir(), "ttroot.cache");
     
-    /** File where tiger tree data is stored. */
+    /** File where tiger tree data was stored by older versions. */
     private final File DATA_FILE = new File(CommonUtils.getUserSettingsDir(), "ttdata.cache"); 
+    
+    /** The trees, on disk. */
+    private final HashTreeStore STORE = new HashTreeStore(new File(CommonUtils.getUserSettingsDir(), "ttdata.store"));
         
     /** Whether or not data dirtied since the last time we saved. */
     private volatile boolean dirty = false;
@@ -72,8 +83,12 @@ public final class HashTreeCacheImpl implements HashTreeCache {
             SHA1_TO_ROOT_MAP.put(entry.getKey(), new SimpleFuture<URN>(entry.getValue()));
         }        
         for(Map.Entry<URN, HashTree> entry : tuple.getSecond().entrySet()) {
-            TTREE_MAP.put(entry.getKey(), new SimpleFuture<HashTree>(entry.getValue()));
+            if(!STORE.put(entry.getKey(), entry.getValue()))
+                TTREE_MAP.put(entry.getKey(), new SimpleFuture<HashTree>(entry.getValue()));
         }
+        // the trees from older versions are in the store now
+        if(TTREE_MAP.isEmpty())
+            DATA_FILE.delete();
     }
     
     public HashTree getHashTreeAndWait(FileDesc fd, long timeout) throws InterruptedException, TimeoutException, ExecutionException {
@@ -159,10 +174,15 @@ public final class HashTreeCacheImpl implements HashTreeCache {
             Future<URN> futureRoot = SHA1_TO_ROOT_MAP.get(sha1);
             HashTree tree = futureTree == null ? null : getTreeFromFuture(sha1, futureTree);        
             URN root = futureRoot == null ? null : getRootFromFuture(sha1, futureRoot);
+            URN storedRoot = STORE.getRoot(sha1);
             if(tree != null) {
                 if(LOG.isDebugEnabled()) 
                     LOG.debug("Returning root from tree");
                 return tree.getTreeRootUrn();
+            } else if(storedRoot != null) {
+                if(LOG.isDebugEnabled()) 
+                    LOG.debug("Returning root from stored tree");
+                return storedRoot;
             } else if(root != null) {
                 if(LOG.isDebugEnabled()) 
                     LOG.debug("Returning root from future");
@@ -192,6 +212,11 @@ public final class HashTreeCacheImpl implements HashTreeCache {
     private synchronized Future<HashTree> getOrScheduleHashTreeFuture(FileDesc fd) {
         URN sha1 = fd.getSHA1Urn();
         Future<HashTree> futureTree = TTREE_MAP.get(sha1);
+        if(futureTree == null) {
+            HashTree tree = STORE.get(sha1);
+            if(tree != null)
+                return new SimpleFuture<HashTree>(tree);
+        }
         if(futureTree == null && !(fd instanceof IncompleteFileDesc)) {
             if(LOG.isDebugEnabled()) {
                 LOG.debug("Scheduling: " + sha1 + " for full tree");
@@ -224,7 +249,7 @@ public final class HashTreeCacheImpl implements HashTreeCache {
                 LOG.debug("No future tree exists for: " + sha1);
         }
 
-        return null;
+        return STORE.get(sha1);
     }
     
     @Override
@@ -232,12 +257,20 @@ public final class HashTreeCacheImpl implements HashTreeCache {
         if (!sha1.isSHA1())
             throw new IllegalArgumentException();
         
-        HashTree tree = getHashTree(sha1);
+        // the root of a stored tree is known without reading the tree
+        Future<HashTree> futureTree = TTREE_MAP.get(sha1);
+        HashTree tree = futureTree == null ? null : getTreeFromFuture(sha1, futureTree);
+        URN storedRoot = STORE.getRoot(sha1);
         if(tree != null) {
             if(LOG.isDebugEnabled()) {
                 LOG.debug("Retrieving root from tree for: " + sha1);
             }
             return tree.getTreeRootUrn();
+        } else if(storedRoot != null) {
+            if(LOG.isDebugEnabled()) {
+                LOG.debug("Retrieving root from stored tree for: " + sha1);
+            }
+            return storedRoot;
         } else {
             if(LOG.isDebugEnabled()) {
                 LOG.debug("Retrieving root from root map for: " + sha1);
@@ -262,16 +295,20 @@ public final class HashTreeCacheImpl implements HashTreeCache {
             futureTree.cancel(true);
             dirty = true;
         }
+        if(STORE.remove(sha1))
+            dirty = true;
     }
 
     @Override
     public synchronized HashTree addHashTree(URN sha1, HashTree tree) {
         boolean shouldAdd = hashTreeCalculated(sha1, tree);
         if(shouldAdd) {
-            Future<HashTree> oldFuture = TTREE_MAP.put(sha1, new SimpleFuture<HashTree>(tree));
+            Future<HashTree> oldFuture = TTREE_MAP.remove(sha1);
             if(oldFuture != null) {
                 oldFuture.cancel(true);
             }
+            if(!STORE.put(sha1, tree))
+                TTREE_MAP.put(sha1, new SimpleFuture<HashTree>(tree));
             return tree;
         }
         return null;
@@ -332,6 +369,7 @@ public final class HashTreeCacheImpl implements HashTreeCache {
         // remove roots which we have a tree for, 
         // because we don't need them
         rootsMap.keySet().removeAll(treesMap.keySet());                
+        rootsMap.keySet().removeAll(STORE.getSha1s());
         
         // and make sure urns are the correct type
         for (Iterator<Map.Entry<URN, URN>> iter = rootsMap.entrySet().iterator();iter.hasNext();) {
@@ -356,10 +394,12 @@ public final class HashTreeCacheImpl implements HashTreeCache {
      * Removes any stale entries from the map so that they will automatically
      * be replaced.
      * 
-     * @param map
+     * @param roots
      *            the <tt>Map</tt> to check
+     * @param treeCount
+     *            the number of trees
      */
-    private Set<URN> removeOldEntries(Map<URN,URN> roots, Map <URN, HashTree> map, Library library, DownloadManager downloadManager) {
+    private Set<URN> removeOldEntries(Map<URN,URN> roots, int treeCount, Library library, DownloadManager downloadManager) {
         Set<URN> removed = new HashSet<URN>();
         // discard outdated info
         Iterator<URN> iter = roots.keySet().iterator();
@@ -369,7 +409,7 @@ public final class HashTreeCacheImpl implements HashTreeCache {
                 continue;
             } else if (downloadManager.getIncompleteFileManager().getFileForUrn(sha1) != null) {
                 continue;
-            } else if (Math.random() > map.size() / 200) {
+            } else if (Math.random() > treeCount / 200) {
                 // lazily removing entries if we don't have
                 // that many anyway. Maybe some of the files are
                 // just temporarily unshared.
@@ -377,7 +417,6 @@ public final class HashTreeCacheImpl implements HashTreeCache {
             } else {
                 removed.add(sha1);
                 iter.remove();
-                map.remove(sha1);
                 dirty = true;
             }
         }
@@ -386,23 +425,18 @@ public final class HashTreeCacheImpl implements HashTreeCache {
 
     @Override
     public void persistCache(Library library, DownloadManager downloadManager) {
-        if(!dirty)
-            return;
-        
+        try {
+            if(dirty)
+                writeCache(library, downloadManager);
+        } finally {
+            // this is the last use of the trees on disk
+            STORE.close();
+        }
+    }
+    
+    private void writeCache(Library library, DownloadManager downloadManager) {
         Map<URN,URN> roots;
-        Map<URN, HashTree> trees;
         synchronized(this) {
-            trees = new HashMap<URN,HashTree>(TTREE_MAP.size());
-            for(Map.Entry<URN, Future<HashTree>> entry : TTREE_MAP.entrySet()) {
-                if(entry.getValue().isDone()) {
-                    try {
-                        trees.put(entry.getKey(), entry.getValue().get());
-                    } catch (InterruptedException e) {
-                    } catch (ExecutionException e) {
-                    } catch (CancellationException e) {
-                    }
-                }
-            }
             roots = new HashMap<URN,URN>(SHA1_TO_ROOT_MAP.size());
             for(Map.Entry<URN, Future<URN>> entry : SHA1_TO_ROOT_MAP.entrySet()) {
                 if(entry.getValue().isDone()) {
@@ -416,17 +450,19 @@ public final class HashTreeCacheImpl implements HashTreeCache {
             }
         }
         
-        Set<URN> removed = removeOldEntries(roots, trees, library, downloadManager);
+        Set<URN> removed = removeOldEntries(roots, STORE.size(), library, downloadManager);
         if(!removed.isEmpty()) {        
             synchronized(this) {
                 SHA1_TO_ROOT_MAP.keySet().removeAll(removed);
                 TTREE_MAP.keySet().removeAll(removed);
+                for(URN sha1 : removed)
+                    STORE.remove(sha1);
             }
         }
+        STORE.compactIfNeeded();
         
         try {
             FileUtils.writeObject(ROOTS_FILE, roots);
-            FileUtils.writeObject(DATA_FILE, trees);
             dirty = false;
         } catch (IOException e) {} 
         // this may any roots added while writing to get lost
@@ -443,7 +479,15 @@ public final class HashTreeCacheImpl implements HashTreeCache {
         public HashTree call() throws IOException {
             URN sha1 = FD.getSHA1Urn();
             HashTree tree = tigerTreeFactory.createHashTree(FD); // BLOCKING
-            hashTreeCalculated(sha1, tree);
+            synchronized(HashTreeCacheImpl.this) {
+                if(hashTreeCalculated(sha1, tree)) {
+                    // Move the tree to the store, unless it was purged or
+                    // replaced while it was calculated.
+                    Future<HashTree> futureTree = TTREE_MAP.get(sha1);
+                    if(futureTree != null && !futureTree.isDone() && STORE.put(sha1, tree))
+                        TTREE_MAP.remove(sha1);
+                }
+            }
             return tree;
         }
     }
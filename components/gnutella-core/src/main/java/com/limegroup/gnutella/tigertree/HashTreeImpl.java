@@ -3,6 +3,7 @@ package com.limegroup.gnutella.tigertree;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -87,6 +88,19 @@ class HashTreeImpl implements Serializable, HashTree {
         assert(NODES.size() * (long)nodeSize >= fileSize);
         _nodeSize = nodeSize;
     }
+
+    /**
+     * Constructs a HashTree out of its lowest depth list of nodes and its
+     * root, as they are kept by a {@link HashTreeStore}.
+     */
+    HashTreeImpl(List<byte[]> nodes, byte[] root, String sha1, long fileSize, int depth) {
+        THEX_URI = HTTPConstants.URI_RES_N2X + sha1;
+        NODES = nodes;
+        FILE_SIZE = fileSize;
+        ROOT_HASH = root;
+        DEPTH = depth;
+        assert(MerkleTree.log2Ceil(NODES.size()) == DEPTH);
+    }
     
     /* (non-Javadoc)
      * @see com.limegroup.gnutella.tigertree.TigerTree#isCorrupt(org.limewire.collection.Range, byte[])
@@ -118,6 +132,29 @@ class HashTreeImpl implements Serializable, HashTree {
         return true;
     }
 
+    /* (non-Javadoc)
+     * @see com.limegroup.gnutella.tigertree.HashTree#isCorrupt(org.limewire.collection.Range, java.nio.ByteBuffer[])
+     */
+    public boolean isCorrupt(Range in, ByteBuffer[] data) {
+        assert(in.getHigh() <= FILE_SIZE);
+        
+        // if the interval is not a fixed chunk, we cannot verify it.
+        if (in.getLow() % _nodeSize == 0 && 
+                in.getHigh() - in.getLow() +1 <= _nodeSize &&
+                (in.getHigh() == in.getLow()+_nodeSize-1 || in.getHigh() == FILE_SIZE -1)) {
+            MerkleTree digest = new MerkleTree(new Tiger());
+            for (ByteBuffer buffer : data)
+                digest.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            byte [] hash = digest.digest();
+            byte [] treeHash = NODES.get((int)(in.getLow() / _nodeSize));
+            boolean ok = Arrays.equals(treeHash, hash);
+            if (LOG.isDebugEnabled())
+                LOG.debug("interval "+in+" verified "+ok);
+            return !ok;
+        } 
+        return true;
+    }
+
     /* (non-Javadoc)
      * @see com.limegroup.gnutella.tigertree.TigerTree#isCorrupt(org.limewire.collection.Range, java.io.RandomAccessFile, byte[])
      */
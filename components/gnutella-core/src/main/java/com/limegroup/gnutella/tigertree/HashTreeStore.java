@@ -0,0 +1,454 @@
+package com.limegroup.gnutella.tigertree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.collection.FixedsizeForgetfulHashMap;
+import org.limewire.io.IOUtils;
+import org.limewire.util.FileUtils;
+
+import com.limegroup.gnutella.URN;
+
+/**
+ * A file of hash trees, with an index in memory of where each tree is and
+ * what its root is.
+ * <p>
+ * Trees are appended to the file as they are added and read back when they
+ * are asked for, so only the index and the few trees that were used last
+ * are kept in memory. Removing a tree appends a record saying so. When more
+ * of the file is taken by trees that were replaced or removed than by
+ * current ones, {@link #compactIfNeeded()} copies the current ones to a new
+ * file that replaces it.
+ * <p>
+ * A record is its length, a CRC32 of the rest, a type, a SHA1 and the tree.
+ * Opening the file reads the first fields of each record only and cuts off
+ * a record that was not completely written; reading a tree checks the
+ * whole record, and a tree that fails the check is dropped so that it is
+ * calculated again.
+ * <p>
+ * The file is read and written with a <code>RandomAccessFile</code>
+ * rather than a channel, because interrupting a thread that uses a channel
+ * closes the channel.
+ * <p>
+ * This class is thread-safe.
+ */
+final class HashTreeStore {
+
+    private static final Log LOG = LogFactory.getLog(HashTreeStore.class);
+
+    private static final int MAGIC = 0x4c574854; // LWHT
+
+    private static final int VERSION = 1;
+
+    /**
+     * A tree; followed by its root, file size, depth, number of nodes and
+     * nodes.
+     */
+    private static final byte TREE = 1;
+
+    /** The removal of the tree with the SHA1. */
+    private static final byte REMOVE = 2;
+
+    /** The size of the file header. */
+    private static final int FILE_HEADER = 8;
+
+    /** The size of a SHA1 hash. */
+    private static final int SHA1_SIZE = 20;
+
+    /** The size of a Tiger hash, the root and each node of a tree. */
+    private static final int NODE_SIZE = 24;
+
+    /** The size of the length, checksum, type and SHA1 of a record. */
+    private static final int RECORD_HEADER = 4 + 4 + 1 + SHA1_SIZE;
+
+    /** The size of a tree record without its nodes. */
+    private static final int TREE_HEADER = RECORD_HEADER + NODE_SIZE + 8 + 4 + 4;
+
+    /** The largest record that is read, so that a corrupt length is not trusted. */
+    private static final int MAX_RECORD = 4 * 1024 * 1024;
+
+    /** The number of trees that were read last that are kept in memory. */
+    private static final int RECENT_TREES = 16;
+
+    /**
+     * The file is compacted when replaced and removed trees take more of it
+     * than current ones and more than COMPACT_MIN bytes.
+     */
+    private static final long COMPACT_MIN = 1024 * 1024;
+
+    private final File file;
+
+    private final CRC32 crc = new CRC32();
+
+    private RandomAccessFile raf;
+
+    /** Where each tree is in the file, and its root, by SHA1. */
+    private final Map<URN, Entry> index = new HashMap<URN, Entry>();
+
+    /** The trees that were read or added last. */
+    private final Map<URN, HashTree> recent = new FixedsizeForgetfulHashMap<URN, HashTree>(RECENT_TREES);
+
+    /** The total size of the records of the trees in the index. */
+    private long live;
+
+    HashTreeStore(File file) {
+        this.file = file;
+        try {
+            open();
+        } catch (IOException e) {
+            LOG.warn("Unable to open hash tree store", e);
+            close();
+        }
+    }
+
+    /**
+     * Opens the file and reads the index of the trees in it, starting a new
+     * file if it is not a store.
+     */
+    private void open() throws IOException {
+        // a compacted file that could not replace the old one
+        File tmp = getCompactFile();
+        if (!file.exists() && tmp.exists())
+            FileUtils.forceRename(tmp, file);
+
+        raf = new RandomAccessFile(file, "rw");
+        long size = raf.length();
+        ByteBuffer header = ByteBuffer.allocate(Math.max(FILE_HEADER, TREE_HEADER));
+        header.limit(FILE_HEADER);
+        if (size < FILE_HEADER || !readFully(header, 0) || header.getInt(0) != MAGIC
+                || header.getInt(4) != VERSION) {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            return;
+        }
+
+        long offset = FILE_HEADER;
+        while (offset < size) {
+            header.clear();
+            header.limit((int) Math.min(TREE_HEADER, size - offset));
+            readFully(header, offset);
+            int length = header.limit() >= RECORD_HEADER ? header.getInt(0) : -1;
+            byte type = header.limit() >= RECORD_HEADER ? header.get(8) : 0;
+            if (length < RECORD_HEADER || length > MAX_RECORD || offset + length > size
+                    || (type == TREE && length < TREE_HEADER) || (type != TREE && type != REMOVE)) {
+                LOG.warn("Cutting off incomplete record at " + offset);
+                raf.setLength(offset);
+                break;
+            }
+            URN sha1 = toSha1(header, 9);
+            if (sha1 != null) {
+                removeEntry(sha1);
+                if (type == TREE) {
+                    byte[] root = new byte[NODE_SIZE];
+                    header.position(RECORD_HEADER);
+                    header.get(root);
+                    addEntry(sha1, new Entry(offset, length, root));
+                }
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * Returns the tree with the SHA1, or null if there is none or it cannot
+     * be read.
+     */
+    synchronized HashTree get(URN sha1) {
+        HashTree tree = recent.get(sha1);
+        if (tree != null)
+            return tree;
+        Entry entry = index.get(sha1);
+        if (entry == null || raf == null)
+            return null;
+        try {
+            ByteBuffer record = ByteBuffer.allocate(entry.length);
+            if (readFully(record, entry.offset))
+                tree = toTree(sha1, record);
+        } catch (IOException e) {
+            LOG.warn("Unable to read hash tree", e);
+        }
+        if (tree == null) {
+            LOG.warn("Dropping unreadable hash tree for " + sha1);
+            removeEntry(sha1);
+            return null;
+        }
+        recent.put(sha1, tree);
+        return tree;
+    }
+
+    /**
+     * Returns the root of the tree with the SHA1, or null if there is none.
+     */
+    synchronized URN getRoot(URN sha1) {
+        Entry entry = index.get(sha1);
+        if (entry == null)
+            return null;
+        try {
+            return URN.createTTRootFromBytes(entry.root);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    synchronized boolean contains(URN sha1) {
+        return index.containsKey(sha1);
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the SHA1s of the trees.
+     */
+    synchronized Set<URN> getSha1s() {
+        return new HashSet<URN>(index.keySet());
+    }
+
+    /**
+     * Adds a tree, replacing any tree with the same SHA1.
+     *
+     * @return false if the tree could not be written
+     */
+    synchronized boolean put(URN sha1, HashTree tree) {
+        if (raf == null)
+            return false;
+        List<byte[]> nodes = tree.getNodes();
+        byte[] root = tree.getRootHashBytes();
+        byte[] sha1Bytes = sha1.getBytes();
+        if (root == null || root.length != NODE_SIZE || sha1Bytes.length != SHA1_SIZE)
+            return false;
+        long length = TREE_HEADER + (long) nodes.size() * NODE_SIZE;
+        if (length > MAX_RECORD)
+            return false;
+        for (byte[] node : nodes) {
+            if (node.length != NODE_SIZE)
+                return false;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate((int) length);
+        record.putInt((int) length).putInt(0).put(TREE).put(sha1Bytes).put(root);
+        record.putLong(tree.getFileSize()).putInt(tree.getDepth()).putInt(nodes.size());
+        for (byte[] node : nodes)
+            record.put(node);
+        try {
+            long offset = append(record);
+            removeEntry(sha1);
+            addEntry(sha1, new Entry(offset, (int) length, root));
+            recent.put(sha1, tree);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Unable to write hash tree", e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the tree with the SHA1.
+     *
+     * @return true if there was such a tree
+     */
+    synchronized boolean remove(URN sha1) {
+        recent.remove(sha1);
+        if (!removeEntry(sha1))
+            return false;
+        if (raf == null)
+            return true;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER);
+        record.putInt(RECORD_HEADER).putInt(0).put(REMOVE).put(sha1.getBytes());
+        try {
+            append(record);
+        } catch (IOException e) {
+            // the tree will come back after a restart, which is harmless
+            LOG.warn("Unable to write removal of hash tree", e);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the current trees to a new file that replaces this one, if the
+     * trees that were replaced or removed take up enough of it.
+     */
+    synchronized void compactIfNeeded() {
+        if (raf == null)
+            return;
+        try {
+            long dead = raf.length() - FILE_HEADER - live;
+            if (dead > COMPACT_MIN && dead > live)
+                compact();
+        } catch (IOException e) {
+            LOG.warn("Unable to compact hash tree store", e);
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = getCompactFile();
+        Map<URN, Entry> moved = new HashMap<URN, Entry>(index.size());
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long offset = FILE_HEADER;
+            byte[] record = new byte[0];
+            for (Map.Entry<URN, Entry> item : index.entrySet()) {
+                Entry entry = item.getValue();
+                if (record.length < entry.length)
+                    record = new byte[entry.length];
+                raf.seek(entry.offset);
+                raf.readFully(record, 0, entry.length);
+                out.write(record, 0, entry.length);
+                moved.put(item.getKey(), new Entry(offset, entry.length, entry.root));
+                offset += entry.length;
+            }
+            out.getFD().sync();
+        } finally {
+            IOUtils.close(out);
+        }
+
+        close();
+        if (!FileUtils.forceRename(tmp, file)) {
+            // Keep using the old file, reading its index again in case it
+            // was partly copied over. The compacted one is left in place
+            // until the next compaction overwrites it.
+            index.clear();
+            recent.clear();
+            live = 0;
+            open();
+            throw new IOException("Unable to replace " + file);
+        }
+        index.putAll(moved);
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Returns the file the store is compacted into before it replaces the
+     * store.
+     */
+    private File getCompactFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    synchronized void close() {
+        IOUtils.close(raf);
+        raf = null;
+    }
+
+    private void addEntry(URN sha1, Entry entry) {
+        index.put(sha1, entry);
+        live += entry.length;
+    }
+
+    private boolean removeEntry(URN sha1) {
+        Entry entry = index.remove(sha1);
+        if (entry == null)
+            return false;
+        live -= entry.length;
+        return true;
+    }
+
+    /**
+     * Fills in the checksum of a record and writes it at the end of the file.
+     *
+     * @return the offset of the record
+     */
+    private long append(ByteBuffer record) throws IOException {
+        record.putInt(4, checksum(record));
+        record.flip();
+        long offset = raf.length();
+        raf.seek(offset);
+        raf.write(record.array(), 0, record.limit());
+        return offset;
+    }
+
+    /**
+     * Returns the CRC32 of a record after its length and checksum.
+     */
+    private int checksum(ByteBuffer record) {
+        crc.reset();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the tree in a record, or null if the record is not that tree.
+     */
+    private HashTree toTree(URN sha1, ByteBuffer record) {
+        if (record.getInt(0) != record.capacity() || record.getInt(4) != checksum(record)
+                || record.get(8) != TREE || !sha1.equals(toSha1(record, 9)))
+            return null;
+        record.position(RECORD_HEADER);
+        byte[] root = new byte[NODE_SIZE];
+        record.get(root);
+        long fileSize = record.getLong();
+        int depth = record.getInt();
+        int count = record.getInt();
+        if (count < 1 || count != record.remaining() / NODE_SIZE)
+            return null;
+        List<byte[]> nodes = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] node = new byte[NODE_SIZE];
+            record.get(node);
+            nodes.add(node);
+        }
+        if (depth == 0 && !Arrays.equals(root, nodes.get(0)))
+            return null;
+        return new HashTreeImpl(nodes, root, sha1.toString(), fileSize, depth);
+    }
+
+    private static URN toSha1(ByteBuffer buffer, int index) {
+        byte[] bytes = new byte[SHA1_SIZE];
+        for (int i = 0; i < SHA1_SIZE; i++)
+            bytes[i] = buffer.get(index + i);
+        try {
+            return URN.createSHA1UrnFromBytes(bytes);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the bytes up to the limit of the buffer from the file at the
+     * offset, and sets the position of the buffer to 0.
+     *
+     * @return false if the file ends first
+     */
+    private boolean readFully(ByteBuffer buffer, long offset) throws IOException {
+        if (offset + buffer.limit() > raf.length())
+            return false;
+        raf.seek(offset);
+        raf.readFully(buffer.array(), 0, buffer.limit());
+        buffer.position(0);
+        return true;
+    }
+
+    /**
+     * Where a tree is in the file, and its root.
+     */
+    private static final class Entry {
+        final long offset;
+
+        final int length;
+
+        final byte[] root;
+
+        Entry(long offset, int length, byte[] root) {
+            this.offset = offset;
+            this.length = length;
+            this.root = root;
+        }
+    }
+}
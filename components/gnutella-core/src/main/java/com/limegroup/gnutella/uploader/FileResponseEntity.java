@@ -9,12 +9,15 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
 import org.apache.http.nio.ContentEncoder;
 import org.apache.http.nio.IOControl;
+import org.limewire.core.settings.UploadSettings;
 import org.limewire.http.entity.AbstractProducingNHttpEntity;
+import org.limewire.http.entity.DirectFileTransfer;
 import org.limewire.http.entity.FilePieceReader;
 import org.limewire.http.entity.Piece;
 import org.limewire.http.entity.PieceListener;
 import org.limewire.http.reactor.HttpIOSession;
 import org.limewire.nio.NIODispatcher;
+import org.limewire.nio.channel.FileTransferChannel;
 
 import com.google.inject.Provider;
 import com.limegroup.gnutella.BandwidthManager;
@@ -23,6 +26,10 @@ import com.limegroup.gnutella.Constants;
 /**
  * An event based {@link HttpEntity} that uploads a {@link File}. A
  * corresponding {@link HTTPUploader} is updated with progress.
+ * <p>
+ * If the upload speed is not limited and the connection is not encrypted the
+ * file is written using a {@link DirectFileTransfer}, otherwise it is read
+ * through a {@link FilePieceReader} and throttled.
  */
 public class FileResponseEntity extends AbstractProducingNHttpEntity {
 
@@ -46,6 +53,9 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
 
     private FilePieceReader reader;
 
+    /** Used instead of {@link #reader} if the file is transferred directly. */
+    private DirectFileTransfer directTransfer;
+
     /** Piece that is currently transferred. */
     private Piece piece;
 
@@ -84,6 +94,16 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
         }
         
         HttpIOSession ioSession = uploader.getSession().getIOSession();
+        if (UploadSettings.DIRECT_FILE_UPLOADS.getValue() && !UploadSettings.LIMIT_MAX_UPLOAD_SPEED.getValue()) {
+            FileTransferChannel channel = DirectFileTransfer.getFileTransferChannel(contentEncoder, ioSession);
+            if (channel != null) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Using direct transfer for " + file.getName());
+                ioSession.setThrottle(null);
+                directTransfer = new DirectFileTransfer(file, begin, length, channel);
+                return;
+            }
+        }
         ioSession.setThrottle(bandwidthManager.get().getWriteThrottle(ioSession.getSocket()));
 
         reader = new FilePieceReader(NIODispatcher.instance().getBufferCache(), file, begin, length, new PieceHandler(ioctrl));
@@ -98,12 +118,19 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
         if (reader != null) {
             reader.shutdown();
         }
+        if (directTransfer != null) {
+            directTransfer.close();
+        }
     }
     
     @Override
     public boolean writeContent(ContentEncoder contentEncoder, IOControl ioctrl) throws IOException {
 //        Throwable t = new Throwable();
 //        LOG.debug(t, t);
+        if (directTransfer != null) {
+            return writeDirectContent();
+        }
+        
         // flush current buffer
         if (buffer != null && buffer.hasRemaining()) {
             int written = contentEncoder.write(buffer);
@@ -164,6 +191,24 @@ public class FileResponseEntity extends AbstractProducingNHttpEntity {
         return remaining > 0 || buffer.hasRemaining();
     }
 
+    /**
+     * Transfers the next region of the file, a single transfer per invocation
+     * limits the time spent on the dispatch thread.
+     */
+    private boolean writeDirectContent() throws IOException {
+        long written = directTransfer.transfer();
+        uploader.addAmountUploaded((int)written);
+        remaining = directTransfer.getRemaining();
+        if (LOG.isTraceEnabled())
+            LOG.trace("Uploaded " + file.getName() + " directly [remaining=" + remaining + "]");
+        
+        if (remaining > 0) {
+            activateTimeout();
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void timeout() {
         if (LOG.isWarnEnabled())
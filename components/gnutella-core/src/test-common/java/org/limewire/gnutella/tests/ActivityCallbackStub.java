@@ -1,12 +1,14 @@
 package org.limewire.gnutella.tests;
 
 import java.io.File;
+import java.util.List;
 import java.util.Set;
 
 import org.limewire.bittorrent.Torrent;
 import org.limewire.core.api.download.DownloadAction;
 import org.limewire.core.api.download.DownloadException;
 import org.limewire.io.GUID;
+import org.limewire.io.IpPort;
 
 import com.google.inject.Singleton;
 import com.limegroup.gnutella.ActivityCallback;
@@ -31,6 +33,13 @@ public class ActivityCallbackStub implements ActivityCallback {
             QueryReply queryReply,
             Set alts) {}
 
+    @Override
+    public void handleQueryResults(QueryReply queryReply, List<? extends RemoteFileDesc> rfds,
+            List<? extends Set<? extends IpPort>> locs) {
+        for(int i = 0; i < rfds.size(); i++)
+            handleQueryResult(rfds.get(i), queryReply, locs.get(i));
+    }
+
     @Override
     public void handleQuery(QueryRequest query, String address, int port) { }
 
@@ -446,6 +446,12 @@ public class BTTorrentFileDownloaderImplTest extends LimeTestCase {
                     Set<? extends IpPort> locs) {
                 
             }
+
+            @Override
+            public void handleQueryResults(QueryReply queryReply,
+                    List<? extends RemoteFileDesc> rfds, List<? extends Set<? extends IpPort>> locs) {
+                
+            }
             
             @Override
             public boolean promptTorrentFilePriorities(Torrent torrent) {
@@ -0,0 +1,265 @@
+package com.limegroup.gnutella;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Test;
+
+import org.limewire.gnutella.tests.LimeTestCase;
+import org.limewire.io.GUID;
+
+import com.limegroup.gnutella.search.ResultCounter;
+import com.limegroup.gnutella.stubs.ReplyHandlerStub;
+
+public final class ConcurrentRouteTableTest extends LimeTestCase {
+
+    private byte[] g1, g2, g3, g4;
+
+    private ReplyHandler c1, c2, c3, c4;
+
+    public ConcurrentRouteTableTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(ConcurrentRouteTableTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        g1 = new byte[16]; g1[0] = (byte)1;
+        g2 = new byte[16]; g2[0] = (byte)2;
+        g3 = new byte[16]; g3[0] = (byte)3;
+        g4 = new byte[16]; g4[0] = (byte)4;
+        c1 = new ReplyHandlerStub();
+        c2 = new ReplyHandlerStub();
+        c3 = new ReplyHandlerStub();
+        c4 = new ReplyHandlerStub();
+    }
+
+    public void testTimeReplacement() throws Exception {
+        int MSECS = 1250;
+        ConcurrentRouteTable rt = new ConcurrentRouteTable(MSECS/1000, Integer.MAX_VALUE);
+        rt.routeReply(g1, c1);
+        rt.routeReply(g2, c2);                    //old, new:
+        rt.routeReply(g3, c3);                    //{}, {g1, g2, g3}
+        assertSame(c1, rt.getReplyHandler(g1));
+        assertSame(c2, rt.getReplyHandler(g2));
+        assertSame(c3, rt.getReplyHandler(g3, 0, (short) 0,(short) 0).getReplyHandler());
+        assertNull(rt.getReplyHandler(g4, 0, (short) 0,(short) 0));
+        Thread.sleep(MSECS);
+        assertNotNull(rt.tryToRouteReply(g4, c4));  //{g1, g2, g3}, {g4}
+        assertSame(c1, rt.getReplyHandler(g1));
+        rt.routeReply(g1, c1);                    //{g2, g3}, {g1, g4}
+        assertSame(c1, rt.getReplyHandler(g1));
+        assertSame(c2, rt.getReplyHandler(g2, 0, (short) 0,(short) 0).getReplyHandler());
+        assertSame(c3, rt.getReplyHandler(g3));
+        assertSame(c4, rt.getReplyHandler(g4));
+        Thread.sleep(MSECS);
+        rt.routeReply(g2, c3);                     //{g1, g4}, {g2}
+        assertSame(c1, rt.getReplyHandler(g1));
+        assertSame(c3, rt.getReplyHandler(g2));
+        assertNull(rt.getReplyHandler(g3));
+        assertSame(c4, rt.getReplyHandler(g4));
+        Thread.sleep(MSECS);
+        assertNull(rt.tryToRouteReply(g2, c2));  //{g2}, {}
+        assertNull(rt.getReplyHandler(g1));
+        assertSame(c3, rt.getReplyHandler(g2));
+        assertNull(rt.getReplyHandler(g3));
+        assertNull(rt.getReplyHandler(g4));
+        rt.routeReply(g2, c2);                      //{}, {g2}
+        assertNull(rt.getReplyHandler(g1));
+        assertSame(c2, rt.getReplyHandler(g2));
+        assertNull(rt.getReplyHandler(g3));
+        assertNull(rt.getReplyHandler(g4));
+    }
+
+    public void testSpaceReplacement() throws Exception {
+        ConcurrentRouteTable rt = new ConcurrentRouteTable(Integer.MAX_VALUE, 1);
+        rt.routeReply(g1, c1);
+        rt.routeReply(g2, c2);                      //{g1}, {g2}
+        assertSame(c1, rt.getReplyHandler(g1));
+        assertSame(c2, rt.getReplyHandler(g2));
+        rt.routeReply(g3, c3);                      //{g2}, {g3}
+        assertNull(rt.getReplyHandler(g1));
+        assertSame(c2, rt.getReplyHandler(g2));
+        assertSame(c3, rt.getReplyHandler(g3));
+        rt.routeReply(g4, c4);
+        assertNull(rt.getReplyHandler(g1));
+        assertNull(rt.getReplyHandler(g2));
+        assertSame(c3, rt.getReplyHandler(g3));
+        assertSame(c4, rt.getReplyHandler(g4));
+    }
+
+    public void testRouting() throws Exception {
+        ConcurrentRouteTable rt = new ConcurrentRouteTable(1000, Integer.MAX_VALUE);
+        assertNotNull(rt.tryToRouteReply(g1, c1));         //g1->c1
+        assertNull(rt.tryToRouteReply(g1, c2));
+        assertSame(c1, rt.getReplyHandler(g1));
+
+        assertNotNull(rt.tryToRouteReply(g2, c2));         //g2->c2
+        assertSame(c2, rt.getReplyHandler(g2));
+        rt.routeReply(g2, c3);                           //g2->c3
+        assertSame(c1, rt.getReplyHandler(g1));
+        assertSame(c3, rt.getReplyHandler(g2));
+
+        rt.removeReplyHandler(c1);                       //g1->null
+        rt.removeReplyHandler(c3);                       //g2->null
+        assertNull(rt.getReplyHandler(g1, 0, (short) 0,(short) 0));
+        assertNull(rt.getReplyHandler(g2));
+        assertNull(rt.tryToRouteReply(g1, c1));
+        assertNull(rt.tryToRouteReply(g2, c3));
+        assertNull(rt.getReplyHandler(g1));
+        assertNull(rt.getReplyHandler(g2));
+        assertEquals(1, rt.getNumReplyHandlers());       //c2 only
+
+        // handler IDs don't grow without bound
+        rt = new ConcurrentRouteTable(1000, Integer.MAX_VALUE);
+        assertNotNull(rt.tryToRouteReply(g1, c1));
+        assertNotNull(rt.tryToRouteReply(g2, c1));
+        assertNotNull(rt.tryToRouteReply(g3, c1));
+        assertNotNull(rt.tryToRouteReply(g4, c1));
+        assertNull(rt.tryToRouteReply(g4, c1));
+        assertSame(c1, rt.getReplyHandler(g1));
+        assertSame(c1, rt.getReplyHandler(g2));
+        assertSame(c1, rt.getReplyHandler(g3));
+        assertSame(c1, rt.getReplyHandler(g4));
+        assertEquals(1, rt.getNumReplyHandlers());
+    }
+
+    public void testClosedHandlerIsNotRouted() throws Exception {
+        ConcurrentRouteTable rt = new ConcurrentRouteTable(1000, Integer.MAX_VALUE);
+        ReplyHandler closed = new ReplyHandlerStub() {
+            @Override
+            public boolean isOpen() {
+                return false;
+            }
+        };
+        assertNull(rt.routeReply(g1, closed));
+        assertNull(rt.tryToRouteReply(g1, closed));
+        assertNull(rt.getReplyHandler(g1));
+        assertEquals(0, rt.getNumReplyHandlers());
+    }
+
+    public void testReplyCounting() throws Exception {
+        int MSECS = 1250;
+        ConcurrentRouteTable rt = new ConcurrentRouteTable(MSECS/1000, Integer.MAX_VALUE);
+        RouteTable.ReplyRoutePair rrp = null;
+        assertNotNull(rt.tryToRouteReply(g1, c1));  //g1 -> <c1, 0>
+        rrp = rt.getReplyHandler(g1, 5, (short) 0,(short) 0);            //g1 -> <c1, 0+5>
+        assertSame(c1, rrp.getReplyHandler());
+        assertEquals(0, rrp.getBytesRouted());
+        rrp = rt.getReplyHandler(g1, 1, (short) 0,(short) 0);            //g1 -> <c1, 5+1>
+        assertSame(c1, rrp.getReplyHandler());
+        assertEquals(5, rrp.getBytesRouted());
+        rt.routeReply(g1, c2);                    //g1 -> <c2, 6>
+        rrp = rt.getReplyHandler(g1, 2, (short) 3,(short) 1);            //g1 -> <c2, 6+2>
+        assertSame(c2, rrp.getReplyHandler());
+        assertEquals(6, rrp.getBytesRouted());
+        assertEquals(0, rrp.getResultsRouted());
+
+        // the counts survive a generation switch and re-routing
+        Thread.sleep(MSECS);
+        ResultCounter counter = rt.routeReply(g1, c3);   //g1 -> <c3, 8>
+        assertEquals(2, counter.getNumResults());
+        rrp = rt.getReplyHandler(g1, 10, (short) 0,(short) 0);            //g1 -> <c3, 8+10>
+        assertSame(c3, rrp.getReplyHandler());
+        assertEquals(8, rrp.getBytesRouted());
+        assertEquals(3, rrp.getResultsRouted());
+
+        // uncounted replies are not added
+        rt.getReplyHandler(g1, 10, (short) 5, (short) 0, 0, false);
+        assertEquals(18, rt.getReplyHandler(g1, 0, (short) 0, (short) 0).getBytesRouted());
+        assertEquals(2, counter.getNumResults());
+
+        rt.removeReplyHandler(c3);
+        assertNull(rt.getReplyHandler(g1, 0, (short) 0,(short) 0));
+    }
+
+    public void testTTLAdditions() {
+        ConcurrentRouteTable rt = new ConcurrentRouteTable(1, Integer.MAX_VALUE);
+        rt.setTTL(rt.tryToRouteReply(g2, c2), (byte)2);
+        rt.setTTL(rt.tryToRouteReply(g1, c1), (byte)3);
+        try {
+            rt.setTTL(null, (byte) 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {}
+        try {
+            rt.setTTL(rt.tryToRouteReply(g3, c3), (byte) 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {}
+        try {
+            rt.setTTL(new RouteTable(1, 1).tryToRouteReply(g4, c4), (byte) 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {}
+        try {
+            rt.getAndSetTTL(g3, (byte)0, (byte)2);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {}
+        try {
+            rt.getAndSetTTL(g2, (byte)2, (byte)2);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {}
+        assertTrue(rt.getAndSetTTL(g1, (byte)3, (byte)4));
+        assertTrue(rt.getAndSetTTL(g1, (byte)4, (byte)5));
+        assertFalse(rt.getAndSetTTL(g2, (byte)3, (byte)5));
+        assertFalse(rt.getAndSetTTL(g4, (byte)1, (byte)5));
+    }
+
+    public void testManyGuids() throws Exception {
+        ConcurrentRouteTable rt = new ConcurrentRouteTable(1000, Integer.MAX_VALUE);
+        List<byte[]> guids = new ArrayList<byte[]>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] guid = GUID.makeGuid();
+            guids.add(guid);
+            assertNotNull(rt.tryToRouteReply(guid, i % 2 == 0 ? c1 : c2));
+        }
+        // re-routing removes and re-adds the guids, moving entries around
+        for (int i = 0; i < guids.size(); i += 3) {
+            rt.routeReply(guids.get(i), c3);
+        }
+        for (int i = 0; i < guids.size(); i++) {
+            ReplyHandler expected = i % 3 == 0 ? c3 : i % 2 == 0 ? c1 : c2;
+            assertSame("guid " + i, expected, rt.getReplyHandler(guids.get(i)));
+        }
+        assertNull(rt.getReplyHandler(GUID.makeGuid()));
+    }
+
+    public void testConcurrentRouting() throws Exception {
+        final ConcurrentRouteTable rt = new ConcurrentRouteTable(1000, Integer.MAX_VALUE);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 4; t++) {
+                final long seed = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        Random random = new Random(seed);
+                        ReplyHandler handler = new ReplyHandlerStub();
+                        for (int i = 0; i < 2000; i++) {
+                            byte[] guid = new byte[16];
+                            random.nextBytes(guid);
+                            assertNotNull(rt.tryToRouteReply(guid, handler));
+                            RouteTable.ReplyRoutePair rrp = rt.getReplyHandler(guid, 1, (short) 1, (short) 0);
+                            assertSame(handler, rrp.getReplyHandler());
+                            assertEquals(0, rrp.getBytesRouted());
+                            assertEquals(1, rt.getReplyHandler(guid, 1, (short) 1, (short) 0).getBytesRouted());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(4, rt.getNumReplyHandlers());
+    }
+}
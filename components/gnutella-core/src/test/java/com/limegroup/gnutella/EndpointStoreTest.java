@@ -0,0 +1,231 @@
+package com.limegroup.gnutella;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+
+import org.limewire.gnutella.tests.LimeTestCase;
+import org.limewire.io.IpPort;
+import org.limewire.io.RecordStore;
+
+/**
+ * Tests the EndpointStore class.
+ */
+public class EndpointStoreTest extends LimeTestCase {
+
+    private EndpointStore store;
+
+    public EndpointStoreTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(EndpointStoreTest.class);
+    }
+
+    public static void main(String argv[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        new RecordStore(_settingsDir, "hosts", EndpointStore.VERSION).clear();
+        store = new EndpointStore(HostCatcher.GOOD_SIZE + HostCatcher.NORMAL_SIZE, null);
+    }
+
+    public void testAddAndPoll() throws Exception {
+        ExtendedEndpoint host = new ExtendedEndpoint("18.1.2.3", 6346);
+        assertTrue(store.add(host, 0));
+        assertFalse("duplicate was added", store.add(new ExtendedEndpoint("18.1.2.3", 6346), 0));
+        assertEquals(1, store.size());
+        assertSame(host, store.get(new Endpoint("18.1.2.3", 6346)));
+
+        assertSame(host, store.poll(false));
+        assertEquals(0, store.size());
+        assertNull(store.poll(false));
+        // Still known, and can be made available again
+        assertSame(host, store.get(host));
+        assertTrue(store.add(host, EndpointStore.ULTRAPEER));
+        assertEquals(1, store.size(EndpointStore.ULTRAPEER));
+
+        assertTrue(store.remove(host));
+        assertNull(store.get(host));
+        assertEquals(0, store.size());
+        assertEquals(0, store.size(EndpointStore.ULTRAPEER));
+    }
+
+    public void testCapsHostsPerNetwork() throws Exception {
+        for(int i = 1; i <= 10; i++)
+            store.add(new ExtendedEndpoint("18.1.2." + i, 6346), 0);
+        assertEquals(EndpointStore.MAX_PER_NETWORK, store.size());
+
+        // A better host of the network replaces a worse one
+        assertTrue(store.add(new ExtendedEndpoint("18.1.2.100", 6346), EndpointStore.ULTRAPEER));
+        assertEquals(EndpointStore.MAX_PER_NETWORK, store.size());
+        assertNotNull(store.get(new Endpoint("18.1.2.100", 6346)));
+
+        // Other networks are not affected
+        assertTrue(store.add(new ExtendedEndpoint("18.1.3.1", 6346), 0));
+        assertEquals(EndpointStore.MAX_PER_NETWORK + 1, store.size());
+    }
+
+    public void testPrefersFreeSlotsForOurMode() throws Exception {
+        ExtendedEndpoint normal = new ExtendedEndpoint("18.1.2.1", 6346);
+        ExtendedEndpoint leafSlots = new ExtendedEndpoint("18.1.2.2", 6346);
+        ExtendedEndpoint upSlots = new ExtendedEndpoint("18.1.2.3", 6346);
+        store.add(normal, 0);
+        store.add(leafSlots, EndpointStore.ULTRAPEER | EndpointStore.FREE_LEAF_SLOTS);
+        store.add(upSlots, EndpointStore.ULTRAPEER | EndpointStore.FREE_ULTRAPEER_SLOTS);
+        assertEquals(1, store.size(EndpointStore.FREE_LEAF_SLOTS));
+        assertEquals(1, store.size(EndpointStore.FREE_ULTRAPEER_SLOTS));
+
+        assertSame(leafSlots, store.poll(false));
+        assertSame(upSlots, store.poll(false));
+        assertSame(normal, store.poll(false));
+
+        store.restore();
+        assertEquals(3, store.size());
+        assertSame(upSlots, store.poll(true));
+        assertSame(leafSlots, store.poll(true));
+    }
+
+    public void testScoresConnectionHistory() throws Exception {
+        ExtendedEndpoint failed = new ExtendedEndpoint("18.1.2.1", 6346, 80000);
+        ExtendedEndpoint connected = new ExtendedEndpoint("18.1.2.2", 6346, 100);
+        store.add(failed, 0);
+        store.add(connected, 0);
+        // High uptime is preferred until the history says otherwise
+        assertSame(failed, store.poll(false));
+        assertSame(connected, store.poll(false));
+        store.doneWithConnect(failed, false);
+        store.doneWithConnect(connected, true);
+
+        store.restore();
+        assertSame(connected, store.poll(false));
+        assertSame(failed, store.poll(false));
+
+        Map<String, Object> stats = store.inspect();
+        assertEquals(4L, stats.get("out"));
+        assertEquals(1L, stats.get("ok"));
+        assertEquals(1L, stats.get("fail"));
+        assertGreaterThanOrEquals(0L, ((Long)stats.get("lat")).longValue());
+    }
+
+    public void testHandsOutDiverseHosts() throws Exception {
+        // Networks of different stripes, four hosts each
+        List<String> networks = new ArrayList<String>();
+        Set<Integer> stripes = new HashSet<Integer>();
+        for(int i = 0; networks.size() < 8; i++) {
+            if(stripes.add(EndpointStore.getStripeIndex((18 << 24) | (i << 8))))
+                networks.add("18.0." + i + ".");
+        }
+        for(String network : networks) {
+            for(int i = 1; i <= 4; i++)
+                store.add(new ExtendedEndpoint(network + i, 6346), 0);
+        }
+        assertEquals(32, store.size());
+
+        Set<String> seen = new HashSet<String>();
+        for(int i = 0; i < networks.size(); i++) {
+            String address = store.poll(false).getAddress();
+            seen.add(address.substring(0, address.lastIndexOf('.') + 1));
+        }
+        assertEquals(networks.size(), seen.size());
+    }
+
+    public void testGetHostsWithFlag() throws Exception {
+        ExtendedEndpoint english = new ExtendedEndpoint("18.1.2.1", 6346, "en");
+        ExtendedEndpoint sameNetwork = new ExtendedEndpoint("18.1.2.2", 6346, "en");
+        ExtendedEndpoint german = new ExtendedEndpoint("18.1.3.1", 6346, "de");
+        store.add(english, EndpointStore.ULTRAPEER | EndpointStore.FREE_LEAF_SLOTS);
+        store.add(sameNetwork, EndpointStore.ULTRAPEER | EndpointStore.FREE_LEAF_SLOTS);
+        store.add(german, EndpointStore.ULTRAPEER | EndpointStore.FREE_LEAF_SLOTS);
+        store.add(new ExtendedEndpoint("18.1.4.1", 6346, "de"), EndpointStore.ULTRAPEER);
+
+        Collection<IpPort> hosts = store.getHosts(EndpointStore.FREE_LEAF_SLOTS, "de", 10);
+        assertEquals(2, hosts.size());
+        assertSame(german, hosts.iterator().next());
+        assertEquals(1, store.getHosts(EndpointStore.FREE_LEAF_SLOTS, "en", 1).size());
+        assertEquals(0, store.getHosts(EndpointStore.FREE_ULTRAPEER_SLOTS, "en", 10).size());
+    }
+
+    public void testPersistsChanges() throws Exception {
+        store = new EndpointStore(100, newRecords());
+        assertTrue(store.load().isEmpty());
+        ExtendedEndpoint kept = new ExtendedEndpoint("18.1.2.1", 6346, 5000);
+        ExtendedEndpoint removed = new ExtendedEndpoint("18.1.3.1", 6346);
+        store.add(kept, 0);
+        store.add(removed, 0);
+        store.poll(false);
+        store.poll(false);
+        store.doneWithConnect(kept, true);
+        store.flush();
+
+        EndpointStore reloaded = new EndpointStore(100, newRecords());
+        List<ExtendedEndpoint> hosts = reloaded.load();
+        assertEquals(2, hosts.size());
+        for(ExtendedEndpoint host : hosts)
+            assertTrue(reloaded.addRestored(host));
+        ExtendedEndpoint restored = reloaded.get(kept);
+        assertEquals(5000, restored.getDailyUptime());
+        assertTrue(restored.getConnectionSuccesses().hasNext());
+
+        store.remove(removed);
+        store.flush();
+        reloaded = new EndpointStore(100, newRecords());
+        hosts = reloaded.load();
+        assertEquals(1, hosts.size());
+        assertEquals(kept, hosts.get(0));
+    }
+
+    public void testConcurrentAddAndPoll() throws Exception {
+        final int threads = 4;
+        final int hostsPerThread = 250;
+        store = new EndpointStore(threads * hostsPerThread * 2, null);
+        final Map<IpPort, Boolean> polled = new ConcurrentHashMap<IpPort, Boolean>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads * 2);
+        for(int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < hostsPerThread; i++)
+                        store.add(new ExtendedEndpoint("18." + thread + "." + i + ".1", 6346), 0);
+                    done.countDown();
+                }
+            }.start();
+            new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < hostsPerThread; i++) {
+                        ExtendedEndpoint host = store.poll(false);
+                        if(host != null && polled.put(host, true) != null)
+                            duplicates.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+
+        ExtendedEndpoint host;
+        while((host = store.poll(false)) != null)
+            assertNull("handed out twice", polled.put(host, true));
+        assertEquals("handed out twice", 0, duplicates.get());
+        assertEquals(threads * hostsPerThread, polled.size());
+        assertEquals(0, store.size());
+    }
+
+    private RecordStore newRecords() {
+        return new RecordStore(_settingsDir, "hosts", EndpointStore.VERSION);
+    }
+}
@@ -693,6 +693,65 @@ public class HostCatcherTest extends LimeTestCase {
         assertEquals(p, observer.getEndpoint());       
     }
     
+    /**
+     * Tests that hosts are kept in the endpoint store if it is on.
+     */
+    public void testEndpointStore() throws Exception {
+        hostCatcher.stop();
+        ConnectionSettings.ENDPOINT_STORE.setValue(true);
+        hostCatcher = LimeTestUtils.createInjectorNonEagerly().getInstance(HostCatcher.class);
+        hostCatcher.start();
+
+        StubEndpointObserver observer = new StubEndpointObserver();
+        assertNull(hostCatcher.getAnEndpointImmediate(observer));
+        Endpoint p1 = new Endpoint("18.239.0.1", 6346);
+        Endpoint p2 = new Endpoint("18.240.0.1", 6346);
+        assertTrue(hostCatcher.add(p1, true));
+        assertEquals(p1, observer.getEndpoint());
+        assertEquals(0, hostCatcher.getNumHosts());
+
+        assertTrue(hostCatcher.add(p2, false));
+        assertFalse(hostCatcher.add(p2, false));
+        assertEquals(1, hostCatcher.getNumHosts());
+        assertEquals(0, hostCatcher.getNumUltrapeerHosts());
+        ExtendedEndpoint e2 = (ExtendedEndpoint)hostCatcher.getAnEndpoint();
+        assertEquals(p2, e2);
+
+        // The history is recorded and the host can be tried again
+        hostCatcher.doneWithConnect(e2, true);
+        assertTrue(e2.getConnectionSuccesses().hasNext());
+        assertTrue(hostCatcher.add(p2, false));
+        assertEquals(1, hostCatcher.getNumHosts());
+
+        // Expired hosts are forgotten
+        hostCatcher.expireHost(p2);
+        assertEquals(0, hostCatcher.getNumHosts());
+        assertFalse(hostCatcher.add(p2, true));
+    }
+
+    /**
+     * Tests that the time to the first connection after connecting is
+     * recorded.
+     */
+    public void testTimeToFirstConnection() throws Exception {
+        assertEquals(-1, hostCatcher.getTimeToFirstConnection());
+        hostCatcher.connect();
+        Endpoint p = new Endpoint("18.239.0.1", 6346);
+        hostCatcher.add(p, true);
+        Endpoint e = hostCatcher.getAnEndpoint();
+        hostCatcher.doneWithConnect(e, false);
+        assertEquals(-1, hostCatcher.getTimeToFirstConnection());
+        Thread.sleep(20);
+        hostCatcher.doneWithConnect(e, true);
+        long time = hostCatcher.getTimeToFirstConnection();
+        assertGreaterThanOrEquals(20L, time);
+        assertEquals(2, PrivilegedAccessor.getValue(hostCatcher, "attemptsToFirstConnection"));
+
+        // Only the first connection counts
+        hostCatcher.doneWithConnect(e, true);
+        assertEquals(time, hostCatcher.getTimeToFirstConnection());
+    }
+
     public void testGetDHTSupportEndpoint() throws Exception {
         ConnectionSettings.FILTER_CLASS_C.setValue(true);
         assertEquals(0, hostCatcher.getDHTSupportEndpoint(0).size());
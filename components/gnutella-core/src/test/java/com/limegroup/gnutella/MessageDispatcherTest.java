@@ -0,0 +1,117 @@
+package com.limegroup.gnutella;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.core.settings.MessageSettings;
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.ByteUtils;
+import org.limewire.util.PrivilegedAccessor;
+
+import com.limegroup.gnutella.messages.Message;
+import com.limegroup.gnutella.messages.PingRequestFactory;
+import com.limegroup.gnutella.messages.PingRequestFactoryImpl;
+
+public class MessageDispatcherTest extends BaseTestCase {
+
+    public MessageDispatcherTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(MessageDispatcherTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MessageSettings.MESSAGE_DISPATCH_LANES.revertToDefault();
+    }
+
+    public void testDispatchesEachAddressInOrderOnOneLane() throws Exception {
+        MessageSettings.MESSAGE_DISPATCH_LANES.setValue(4);
+        final int addresses = 16, messages = 200;
+        final CountDownLatch done = new CountDownLatch(addresses * messages);
+        final Map<InetSocketAddress, List<Integer>> received =
+            new ConcurrentHashMap<InetSocketAddress, List<Integer>>();
+        final Map<InetSocketAddress, Set<Thread>> threads =
+            new ConcurrentHashMap<InetSocketAddress, Set<Thread>>();
+        final Set<Thread> allThreads = new CopyOnWriteArraySet<Thread>();
+        MessageRouter router = (MessageRouter)Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { MessageRouter.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("handleUDPMessage")) {
+                            Message m = (Message)args[0];
+                            InetSocketAddress addr = (InetSocketAddress)args[1];
+                            received.get(addr).add(ByteUtils.beb2int(m.getGUID(), 0));
+                            threads.get(addr).add(Thread.currentThread());
+                            allThreads.add(Thread.currentThread());
+                            done.countDown();
+                        }
+                        return null;
+                    }
+                });
+        MessageDispatcher dispatcher = new MessageDispatcher(router,
+                ExecutorsHelper.newProcessingQueue("MessageDispatcherTest"), null);
+        assertEquals(4, dispatcher.getLaneCount());
+
+        PingRequestFactory pings = new PingRequestFactoryImpl(null, null);
+        List<InetSocketAddress> addrs = new ArrayList<InetSocketAddress>();
+        for(int i = 0; i < addresses; i++) {
+            InetSocketAddress addr = new InetSocketAddress("18.0.0." + (i + 1), 6346);
+            addrs.add(addr);
+            received.put(addr, new ArrayList<Integer>());
+            threads.put(addr, new CopyOnWriteArraySet<Thread>());
+        }
+        for(int j = 0; j < messages; j++) {
+            for(InetSocketAddress addr : addrs) {
+                byte[] guid = new byte[16];
+                ByteUtils.int2beb(j, guid, 0);
+                dispatcher.dispatchUDP(pings.createPingRequest(guid, (byte)1, (byte)0), addr);
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        for(InetSocketAddress addr : addrs) {
+            List<Integer> sequence = received.get(addr);
+            assertEquals(messages, sequence.size());
+            for(int j = 0; j < messages; j++)
+                assertEquals(j, sequence.get(j).intValue());
+            assertEquals(1, threads.get(addr).size());
+        }
+        assertGreaterThan(1, allThreads.size());
+        assertEquals(0, dispatcher.getQueueDepth());
+
+        Map<?, ?> stats = (Map<?, ?>)((org.limewire.inspection.Inspectable)PrivilegedAccessor.getValue(
+                dispatcher, "dispatchStats")).inspect();
+        assertEquals(4, stats.get("lanes"));
+        long dispatched = 0;
+        for(Object n : (List<?>)stats.get("n"))
+            dispatched += (Long)n;
+        assertEquals(addresses * messages, dispatched);
+        assertTrue(((Map<?, ?>)stats.get("service")).containsKey("PingRequestImpl"));
+    }
+
+    public void testSingleLaneByDefault() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher(null,
+                ExecutorsHelper.newProcessingQueue("MessageDispatcherTest"), null);
+        assertEquals(1, dispatcher.getLaneCount());
+    }
+}
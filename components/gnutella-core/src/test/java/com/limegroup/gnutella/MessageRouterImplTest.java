@@ -964,7 +964,7 @@ public final class MessageRouterImplTest extends LimeTestCase {
     	GUID clientGUID = new GUID(GUID.makeGuid());
     	
     	//make sure our routing table contains an entry for the pingee
-    	RouteTable pushRt = messageRouterImpl.getPushRouteTable();
+    	ConcurrentRouteTable pushRt = messageRouterImpl.getPushRouteTable();
     	pushRt.routeReply(clientGUID.bytes(),pingee);
     	
     	// try a HeadPing 
@@ -979,7 +979,7 @@ public final class MessageRouterImplTest extends LimeTestCase {
     	assertTrue(pingee._lastSent instanceof HeadPing);
     	
     	// we should have an entry in the routing table
-    	RouteTable headRt = messageRouterImpl.getHeadPongRouteTable();
+    	ConcurrentRouteTable headRt = messageRouterImpl.getHeadPongRouteTable();
     	
     	ReplyHandler r = headRt.getReplyHandler(ping.getGUID());
     	assertEquals(InetAddress.getLocalHost(),InetAddress.getByName(r.getAddress()));
@@ -995,7 +995,7 @@ public final class MessageRouterImplTest extends LimeTestCase {
     	HeadListener pinger = new HeadListener();
     	
     	//make sure our routing table contains an entry for the pinger
-    	RouteTable headRt = messageRouterImpl.getHeadPongRouteTable();
+    	ConcurrentRouteTable headRt = messageRouterImpl.getHeadPongRouteTable();
     	
     	//try a headpong
     	URN urn = FileDescStub.DEFAULT_SHA1;
@@ -435,7 +435,7 @@ public class MulticastTest extends LimeTestCase {
 	}
     
     private void reroutePush(byte[] guid) throws Exception {
-        RouteTable rt = messageRouter.getPushRouteTable();
+        ConcurrentRouteTable rt = messageRouter.getPushRouteTable();
         rt.routeReply(guid, forMeReplyHandler);
     }
     
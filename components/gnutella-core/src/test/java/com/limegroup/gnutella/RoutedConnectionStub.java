@@ -20,6 +20,7 @@ import com.limegroup.gnutella.messages.QueryRequest;
 import com.limegroup.gnutella.messages.vendor.SimppVM;
 import com.limegroup.gnutella.messages.vendor.VendorMessage;
 import com.limegroup.gnutella.routing.PatchTableMessage;
+import com.limegroup.gnutella.routing.QueryKeywordHashes;
 import com.limegroup.gnutella.routing.ResetTableMessage;
 
 /**
@@ -125,6 +126,10 @@ public class RoutedConnectionStub implements RoutedConnection {
         return false;
     }
 
+    public boolean shouldForwardQuery(QueryKeywordHashes hashes) {
+        return shouldForwardQuery(hashes.getQuery());
+    }
+
     public void startMessaging() {
         // TODO Auto-generated method stub
         
@@ -0,0 +1,142 @@
+package com.limegroup.gnutella;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.Test;
+
+import org.limewire.core.settings.ConnectionSettings;
+import org.limewire.gnutella.tests.LimeTestCase;
+import org.limewire.gnutella.tests.LimeTestUtils;
+import org.limewire.inspection.Inspectable;
+import org.limewire.nio.ByteBufferCache;
+import org.limewire.nio.NIODispatcher;
+import org.limewire.util.PrivilegedAccessor;
+
+import com.google.inject.Injector;
+import com.limegroup.gnutella.messages.PingRequest;
+import com.limegroup.gnutella.messages.PingRequestFactory;
+
+public class UDPServiceTest extends LimeTestCase {
+
+    private UDPService udpService;
+
+    private int port;
+
+    private PingRequestFactory pingRequestFactory;
+
+    private DatagramSocket socket;
+
+    public UDPServiceTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(UDPServiceTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Injector injector = LimeTestUtils.createInjector();
+        udpService = injector.getInstance(UDPService.class);
+        pingRequestFactory = injector.getInstance(PingRequestFactory.class);
+        udpService.setListeningSocket(udpService.newListeningSocket(0));
+        udpService.start();
+        port = udpService.getListeningPort();
+        socket = new DatagramSocket();
+        socket.setSoTimeout(2000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        socket.close();
+        udpService.shutdown();
+    }
+
+    public void testSendsQueuedMessages() throws Exception {
+        sendAndReceive(true);
+        sendAndReceive(false);
+    }
+
+    private void sendAndReceive(boolean batched) throws Exception {
+        ConnectionSettings.UDP_BATCHED_IO.setValue(batched);
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        PingRequest[] pings = new PingRequest[50];
+        for(int i = 0; i < pings.length; i++) {
+            pings[i] = pingRequestFactory.createPingRequest((byte)1);
+            udpService.send(pings[i], localhost, socket.getLocalPort());
+        }
+        for(int i = 0; i < pings.length; i++) {
+            DatagramPacket packet = new DatagramPacket(new byte[1000], 1000);
+            socket.receive(packet);
+            assertEquals(pings[i].getTotalLength(), packet.getLength());
+            byte[] guid = pings[i].getGUID().clone();
+            UDPService.mutateGUID(guid, localhost, socket.getLocalPort());
+            assertEquals(guid, Arrays.copyOf(packet.getData(), 16));
+        }
+    }
+
+    public void testCountsReadAndDroppedDatagrams() throws Exception {
+        readBurst(true);
+        readBurst(false);
+    }
+
+    private void readBurst(boolean batched) throws Exception {
+        ConnectionSettings.UDP_BATCHED_IO.setValue(batched);
+        Map<String, Object> before = inspect();
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        byte[] garbage = new byte[30];
+        Arrays.fill(garbage, (byte)0x7f);
+        for(int i = 0; i < 100; i++)
+            socket.send(new DatagramPacket(garbage, garbage.length, localhost, port));
+        Map<String, Object> after = null;
+        for(int i = 0; i < 50; i++) {
+            Thread.sleep(50);
+            after = inspect();
+            if(count(after, before, "unparsed") == 100)
+                break;
+        }
+        assertEquals(100, count(after, before, "recv"));
+        assertEquals(100, count(after, before, "unparsed"));
+        assertEquals(3000, count(after, before, "recvb"));
+        assertEquals(1, after.get("ver"));
+    }
+
+    public void testSendBurstKeepsBufferPoolBounded() throws Exception {
+        ByteBufferCache cache = NIODispatcher.instance().getBufferCache();
+        cache.clearCache();
+        Map<String, Object> before = inspect();
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        for(int i = 0; i < 5000; i++)
+            udpService.send(pingRequestFactory.createPingRequest((byte)1),
+                    localhost, socket.getLocalPort());
+        Map<String, Object> after = null;
+        for(int i = 0; i < 100; i++) {
+            Thread.sleep(50);
+            after = inspect();
+            if(count(after, before, "sent") + count(after, before, "failed") == 5000)
+                break;
+        }
+        assertEquals(5000, count(after, before, "sent") + count(after, before, "failed"));
+        assertEquals(0, cache.getDirectCacheCount());
+        assertGreaterThan(0, cache.getHeapCacheSize());
+        assertLessThanOrEquals(1024 * 1024 + 23, cache.getHeapCacheSize());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> inspect() throws Exception {
+        return (Map<String, Object>)((Inspectable)PrivilegedAccessor.getValue(udpService,
+                "ioStatsInspectable")).inspect();
+    }
+
+    private long count(Map<String, Object> after, Map<String, Object> before, String key) {
+        return (Long)after.get(key) - (Long)before.get(key);
+    }
+}
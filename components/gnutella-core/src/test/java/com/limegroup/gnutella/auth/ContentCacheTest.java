@@ -0,0 +1,94 @@
+package com.limegroup.gnutella.auth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+
+import org.limewire.gnutella.tests.LimeTestCase;
+import org.limewire.util.CommonUtils;
+
+import com.limegroup.gnutella.URN;
+
+public class ContentCacheTest extends LimeTestCase {
+    
+    private static final URN URN_1;
+    private static final URN URN_2;
+    
+    static {
+        try {
+            URN_1 = URN.createSHA1Urn("urn:sha1:PLSTHIPQGSSZTS5FJUPAKUZWUGYQYPFB");
+            URN_2 = URN.createSHA1Urn("urn:sha1:PLSTHIPQGSSZTS5FJUPAKUZWUGZQYPFB");
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public ContentCacheTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(ContentCacheTest.class);
+    }
+    
+    public void testPersistsResponses() throws Exception {
+        ContentCache cache = new ContentCache();
+        cache.initialize();
+        cache.addResponse(URN_1, new ContentResponseData(System.currentTimeMillis(), true));
+        cache.addResponse(URN_2, new ContentResponseData(System.currentTimeMillis(), false));
+        cache.writeToDisk();
+        
+        cache = new ContentCache();
+        cache.initialize();
+        assertEquals(2, cache.getSize());
+        assertTrue(cache.hasResponseFor(URN_1));
+        assertTrue(cache.getResponse(URN_1).isOK());
+        assertFalse(cache.getResponse(URN_2).isOK());
+    }
+    
+    public void testOldResponsesAreRemoved() throws Exception {
+        ContentCache cache = new ContentCache();
+        cache.initialize();
+        cache.addResponse(URN_1, new ContentResponseData(1, true));
+        cache.addResponse(URN_2, new ContentResponseData(System.currentTimeMillis(), true));
+        cache.writeToDisk();
+        
+        cache = new ContentCache();
+        cache.initialize();
+        assertEquals(1, cache.getSize());
+        assertFalse(cache.hasResponseFor(URN_1));
+        assertTrue(cache.hasResponseFor(URN_2));
+    }
+    
+    public void testNullUrnHasNoResponse() throws Exception {
+        ContentCache cache = new ContentCache();
+        cache.initialize();
+        assertFalse(cache.hasResponseFor(null));
+        assertNull(cache.getResponse(null));
+        cache.addResponse(null, new ContentResponseData(System.currentTimeMillis(), true));
+        assertEquals(0, cache.getSize());
+        assertFalse(cache.hasResponseFor(null));
+    }
+    
+    public void testMigratesCacheFile() throws Exception {
+        Map<URN, ContentResponseData> responses = new HashMap<URN, ContentResponseData>();
+        responses.put(URN_1, new ContentResponseData(System.currentTimeMillis(), true));
+        File file = new File(CommonUtils.getUserSettingsDir(), "responses.cache");
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        out.writeObject(responses);
+        out.close();
+        
+        ContentCache cache = new ContentCache();
+        cache.initialize();
+        assertFalse(file.exists());
+        assertTrue(cache.getResponse(URN_1).isOK());
+        
+        cache = new ContentCache();
+        cache.initialize();
+        assertTrue(cache.getResponse(URN_1).isOK());
+    }
+}
@@ -25,6 +25,7 @@ import com.limegroup.gnutella.messages.PingRequestFactory;
 import com.limegroup.gnutella.messages.PushRequestImpl;
 import com.limegroup.gnutella.messages.QueryReplyFactory;
 import com.limegroup.gnutella.messages.QueryRequestFactory;
+import com.limegroup.gnutella.routing.ResetTableMessage;
 import com.limegroup.gnutella.stubs.ReadBufferChannel;
 
 /**
@@ -146,6 +147,23 @@ public final class MessageReaderTest extends LimeTestCase {
 	    assertFalse(STUB.isClosed());
     }
     
+    public void testPayloadAllocationsAreCounted() throws Exception {
+        PayloadAllocationStats stats = new PayloadAllocationStats();
+        READER = new MessageReader(null, STUB, messageFactory, stats);
+        Message out1 = new ResetTableMessage(1024, (byte)7);
+        Message out2 = queryRequestFactory.createQuery("test");
+        Message out3 = queryRequestFactory.createQuery("tset");
+        ByteBuffer b2 = buffer(out2);
+        b2.put(18, (byte)100); // bad hops, dropped
+        READER.setReadChannel(channel(buffer(new ByteBuffer[] { buffer(out1), b2, buffer(out3) })));
+        READER.handleRead();
+        assertEquals(2, STUB.size());
+        assertEquals(buffer(out1), buffer(STUB.getMessage()));
+        assertEquals(buffer(out3), buffer(STUB.getMessage()));
+        assertEquals(3, stats.getPayloads());
+        assertEquals(out1.getLength() + out2.getLength() + out3.getLength(), stats.getAllocatedBytes());
+    }
+    
     public void testLargeLengthThrows() throws Exception {
         Message out1 = pingRequestFactory.createPingRequest((byte)1);
         Message out2 = queryRequestFactory.createQuery("test");
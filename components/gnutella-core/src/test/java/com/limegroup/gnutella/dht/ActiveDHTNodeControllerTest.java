@@ -13,6 +13,9 @@ import org.limewire.io.IpPort;
 import org.limewire.mojito.Context;
 import org.limewire.mojito.KUID;
 import org.limewire.mojito.MojitoDHT;
+import org.limewire.mojito.db.DHTValueEntity;
+import org.limewire.mojito.db.DHTValueType;
+import org.limewire.mojito.db.impl.DHTValueImpl;
 import org.limewire.mojito.routing.Contact;
 import org.limewire.mojito.routing.RouteTable;
 import org.limewire.mojito.routing.Vendor;
@@ -65,6 +68,7 @@ public class ActiveDHTNodeControllerTest extends DHTTestCase {
         //first delete any previous file
         File dhtFile = new File(CommonUtils.getUserSettingsDir(), "active.mojito");
         dhtFile.delete();
+        new File(CommonUtils.getUserSettingsDir(), "active.mojito.db").delete();
         //start the node controller
         ActiveDHTNodeController controller = dhtControllerFactory.createActiveDHTNodeController(Vendor.UNKNOWN,
                 Version.ZERO, dispatcherStub);
@@ -89,6 +93,11 @@ public class ActiveDHTNodeControllerTest extends DHTTestCase {
                     State.UNKNOWN);
             rt.add(node);
             
+            //store a value
+            DHTValueEntity value = DHTValueEntity.createFromRemote(node, node, KUID.createRandomID(), 
+                    new DHTValueImpl(DHTValueType.TEST, Version.ZERO, new byte[] { 1 }));
+            assertTrue(context.getDatabase().store(value));
+            
             controller.start();
             controller.stop();
             
@@ -102,6 +111,10 @@ public class ActiveDHTNodeControllerTest extends DHTTestCase {
             Collection<Contact> contacts = rt.getContacts();
             assertEquals(12, contacts.size()); //11 + localnode
             assertTrue(contacts.contains(node));
+            //should have persisted the database
+            assertTrue(context.getDatabase().contains(value.getPrimaryKey(), value.getSecondaryKey()));
+            assertEquals(value.getCreationTime(), context.getDatabase().get(value.getPrimaryKey())
+                    .get(value.getSecondaryKey()).getCreationTime());
         } finally {
             controller.stop();
         }
@@ -0,0 +1,195 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+
+import org.limewire.collection.Range;
+import org.limewire.service.ErrorCallback;
+import org.limewire.service.ErrorService;
+import org.limewire.util.BaseTestCase;
+
+public class DiskControllerTest extends BaseTestCase {
+
+    private DiskController diskController;
+
+    private File file;
+
+    private RandomAccessFile raf;
+
+    public DiskControllerTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(DiskControllerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        diskController = new DiskController();
+        file = File.createTempFile("disk", "controller");
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        raf.close();
+        file.delete();
+    }
+
+    public void testAdjacentChunksAreCoalesced() throws Exception {
+        StubFile stub = new StubFile(raf);
+        CountDownLatch blocked = blockQueue();
+
+        // out of order, with a gap between the two runs
+        addWrite(stub, 1000, 1999, (byte) 2);
+        addWrite(stub, 0, 999, (byte) 1);
+        addWrite(stub, 3000, 3499, (byte) 4);
+        addWrite(stub, 2000, 2499, (byte) 3);
+        assertEquals(4, diskController.getQueueDepth());
+
+        blocked.countDown();
+        assertTrue(stub.finished.await(10, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList(Range.createRange(0, 2499), Range.createRange(3000, 3499)),
+                stub.written);
+        assertEquals(2, stub.writtenData.size());
+        assertEquals(2500, stub.writtenData.get(0).length);
+        assertEquals(4, stub.chunks);
+        assertEquals(0, diskController.getQueueDepth());
+        assertGreaterThanOrEquals(1000, diskController.getBytesPerWrite());
+
+        byte[] contents = new byte[3500];
+        raf.seek(0);
+        raf.readFully(contents);
+        assertEquals(1, contents[0]);
+        assertEquals(1, contents[999]);
+        assertEquals(2, contents[1000]);
+        assertEquals(3, contents[2499]);
+        assertEquals(0, contents[2500]);
+        assertEquals(4, contents[3000]);
+        assertEquals(4, contents[3499]);
+        assertEquals(contents[0], stub.writtenData.get(0)[0]);
+        assertEquals(contents[2499], stub.writtenData.get(0)[2499]);
+    }
+
+    public void testFailedWriteIsReported() throws Exception {
+        raf.close();
+        StubFile stub = new StubFile(raf);
+        addWrite(stub, 0, 99, (byte) 1);
+        assertTrue(stub.finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Range.createRange(0, 99)), stub.failed);
+        assertTrue(stub.written.isEmpty());
+        assertEquals(1, stub.chunks);
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    public void testUnexpectedExceptionFailsRemainingRanges() throws Exception {
+        ErrorCallback oldCallback = ErrorService.getErrorCallback();
+        try {
+            final CountDownLatch reported = new CountDownLatch(1);
+            ErrorService.setErrorCallback(new ErrorCallback() {
+                public void error(Throwable t) {
+                    error(t, null);
+                }
+
+                public void error(Throwable t, String msg) {
+                    if (t instanceof IllegalStateException)
+                        reported.countDown();
+                }
+            });
+            StubFile stub = new StubFile(raf) {
+                @Override
+                public RandomAccessFile getFile() {
+                    throw new IllegalStateException();
+                }
+            };
+            CountDownLatch blocked = blockQueue();
+            addWrite(stub, 0, 99, (byte) 1);
+            addWrite(stub, 200, 299, (byte) 2);
+            blocked.countDown();
+            assertTrue(stub.finished.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(Range.createRange(0, 99), Range.createRange(200, 299)),
+                    stub.failed);
+            assertTrue(stub.written.isEmpty());
+            assertEquals(2, stub.chunks);
+            assertEquals(0, diskController.getQueueDepth());
+            assertTrue(reported.await(10, TimeUnit.SECONDS));
+        } finally {
+            ErrorService.setErrorCallback(oldCallback);
+        }
+    }
+
+    /** Returns a latch that holds up the disk queue until released. */
+    private CountDownLatch blockQueue() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        diskController.addDiskJobWithoutChunk(new Runnable() {
+            public void run() {
+                running.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        return blocked;
+    }
+
+    private void addWrite(WriteBehindFile file, long low, long high, byte value) {
+        byte[] chunk = diskController.getWriteChunk();
+        Arrays.fill(chunk, value);
+        diskController.addWrite(file, Range.createRange(low, high), chunk);
+    }
+
+    private static class StubFile implements WriteBehindFile {
+        private final RandomAccessFile raf;
+
+        private final List<Range> written = new ArrayList<Range>();
+
+        private final List<byte[]> writtenData = new ArrayList<byte[]>();
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private final List<Range> failed = new ArrayList<Range>();
+
+        private volatile int chunks;
+
+        StubFile(RandomAccessFile raf) {
+            this.raf = raf;
+        }
+
+        public RandomAccessFile getFile() {
+            return raf;
+        }
+
+        public void rangeWritten(Range range, ByteBuffer[] data) {
+            written.add(range);
+            byte[] copy = new byte[(int) range.getLength()];
+            ByteBuffer out = ByteBuffer.wrap(copy);
+            for (ByteBuffer buffer : data) {
+                out.put(buffer);
+            }
+            writtenData.add(copy);
+        }
+
+        public void rangeFailed(Range range, IOException e) {
+            failed.add(range);
+        }
+
+        public void chunksFinished(int chunks) {
+            this.chunks = chunks;
+            finished.countDown();
+        }
+    }
+}
@@ -25,5 +25,10 @@ public class DownloadSerialSettingsStub implements DownloadSerializeSettings {
         return saveFile;
     }
     
+    @Override
+    public File getJournalFile() {
+        return new File(saveFile.getPath() + ".journal");
+    }
+    
     
 }
@@ -68,6 +68,7 @@ import com.limegroup.gnutella.altlocs.AltLocManager;
 import com.limegroup.gnutella.altlocs.AlternateLocation;
 import com.limegroup.gnutella.altlocs.AlternateLocationFactory;
 import com.limegroup.gnutella.downloader.serial.DownloadMemento;
+import com.limegroup.gnutella.downloader.serial.GnutellaDownloadMemento;
 import com.limegroup.gnutella.library.CreationTimeCache;
 import com.limegroup.gnutella.library.FileDesc;
 import com.limegroup.gnutella.library.FileDescStub;
@@ -323,6 +324,45 @@ public class ManagedDownloaderTest extends LimeTestCase {
         Thread.sleep(1000); 
     }
     
+    /** Tests that the memento is only rebuilt after the download changed. */
+    public void testMementoIsRebuiltOnlyWhenChanged() throws Exception {
+        IncompleteFileManager ifm = injector.getInstance(IncompleteFileManager.class);
+        RemoteFileDesc rfd = newRFD("some file.txt", FileDescStub.DEFAULT_URN);
+        File incompleteFile = ifm.getFile(rfd);
+        VerifyingFile vf = injector.getInstance(VerifyingFileFactory.class).createVerifyingFile(1024);
+        ifm.addEntry(incompleteFile, vf, true);
+
+        ManagedDownloaderImpl downloader = (ManagedDownloaderImpl)
+            gnutellaDownloaderFactory.createManagedDownloader(new RemoteFileDesc[] { rfd },
+                null, null, null, false);
+        downloader.initialize();
+        DownloadMemento memento = downloader.toMemento();
+        assertSame(memento, downloader.toMemento());
+
+        // written blocks are saved
+        vf.addInterval(Range.createRange(0, 99));
+        DownloadMemento written = downloader.toMemento();
+        assertNotSame(memento, written);
+        assertEquals(1, ((GnutellaDownloadMemento) written).getSavedBlocks().size());
+        assertSame(written, downloader.toMemento());
+
+        // so are attributes
+        downloader.setAttribute("key", "value", true);
+        DownloadMemento attributed = downloader.toMemento();
+        assertNotSame(written, attributed);
+        assertEquals("value", attributed.getAttributes().get("key"));
+
+        // and new sources
+        RemoteFileDesc other = injector.getInstance(RemoteFileDescFactory.class).createRemoteFileDesc(
+                new ConnectableImpl("127.0.0.2", PORT, false), 14l, "some file.txt", 1024, new byte[16],
+                56, 4, true, null, rfd.getUrns(), false, "", -1);
+        downloader.informMesh(other, true);
+        DownloadMemento sourced = downloader.toMemento();
+        assertNotSame(attributed, sourced);
+        assertEquals(2, ((GnutellaDownloadMemento) sourced).getRemoteHosts().size());
+        downloader.stop();
+    }
+
     /** Tests that the progress is not 0% when resume button is hit while
      *  requerying.  This was caused by the call to cleanup() from
      *  tryAllDownloads3() and was reported by Sam Berlin. 
@@ -37,6 +37,7 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.limegroup.gnutella.ActivityCallback;
 import com.limegroup.gnutella.ApplicationServices;
+import com.limegroup.gnutella.ConcurrentRouteTable;
 import com.limegroup.gnutella.ConnectionManager;
 import com.limegroup.gnutella.ConnectionServices;
 import com.limegroup.gnutella.DownloadManager;
@@ -57,7 +58,6 @@ import com.limegroup.gnutella.ReplyHandler;
 import com.limegroup.gnutella.Response;
 import com.limegroup.gnutella.ResponseFactory;
 import com.limegroup.gnutella.ResponseFactoryImpl;
-import com.limegroup.gnutella.RouteTable;
 import com.limegroup.gnutella.SpamServices;
 import com.limegroup.gnutella.Statistics;
 import com.limegroup.gnutella.UDPReplyHandlerCache;
@@ -122,7 +122,7 @@ public class RequeryDownloadTest extends LimeTestCase {
     /** The uploader */
     private TestUploader testUploader;
     /** The TestMessageRouter's queryRouteTable. */
-    private RouteTable routeTable;
+    private ConcurrentRouteTable routeTable;
     
     private Injector injector;
     private ForMeReplyHandler forMeReplyHandler;
@@ -160,7 +160,7 @@ public class RequeryDownloadTest extends LimeTestCase {
         networkManager.setListeningPort(NetworkSettings.PORT.getValue());
         
         messageRouter = (TestMessageRouter)injector.getInstance(MessageRouter.class);
-        routeTable = (RouteTable) PrivilegedAccessor.getValue(messageRouter, "_queryRouteTable");
+        routeTable = (ConcurrentRouteTable) PrivilegedAccessor.getValue(messageRouter, "_queryRouteTable");
         
         forMeReplyHandler = injector.getInstance(ForMeReplyHandler.class);
 
@@ -0,0 +1,179 @@
+package com.limegroup.gnutella.downloader.serial;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+
+import org.limewire.core.settings.DownloadSettings;
+import org.limewire.util.BaseTestCase;
+
+import com.limegroup.gnutella.downloader.DownloadSerialSettingsStub;
+
+public class DownloadJournalTest extends BaseTestCase {
+
+    /** Comfortably more than a compacted journal of the largest test. */
+    private static final long COMPACTED_LIMIT = 2 * 1024 * 1024;
+
+    private File dir;
+
+    private File file;
+
+    private File log;
+
+    public DownloadJournalTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(DownloadJournalTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("downloads", "journal");
+        dir.delete();
+        assertTrue(dir.mkdirs());
+        file = new File(dir, "downloads.journal");
+        log = new File(dir, "downloads.journal.log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cleanFiles(dir, true);
+        DownloadSettings.DOWNLOAD_JOURNAL.revertToDefault();
+    }
+
+    public void testReadsWhatWasWritten() throws Exception {
+        DownloadJournal.open(file).write(mementos("a", "b", "c"));
+        assertNames(DownloadJournal.open(file).read(), "a", "b", "c");
+    }
+
+    public void testOnlyNewMementosAreWritten() throws Exception {
+        List<DownloadMemento> mementos = mementos("a", "b", "c");
+        DownloadJournal journal = DownloadJournal.open(file);
+        journal.write(mementos);
+        long created = log.length();
+
+        // an unchanged list writes nothing
+        journal.write(mementos);
+        assertEquals(created, log.length());
+
+        // one download changes, one goes away and the rest are reordered
+        GnutellaDownloadMementoImpl changed = (GnutellaDownloadMementoImpl) mementos("a").get(0);
+        changed.setContentLength(2);
+        mementos.set(0, changed);
+        mementos.remove(2);
+        mementos.add(0, mementos.remove(1));
+        journal.write(mementos);
+        assertGreaterThan(created, log.length());
+        assertLessThan(created * 2, log.length());
+        List<DownloadMemento> read = DownloadJournal.open(file).read();
+        assertNames(read, "b", "a");
+        assertEquals(2, ((GnutellaDownloadMemento) read.get(1)).getContentLength());
+    }
+
+    public void testReopenedJournalDropsStaleMementos() throws Exception {
+        DownloadJournal.open(file).write(mementos("a", "b"));
+        DownloadJournal journal = DownloadJournal.open(file);
+        assertNames(journal.read(), "a", "b");
+        journal.write(mementos("c"));
+        assertNames(DownloadJournal.open(file).read(), "c");
+    }
+
+    public void testTornWriteKeepsPreviousOrder() throws Exception {
+        List<DownloadMemento> mementos = mementos("a", "b");
+        DownloadJournal journal = DownloadJournal.open(file);
+        journal.write(mementos);
+        mementos.addAll(mementos("c"));
+        journal.write(mementos);
+
+        // the crash happened while the order was being written
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        assertNames(DownloadJournal.open(file).read(), "a", "b");
+    }
+
+    public void testCorruptRecordIsIgnored() throws Exception {
+        List<DownloadMemento> mementos = mementos("a", "b");
+        DownloadJournal journal = DownloadJournal.open(file);
+        journal.write(mementos);
+        mementos.addAll(mementos("c"));
+        journal.write(mementos);
+
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.seek(raf.length() - 1);
+        byte b = raf.readByte();
+        raf.seek(raf.length() - 1);
+        raf.writeByte(b ^ 0xff);
+        raf.close();
+        assertNames(DownloadJournal.open(file).read(), "a", "b");
+    }
+
+    public void testJournalIsCompacted() throws Exception {
+        List<DownloadMemento> mementos = mementos("a", "b");
+        DownloadJournal journal = DownloadJournal.open(file);
+        journal.write(mementos);
+        byte[] payload = new byte[50 * 1024];
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("payload", payload);
+        for (int i = 0; i < 100; i++) {
+            GnutellaDownloadMementoImpl changed = (GnutellaDownloadMementoImpl) mementos("b").get(0);
+            changed.setAttributes(attributes);
+            changed.setContentLength(i);
+            mementos.set(1, changed);
+            journal.write(mementos);
+        }
+        // without compaction the journal would hold every version of b
+        long size = 0;
+        for (File f : dir.listFiles())
+            size += f.length();
+        assertLessThan(COMPACTED_LIMIT, size);
+        List<DownloadMemento> read = DownloadJournal.open(file).read();
+        assertNames(read, "a", "b");
+        assertEquals(99, ((GnutellaDownloadMemento) read.get(1)).getContentLength());
+        assertEquals(payload.length, ((byte[]) read.get(1).getAttributes().get("payload")).length);
+    }
+
+    public void testSerializerUsesJournalWhenEnabled() throws Exception {
+        File save = new File(dir, "downloads.dat");
+        File backup = new File(dir, "downloads.bak");
+        DownloadSerializeSettings settings = new DownloadSerialSettingsStub(backup, save);
+        DownloadSerializer serializer = new DownloadSerializerImpl(settings);
+        DownloadSettings.DOWNLOAD_JOURNAL.setValue(true);
+        assertTrue(serializer.writeToDisk(mementos("a", "b")));
+        assertTrue(serializer.writeToDisk(mementos("b", "c")));
+        assertGreaterThan(0, DownloadJournal.lastModified(settings.getJournalFile()));
+        assertNames(new DownloadSerializerImpl(settings).readFromDisk(), "b", "c");
+
+        // turning the journal off writes the save file and drops the journal
+        DownloadSettings.DOWNLOAD_JOURNAL.setValue(false);
+        assertTrue(serializer.writeToDisk(mementos("c")));
+        assertEquals(0, DownloadJournal.lastModified(settings.getJournalFile()));
+        assertNames(new DownloadSerializerImpl(settings).readFromDisk(), "c");
+    }
+
+    private static List<DownloadMemento> mementos(String... names) {
+        List<DownloadMemento> mementos = new ArrayList<DownloadMemento>();
+        for (String name : names) {
+            GnutellaDownloadMementoImpl memento = new GnutellaDownloadMementoImpl();
+            memento.setDefaultFileName(name);
+            memento.setContentLength(1);
+            mementos.add(memento);
+        }
+        return mementos;
+    }
+
+    private static void assertNames(List<DownloadMemento> mementos, String... names) {
+        List<String> read = new ArrayList<String>();
+        for (DownloadMemento memento : mementos)
+            read.add(memento.getDefaultFileName());
+        assertEquals(Arrays.asList(names), read);
+    }
+}
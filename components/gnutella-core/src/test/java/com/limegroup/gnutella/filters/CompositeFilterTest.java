@@ -0,0 +1,57 @@
+package com.limegroup.gnutella.filters;
+
+import junit.framework.Test;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.limewire.util.BaseTestCase;
+
+import com.limegroup.gnutella.messages.Message;
+
+public class CompositeFilterTest extends BaseTestCase {
+
+    private Mockery context;
+
+    public CompositeFilterTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(CompositeFilterTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        context = new Mockery();
+    }
+
+    public void testShortCircuitsAndSamplesStats() {
+        final Message m = context.mock(Message.class);
+        final SpamFilter unreached = context.mock(SpamFilter.class);
+        context.checking(new Expectations() {{
+            never(unreached).allow(m);
+        }});
+        SpamFilter filter = new CompositeFilter(new SpamFilter[] { new AllowFilter(), new BlockingFilter(), unreached });
+
+        CompositeFilter.FilterStats allowStats = CompositeFilter.getStats(AllowFilter.class);
+        long calls = allowStats.calls.get();
+        long hits = allowStats.hits.get();
+        for(int i = 0; i < CompositeFilter.SAMPLE_INTERVAL * 4; i++)
+            assertFalse(filter.allow(m));
+        assertEquals(calls + 4, allowStats.calls.get());
+        assertEquals(hits, allowStats.hits.get());
+        assertGreaterThanOrEquals(0L, allowStats.nanos.get());
+        context.assertIsSatisfied();
+    }
+
+    private static class BlockingFilter implements SpamFilter {
+        @Override
+        public boolean allow(Message m) {
+            return false;
+        }
+    }
+}
@@ -111,6 +111,48 @@ public class DuplicateFilterTest extends BaseTestCase {
         context.assertIsSatisfied();
     }
 
+    public void testSimilarGUIDsAreRejected() {
+        final byte[] guid = new GUID().bytes();
+        final byte[] similar = guid.clone();
+        similar[3]++;
+        similar[12]++;
+        final byte[] different = guid.clone();
+        different[0]++;
+        different[1]++;
+        different[2]++;
+        context.checking(new Expectations() {{
+            one(pr).getGUID(); will(returnValue(guid));
+            one(pr).getGUID(); will(returnValue(similar));
+            one(pr).getGUID(); will(returnValue(different));
+        }});
+        addDefaultReturnValues();
+
+        assertTrue(filter.allow(pr));
+        assertFalse(filter.allow(pr));
+        // Differs from the first GUID in three bytes
+        assertTrue(filter.allow(pr));
+        context.assertIsSatisfied();
+    }
+
+    public void testSameGUIDRejectedAfterManyMessages() {
+        filter.setLag(10000);
+        final GUID guid = new GUID();
+        context.checking(new Expectations() {{
+            one(qr).getGUID(); will(returnValue(guid.bytes()));
+            for(int i = 0; i < 100; i++) {
+                one(pr).getGUID(); will(returnValue(new GUID().bytes()));
+            }
+            one(qr).getGUID(); will(returnValue(guid.bytes()));
+        }});
+        addDefaultReturnValues();
+
+        assertTrue(filter.allow(qr));
+        for(int i = 0; i < 100; i++)
+            filter.allow(pr);
+        assertFalse(filter.allow(qr));
+        context.assertIsSatisfied();
+    }
+
     // wait for guid filter to be purged
     private void waitForGUIDFilterToBePurged() throws Exception {
         synchronized (filter) {
@@ -0,0 +1,61 @@
+package com.limegroup.gnutella.filters;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+public class FingerprintSetTest extends BaseTestCase {
+
+    public FingerprintSetTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(FingerprintSetTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public void testRemembersFingerprintsWithinWindow() {
+        FingerprintSet set = new FingerprintSet(100);
+        assertTrue(set.add(42, 1000));
+        assertFalse(set.add(42, 1050));
+        assertTrue(set.contains(42, 1100));
+        assertFalse(set.contains(43, 1100));
+        // The second add refreshed the time
+        assertTrue(set.contains(42, 1150));
+        assertFalse(set.contains(42, 1151));
+        assertTrue(set.add(42, 1151));
+    }
+
+    public void testRotationForgetsOldGenerations() {
+        FingerprintSet set = new FingerprintSet(100);
+        for(int i = 0; i < 1000; i++)
+            assertTrue(set.add(i, 1000));
+        assertEquals(1000, set.size());
+        // The fingerprints are kept in the previous generation...
+        set.add(5000, 1100);
+        assertEquals(1001, set.size());
+        assertFalse(set.add(999, 1100));
+        // ...until it is emptied
+        set.add(5001, 1200);
+        assertEquals(3, set.size());
+        for(int i = 0; i < 1000; i += 100)
+            assertFalse(set.contains(i, 1200));
+        // Long pauses empty both generations
+        set.add(5002, 5000);
+        assertEquals(1, set.size());
+        assertFalse(set.contains(5001, 5000));
+    }
+
+    public void testFingerprintsDependOnGUIDAndHops() {
+        long fingerprint = FingerprintSet.fingerprint(1, 2, 3);
+        assertEquals(fingerprint, FingerprintSet.fingerprint(1, 2, 3));
+        assertNotEquals(fingerprint, FingerprintSet.fingerprint(1, 2, 4));
+        assertNotEquals(fingerprint, FingerprintSet.fingerprint(2, 2, 3));
+        assertNotEquals(fingerprint, FingerprintSet.fingerprint(1, 3, 3));
+        assertNotEquals(FingerprintSet.fingerprint(1, 2, 3), FingerprintSet.fingerprint(2, 1, 3));
+    }
+}
@@ -1,5 +1,7 @@
 package com.limegroup.gnutella.filters;
 
+import java.util.Random;
+
 import junit.framework.Test;
 
 import org.limewire.io.IP;
@@ -131,6 +133,51 @@ public class IPListTest extends org.limewire.gnutella.tests.LimeTestCase {
         assertTrue(list.contains(new IP("192.168.1.2")));
     }
     
+    public void testMergesRanges() {
+        IPList list = new IPList();
+        list.add("18.0.0.0/255.255.255.128");
+        list.add("18.0.0.128/255.255.255.128");
+        list.add("18.0.1.*");
+        list.compile();
+        
+        assertTrue(list.contains(new IP("18.0.0.0")));
+        assertTrue(list.contains(new IP("18.0.1.255")));
+        assertFalse(list.contains(new IP("17.255.255.255")));
+        assertFalse(list.contains(new IP("18.0.2.0")));
+        // Ranges are contained if every address is
+        assertTrue(list.contains(new IP("18.0.0.0/255.255.255.0")));
+        assertTrue(list.contains(new IP("18.0.0.0/255.255.254.0")));
+        assertFalse(list.contains(new IP("18.0.0.0/255.255.252.0")));
+        
+        // Adding replaces the compiled ranges
+        list.add("18.0.2.*");
+        list.add("18.0.3.*");
+        assertTrue(list.contains(new IP("18.0.2.1")));
+        assertTrue(list.contains(new IP("18.0.0.0/255.255.252.0")));
+    }
+    
+    public void testContainsNonPrefixMasks() {
+        IPList list = new IPList();
+        list.add("18.0.0.1/255.0.255.255");
+        assertTrue(list.contains(new IP("18.5.0.1")));
+        assertFalse(list.contains(new IP("18.5.0.2")));
+    }
+    
+    public void testContainsAgreesWithTrie() {
+        Random random = new Random(7);
+        IPList list = new IPList();
+        for(int i = 0; i < 5000; i++) {
+            // Ranges within 18.*.*.*, so that many of them overlap
+            int mask = -1 << (16 - random.nextInt(17));
+            list.add(new IP(((18 << 24) | (random.nextInt() & 0xFFFFFF)) & mask, mask));
+        }
+        for(int i = 0; i < 100000; i++) {
+            IP lookup = new IP((18 << 24) | (random.nextInt() & 0xFFFFFF), -1);
+            // minDistanceTo looks in the trie
+            assertEquals(lookup.toString(), list.minDistanceTo(lookup) == 0, list.contains(lookup));
+        }
+    }
+    
     private byte[] bytes(int one, int two, int three, int four) {
         return new byte[] { (byte)one, (byte)two, (byte)three, (byte)four };
     }
@@ -0,0 +1,170 @@
+package com.limegroup.gnutella.library;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Test;
+
+import org.limewire.collection.IntSet;
+import org.limewire.util.BaseTestCase;
+
+public class CompactKeywordIndexTest extends BaseTestCase {
+
+    private CompactKeywordIndex index;
+
+    public CompactKeywordIndexTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(CompactKeywordIndexTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        index = new CompactKeywordIndex();
+    }
+
+    public void testPrefixMatchesInDeltaAndDictionary() throws Exception {
+        index.add(new String[] { "Hello", "World" }, 1);
+        index.add(new String[] { "help", "me" }, 2);
+        assertMatches("hel", 1, 2);
+        assertMatches("hello", 1);
+        assertMatches("world", 1);
+        assertNull(index.getPrefixedBy("helpless", 0, 8, false));
+
+        index.trim();
+        assertEquals(4, index.size());
+        assertGreaterThan(0, index.getDictionaryBytes());
+        assertMatches("hel", 1, 2);
+        assertMatches("hello", 1);
+        assertMatches("m", 2);
+
+        index.add(new String[] { "helium" }, 3);
+        assertMatches("hel", 1, 2, 3);
+        assertMatches("he", 1, 2, 3);
+    }
+
+    public void testOffsetsIntoQuery() throws Exception {
+        index.add(new String[] { "alpha", "beta" }, 7);
+        index.trim();
+        IntSet matches = index.getPrefixedBy("xx beta", 3, 6, false);
+        assertNotNull(matches);
+        assertTrue(matches.contains(7));
+    }
+
+    public void testRemoveMasksDictionaryAndDelta() throws Exception {
+        index.add(new String[] { "song", "one" }, 1);
+        index.add(new String[] { "song", "two" }, 2);
+        index.trim();
+        index.add(new String[] { "song", "three" }, 3);
+
+        index.remove(new String[] { "song", "one" }, 1);
+        index.remove(new String[] { "song", "three" }, 3);
+        assertMatches("song", 2);
+        assertNull(index.getPrefixedBy("one", 0, 3, false));
+        assertNull(index.getPrefixedBy("three", 0, 5, false));
+
+        // a removed index can be used again
+        index.add(new String[] { "other" }, 1);
+        assertMatches("other", 1);
+        assertMatches("song", 2);
+
+        index.trim();
+        assertMatches("other", 1);
+        assertMatches("song", 2);
+        assertNull(index.getPrefixedBy("one", 0, 3, false));
+        assertEquals(3, index.size());
+    }
+
+    public void testClear() throws Exception {
+        index.add(new String[] { "a" }, 1);
+        index.trim();
+        index.add(new String[] { "b" }, 2);
+        index.clear();
+        assertNull(index.getPrefixedBy("a", 0, 1, false));
+        assertNull(index.getPrefixedBy("b", 0, 1, false));
+        assertEquals(0, index.size());
+    }
+
+    public void testMatchesTrieAfterManyMerges() throws Exception {
+        TrieKeywordIndex trie = new TrieKeywordIndex();
+        Random random = new Random(17);
+        String[][] files = new String[20000][];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = randomKeywords(random);
+            trie.add(files[i], i);
+            index.add(files[i], i);
+        }
+        for (int i = 0; i < files.length; i += 3) {
+            trie.remove(files[i], i);
+            index.remove(files[i], i);
+        }
+        for (String prefix : new String[] { "a", "ab", "b", "ca", "\u00e9", "\u00e9t", "z", "q" }) {
+            assertEquals(prefix, toString(trie.getPrefixedBy(prefix, 0, prefix.length(), false)),
+                    toString(index.getPrefixedBy(prefix, 0, prefix.length(), false)));
+        }
+        index.trim();
+        for (String prefix : new String[] { "a", "ab", "b", "ca", "\u00e9", "\u00e9t", "z" }) {
+            assertEquals(prefix, toString(trie.getPrefixedBy(prefix, 0, prefix.length(), false)),
+                    toString(index.getPrefixedBy(prefix, 0, prefix.length(), false)));
+        }
+        assertEquals(trie.size(), index.size());
+    }
+
+    public void testReadsDuringUpdates() throws Exception {
+        index.add(new String[] { "stable" }, 0);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        IntSet matches = index.getPrefixedBy("stable", 0, 6, false);
+                        if (matches == null || !matches.contains(0))
+                            throw new AssertionError("lost stable keyword");
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        reader.start();
+        Random random = new Random(3);
+        for (int i = 1; i < 30000; i++) {
+            index.add(randomKeywords(random), i);
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+
+    private void assertMatches(String prefix, int... expected) {
+        IntSet matches = index.getPrefixedBy(prefix, 0, prefix.length(), false);
+        assertNotNull(prefix, matches);
+        assertEquals(prefix, expected.length, matches.size());
+        for (int i : expected) {
+            assertTrue(prefix + " " + i, matches.contains(i));
+        }
+    }
+
+    private static String[] randomKeywords(Random random) {
+        String[] keywords = new String[1 + random.nextInt(4)];
+        for (int i = 0; i < keywords.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 1 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                int c = random.nextInt(28);
+                sb.append(c == 26 ? '\u00e9' : c == 27 ? 't' : (char) ('a' + c));
+            }
+            keywords[i] = sb.toString();
+        }
+        return keywords;
+    }
+
+    private static String toString(IntSet set) {
+        return set == null ? "null" : set.toString();
+    }
+}
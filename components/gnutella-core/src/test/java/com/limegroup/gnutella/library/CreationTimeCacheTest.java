@@ -17,6 +17,7 @@ import junit.framework.Test;
 
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.gnutella.tests.LimeTestCase;
+import org.limewire.io.RecordStore;
 import org.limewire.util.PrivilegedAccessor;
 import org.limewire.util.TestUtils;
 
@@ -37,6 +38,7 @@ public class CreationTimeCacheTest extends LimeTestCase {
      * File where urns (currently SHA1 urns) get persisted to
      */
     private static final String CREATION_CACHE_FILE = "createtimes.cache";
+    private static final String CREATION_STORE_FILE = "createtimes.log";
     private final String FILE_PATH = "com/limegroup/gnutella/util";
 
 	public CreationTimeCacheTest(String name) {
@@ -104,11 +106,16 @@ public class CreationTimeCacheTest extends LimeTestCase {
         CreationTimeCache ctCache = new CreationTimeCache(libraryStub, gnutellaFileCollectionStub, new MediaTypeAggregatorStub());
         Map map = getUrnToTime(ctCache);
         assertEquals(toSerialize, map);
+        
+        // the serialized file is migrated to the store once
+        assertFalse(new File(_settingsDir, CREATION_CACHE_FILE).exists());
+        ctCache = new CreationTimeCache(libraryStub, gnutellaFileCollectionStub, new MediaTypeAggregatorStub());
+        assertEquals(toSerialize, getUrnToTime(ctCache));
     }
     
     public void testMapCreationNoExistingMap() throws Exception {
         CreationTimeCache creationTimeCache = new CreationTimeCache(libraryStub, gnutellaFileCollectionStub, new MediaTypeAggregatorStub());
-        Map<URN, Long> map = creationTimeCache.createMap();
+        Map<URN, Long> map = getUrnToTime(creationTimeCache);
         assertTrue(map.isEmpty());
     }
 
@@ -359,7 +366,7 @@ public class CreationTimeCacheTest extends LimeTestCase {
         });
 		List<URN> sha1s = new ArrayList<URN>();
 		for(int i=0; i<files.length; i++) {
-			Set<URN> urns = UrnHelper.calculateAndCacheURN(files[i], new UrnCache(ExecutorsHelper.newProcessingQueue("test"), null));            
+			Set<URN> urns = UrnHelper.calculateAndCacheURN(files[i], new UrnCache(ExecutorsHelper.newProcessingQueue("test"), ExecutorsHelper.newFixedSizeThreadPool(2, "test hashing"), null));            
 			cache.addTime(UrnSet.getSha1(urns), files[i].lastModified());
 			sha1s.add(UrnSet.getSha1(urns));
 		}				
@@ -369,13 +376,14 @@ public class CreationTimeCacheTest extends LimeTestCase {
 	private void deleteCacheFile() {
 		File cacheFile = new File(_settingsDir, CREATION_CACHE_FILE);
 		cacheFile.delete();
+		new RecordStore(_settingsDir, "createtimes", 1).clear();
 	}
 
 	/**
-	 * Convenience method for making sure that the serialized file exists.
+	 * Convenience method for making sure that the store exists.
 	 */
 	private boolean cacheExists() {
-		File cacheFile = new File(_settingsDir, CREATION_CACHE_FILE);
+		File cacheFile = new File(_settingsDir, CREATION_STORE_FILE);
 		return cacheFile.exists();
 	}
 
@@ -0,0 +1,134 @@
+package com.limegroup.gnutella.library;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares {@link TrieKeywordIndex} and {@link CompactKeywordIndex} for a
+ * library of generated file names: the heap used by each index, and the
+ * latency of prefix queries with and without a thread adding files at the
+ * same time.
+ * <p>
+ * Usage: <code>KeywordIndexBenchmark [files] [queries] [rounds]</code>
+ */
+public class KeywordIndexBenchmark {
+
+    private static final int VOCABULARY = 50000;
+
+    private final String[] words = new String[VOCABULARY];
+
+    private final String[][] files;
+
+    private final String[] queries;
+
+    public KeywordIndexBenchmark(int numFiles, int numQueries) {
+        Random random = new Random(42);
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 3 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = sb.toString();
+        }
+        files = new String[numFiles][];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new String[4 + random.nextInt(6)];
+            for (int j = 0; j < files[i].length; j++) {
+                files[i][j] = words[zipf(random)];
+            }
+        }
+        queries = new String[numQueries];
+        for (int i = 0; i < queries.length; i++) {
+            String word = words[zipf(random)];
+            queries[i] = word.substring(0, Math.min(word.length(), 2 + random.nextInt(4)));
+        }
+    }
+
+    /** Picks common words more often than rare ones. */
+    private static int zipf(Random random) {
+        return (int) Math.min(VOCABULARY - 1, Math.pow(VOCABULARY, random.nextDouble()) - 1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        KeywordIndexBenchmark benchmark = new KeywordIndexBenchmark(numFiles, numQueries);
+        for (int i = 0; i < rounds; i++) {
+            boolean warmup = i == 0;
+            benchmark.run("trie", new TrieKeywordIndex(), warmup);
+            benchmark.run("compact", new CompactKeywordIndex(), warmup);
+        }
+    }
+
+    private void run(String name, final KeywordIndex index, boolean warmup) throws Exception {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        // leave the last tenth to add while querying
+        final int loaded = files.length - files.length / 10;
+        for (int i = 0; i < loaded; i++) {
+            index.add(files[i], i);
+        }
+        index.trim();
+        long loadNanos = System.nanoTime() - start;
+        long heap = usedHeap() - heapBefore;
+
+        long[] idle = query(index);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread("KeywordIndexBenchmark-writer") {
+            @Override
+            public void run() {
+                for (int i = loaded; i < files.length && !done.get(); i++) {
+                    index.add(files[i], i);
+                }
+            }
+        };
+        writer.start();
+        long[] busy = query(index);
+        done.set(true);
+        writer.join();
+
+        if (warmup) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(name);
+        sb.append(": load ").append(loadNanos / 1000000).append(" ms");
+        sb.append(", heap ").append(heap / 1024).append(" KB");
+        if (index instanceof CompactKeywordIndex) {
+            sb.append(", off-heap ").append(((CompactKeywordIndex) index).getDictionaryBytes() / 1024).append(" KB");
+        }
+        sb.append(", query p50/p99 ").append(percentiles(idle));
+        sb.append(", while adding ").append(percentiles(busy));
+        System.out.println(sb);
+    }
+
+    private long[] query(KeywordIndex index) {
+        long[] latencies = new long[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            String query = index.canonicalCase(queries[i]);
+            long start = System.nanoTime();
+            index.getPrefixedBy(query, 0, query.length(), true);
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private static String percentiles(long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1000 + "/" + sorted[sorted.length * 99 / 100] / 1000 + " us";
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -7,6 +7,7 @@ import org.hamcrest.TypeSafeMatcher;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.limewire.collection.IntSet;
+import org.limewire.core.settings.SharingSettings;
 import org.limewire.lifecycle.Service;
 import org.limewire.lifecycle.ServiceRegistry;
 import org.limewire.listener.EventListener;
@@ -41,6 +42,11 @@ public class SharedFilesKeywordIndexImplTest extends BaseTestCase {
         keywordIndex = new SharedFilesKeywordIndexImpl(library, null, null, null, null, null, sharedFileList, incompleteFileList, null);
     }
     
+    @Override
+    protected void tearDown() throws Exception {
+        SharingSettings.USE_COMPACT_KEYWORD_INDEX.revertToDefault();
+    }
+    
     @SuppressWarnings("unchecked")
     public void testRenamedFilesEvent() throws Exception {
         URN urn = URN.createSHA1Urn("urn:sha1:GLSTHIPQGSSZTS5FJUPAKPZWUGYQYPFB");
@@ -94,6 +100,12 @@ public class SharedFilesKeywordIndexImplTest extends BaseTestCase {
         assertNull(result);
     }
     
+    public void testRenamedFilesEventWithCompactIndex() throws Exception {
+        SharingSettings.USE_COMPACT_KEYWORD_INDEX.setValue(true);
+        keywordIndex = new SharedFilesKeywordIndexImpl(library, null, null, null, null, null, sharedFileList, incompleteFileList, null);
+        testRenamedFilesEvent();
+    }
+    
     private static class GetterMatcher<T> extends TypeSafeMatcher<T> {
         private final AtomicReference<T> ref = new AtomicReference<T>();
         
@@ -2,6 +2,7 @@ package com.limegroup.gnutella.library;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -16,15 +17,23 @@ import junit.framework.Test;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.concurrent.ListeningExecutorService;
 import org.limewire.gnutella.tests.LimeTestCase;
+import org.limewire.gnutella.tests.LimeTestUtils;
+import org.limewire.io.RecordStore;
 import org.limewire.lifecycle.ServiceScheduler;
 import org.limewire.util.AssignParameterAction;
 import org.limewire.util.FileUtils;
+import org.limewire.util.StringUtils;
 import org.limewire.util.TestUtils;
 
+import com.google.inject.Injector;
+
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.UrnSet;
+import com.limegroup.gnutella.hashing.AudioHashingUtils;
 import com.limegroup.gnutella.helpers.UrnHelper;
+import com.limegroup.gnutella.tigertree.HashTreeCache;
 
 
 /**
@@ -36,7 +45,7 @@ public final class UrnCacheTest extends LimeTestCase {
     /**
      * File where urns (currently SHA1 urns) get persisted to
      */
-    private static final String URN_CACHE_FILE = "fileurns.cache";
+    private static final String URN_CACHE_FILE = "fileurns.log";
     private static final String FILE_PATH = "com/limegroup/gnutella/util";
     private static final String AUDIO_PATH = "com/limegroup/gnutella/resources/";
 
@@ -64,7 +73,7 @@ public final class UrnCacheTest extends LimeTestCase {
 	
 	@Override
 	protected void setUp() throws Exception {
-	    urnCache = new UrnCache(ExecutorsHelper.newProcessingQueue("test"), null);
+	    urnCache = new UrnCache(ExecutorsHelper.newProcessingQueue("test"), ExecutorsHelper.newFixedSizeThreadPool(2, "test hashing"), null);
 	}
     
     /**
@@ -89,6 +98,45 @@ public final class UrnCacheTest extends LimeTestCase {
         }
     }
     
+    public void testReloadsPersistedUrns() throws Exception {
+        List<FileAndUrns> faus = getLotsOfFiles();
+        calculateSHA1s(faus);
+        urnCache.persistCache();
+        
+        UrnCache reloaded = new UrnCache(ExecutorsHelper.newProcessingQueue("test"), ExecutorsHelper.newFixedSizeThreadPool(2, "test hashing"), null);
+        for(FileAndUrns fau : faus) {
+            assertEquals(fau.urns, reloaded.getUrns(fau.file));
+        }
+        
+        // removals are persisted too
+        reloaded.removeUrns(faus.get(0).file);
+        reloaded.persistCache();
+        reloaded = new UrnCache(ExecutorsHelper.newProcessingQueue("test"), ExecutorsHelper.newFixedSizeThreadPool(2, "test hashing"), null);
+        assertTrue(reloaded.getUrns(faus.get(0).file).isEmpty());
+        assertEquals(faus.get(1).urns, reloaded.getUrns(faus.get(1).file));
+    }
+    
+    public void testStaleEntriesAreRemovedAfterLoading() throws Exception {
+        File file = new File(_scratchDir, "urncache-stale.txt");
+        write(file, "stale");
+        UrnHelper.calculateAndCacheURN(file, urnCache);
+        urnCache.persistCache();
+        assertTrue(file.delete());
+        
+        ListeningExecutorService queue = ExecutorsHelper.newProcessingQueue("test");
+        UrnCache reloaded = new UrnCache(queue, ExecutorsHelper.newFixedSizeThreadPool(2, "test hashing"), null);
+        // wait for the background scan
+        queue.submit(new Runnable() {
+            public void run() {
+            }
+        }).get();
+        reloaded.persistCache();
+        
+        RecordStore store = new RecordStore(_settingsDir, "fileurns", 1);
+        store.open();
+        assertFalse(store.contains(StringUtils.toUTF8Bytes(file.getAbsolutePath())));
+    }
+    
     public void testPersistsItself() throws Exception {
         Mockery context = new Mockery();
         final ServiceScheduler serviceScheduler = context.mock(ServiceScheduler.class);
@@ -136,37 +184,88 @@ public final class UrnCacheTest extends LimeTestCase {
         }
     }
     
-    public void testSHA1CreatedAndCachedWithExistingNMS1() throws Exception {
+    public void testSHA1UsesUrnsCalculatedWithNMS1() throws Exception {
         assertTrue("cache should not be present", !cacheExists() );
         
-        // create Non-Metadata SHA1s
+        // create Non-Metadata SHA1s, which come with the SHA1s
         List<FileAndUrns> faus = getLotsOfAudioFiles();
         calculateNMS1s(faus);
 
         assertNotNull("should have some file descs", faus);
         assertGreaterThan("should have some file descs", 0, faus.size());
-        assertTrue("cache should still not be present", !cacheExists() );
         urnCache.persistCache();
         assertTrue("cache should now exist", cacheExists());
-        // assert NMS1 exists and SHA1 does not
         for(FileAndUrns fau : faus) {
             Set set = urnCache.getUrns(fau.file);
-            assertNull(UrnSet.getSha1(set));
+            assertNotNull(UrnSet.getSha1(set));
             assertNotNull(UrnSet.getNMS1(set));
             assertEquals("URN set should be same as that in desc", fau.urns, set);
         }
         
-        // calculate SHA1s
+        // the SHA1s are already cached
+        for(FileAndUrns fau : faus) {
+            assertEquals(fau.urns, urnCache.calculateAndCacheSHA1(fau.file).get());
+        }
+    }
+
+    public void testSHA1PassCalculatesAllUrns() throws Exception {
+        List<FileAndUrns> faus = getLotsOfAudioFiles();
+        assertGreaterThan("should have some file descs", 0, faus.size());
         calculateSHA1s(faus);
-        urnCache.persistCache();
-        // assert NMS1 and SHA1 exists
+        
         for(FileAndUrns fau : faus) {
-            Set set = urnCache.getUrns(fau.file);
-            assertNotNull(UrnSet.getSha1(set));
-            assertNotNull(UrnSet.getNMS1(set));
-            assertEquals("URN set should be same as that in desc", fau.urns, set);
+            Set<URN> set = urnCache.getUrns(fau.file);
+            assertEquals(URN.createSHA1Urn(fau.file), UrnSet.getSha1(set));
+            assertEquals(URN.createTTRootFile(fau.file), UrnSet.resolve(set).getTTRoot());
+            assertEquals(AudioHashingUtils.generateNonMetaDataSHA1FromFile(fau.file), UrnSet.getNMS1(set));
         }
     }
+    
+    public void testCalculatedRootIsAddedToHashTreeCache() throws Exception {
+        Injector injector = LimeTestUtils.createInjectorNonEagerly();
+        UrnCache cache = injector.getInstance(UrnCache.class);
+        HashTreeCache treeCache = injector.getInstance(HashTreeCache.class);
+        File file = new File(_scratchDir, "urncache-root.txt");
+        write(file, "root");
+        URN sha1 = URN.createSHA1Urn(file);
+        assertNull(treeCache.getHashTreeRootForSha1(sha1));
+        
+        Set<URN> urns = cache.calculateAndCacheSHA1(file).get();
+        assertEquals(URN.createTTRootFile(file), UrnSet.resolve(urns).getTTRoot());
+        assertEquals(URN.createTTRootFile(file), treeCache.getHashTreeRootForSha1(sha1));
+    }
+    
+    public void testCalculateUrnsAddsMissingUrns() throws Exception {
+        File file = new File(_scratchDir, "urncache-missing.txt");
+        write(file, "missing");
+        URN sha1 = URN.createSHA1Urn(file);
+        // a cached SHA1 without a root
+        urnCache.addUrns(file, new UrnSet(sha1));
+        assertEquals(new UrnSet(sha1), urnCache.calculateAndCacheSHA1(file).get());
+        
+        Set<URN> urns = urnCache.calculateAndCacheUrns(file).get();
+        assertEquals(sha1, UrnSet.getSha1(urns));
+        assertEquals(URN.createTTRootFile(file), UrnSet.resolve(urns).getTTRoot());
+        assertEquals(urns, urnCache.getUrns(file));
+        assertEquals(urns, urnCache.calculateAndCacheUrns(file).get());
+    }
+    
+    public void testChangedSizeIsRehashed() throws Exception {
+        File file = new File(_scratchDir, "urncache.txt");
+        write(file, "first");
+        long modified = file.lastModified();
+        Set<URN> urns = UrnHelper.calculateAndCacheURN(file, urnCache);
+        assertEquals(urns, urnCache.getUrns(file));
+        
+        write(file, "second, and longer");
+        assertTrue(file.setLastModified(modified));
+        assertEquals(modified, file.lastModified());
+        assertTrue(urnCache.getUrns(file).isEmpty());
+        
+        Set<URN> changed = UrnHelper.calculateAndCacheURN(file, urnCache);
+        assertNotEquals(UrnSet.getSha1(urns), UrnSet.getSha1(changed));
+        assertEquals(changed, urnCache.getUrns(file));
+    }
 
     /**
      * Calculates SHA1s for all of the files within the list.
@@ -179,13 +278,11 @@ public final class UrnCacheTest extends LimeTestCase {
 	}
 	
     /**
-     * Calculates NMS1s for all the files within the list.
+     * Calculates NMS1s, along with the other URNs, for all the files within the list.
      */
 	private void calculateNMS1s(List<FileAndUrns> faus) throws Exception {
 	    for(FileAndUrns files : faus) {
-	        URN nms1 = urnCache.calculateAndCacheNMS1(files.file).get();
-            if(nms1 != null)
-                files.addURN(nms1);
+	        files.addAll(urnCache.calculateAndCacheUrns(files.file).get());
 	    }
 	}
 	
@@ -247,6 +344,12 @@ public final class UrnCacheTest extends LimeTestCase {
 	    }
 	}
 
+	private static void write(File file, String contents) throws Exception {
+	    FileOutputStream fos = new FileOutputStream(file, false);
+	    fos.write(contents.getBytes("US-ASCII"));
+	    fos.close();
+	}
+
 	/**
 	 * Convenience method for making sure that the serialized file exists.
 	 */
@@ -1,7 +1,11 @@
 package com.limegroup.gnutella.licenses;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.limewire.gnutella.tests.LimeTestCase;
 import org.limewire.util.CommonUtils;
@@ -30,4 +34,58 @@ public class LicenseCacheTest extends LimeTestCase {
         licenseCache.getLicense("foo", new URI("http://foo.bar/"));
     }
 
+    public void testPersistsLicensesAndData() throws Exception {
+        LicenseCache licenseCache = new LicenseCache();
+        URI uri = WeedLicense.buildURI("cid", "vid");
+        licenseCache.addVerifiedLicense(createLicense(uri, System.currentTimeMillis()));
+        licenseCache.addData("http://foo.bar/", "body");
+        licenseCache.persistCache();
+        
+        licenseCache = new LicenseCache();
+        assertEquals("body", licenseCache.getData("http://foo.bar/"));
+        License license = licenseCache.getLicense("", uri);
+        assertInstanceof(WeedLicense.class, license);
+        assertEquals(uri, license.getLicenseURI());
+        assertNull(licenseCache.getData("random"));
+    }
+    
+    public void testOldLicensesAreRemoved() throws Exception {
+        LicenseCache licenseCache = new LicenseCache();
+        URI uri = WeedLicense.buildURI("cid", "vid");
+        licenseCache.addVerifiedLicense(createLicense(uri, 1));
+        assertNotNull(licenseCache.getLicense("", uri));
+        licenseCache.persistCache();
+        
+        licenseCache = new LicenseCache();
+        assertNull(licenseCache.getLicense("", uri));
+    }
+    
+    public void testMigratesCacheFile() throws Exception {
+        URI uri = WeedLicense.buildURI("cid", "vid");
+        Map<URI, License> licenses = new HashMap<URI, License>();
+        licenses.put(uri, createLicense(uri, System.currentTimeMillis()));
+        Map<Object, Object> data = new HashMap<Object, Object>();
+        data.put("http://foo.bar/", "body");
+        File file = new File(CommonUtils.getUserSettingsDir(), "licenses.cache");
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        out.writeObject(licenses);
+        out.writeObject(data);
+        out.close();
+        
+        LicenseCache licenseCache = new LicenseCache();
+        assertFalse(file.exists());
+        assertEquals("body", licenseCache.getData("http://foo.bar/"));
+        assertNotNull(licenseCache.getLicense("", uri));
+        
+        // the migrated data is in the store
+        licenseCache = new LicenseCache();
+        assertEquals("body", licenseCache.getData("http://foo.bar/"));
+        assertNotNull(licenseCache.getLicense("", uri));
+    }
+    
+    private static License createLicense(URI uri, long lastVerified) {
+        WeedLicense license = new WeedLicense(uri);
+        license.setLastVerifiedTime(lastVerified);
+        return license;
+    }
 }
@@ -1,6 +1,9 @@
 package com.limegroup.gnutella.messages;
 
 import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import org.limewire.gnutella.tests.LimeTestUtils;
 import org.limewire.io.GUID;
@@ -61,4 +64,55 @@ public class MessageTest extends org.limewire.gnutella.tests.LimeTestCase {
         } catch(BadPacketException bpe) {
         }
     }
+    
+    @SuppressWarnings("unchecked")
+    public void testMessageCounterCountsConcurrently() throws Exception {
+        final Message.MessageCounter counter = new Message.MessageCounter(3);
+        final Message ping = pingRequestFactory.createPingRequest((byte)3);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 1000; j++)
+                        counter.countMessage(ping);
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        
+        List<Map<String, Object>> inspected = (List<Map<String, Object>>)counter.inspect();
+        assertEquals(1, inspected.size());
+        Map<String, Object> stats = inspected.get(0);
+        assertEquals(4000L, stats.get("num"));
+        assertEquals(4000L * ping.getLength(), stats.get("size"));
+        assertEquals(3, ((byte[])stats.get("hops")).length);
+        assertEquals(4000L, ((long[])stats.get("totalTttls"))[3]);
+    }
+    
+    @SuppressWarnings("unchecked")
+    public void testMessageCounterKeepsMostRecentHistoryFirst() throws Exception {
+        Message.MessageCounter counter = new Message.MessageCounter(2);
+        for (int ttl = 1; ttl <= 3; ttl++)
+            counter.countMessage(pingRequestFactory.createPingRequest((byte)ttl));
+        
+        Map<String, Object> stats = ((List<Map<String, Object>>)counter.inspect()).get(0);
+        byte[] ttls = (byte[])stats.get("ttls");
+        assertEquals(2, ttls.length);
+        assertEquals(3, ttls[0]);
+        assertEquals(2, ttls[1]);
+        long[] totalTtls = (long[])stats.get("totalTttls");
+        assertEquals(1, totalTtls[1]);
+        assertEquals(1, totalTtls[2]);
+        assertEquals(1, totalTtls[3]);
+    }
 }
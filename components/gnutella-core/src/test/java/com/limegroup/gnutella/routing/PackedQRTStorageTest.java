@@ -0,0 +1,93 @@
+package com.limegroup.gnutella.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+public class PackedQRTStorageTest extends BaseTestCase {
+
+    public PackedQRTStorageTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(PackedQRTStorageTest.class);
+    }
+
+    public void testSetClearAndIterate() throws Exception {
+        PackedQRTStorage storage = new PackedQRTStorage(200);
+        assertEquals(4, storage.getUnitsInUse());
+        assertEquals(4, storage.getUnusedUnits());
+        storage.set(0);
+        storage.set(63);
+        storage.set(64);
+        storage.set(199);
+        storage.set(199);
+        assertEquals(4, storage.cardinality());
+        assertTrue(storage.get(63));
+        assertFalse(storage.get(62));
+        assertFalse(storage.get(200));
+        assertFalse(storage.get(-1));
+
+        storage.clear(63);
+        storage.clear(63);
+        assertEquals(3, storage.cardinality());
+        assertEquals(1, storage.getUnusedUnits());
+        assertEquals(3, storage.numUnitsWithLoad(1));
+
+        List<Integer> set = new ArrayList<Integer>();
+        for (int i : storage)
+            set.add(i);
+        assertEquals(Arrays.asList(0, 64, 199), set);
+        assertEquals(1, storage.nextClearBit(0));
+        assertEquals(200, storage.nextClearBit(199));
+        assertEquals(-1, storage.nextSetBit(200));
+    }
+
+    public void testOrXorAndEquals() throws Exception {
+        PackedQRTStorage a = new PackedQRTStorage(128);
+        PackedQRTStorage b = new PackedQRTStorage(128);
+        a.set(1);
+        a.set(100);
+        b.set(100);
+        b.set(127);
+
+        PackedQRTStorage or = a.clone();
+        or.or(b);
+        assertEquals(3, or.cardinality());
+
+        PackedQRTStorage xor = a.clone();
+        xor.xor(b);
+        assertEquals(2, xor.cardinality());
+        assertTrue(xor.get(1));
+        assertTrue(xor.get(127));
+        assertFalse(xor.get(100));
+        assertEquals(2, a.cardinality());
+
+        SparseSetStorage sparse = new SparseSetStorage(128);
+        sparse.set(1);
+        sparse.set(127);
+        assertEquals(xor, sparse);
+        assertEquals(sparse, xor);
+        xor.xor(sparse);
+        assertEquals(0, xor.cardinality());
+    }
+
+    public void testResizeMatchesBitSetStorage() throws Exception {
+        PackedQRTStorage packed = new PackedQRTStorage(1000);
+        BitSetQRTTableStorage bitSet = new BitSetQRTTableStorage(1000);
+        for (int i : new int[] { 0, 1, 2, 10, 500, 501, 998, 999 }) {
+            packed.set(i);
+            bitSet.set(i);
+        }
+        for (int size : new int[] { 10, 333, 1000, 4096 }) {
+            QRTTableStorage resized = packed.resize(size);
+            assertEquals(size, resized.maxSize());
+            assertEquals(bitSet.resize(size), resized);
+        }
+    }
+}
@@ -2,15 +2,15 @@ package com.limegroup.gnutella.routing;
 
 
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
-import java.util.zip.Inflater;
 
 import junit.framework.Test;
 
 import org.limewire.gnutella.tests.LimeTestUtils;
-import org.limewire.io.IOUtils;
 import org.limewire.util.PrivilegedAccessor;
 
 import com.google.inject.Injector;
@@ -56,53 +56,47 @@ public class QueryRouteTableTest extends org.limewire.gnutella.tests.LimeTestCas
     }
 
 
-    /** If it can't get anything, will return 0.
-     */ 
-    private void setUncompressor(QueryRouteTable source, Inflater inflater) throws Exception {
-            PrivilegedAccessor.setValue(source, "uncompressor", inflater);
-    }
-
-    private byte[] invokeUncompress(QueryRouteTable source, byte[] chunk) throws Exception {
-        byte[] retBytes = new byte[0];
-            retBytes = 
-            (byte[]) PrivilegedAccessor.invokeMethod(source, "uncompress", chunk);
-        return retBytes;
-    }
-    
     private int entries(QueryRouteTable tbl) throws Exception{
         return getBitTable(tbl).cardinality();
     }
 
     public void testCompressionAndUncompress() throws Exception {
-        //0. compress/uncompress.  First we make a huge array with lots of
-        //random bytes but also long strings of zeroes.  This means that
+        //0. compress/uncompress.  First we make a big table with lots of
+        //random entries but also long runs of empty slots.  This means that
         //compression will work, but not too well.  Then we take the compressed
-        //value and dice it up randomly.  It's critical to make sure that
-        //decompress works incrementally without blocking.
-        QueryRouteTable dummy=new QueryRouteTable();
-        setUncompressor(dummy, new Inflater());
-        byte[] data=new byte[10000];
+        //patch and dice it up randomly.  It's critical to make sure that
+        //patches are inflated incrementally without blocking.
+        QueryRouteTable qrt=new QueryRouteTable(20000);
         Random rand=new Random();
-        rand.nextBytes(data);
-        for (int i=100; i<7000; i++) {
-            data[i]=(byte)0;
-        }
-        byte[] dataCompressed= IOUtils.deflate(data);
-        assertLessThan(data.length, dataCompressed.length);
-    
+        for (int i=0; i<getBitTableLength(qrt); i++)
+            if ((i<200 || i>14000) && rand.nextBoolean())
+                getBitTable(qrt).set(i);
+        
         ByteArrayOutputStream baos=new ByteArrayOutputStream();
-        for (int i=0; i<dataCompressed.length; ) {
-            int length=Math.min(rand.nextInt(100), dataCompressed.length-i);
-            byte[] chunk=new byte[length];
-            System.arraycopy(dataCompressed, i, chunk, 0, length);
-            byte[] chunkRead=invokeUncompress(dummy, chunk);
-            baos.write(chunkRead);
-            i+=length;
+        byte bits=0;
+        for (RouteTableMessage m : qrt.encode(null)) {
+            if (m instanceof PatchTableMessage) {
+                PatchTableMessage patch=(PatchTableMessage)m;
+                assertEquals(PatchTableMessage.COMPRESSOR_DEFLATE, patch.getCompressor());
+                baos.write(patch.getData());
+                bits=patch.getEntryBits();
+            }
         }
-        baos.flush();
-        assertEquals("Compress/uncompress loop failed", data, baos.toByteArray());
-
-        setUncompressor(dummy, null);
+        byte[] dataCompressed=baos.toByteArray();
+        
+        List<Integer> starts=new ArrayList<Integer>();
+        for (int i=0; i<dataCompressed.length; i+=1+rand.nextInt(100))
+            starts.add(i);
+        starts.add(dataCompressed.length);
+        QueryRouteTable qrt2=new QueryRouteTable(20000);
+        short chunks=(short)(starts.size()-1);
+        for (short i=0; i<chunks; i++) {
+            qrt2.patch(new PatchTableMessage((short)(i+1), chunks,
+                    PatchTableMessage.COMPRESSOR_DEFLATE, bits,
+                    dataCompressed, starts.get(i), starts.get(i+1)));
+        }
+        assertEquals("Compress/uncompress loop failed", qrt, qrt2);
+        assertNull(PrivilegedAccessor.getValue(qrt2, "uncompressor"));
     }
     
     public void testHalveAndUnhalve() throws Exception {
@@ -147,6 +141,29 @@ public class QueryRouteTableTest extends org.limewire.gnutella.tests.LimeTestCas
                 queryRequestFactory.createQuery(UrnHelper.UNIQUE_SHA1)));
     }
     
+    public void testKeywordHashesAcrossTables() throws Exception {
+        QueryRouteTable small=new QueryRouteTable(1000);
+        small.add("good book");
+        QueryRouteTable big=new QueryRouteTable(65536);
+        big.add("good bad");
+        QueryRouteTable other=new QueryRouteTable(65536);
+        other.add("good book");
+
+        QueryKeywordHashes hashes=new QueryKeywordHashes(
+                queryRequestFactory.createQuery("good book", (byte)3));
+        assertTrue(small.contains(hashes));
+        assertFalse(big.contains(hashes));
+        assertTrue(other.contains(hashes));
+        assertTrue(small.contains(hashes));
+
+        hashes=new QueryKeywordHashes(
+                queryRequestFactory.createQuery(UrnHelper.UNIQUE_SHA1));
+        assertFalse(big.contains(hashes));
+        big.addIndivisible(UrnHelper.UNIQUE_SHA1.toString());
+        assertTrue(big.contains(hashes));
+        assertFalse(small.contains(hashes));
+    }
+    
     public void testAddAll() throws Exception {
         // set up initial qrt.
         QueryRouteTable qrt = new QueryRouteTable(1000);
@@ -41,5 +41,9 @@ public class LimeRUDPSettingsTest extends LimeTestCase {
         assertEquals(true, settings.isSkipAcksEnabled()); // tests the default setting.
         DownloadSettings.SKIP_ACKS.setValue(false);
         assertEquals(false, settings.isSkipAcksEnabled());
+        
+        assertEquals(true, settings.isSelectiveAckEnabled()); // tests the default setting.
+        DownloadSettings.SELECTIVE_ACKS.setValue(false);
+        assertEquals(false, settings.isSelectiveAckEnabled());
     }
 }
@@ -26,6 +26,11 @@ public class StubRUDPMessageFactory implements RUDPMessageFactory {
         return new StubAckMessage();
     }
 
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber,
+            long windowStart, int windowSpace, int selectiveAcks) {
+        return new StubAckMessage();
+    }
+
     public DataMessage createDataMessage(byte connectionID,
             long sequenceNumber, ByteBuffer chunk) {
         return new StubDataMessage();
@@ -1,12 +1,18 @@
 package com.limegroup.gnutella.search;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Test;
 
 import org.limewire.gnutella.tests.LimeTestCase;
 import org.limewire.gnutella.tests.LimeTestUtils;
+import org.limewire.inspection.Inspectable;
+import org.limewire.io.GUID;
 import org.limewire.util.PrivilegedAccessor;
 
 import com.google.inject.Injector;
@@ -53,7 +59,7 @@ public class QueryDispatcherTest extends LimeTestCase {
     public void testRemoveReplyHandler() throws Exception {
         QueryDispatcher qd = queryDispatcher;
         
-        Map queries = (Map)PrivilegedAccessor.getValue(qd, "QUERIES");
+        Map<?, ?> queries = (Map<?, ?>)PrivilegedAccessor.getValue(qd, "QUERIES");
 
         assertEquals("should not be any queries", 0, queries.size());
 
@@ -111,7 +117,7 @@ public class QueryDispatcherTest extends LimeTestCase {
     public void testRemoveStoppedQuery() throws Exception {
         QueryDispatcher qd = queryDispatcher;
         
-        Map queries = (Map)PrivilegedAccessor.getValue(qd, "QUERIES");
+        Map<?, ?> queries = (Map<?, ?>)PrivilegedAccessor.getValue(qd, "QUERIES");
         
         QueryRequest qr = queryRequestFactory.createQuery("test");
         ReplyHandler rh = new TestReplyHandler();
@@ -134,12 +140,83 @@ public class QueryDispatcherTest extends LimeTestCase {
         
         assertEquals("there should now be only 1 query", 1, queries.size());
         //now make sure the right query got deleted
-        Iterator iter = queries.values().iterator();
+        Iterator<?> iter = queries.values().iterator();
         assertEquals("the wrong query got removed", 
                      qhand2.getGUID(),
                      ((QueryHandler)iter.next()).getGUID());
     }
 
+    /**
+     * Tests that a query is only woken when its handler wants to send the
+     * next query.
+     */
+    public void testOnlyDueQueriesAreWoken() throws Exception {
+        AtomicInteger waitingSends = new AtomicInteger();
+        AtomicInteger dueSends = new AtomicInteger();
+        queryDispatcher.addQuery(createHandler(
+                System.currentTimeMillis() + 5000, waitingSends));
+        queryDispatcher.addQuery(createHandler(0, dueSends));
+        Thread.sleep(1500);
+        
+        // one query is sent when a query is added
+        assertEquals(1, waitingSends.get());
+        assertGreaterThan(5, dueSends.get());
+        
+        Map<?, ?> stats = (Map<?, ?>)((Inspectable)PrivilegedAccessor.getValue(queryDispatcher,
+                "statsInspectable")).inspect();
+        assertEquals(2L, stats.get("added"));
+        assertGreaterThan(5L, ((Long)stats.get("woken")).longValue());
+    }
+    
+    /**
+     * Tests that a query is removed as soon as it is told that it has
+     * enough results.
+     */
+    public void testQueryWithEnoughResultsIsRemoved() throws Exception {
+        Map<?, ?> queries = (Map<?, ?>)PrivilegedAccessor.getValue(queryDispatcher, "QUERIES");
+        final AtomicInteger results = new AtomicInteger();
+        QueryRequest qr = queryRequestFactory.createQuery("test");
+        QueryHandler handler = queryHandlerFactory.createHandlerForNewLeaf(qr,
+                new TestReplyHandler(), new ResultCounter() {
+                    public int getNumResults() {
+                        return results.get();
+                    }
+                });
+        queryDispatcher.addQuery(handler);
+        queryDispatcher.updateResultsForQuery(handler.getGUID());
+        assertEquals(1, queries.size());
+        
+        results.set(1000);
+        queryDispatcher.updateResultsForQuery(handler.getGUID());
+        assertEquals(0, queries.size());
+    }
+    
+    private QueryHandler createHandler(final long nextQueryTime, final AtomicInteger sends) {
+        final GUID guid = new GUID();
+        final ReplyHandler replyHandler = new TestReplyHandler();
+        return (QueryHandler)Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { QueryHandler.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if(name.equals("sendQuery"))
+                    sends.incrementAndGet();
+                else if(name.equals("getNextQueryTime"))
+                    return nextQueryTime;
+                else if(name.equals("getGUID"))
+                    return guid;
+                else if(name.equals("hasEnoughResults"))
+                    return false;
+                else if(name.equals("getReplyHandler"))
+                    return replyHandler;
+                else if(name.equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                else if(name.equals("equals"))
+                    return proxy == args[0];
+                return null;
+            }
+        });
+    }
+
     private static final class TestReplyHandler extends ReplyHandlerStub {
         
         @Override
@@ -13,6 +13,7 @@ import org.limewire.gnutella.tests.LimeTestUtils;
 import org.limewire.io.ConnectableImpl;
 import org.limewire.io.GUID;
 import org.limewire.util.Base32;
+import org.limewire.util.CommonUtils;
 import org.limewire.util.TestUtils;
 
 import com.google.inject.Injector;
@@ -89,7 +90,8 @@ public class RatingTableTest extends LimeTestCase {
         // approx size, client GUID
         assertEquals(60, table.size());
         // Get the least-recently-used token
-        Token t = table.getLeastRecentlyUsed();
+        long t = table.getLeastRecentlyUsed();
+        assertNotEquals(0, t);
         // Save and load the ratings
         table.stop();
         table.start();
@@ -99,6 +101,40 @@ public class RatingTableTest extends LimeTestCase {
         assertEquals(t, table.getLeastRecentlyUsed());
     }
 
+    public void testRatingsOfReplyMatchSingleRatings() throws Exception {
+        RatingTable table = manager.getRatingTable();
+        RemoteFileDesc spam = createRFD(addr, port, name, size);
+        manager.handleUserMarkedSpam(new RemoteFileDesc[]{spam});
+        RemoteFileDesc[] reply = new RemoteFileDesc[] {
+                createRFD(addr, port, "other.txt", size),
+                createRFD("2.2.2.2", port, "third.mp3", 54321)
+        };
+        float[] ratings = manager.calculateSpamRatings(reply);
+        assertEquals(2, ratings.length);
+        assertGreaterThan(0f, ratings[0]);
+        assertEquals(0f, ratings[1]);
+        for(int i = 0; i < reply.length; i++) {
+            assertEquals(ratings[i], reply[i].getSpamRating());
+            assertEquals(ratings[i], table.getRating(reply[i]));
+        }
+    }
+
+    public void testSavesInBinaryFormat() throws Exception {
+        RatingTable table = manager.getRatingTable();
+        RemoteFileDesc rfd = createRFD(addr, port, name, size);
+        manager.handleUserMarkedSpam(new RemoteFileDesc[]{rfd});
+        float rating = table.getRating(rfd);
+        table.stop();
+        File spamDat = new File(CommonUtils.getUserSettingsDir(), "spam.dat");
+        // Six tokens of 13 bytes and a header of 12 bytes
+        assertEquals(12 + 6 * 13, spamDat.length());
+        table.clear();
+        assertEquals(0, table.size());
+        table.load(spamDat);
+        assertEquals(6, table.size());
+        assertEquals(rating, table.getRating(rfd));
+    }
+
     public void testInspection() throws Exception {
         RatingTable table = manager.getRatingTable();
         // Create some tokens with non-default ratings
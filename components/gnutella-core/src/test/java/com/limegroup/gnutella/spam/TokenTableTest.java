@@ -0,0 +1,130 @@
+package com.limegroup.gnutella.spam;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+
+public class TokenTableTest extends BaseTestCase {
+
+    public TokenTableTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(TokenTableTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public void testPutUpdateAndRemove() {
+        TokenTable table = new TokenTable(100);
+        long key = new KeywordToken("foo").getKey();
+        assertEquals(0f, table.get(key, table.tick()));
+
+        table.put(key, Token.KEYWORD, 0.5f);
+        assertEquals(1, table.size());
+        assertEquals(0.5f, table.get(key, table.tick()));
+        assertFalse(table.putIfAbsent(key, Token.KEYWORD, 1f));
+        assertEquals(0.5f, table.peek(key));
+
+        assertEquals(0.75f, table.update(key, Token.KEYWORD, 0.5f, 1f));
+        assertEquals(0f, table.update(key, Token.KEYWORD, 1f, 0f));
+        assertEquals(0, table.size());
+        assertEquals(0f, table.peek(key));
+
+        assertTrue(table.putIfAbsent(key, Token.KEYWORD, 1f));
+        assertTrue(table.remove(key));
+        assertFalse(table.remove(key));
+        assertEquals(0, table.size());
+    }
+
+    public void testKeysDependOnType() {
+        assertEquals(new KeywordToken("foo").getKey(), new KeywordToken("foo").getKey());
+        assertNotEquals(new KeywordToken("foo").getKey(), new KeywordToken("bar").getKey());
+        assertNotEquals(new KeywordToken("foo").getKey(), new AddressToken("foo").getKey());
+        assertNotEquals(new SizeToken(1000).getKey(), new ApproximateSizeToken(1000).getKey());
+    }
+
+    public void testGrowsAndDiscardsLeastRecentlyUsed() {
+        TokenTable table = new TokenTable(1000);
+        for(int i = 0; i < 1000; i++)
+            table.put(new SizeToken(i).getKey(), Token.SIZE, 1f);
+        assertGreaterThan(900, table.size());
+        assertLessThanOrEquals(1000, table.size());
+        // Use the first half, then add more tokens
+        for(int i = 0; i < 500; i++)
+            table.get(new SizeToken(i).getKey(), table.tick());
+        for(int i = 1000; i < 1500; i++)
+            table.put(new SizeToken(i).getKey(), Token.SIZE, 1f);
+        assertLessThanOrEquals(1008, table.size());
+
+        int used = 0, unused = 0;
+        for(int i = 0; i < 500; i++) {
+            if(table.peek(new SizeToken(i).getKey()) > 0)
+                used++;
+            if(table.peek(new SizeToken(i + 500).getKey()) > 0)
+                unused++;
+        }
+        assertGreaterThan(400, used);
+        assertLessThan(100, unused);
+    }
+
+    public void testSnapshotIsLeastRecentlyUsedFirst() {
+        TokenTable table = new TokenTable(100);
+        for(int i = 0; i < 10; i++)
+            table.put(new SizeToken(i).getKey(), Token.SIZE, 0.1f * (i + 1));
+        table.get(new SizeToken(0).getKey(), table.tick());
+
+        TokenTable.Snapshot snapshot = table.snapshot();
+        assertEquals(10, snapshot.size());
+        assertEquals(new SizeToken(1).getKey(), snapshot.keys[0]);
+        assertEquals(Token.SIZE, snapshot.types[0]);
+        assertEquals(0.2f, snapshot.ratings[0]);
+        assertEquals(new SizeToken(0).getKey(), snapshot.keys[9]);
+    }
+
+    public void testConcurrentLookupsSeeOnlyTheirOwnRatings() throws Exception {
+        final TokenTable table = new TokenTable(5000);
+        final int tokens = 2000;
+        final AtomicInteger wrong = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        for(int t = 0; t < 2; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    // The rating of token i is always i / tokens or 0
+                    for(int round = 0; round < 20; round++) {
+                        for(int i = 1; i < tokens; i++) {
+                            long key = new SizeToken(i).getKey();
+                            if((i + round) % 3 == 0)
+                                table.remove(key);
+                            else
+                                table.put(key, Token.SIZE, i / (float)tokens);
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+            new Thread() {
+                @Override
+                public void run() {
+                    for(int round = 0; round < 20; round++) {
+                        for(int i = 1; i < tokens; i++) {
+                            float rating = table.get(new SizeToken(i).getKey(), table.tick());
+                            if(rating != 0f && rating != i / (float)tokens)
+                                wrong.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(0, wrong.get());
+    }
+}
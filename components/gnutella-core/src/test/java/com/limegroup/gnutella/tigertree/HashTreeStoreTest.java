@@ -0,0 +1,203 @@
+package com.limegroup.gnutella.tigertree;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+
+import org.limewire.gnutella.tests.LimeTestUtils;
+import org.limewire.util.BaseTestCase;
+
+import com.limegroup.gnutella.URN;
+
+public class HashTreeStoreTest extends BaseTestCase {
+
+    private HashTreeFactoryImpl tigerTreeFactory;
+
+    private File file;
+
+    private HashTreeStore store;
+
+    public HashTreeStoreTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(HashTreeStoreTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        tigerTreeFactory = (HashTreeFactoryImpl) LimeTestUtils.createInjectorNonEagerly()
+                .getInstance(HashTreeFactory.class);
+        file = File.createTempFile("ttdata", "store");
+        store = new HashTreeStore(file);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    public void testReadsWhatWasPut() throws Exception {
+        HashTree tree = createTree(1, 300 * 1024);
+        URN sha1 = sha1(1);
+        assertTrue(store.put(sha1, tree));
+        assertEquals(tree.getTreeRootUrn(), store.getRoot(sha1));
+        assertSameTree(tree, store.get(sha1));
+
+        // a new store reads the tree from the file
+        reopen();
+        assertEquals(1, store.size());
+        assertEquals(tree.getTreeRootUrn(), store.getRoot(sha1));
+        assertSameTree(tree, store.get(sha1));
+    }
+
+    public void testRemovalIsKept() throws Exception {
+        assertTrue(store.put(sha1(1), createTree(1, 10000)));
+        assertTrue(store.put(sha1(2), createTree(2, 10000)));
+        assertTrue(store.remove(sha1(1)));
+        assertFalse(store.remove(sha1(1)));
+        assertNull(store.get(sha1(1)));
+
+        reopen();
+        assertFalse(store.contains(sha1(1)));
+        assertTrue(store.contains(sha1(2)));
+        assertNull(store.getRoot(sha1(1)));
+        assertNotNull(store.get(sha1(2)));
+    }
+
+    public void testClosedStoreOnlyForgets() throws Exception {
+        assertTrue(store.put(sha1(1), createTree(1, 10000)));
+        store.close();
+        assertTrue(store.remove(sha1(1)));
+        assertFalse(store.contains(sha1(1)));
+        assertFalse(store.put(sha1(2), createTree(2, 10000)));
+
+        // the removal was not written
+        reopen();
+        assertTrue(store.contains(sha1(1)));
+    }
+
+    public void testTornRecordIsCutOff() throws Exception {
+        HashTree tree = createTree(1, 10000);
+        assertTrue(store.put(sha1(1), tree));
+        long written = file.length();
+        assertTrue(store.put(sha1(2), createTree(2, 10000)));
+        store.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+        reopen();
+        assertEquals(1, store.size());
+        assertEquals(written, file.length());
+        assertSameTree(tree, store.get(sha1(1)));
+
+        // the next tree is written where the torn one was
+        assertTrue(store.put(sha1(2), createTree(2, 10000)));
+        reopen();
+        assertEquals(2, store.size());
+        assertNotNull(store.get(sha1(2)));
+    }
+
+    public void testCorruptTreeIsDropped() throws Exception {
+        assertTrue(store.put(sha1(1), createTree(1, 10000)));
+        store.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 1);
+        byte b = raf.readByte();
+        raf.seek(raf.length() - 1);
+        raf.writeByte(b ^ 0xff);
+        raf.close();
+        reopen();
+        // the root is known until the tree is read
+        assertNotNull(store.getRoot(sha1(1)));
+        assertNull(store.get(sha1(1)));
+        assertNull(store.getRoot(sha1(1)));
+    }
+
+    public void testNotAStoreIsReplaced() throws Exception {
+        store.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeBytes("not a store");
+        raf.close();
+        reopen();
+        assertEquals(0, store.size());
+        assertTrue(store.put(sha1(1), createTree(1, 10000)));
+        reopen();
+        assertEquals(1, store.size());
+    }
+
+    public void testStoreIsCompacted() throws Exception {
+        HashTree kept = createTree(1, 10000);
+        assertTrue(store.put(sha1(1), kept));
+        HashTree replaced = createTree(2, 1024 * 1024);
+        while (file.length() < 3 * 1024 * 1024)
+            assertTrue(store.put(sha1(2), replaced));
+        long before = file.length();
+
+        store.compactIfNeeded();
+        assertLessThan(before / 2, file.length());
+        assertSameTree(kept, store.get(sha1(1)));
+        reopen();
+        assertEquals(2, store.size());
+        assertSameTree(kept, store.get(sha1(1)));
+        assertSameTree(replaced, store.get(sha1(2)));
+
+        // there is nothing more to compact
+        long compacted = file.length();
+        store.compactIfNeeded();
+        assertEquals(compacted, file.length());
+    }
+
+    public void testCompactedFileReplacesMissingStore() throws Exception {
+        HashTree tree = createTree(1, 10000);
+        assertTrue(store.put(sha1(1), tree));
+        store.close();
+
+        // the crash happened after the old file was gone, before the
+        // compacted one replaced it
+        File tmp = new File(file.getPath() + ".tmp");
+        assertTrue(file.renameTo(tmp));
+        reopen();
+        assertTrue(file.exists());
+        assertFalse(tmp.exists());
+        assertSameTree(tree, store.get(sha1(1)));
+    }
+
+    private void reopen() {
+        store.close();
+        store = new HashTreeStore(file);
+    }
+
+    private HashTree createTree(int seed, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return tigerTreeFactory.createHashTree(size, new ByteArrayInputStream(data), sha1(seed));
+    }
+
+    private static URN sha1(int seed) throws Exception {
+        byte[] hash = new byte[20];
+        new Random(seed).nextBytes(hash);
+        return URN.createSHA1UrnFromBytes(hash);
+    }
+
+    private static void assertSameTree(HashTree expected, HashTree actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getTreeRootUrn(), actual.getTreeRootUrn());
+        assertEquals(expected.getFileSize(), actual.getFileSize());
+        assertEquals(expected.getDepth(), actual.getDepth());
+        assertEquals(expected.getNodeSize(), actual.getNodeSize());
+        List<byte[]> nodes = expected.getNodes();
+        assertEquals(nodes.size(), actual.getNodes().size());
+        for (int i = 0; i < nodes.size(); i++)
+            assertEquals(nodes.get(i), actual.getNodes().get(i));
+    }
+}
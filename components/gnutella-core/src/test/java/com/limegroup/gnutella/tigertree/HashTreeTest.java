@@ -8,6 +8,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -202,6 +203,13 @@ public class HashTreeTest extends BaseTestCase {
         raf.seek(4*chunkSize);
         raf.read(chunk);
         assertFalse(hashTree.isCorrupt(Range.createRange(4*chunkSize,5*chunkSize-1),chunk));
+        
+        // and can be verified from buffers split anywhere
+        ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.wrap(chunk, 0, 1000).slice(),
+                ByteBuffer.wrap(chunk, 1000, chunkSize - 1000).slice() };
+        assertFalse(hashTree.isCorrupt(Range.createRange(4*chunkSize,5*chunkSize-1),buffers));
+        chunk[7]++;
+        assertTrue(hashTree.isCorrupt(Range.createRange(4*chunkSize,5*chunkSize-1),buffers));
 
         raf.close();
         
@@ -22,10 +22,10 @@ import com.limegroup.gnutella.handshaking.HandshakeResponderFactory;
 import com.limegroup.gnutella.handshaking.HeadersFactory;
 import com.limegroup.gnutella.messages.MessageFactory;
 import com.limegroup.gnutella.messages.QueryReplyFactory;
-import com.limegroup.gnutella.messages.QueryRequest;
 import com.limegroup.gnutella.messages.QueryRequestFactory;
 import com.limegroup.gnutella.messages.vendor.CapabilitiesVMFactory;
 import com.limegroup.gnutella.messages.vendor.MessagesSupportedVendorMessage;
+import com.limegroup.gnutella.routing.QueryKeywordHashes;
 import com.limegroup.gnutella.routing.QueryRouteTable;
 import com.limegroup.gnutella.search.SearchResultHandler;
 import com.limegroup.gnutella.simpp.SimppManager;
@@ -67,8 +67,8 @@ public class NewConnection extends TestConnection {
     }
 
     @Override
-    public boolean hitsQueryRouteTable(QueryRequest query) {
-        return QRT.contains(query);
+    public boolean hitsQueryRouteTable(QueryKeywordHashes hashes) {
+        return QRT.contains(hashes);
     }
 
     @Override
@@ -136,7 +136,7 @@ public abstract class BasicHttpAcceptor implements ConnectionAcceptor, Service {
         serviceHandler.setEventListener(connectionListener);
         serviceHandler.setHandlerResolver(this.registry);
 
-        this.reactor = new DefaultDispatchedIOReactor(params, NIODispatcher.instance().getScheduledExecutorService());
+        this.reactor = new DefaultDispatchedIOReactor(params);
         IOEventDispatch ioEventDispatch = new DefaultServerIOEventDispatch(
                 serviceHandler, params);
         try {
@@ -266,6 +266,8 @@ public abstract class BasicHttpAcceptor implements ConnectionAcceptor, Service {
         
         final AtomicBoolean inited = new AtomicBoolean(false);
         try {
+            // the reactor has no channel of its own, its sessions run on
+            // the event loops of their sockets
             Future<?> result = NIODispatcher.instance().getScheduledExecutorService().submit(new Runnable() {
                 public void run() {
                     initializeReactor();
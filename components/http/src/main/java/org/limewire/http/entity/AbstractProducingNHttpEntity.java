@@ -8,6 +8,7 @@ import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.nio.ContentEncoder;
 import org.apache.http.nio.IOControl;
 import org.apache.http.nio.entity.ProducingNHttpEntity;
+import org.limewire.http.reactor.HttpIOSession;
 import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.observer.Shutdownable;
 import org.limewire.nio.timeout.StalledUploadWatchdog;
@@ -26,6 +27,9 @@ public abstract class AbstractProducingNHttpEntity extends AbstractHttpEntity im
     
     private boolean initialized = false;
     
+    /** The connection the content is produced for, once it is known. */
+    private IOControl ioctrl;
+    
     /** shutdownable to shut off in case of a timeout */
     private final Shutdownable timeoutable = new Shutdownable() {
         public void shutdown() {
@@ -35,7 +39,9 @@ public abstract class AbstractProducingNHttpEntity extends AbstractHttpEntity im
 
     protected void activateTimeout() {
         if (this.watchdog == null) {
-            this.watchdog = new StalledUploadWatchdog(timeout, NIODispatcher.instance()
+            HttpIOSession session = HttpIOSession.getSession(ioctrl);
+            this.watchdog = new StalledUploadWatchdog(timeout, session != null ? session
+                    .getScheduledExecutorService() : NIODispatcher.instance()
                     .getScheduledExecutorService());
         }
         this.watchdog.activate(timeoutable);
@@ -80,6 +86,7 @@ public abstract class AbstractProducingNHttpEntity extends AbstractHttpEntity im
     public final void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
         if (!initialized) {
             initialized = true;
+            this.ioctrl = ioctrl;
             initialize(encoder, ioctrl);
         }
         
@@ -0,0 +1,178 @@
+package org.limewire.http.entity;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.limewire.http.reactor.HttpIOSession;
+import org.limewire.nio.channel.FileTransferChannel;
+
+/**
+ * Writes a region of a file directly to a {@link FileTransferChannel} using
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * Unlike {@link FilePieceReader} the file contents are not copied into heap
+ * buffers which makes this the preferred way of uploading over connections
+ * that are not encrypted.
+ * <p>
+ * Since the transfer is performed on the thread that writes to the
+ * connection, usually the NIO dispatch thread, a single invocation of
+ * {@link #transfer()} writes at most {@link #MAX_TRANSFER_SIZE} bytes.
+ */
+public class DirectFileTransfer {
+
+    private static final Log LOG = LogFactory.getLog(DirectFileTransfer.class);
+
+    /**
+     * The maximum number of bytes written by a single call to
+     * {@link #transfer()}.
+     */
+    static int MAX_TRANSFER_SIZE = 256 * 1024;
+
+    private final File file;
+
+    private final FileTransferChannel channel;
+
+    /** The offset of the next byte to transfer. */
+    private long position;
+
+    /** The remaining number of bytes to transfer. */
+    private long remaining;
+
+    private RandomAccessFile raf;
+
+    private FileChannel fileChannel;
+
+    private boolean closed;
+
+    public DirectFileTransfer(File file, long offset, long length, FileTransferChannel channel) {
+        if (file == null || channel == null) {
+            throw new IllegalArgumentException();
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must be >= 0");
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException("length must be > 0");
+        }
+
+        this.file = file;
+        this.channel = channel;
+        this.position = offset;
+        this.remaining = length;
+    }
+
+    /**
+     * Returns the channel of the connection controlled by <code>ioctrl</code>
+     * if content written through <code>encoder</code> can be transferred
+     * directly.
+     *
+     * @return null, if direct transfers are not possible
+     * @see #getFileTransferChannel(ContentEncoder, HttpIOSession)
+     */
+    public static FileTransferChannel getFileTransferChannel(ContentEncoder encoder, IOControl ioctrl) {
+        HttpIOSession session = HttpIOSession.getSession(ioctrl);
+        if (session == null) {
+            return null;
+        }
+        return getFileTransferChannel(encoder, session);
+    }
+
+    /**
+     * Returns the channel of <code>session</code> if content written through
+     * <code>encoder</code> can be transferred directly. This requires that the
+     * encoder does not alter the content, i.e. the response is not chunked,
+     * and that the channel is not encrypted.
+     *
+     * @return null, if direct transfers are not possible
+     */
+    public static FileTransferChannel getFileTransferChannel(ContentEncoder encoder, HttpIOSession session) {
+        if (!(encoder instanceof FileContentEncoder) || session == null) {
+            return null;
+        }
+        ByteChannel channel = session.channel();
+        if (channel instanceof FileTransferChannel
+                && ((FileTransferChannel) channel).isFileTransferSupported()) {
+            return (FileTransferChannel) channel;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the file that is being transferred.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of bytes that have not been transferred, yet.
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Transfers as many bytes as the channel accepts without blocking but not
+     * more than {@link #MAX_TRANSFER_SIZE}.
+     *
+     * @return the number of bytes written, possibly 0
+     * @throws EOFException if the file is shorter than expected
+     * @throws IOException if an I/O error occurs
+     */
+    public long transfer() throws IOException {
+        if (closed) {
+            throw new EOFException();
+        }
+        if (remaining == 0) {
+            return 0;
+        }
+
+        if (fileChannel == null) {
+            raf = new RandomAccessFile(file, "r");
+            fileChannel = raf.getChannel();
+        }
+
+        long written = channel.transferFrom(fileChannel, position, Math.min(remaining,
+                MAX_TRANSFER_SIZE));
+        if (written == 0 && fileChannel.size() <= position) {
+            throw new EOFException("Attempt to read beyond end of file");
+        }
+        position += written;
+        remaining -= written;
+        return written;
+    }
+
+    /**
+     * Closes the file. Does nothing if the transfer has been closed before.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing channel for file: " + file, e);
+            }
+        }
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing file: " + file, e);
+            }
+        }
+    }
+
+}
@@ -16,13 +16,19 @@ import org.apache.http.nio.ContentDecoder;
 import org.apache.http.nio.ContentEncoder;
 import org.apache.http.nio.IOControl;
 import org.apache.http.nio.entity.ProducingNHttpEntity;
+import org.limewire.http.reactor.HttpIOSession;
 import org.limewire.nio.NIODispatcher;
+import org.limewire.nio.channel.FileTransferChannel;
 import org.limewire.nio.observer.Shutdownable;
 import org.limewire.nio.timeout.StalledUploadWatchdog;
 
 /**
  * An event based {@link HttpEntity} that uploads a {@link File}. A
  * corresponding {@link FileTransferMonitor} is updated with progress.
+ * <p>
+ * If the underlying connection supports it the file is written using a
+ * {@link DirectFileTransfer}, otherwise it is read through a
+ * {@link FilePieceReader}.
  */
 public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
 
@@ -46,6 +52,9 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
 
     private FilePieceReader reader;
 
+    /** Used instead of {@link #reader} if the file is transferred directly. */
+    private DirectFileTransfer directTransfer;
+
     /** Piece that is currently transferred. */
     private Piece piece;
 
@@ -159,6 +168,34 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
         reader.start();
     }
 
+    /**
+     * Initializes a direct transfer of the file to <code>channel</code>.
+     * 
+     * @see DirectFileTransfer
+     */
+    public void initializeDirectTransfer(FileTransferChannel channel) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("Initializing direct upload of " + file.getName() + " [begin="
+                    + begin + ",length=" + length + "]");
+
+        if (length == 0) {
+            // handle special case of empty file
+            return;
+        }
+
+        transfer.start();
+
+        directTransfer = new DirectFileTransfer(file, begin, length, channel);
+    }
+
+    /**
+     * Returns the channel that the file is transferred to directly or null, if
+     * the file needs to be read through a {@link FilePieceReader}.
+     */
+    protected FileTransferChannel getFileTransferChannel(ContentEncoder encoder, IOControl ioctrl) {
+        return DirectFileTransfer.getFileTransferChannel(encoder, ioctrl);
+    }
+
     public void initializeWriter() throws IOException {
         // TODO implement
         throw new UnsupportedOperationException();
@@ -171,6 +208,10 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
             reader.shutdown();
             reader = null;
         }
+        if (directTransfer != null) {
+            directTransfer.close();
+            directTransfer = null;
+        }
 
         ioctrl = null;
     }
@@ -179,9 +220,19 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
             throws IOException {
         if (this.ioctrl == null) {
             this.ioctrl = ioctrl;
-            initializeReader();
+            FileTransferChannel channel = getFileTransferChannel(encoder, ioctrl);
+            if (channel != null) {
+                initializeDirectTransfer(channel);
+            } else {
+                initializeReader();
+            }
         }
         
+        if (directTransfer != null) {
+            produceDirectContent(encoder);
+            return;
+        }
+
         // flush current buffer
         if (buffer != null && buffer.hasRemaining()) {
             int written = encoder.write(buffer);
@@ -238,9 +289,29 @@ public class FileNIOEntity extends FileEntity implements ProducingNHttpEntity {
         }
     }
 
+    private void produceDirectContent(ContentEncoder encoder) throws IOException {
+        // a single transfer per invocation to limit the time spent on the
+        // dispatch thread, output remains requested if there is more data
+        long written = directTransfer.transfer();
+        transfer.addAmountUploaded((int) written);
+        remaining = directTransfer.getRemaining();
+
+        if (LOG.isTraceEnabled())
+            LOG.trace("Uploaded " + file.getName() + " [remaining=" + remaining + "]");
+
+        if (remaining == 0) {
+            encoder.complete();
+        } else {
+            activateTimeout();
+        }
+    }
+
     protected void activateTimeout() {
         if (this.watchdog == null) {
-            this.watchdog = new StalledUploadWatchdog(timeout, NIODispatcher.instance().getScheduledExecutorService());
+            HttpIOSession session = HttpIOSession.getSession(ioctrl);
+            this.watchdog = new StalledUploadWatchdog(timeout, session != null ? session
+                    .getScheduledExecutorService() : NIODispatcher.instance()
+                    .getScheduledExecutorService());
         }
         this.watchdog.activate(timeoutable);
     }
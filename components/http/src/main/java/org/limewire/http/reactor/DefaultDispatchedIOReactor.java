@@ -35,8 +35,17 @@ public class DefaultDispatchedIOReactor implements DispatchedIOReactor {
     
     protected volatile IOEventDispatch eventDispatch = null;
     
+    /** The executor for I/O events, or null to use the event loop of each socket. */
     private final Executor ioExecutor;
     
+    /**
+     * Creates a reactor that runs the I/O events of each session on the
+     * event loop that services its socket.
+     */
+    public DefaultDispatchedIOReactor(final HttpParams params) {
+        this(params, null);
+    }
+    
     public DefaultDispatchedIOReactor(final HttpParams params, final Executor ioExecutor) {
         if (params == null) {
             throw new IllegalArgumentException();
@@ -68,7 +77,8 @@ public class DefaultDispatchedIOReactor implements DispatchedIOReactor {
      * Connects <code>socket</code> to LimeWire's NIO layer. 
      */
     protected NHttpConnection connectSocket(AbstractNBSocket socket, Object attachment, String word) {
-        final HttpIOSession session = new HttpIOSession(socket, ioExecutor);        
+        final HttpIOSession session = ioExecutor != null ? new HttpIOSession(socket, ioExecutor)
+                : new HttpIOSession(socket);        
         
         session.setAttribute(IOSession.ATTACHMENT_KEY, attachment);
         session.setSocketTimeout(HttpConnectionParams.getSoTimeout(this.params));
@@ -3,6 +3,7 @@ package org.limewire.http.reactor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
@@ -10,6 +11,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.nio.reactor.IOEventDispatch;
 import org.limewire.nio.channel.ChannelReadObserver;
 import org.limewire.nio.channel.ChannelWriter;
+import org.limewire.nio.channel.FileTransferChannel;
 import org.limewire.nio.channel.InterestReadableByteChannel;
 import org.limewire.nio.channel.InterestWritableByteChannel;
 import org.limewire.util.BufferUtils;
@@ -19,7 +21,8 @@ import org.limewire.util.StringUtils;
  * A read/write channel implementation that forwards all requests received from
  * LimeWire's NIO layer to HttpCore's {@link IOEventDispatch}.
  */
-public class HttpChannel implements ByteChannel, ChannelReadObserver, ChannelWriter {
+public class HttpChannel implements ByteChannel, ChannelReadObserver, ChannelWriter,
+        FileTransferChannel {
 
     private static final Log LOG = LogFactory.getLog(HttpChannel.class);
 
@@ -134,6 +137,26 @@ public class HttpChannel implements ByteChannel, ChannelReadObserver, ChannelWri
         return written;
     }
 
+    /**
+     * Returns true, if the underlying write channel supports direct file
+     * transfers, i.e. if the connection is not encrypted.
+     */
+    public boolean isFileTransferSupported() {
+        InterestWritableByteChannel source = writeSource;
+        return source instanceof FileTransferChannel
+                && ((FileTransferChannel) source).isFileTransferSupported();
+    }
+
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+        InterestWritableByteChannel source = writeSource;
+        if (!(source instanceof FileTransferChannel)) {
+            throw new IllegalStateException("file transfer not supported");
+        }
+        long written = ((FileTransferChannel) source).transferFrom(src, position, count);
+        upCount((int) written);
+        return written;
+    }
+
     public void handleRead() throws IOException {
         if (!readInterest) {
             LOG
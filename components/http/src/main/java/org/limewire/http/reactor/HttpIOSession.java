@@ -8,10 +8,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpConnection;
 import org.apache.http.nio.reactor.EventMask;
 import org.apache.http.nio.reactor.IOSession;
 import org.apache.http.nio.reactor.SessionBufferStatus;
@@ -46,6 +49,14 @@ public class HttpIOSession implements IOSession {
     
     private final Executor ioExecutor;
 
+    /**
+     * Creates a session whose I/O events are run on the event loop that
+     * services <code>socket</code>.
+     */
+    public HttpIOSession(AbstractNBSocket socket) {
+        this(socket, NIODispatcher.instance().getScheduledExecutorService(socket.getChannel()));
+    }
+
     public HttpIOSession(AbstractNBSocket socket, Executor ioExecutor) {
         if (socket == null) {
             throw new IllegalArgumentException();
@@ -233,4 +244,25 @@ public class HttpIOSession implements IOSession {
         return ioExecutor;
     }
     
+    /**
+     * Returns an executor that schedules tasks on the event loop that
+     * services the socket of this session.
+     */
+    public ScheduledExecutorService getScheduledExecutorService() {
+        return NIODispatcher.instance().getScheduledExecutorService(socket.getChannel());
+    }
+    
+    /**
+     * Returns the session of the connection controlled by <code>ioctrl</code>,
+     * or null if it has none.
+     */
+    public static HttpIOSession getSession(IOControl ioctrl) {
+        if (!(ioctrl instanceof NHttpConnection)) {
+            return null;
+        }
+        Object session = ((NHttpConnection) ioctrl).getContext().getAttribute(
+                DefaultDispatchedIOReactor.IO_SESSION_KEY);
+        return session instanceof HttpIOSession ? (HttpIOSession) session : null;
+    }
+    
 }
\ No newline at end of file
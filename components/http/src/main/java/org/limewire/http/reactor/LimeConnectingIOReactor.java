@@ -34,6 +34,7 @@ public class LimeConnectingIOReactor implements ConnectingIOReactor {
     
     protected volatile IOEventDispatch eventDispatch = null;
     
+    /** The executor for I/O events, or null to use the event loop of each socket. */
     private final Executor ioExecutor;
     private final SocketsManager socketsManager;
     
@@ -57,6 +58,14 @@ public class LimeConnectingIOReactor implements ConnectingIOReactor {
         this(params, ioExecutor,socketsManager, new HttpBandwidthTracker(), new HttpBandwidthTracker());
     }
     
+    /**
+     * Creates a reactor that runs the I/O events of each session on the
+     * event loop that services its socket.
+     */
+    public LimeConnectingIOReactor(final HttpParams params, SocketsManager socketsManager) {
+        this(params, null, socketsManager);
+    }
+    
     public void execute(IOEventDispatch eventDispatch) throws IOException {
         if (!(eventDispatch instanceof DefaultClientIOEventDispatch)) {
             throw new IllegalArgumentException("Event dispatch must be of type DefaultClientIOEventDispatch");
@@ -122,7 +131,8 @@ public class LimeConnectingIOReactor implements ConnectingIOReactor {
             socket.setSoLinger(linger > 0, linger);
         }
         
-        final HttpIOSession session = new HttpIOSession(socket, ioExecutor); 
+        final HttpIOSession session = ioExecutor != null ? new HttpIOSession(socket, ioExecutor)
+                : new HttpIOSession(socket);
         
         session.setAttribute(IOSession.ATTACHMENT_KEY, attachment);
         session.setSocketTimeout(HttpConnectionParams.getSoTimeout(this.params));
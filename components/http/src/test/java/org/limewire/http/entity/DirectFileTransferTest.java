@@ -0,0 +1,173 @@
+package org.limewire.http.entity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import junit.framework.Test;
+
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.nio.codecs.IdentityEncoder;
+import org.apache.http.impl.nio.reactor.SessionOutputBufferImpl;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.params.BasicHttpParams;
+import org.limewire.http.HttpTestUtils;
+import org.limewire.http.MockContentEncoder;
+import org.limewire.http.MockIOControl;
+import org.limewire.nio.channel.FileTransferChannel;
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.StringUtils;
+
+public class DirectFileTransferTest extends BaseTestCase {
+
+    private static final String ALPHABET = "abcdefghijklmonpqrstuvwxyz";
+
+    private File file;
+
+    private int maxTransferSize;
+
+    public DirectFileTransferTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(DirectFileTransferTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("lime", null);
+        file.deleteOnExit();
+        maxTransferSize = DirectFileTransfer.MAX_TRANSFER_SIZE;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DirectFileTransfer.MAX_TRANSFER_SIZE = maxTransferSize;
+        file.delete();
+    }
+
+    public void testTransferRange() throws Exception {
+        HttpTestUtils.writeData(file, ALPHABET);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DirectFileTransfer transfer = new DirectFileTransfer(file, 2, 3, new StubFileTransferChannel(out));
+        assertEquals(3, transfer.getRemaining());
+        assertEquals(3, transfer.transfer());
+        assertEquals(0, transfer.getRemaining());
+        assertEquals(0, transfer.transfer());
+        transfer.close();
+        assertEquals("cde", StringUtils.getUTF8String(out.toByteArray()));
+    }
+
+    public void testTransferIsLimitedToMaxTransferSize() throws Exception {
+        DirectFileTransfer.MAX_TRANSFER_SIZE = 10;
+        HttpTestUtils.writeData(file, ALPHABET);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DirectFileTransfer transfer = new DirectFileTransfer(file, 0, 26, new StubFileTransferChannel(out));
+        assertEquals(10, transfer.transfer());
+        assertEquals(16, transfer.getRemaining());
+        assertEquals(10, transfer.transfer());
+        assertEquals(6, transfer.transfer());
+        assertEquals(0, transfer.getRemaining());
+        transfer.close();
+        assertEquals(ALPHABET, StringUtils.getUTF8String(out.toByteArray()));
+    }
+
+    public void testTransferBeyondEndOfFile() throws Exception {
+        HttpTestUtils.writeData(file, ALPHABET);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DirectFileTransfer transfer = new DirectFileTransfer(file, 20, 10, new StubFileTransferChannel(out));
+        assertEquals(6, transfer.transfer());
+        try {
+            transfer.transfer();
+            fail("Expected EOFException");
+        } catch (EOFException expected) {
+        }
+        transfer.close();
+    }
+
+    public void testTransferAfterClose() throws Exception {
+        HttpTestUtils.writeData(file, ALPHABET);
+        DirectFileTransfer transfer = new DirectFileTransfer(file, 0, 26, new StubFileTransferChannel(new ByteArrayOutputStream()));
+        transfer.close();
+        try {
+            transfer.transfer();
+            fail("Expected EOFException");
+        } catch (EOFException expected) {
+        }
+        // closing twice is harmless
+        transfer.close();
+    }
+
+    public void testGetFileTransferChannelRequiresHttpConnection() throws Exception {
+        IdentityEncoder encoder = new IdentityEncoder(Channels.newChannel(new ByteArrayOutputStream()),
+                new SessionOutputBufferImpl(0, 0, new BasicHttpParams()), new HttpTransportMetricsImpl());
+        assertNull(DirectFileTransfer.getFileTransferChannel(encoder, new MockIOControl()));
+        assertNull(DirectFileTransfer.getFileTransferChannel(new MockContentEncoder(), new MockIOControl()));
+    }
+
+    public void testEntityUsesDirectTransfer() throws Exception {
+        DirectFileTransfer.MAX_TRANSFER_SIZE = 4;
+        HttpTestUtils.writeData(file, ALPHABET);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final StubFileTransferChannel channel = new StubFileTransferChannel(out);
+        FileNIOEntity entity = new FileNIOEntity(file, "content-type", new FileTransferMonitorAdapter(), 1, 24) {
+            @Override
+            protected FileTransferChannel getFileTransferChannel(ContentEncoder encoder, IOControl ioctrl) {
+                return channel;
+            }
+        };
+        MockContentEncoder encoder = new MockContentEncoder();
+        MockIOControl control = new MockIOControl();
+        int calls = 0;
+        while (!encoder.isCompleted()) {
+            entity.produceContent(encoder, control);
+            calls++;
+        }
+        entity.finish();
+        assertEquals(6, calls);
+        assertEquals(ALPHABET.substring(1, 25), StringUtils.getUTF8String(out.toByteArray()));
+    }
+
+    public void testTransferFromTruncatedFile() throws Exception {
+        HttpTestUtils.writeData(file, ALPHABET);
+        DirectFileTransfer transfer = new DirectFileTransfer(file, 0, 26, new StubFileTransferChannel(new ByteArrayOutputStream()));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+        } finally {
+            raf.close();
+        }
+        try {
+            transfer.transfer();
+            fail("Expected EOFException");
+        } catch (EOFException expected) {
+        }
+        transfer.close();
+    }
+
+    private static class StubFileTransferChannel implements FileTransferChannel {
+
+        private final WritableByteChannel channel;
+
+        public StubFileTransferChannel(ByteArrayOutputStream out) {
+            this.channel = Channels.newChannel(out);
+        }
+
+        public boolean isFileTransferSupported() {
+            return true;
+        }
+
+        public long transferFrom(FileChannel src, long position, long count) throws IOException {
+            return src.transferTo(position, count, channel);
+        }
+
+    }
+
+}
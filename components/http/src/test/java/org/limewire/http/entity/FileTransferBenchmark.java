@@ -0,0 +1,212 @@
+package org.limewire.http.entity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.nio.ByteBufferCache;
+import org.limewire.nio.channel.FileTransferChannel;
+
+/**
+ * Compares the throughput of uploading file ranges through a
+ * {@link FilePieceReader} with a {@link DirectFileTransfer} over a loopback
+ * connection.
+ * <p>
+ * Usage: <code>FileTransferBenchmark [file size in MB] [rounds]</code>
+ */
+public class FileTransferBenchmark {
+
+    private static final int SMALL_RANGE = 16 * 1024;
+
+    private final File file;
+
+    private final long fileSize;
+
+    private final SocketChannel out;
+
+    private final SocketChannel in;
+
+    private final AtomicLong received = new AtomicLong();
+
+    public FileTransferBenchmark(File file, long fileSize) throws IOException {
+        this.file = file;
+        this.fileSize = fileSize;
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        out = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.socket().getLocalPort()));
+        in = server.accept();
+        server.close();
+
+        Thread drain = new Thread("FileTransferBenchmarkDrain") {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        received.addAndGet(read);
+                        buffer.clear();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeInMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File file = File.createTempFile("lime", "benchmark");
+        file.deleteOnExit();
+        long fileSize = sizeInMB * 1024L * 1024L;
+        createFile(file, fileSize);
+
+        FileTransferBenchmark benchmark = new FileTransferBenchmark(file, fileSize);
+        try {
+            for (int i = 0; i < rounds; i++) {
+                boolean warmup = i == 0;
+                benchmark.report("piece reader, large range", warmup, benchmark.pieceReaderLarge());
+                benchmark.report("direct, large range", warmup, benchmark.directLarge());
+                benchmark.report("piece reader, small ranges", warmup, benchmark.pieceReaderSmall());
+                benchmark.report("direct, small ranges", warmup, benchmark.directSmall());
+            }
+        } finally {
+            benchmark.close();
+            file.delete();
+        }
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        byte[] data = new byte[1024 * 1024];
+        new Random().nextBytes(data);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            for (long written = 0; written < size; written += data.length) {
+                raf.write(data, 0, (int) Math.min(data.length, size - written));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void report(String name, boolean warmup, long nanos) {
+        if (warmup) {
+            return;
+        }
+        double seconds = nanos / 1E9;
+        System.out.println(name + ": " + (int) (fileSize / seconds / 1024 / 1024) + " MB/s");
+    }
+
+    private long pieceReaderLarge() throws Exception {
+        long start = System.nanoTime();
+        sendWithPieceReader(0, fileSize);
+        waitForReceived(fileSize);
+        return System.nanoTime() - start;
+    }
+
+    private long directLarge() throws Exception {
+        long start = System.nanoTime();
+        sendDirect(0, fileSize);
+        waitForReceived(fileSize);
+        return System.nanoTime() - start;
+    }
+
+    private long pieceReaderSmall() throws Exception {
+        long start = System.nanoTime();
+        for (long offset = 0; offset < fileSize; offset += SMALL_RANGE) {
+            sendWithPieceReader(offset, Math.min(SMALL_RANGE, fileSize - offset));
+        }
+        waitForReceived(fileSize);
+        return System.nanoTime() - start;
+    }
+
+    private long directSmall() throws Exception {
+        long start = System.nanoTime();
+        for (long offset = 0; offset < fileSize; offset += SMALL_RANGE) {
+            sendDirect(offset, Math.min(SMALL_RANGE, fileSize - offset));
+        }
+        waitForReceived(fileSize);
+        return System.nanoTime() - start;
+    }
+
+    private void sendWithPieceReader(long offset, long length) throws Exception {
+        final Object lock = new Object();
+        FilePieceReader reader = new FilePieceReader(new ByteBufferCache(), file, offset, length,
+                new PieceListener() {
+                    public void readFailed(IOException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    public void readSuccessful() {
+                        synchronized (lock) {
+                            lock.notify();
+                        }
+                    }
+                });
+        reader.start();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                Piece piece;
+                synchronized (lock) {
+                    while ((piece = reader.next()) == null) {
+                        lock.wait(100);
+                    }
+                }
+                ByteBuffer buffer = piece.getBuffer();
+                remaining -= buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                reader.release(piece);
+            }
+        } finally {
+            reader.shutdown();
+        }
+    }
+
+    private void sendDirect(long offset, long length) throws IOException {
+        DirectFileTransfer transfer = new DirectFileTransfer(file, offset, length,
+                new FileTransferChannel() {
+                    public boolean isFileTransferSupported() {
+                        return true;
+                    }
+
+                    public long transferFrom(FileChannel src, long position, long count)
+                            throws IOException {
+                        return src.transferTo(position, count, out);
+                    }
+                });
+        try {
+            while (transfer.getRemaining() > 0) {
+                transfer.transfer();
+            }
+        } finally {
+            transfer.close();
+        }
+    }
+
+    private void waitForReceived(long length) throws InterruptedException {
+        while (received.get() < length) {
+            Thread.sleep(1);
+        }
+        received.addAndGet(-length);
+    }
+
+    private void close() throws IOException {
+        out.close();
+        in.close();
+    }
+
+}
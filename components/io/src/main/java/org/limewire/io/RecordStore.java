@@ -0,0 +1,567 @@
+package org.limewire.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A persistent map of byte array keys to byte array values, stored as a
+ * snapshot file and a log of the changes made since the snapshot was written.
+ * <p>
+ * Opening the store memory-maps the snapshot and reads only its keys; values
+ * are read from the mapping when they are first asked for. Changes are kept
+ * in memory until {@link #flush()} appends them to the log, and once the log
+ * has grown past the size of the snapshot, the two are compacted into a new
+ * snapshot.
+ * <p>
+ * Every record carries a CRC32 checksum. A record in the log that fails its
+ * checksum, such as one torn by a crash, is dropped along with everything
+ * after it; a snapshot record that fails its checksum is dropped when its
+ * value is read.
+ * <p>
+ * The store is versioned by the caller: files written with a different
+ * version are ignored and replaced.
+ * <p>
+ * The files of a store named <code>name</code> are <code>name.log</code> and
+ * <code>name.N.snap</code>, where N counts the snapshots written.
+ */
+public class RecordStore {
+
+    private static final Log LOG = LogFactory.getLog(RecordStore.class);
+
+    /** Identifies the files of a store, "LWRS". */
+    private static final int MAGIC = 0x4C575253;
+
+    /** The version of the layout of the files themselves. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** The size of the header of each file: magic, format and version. */
+    private static final int HEADER_SIZE = 12;
+
+    /** The size of the trailer of a snapshot: record count and magic. */
+    private static final int TRAILER_SIZE = 8;
+
+    /** The size of a record without its key and value. */
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4 + 4;
+
+    private static final byte PUT = 1;
+
+    private static final byte REMOVE = 2;
+
+    /** The log is not compacted before it reaches this size. */
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
+    private final File directory;
+
+    private final String name;
+
+    private final int version;
+
+    /**
+     * The location of each value: a Long offset of its record in the
+     * snapshot, or the value itself if it was put since the snapshot.
+     */
+    private final Map<Key, Object> index = new HashMap<Key, Object>();
+
+    /** Records that have not been appended to the log yet. */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /** The mapped snapshot, null if there is none. */
+    private ByteBuffer snapshot;
+
+    /** The number of the current snapshot, 0 if there is none. */
+    private long generation;
+
+    /** The size of the log, including its header. */
+    private long logSize;
+
+    /** Whether {@link #open()} was called. */
+    private boolean opened;
+
+    /**
+     * Creates a store of the given version whose files are in
+     * <code>directory</code> and start with <code>name</code>. The store
+     * must be opened before it is used.
+     */
+    public RecordStore(File directory, String name, int version) {
+        this.directory = directory;
+        this.name = name;
+        this.version = version;
+    }
+
+    /**
+     * Opens the store, reading the keys of the latest snapshot and replaying
+     * the log.
+     *
+     * @return true if data written by an earlier store of the same version
+     *         was found, false if the store starts out empty
+     */
+    public synchronized boolean open() throws IOException {
+        if (opened)
+            throw new IllegalStateException("already open");
+        opened = true;
+
+        boolean found = openSnapshot();
+        found |= replayLog();
+        return found;
+    }
+
+    /** Returns the value for the key, or null if there is none. */
+    public synchronized byte[] get(byte[] key) {
+        Key k = new Key(key);
+        Object location = index.get(k);
+        if (location == null)
+            return null;
+        if (location instanceof byte[])
+            return (byte[])location;
+
+        byte[] value = readSnapshotValue((Long)location);
+        if (value == null) {
+            LOG.warn("Dropping corrupt record from " + name);
+            index.remove(k);
+            appendRecord(REMOVE, key, null);
+        }
+        return value;
+    }
+
+    /** Returns true if the store has a value for the key. */
+    public synchronized boolean contains(byte[] key) {
+        return index.containsKey(new Key(key));
+    }
+
+    /**
+     * Sets the value of the key. Neither the key nor the value may be
+     * modified afterwards.
+     */
+    public synchronized void put(byte[] key, byte[] value) {
+        checkOpen();
+        index.put(new Key(key), value);
+        appendRecord(PUT, key, value);
+    }
+
+    /** Removes the value of the key, if there is one. */
+    public synchronized void remove(byte[] key) {
+        checkOpen();
+        if (index.remove(new Key(key)) != null)
+            appendRecord(REMOVE, key, null);
+    }
+
+    /** Returns a copy of the keys in the store. */
+    public synchronized List<byte[]> keys() {
+        List<byte[]> keys = new ArrayList<byte[]>(index.size());
+        for (Key key : index.keySet())
+            keys.add(key.bytes);
+        return keys;
+    }
+
+    /** Returns the number of keys in the store. */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Appends the changes made since the last flush to the log, compacting
+     * the store if the log has outgrown the snapshot.
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        appendPending();
+
+        long snapshotSize = snapshot == null ? 0 : snapshot.capacity();
+        if (logSize > Math.max(MIN_COMPACTION_SIZE, snapshotSize))
+            compact();
+    }
+
+    /**
+     * Writes every value to a new snapshot and empties the log. Changes that
+     * were not flushed are appended to the log first.
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        appendPending();
+        long next = generation + 1;
+        File file = getSnapshotFile(next);
+        Map<Key, Object> offsets = new HashMap<Key, Object>(index.size());
+        FileOutputStream fos = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.write(header());
+            long offset = HEADER_SIZE;
+            int count = 0;
+            for (Map.Entry<Key, Object> entry : index.entrySet()) {
+                Object location = entry.getValue();
+                byte[] value = location instanceof byte[] ? (byte[])location
+                        : readSnapshotValue((Long)location);
+                if (value == null)
+                    continue;
+                byte[] record = record(PUT, entry.getKey().bytes, value);
+                out.write(record);
+                offsets.put(entry.getKey(), offset);
+                offset += record.length;
+                count++;
+            }
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            IOUtils.close(out);
+            file.delete();
+            throw e;
+        } finally {
+            IOUtils.close(out);
+        }
+
+        snapshot = map(file);
+        File old = getSnapshotFile(generation);
+        generation = next;
+        index.clear();
+        index.putAll(offsets);
+
+        // if this is interrupted, the log is replayed over the new snapshot.
+        // The log holds every change since the old snapshot and the new
+        // snapshot holds their outcome, so replaying them changes nothing.
+        resetLog();
+        // fails on some systems while the old snapshot is still mapped;
+        // open() cleans it up then.
+        old.delete();
+    }
+
+    /** Appends the changes made since the last flush to the log. */
+    private void appendPending() throws IOException {
+        if (pending.size() == 0)
+            return;
+        RandomAccessFile raf = new RandomAccessFile(getLogFile(), "rw");
+        try {
+            long length = raf.length();
+            if (length < HEADER_SIZE) {
+                raf.setLength(0);
+                raf.write(header());
+                length = HEADER_SIZE;
+            }
+            raf.seek(length);
+            raf.write(pending.toByteArray());
+            raf.getFD().sync();
+            logSize = raf.length();
+        } finally {
+            raf.close();
+        }
+        pending.reset();
+    }
+
+    /** Empties the log, leaving only its header. */
+    void resetLog() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(getLogFile(), "rw");
+        try {
+            raf.setLength(0);
+            raf.write(header());
+            logSize = HEADER_SIZE;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Deletes all the files of the store and empties it. */
+    public synchronized void clear() {
+        index.clear();
+        pending.reset();
+        snapshot = null;
+        generation = 0;
+        logSize = 0;
+        getLogFile().delete();
+        for (File file : getSnapshotFiles())
+            file.delete();
+    }
+
+    /**
+     * Returns the time the files of the store were last modified, or 0 if
+     * there are none. The store does not need to be open.
+     */
+    public synchronized long lastModified() {
+        long modified = getLogFile().lastModified();
+        for (File file : getSnapshotFiles())
+            modified = Math.max(modified, file.lastModified());
+        return modified;
+    }
+
+    private void checkOpen() {
+        if (!opened)
+            throw new IllegalStateException("not open");
+    }
+
+    /**
+     * Maps the newest snapshot that is complete and of the right version,
+     * and indexes its keys. Older snapshots are deleted.
+     */
+    private boolean openSnapshot() {
+        List<File> files = getSnapshotFiles();
+        boolean found = false;
+        for (File file : files) {
+            long number = getGeneration(file);
+            if (!found && number > 0) {
+                try {
+                    ByteBuffer buffer = map(file);
+                    if (indexSnapshot(buffer)) {
+                        snapshot = buffer;
+                        generation = number;
+                        found = true;
+                        continue;
+                    }
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("Ignoring snapshot: " + file);
+                } catch (IOException e) {
+                    LOG.warn("Unable to read snapshot: " + file, e);
+                }
+                index.clear();
+            }
+            if (number != generation)
+                file.delete();
+        }
+        return found;
+    }
+
+    /**
+     * Indexes the keys of a snapshot.
+     *
+     * @return false if the snapshot is incomplete or of another version
+     */
+    private boolean indexSnapshot(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE + TRAILER_SIZE || !isHeader(buffer, 0))
+            return false;
+        int end = buffer.capacity() - TRAILER_SIZE;
+        if (buffer.getInt(end + 4) != MAGIC)
+            return false;
+
+        int count = 0;
+        int offset = HEADER_SIZE;
+        while (offset < end) {
+            if (end - offset < RECORD_OVERHEAD)
+                return false;
+            int keyLength = buffer.getInt(offset + 1);
+            int valueLength = buffer.getInt(offset + 5);
+            if (buffer.get(offset) != PUT || keyLength < 0 || valueLength < 0
+                    || end - offset - RECORD_OVERHEAD < (long)keyLength + valueLength)
+                return false;
+            byte[] key = new byte[keyLength];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(offset + 9);
+            slice.get(key);
+            index.put(new Key(key), Long.valueOf(offset));
+            offset += RECORD_OVERHEAD + keyLength + valueLength;
+            count++;
+        }
+        return count == buffer.getInt(end);
+    }
+
+    /**
+     * Replays the log over the snapshot. The log is truncated before the
+     * first record that can't be read.
+     */
+    private boolean replayLog() throws IOException {
+        File file = getLogFile();
+        if (!file.exists())
+            return false;
+
+        long good = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            in.readFully(header);
+            if (!isHeader(ByteBuffer.wrap(header), 0)) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Ignoring log: " + file);
+            } else {
+                good = HEADER_SIZE;
+                while (true) {
+                    byte type = in.readByte();
+                    int keyLength = in.readInt();
+                    int valueLength = in.readInt();
+                    if ((type != PUT && type != REMOVE) || keyLength < 0 || valueLength < 0
+                            || keyLength + (long)valueLength > file.length() - good)
+                        break;
+                    byte[] key = new byte[keyLength];
+                    byte[] value = new byte[valueLength];
+                    in.readFully(key);
+                    in.readFully(value);
+                    if (in.readInt() != checksum(type, key, value))
+                        break;
+                    if (type == PUT)
+                        index.put(new Key(key), value);
+                    else
+                        index.remove(new Key(key));
+                    good += RECORD_OVERHEAD + keyLength + valueLength;
+                }
+            }
+        } catch (EOFException end) {
+            // a complete log ends here too
+        } finally {
+            in.close();
+        }
+
+        if (good < file.length()) {
+            if (LOG.isWarnEnabled() && good > HEADER_SIZE)
+                LOG.warn("Truncating log of " + name + " at " + good);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(good);
+            } finally {
+                raf.close();
+            }
+        }
+        logSize = good;
+        return good > 0;
+    }
+
+    /** Returns the value of the record at the offset, or null if it's corrupt. */
+    private byte[] readSnapshotValue(long offset) {
+        ByteBuffer buffer = snapshot.duplicate();
+        try {
+            buffer.position((int)offset);
+            byte type = buffer.get();
+            byte[] key = new byte[buffer.getInt()];
+            byte[] value = new byte[buffer.getInt()];
+            buffer.get(key);
+            buffer.get(value);
+            if (buffer.getInt() != checksum(type, key, value))
+                return null;
+            return value;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private void appendRecord(byte type, byte[] key, byte[] value) {
+        byte[] record = record(type, key, value);
+        pending.write(record, 0, record.length);
+    }
+
+    private boolean isHeader(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset) == MAGIC && buffer.getInt(offset + 4) == FORMAT_VERSION
+                && buffer.getInt(offset + 8) == version;
+    }
+
+    private byte[] header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(version);
+        return header.array();
+    }
+
+    private File getLogFile() {
+        return new File(directory, name + LOG_SUFFIX);
+    }
+
+    private File getSnapshotFile(long number) {
+        return new File(directory, name + "." + number + SNAPSHOT_SUFFIX);
+    }
+
+    /** Returns the snapshot files of the store, newest first. */
+    private List<File> getSnapshotFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] list = directory.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                if (getGeneration(file) >= 0)
+                    files.add(file);
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ga = getGeneration(a);
+                long gb = getGeneration(b);
+                return ga > gb ? -1 : ga == gb ? 0 : 1;
+            }
+        });
+        return files;
+    }
+
+    /** Returns the number of a snapshot file of this store, or -1. */
+    private long getGeneration(File file) {
+        String fileName = file.getName();
+        if (!fileName.startsWith(name + ".") || !fileName.endsWith(SNAPSHOT_SUFFIX))
+            return -1;
+        String number = fileName.substring(name.length() + 1, fileName.length() - SNAPSHOT_SUFFIX.length());
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE)
+                throw new IOException("snapshot too large: " + raf.length());
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    private static byte[] record(byte type, byte[] key, byte[] value) {
+        if (value == null)
+            value = new byte[0];
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + key.length + value.length);
+        record.put(type).putInt(key.length).putInt(value.length).put(key).put(value);
+        record.putInt(checksum(type, key, value));
+        return record.array();
+    }
+
+    private static int checksum(byte type, byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(key);
+        crc.update(value);
+        return (int)crc.getValue();
+    }
+
+    /** A byte array key compared by value. */
+    private static final class Key {
+        private final byte[] bytes;
+
+        private final int hashCode;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key)o).bytes);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.limewire.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.Test;
+
+import org.limewire.util.BaseTestCase;
+import org.limewire.util.FileUtils;
+import org.limewire.util.StringUtils;
+
+public class RecordStoreTest extends BaseTestCase {
+
+    private File dir;
+
+    public RecordStoreTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(RecordStoreTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("recordstore", "test");
+        dir.delete();
+        assertTrue(dir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cleanFiles(dir, true);
+    }
+
+    public void testReopenReplaysLog() throws Exception {
+        RecordStore store = open(1);
+        store.put(bytes("a"), bytes("1"));
+        store.put(bytes("b"), bytes("2"));
+        store.put(bytes("a"), bytes("3"));
+        store.remove(bytes("b"));
+        store.flush();
+        assertTrue(new File(dir, "test.log").exists());
+
+        RecordStore reopened = new RecordStore(dir, "test", 1);
+        assertTrue(reopened.open());
+        assertEquals("3", string(reopened.get(bytes("a"))));
+        assertNull(reopened.get(bytes("b")));
+        assertEquals(1, reopened.size());
+    }
+
+    public void testUnflushedChangesAreLost() throws Exception {
+        RecordStore store = open(1);
+        store.put(bytes("a"), bytes("1"));
+        store.flush();
+        store.put(bytes("b"), bytes("2"));
+
+        RecordStore reopened = open(1);
+        assertEquals("1", string(reopened.get(bytes("a"))));
+        assertFalse(reopened.contains(bytes("b")));
+    }
+
+    public void testCompactionReadsLazilyFromSnapshot() throws Exception {
+        RecordStore store = open(1);
+        for (int i = 0; i < 100; i++)
+            store.put(bytes("key" + i), bytes("value" + i));
+        store.compact();
+        assertTrue(new File(dir, "test.1.snap").exists());
+        assertEquals(12, new File(dir, "test.log").length());
+        assertEquals("value7", string(store.get(bytes("key7"))));
+
+        store.remove(bytes("key7"));
+        store.put(bytes("key8"), bytes("changed"));
+        store.flush();
+        store.compact();
+        assertFalse(new File(dir, "test.1.snap").exists());
+
+        RecordStore reopened = open(1);
+        assertEquals(99, reopened.size());
+        assertNull(reopened.get(bytes("key7")));
+        assertEquals("changed", string(reopened.get(bytes("key8"))));
+        assertEquals("value99", string(reopened.get(bytes("key99"))));
+    }
+
+    public void testCompactionInterruptedBeforeLogIsReset() throws Exception {
+        RecordStore store = new RecordStore(dir, "test", 1) {
+            @Override
+            void resetLog() throws IOException {
+                throw new IOException("interrupted");
+            }
+        };
+        store.open();
+        store.put(bytes("a"), bytes("1"));
+        store.put(bytes("b"), bytes("2"));
+        store.flush();
+        store.put(bytes("a"), bytes("3"));
+        store.remove(bytes("b"));
+        try {
+            store.compact();
+            fail("expected exception");
+        } catch (IOException expected) {}
+        assertTrue(new File(dir, "test.1.snap").exists());
+
+        // the whole log is replayed over the new snapshot
+        RecordStore reopened = open(1);
+        assertEquals(1, reopened.size());
+        assertEquals("3", string(reopened.get(bytes("a"))));
+        assertNull(reopened.get(bytes("b")));
+    }
+
+    public void testFlushCompactsLargeLog() throws Exception {
+        RecordStore store = open(1);
+        byte[] value = new byte[1000];
+        for (int i = 0; i < 100; i++)
+            store.put(bytes("key"), value);
+        store.flush();
+        assertTrue(new File(dir, "test.1.snap").exists());
+        assertEquals(12, new File(dir, "test.log").length());
+        assertTrue(Arrays.equals(value, open(1).get(bytes("key"))));
+    }
+
+    public void testTornLogIsTruncated() throws Exception {
+        RecordStore store = open(1);
+        store.put(bytes("a"), bytes("1"));
+        store.flush();
+        long good = new File(dir, "test.log").length();
+        store.put(bytes("b"), bytes("2"));
+        store.flush();
+
+        // cut the last record short
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "test.log"), "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        RecordStore reopened = open(1);
+        assertEquals("1", string(reopened.get(bytes("a"))));
+        assertNull(reopened.get(bytes("b")));
+        assertEquals(good, new File(dir, "test.log").length());
+
+        // and appending continues after the good records
+        reopened.put(bytes("c"), bytes("3"));
+        reopened.flush();
+        RecordStore again = open(1);
+        assertEquals("1", string(again.get(bytes("a"))));
+        assertEquals("3", string(again.get(bytes("c"))));
+    }
+
+    public void testCorruptSnapshotRecordIsDropped() throws Exception {
+        RecordStore store = open(1);
+        store.put(bytes("a"), bytes("first"));
+        store.put(bytes("b"), bytes("second"));
+        store.compact();
+
+        File snapshot = new File(dir, "test.1.snap");
+        byte[] data = FileUtils.readFileFully(snapshot);
+        int offset = indexOf(data, bytes("second"));
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+        raf.seek(offset);
+        raf.write('X');
+        raf.close();
+
+        RecordStore reopened = open(1);
+        assertEquals(2, reopened.size());
+        assertEquals("first", string(reopened.get(bytes("a"))));
+        assertNull(reopened.get(bytes("b")));
+        assertEquals(1, reopened.size());
+    }
+
+    public void testOtherVersionIsIgnored() throws Exception {
+        RecordStore store = open(1);
+        store.put(bytes("a"), bytes("1"));
+        store.compact();
+        store.put(bytes("b"), bytes("2"));
+        store.flush();
+
+        RecordStore other = new RecordStore(dir, "test", 2);
+        assertFalse(other.open());
+        assertEquals(0, other.size());
+        other.put(bytes("c"), bytes("3"));
+        other.flush();
+        assertFalse(new File(dir, "test.1.snap").exists());
+
+        RecordStore reopened = open(2);
+        assertEquals(1, reopened.size());
+        assertEquals("3", string(reopened.get(bytes("c"))));
+    }
+
+    public void testClear() throws Exception {
+        RecordStore store = open(1);
+        store.put(bytes("a"), bytes("1"));
+        store.compact();
+        store.put(bytes("b"), bytes("2"));
+        store.flush();
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, dir.listFiles().length);
+        assertFalse(new RecordStore(dir, "test", 1).open());
+    }
+
+    public void testLastModified() throws Exception {
+        RecordStore store = open(1);
+        assertEquals(0, store.lastModified());
+        store.put(bytes("a"), bytes("1"));
+        store.flush();
+        assertGreaterThan(0, store.lastModified());
+        store.compact();
+        assertGreaterThan(0, new RecordStore(dir, "test", 1).lastModified());
+        store.clear();
+        assertEquals(0, store.lastModified());
+    }
+
+    private RecordStore open(int version) throws Exception {
+        RecordStore store = new RecordStore(dir, "test", version);
+        store.open();
+        return store;
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i <= data.length - part.length; i++) {
+            if (Arrays.equals(part, Arrays.copyOfRange(data, i, i + part.length)))
+                return i;
+        }
+        throw new AssertionError("not found");
+    }
+
+    private static byte[] bytes(String s) {
+        return StringUtils.toUTF8Bytes(s);
+    }
+
+    private static String string(byte[] b) {
+        return b == null ? null : StringUtils.getUTF8String(b);
+    }
+}
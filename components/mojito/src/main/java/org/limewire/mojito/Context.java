@@ -458,9 +458,10 @@ public class Context implements MojitoDHT, RouteTable.ContactPinger {
      * Sets the Database
      * 
      * @param database the Database (can be null to use the default Database implementation)
-     * @param remove whether or not to remove non local DHTValues
+     * @param remove whether or not to remove non local DHTValues. A Database
+     * that was persisted along with the RouteTable can be kept as it is.
      */
-    private synchronized void setDatabase(Database database, boolean remove) {
+    public synchronized void setDatabase(Database database, boolean remove) {
         if (isRunning()) {
             throw new IllegalStateException("Cannot switch Database while " + getName() + " is running");
         }
@@ -477,7 +478,9 @@ public class Context implements MojitoDHT, RouteTable.ContactPinger {
         }
         
         this.database = database;
-        purgeDatabase();
+        if (remove) {
+            purgeDatabase();
+        }
     }
     
     /**
@@ -60,7 +60,7 @@ public class DHTValueEntity implements Serializable {
     /**
      * The time when this value was created (local time).
      */
-    private final long creationTime = System.currentTimeMillis();
+    private final long creationTime;
     
     /**
      * Flag for whether or not this is a local entity
@@ -98,18 +98,33 @@ public class DHTValueEntity implements Serializable {
         return new DHTValueEntity(creator, sender, primaryKey, value, false);
     }
     
+    /**
+     * Creates and returns a <code>DHTValueEntity</code> that was read back
+     * from persistent storage and keeps its original creation time.
+     */
+    public static DHTValueEntity createFromStore(Contact creator, Contact sender, 
+            KUID primaryKey, DHTValue value, boolean local, long creationTime) {
+        return new DHTValueEntity(creator, sender, primaryKey, value, local, creationTime);
+    }
+    
     /**
      * Constructor to create DHTValueEntities. It's package private
      * for testing purposes. Use the factory methods!
      */
     DHTValueEntity(Contact creator, Contact sender, 
             KUID primaryKey, DHTValue value, boolean local) {
+        this(creator, sender, primaryKey, value, local, System.currentTimeMillis());
+    }
+    
+    private DHTValueEntity(Contact creator, Contact sender, 
+            KUID primaryKey, DHTValue value, boolean local, long creationTime) {
         this.creator = creator;
         this.sender = sender;
         this.primaryKey = primaryKey;
         this.secondaryKey = creator.getNodeID();
         this.value = value;
         this.local = local;
+        this.creationTime = creationTime;
         
         this.hashCode = 17*primaryKey.hashCode() + secondaryKey.hashCode();
     }
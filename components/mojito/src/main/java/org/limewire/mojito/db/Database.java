@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.limewire.mojito.KUID;
+import org.limewire.mojito.routing.RouteTable;
 
 
 /**
@@ -103,6 +104,13 @@ public interface Database extends Serializable {
      */
     public Collection<DHTValueEntity> values();
     
+    /**
+     * Removes all <code>DHTValueEntity</code>s the given 
+     * <code>EvictorManager</code> considers expired and returns
+     * how many were removed.
+     */
+    public int removeExpired(RouteTable routeTable, EvictorManager evictorManager);
+    
     /**
      * Returns the number of <code>Key</code>s in the Database.
      */
@@ -79,15 +79,13 @@ public class DatabaseCleaner implements Runnable {
         RouteTable routeTable = context.getRouteTable();
         Database database = context.getDatabase();
         synchronized (database) {
-            for (DHTValueEntity entity : database.values()) {
-                if (evictorManager.isExpired(routeTable, entity)) {
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace(entity + " is expired!");
-                    }
-                    
-                    database.remove(entity.getPrimaryKey(), entity.getSecondaryKey());
-                    databaseStats.EXPIRED_VALUES.incrementStat();
-                }
+            int expired = database.removeExpired(routeTable, evictorManager);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Removed " + expired + " expired values");
+            }
+            
+            for (int i = 0; i < expired; i++) {
+                databaseStats.EXPIRED_VALUES.incrementStat();
             }
         }
     }
@@ -78,26 +78,33 @@ public class DHTValueEntityBag implements Serializable {
     }
     
     public float incrementRequestLoad() {
+        long now = System.currentTimeMillis();
+        requestLoad = nextRequestLoad(requestLoad, lastRequestTime, now);
+        lastRequestTime = now;
+        return requestLoad;
+    }
+    
+    /**
+     * Returns the request load after a request at the given time.
+     * 
+     * @param requestLoad the current request load
+     * @param lastRequestTime the time of the previous request or 0
+     */
+    static float nextRequestLoad(float requestLoad, long lastRequestTime, long now) {
         
         //Use Exponentially weighted moving average (EMA) to compute load
         //on this particular value bag. 
         //See http://en.wikipedia.org/wiki/Moving_average#Exponential_moving_average
         
-        long now = System.currentTimeMillis();
-        
         if(lastRequestTime == 0L) {
-            lastRequestTime = now;
-            requestLoad = 0f;
-            return requestLoad;
+            return 0f;
         }
         
         //we don't want to skew the results with delays that are too small!
         float delay = Math.max((now - lastRequestTime)/1000f, 0.01f); //in sec
         
         if (delay <= 0f || delay > LOAD_NULLING_DELAY) {
-            lastRequestTime = now;
-            requestLoad = 0f; //we can't trust the value anymore
-            return requestLoad;
+            return 0f; //we can't trust the value anymore
         }
         
         //The new requests per second is always a percentage of the 
@@ -105,11 +112,8 @@ public class DHTValueEntityBag implements Serializable {
         //newValue = SF*newLoad + (1 - SF)*previousValue
         //Which is equal to:
         //newValue = previousValue + SF * (newLoad - previousValue)
-        requestLoad = requestLoad 
+        return requestLoad 
             + SMOOTHING_FACTOR*((1f/delay) - requestLoad);
-        lastRequestTime = now;
-        
-        return requestLoad;
     }
     
     public boolean add(DHTValueEntity entity) {
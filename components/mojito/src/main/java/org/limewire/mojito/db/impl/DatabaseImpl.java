@@ -40,7 +40,9 @@ import org.limewire.mojito.KUID;
 import org.limewire.mojito.db.DHTValueEntity;
 import org.limewire.mojito.db.Database;
 import org.limewire.mojito.db.DatabaseSecurityConstraint;
+import org.limewire.mojito.db.EvictorManager;
 import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.RouteTable;
 import org.limewire.mojito.settings.DatabaseSettings;
 import org.limewire.mojito.util.ContactUtils;
 
@@ -341,6 +343,30 @@ public class DatabaseImpl implements Database {
             return true;
         }
         
+        if (!isValidCreator(entity)) {
+            return false;
+        }
+        
+        if (entity.getValue().size() != 0
+                && isValueLimitReached(getValuesPerAddress(entity), getValuesPerNetwork(entity))) {
+            return false;
+        }
+        
+        // Check with the security constraint now
+        DHTValueEntityBag bag = database.get(entity.getPrimaryKey());
+        DatabaseSecurityConstraint dbsc = securityConstraint;
+        if (dbsc != null && bag != null) {
+            return dbsc.allowStore(this, bag.getValues(false), entity);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns false if the creator of the given remote value has an
+     * invalid or private address and creators are validated.
+     */
+    static boolean isValidCreator(DHTValueEntity entity) {
         if (DatabaseSettings.VALIDATE_VALUE_CREATOR.getValue()
                 && !entity.isDirect()) {
             
@@ -358,29 +384,21 @@ public class DatabaseImpl implements Database {
                 return false;
             }
         }
-        
-        if (entity.getValue().size() != 0) {
-            int valuesPerAddress = getValuesPerAddress(entity);
-            if (DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.getValue() 
-                    && valuesPerAddress >= DatabaseSettings.MAX_VALUES_PER_ADDRESS.getValue()) {
-                return false;
-            }
-            
-            int valuesPerNetwork = getValuesPerNetwork(entity);
-            if (DatabaseSettings.LIMIT_VALUES_PER_NETWORK.getValue()
-                    && valuesPerNetwork >= DatabaseSettings.MAX_VALUES_PER_NETWORK.getValue()) {
-                return false;
-            }
-        }
-        
-        // Check with the security constraint now
-        DHTValueEntityBag bag = database.get(entity.getPrimaryKey());
-        DatabaseSecurityConstraint dbsc = securityConstraint;
-        if (dbsc != null && bag != null) {
-            return dbsc.allowStore(this, bag.getValues(false), entity);
+        return true;
+    }
+    
+    /**
+     * Returns true if a creator with the given number of values per
+     * IP address and per Class C Network may not store any more values.
+     */
+    static boolean isValueLimitReached(int valuesPerAddress, int valuesPerNetwork) {
+        if (DatabaseSettings.LIMIT_VALUES_PER_ADDRESS.getValue() 
+                && valuesPerAddress >= DatabaseSettings.MAX_VALUES_PER_ADDRESS.getValue()) {
+            return true;
         }
         
-        return true;
+        return DatabaseSettings.LIMIT_VALUES_PER_NETWORK.getValue()
+                && valuesPerNetwork >= DatabaseSettings.MAX_VALUES_PER_NETWORK.getValue();
     }
     
     /**
@@ -431,6 +449,26 @@ public class DatabaseImpl implements Database {
         return values;
     }
     
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#removeExpired(org.limewire.mojito.routing.RouteTable, org.limewire.mojito.db.EvictorManager)
+     */
+    public synchronized int removeExpired(RouteTable routeTable, EvictorManager evictorManager) {
+        int removed = 0;
+        for (DHTValueEntity entity : values()) {
+            if (evictorManager.isExpired(routeTable, entity)) {
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace(entity + " is expired!");
+                }
+                
+                if (remove(entity.getPrimaryKey(), entity.getSecondaryKey()) != null) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+    
     @Override
     public synchronized String toString() {
         StringBuilder buffer = new StringBuilder();
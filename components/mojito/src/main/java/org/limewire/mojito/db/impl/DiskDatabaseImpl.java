@@ -0,0 +1,1132 @@
+/*
+ * Mojito Distributed Hash Table (Mojito DHT)
+ * Copyright (C) 2006-2007 LimeWire LLC
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.limewire.mojito.db.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.collection.IntHashMap;
+import org.limewire.io.NetworkUtils;
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.db.DHTValue;
+import org.limewire.mojito.db.DHTValueEntity;
+import org.limewire.mojito.db.DHTValueFactoryManager;
+import org.limewire.mojito.db.DHTValueType;
+import org.limewire.mojito.db.Database;
+import org.limewire.mojito.db.DatabaseSecurityConstraint;
+import org.limewire.mojito.db.EvictorManager;
+import org.limewire.mojito.io.MessageInputStream;
+import org.limewire.mojito.io.MessageOutputStream;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.ContactFactory;
+import org.limewire.mojito.routing.RouteTable;
+import org.limewire.mojito.routing.Vendor;
+import org.limewire.mojito.routing.Version;
+import org.limewire.mojito.util.DatabaseUtils;
+import org.limewire.util.FileUtils;
+
+/**
+ * A {@link Database} that keeps the values of remote Nodes in an
+ * append-only log file and only an index of the log in memory.
+ * <p>
+ * Every store appends a record with the whole <code>DHTValueEntity</code>
+ * and every remove appends a record with its keys. The index maps each
+ * primary key to the secondary keys, log positions, creator addresses,
+ * creation times and value types of its values, which is all that is
+ * needed to answer {@link #contains(KUID, KUID)}, {@link #getKeyCount()},
+ * the flooding checks and, for values expired by the
+ * <code>DefaultEvictor</code>, {@link #removeExpired(RouteTable, EvictorManager)}. The values themselves are read back from the log when they are
+ * requested. Values are written with their creation time, so
+ * <code>DatabaseCleaner</code> and the <code>Evictor</code>s expire them
+ * the same way after a restart as before.
+ * <p>
+ * Opening an existing file replays the log and the Database is ready
+ * with the values of the previous session. A record that was only
+ * partly written when the process died fails its checksum and the
+ * log is truncated in front of it. The log is rewritten with only
+ * the live records once the replaced and removed ones take up more
+ * space than the live ones.
+ * <p>
+ * Local values are few, are published again by their owner and may
+ * refer to a local Node ID that changes, so they are kept in memory
+ * only.
+ */
+public class DiskDatabaseImpl implements Database {
+
+    private static final long serialVersionUID = 2583409174405812467L;
+
+    private static final Log LOG = LogFactory.getLog(DiskDatabaseImpl.class);
+
+    /**
+     * The first four bytes of the log file.
+     */
+    private static final int MAGIC = 0x4D4A4442; // MJDB
+
+    /**
+     * The length and checksum in front of every record.
+     */
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * A record with a value.
+     */
+    private static final byte PUT = 1;
+
+    /**
+     * A record that removes a value.
+     */
+    private static final byte REMOVE = 2;
+
+    /**
+     * The creator of the value has an IPv4 address.
+     */
+    private static final int IPV4_CREATOR = 0x01;
+
+    /**
+     * The log is not compacted before it's at least this large.
+     */
+    private static final long MIN_COMPACT_SIZE = 1024L * 1024L;
+
+    private final File file;
+
+    private final transient DHTValueFactoryManager factoryManager;
+
+    private transient RandomAccessFile raf;
+
+    private transient FileChannel channel;
+
+    /** LOCKING: this */
+    private final Map<KUID, Bag> database = new HashMap<KUID, Bag>();
+
+    /**
+     * The DatabaseSecurityConstraint handle.
+     */
+    private volatile DatabaseSecurityConstraint securityConstraint
+        = new DefaultDatabaseSecurityConstraint();
+
+    /**
+     * A Map of masked IP address to number of values.
+     */
+    private final IntHashMap<AtomicInteger> valuesPerNetwork = new IntHashMap<AtomicInteger>();
+
+    /**
+     * A Map of IP address to number of values.
+     */
+    private final IntHashMap<AtomicInteger> valuesPerAddress = new IntHashMap<AtomicInteger>();
+
+    /**
+     * The number of values.
+     */
+    private int valueCount;
+
+    /**
+     * The length of the log, where the next record goes.
+     */
+    private long length;
+
+    /**
+     * The number of bytes of the log taken up by live records.
+     */
+    private long liveBytes;
+
+    /**
+     * The buffer records are written to before they're appended.
+     */
+    private final transient ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private final transient CRC32 crc = new CRC32();
+
+    /**
+     * Opens the given log file, replaying it if it exists.
+     *
+     * @param factoryManager creates the DHTValues read back from the log
+     */
+    public DiskDatabaseImpl(File file, DHTValueFactoryManager factoryManager) throws IOException {
+        this.file = file;
+        this.factoryManager = factoryManager;
+
+        open();
+    }
+
+    private void open() throws IOException {
+        // A compacted log that could not replace the old one
+        File tmp = getCompactFile();
+        if (!file.exists() && tmp.exists()) {
+            FileUtils.forceRename(tmp, file);
+        }
+        
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        if (raf.length() < 4) {
+            reset();
+        } else if (raf.readInt() != MAGIC) {
+            close();
+            throw new IOException(file + " is not a Mojito Database");
+        } else {
+            load();
+        }
+    }
+
+    /**
+     * Truncates the log to its first four bytes.
+     */
+    private void reset() throws IOException {
+        raf.setLength(0L);
+        raf.seek(0L);
+        raf.writeInt(MAGIC);
+        length = 4L;
+        liveBytes = 0L;
+    }
+
+    /**
+     * Replays the log and builds the index.
+     */
+    private void load() throws IOException {
+        long fileLength = raf.length();
+        long position = 4L;
+
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            in.skipBytes(4);
+
+            byte[] body = new byte[64];
+            while (position + RECORD_HEADER <= fileLength) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+
+                if (size <= 0 || position + RECORD_HEADER + size > fileLength) {
+                    break;
+                }
+
+                if (body.length < size) {
+                    body = new byte[size];
+                }
+                in.readFully(body, 0, size);
+
+                crc.reset();
+                crc.update(body, 0, size);
+                if ((int)crc.getValue() != checksum) {
+                    break;
+                }
+
+                replay(body, position, size);
+                position += RECORD_HEADER + size;
+            }
+        } catch (EOFException ignore) {
+        } finally {
+            in.close();
+        }
+
+        if (position < fileLength) {
+            if (LOG.isWarnEnabled()) {
+                LOG.warn("Truncating " + file + " from " + fileLength + " to " + position);
+            }
+            raf.setLength(position);
+        }
+
+        length = position;
+    }
+
+    /**
+     * Applies a record of the log to the index.
+     */
+    private void replay(byte[] body, long position, int size) throws IOException {
+        KUID primaryKey = KUID.createWithBytes(Arrays.copyOfRange(body, 1, 1 + KUID.LENGTH));
+        KUID secondaryKey = KUID.createWithBytes(
+                Arrays.copyOfRange(body, 1 + KUID.LENGTH, 1 + 2*KUID.LENGTH));
+
+        removeFromIndex(primaryKey, secondaryKey);
+
+        if (body[0] == PUT) {
+            MessageInputStream in = new MessageInputStream(
+                    new ByteArrayInputStream(body, 1 + 2*KUID.LENGTH, size), null);
+            long creationTime = in.readLong();
+            int flags = in.readUnsignedByte();
+            int address = in.readInt();
+            readContact(in); // creator
+            readContact(in); // sender
+            DHTValueType valueType = in.readValueType();
+
+            addToIndex(primaryKey, secondaryKey, position, RECORD_HEADER + size,
+                    flags, address, creationTime, valueType, null);
+        } else if (body[0] != REMOVE) {
+            throw new IOException("Unknown record type: " + body[0]);
+        }
+    }
+
+    /**
+     * Closes the log file. The Database cannot be used afterwards.
+     */
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+        } finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * Returns the log file of this Database.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#setDatabaseSecurityConstraint(org.limewire.mojito.db.DatabaseSecurityConstraint)
+     */
+    public void setDatabaseSecurityConstraint(
+            DatabaseSecurityConstraint securityConstraint) {
+
+        if (securityConstraint == null) {
+            securityConstraint = new DefaultDatabaseSecurityConstraint();
+        }
+
+        this.securityConstraint = securityConstraint;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#getKeyCount()
+     */
+    public synchronized int getKeyCount() {
+        return database.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#getValueCount()
+     */
+    public synchronized int getValueCount() {
+        return valueCount;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#clear()
+     */
+    public synchronized void clear() {
+        database.clear();
+        valuesPerAddress.clear();
+        valuesPerNetwork.clear();
+        valueCount = 0;
+
+        try {
+            reset();
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#store(org.limewire.mojito.db.DHTValueEntity)
+     */
+    public synchronized boolean store(DHTValueEntity entity) {
+        if (!allowStore(entity)) {
+            return false;
+        }
+
+        if (entity.getValue().size() == 0) {
+            return remove(entity.getPrimaryKey(), entity.getSecondaryKey()) != null;
+        } else {
+            return add(entity);
+        }
+    }
+
+    /**
+     * Adds the given <code>DHTValueEntity</code> to the Database.
+     *
+     * @return true if adding the <code>DHTValueEntity</code> succeeded
+     */
+    private boolean add(DHTValueEntity entity) {
+        KUID primaryKey = entity.getPrimaryKey();
+        KUID secondaryKey = entity.getSecondaryKey();
+
+        if (entity.isLocalValue()) {
+            if (isOnDisk(primaryKey, secondaryKey) 
+                    && !append(removeRecord(primaryKey, secondaryKey))) {
+                return false;
+            }
+            removeFromIndex(primaryKey, secondaryKey);
+            addToIndex(primaryKey, secondaryKey, -1L, 0, 0, 0, 
+                    entity.getCreationTime(), entity.getValue().getValueType(), entity);
+            return true;
+        }
+
+        int flags = 0;
+        int address = 0;
+        InetAddress addr = ((InetSocketAddress)entity.getCreator().getContactAddress()).getAddress();
+        if (addr instanceof Inet4Address) {
+            flags |= IPV4_CREATOR;
+            address = NetworkUtils.getMaskedIP(addr, DatabaseImpl.IPV4_ADDRESS_NETMASK);
+        }
+
+        long position = length;
+        int size;
+        try {
+            size = write(putRecord(entity, flags, address));
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+            return false;
+        }
+
+        removeFromIndex(primaryKey, secondaryKey);
+        addToIndex(primaryKey, secondaryKey, position, size, flags, address, 
+                entity.getCreationTime(), entity.getValue().getValueType(), null);
+        compactIfNecessary();
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#remove(org.limewire.mojito.KUID, org.limewire.mojito.KUID)
+     */
+    public synchronized DHTValueEntity remove(KUID primaryKey, KUID secondaryKey) {
+        Bag bag = database.get(primaryKey);
+        if (bag == null) {
+            return null;
+        }
+
+        int index = bag.indexOf(secondaryKey);
+        if (index < 0) {
+            return null;
+        }
+
+        DHTValueEntity entity;
+        try {
+            entity = read(bag, index);
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+            entity = null;
+        }
+
+        if (bag.positions[index] >= 0L && !append(removeRecord(primaryKey, secondaryKey))) {
+            return null;
+        }
+
+        removeFromIndex(primaryKey, secondaryKey);
+        compactIfNecessary();
+        return entity;
+    }
+
+    /**
+     * Appends the given record and returns true on success.
+     */
+    private boolean append(byte[] record) {
+        try {
+            write(record);
+            return true;
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the given value has a record in the log.
+     */
+    private boolean isOnDisk(KUID primaryKey, KUID secondaryKey) {
+        Bag bag = database.get(primaryKey);
+        if (bag == null) {
+            return false;
+        }
+        int index = bag.indexOf(secondaryKey);
+        return index >= 0 && bag.positions[index] >= 0L;
+    }
+
+    /**
+     * Adds a value to the index.
+     */
+    private void addToIndex(KUID primaryKey, KUID secondaryKey, long position, int size,
+            int flags, int address, long creationTime, DHTValueType valueType, 
+            DHTValueEntity local) {
+        Bag bag = database.get(primaryKey);
+        if (bag == null) {
+            bag = new Bag();
+            database.put(primaryKey, bag);
+        }
+
+        bag.add(secondaryKey, position, size, (flags & IPV4_CREATOR) != 0 ? address : 0, 
+                creationTime, valueType.toInt(), local);
+        valueCount++;
+
+        if (position >= 0L) {
+            liveBytes += size;
+            if ((flags & IPV4_CREATOR) != 0) {
+                incrementValueCount(valuesPerAddress, address);
+                incrementValueCount(valuesPerNetwork, address & NetworkUtils.CLASS_C_NETMASK);
+            }
+        }
+    }
+
+    /**
+     * Removes a value from the index and returns true if it was there.
+     */
+    private boolean removeFromIndex(KUID primaryKey, KUID secondaryKey) {
+        Bag bag = database.get(primaryKey);
+        if (bag == null) {
+            return false;
+        }
+
+        int index = bag.indexOf(secondaryKey);
+        if (index < 0) {
+            return false;
+        }
+
+        if (bag.positions[index] >= 0L) {
+            liveBytes -= bag.sizes[index];
+            int address = bag.addresses[index];
+            if (address != 0) {
+                decrementValueCount(valuesPerAddress, address);
+                decrementValueCount(valuesPerNetwork, address & NetworkUtils.CLASS_C_NETMASK);
+            }
+        }
+
+        bag.remove(index);
+        valueCount--;
+
+        if (bag.size == 0) {
+            database.remove(primaryKey);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of values that are currently stored under
+     * the same Class C Network.
+     */
+    public synchronized int getValuesPerNetwork(DHTValueEntity entity) {
+        return getValueCount(entity, valuesPerNetwork, NetworkUtils.CLASS_C_NETMASK);
+    }
+
+    /**
+     * Returns the number of values that are currently stored under
+     * the same IP Address.
+     */
+    public synchronized int getValuesPerAddress(DHTValueEntity entity) {
+        return getValueCount(entity, valuesPerAddress, DatabaseImpl.IPV4_ADDRESS_NETMASK);
+    }
+
+    /**
+     * A helper method to get the number of values that are currently stored
+     * under a certain masked IP address.
+     */
+    private static int getValueCount(DHTValueEntity entity, IntHashMap<AtomicInteger> map, int netmask) {
+        if (entity.isLocalValue()) {
+            return 0;
+        }
+
+        InetAddress addr = ((InetSocketAddress)entity.getCreator().getContactAddress()).getAddress();
+        if (addr instanceof Inet4Address) {
+            AtomicInteger count = map.get(NetworkUtils.getMaskedIP(addr, netmask));
+            if (count != null) {
+                return count.get();
+            }
+        }
+        return 0;
+    }
+
+    private static void incrementValueCount(IntHashMap<AtomicInteger> map, int masked) {
+        AtomicInteger count = map.get(masked);
+        if (count == null) {
+            count = new AtomicInteger(0);
+            map.put(masked, count);
+        }
+        count.incrementAndGet();
+    }
+
+    private static void decrementValueCount(IntHashMap<AtomicInteger> map, int masked) {
+        AtomicInteger count = map.get(masked);
+        if (count != null && count.decrementAndGet() == 0) {
+            map.remove(masked);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#getRequestLoad(org.limewire.mojito.KUID, boolean)
+     */
+    public synchronized float getRequestLoad(KUID primaryKey, boolean incrementLoad) {
+        Bag bag = database.get(primaryKey);
+        if (bag == null) {
+            return 0f;
+        }
+
+        if (incrementLoad) {
+            long now = System.currentTimeMillis();
+            bag.requestLoad = DHTValueEntityBag.nextRequestLoad(
+                    bag.requestLoad, bag.lastRequestTime, now);
+            bag.lastRequestTime = now;
+        }
+        return bag.requestLoad;
+    }
+
+    /**
+     * Checks for possible flooding and then delegates calls to the
+     * <code>DatabaseSecurityConstraint</code> instance if possible.
+     */
+    private boolean allowStore(DHTValueEntity entity) {
+        if (entity.isLocalValue()) {
+            return true;
+        }
+
+        if (!DatabaseImpl.isValidCreator(entity)) {
+            return false;
+        }
+
+        if (entity.getValue().size() != 0
+                && DatabaseImpl.isValueLimitReached(
+                        getValuesPerAddress(entity), getValuesPerNetwork(entity))) {
+            return false;
+        }
+
+        // Check with the security constraint now
+        DatabaseSecurityConstraint dbsc = securityConstraint;
+        if (dbsc != null && database.containsKey(entity.getPrimaryKey())) {
+            return dbsc.allowStore(this, get(entity.getPrimaryKey()), entity);
+        }
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#get(org.limewire.mojito.KUID)
+     */
+    public synchronized Map<KUID, DHTValueEntity> get(KUID primaryKey) {
+        Bag bag = database.get(primaryKey);
+        if (bag == null) {
+            return Collections.emptyMap();
+        }
+
+        List<DHTValueEntity> entities = new ArrayList<DHTValueEntity>(bag.size);
+        read(bag, entities);
+        
+        Map<KUID, DHTValueEntity> values = new HashMap<KUID, DHTValueEntity>(bag.size * 2);
+        for (DHTValueEntity entity : entities) {
+            values.put(entity.getSecondaryKey(), entity);
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#contains(org.limewire.mojito.KUID, org.limewire.mojito.KUID)
+     */
+    public synchronized boolean contains(KUID primaryKey, KUID secondaryKey) {
+        Bag bag = database.get(primaryKey);
+        return bag != null && bag.indexOf(secondaryKey) >= 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#keySet()
+     */
+    public synchronized Set<KUID> keySet() {
+        return new HashSet<KUID>(database.keySet());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.limewire.mojito.db.Database#values()
+     */
+    public synchronized Collection<DHTValueEntity> values() {
+        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>(valueCount);
+        for (Bag bag : database.values()) {
+            read(bag, values);
+        }
+        return values;
+    }
+
+    /**
+     * Removes the expired values. Values whose type is expired by the
+     * <code>DefaultEvictor</code> are checked against the creation time
+     * in the index; only values with their own <code>Evictor</code> are
+     * read from the log.
+     */
+    public synchronized int removeExpired(RouteTable routeTable, EvictorManager evictorManager) {
+        int removed = 0;
+        for (Map.Entry<KUID, Bag> entry : new ArrayList<Map.Entry<KUID, Bag>>(database.entrySet())) {
+            KUID primaryKey = entry.getKey();
+            Bag bag = entry.getValue();
+            // Removing a value moves the last one into its place,
+            // which has already been checked
+            for (int i = bag.size - 1; i >= 0; i--) {
+                if (!isExpired(routeTable, evictorManager, primaryKey, bag, i)) {
+                    continue;
+                }
+                
+                KUID secondaryKey = bag.getSecondaryKey(i);
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace(primaryKey + "/" + secondaryKey + " is expired!");
+                }
+                
+                if (bag.positions[i] >= 0L && !append(removeRecord(primaryKey, secondaryKey))) {
+                    continue;
+                }
+                removeFromIndex(primaryKey, secondaryKey);
+                removed++;
+            }
+        }
+        
+        compactIfNecessary();
+        return removed;
+    }
+    
+    private boolean isExpired(RouteTable routeTable, EvictorManager evictorManager, 
+            KUID primaryKey, Bag bag, int index) {
+        if (bag.positions[index] < 0L) {
+            return evictorManager.isExpired(routeTable, bag.locals[index]);
+        }
+        
+        DHTValueType valueType = DHTValueType.valueOf(bag.valueTypes[index]);
+        if (evictorManager.getEvictor(valueType) == EvictorManager.defaultEvictor) {
+            return DatabaseUtils.isExpired(routeTable, primaryKey, bag.creationTimes[index]);
+        }
+        
+        try {
+            return evictorManager.isExpired(routeTable, read(bag, index));
+        } catch (IOException err) {
+            LOG.error("IOException", err);
+            return false;
+        }
+    }
+
+    /**
+     * Reads all values of the given Bag into the given Collection. Values
+     * that cannot be read are logged and skipped.
+     */
+    private void read(Bag bag, Collection<DHTValueEntity> values) {
+        for (int i = 0; i < bag.size; i++) {
+            try {
+                values.add(read(bag, i));
+            } catch (IOException err) {
+                LOG.error("IOException", err);
+            }
+        }
+    }
+
+    /**
+     * Reads the value at the given index of the given Bag.
+     */
+    private DHTValueEntity read(Bag bag, int index) throws IOException {
+        if (bag.positions[index] < 0L) {
+            return bag.locals[index];
+        }
+
+        int size = bag.sizes[index];
+        ByteBuffer record = ByteBuffer.allocate(size);
+        long position = bag.positions[index];
+        while (record.hasRemaining()) {
+            if (channel.read(record, position + record.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+
+        byte[] data = record.array();
+        MessageInputStream in = new MessageInputStream(new ByteArrayInputStream(
+                data, RECORD_HEADER + 1 + 2*KUID.LENGTH, size), null);
+
+        long creationTime = in.readLong();
+        in.readUnsignedByte(); // flags
+        in.readInt(); // address
+
+        KUID primaryKey = KUID.createWithBytes(
+                Arrays.copyOfRange(data, RECORD_HEADER + 1, RECORD_HEADER + 1 + KUID.LENGTH));
+        Contact creator = readContact(in);
+        Contact sender = readContact(in);
+
+        DHTValueType valueType = in.readValueType();
+        Version version = in.readVersion();
+        byte[] value = new byte[in.readUnsignedShort()];
+        in.readFully(value);
+
+        DHTValue dhtValue = factoryManager.createDHTValue(valueType, version, value);
+        return DHTValueEntity.createFromStore(creator, sender, primaryKey,
+                dhtValue, false, creationTime);
+    }
+
+    /**
+     * Returns the record of the given value.
+     */
+    private byte[] putRecord(DHTValueEntity entity, int flags, int address) throws IOException {
+        MessageOutputStream out = begin(PUT, entity.getPrimaryKey(), entity.getSecondaryKey());
+        out.writeLong(entity.getCreationTime());
+        out.writeByte(flags);
+        out.writeInt(address);
+        writeContact(out, entity.getCreator());
+        writeContact(out, entity.getSender());
+
+        DHTValue value = entity.getValue();
+        out.writeDHTValueType(value.getValueType());
+        out.writeVersion(value.getVersion());
+        byte[] data = value.getValue();
+        out.writeShort(data.length);
+        out.write(data, 0, data.length);
+        return end(out);
+    }
+
+    /**
+     * Returns the record that removes the given value.
+     */
+    private byte[] removeRecord(KUID primaryKey, KUID secondaryKey) {
+        try {
+            return end(begin(REMOVE, primaryKey, secondaryKey));
+        } catch (IOException err) {
+            // Writes into a byte array
+            throw new RuntimeException(err);
+        }
+    }
+
+    private MessageOutputStream begin(byte type, KUID primaryKey, KUID secondaryKey) throws IOException {
+        buffer.reset();
+        MessageOutputStream out = new MessageOutputStream(buffer);
+        out.writeInt(0); // length
+        out.writeInt(0); // checksum
+        out.writeByte(type);
+        primaryKey.write(out);
+        secondaryKey.write(out);
+        return out;
+    }
+
+    private byte[] end(MessageOutputStream out) throws IOException {
+        out.flush();
+        byte[] record = buffer.toByteArray();
+        int size = record.length - RECORD_HEADER;
+
+        crc.reset();
+        crc.update(record, RECORD_HEADER, size);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(size);
+        header.putInt((int)crc.getValue());
+        return record;
+    }
+
+    /**
+     * Appends the given record to the log and returns its length.
+     */
+    private int write(byte[] record) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(record);
+        while (src.hasRemaining()) {
+            channel.write(src, length + src.position());
+        }
+        length += record.length;
+        return record.length;
+    }
+
+    /**
+     * Writes a Contact with everything that is needed to
+     * recreate it.
+     */
+    private static void writeContact(MessageOutputStream out, Contact node) throws IOException {
+        out.writeVendor(node.getVendor());
+        out.writeVersion(node.getVersion());
+        out.writeKUID(node.getNodeID());
+        writeSocketAddress(out, node.getContactAddress());
+        writeSocketAddress(out, node.getSourceAddress());
+        out.writeInt(node.getInstanceID());
+        out.writeByte(node.getFlags());
+    }
+
+    private static Contact readContact(MessageInputStream in) throws IOException {
+        Vendor vendor = in.readVendor();
+        Version version = in.readVersion();
+        KUID nodeId = in.readKUID();
+        SocketAddress contactAddress = readSocketAddress(in);
+        SocketAddress sourceAddress = readSocketAddress(in);
+        int instanceId = in.readInt();
+        int flags = in.readUnsignedByte();
+
+        return ContactFactory.createUnknownContact(sourceAddress, vendor, version,
+                nodeId, contactAddress, instanceId, flags);
+    }
+
+    /**
+     * Unlike the message format this keeps any address, even
+     * one that is not routable.
+     */
+    private static void writeSocketAddress(MessageOutputStream out, SocketAddress addr) throws IOException {
+        if (addr instanceof InetSocketAddress
+                && !((InetSocketAddress)addr).isUnresolved()) {
+            InetSocketAddress iaddr = (InetSocketAddress)addr;
+            out.writeInetAddress(iaddr.getAddress());
+            out.writePort(iaddr.getPort());
+        } else {
+            out.writeByte(0);
+        }
+    }
+
+    private static SocketAddress readSocketAddress(MessageInputStream in) throws IOException {
+        InetAddress addr = in.readInetAddress();
+        if (addr == null) {
+            return null;
+        }
+        return new InetSocketAddress(addr, in.readPort());
+    }
+
+    /**
+     * Compacts the log if the records that were replaced or removed
+     * take up more space than the live ones.
+     */
+    private void compactIfNecessary() {
+        long garbage = length - 4L - liveBytes;
+        if (length >= MIN_COMPACT_SIZE && garbage > liveBytes) {
+            try {
+                compact();
+            } catch (IOException err) {
+                LOG.error("IOException", err);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live records.
+     */
+    public synchronized void compact() throws IOException {
+        File tmp = getCompactFile();
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+
+        Map<Bag, long[]> positions = new HashMap<Bag, long[]>();
+        try {
+            out.setLength(0L);
+            out.writeInt(MAGIC);
+            FileChannel dst = out.getChannel();
+            long position = 4L;
+
+            for (Bag bag : database.values()) {
+                long[] moved = bag.positions.clone();
+                for (int i = 0; i < bag.size; i++) {
+                    if (bag.positions[i] < 0L) {
+                        continue;
+                    }
+
+                    long count = 0L;
+                    while (count < bag.sizes[i]) {
+                        count += channel.transferTo(bag.positions[i] + count,
+                                bag.sizes[i] - count, dst.position(position + count));
+                    }
+                    moved[i] = position;
+                    position += bag.sizes[i];
+                }
+                positions.put(bag, moved);
+            }
+
+            dst.force(false);
+        } finally {
+            out.close();
+        }
+
+        raf.close();
+        if (!FileUtils.forceRename(tmp, file)) {
+            // Keep using the old log, the compacted one is left in place
+            // until the next compaction overwrites it
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            throw new IOException("Could not replace " + file);
+        }
+
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        for (Map.Entry<Bag, long[]> entry : positions.entrySet()) {
+            Bag bag = entry.getKey();
+            System.arraycopy(entry.getValue(), 0, bag.positions, 0, bag.size);
+        }
+        length = raf.length();
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Compacted " + file + " to " + length + " bytes");
+        }
+    }
+
+    /**
+     * Returns the file the log is compacted into before it replaces the log.
+     */
+    private File getCompactFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * The Database lives in its own file and cannot be serialized.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        throw new NotSerializableException(getClass().getName());
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("File: ").append(file).append("\n");
+        buffer.append("Size: ").append(length).append("\n");
+        buffer.append("TOTAL: ").append(getKeyCount())
+            .append("/").append(getValueCount()).append("\n");
+        return buffer.toString();
+    }
+
+    /**
+     * The index entries of the values under one primary key. Values are
+     * few per key, so the secondary keys are searched linearly.
+     */
+    private static class Bag {
+
+        /** The secondary keys, one after the other. */
+        private byte[] keys = new byte[KUID.LENGTH];
+
+        /** The positions of the records or -1 for local values. */
+        private long[] positions = new long[1];
+
+        /** The lengths of the records. */
+        private int[] sizes = new int[1];
+
+        /** The IPv4 addresses of the creators or 0. */
+        private int[] addresses = new int[1];
+
+        /** The creation times of the values. */
+        private long[] creationTimes = new long[1];
+
+        /** The types of the values. */
+        private int[] valueTypes = new int[1];
+
+        /** The local values, if there are any. */
+        private DHTValueEntity[] locals;
+
+        private int size;
+
+        /**
+         * The request load associated with this bag
+         */
+        private float requestLoad;
+
+        /**
+         * The time the request load was last updated
+         */
+        private long lastRequestTime;
+
+        int indexOf(KUID secondaryKey) {
+            byte[] key = secondaryKey.getBytes();
+            outer: for (int i = 0; i < size; i++) {
+                int offset = i * KUID.LENGTH;
+                for (int j = 0; j < KUID.LENGTH; j++) {
+                    if (keys[offset + j] != key[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        KUID getSecondaryKey(int index) {
+            return KUID.createWithBytes(Arrays.copyOfRange(
+                    keys, index * KUID.LENGTH, (index + 1) * KUID.LENGTH));
+        }
+
+        void add(KUID secondaryKey, long position, int length, int address, 
+                long creationTime, int valueType, DHTValueEntity local) {
+            if (size == positions.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity * KUID.LENGTH);
+                positions = Arrays.copyOf(positions, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                addresses = Arrays.copyOf(addresses, capacity);
+                creationTimes = Arrays.copyOf(creationTimes, capacity);
+                valueTypes = Arrays.copyOf(valueTypes, capacity);
+                if (locals != null) {
+                    locals = Arrays.copyOf(locals, capacity);
+                }
+            }
+
+            secondaryKey.getBytes(0, keys, size * KUID.LENGTH, KUID.LENGTH);
+            positions[size] = position;
+            sizes[size] = length;
+            addresses[size] = address;
+            creationTimes[size] = creationTime;
+            valueTypes[size] = valueType;
+            if (local != null) {
+                if (locals == null) {
+                    locals = new DHTValueEntity[positions.length];
+                }
+                locals[size] = local;
+            } else if (locals != null) {
+                locals[size] = null;
+            }
+            size++;
+        }
+
+        void remove(int index) {
+            int last = size - 1;
+            if (index != last) {
+                System.arraycopy(keys, last * KUID.LENGTH, keys, index * KUID.LENGTH, KUID.LENGTH);
+                positions[index] = positions[last];
+                sizes[index] = sizes[last];
+                addresses[index] = addresses[last];
+                creationTimes[index] = creationTimes[last];
+                valueTypes[index] = valueTypes[last];
+                if (locals != null) {
+                    locals[index] = locals[last];
+                }
+            }
+            if (locals != null) {
+                locals[last] = null;
+            }
+            size = last;
+        }
+    }
+}
@@ -68,6 +68,9 @@ public class FindValueResponseHandler extends LookupResponseHandler<FindValueRes
     private final Collection<DHTValueEntity> entities 
         = new ArrayList<DHTValueEntity>();
     
+    /** The time when the first value was found or -1 */
+    private long timeToResult = -1L;
+    
     public FindValueResponseHandler(Context context, EntityKey lookupKey) {
         super(context, lookupKey.getPrimaryKey());
         this.lookupKey = lookupKey;
@@ -122,11 +125,24 @@ public class FindValueResponseHandler extends LookupResponseHandler<FindValueRes
         
         lookupStat.setHops(currentHop, true);
         lookupStat.setTime((int)time, true);
+        lookupStat.setSpeculativeRequests(getSpeculativeRequestCount());
+        lookupStat.setParallelism(getMaxParallelism());
+        if (timeToResult >= 0L) {
+            lookupStat.setTimeToResult((int)timeToResult);
+        }
         
         setReturnValue(new FindValueResult(
                 lookupKey, path, entities, entityKeys, time, currentHop));
     }
     
+    /**
+     * Returns the time it took to find the first value
+     * or -1 if no value was found yet
+     */
+    public long getTimeToResult() {
+        return timeToResult;
+    }
+    
     /**
      * Returns the type of value we're looking for
      */
@@ -164,6 +180,10 @@ public class FindValueResponseHandler extends LookupResponseHandler<FindValueRes
             return false;
         }
         
+        if (timeToResult < 0L) {
+            timeToResult = getElapsedTime();
+        }
+        
         addToResponsePath(response);
         
         // Terminate the FIND_VALUE lookup if it isn't
@@ -26,12 +26,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -132,7 +135,47 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
      * from the response Set. 
      */
     private boolean deleteFurthest = true;
-    
+
+    /**
+     * Whether or not the number of parallel requests adapts to the
+     * observed round trip times and timeouts.
+     */
+    private boolean adaptive = false;
+
+    /**
+     * The number of parallel requests of an adaptive lookup. It grows
+     * with every response and is halved on every timeout.
+     */
+    private float window = 0f;
+
+    /** The largest number of parallel requests of this lookup. */
+    private int maxParallelism = 0;
+
+    /** The smoothed round trip time of the responses or -1. */
+    private long srtt = -1L;
+
+    /** The round trip time variation of the responses. */
+    private long rttvar = 0L;
+
+    /** The active requests of an adaptive lookup. */
+    private final Map<KUID, ActiveRequest> activeRequests
+        = new HashMap<KUID, ActiveRequest>();
+
+    /**
+     * The active requests of an adaptive lookup that were not answered
+     * in the expected time and no longer take up a parallel slot.
+     */
+    private final Set<KUID> stragglers = new HashSet<KUID>();
+
+    /** The ticker of an adaptive lookup. */
+    private ScheduledFuture<?> ticker;
+
+    /** The total number of requests sent. */
+    private int requestCount = 0;
+
+    /** The number of requests sent in place of stragglers. */
+    private int speculativeRequestCount = 0;
+
     /**
      * Creates a new LookupResponseHandler.
      */
@@ -146,6 +189,7 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         setParallelism(-1); // Default number of parallel lookups
         setResultSetSize(-1); // Default result set size
         setDeleteFurthest(LookupSettings.DELETE_FURTHEST_CONTACT.getValue());
+        setAdaptive(LookupSettings.ADAPTIVE_LOOKUP.getValue());
     }
     
     /**
@@ -202,7 +246,61 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
     public int getParallelism() {
         return parellelism;
     }
-    
+
+    /**
+     * Sets whether or not the number of parallel lookups adapts
+     * to the observed round trip times and timeouts. An adaptive
+     * lookup starts with {@link #getParallelism()} parallel lookups,
+     * sends an additional request for each request that takes longer
+     * than expected and finishes as soon as the k-closest Contacts
+     * have responded.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Returns whether or not the number of parallel lookups
+     * adapts to the observed round trip times and timeouts.
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Returns the number of parallel lookups this handler
+     * currently maintains.
+     */
+    protected int getCurrentParallelism() {
+        if (isAdaptive()) {
+            return (int)window;
+        }
+        return getParallelism();
+    }
+
+    /**
+     * Returns the largest number of parallel lookups this
+     * handler maintained so far.
+     */
+    public int getMaxParallelism() {
+        return maxParallelism;
+    }
+
+    /**
+     * Returns the total number of requests sent so far.
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns the number of requests that were sent in place of
+     * requests that took longer than expected.
+     */
+    public int getSpeculativeRequestCount() {
+        return speculativeRequestCount;
+    }
+
     /**
      * Adds the given Contact to the collection of Contacts
      * that must be contacted during the lookup.
@@ -342,7 +440,9 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         }
         
         // Go Go Go!
-        startTime = System.currentTimeMillis();  
+        startTime = System.currentTimeMillis();
+        window = getParallelism();
+        maxParallelism = alphaList.size();
         for(Contact node : alphaList) {
             try {
                 lookup(node);
@@ -350,7 +450,13 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
                 throw new DHTException(err);
             }
         }
-        
+
+        if (isAdaptive() && hasActiveSearches()) {
+            long tick = LookupSettings.ADAPTIVE_LOOKUP_TICK.getValue();
+            ticker = context.getDHTExecutorService().scheduleWithFixedDelay(
+                    new Ticker(), tick, tick, TimeUnit.MILLISECONDS);
+        }
+
         finishLookupIfDone();
     }
     
@@ -358,7 +464,11 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
     protected void response(ResponseMessage message, long time) throws IOException {
         decrementActiveSearches();
         Contact contact = message.getContact();
-        
+
+        if (isAdaptive()) {
+            updateWindow(contact.getNodeID(), time);
+        }
+
         Integer hop = hopMap.remove(contact.getNodeID());
         assert (hop != null);
         
@@ -435,7 +545,13 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         
         Integer hop = hopMap.remove(nodeId);
         assert (hop != null);
-        
+
+        if (isAdaptive()) {
+            activeRequests.remove(nodeId);
+            stragglers.remove(nodeId);
+            window = Math.max(1f, window / 2f);
+        }
+
         if (routeTableNodes.contains(nodeId)) {
             routeTableFailureCount++;
         }
@@ -533,13 +649,26 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
                                 + " queried Nodes with " + bestResponse + " as best match");
                     }
                 }
-                
+
+                // The k-closest Contacts have responded and the requests
+                // that are still active are to Contacts further away
+                if (isAdaptive() && !hasCloserActiveSearches(worst)) {
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Lookup for " + lookupId + " terminates after "
+                                + currentHop + " hops and " + totalTime + "ms with "
+                                + getActiveSearches() + " active searches left");
+                    }
+                    killActiveSearches();
+                }
+
                 // finishLookup() gets called if activeSearches is zero!
                 return;
             }
         }
-        
-        int numLookups = getParallelism() - getActiveSearches();
+
+        // Stragglers don't count against the parallel lookups
+        int numLookups = getCurrentParallelism()
+            - (getActiveSearches() - stragglers.size());
         if (numLookups > 0) {
             Collection<Contact> toQueryList = getContactsToQuery(lookupId, numLookups);
             for (Contact node : toQueryList) {
@@ -571,9 +700,71 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         
         if (requestWasSent) {
             incrementActiveSearches();
+            requestCount++;
+
+            if (isAdaptive()) {
+                activeRequests.put(node.getNodeID(), new ActiveRequest(node));
+            }
+
+            int parallel = getActiveSearches() - stragglers.size();
+            if (parallel > maxParallelism) {
+                maxParallelism = parallel;
+            }
         }
         return requestWasSent;
     }
+
+    /**
+     * Returns the time in which a response to the given request
+     * is expected. Uses the round trip times of the responses to
+     * this lookup or, before the first response, twice the last
+     * round trip time of the Contact.
+     */
+    private long getExpectedRoundTripTime(ActiveRequest request) {
+        if (srtt >= 0L) {
+            return srtt + 4L * rttvar;
+        }
+        return request.expectedRoundTripTime;
+    }
+
+    /**
+     * Updates the round trip time estimate and the number of
+     * parallel requests of an adaptive lookup with the response
+     * from the given Node.
+     */
+    private void updateWindow(KUID nodeId, long time) {
+        activeRequests.remove(nodeId);
+        boolean straggler = stragglers.remove(nodeId);
+
+        if (time >= 0L) {
+            if (srtt < 0L) {
+                srtt = time;
+                rttvar = time / 2L;
+            } else {
+                rttvar = (3L * rttvar + Math.abs(srtt - time)) / 4L;
+                srtt = (7L * srtt + time) / 8L;
+            }
+        }
+
+        // Responses to stragglers don't open the window any further
+        if (!straggler) {
+            int maxWindow = LookupSettings.MAX_ADAPTIVE_PARALLELISM.getValue();
+            window = Math.min(maxWindow, window + 1f / window);
+        }
+    }
+
+    /**
+     * Returns true if any of the active requests is to a Contact
+     * that is closer to the lookup ID than the given ID.
+     */
+    private boolean hasCloserActiveSearches(KUID nodeId) {
+        for (KUID active : activeRequests.keySet()) {
+            if (active.isNearerTo(lookupId, nodeId)) {
+                return true;
+            }
+        }
+        return false;
+    }
     
     /**
      * Creates and returns a LookupRequest message.
@@ -586,9 +777,41 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
      */
     private void finishLookupIfDone() {
         if (!isDone() && !isCancelled() && !hasActiveSearches()) {
+            if (ticker != null) {
+                ticker.cancel(false);
+            }
             finishLookup();
         }
     }
+
+    /**
+     * Marks the requests that were not answered in the expected
+     * time as stragglers and sends requests to the next Contacts
+     * in their place.
+     */
+    @Override
+    protected void tick() {
+        long now = System.currentTimeMillis();
+        boolean overdue = false;
+        for (Entry<KUID, ActiveRequest> entry : activeRequests.entrySet()) {
+            ActiveRequest request = entry.getValue();
+            if (now - request.sendTime >= getExpectedRoundTripTime(request)
+                    && stragglers.add(entry.getKey())) {
+                overdue = true;
+            }
+        }
+
+        if (overdue) {
+            int count = requestCount;
+            try {
+                nextLookupStep();
+            } catch (IOException err) {
+                LOG.error("IOException", err);
+            }
+            speculativeRequestCount += requestCount - count;
+            finishLookupIfDone();
+        }
+    }
     
     /**
      * Called when the lookup finishes.
@@ -621,6 +844,8 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
      */
     protected void killActiveSearches() {
         activeSearches = 0;
+        activeRequests.clear();
+        stragglers.clear();
     }
     
     /**
@@ -788,6 +1013,37 @@ public abstract class LookupResponseHandler<V extends LookupResult> extends Abst
         return currentHop;
     }
     
+    /**
+     * An active request of an adaptive lookup.
+     */
+    private class ActiveRequest {
+
+        /** The time when the request was sent. */
+        private final long sendTime = System.currentTimeMillis();
+
+        /** The round trip time expected before the first response. */
+        private final long expectedRoundTripTime;
+
+        private ActiveRequest(Contact node) {
+            long rtt = node.getRoundTripTime();
+            expectedRoundTripTime = rtt > 0L ? 2L * rtt : getTimeout();
+        }
+    }
+
+    /**
+     * Checks an adaptive lookup for requests that take
+     * longer than expected.
+     */
+    private class Ticker implements Runnable {
+        public void run() {
+            if (isDone() || isCancelled()) {
+                ticker.cancel(false);
+                return;
+            }
+            handleTick();
+        }
+    }
+
     @Override
     public String toString() {
         long time = getElapsedTime();
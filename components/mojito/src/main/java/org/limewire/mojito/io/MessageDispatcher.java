@@ -22,15 +22,17 @@ package org.limewire.mojito.io;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.io.NetworkUtils;
 import org.limewire.mojito.Context;
 import org.limewire.mojito.KUID;
@@ -44,6 +46,7 @@ import org.limewire.mojito.handler.request.PingRequestHandler;
 import org.limewire.mojito.handler.request.StatsRequestHandler;
 import org.limewire.mojito.handler.request.StoreRequestHandler;
 import org.limewire.mojito.io.MessageDispatcher.MessageDispatcherEvent.EventType;
+import org.limewire.mojito.io.ReceiptTable.ReceiptListener;
 import org.limewire.mojito.io.Tag.Receipt;
 import org.limewire.mojito.messages.DHTMessage;
 import org.limewire.mojito.messages.DHTSecureMessage;
@@ -64,7 +67,6 @@ import org.limewire.mojito.messages.StoreResponse;
 import org.limewire.mojito.routing.Contact;
 import org.limewire.mojito.settings.NetworkSettings;
 import org.limewire.mojito.util.ContactUtils;
-import org.limewire.mojito.util.FixedSizeHashMap;
 import org.limewire.mojito.util.HostFilter;
 import org.limewire.mojito.util.MessageUtils;
 import org.limewire.security.SecureMessage;
@@ -85,8 +87,8 @@ public abstract class MessageDispatcher {
     private static final int MAX_MESSAGE_SIZE
         = NetworkSettings.MAX_MESSAGE_SIZE.getValue();
     
-    /** Map of Messages (responses) we're awaiting. */
-    private final ReceiptMap receiptMap = new ReceiptMap(512);
+    /** Receipts of the requests we're awaiting responses for. */
+    private final ReceiptTable receiptTable;
     
     /** Handle of the Context. */
     protected final Context context;
@@ -103,6 +105,18 @@ public abstract class MessageDispatcher {
      */
     private ScheduledFuture cleanupTaskFuture;
     
+    /**
+     * The Executor incoming requests and responses are processed on, 
+     * or null to process them with process(Runnable).
+     */
+    private volatile Executor processorExecutor;
+    
+    /**
+     * The ExecutorService started for MESSAGE_PROCESSOR_THREADS, 
+     * if any.
+     */
+    private ExecutorService processorPool;
+    
     /** A list of MessageDispatcherListeners */
     private final List<MessageDispatcherListener> listeners 
         = new CopyOnWriteArrayList<MessageDispatcherListener>();
@@ -116,6 +130,20 @@ public abstract class MessageDispatcher {
         findValueHandler = new FindValueRequestHandler(context, findNodeHandler);
         storeHandler = new StoreRequestHandler(context);
         statsHandler = new StatsRequestHandler(context);
+        
+        ReceiptListener listener = new ReceiptListener() {
+            public void handleTimeout(Receipt receipt, boolean timeout) {
+                process(new TimeoutProcessor(receipt, timeout));
+            }
+            
+            public void handleTick(Receipt receipt) {
+                process(new TickProcessor(receipt));
+            }
+        };
+        
+        receiptTable = new ReceiptTable(listener, 
+                NetworkSettings.CLEANUP_RECEIPTS_DELAY.getValue(), 
+                NetworkSettings.MAX_RECEIPTS.getValue());
     }
     
     /**
@@ -160,19 +188,28 @@ public abstract class MessageDispatcher {
      */
     public void start() {
         // Start the CleanupTask
-    	synchronized (receiptMap) {
+    	synchronized (receiptTable) {
             if (cleanupTaskFuture == null) {
                 long delay = NetworkSettings.CLEANUP_RECEIPTS_DELAY.getValue();
                 
+                // The ReceiptTable is thread-safe, expire the Receipts
+                // right here and process() only the timeouts and ticks
                 Runnable task = new Runnable() {
                     public void run() {
-                        process(new CleanupProcessor());
+                        receiptTable.expire(System.currentTimeMillis());
                     }
                 };
                 
                 cleanupTaskFuture = context.getDHTExecutorService().scheduleWithFixedDelay(
                       task, 0L, delay, TimeUnit.MILLISECONDS);
             }
+            
+            int threads = NetworkSettings.MESSAGE_PROCESSOR_THREADS.getValue();
+            if (processorExecutor == null && threads > 0) {
+                processorPool = ExecutorsHelper.newFixedSizeThreadPool(
+                        threads, context.getName() + "-MessageProcessor");
+                processorExecutor = processorPool;
+            }
         }
     }
     
@@ -181,11 +218,17 @@ public abstract class MessageDispatcher {
      */
     public void stop() {
         // Stop the CleanupTask
-    	synchronized (receiptMap) {
+    	synchronized (receiptTable) {
             if (cleanupTaskFuture != null) {
                 cleanupTaskFuture.cancel(true);
                 cleanupTaskFuture = null;
             }
+            
+            if (processorPool != null) {
+                processorPool.shutdown();
+                processorPool = null;
+                processorExecutor = null;
+            }
         }
     }
     
@@ -197,6 +240,53 @@ public abstract class MessageDispatcher {
         clear();
     }
     
+    /**
+     * Sets the Executor incoming requests and responses are processed
+     * on. Request and response handlers may then run concurrently.
+     * The default is null, processing them with process(Runnable).
+     */
+    public void setProcessorExecutor(Executor processorExecutor) {
+        synchronized (receiptTable) {
+            if (processorPool != null) {
+                processorPool.shutdown();
+                processorPool = null;
+            }
+            this.processorExecutor = processorExecutor;
+        }
+    }
+    
+    /**
+     * Returns the number of requests we're awaiting responses for.
+     */
+    public int getReceiptCount() {
+        return receiptTable.size();
+    }
+    
+    /**
+     * Returns the number of requests that timed out.
+     */
+    public long getReceiptTimeoutCount() {
+        return receiptTable.getTimeouts();
+    }
+    
+    /**
+     * Returns the number of requests that were evicted because
+     * we were awaiting too many responses.
+     */
+    public long getReceiptEvictedCount() {
+        return receiptTable.getEvictions();
+    }
+    
+    /**
+     * Returns the fraction of responses the request was found for
+     * or 0 if we have not received any responses.
+     */
+    public float getReceiptHitRate() {
+        long hits = receiptTable.getHits();
+        long total = hits + receiptTable.getMisses();
+        return total == 0L ? 0f : (float)hits / total;
+    }
+    
     /**
      * Returns whether or not incoming Requests or Responses
      * are accepted. The default implementation returns true.
@@ -461,31 +551,31 @@ public abstract class MessageDispatcher {
                 return;
             }
             
-            Receipt receipt = null;
+            Receipt receipt = receiptTable.get(messageId);
             
-            synchronized(receiptMap) {
-                receipt = receiptMap.get(messageId);
+            if (receipt != null) {
+                // The SecurityToken check should catch all malicious
+                // and some buggy Nodes. Do some additional sanity
+                // checks to make sure the NodeID, IP:Port and 
+                // response type have the expected values.
+                if (!receipt.sanityCheck(response)) {
+                    if (LOG.isWarnEnabled()) {
+                        LOG.warn("Response from " + response.getContact() 
+                                + " did not pass the sanity check");
+                    }
+                    return;
+                }
                 
-                if (receipt != null) {
+                // OK, all checks passed. We can remove the receipt now
+                // unless it timed out in the meantime which makes this
+                // a late response.
+                if (receiptTable.remove(receipt)) {
                     receipt.received();
-            
-                    // The SecurityToken check should catch all malicious
-                    // and some buggy Nodes. Do some additional sanity
-                    // checks to make sure the NodeID, IP:Port and 
-                    // response type have the expected values.
-                    if (!receipt.sanityCheck(response)) {
-                        if (LOG.isWarnEnabled()) {
-                            LOG.warn("Response from " + response.getContact() 
-                                    + " did not pass the sanity check");
-                        }
-                        return;
-                    }
                     
                     // Set the Round Trip Time (RTT)
                     message.getContact().setRoundTripTime(receipt.time());
-                    
-                    // OK, all checks passed. We can remove the receipt now!
-                    receiptMap.remove(messageId);
+                } else {
+                    receipt = null;
                 }
             }
             
@@ -530,7 +620,7 @@ public abstract class MessageDispatcher {
         if (response instanceof DHTSecureMessage) {
             verify((DHTSecureMessage)response, processor);
         } else {
-            process(processor);
+            processMessage(processor);
         }
     }
     
@@ -542,7 +632,28 @@ public abstract class MessageDispatcher {
         if (request instanceof DHTSecureMessage) {
             verify((DHTSecureMessage)request, processor);
         } else {
+            processMessage(processor);
+        }
+    }
+    
+    /**
+     * Runs a Request- or ResponseProcessor on the processor Executor
+     * if there is one and calls process(Runnable) otherwise.
+     */
+    private void processMessage(Runnable processor) {
+        Executor executor = processorExecutor;
+        if (executor == null) {
             process(processor);
+            return;
+        }
+        
+        try {
+            executor.execute(processor);
+        } catch (RejectedExecutionException err) {
+            // The pool was shut down by stop()
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Dropping message because the processor Executor is shut down", err);
+            }
         }
     }
     
@@ -592,9 +703,7 @@ public abstract class MessageDispatcher {
      * Clears the output queue and receipt map.
      */
     protected void clear() {
-        synchronized (receiptMap) {
-            receiptMap.clear();
-        }
+        receiptTable.clear();
     }
     
     protected void handleError(Tag tag, IOException err) {
@@ -641,57 +750,6 @@ public abstract class MessageDispatcher {
         }
     }
     
-    /**
-     * A map of MessageID -> Receipts.
-     */
-    @SuppressWarnings("serial")
-    private class ReceiptMap extends FixedSizeHashMap<MessageID, Receipt> {
-        
-        public ReceiptMap(int maxSize) {
-            super(maxSize);
-        }
-
-        public void add(Receipt receipt) {
-            put(receipt.getMessageID(), receipt);
-        }
-        
-        /**
-         * Cleans up the Map and kicks off Ticks. Meant to be
-         * called by a scheduled task.
-         */
-        public void cleanup() {
-            for(Iterator<Receipt> it = values().iterator(); it.hasNext(); ) {
-                Receipt receipt = it.next();
-                
-                if (receipt.isCancelled()) {
-                    // The user cancelled the Future
-                    it.remove();
-                	
-                } else if (receipt.timeout()) {
-                    receipt.received();
-                    it.remove();
-                    
-                    process(new TimeoutProcessor(receipt, true));
-                } else {
-                    process(new TickProcessor(receipt));
-                }
-            }
-        }
-        
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<MessageID, Receipt> eldest) {
-            Receipt receipt = eldest.getValue();
-            
-            boolean timeout = receipt.timeout();
-            if (super.removeEldestEntry(eldest) || timeout) {
-                receipt.received();
-                process(new TimeoutProcessor(receipt, timeout));
-                return true;
-            }
-            return false;
-        }
-    }
-    
     /**
      * Calls submit(Tag) from the processor Thread.
      */
@@ -709,7 +767,7 @@ public abstract class MessageDispatcher {
     }
     
     /**
-     * Calls ReceiptMap.add(Receipt) from the processor Thread.
+     * Calls ReceiptTable.add(Receipt) from the processor Thread.
      */
     private class RegisterProcessor implements Runnable {
         
@@ -720,21 +778,7 @@ public abstract class MessageDispatcher {
         }
         
         public void run() {
-            synchronized (receiptMap) {
-                receiptMap.add(receipt);                
-            }
-        }
-    }
-    
-    /**
-     * Calls ReceiptMap.cleanup() from the processor Thread.
-     */
-    private class CleanupProcessor implements Runnable {
-        
-        public void run() {
-            synchronized (receiptMap) {
-                receiptMap.cleanup();                
-            }
+            receiptTable.add(receipt);
         }
     }
     
@@ -753,7 +797,7 @@ public abstract class MessageDispatcher {
         
         public void handleSecureMessage(SecureMessage sm, boolean passed) {
             if (passed) {
-                process(this);
+                processMessage(this);
             } else if (LOG.isErrorEnabled()) {
                 LOG.error(response.getContact() 
                         + " send us a secure response Message but the signatures do not match!");
@@ -827,7 +871,7 @@ public abstract class MessageDispatcher {
         
         public void handleSecureMessage(SecureMessage sm, boolean passed) {
             if (passed) {
-                process(this);
+                processMessage(this);
             } else if (LOG.isErrorEnabled()) {
                 LOG.error(request.getContact() 
                         + " send us a secure request Message but the signatures do not match!");
@@ -884,7 +928,7 @@ public abstract class MessageDispatcher {
     /**
      * An implementation of Runnable to handle Timeouts. The eviction
      * of ResponseHandlers (we send too many requests and we hit the
-     * ReceiptMap limit) is also treated as a timeout.
+     * ReceiptTable limit) is also treated as a timeout.
      */
     private class TimeoutProcessor implements Runnable {
         
@@ -915,7 +959,7 @@ public abstract class MessageDispatcher {
                 receipt.getResponseHandler().handleTimeout(nodeId, dst, msg, time);
             } catch (IOException e) {
                 receipt.handleError(e);
-                LOG.error("ReceiptMap removeEldestEntry error: ", e);
+                LOG.error("An error occured during processing the timeout", e);
             }
         }
     }
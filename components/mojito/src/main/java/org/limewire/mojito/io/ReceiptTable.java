@@ -0,0 +1,256 @@
+/*
+ * Mojito Distributed Hash Table (Mojito DHT)
+ * Copyright (C) 2006-2007 LimeWire LLC
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.limewire.mojito.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.limewire.collection.TimerWheel;
+import org.limewire.mojito.io.Tag.Receipt;
+import org.limewire.mojito.messages.MessageID;
+
+/**
+ * The Receipts of the requests we're awaiting responses for.
+ * <p>
+ * Receipts are looked up in a <code>ConcurrentHashMap</code> so that
+ * sending requests and receiving responses never wait on each other.
+ * Timeouts are found with a {@link TimerWheel}: every Receipt is
+ * scheduled at the time it times out, and each call to {@link #expire(long)}
+ * only looks at the Receipts that are due. Receipts that are answered are
+ * removed from the map right away and dropped from the wheel when they
+ * come up. The wheel is guarded by its own lock, which responses never
+ * take.
+ * <p>
+ * Whoever removes a Receipt from the map owns it: a response and a
+ * timeout for the same Receipt can race, but only one of them wins.
+ */
+class ReceiptTable {
+
+    /**
+     * Callback for Receipts that timed out, were evicted or
+     * are still waiting when they come up.
+     */
+    static interface ReceiptListener {
+
+        /**
+         * Called for a Receipt that was removed because it timed out
+         * or (<code>timeout</code> is false) because the table is full.
+         */
+        public void handleTimeout(Receipt receipt, boolean timeout);
+
+        /**
+         * Called for a Receipt that came up before it timed out.
+         */
+        public void handleTick(Receipt receipt);
+    }
+
+    private final ConcurrentMap<MessageID, Receipt> receipts
+        = new ConcurrentHashMap<MessageID, Receipt>();
+
+    /** LOCKING: lock the wheel itself. */
+    private final TimerWheel<Receipt> wheel;
+
+    /** The Receipts that came up.  Only used by {@link #expire(long)}. */
+    private final List<Receipt> expired = new ArrayList<Receipt>();
+
+    private final ReceiptListener listener;
+
+    private final int maxSize;
+
+    /** The number of Receipts in the map. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param tickMillis the length of a tick of the timer wheel
+     * @param maxSize the number of Receipts above which the one
+     * that times out next is evicted
+     */
+    ReceiptTable(ReceiptListener listener, long tickMillis, int maxSize) {
+        this.listener = listener;
+        this.maxSize = maxSize;
+        this.wheel = new TimerWheel<Receipt>(tickMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds a Receipt of a request that was just sent.
+     */
+    public void add(Receipt receipt) {
+        if (receipts.put(receipt.getMessageID(), receipt) == null) {
+            size.incrementAndGet();
+        }
+        synchronized (wheel) {
+            wheel.schedule(receipt);
+        }
+
+        if (size.get() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Returns the Receipt for the given MessageID or null if
+     * there is none.
+     */
+    public Receipt get(MessageID messageId) {
+        Receipt receipt = receipts.get(messageId);
+        if (receipt != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return receipt;
+    }
+
+    /**
+     * Removes the given Receipt and returns true if it was in the
+     * table, that is it did not timeout or get evicted in the meantime.
+     */
+    public boolean remove(Receipt receipt) {
+        if (receipts.remove(receipt.getMessageID(), receipt)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the Receipts that timed out by the given time
+     * and hands them to the listener. Meant to be called periodically
+     * by a single Thread.
+     */
+    public void expire(long now) {
+        synchronized (wheel) {
+            wheel.expire(now, expired);
+        }
+
+        try {
+            for (Receipt receipt : expired) {
+                if (receipts.get(receipt.getMessageID()) != receipt) {
+                    // Answered, evicted or cleared
+                    continue;
+                }
+
+                if (receipt.isCancelled()) {
+                    // The user cancelled the Future
+                    remove(receipt);
+
+                } else if (receipt.timeout()) {
+                    if (remove(receipt)) {
+                        receipt.received();
+                        timeouts.incrementAndGet();
+                        listener.handleTimeout(receipt, true);
+                    }
+
+                } else {
+                    // Up to a tick early, it's due with the next one
+                    synchronized (wheel) {
+                        wheel.schedule(receipt);
+                    }
+                    listener.handleTick(receipt);
+                }
+            }
+        } finally {
+            expired.clear();
+        }
+    }
+
+    /**
+     * Evicts the Receipt that times out next.
+     */
+    private void evict() {
+        Receipt evicted = null;
+        synchronized (wheel) {
+            Receipt receipt;
+            while ((receipt = wheel.peek()) != null) {
+                wheel.cancel(receipt);
+                if (remove(receipt)) {
+                    evicted = receipt;
+                    break;
+                }
+            }
+        }
+
+        if (evicted != null) {
+            evicted.received();
+            evictions.incrementAndGet();
+            listener.handleTimeout(evicted, false);
+        }
+    }
+
+    /**
+     * Removes all Receipts.
+     */
+    public void clear() {
+        synchronized (wheel) {
+            wheel.clear();
+        }
+        receipts.clear();
+        size.set(0);
+    }
+
+    /**
+     * Returns the number of requests we're awaiting responses for.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns the number of responses a Receipt was found for.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of responses no Receipt was found for
+     * (late and unsolicited responses).
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of Receipts that timed out.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of Receipts that were evicted because
+     * the table was full.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
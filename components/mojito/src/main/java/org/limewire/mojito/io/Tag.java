@@ -27,6 +27,7 @@ import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.limewire.collection.TimerWheel;
 import org.limewire.mojito.KUID;
 import org.limewire.mojito.handler.ResponseHandler;
 import org.limewire.mojito.messages.DHTMessage;
@@ -223,7 +224,7 @@ public class Tag {
      * The Receipt class keeps track of requests we've sent and 
      * handles the response messages.
      */
-    public class Receipt {
+    public class Receipt extends TimerWheel.Timer {
         
         private long received = -1L;
         
@@ -294,24 +295,36 @@ public class Tag {
             return System.currentTimeMillis() - sent;
         }
         
+        /**
+         * Returns the time in milliseconds after which this request
+         * times out, either the timeout it was sent with or the
+         * ResponseHandler's default timeout.
+         */
+        public long getTimeout() {
+            if (timeout >= 0L) {
+                return timeout;
+            }
+            return responseHandler.getTimeout();
+        }
+        
+        /**
+         * Returns the time in milliseconds at which this request
+         * times out.
+         */
+        @Override
+        public long getEventTime() {
+            return sent + getTimeout();
+        }
+        
         /**
          * Returns whether or not this request has timed-out.
          */
         public boolean timeout() {
-            long elapsed = elapsedTime();
-            
-            if(timeout < 0L) {
-                long t = responseHandler.getTimeout();
-                if(LOG.isDebugEnabled()) {
-                    LOG.debug("Default timeout: " + t + "ms for " + ContactUtils.toString(nodeId, dst));
-                }
-                return elapsed >= t;
-            } else {
-                if(LOG.isDebugEnabled()) {
-                    LOG.debug("Timeout: " + timeout + "ms for " + ContactUtils.toString(nodeId, dst));
-                }
-                return elapsed >= timeout;
+            long t = getTimeout();
+            if(LOG.isDebugEnabled()) {
+                LOG.debug("Timeout: " + t + "ms for " + ContactUtils.toString(nodeId, dst));
             }
+            return elapsedTime() >= t;
         }
         
         /**
@@ -79,6 +79,29 @@ public class LookupSettings extends MojitoProps {
         = FACTORY.createRemoteIntSetting("FIND_NODE_PARALLEL_LOOKUPS", 5, 
                 "Mojito.FindNodeParallelLookups", 1, 15);
 
+    /**
+     * Whether or not lookups adapt the number of parallel requests
+     * to the observed round trip times and timeouts.
+     */
+    public static final BooleanSetting ADAPTIVE_LOOKUP
+        = FACTORY.createRemoteBooleanSetting("ADAPTIVE_LOOKUP",
+                false, "Mojito.AdaptiveLookup");
+
+    /**
+     * The maximum number of parallel requests of an adaptive lookup.
+     */
+    public static final IntSetting MAX_ADAPTIVE_PARALLELISM
+        = FACTORY.createRemoteIntSetting("MAX_ADAPTIVE_PARALLELISM", 10,
+                "Mojito.MaxAdaptiveParallelism", 1, 30);
+
+    /**
+     * The interval in milliseconds in which an adaptive lookup
+     * checks for requests that take longer than expected.
+     */
+    public static final LongSetting ADAPTIVE_LOOKUP_TICK
+        = FACTORY.createRemoteLongSetting("ADAPTIVE_LOOKUP_TICK",
+                50L, "Mojito.AdaptiveLookupTick", 10L, 1000L);
+
     /**
      * Bootstrapping Node return an empty Collection of Contacts
      * for our FIND_NODE requests. This Setting controls whether or 
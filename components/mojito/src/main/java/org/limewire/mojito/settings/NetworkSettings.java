@@ -72,6 +72,20 @@ public final class NetworkSettings extends MojitoProps {
     public static final LongSetting CLEANUP_RECEIPTS_DELAY
         = FACTORY.createLongSetting("CLEANUP_RECEIPTS_DELAY", 50L);
     
+    /**
+     * The maximum number of requests we're awaiting responses for.
+     */
+    public static final IntSetting MAX_RECEIPTS
+        = FACTORY.createIntSetting("MAX_RECEIPTS", 4096);
+    
+    /**
+     * The number of Threads processing incoming requests and
+     * responses, or 0 to process them on the MessageDispatcher's
+     * own Thread.
+     */
+    public static final IntSetting MESSAGE_PROCESSOR_THREADS
+        = FACTORY.createIntSetting("MESSAGE_PROCESSOR_THREADS", 0);
+    
     /**
      * The buffer size for incoming messages.
      */
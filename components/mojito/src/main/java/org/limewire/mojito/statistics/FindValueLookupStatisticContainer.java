@@ -60,6 +60,22 @@ public class FindValueLookupStatisticContainer extends SingleLookupStatisticCont
      */
     public Statistic FIND_VALUE_FAILURE = new SimpleStatistic();
     
+    /**
+     * <tt>Statistic</tt> for the time until the first value was found.
+     */
+    public Statistic FIND_VALUE_LOOKUP_TIME_TO_RESULT = new SimpleStatistic();
+    
+    /**
+     * <tt>Statistic</tt> for the requests sent in place of requests
+     * that took longer than expected.
+     */
+    public Statistic FIND_VALUE_LOOKUP_SPECULATIVE_REQUESTS = new SimpleStatistic();
+    
+    /**
+     * <tt>Statistic</tt> for the largest number of parallel requests.
+     */
+    public Statistic FIND_VALUE_LOOKUP_PARALLELISM = new SimpleStatistic();
+    
     public FindValueLookupStatisticContainer(Context context, KUID lookupKey) {
         super(context, lookupKey);
     }
@@ -98,4 +114,21 @@ public class FindValueLookupStatisticContainer extends SingleLookupStatisticCont
         super.addTimeout();
         FIND_VALUE_LOOKUP_TIMEOUTS.incrementStat();
     }
+
+    @Override
+    public void setTimeToResult(int time) {
+        super.setTimeToResult(time);
+        FIND_VALUE_LOOKUP_TIME_TO_RESULT.addData(time);
+        FIND_VALUE_LOOKUP_TIME_TO_RESULT.storeCurrentStat();
+    }
+    
+    public void setSpeculativeRequests(int count) {
+        FIND_VALUE_LOOKUP_SPECULATIVE_REQUESTS.addData(count);
+        FIND_VALUE_LOOKUP_SPECULATIVE_REQUESTS.storeCurrentStat();
+    }
+    
+    public void setParallelism(int parallelism) {
+        FIND_VALUE_LOOKUP_PARALLELISM.addData(parallelism);
+        FIND_VALUE_LOOKUP_PARALLELISM.storeCurrentStat();
+    }
 }
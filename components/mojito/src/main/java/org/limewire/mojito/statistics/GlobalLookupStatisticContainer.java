@@ -80,6 +80,11 @@ public class GlobalLookupStatisticContainer extends StatisticContainer {
     */
    public Statistic GLOBAL_FIND_VALUE_LOOKUP_HOPS = new SimpleStatistic();
    
+   /**
+    * <tt>Statistic</tt> for the time until a FIND_VALUE found a value.
+    */
+   public Statistic GLOBAL_FIND_VALUE_TIME_TO_RESULT = new SimpleStatistic();
+   
    public void addSingleLookupStatistic(SingleLookupStatisticContainer lookupStat) {
        synchronized (singleLookups) {
            GLOBAL_LOOKUPS.incrementStat();
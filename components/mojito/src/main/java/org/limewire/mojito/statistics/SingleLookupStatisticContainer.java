@@ -55,6 +55,11 @@ abstract class SingleLookupStatisticContainer extends StatisticContainer {
         globalLookupStats.GLOBAL_LOOKUP_TIME.storeCurrentStat();
     }
     
+    public void setTimeToResult(int time) {
+        globalLookupStats.GLOBAL_FIND_VALUE_TIME_TO_RESULT.addData(time);
+        globalLookupStats.GLOBAL_FIND_VALUE_TIME_TO_RESULT.storeCurrentStat();
+    }
+    
     public void addRequest() {
         globalLookupStats.GLOBAL_LOOKUP_REQUESTS.incrementStat();
     }
@@ -45,12 +45,17 @@ public class DatabaseUtils {
      * Returns the expiration time of the given DHTValue.
      */
     public static long getExpirationTime(RouteTable routeTable, DHTValueEntity entity) {
-        KUID primaryKey = entity.getPrimaryKey();
-        
+        return getExpirationTime(routeTable, entity.getPrimaryKey(), entity.getCreationTime());
+    }
+    
+    /**
+     * Returns the expiration time of a DHTValue with the given primary
+     * key and creation time.
+     */
+    public static long getExpirationTime(RouteTable routeTable, KUID primaryKey, long creationTime) {
         int k = KademliaSettings.REPLICATION_PARAMETER.getValue();
         Collection<Contact> nodes = routeTable.select(primaryKey, k, SelectMode.ALL);
         
-        long creationTime = entity.getCreationTime();
         long expirationTime = DatabaseSettings.VALUE_EXPIRATION_TIME.getValue();
         
         // If there are less than k Nodes or the local Node is member
@@ -82,6 +87,14 @@ public class DatabaseUtils {
         return System.currentTimeMillis() >= getExpirationTime(routeTable, entity);
     }
     
+    /**
+     * Returns whether or not a DHTValue with the given primary key and
+     * creation time has expired.
+     */
+    public static boolean isExpired(RouteTable routeTable, KUID primaryKey, long creationTime) {
+        return System.currentTimeMillis() >= getExpirationTime(routeTable, primaryKey, creationTime);
+    }
+    
     public static boolean isPublishingRequired(Storable storable) {
         return isPublishingRequired(storable.getPublishTime(), storable.getLocationCount());
     }
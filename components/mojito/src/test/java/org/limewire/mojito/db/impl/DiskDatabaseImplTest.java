@@ -0,0 +1,303 @@
+package org.limewire.mojito.db.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.MojitoTestCase;
+import org.limewire.mojito.db.DHTValueEntity;
+import org.limewire.mojito.db.DHTValueFactoryManager;
+import org.limewire.mojito.db.DHTValueType;
+import org.limewire.mojito.db.Evictor;
+import org.limewire.mojito.db.EvictorManager;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.ContactFactory;
+import org.limewire.mojito.routing.RouteTable;
+import org.limewire.mojito.routing.Vendor;
+import org.limewire.mojito.routing.Version;
+import org.limewire.mojito.routing.impl.RouteTableImpl;
+import org.limewire.util.StringUtils;
+
+public class DiskDatabaseImplTest extends MojitoTestCase {
+
+    private File file;
+
+    private DiskDatabaseImpl database;
+
+    public DiskDatabaseImplTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(DiskDatabaseImplTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("mojito", ".db");
+        database = open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        database.close();
+        file.delete();
+    }
+
+    private DiskDatabaseImpl open() throws Exception {
+        return new DiskDatabaseImpl(file, new DHTValueFactoryManager());
+    }
+
+    private DiskDatabaseImpl reopen() throws Exception {
+        database.close();
+        database = open();
+        return database;
+    }
+
+    private static DHTValueEntity createDirectValue(KUID primaryKey, int host, String value)
+            throws Exception {
+        SocketAddress addr = new InetSocketAddress(
+                InetAddress.getByAddress(new byte[] { 1, 2, (byte)host, 3 }), 6666);
+        Contact node = ContactFactory.createLiveContact(addr, Vendor.UNKNOWN, Version.ZERO,
+                KUID.createRandomID(), addr, 42, Contact.FIREWALLED_FLAG);
+        return DHTValueEntity.createFromRemote(node, node, primaryKey,
+                new DHTValueImpl(DHTValueType.TEST, Version.ZERO, StringUtils.toAsciiBytes(value)));
+    }
+
+    private static void assertEntityEquals(DHTValueEntity expected, DHTValueEntity actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getCreator(), actual.getCreator());
+        assertEquals(expected.getCreator().getInstanceID(), actual.getCreator().getInstanceID());
+        assertEquals(expected.getCreator().getFlags(), actual.getCreator().getFlags());
+        assertTrue(actual.isDirect());
+        assertEquals(expected.getCreationTime(), actual.getCreationTime());
+        assertEquals(expected.getValue().getValueType(), actual.getValue().getValueType());
+        assertTrue(Arrays.equals(expected.getValue().getValue(), actual.getValue().getValue()));
+    }
+
+    public void testStoreGetRemove() throws Exception {
+        KUID primaryKey = KUID.createRandomID();
+        DHTValueEntity first = createDirectValue(primaryKey, 1, "first");
+        DHTValueEntity second = createDirectValue(primaryKey, 2, "second");
+        assertTrue(database.store(first));
+        assertTrue(database.store(second));
+        assertEquals(1, database.getKeyCount());
+        assertEquals(2, database.getValueCount());
+        assertTrue(database.contains(primaryKey, first.getSecondaryKey()));
+        assertEquals(1, database.getValuesPerAddress(first));
+
+        Map<KUID, DHTValueEntity> values = database.get(primaryKey);
+        assertEquals(2, values.size());
+        assertEntityEquals(first, values.get(first.getSecondaryKey()));
+        assertEntityEquals(second, values.get(second.getSecondaryKey()));
+
+        DHTValueEntity removed = database.remove(primaryKey, first.getSecondaryKey());
+        assertEntityEquals(first, removed);
+        assertNull(database.remove(primaryKey, first.getSecondaryKey()));
+        assertFalse(database.contains(primaryKey, first.getSecondaryKey()));
+        assertEquals(1, database.getValueCount());
+        assertEquals(0, database.getValuesPerAddress(first));
+        assertEquals(1, database.values().size());
+
+        // An empty value removes the value
+        assertTrue(database.store(DHTValueEntity.createFromRemote(second.getCreator(),
+                second.getSender(), primaryKey, new DHTValueImpl(DHTValueType.TEST, Version.ZERO, new byte[0]))));
+        assertEquals(0, database.getKeyCount());
+        assertTrue(database.get(primaryKey).isEmpty());
+    }
+
+    public void testRestartWarm() throws Exception {
+        KUID primaryKey = KUID.createRandomID();
+        DHTValueEntity replaced = createDirectValue(primaryKey, 1, "old");
+        DHTValueEntity removed = createDirectValue(primaryKey, 2, "removed");
+        DHTValueEntity value = DHTValueEntity.createFromRemote(replaced.getCreator(),
+                replaced.getSender(), primaryKey,
+                new DHTValueImpl(DHTValueType.TEST, Version.ZERO, StringUtils.toAsciiBytes("new")));
+        assertTrue(database.store(replaced));
+        assertTrue(database.store(removed));
+        assertTrue(database.store(value));
+        assertNotNull(database.remove(primaryKey, removed.getSecondaryKey()));
+
+        Contact local = ContactFactory.createLocalContact(Vendor.UNKNOWN, Version.ZERO, false);
+        DHTValueEntity localValue = DHTValueEntity.createFromStore(local, local, primaryKey,
+                new DHTValueImpl(DHTValueType.TEST, Version.ZERO, StringUtils.toAsciiBytes("local")),
+                true, System.currentTimeMillis());
+        assertTrue(database.store(localValue));
+        assertEquals(2, database.getValueCount());
+        assertSame(localValue, database.get(primaryKey).get(local.getNodeID()));
+
+        reopen();
+        assertEquals(1, database.getKeyCount());
+        assertEquals(1, database.getValueCount());
+        assertEquals(1, database.getValuesPerAddress(value));
+        assertEntityEquals(value, database.get(primaryKey).get(value.getSecondaryKey()));
+        assertEquals("new", StringUtils.getASCIIString(
+                database.values().iterator().next().getValue().getValue()));
+    }
+
+    public void testTruncatesPartialRecord() throws Exception {
+        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>();
+        for (int i = 0; i < 3; i++) {
+            DHTValueEntity value = createDirectValue(KUID.createRandomID(), i, "value " + i);
+            assertTrue(database.store(value));
+            values.add(value);
+        }
+        database.close();
+
+        // Cut off the end of the last record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        raf.setLength(length - 3);
+        raf.close();
+
+        database = open();
+        assertEquals(2, database.getValueCount());
+        assertTrue(database.contains(values.get(1).getPrimaryKey(), values.get(1).getSecondaryKey()));
+        assertFalse(database.contains(values.get(2).getPrimaryKey(), values.get(2).getSecondaryKey()));
+        assertLessThan(length, file.length());
+
+        // New records go after the last good one
+        assertTrue(database.store(values.get(2)));
+        reopen();
+        assertEquals(3, database.getValueCount());
+        assertEntityEquals(values.get(2), database.get(values.get(2).getPrimaryKey())
+                .get(values.get(2).getSecondaryKey()));
+    }
+
+    public void testCorruptRecord() throws Exception {
+        DHTValueEntity first = createDirectValue(KUID.createRandomID(), 1, "first");
+        DHTValueEntity second = createDirectValue(KUID.createRandomID(), 2, "second");
+        database.store(first);
+        long length = file.length();
+        database.store(second);
+        database.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 1);
+        int last = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(last ^ 0xFF);
+        raf.close();
+
+        database = open();
+        assertEquals(1, database.getValueCount());
+        assertTrue(database.contains(first.getPrimaryKey(), first.getSecondaryKey()));
+        assertEquals(length, file.length());
+    }
+
+    public void testNotADatabase() throws Exception {
+        database.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0);
+        raf.close();
+
+        try {
+            open();
+            fail("opened a file that is not a database");
+        } catch (IOException expected) {
+        }
+        assertTrue(file.delete());
+        database = open();
+    }
+
+    public void testCompact() throws Exception {
+        KUID primaryKey = KUID.createRandomID();
+        List<DHTValueEntity> values = new ArrayList<DHTValueEntity>();
+        for (int i = 0; i < 4; i++) {
+            DHTValueEntity value = createDirectValue(primaryKey, i, "value " + i);
+            assertTrue(database.store(value));
+            values.add(value);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue(database.store(values.get(0)));
+        }
+        assertNotNull(database.remove(primaryKey, values.get(1).getSecondaryKey()));
+
+        long length = file.length();
+        database.compact();
+        assertLessThan(length / 10, file.length());
+        assertEquals(3, database.getValueCount());
+        assertEntityEquals(values.get(3), database.get(primaryKey).get(values.get(3).getSecondaryKey()));
+
+        assertTrue(database.store(values.get(1)));
+        reopen();
+        assertEquals(4, database.getValueCount());
+        for (DHTValueEntity value : values) {
+            assertEntityEquals(value, database.get(primaryKey).get(value.getSecondaryKey()));
+        }
+    }
+
+    public void testClear() throws Exception {
+        DHTValueEntity value = createDirectValue(KUID.createRandomID(), 1, "value");
+        database.store(value);
+        database.clear();
+        assertEquals(0, database.getValueCount());
+        assertEquals(0, database.getValuesPerAddress(value));
+        assertEquals(4, file.length());
+
+        reopen();
+        assertEquals(0, database.getKeyCount());
+    }
+
+    public void testRemoveExpired() throws Exception {
+        KUID primaryKey = KUID.createRandomID();
+        DHTValueEntity fresh = createDirectValue(primaryKey, 1, "fresh");
+        DHTValueEntity old = createDirectValue(primaryKey, 2, "old");
+        old = DHTValueEntity.createFromStore(old.getCreator(), old.getSender(), primaryKey,
+                old.getValue(), false, 1L);
+        assertTrue(database.store(fresh));
+        assertTrue(database.store(old));
+        reopen();
+
+        RouteTable routeTable = new RouteTableImpl();
+        EvictorManager evictorManager = new EvictorManager();
+        assertEquals(1, database.removeExpired(routeTable, evictorManager));
+        assertEquals(1, database.getValueCount());
+        assertTrue(database.contains(primaryKey, fresh.getSecondaryKey()));
+        assertEquals(0, database.removeExpired(routeTable, evictorManager));
+
+        // An Evictor of its own gets the whole value
+        final List<DHTValueEntity> evicted = new ArrayList<DHTValueEntity>();
+        evictorManager.addEvictor(DHTValueType.TEST, new Evictor() {
+            public boolean isExpired(RouteTable routeTable, DHTValueEntity entity) {
+                evicted.add(entity);
+                return true;
+            }
+        });
+        assertEquals(1, database.removeExpired(routeTable, evictorManager));
+        assertEquals(1, evicted.size());
+        assertEntityEquals(fresh, evicted.get(0));
+        assertEquals(0, database.getKeyCount());
+
+        reopen();
+        assertEquals(0, database.getValueCount());
+    }
+
+    public void testRecoversCompactedLog() throws Exception {
+        DHTValueEntity value = createDirectValue(KUID.createRandomID(), 1, "value");
+        assertTrue(database.store(value));
+        database.close();
+
+        // The process died after the old log was removed
+        File tmp = new File(file.getPath() + ".tmp");
+        assertTrue(file.renameTo(tmp));
+        database = open();
+        assertFalse(tmp.exists());
+        assertEquals(1, database.getValueCount());
+        assertEntityEquals(value, database.get(value.getPrimaryKey()).get(value.getSecondaryKey()));
+    }
+}
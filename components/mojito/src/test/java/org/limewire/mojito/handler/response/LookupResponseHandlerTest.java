@@ -0,0 +1,136 @@
+package org.limewire.mojito.handler.response;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestSuite;
+
+import org.limewire.mojito.Context;
+import org.limewire.mojito.EntityKey;
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.MojitoDHT;
+import org.limewire.mojito.MojitoTestCase;
+import org.limewire.mojito.concurrent.DHTFutureTask;
+import org.limewire.mojito.db.DHTValue;
+import org.limewire.mojito.db.DHTValueType;
+import org.limewire.mojito.db.impl.DHTValueImpl;
+import org.limewire.mojito.result.FindNodeResult;
+import org.limewire.mojito.result.FindValueResult;
+import org.limewire.mojito.result.LookupResult;
+import org.limewire.mojito.routing.Contact;
+import org.limewire.mojito.routing.Version;
+import org.limewire.mojito.settings.ContextSettings;
+import org.limewire.mojito.settings.KademliaSettings;
+import org.limewire.mojito.util.MojitoUtils;
+import org.limewire.util.StringUtils;
+
+public class LookupResponseHandlerTest extends MojitoTestCase {
+
+    private List<MojitoDHT> dhts = Collections.emptyList();
+
+    public LookupResponseHandlerTest(String name) {
+        super(name);
+    }
+
+    public static TestSuite suite() {
+        return buildTestSuite(LookupResponseHandlerTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setLocalIsPrivate(false);
+        dhts = MojitoUtils.createBootStrappedDHTs(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (MojitoDHT dht : dhts) {
+            dht.close();
+        }
+    }
+
+    private static <V extends LookupResult> V run(Context context,
+            LookupResponseHandler<V> handler) throws Exception {
+        DHTFutureTask<V> future = new DHTFutureTask<V>(context, handler);
+        context.getDHTExecutorService().execute(future);
+        return future.get();
+    }
+
+    private static Set<KUID> getNodeIDs(FindNodeResult result) {
+        Set<KUID> nodeIds = new HashSet<KUID>();
+        for (Contact node : result.getPath()) {
+            nodeIds.add(node.getNodeID());
+        }
+        return nodeIds;
+    }
+
+    public void testAdaptiveLookupFindsSameNodes() throws Exception {
+        Context context = (Context)dhts.get(0);
+        KUID lookupId = KUID.createRandomID();
+
+        FindNodeResponseHandler handler = new FindNodeResponseHandler(context, lookupId);
+        assertFalse(handler.isAdaptive());
+        Set<KUID> expected = getNodeIDs(run(context, handler));
+        assertEquals(KademliaSettings.REPLICATION_PARAMETER.getValue(), expected.size());
+
+        FindNodeResponseHandler adaptive = new FindNodeResponseHandler(context, lookupId);
+        adaptive.setAdaptive(true);
+        FindNodeResult result = run(context, adaptive);
+        assertEquals(expected, getNodeIDs(result));
+        assertGreaterThan(0, adaptive.getRequestCount());
+        // The local Node is marked as queried as well
+        assertEquals(result.getQueried().size() - 1, adaptive.getRequestCount());
+        assertGreaterThan(0, adaptive.getMaxParallelism());
+    }
+
+    public void testSpeculativeRequests() throws Exception {
+        Context context = (Context)dhts.get(0);
+
+        // Look for a Node that is gone so that it is among
+        // the first Nodes we send a request to
+        int half = dhts.size() / 2;
+        for (MojitoDHT dht : dhts.subList(half, dhts.size())) {
+            dht.close();
+        }
+        KUID lookupId = dhts.get(half).getLocalNodeID();
+
+        // Give the lookups time to wait for the timeouts
+        ContextSettings.WAIT_ON_LOCK.setValue(10000L);
+
+        FindNodeResponseHandler handler = new FindNodeResponseHandler(context, lookupId);
+        run(context, handler);
+        assertEquals(0, handler.getSpeculativeRequestCount());
+
+        FindNodeResponseHandler adaptive = new FindNodeResponseHandler(context, lookupId);
+        adaptive.setAdaptive(true);
+        FindNodeResult result = run(context, adaptive);
+        assertGreaterThan(0, adaptive.getSpeculativeRequestCount());
+        assertFalse(getNodeIDs(result).contains(lookupId));
+        assertGreaterThan(0, result.getRouteTableFailureCount());
+    }
+
+    public void testTimeToResult() throws Exception {
+        KUID valueId = KUID.createRandomID();
+        DHTValue value = new DHTValueImpl(DHTValueType.TEXT, Version.ZERO,
+                StringUtils.toAsciiBytes("Hello World"));
+        dhts.get(0).put(valueId, value).get();
+
+        Context context = (Context)dhts.get(1);
+        FindValueResponseHandler handler = new FindValueResponseHandler(context,
+                EntityKey.createEntityKey(valueId, DHTValueType.TEXT));
+        handler.setAdaptive(true);
+        assertEquals(-1L, handler.getTimeToResult());
+
+        FindValueResult result = run(context, handler);
+        assertEquals(1, result.getEntities().size());
+        assertGreaterThanOrEquals(0L, handler.getTimeToResult());
+        assertLessThanOrEquals(result.getTime(), handler.getTimeToResult());
+    }
+}
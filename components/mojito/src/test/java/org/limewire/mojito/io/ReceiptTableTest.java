@@ -0,0 +1,207 @@
+package org.limewire.mojito.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestSuite;
+
+import org.limewire.mojito.Context;
+import org.limewire.mojito.KUID;
+import org.limewire.mojito.MojitoDHT;
+import org.limewire.mojito.MojitoFactory;
+import org.limewire.mojito.MojitoTestCase;
+import org.limewire.mojito.handler.ResponseHandler;
+import org.limewire.mojito.io.ReceiptTable.ReceiptListener;
+import org.limewire.mojito.io.Tag.Receipt;
+import org.limewire.mojito.messages.RequestMessage;
+import org.limewire.mojito.messages.ResponseMessage;
+
+public class ReceiptTableTest extends MojitoTestCase {
+
+    private MojitoDHT dht;
+
+    private Listener listener;
+
+    public ReceiptTableTest(String name) {
+        super(name);
+    }
+
+    public static TestSuite suite() {
+        return buildTestSuite(ReceiptTableTest.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dht = MojitoFactory.createDHT("Test");
+        listener = new Listener();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dht.close();
+    }
+
+    private Receipt createReceipt(long timeout) {
+        InetSocketAddress dst = new InetSocketAddress("localhost", 5000);
+        RequestMessage request = ((Context)dht).getMessageHelper().createPingRequest(dst);
+        return new Tag(KUID.createRandomID(), dst, request, new Handler(), timeout).receipt();
+    }
+
+    public void testResponseRemovesReceipt() throws Exception {
+        ReceiptTable table = new ReceiptTable(listener, 10L, 100);
+        Receipt receipt = createReceipt(50L);
+        table.add(receipt);
+        assertEquals(1, table.size());
+
+        assertSame(receipt, table.get(receipt.getMessageID()));
+        assertTrue(table.remove(receipt));
+        assertFalse(table.remove(receipt));
+        assertEquals(0, table.size());
+        assertNull(table.get(receipt.getMessageID()));
+        assertEquals(1, table.getHits());
+        assertEquals(1, table.getMisses());
+
+        table.expire(System.currentTimeMillis() + 1000L);
+        assertEquals(0, listener.timeouts.size());
+        assertEquals(0, table.getTimeouts());
+    }
+
+    public void testTimeout() throws Exception {
+        ReceiptTable table = new ReceiptTable(listener, 10L, 100);
+        Receipt receipt = createReceipt(100L);
+        table.add(receipt);
+
+        table.expire(System.currentTimeMillis());
+        assertEquals(0, listener.timeouts.size());
+
+        Thread.sleep(150L);
+        table.expire(System.currentTimeMillis());
+        assertEquals(1, listener.timeouts.size());
+        assertSame(receipt, listener.timeouts.get(0));
+        assertTrue(listener.timedOut);
+        assertEquals(0, table.size());
+        assertEquals(1, table.getTimeouts());
+
+        // A response after the timeout is a late response
+        assertFalse(table.remove(receipt));
+    }
+
+    public void testLongTimeoutWaitsForItsTime() throws Exception {
+        ReceiptTable table = new ReceiptTable(listener, 1L, 100);
+        Receipt receipt = createReceipt(700L);
+        table.add(receipt);
+
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 500L) {
+            table.expire(System.currentTimeMillis());
+            Thread.sleep(5L);
+        }
+        assertEquals(0, listener.timeouts.size());
+        assertEquals(0, listener.ticks);
+
+        Thread.sleep(300L);
+        table.expire(System.currentTimeMillis());
+        assertEquals(1, listener.timeouts.size());
+    }
+
+    public void testReceiptComingUpEarlyTicks() throws Exception {
+        ReceiptTable table = new ReceiptTable(listener, 10L, 100);
+        Receipt receipt = createReceipt(100L);
+        table.add(receipt);
+
+        // The wheel thinks it's due but the Receipt has not timed out
+        long later = System.currentTimeMillis() + 10000L;
+        table.expire(later);
+        assertEquals(1, listener.ticks);
+        assertEquals(0, listener.timeouts.size());
+        assertEquals(1, table.size());
+
+        Thread.sleep(150L);
+        table.expire(later + 10L);
+        assertEquals(1, listener.timeouts.size());
+        assertSame(receipt, listener.timeouts.get(0));
+        assertEquals(0, table.size());
+    }
+
+    public void testEvictsReceiptTimingOutNext() throws Exception {
+        ReceiptTable table = new ReceiptTable(listener, 10L, 2);
+        Receipt first = createReceipt(5000L);
+        Receipt second = createReceipt(1000L);
+        Receipt third = createReceipt(3000L);
+        table.add(first);
+        table.add(second);
+        assertEquals(0, listener.timeouts.size());
+
+        table.add(third);
+        assertEquals(2, table.size());
+        assertEquals(1, listener.timeouts.size());
+        assertSame(second, listener.timeouts.get(0));
+        assertFalse(listener.timedOut);
+        assertEquals(1, table.getEvictions());
+        assertEquals(0, table.getTimeouts());
+
+        assertSame(first, table.get(first.getMessageID()));
+        assertSame(third, table.get(third.getMessageID()));
+        assertNull(table.get(second.getMessageID()));
+    }
+
+    public void testClear() throws Exception {
+        ReceiptTable table = new ReceiptTable(listener, 10L, 100);
+        Receipt receipt = createReceipt(10L);
+        table.add(receipt);
+        table.clear();
+        assertEquals(0, table.size());
+
+        Thread.sleep(50L);
+        table.expire(System.currentTimeMillis());
+        assertEquals(0, listener.timeouts.size());
+    }
+
+    private static class Handler implements ResponseHandler {
+
+        public long getTimeout() {
+            return 0L;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public void handleResponse(ResponseMessage message, long time) {
+        }
+
+        public void handleTimeout(KUID nodeId, SocketAddress dst, RequestMessage message, long time) {
+        }
+
+        public void handleError(KUID nodeId, SocketAddress dst, RequestMessage message, IOException e) {
+        }
+
+        public void handleTick() {
+        }
+    }
+
+    private static class Listener implements ReceiptListener {
+
+        private final List<Receipt> timeouts = new ArrayList<Receipt>();
+
+        private boolean timedOut;
+
+        private int ticks;
+
+        public void handleTimeout(Receipt receipt, boolean timeout) {
+            timeouts.add(receipt);
+            timedOut = timeout;
+        }
+
+        public void handleTick(Receipt receipt) {
+            ticks++;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -102,7 +103,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
      * Sets the initial reader value.
      */
     public final void setInitialReader() {
-        reader = new NIOInputStream(this, this, getBaseReadChannel());
+        reader = new NIOInputStream(this, this, getBaseReadChannel(), getNIOExecutor());
     }
     
     /**
@@ -111,7 +112,15 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
     public final void setInitialWriter() {
         InterestWritableByteChannel base = getBaseWriteChannel();
         writer = getBottomFromChain(base);
-        nioOutputStream = new NIOOutputStream(this, base);
+        nioOutputStream = new NIOOutputStream(this, base, getNIOExecutor());
+    }
+    
+    /**
+     * Returns the executor that runs tasks on the NIO thread that handles
+     * the events of this socket's channel.
+     */
+    public final ScheduledExecutorService getNIOExecutor() {
+        return NIODispatcher.instance().getScheduledExecutorService(getChannel());
     }
     
     private InterestWritableByteChannel getBottomFromChain(InterestWritableByteChannel top) {
@@ -138,7 +147,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
 
     /** Sets the new throttle for reading. */
     public final void setReadThrottleChannel(final ThrottleReader newThrottle) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        getNIOExecutor().execute(new Runnable() {
             @Override
             public void run() {
                 synchronized(LOCK) {
@@ -185,7 +194,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
      * in reading is turned on.
      */
     public final void setReadObserver(final ChannelReadObserver newReader) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        getNIOExecutor().execute(new Runnable() {
             public void run() {
                 ReadObserver oldReader = reader;
                 try {
@@ -252,7 +261,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
      * write, then an <code>IllegalStateException</code> is thrown.
      */
     public final void setWriteObserver(final ChannelWriter newWriter) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        getNIOExecutor().execute(new Runnable() {
             public void run() {
                 try {
                     if(writer.handleWrite())
@@ -407,7 +416,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
             
             if(getChannel().connect(addr)) {
                 // Make sure connecting callbacks are always on the NIO thread.
-                NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+                getNIOExecutor().execute(new Runnable() {
                     public void run() {
                         // ensure it's registered in the selector, so it can be notified
                         // for reading|writing, and polled for readiness
@@ -415,7 +424,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                         try {
                             observer.handleConnect(AbstractNBSocket.this);
                         } catch(IOException iox) {
-                            NIODispatcher.instance().executeLaterAlways(new Runnable() {
+                            NIODispatcher.instance().executeLaterAlways(getChannel(), new Runnable() {
                                 public void run() {
                                     shutdown();
                                 }
@@ -429,7 +438,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                 return false;
             }
         } catch(IOException failed) {
-            NIODispatcher.instance().executeLaterAlways(new Runnable() {
+            NIODispatcher.instance().executeLaterAlways(getChannel(), new Runnable() {
                 public void run() {
                     shutdown();
                 }
@@ -467,13 +476,13 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
         } else {
             Callable<InputStream> callable = new Callable<InputStream>() {
                 public InputStream call() throws IOException {
-                    NIOInputStream stream = new NIOInputStream(AbstractNBSocket.this, AbstractNBSocket.this, null).init();
+                    NIOInputStream stream = new NIOInputStream(AbstractNBSocket.this, AbstractNBSocket.this, null, getNIOExecutor()).init();
                     setReadObserver(stream);
                     return stream.getInputStream();
                 }
             };
             
-            Future<InputStream> future = NIODispatcher.instance().getScheduledExecutorService().submit(callable);
+            Future<InputStream> future = getNIOExecutor().submit(callable);
             try {
                 return future.get();
             } catch(ExecutionException ee) {
@@ -513,14 +522,14 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
                             if (shutdown) {
                                 throw new IOException("shut down");
                             }
-                            nioOutputStream = new NIOOutputStream(AbstractNBSocket.this, source);
+                            nioOutputStream = new NIOOutputStream(AbstractNBSocket.this, source, getNIOExecutor());
                             writer = getBottomFromChain(source);
                             return nioOutputStream.getOutputStream();
                         }
                     }
                 }
             };
-            Future<OutputStream> future = NIODispatcher.instance().getScheduledExecutorService().submit(callable);
+            Future<OutputStream> future = getNIOExecutor().submit(callable);
             try {
                 return future.get();
             } catch(ExecutionException ee) {
@@ -572,7 +581,7 @@ public abstract class AbstractNBSocket extends NBSocket implements ConnectObserv
         shutdownSocketAndChannels();
         shutdownObservers();
                 
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        getNIOExecutor().execute(new Runnable() {
             public void run() {
                 if(nioOutputStream != null)
                     nioOutputStream.shutdown();
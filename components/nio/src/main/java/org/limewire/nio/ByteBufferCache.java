@@ -28,6 +28,11 @@ public class ByteBufferCache {
         return HEAP.getByteSize();
     }
     
+    /** Returns the number of direct buffers in the cache. */
+    public int getDirectCacheCount() {
+        return DIRECT.getSize();
+    }
+    
     public void release(ByteBuffer buffer) {
         if(buffer.isDirect())
             DIRECT.put(buffer);
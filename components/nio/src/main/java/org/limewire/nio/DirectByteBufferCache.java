@@ -4,10 +4,15 @@ import java.nio.ByteBuffer;
 import java.util.Stack;
 /**
  * Provides a <a href="http://java.sun.com/j2se/1.5.0/docs/api/java/nio/ByteBuffer.html#direct">direct</a>
- * cache of {@link ByteBuffer ByteBuffers}.
+ * cache of {@link ByteBuffer ByteBuffers}.  Direct memory is not reclaimed
+ * until the buffer is collected, so at most {@link #MAX_BUFFERS} buffers are
+ * kept; any more that are returned are dropped.
  */
 public class DirectByteBufferCache {
 
+    /** The most buffers to keep, 256KB of 8KB buffers. */
+    static final int MAX_BUFFERS = 32;
+
     private final Stack<ByteBuffer> CACHE = new Stack<ByteBuffer>();
 
     public ByteBuffer get() {
@@ -22,12 +27,21 @@ public class DirectByteBufferCache {
     }
 
     public void put(ByteBuffer buf) {
-        buf.clear();
-        CACHE.push(buf);
+        synchronized (CACHE) {
+            if (CACHE.size() >= MAX_BUFFERS)
+                return;
+            buf.clear();
+            CACHE.push(buf);
+        }
     }
     
     public void clear() {
         CACHE.clear();
     }
     
+    /** Returns the number of buffers in the cache. */
+    public int getSize() {
+        return CACHE.size();
+    }
+    
 }
@@ -14,7 +14,7 @@ import org.limewire.collection.IntHashMap;
 public class HeapByteBufferCache {
 
     // Store up to 1MB of byte[] here.
-    private static final int MAX_SIZE = 1024 * 1024;
+    static final int MAX_SIZE = 1024 * 1024;
     
     private final IntHashMap<List<ByteBuffer>> CACHE = new IntHashMap<List<ByteBuffer>>();
         
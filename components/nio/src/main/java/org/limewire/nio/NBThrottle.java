@@ -9,6 +9,8 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -80,6 +82,12 @@ import java.util.Set;
  * Note that due to the nature of <code>Throttle</code> and {@link NIODispatcher},
  * ready parties may be told to <code>WriteObserver.handleWrite()</code> twice during each 
  * selection event. The latter will always return 0 to a request.
+ * <p>
+ * If <code>NIODispatcher</code> runs several event loops, each loop keeps
+ * its own requesting, interested and ready parties in the throttle, so loops
+ * never wait on each other.  Only the bandwidth of the current tick is
+ * shared, and it is handed out without locking.  Bandwidth is only given to
+ * requests made from the loop that is currently processing ready keys.
  */
 public class NBThrottle implements Throttle {
     
@@ -105,42 +113,14 @@ public class NBThrottle implements Throttle {
     /** The amount that is available every tick. */
     private volatile int _bytesPerTick;
     
-    /** The amount currently available in this tick. */
-    private volatile int _available;
+    /** The amount currently available in this tick, shared by all loops. */
+    private final AtomicInteger _available = new AtomicInteger();
     
     /** The next time a tick should occur. */
-    private long _nextTickTime = -1;
-    
-    /**
-     * A list of ThrottleListeners that are interested in bandwidthAvailable events.
-     * <p>
-     * As ThrottleListeners interest themselves interest themselves for writing, 
-     * the requests are queued up here.  When bandwidth is available the request is
-     * moved over to 'interested' after informing the ThrottleListener that bandwidth
-     * is available.  New ThrottleListeners should not be added to this if they are
-     * already in interested.
-     */
-    private Set<ThrottleListener> _requests = new HashSet<ThrottleListener>();
+    private final AtomicLong _nextTickTime = new AtomicLong(-1);
     
-    /**
-     * Attachments that are interested -> ThrottleListener that owns the attachment.
-     * <p>
-     * As new items become interested, they are added to the bottom of the set.
-     * When something is written, so long as it writes > 0, it is removed from the
-     * list (and put back at the bottom).
-     */
-    private Map<Object, ThrottleListener> _interested = new LinkedHashMap<Object, ThrottleListener>();
-    
-    /**
-     * Attachments that are ready-op'd.
-     * <p>
-     * This is temporary per each selectableKeys call, but is cached to avoid regenerating
-     * each time.
-     */
-    private Map<Object, SelectionKey> _ready = new HashMap<Object, SelectionKey>();
-    
-    /** Whether or not we're currently active in the selectableKeys portion. */
-    private boolean _active = false;
+    /** The state kept for each event loop of the <code>NIODispatcher</code>. */
+    private final LoopState[] _loops;
     
     /**
      * Constructs a throttle using the default values for latency and availability.
@@ -184,6 +164,9 @@ public class NBThrottle implements Throttle {
         _write = forWriting;
         _processOp = forWriting ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
         _bytesPerTick = (int)(bytesPerSecond / ticksPerSecond);
+        _loops = new LoopState[NIODispatcher.instance().getNumEventLoops()];
+        for(int i = 0; i < _loops.length; i++)
+            _loops[i] = new LoopState();
         if(addToDispatcher)
             NIODispatcher.instance().addThrottle(this);
         
@@ -205,15 +188,24 @@ public class NBThrottle implements Throttle {
      * Notification from the NIODispatcher that a bunch of keys are now selectable.
      */
     void selectableKeys(Collection<? extends SelectionKey> keys) {
-        if(_available >= MINIMUM_TO_GIVE && !_interested.isEmpty()) {
+        selectableKeys(keys, NIODispatcher.instance().getCurrentLoopIndex());
+    }
+    
+    /**
+     * Notification from the event loop with the given index that a bunch of
+     * its keys are now selectable.
+     */
+    void selectableKeys(Collection<? extends SelectionKey> keys, int loop) {
+        LoopState state = _loops[loop];
+        if(_available.get() >= MINIMUM_TO_GIVE && !state.interested.isEmpty()) {
             for(Iterator<? extends SelectionKey> i = keys.iterator(); i.hasNext(); ) {
                 SelectionKey key = i.next();
                 try {
                     if(key.isValid() && (_write ? key.isWritable() : key.isReadable())) {
                         Object attachment = NIODispatcher.instance().attachment(key.attachment());
-                        if(_interested.containsKey(attachment)) {
+                        if(state.interested.containsKey(attachment)) {
                             //LOG.debug("Adding: " + attachment + " to ready");
-                            _ready.put(attachment, key);
+                            state.ready.put(attachment, key);
                         }
                     }
                 } catch(CancelledKeyException ignored) {
@@ -223,14 +215,14 @@ public class NBThrottle implements Throttle {
             
             //LOG.trace("Interested: " + _interested.size() + ", ready: " + _ready.size());
             
-            _active = true;
+            state.active = Thread.currentThread();
             long now = System.currentTimeMillis();
-            Iterator<Map.Entry<Object, ThrottleListener>> i = _interested.entrySet().iterator();
+            Iterator<Map.Entry<Object, ThrottleListener>> i = state.interested.entrySet().iterator();
             for(; i.hasNext(); ) {
                 Map.Entry<Object, ThrottleListener> next = i.next();
                 ThrottleListener listener = next.getValue();
                 Object attachment = next.getKey();
-                SelectionKey key = _ready.remove(attachment);
+                SelectionKey key = state.ready.remove(attachment);
                 if(!listener.isOpen()) {
                     //LOG.trace("Removing closed but interested party: " + next.getKey());
                     i.remove();
@@ -243,11 +235,11 @@ public class NBThrottle implements Throttle {
                     } finally {
                         listener.releaseBandwidth();
                     }
-                    if (_available < MINIMUM_TO_GIVE)
+                    if (_available.get() < MINIMUM_TO_GIVE)
                         break;
                 }
             }
-            _active = false;
+            state.active = null;
         }
     }
     
@@ -256,82 +248,152 @@ public class NBThrottle implements Throttle {
      * bandwidth is available.
      */
     public void interest(ThrottleListener writer) {
+        int loop = NIODispatcher.instance().getLoopIndex(writer.getAttachment());
+        LoopState state = _loops[loop];
         boolean wakeup;
-        synchronized(_requests) {
+        synchronized(state.requests) {
             //LOG.debug("Adding: " + writer + " to requests");
-            wakeup = _requests.isEmpty();
-            _requests.add(writer);
+            wakeup = state.requests.isEmpty();
+            state.requests.add(writer);
         }
-        if (wakeup || _available >= MINIMUM_TO_GIVE)
-            NIODispatcher.instance().wakeup();
+        if (wakeup || _available.get() >= MINIMUM_TO_GIVE)
+            NIODispatcher.instance().wakeup(loop);
     }
     
     /**
      * Requests some bytes to write.
      */
     public int request() {
-        if(!_active) // failsafe to ensure request only occurs when we want it
+        if(!isActive()) // failsafe to ensure request only occurs when we want it
             return 0;
         
-        int ret = Math.min(_available, MAXIMUM_TO_GIVE);
-        _available -= ret;
-        return ret;
+        while(true) {
+            int available = _available.get();
+            int ret = Math.min(available, MAXIMUM_TO_GIVE);
+            if(ret <= 0 || _available.compareAndSet(available, available - ret))
+                return Math.max(ret, 0);
+        }
     }
     
     /**
      * Releases some unwritten bytes back to the available pool.
      */
     public void release(int amount) {
-        if(_active) // failsafe to ensure releasing only occurs when we want it
-            _available += amount;
+        if(isActive()) // failsafe to ensure releasing only occurs when we want it
+            _available.addAndGet(amount);
         //LOG.trace("RETR: " + amount + ", REMAINING: " + _available + ", ALL: " + wroteAll + ", FROM: " + attachment);
     }
     
+    /**
+     * Returns true if the current thread is processing ready keys of its
+     * event loop.
+     */
+    private boolean isActive() {
+        Thread current = Thread.currentThread();
+        return _loops[NIODispatcher.instance().getCurrentLoopIndex()].active == current;
+    }
+    
     /**
      * Notification from <code>NIODispatcher</code> that some time has passed.
-     * <p>
-     * Returns <code>true</code> if all requests were satisfied. Returns 
-     * <code>false</code> if there are still some requests that require further 
-     * tick notifications.
      */
     void tick(long currentTime) {
-        if(currentTime >= _nextTickTime) {
-            _available = _bytesPerTick;
-            _nextTickTime = currentTime + MILLIS_PER_TICK;
-            spreadBandwidth();
-        } else if(_available >= MINIMUM_TO_GIVE) {
-            spreadBandwidth();
+        tick(currentTime, NIODispatcher.instance().getCurrentLoopIndex());
+    }
+    
+    /**
+     * Notification from the event loop with the given index that some time
+     * has passed.  Whichever loop is first to see that a tick is due refills
+     * the bandwidth for all loops.
+     */
+    void tick(long currentTime, int loop) {
+        long nextTickTime = _nextTickTime.get();
+        if(currentTime >= nextTickTime
+                && _nextTickTime.compareAndSet(nextTickTime, currentTime + MILLIS_PER_TICK)) {
+            _available.set(_bytesPerTick);
+            spreadBandwidth(_loops[loop]);
+        } else if(_available.get() >= MINIMUM_TO_GIVE) {
+            spreadBandwidth(_loops[loop]);
         }
     }
     
     public long nextTickTime() {
-        synchronized(_requests) {
-            if (_requests.isEmpty() && _interested.isEmpty())
+        long next = Long.MAX_VALUE;
+        for(int i = 0; i < _loops.length; i++)
+            next = Math.min(next, nextTickTime(i));
+        return next;
+    }
+    
+    /**
+     * Returns the next time the event loop with the given index should tick
+     * this throttle, or <code>Long.MAX_VALUE</code> if nothing on that loop
+     * is waiting for bandwidth.
+     */
+    long nextTickTime(int loop) {
+        LoopState state = _loops[loop];
+        synchronized(state.requests) {
+            if (state.requests.isEmpty() && state.interested.isEmpty())
                 return Long.MAX_VALUE;
         }
-        return _nextTickTime;
+        return _nextTickTime.get();
     }
     
     /**
-     * Notifies all requestors that bandwidth is available.
+     * Notifies all requestors of a loop that bandwidth is available.
      */
-    private void spreadBandwidth() {
-        synchronized(_requests) {
-            if(!_requests.isEmpty()) {
-                for(ThrottleListener req : _requests) {
+    private void spreadBandwidth(LoopState state) {
+        synchronized(state.requests) {
+            if(!state.requests.isEmpty()) {
+                for(ThrottleListener req : state.requests) {
                     Object attachment = req.getAttachment();
                     if(attachment == null)
                         throw new IllegalStateException("must have an attachment - listener: " + req);
                     
                     //LOG.debug("Moving: " + attachment + " from requests to interested");
                     if(req.bandwidthAvailable())
-                    	_interested.put(attachment, req);
+                    	state.interested.put(attachment, req);
                     // else it'll be cleared when we loop later on.
                 }
-                _requests.clear();
+                state.requests.clear();
             }
         }
     }
+    
+    /**
+     * The parties of the throttle that are serviced by one event loop.  Only
+     * <code>requests</code> is touched by other threads.
+     */
+    private static class LoopState {
+        /**
+         * A list of ThrottleListeners that are interested in bandwidthAvailable events.
+         * <p>
+         * As ThrottleListeners interest themselves interest themselves for writing, 
+         * the requests are queued up here.  When bandwidth is available the request is
+         * moved over to 'interested' after informing the ThrottleListener that bandwidth
+         * is available.  New ThrottleListeners should not be added to this if they are
+         * already in interested.
+         */
+        private final Set<ThrottleListener> requests = new HashSet<ThrottleListener>();
+        
+        /**
+         * Attachments that are interested -> ThrottleListener that owns the attachment.
+         * <p>
+         * As new items become interested, they are added to the bottom of the set.
+         * When something is written, so long as it writes > 0, it is removed from the
+         * list (and put back at the bottom).
+         */
+        private final Map<Object, ThrottleListener> interested = new LinkedHashMap<Object, ThrottleListener>();
+        
+        /**
+         * Attachments that are ready-op'd.
+         * <p>
+         * This is temporary per each selectableKeys call, but is cached to avoid regenerating
+         * each time.
+         */
+        private final Map<Object, SelectionKey> ready = new HashMap<Object, SelectionKey>();
+        
+        /** The thread that is currently active in the selectableKeys portion, if any. */
+        private volatile Thread active = null;
+    }
 }
     
     
@@ -1,6 +1,7 @@
 package org.limewire.nio;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedSelectorException;
@@ -17,6 +18,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
@@ -87,30 +89,57 @@ import org.limewire.service.ErrorService;
  * that Observer will be shutdown and will no longer receive events. If any 
  * <code>IOExceptions</code> occur while handling events for an Observer, 
  * <code>handleIOException</code> is called on that Observer.
+ * <p>
+ * By default all channels are serviced by a single thread.  Setting the
+ * {@link #EVENT_LOOPS_PROPERTY} system property starts several event loops,
+ * each with its own thread, <code>Selector</code>, task queues, throttle list
+ * and timeouts.  A channel is pinned to one loop when it is registered and all
+ * of its events are handled on that loop's thread; tasks that must not run
+ * concurrently with a channel's observers should be submitted to
+ * {@link #getScheduledExecutorService(SelectableChannel)}.  Channels that use
+ * a custom <code>Selector</code> are always serviced by the primary loop.
  */
 @EagerSingleton
-public class NIODispatcher implements Runnable {
+public class NIODispatcher {
     
     private static final Log LOG = LogFactory.getLog(NIODispatcher.class);
     
+    /**
+     * The system property that sets the number of event loops. A value of 0
+     * or less uses one loop per available processor. Defaults to 1.
+     */
+    public static final String EVENT_LOOPS_PROPERTY = "org.limewire.nio.eventLoops";
+    
     private static final NIODispatcher INSTANCE = new NIODispatcher();
     public static final NIODispatcher instance() { return INSTANCE; }
     private NIODispatcher() {
-        boolean failed = false;
-        try {
-            primarySelector = Selector.open();
-        } catch(IOException iox) {
-            failed = true;
-        }
+        this(Integer.getInteger(EVENT_LOOPS_PROPERTY, 1));
+    }
+    
+    /**
+     * Constructs a dispatcher that services channels with the given number
+     * of event loops, or one per processor if <code>numLoops</code> is 0 or less.
+     */
+    NIODispatcher(int numLoops) {
+        if(numLoops <= 0)
+            numLoops = Runtime.getRuntime().availableProcessors();
         
-        if(!failed) {
-            dispatchThread = ThreadExecutor.newManagedThread(this, "NIODispatcher");
-            dispatchThread.start();
-        } else {
-            dispatchThread = null;
+        List<EventLoop> created = new ArrayList<EventLoop>(numLoops);
+        created.add(new EventLoop("NIODispatcher", 0));
+        for(int i = 1; i < numLoops; i++) {
+            EventLoop loop = new EventLoop("NIODispatcher-" + i, created.size());
+            if(loop.dispatchThread != null)
+                created.add(loop);
+            else
+                LOG.warn("Unable to open selector for event loop " + i);
         }
         
-        EXECUTOR = new NIOExecutorService(dispatchThread);
+        loops = created.toArray(new EventLoop[created.size()]);
+        primaryLoop = loops[0];
+        EXECUTOR = new NIOExecutorService(null);
+        
+        for(EventLoop loop : loops)
+            loop.start();
     }
     
     /**
@@ -125,11 +154,24 @@ public class NIODispatcher implements Runnable {
     /** The length of time between clearing intervals for the cache. */
     private static final long CACHE_CLEAR_INTERVAL = 30000;
     
-    /** The thread this is being run on. */
-    private final Thread dispatchThread;
+    /** The event loops, the primary loop is the first element. */
+    private final EventLoop[] loops;
     
-    /** Queue lock. */
-    private final Object Q_LOCK = new Object();
+    /**
+     * The loop that polls the secondary Selectors.  Channels registered with
+     * a secondary Selector are always serviced by this loop.
+     */
+    private final EventLoop primaryLoop;
+    
+    /**
+     * The loops that channels have been pinned to.  Only used if there is
+     * more than one loop.
+     */
+    private final Map<SelectableChannel, EventLoop> CHANNEL_LOOPS =
+        new WeakHashMap<SelectableChannel, EventLoop>();
+    
+    /** The index of the loop the next new channel is pinned to, guarded by CHANNEL_LOOPS. */
+    private int nextLoop = 0;
     
     /** Stats for the selector */
     @InspectionPoint("nio selector stats")
@@ -138,7 +180,10 @@ public class NIODispatcher implements Runnable {
     /** A listener to notify the NIO thread when a selector has a pending event. */
     private final TransportListener TRANSPORT_LISTENER = new MyTransportListener();
     
-    /** An ExecutorService that invokes runnables on the NIO thread. */
+    /**
+     * An ExecutorService that invokes runnables on the current event loop,
+     * or the primary loop if not called from an NIO thread.
+     */
     private final ScheduledExecutorService EXECUTOR;
     
     /**
@@ -151,44 +196,28 @@ public class NIODispatcher implements Runnable {
     /** A list of other Selectors that should be polled. */
     private final List <Selector> POLLERS = new ArrayList<Selector>();
     
-    /** The invokeLater queue. */
-    private Collection <Runnable> LATER = new LinkedList<Runnable>();
-    
-    /** A queue of DelayedRunnables to process tasks. */
-    private final BlockingQueue<ScheduledFutureTask> DELAYED = new DelayQueue<ScheduledFutureTask>();
-    
-    /** The throttle queue. */
-    private final List <NBThrottle> THROTTLE = new ArrayList<NBThrottle>();
-    
-    /** The timeout manager. */
-    private final TimeoutController TIMEOUTER = new TimeoutController();
-    
     /**
      * A common ByteBufferCache that classes can use.
      * TODO: Move somewhere else.
      */
     private final ByteBufferCache BUFFER_CACHE = new ByteBufferCache();
     
-    /** The selector this uses. */
-    private Selector primarySelector = null;
-    
-    /** The current iteration of selection. */
-    private long iteration = 0;
-    
-    /** Whether or not we've tried to wake up the selector. */
-    private volatile boolean wokeup = false;
-    
     /** The last time the ByteBufferCache was cleared. */
     private long lastCacheClearTime;
     
     /** Returns true if the NIODispatcher is merrily chugging along. */
     public boolean isRunning() {
-        return dispatchThread != null;
+        return primaryLoop.dispatchThread != null;
     }
 
-    /** Determine if this is the dispatch thread. */
+    /** Determine if this is the dispatch thread of any event loop. */
     public boolean isDispatchThread() {
-        return Thread.currentThread() == dispatchThread;
+        return currentLoop() != null;
+    }
+    
+    /** Returns the number of event loops that service channels. */
+    public int getNumEventLoops() {
+        return loops.length;
     }
     
     /** Gets the common <code>ByteBufferCache</code>. */
@@ -198,18 +227,22 @@ public class NIODispatcher implements Runnable {
     
     /** Returns the number of timeouts that are pending. */
     public int getNumPendingTimeouts() {
-        return TIMEOUTER.getNumPendingTimeouts();
+        int pending = 0;
+        for(EventLoop loop : loops)
+            pending += loop.TIMEOUTER.getNumPendingTimeouts();
+        return pending;
     }
 
-    /** Adds a <code>Throttle</code> into the throttle requesting loop. */
+    /**
+     * Adds a <code>Throttle</code> into the throttle requesting loop of
+     * every event loop.  Each loop keeps its own state in the throttle.
+     */
     // TODO: have some way to remove Throttles, or make these use WeakReferences
     public void addThrottle(final NBThrottle t) {
-        if(Thread.currentThread() == dispatchThread)
-            THROTTLE.add(t);
-        else {
-            executeLaterAlways(new Runnable() {
+        for(final EventLoop loop : loops) {
+            loop.execute(new Runnable() {
                 public void run() {
-                    THROTTLE.add(t);
+                    loop.THROTTLE.add(t);
                 }
             });
         }
@@ -247,13 +280,11 @@ public class NIODispatcher implements Runnable {
     
     /** Register interest. */
     private void register(SelectableChannel channel, IOErrorObserver handler, int op, int timeout) {
-        if(Thread.currentThread() == dispatchThread) {
-            registerImpl(getSelectorFor(channel), channel, op, handler, timeout);
+        EventLoop loop = getLoopFor(channel);
+        if(Thread.currentThread() == loop.dispatchThread) {
+            loop.registerImpl(getSelectorFor(channel, loop), channel, op, handler, timeout);
         } else {
-            synchronized(Q_LOCK) {
-                LATER.add(new RegisterOp(channel, handler, op, timeout));
-            }
-            wakeup();
+            loop.executeLaterAlways(loop.new RegisterOp(channel, handler, op, timeout));
         }
     }
     
@@ -284,7 +315,8 @@ public class NIODispatcher implements Runnable {
     /** Registers interest on the channel for the given <code>op</code> */
     private void interest(SelectableChannel channel, int op, boolean on) {
         try {
-            Selector sel = getSelectorFor(channel);
+            EventLoop loop = getLoopFor(channel);
+            Selector sel = getSelectorFor(channel, loop);
             SelectionKey sk = channel.keyFor(sel);
             if(sk != null && sk.isValid()) {
                 // We must synchronize on something unique to each key,
@@ -295,7 +327,7 @@ public class NIODispatcher implements Runnable {
                 int oldOps;
                 synchronized(sk.attachment()) {
                     if((op & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
-                        ((Attachment)sk.attachment()).changeReadStatus(on);
+                        ((EventLoop.Attachment)sk.attachment()).changeReadStatus(on);
                     }
                     
                     oldOps = sk.interestOps();
@@ -308,7 +340,7 @@ public class NIODispatcher implements Runnable {
                 
                 // if we're turning it on and it wasn't on before...
                 if(on && (oldOps & op) != op)
-                    wakeup();
+                    loop.wakeup();
             }
         } catch(CancelledKeyException ignored) {
             // Because closing can happen in any thread, the key may be cancelled
@@ -318,14 +350,86 @@ public class NIODispatcher implements Runnable {
     }
     
     /** Returns the <code>Selector</code> that should be used for the given channel. */
-    private Selector getSelectorFor(SelectableChannel channel) {
+    Selector getSelectorFor(SelectableChannel channel) {
+        return getSelectorFor(channel, getLoopFor(channel));
+    }
+    
+    /**
+     * Returns the <code>Selector</code> that should be used for the given channel,
+     * which is serviced by <code>loop</code>.
+     */
+    private Selector getSelectorFor(SelectableChannel channel, EventLoop loop) {
         Selector sel = OTHER_SELECTORS.get(channel.getClass());
         if(sel == null)
-            return primarySelector; // default selector
+            return loop.selector; // default selector
         else
             return sel;      // custom selector
     }
     
+    /**
+     * Returns the event loop that services the given channel.
+     * <p>
+     * Channels that use a custom selector are serviced by the primary loop.
+     * All other channels are pinned to a loop, in round-robin order, the first
+     * time they are seen and stay with that loop until they are collected.
+     */
+    private EventLoop getLoopFor(SelectableChannel channel) {
+        if(loops.length == 1 || channel == null || OTHER_SELECTORS.containsKey(channel.getClass()))
+            return primaryLoop;
+        
+        // Registered channels can be looked up without locking.
+        for(int i = 0; i < loops.length; i++) {
+            Selector sel = loops[i].selector;
+            if(sel != null && channel.keyFor(sel) != null)
+                return loops[i];
+        }
+        
+        synchronized(CHANNEL_LOOPS) {
+            EventLoop loop = CHANNEL_LOOPS.get(channel);
+            if(loop == null) {
+                loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                CHANNEL_LOOPS.put(channel, loop);
+            }
+            return loop;
+        }
+    }
+    
+    /**
+     * Returns the index of the event loop that services the channel of a
+     * throttle listener's attachment, the current loop if the attachment
+     * is not a socket, or 0 if not called from an NIO thread.
+     */
+    int getLoopIndex(Object attachment) {
+        if(loops.length == 1)
+            return 0;
+        if(attachment instanceof Socket) {
+            SocketChannel channel = ((Socket)attachment).getChannel();
+            if(channel != null)
+                return getLoopFor(channel).index;
+        }
+        return getCurrentLoopIndex();
+    }
+    
+    /**
+     * Returns the index of the event loop running on the current thread,
+     * or 0 if not called from an NIO thread.
+     */
+    int getCurrentLoopIndex() {
+        EventLoop loop = loops.length == 1 ? null : currentLoop();
+        return loop == null ? 0 : loop.index;
+    }
+    
+    /** Returns the event loop running on the current thread, or null if none. */
+    private EventLoop currentLoop() {
+        Thread current = Thread.currentThread();
+        for(int i = 0; i < loops.length; i++) {
+            if(loops[i].dispatchThread == current)
+                return loops[i];
+        }
+        return null;
+    }
+    
     /** Shuts down the handler, possibly scheduling it for shutdown in the 
      * <code>NIODispatch</code> thread. */
     public void shutdown(Shutdownable handler) {
@@ -338,59 +442,82 @@ public class NIODispatcher implements Runnable {
      * registered.
      */
     public void registerSelector(final Selector newSelector, final Class<? extends SelectableChannel> channelClass) {
-        if(Thread.currentThread() == dispatchThread) {
-            POLLERS.add(newSelector);
-            OTHER_SELECTORS.put(channelClass, newSelector);
-        } else {
-            executeLaterAlways(new Runnable() {
-                public void run() {
-                    POLLERS.add(newSelector);
-                    OTHER_SELECTORS.put(channelClass, newSelector);
-                }
-            });
-        }
+        primaryLoop.execute(new Runnable() {
+            public void run() {
+                POLLERS.add(newSelector);
+                OTHER_SELECTORS.put(channelClass, newSelector);
+            }
+        });
     }
     
     /**
      * Removes a registered Selector.
      */
     public void removeSelector(final Selector selector) {
-        if(Thread.currentThread() == dispatchThread) {
-            POLLERS.remove(selector);
-            OTHER_SELECTORS.remove(selector);
-        } else {
-            executeLaterAlways(new Runnable() {
-                public void run() {
-                    POLLERS.remove(selector);
-                    OTHER_SELECTORS.remove(selector);
-                }
-            });
-        }
+        primaryLoop.execute(new Runnable() {
+            public void run() {
+                POLLERS.remove(selector);
+                OTHER_SELECTORS.remove(selector);
+            }
+        });
     }
     
     /**
      * Retrieves the <code>ExecutorService</code> this <code>NIODispatcher</code> uses to
      * run things on the NIO Thread.
-     * If tasks are submitted for execution while already on the NIO thread,
+     * If tasks are submitted for execution while already on an NIO thread,
      * the task will be immediately run. Otherwise,
      * the tasks will be scheduled for running as soon as possible on the
-     * NIO Thread.
+     * thread of the primary event loop.
+     * <p>
+     * If there is more than one event loop, tasks that share state with the
+     * observers of a channel should use {@link #getScheduledExecutorService(SelectableChannel)}.
      */
     public ScheduledExecutorService getScheduledExecutorService() {
         return EXECUTOR;
     }
     
-    /** Submits the runnable for execution later, even if the current thread is the NIO thread. */
+    /**
+     * Retrieves an <code>ExecutorService</code> that runs things on the thread
+     * of the event loop that services <code>channel</code>.
+     * If tasks are submitted for execution while already on that thread,
+     * the task will be immediately run.
+     */
+    public ScheduledExecutorService getScheduledExecutorService(SelectableChannel channel) {
+        return getLoopFor(channel).executor;
+    }
+    
+    /**
+     * Submits the runnable for execution later, even if the current thread is the NIO thread.
+     * The runnable is run by the current event loop, or the primary loop if not called
+     * from an NIO thread.
+     */
     public void executeLaterAlways(Runnable runner) {
-        synchronized(Q_LOCK) {
-            LATER.add(runner);
-        }
-        wakeup();
+        EventLoop loop = currentLoop();
+        if(loop == null)
+            loop = primaryLoop;
+        loop.executeLaterAlways(runner);
+    }
+    
+    /**
+     * Submits the runnable for execution later on the event loop that services
+     * <code>channel</code>, even if the current thread is that loop's thread.
+     */
+    public void executeLaterAlways(SelectableChannel channel, Runnable runner) {
+        getLoopFor(channel).executeLaterAlways(runner);
+    }
+    
+    /**
+     * Creates the attachment that would be used for a channel serviced by the
+     * primary loop, without registering anything.
+     */
+    Object newAttachment(IOErrorObserver attachment) {
+        return primaryLoop.new Attachment(attachment);
     }
     
     /** Gets the underlying attachment for the given <code>SelectionKey</code>'s attachment. */
     public IOErrorObserver attachment(Object proxyAttachment) {
-        return ((Attachment)proxyAttachment).attachment;
+        return ((EventLoop.Attachment)proxyAttachment).attachment;
     }
     
     /**
@@ -408,7 +535,7 @@ public class NIODispatcher implements Runnable {
      * 
      * @throws IOException
      */
-    private void processAccept(long now, SelectionKey sk, AcceptChannelObserver handler, Attachment proxy) throws IOException {
+    private void processAccept(long now, SelectionKey sk, AcceptChannelObserver handler, EventLoop.Attachment proxy) throws IOException {
         if(LOG.isDebugEnabled())
             LOG.debug("Handling accept: " + handler);
         
@@ -433,7 +560,7 @@ public class NIODispatcher implements Runnable {
     /**
      * Process a connected channel.
      */
-    private void processConnect(long now, SelectionKey sk, ConnectObserver handler, Attachment proxy)
+    private void processConnect(long now, SelectionKey sk, ConnectObserver handler, EventLoop.Attachment proxy)
       throws IOException {
         if (LOG.isDebugEnabled())
             LOG.debug("Handling connect: " + handler);
@@ -451,7 +578,7 @@ public class NIODispatcher implements Runnable {
     }
     
     /** Process a channel read operation. */
-    private void processRead(long now, ReadObserver handler, Attachment proxy) throws IOException {
+    private void processRead(long now, ReadObserver handler, EventLoop.Attachment proxy) throws IOException {
         if (LOG.isDebugEnabled())
             LOG.debug("Handling read: " + handler);
         proxy.updateReadTimeout(now);
@@ -459,77 +586,12 @@ public class NIODispatcher implements Runnable {
     }
     
     /** Process a channel write operation. */
-    private void processWrite(long now, WriteObserver handler, Attachment proxy) throws IOException {
+    private void processWrite(long now, WriteObserver handler, EventLoop.Attachment proxy) throws IOException {
         if (LOG.isDebugEnabled())
             LOG.debug("Handling write: " + handler);
         handler.handleWrite();
     }
     
-    /**
-     * Does a real registration.
-     */
-    private void registerImpl(Selector selector, SelectableChannel channel, int op,
-                              IOErrorObserver attachment, int timeout) {
-        try {
-            SelectionKey existing = channel.keyFor(selector);
-            if(existing != null) {
-                Attachment old = (Attachment)existing.attachment();
-                old.discard();
-            }
-            
-            Attachment guard = new Attachment(attachment);
-            SelectionKey key = channel.register(selector, op, guard);
-            guard.setKey(key);
-            if(timeout != 0) 
-                guard.addTimeout(System.currentTimeMillis(), timeout);
-            else if((op & SelectionKey.OP_READ) != 0)
-                guard.changeReadStatus(true);
-        } catch(IOException iox) {
-            attachment.handleIOException(iox);
-        }
-    }
-    
-    /**
-     * Adds any pending actions.
-     * <p>
-     * This works by adding any pending actions into a local list and then replacing
-     * LATER with a new list.  This is done so that actions to the outside world
-     * don't need to hold Q_LOCK.
-     * <p>
-     * Throttle is ticked outside the lock because ticking only hits items in this
-     * package and we can ensure it doesn't deadlock.
-     */
-    private void runPendingTasks() {
-        long now = System.currentTimeMillis();
-        Collection<Runnable> localLater;
-        synchronized(Q_LOCK) {
-            localLater = LATER;
-            LATER = new LinkedList<Runnable>();
-        }
-        
-        DELAYED.drainTo(localLater);
-        
-        if(now > lastCacheClearTime + CACHE_CLEAR_INTERVAL) {
-            BUFFER_CACHE.clearCache();
-            lastCacheClearTime = now;
-        }
-        
-        if(!localLater.isEmpty()) {
-            for(Runnable item : localLater) {
-                try {
-                    item.run();
-                } catch(Throwable t) {
-                    LOG.error(t);
-                    ErrorService.error(t);
-                }
-            }
-        }
-        
-        now = System.currentTimeMillis();
-        for(NBThrottle t: THROTTLE)
-            t.tick(now);
-    }
-    
     /**
      * Runs through all secondary Selectors and returns a 
      * Collection of <code>SelectionKey</code>s that they selected.
@@ -572,238 +634,53 @@ public class NIODispatcher implements Runnable {
     }
     
     /**
-     * Loops through all <code>Throttles</code> and gives them the ready keys.
-     */
-    private void readyThrottles(Collection<SelectionKey> keys) {
-        for (int i = 0; i < THROTTLE.size(); i++)
-            THROTTLE.get(i).selectableKeys(keys);
-    }
-    
-    /**
-     * Wakes up the primary selector if it wasn't already woken up,
-     * and the current thread is not the dispatch thread.
+     * Wakes up the selector of every event loop that wasn't already woken up,
+     * unless the current thread is the loop's dispatch thread.
      */
     void wakeup() {
-        if(!wokeup && Thread.currentThread() != dispatchThread && primarySelector != null) {
-            wokeup = true;
-            primarySelector.wakeup();
-        }
+        for(int i = 0; i < loops.length; i++)
+            loops[i].wakeup();
     }
     
     /**
-     * The actual NIO run loop.
+     * Wakes up the selector of the event loop with the given index, unless
+     * the current thread is that loop's dispatch thread.
      */
-    private void process() throws ProcessingException, SpinningException {
-        boolean checkTime = false;
-        long startSelect = -1;
-        int zeroes = 0;
-        int ignores = 0;
-        
-        while(true) {
-            runPendingTasks();
-            
-            Collection<SelectionKey> polled = pollOtherSelectors();
-            boolean immediate = !polled.isEmpty();
-            try {
-                if(!immediate && checkTime)
-                    startSelect = System.currentTimeMillis();
-                
-                if(!immediate) {
-                	long delay = nextSelectTimeout();
-                	if (delay == 0) {
-                		immediate = true;
-                    } else {
-                        long nanoNow = System.nanoTime();
-                        try {
-                            if (Thread.interrupted())
-                                LOG.warn("interrupted?");
-                            primarySelector.select(Math.min(delay, Integer.MAX_VALUE));
-                        } finally {
-                            stats.updateSelectTime(System.nanoTime() - nanoNow);
-                        }
-                    }
-                }
-                
-                if (immediate) {
-                    stats.countSelectNow();
-                    primarySelector.selectNow();
-                }
-            } catch (NullPointerException err) {
-                LOG.warn("npe", err);
-                continue;
-            } catch (CancelledKeyException err) {
-                LOG.warn("cancelled", err);
-                continue;
-            } catch (IOException iox) {
-                throw new ProcessingException(iox);
-            }
-            
-            Collection<SelectionKey> keys = primarySelector.selectedKeys();
-            if(!immediate && !wokeup) {
-                if(keys.isEmpty()) {
-                    long now = System.currentTimeMillis();
-                    if(startSelect == -1) {
-                        LOG.trace("No keys selected, starting spin check.");
-                        checkTime = true;
-                    } else if(startSelect + 30 >= now) {
-                        if(LOG.isWarnEnabled())
-                            LOG.warn("Spinning detected, current spins: " + zeroes+" startSelect "+startSelect+" now "+now+" keys "+primarySelector.keys());
-                        if(zeroes++ > SPIN_AMOUNT)
-                            throw new SpinningException();
-                    } else { // waited the timeout just fine, reset everything.
-                        checkTime = false;
-                        startSelect = -1;
-                        zeroes = 0;
-                        ignores = 0;
-                    }
-                    TIMEOUTER.processTimeouts(now);
-                    continue;                
-                } else if (checkTime) {             
-                    // skip up to certain number of good selects if we suspect the selector is broken
-                    ignores++;
-                    if (ignores > MAX_IGNORES) {
-                        checkTime = false;
-                        zeroes = 0;
-                        startSelect = -1;
-                        ignores = 0;
-                    }
-                }
-            }
-            
-            if(LOG.isTraceEnabled())
-                LOG.trace("Selected keys: (" + keys.size() + "), polled: (" + polled.size() + "). wokeup "+wokeup+" immediate "+immediate);
-            
-            Collection<SelectionKey> allKeys;
-            if(!polled.isEmpty()) {
-                allKeys = new HashSet<SelectionKey>(keys.size() + polled.size());
-                allKeys.addAll(keys);
-                allKeys.addAll(polled);
-            } else {
-                allKeys = keys;
-            }
-            
-            readyThrottles(allKeys);
-            
-            long now = System.currentTimeMillis();
-            for(SelectionKey sk : allKeys) 
-				process(now, sk, sk.attachment(), 0xFFFF);
-            
-            keys.clear();
-            iteration++;
-            TIMEOUTER.processTimeouts(now);
-            wokeup = false;
-        }
+    void wakeup(int loopIndex) {
+        loops[loopIndex].wakeup();
     }
     
     /**
-     * @return the timeout of the next select call. 0 if it should be immediate
+     * Stops every event loop and closes its selector.  Channels that are
+     * registered are not shut down.  This is only used by tests; the shared
+     * instance runs until the VM exits.
      */
-    private long nextSelectTimeout() {
-        // first see when the next throttle should tick
-        long next = Long.MAX_VALUE;
-        for (Throttle t : THROTTLE)
-            next = Math.min(next, t.nextTickTime());
-        long now = System.currentTimeMillis();
-        next -= now;
-        if (next <= 0)
-            return 0;
-
-        // then check when the next timeout is due
-        long timeout = TIMEOUTER.getNextExpireTime();
-        if (timeout > -1)
-            next = Math.min(next, timeout - now);
-        if (next <= 0)
-            return 0;
-
-        // then see when the next scheduled task is due
-        // Note: DelayedQueue.peek() returns the element even if not expired.
-        Delayed nextScheduled = DELAYED.peek();
-        if (nextScheduled != null)
-            next = Math.min(next, nextScheduled.getDelay(TimeUnit.MILLISECONDS));
-        return Math.max(0, next);
+    void stopEventLoops() {
+        for(EventLoop loop : loops)
+            loop.stop();
     }
     
     /**
      * Returns true if this channel is going to have handleRead called on its
      * attachment in this iteration of the NIODispatcher's processing.
      * <p>
-     * This must be called from the NIODispatch thread to have any meaningful impact.
+     * This must be called from the dispatch thread of the channel's event loop 
+     * to have any meaningful impact.
      */
     boolean isReadReadyThisIteration(SelectableChannel channel) {
-        SelectionKey sk = channel.keyFor(getSelectorFor(channel));
-        Object proxyAttachment = sk.attachment();
-        if(proxyAttachment instanceof Attachment) {
-            Attachment proxy = (Attachment)sk.attachment();
-            if(proxy.lastMod == iteration+1) {
-                if(sk.isValid()) {
-                    try {
-                        return (sk.readyOps() & (~proxy.handled) & SelectionKey.OP_READ) != 0;
-                    } catch(CancelledKeyException ignored) {}
-                }
-            }
-        }
-        
-        return false;
+        EventLoop loop = getLoopFor(channel);
+        return loop.isReadReadyThisIteration(channel.keyFor(getSelectorFor(channel, loop)));
     }
     
     /**
      * Processes a single SelectionKey & attachment, processing only
      * ops that are in allowedOps.
+     * <p>
+     * This must be called from the dispatch thread of the event loop
+     * the key belongs to.
      */
     void process(long now, SelectionKey sk, Object proxyAttachment, int allowedOps) {
-        Attachment proxy = (Attachment)proxyAttachment;
-        IOErrorObserver attachment = proxy.attachment;
-        
-        // NOTE: handled is updated in proxy to prevent items that were processed
-        //       from throttles from being reprocessed.
-        //       it is reset to 0 whenever the item is being processed for the first
-        //       time in a given iteration.
-
-        if(proxy.lastMod <= iteration)
-            proxy.handled = 0;
-            
-        proxy.lastMod = iteration + 1;
-        
-        if(sk.isValid()) {
-            try {
-                try {
-                    int notHandled = ~proxy.handled;
-                    int readyOps = sk.readyOps();
-                    if ((allowedOps & readyOps & notHandled & SelectionKey.OP_ACCEPT) != 0)  {
-                        proxy.handled |= SelectionKey.OP_ACCEPT;
-                        processAccept(now, sk, (AcceptChannelObserver)attachment, proxy);
-                    } else if((allowedOps & readyOps & notHandled & SelectionKey.OP_CONNECT) != 0) {
-                        proxy.handled |= SelectionKey.OP_CONNECT;
-                        processConnect(now, sk, (ConnectObserver)attachment, proxy);
-                    } else {
-                        if ((allowedOps & readyOps & notHandled & SelectionKey.OP_READ) != 0) {
-                            proxy.handled |= SelectionKey.OP_READ;
-                            processRead(now, (ReadObserver)attachment, proxy);
-                        }
-                        if ((allowedOps & readyOps & notHandled & SelectionKey.OP_WRITE) != 0) {
-                            proxy.handled |= SelectionKey.OP_WRITE;
-                            processWrite(now, (WriteObserver)attachment, proxy);
-                        }
-                    }
-                } catch (CancelledKeyException err) {
-                    LOG.warn("Ignoring cancelled key", err);
-                } catch(IOException iox) {
-                    LOG.warn("IOX processing", iox);
-                    try {
-                        sk.cancel(); // make sure its cancelled.
-                    } catch(Throwable ignored) {}
-                    attachment.handleIOException(iox);
-                }
-            } catch(Throwable t) {
-                ErrorService.error(t, "Unhandled exception while dispatching");
-                safeCancel(sk, attachment);
-            }
-        } else {
-            if(LOG.isErrorEnabled())
-                LOG.error("SelectionKey cancelled for: " + attachment);
-            // we've had too many hits in a row.  kill this attachment.
-            safeCancel(sk, attachment);
-        }
+        ((EventLoop.Attachment)proxyAttachment).getLoop().process(now, sk, proxyAttachment, allowedOps);
     }
     
     /** A very safe cancel, ignoring errors & only shutting down if possible. */
@@ -814,209 +691,628 @@ public class NIODispatcher implements Runnable {
     }
     
     /**
-     * Swaps all channels out of the old selector & puts them in the new one.
+     * An event loop that runs on its own thread and services the channels
+     * pinned to it.  Each loop has its own <code>Selector</code>, invokeLater
+     * queue, scheduled tasks, throttle list and timeouts, so observers of a
+     * channel are only ever notified on a single thread.
      */
-    private void swapSelector() {
-        Selector oldSelector = primarySelector;
-        Collection<SelectionKey> oldKeys = Collections.emptySet();
-        try {
-            if(oldSelector != null)
-                oldKeys = oldSelector.keys();
-        } catch(ClosedSelectorException ignored) {
-            LOG.warn("error getting keys", ignored);
+    private class EventLoop implements Runnable {
+        
+        /** The thread this is being run on. */
+        private final Thread dispatchThread;
+        
+        /** The position of this loop in the loops of the dispatcher. */
+        private final int index;
+        
+        /** Whether the loop has been told to stop. */
+        private volatile boolean stopped = false;
+        
+        /** Queue lock. */
+        private final Object Q_LOCK = new Object();
+        
+        /** The invokeLater queue. */
+        private Collection <Runnable> LATER = new LinkedList<Runnable>();
+        
+        /** A queue of DelayedRunnables to process tasks. */
+        private final BlockingQueue<ScheduledFutureTask> DELAYED = new DelayQueue<ScheduledFutureTask>();
+        
+        /** The throttle queue. */
+        private final List <NBThrottle> THROTTLE = new ArrayList<NBThrottle>();
+        
+        /** The timeout manager. */
+        private final TimeoutController TIMEOUTER = new TimeoutController();
+        
+        /** An ExecutorService that invokes runnables on this loop's thread. */
+        private final ScheduledExecutorService executor;
+        
+        /** The selector this uses. */
+        private volatile Selector selector = null;
+        
+        /** The current iteration of selection. */
+        private long iteration = 0;
+        
+        /** Whether or not we've tried to wake up the selector. */
+        private volatile boolean wokeup = false;
+        
+        EventLoop(String name, int index) {
+            this.index = index;
+            boolean failed = false;
+            try {
+                selector = Selector.open();
+            } catch(IOException iox) {
+                failed = true;
+            }
+            
+            if(!failed)
+                dispatchThread = ThreadExecutor.newManagedThread(this, name);
+            else
+                dispatchThread = null;
+            
+            executor = new NIOExecutorService(this);
         }
         
-        try {
-            primarySelector = Selector.open();
-        } catch(IOException iox) {
-            LOG.error("Can't make a new selector!!!", iox);
-            throw new RuntimeException(iox);
+        /** Starts the dispatch thread, if a selector could be opened. */
+        void start() {
+            if(dispatchThread != null)
+                dispatchThread.start();
         }
         
-        // We do not have to concern ourselves with secondary selectors,
-        // because we only retrieves keys from the primary one.
-        for(SelectionKey key : oldKeys ) {
-            try {
-                SelectableChannel channel = key.channel();
-                Attachment attachment = (Attachment)key.attachment();
-                int ops = key.interestOps();
-                try {
-                    SelectionKey newKey = channel.register(primarySelector, ops, attachment);
-                    attachment.setKey(newKey);
-                } catch(IOException iox) {
-                    attachment.attachment.handleIOException(iox);
-                }
-            } catch(CancelledKeyException ignored) {
-                LOG.warn("key cancelled while swapping", ignored);
+        /** Stops the loop once it finishes its current iteration. */
+        void stop() {
+            stopped = true;
+            Selector sel = selector;
+            if(sel != null)
+                sel.wakeup();
+        }
+        
+        /**
+         * Runs the runnable immediately if this is the loop's thread,
+         * otherwise submits it for execution later.
+         */
+        void execute(Runnable runner) {
+            if(Thread.currentThread() == dispatchThread)
+                runner.run();
+            else
+                executeLaterAlways(runner);
+        }
+        
+        /** Submits the runnable for execution later, even if the current thread is this loop's thread. */
+        void executeLaterAlways(Runnable runner) {
+            synchronized(Q_LOCK) {
+                LATER.add(runner);
             }
+            wakeup();
         }
         
-        try {
-            if(oldSelector != null)
-                oldSelector.close();
-        } catch(IOException ignored) {
-            LOG.warn("error closing old selector", ignored);
+        /** Schedules the task to be run on this loop once its delay has expired. */
+        void schedule(ScheduledFutureTask<?> task) {
+            DELAYED.add(task);
+            wakeup();
         }
-    }
-    
-    /**
-     * The <code>run</code> loop.
-     */
-    public void run() {
-        while(true) {
+        
+        /**
+         * Does a real registration.
+         */
+        private void registerImpl(Selector selector, SelectableChannel channel, int op,
+                                  IOErrorObserver attachment, int timeout) {
             try {
-                if(primarySelector == null)
-                    primarySelector = Selector.open();
-                process();
-            } catch(SpinningException spin) {
-                LOG.warn("selector is spinning!", spin);
-                swapSelector();
-            } catch(ProcessingException uhoh) {
-                LOG.warn("unknown exception while selecting", uhoh);
-                swapSelector();
-            } catch(IOException iox) {
-                LOG.error("Unable to create a new Selector!!!", iox);
-                throw new RuntimeException(iox);
-            } catch(Throwable err) {
-                LOG.error("Error in Selector!", err);
-                ErrorService.error(err);
+                SelectionKey existing = channel.keyFor(selector);
+                if(existing != null) {
+                    Attachment old = (Attachment)existing.attachment();
+                    old.discard();
+                }
                 
-                swapSelector();
+                Attachment guard = new Attachment(attachment);
+                SelectionKey key = channel.register(selector, op, guard);
+                guard.setKey(key);
+                if(timeout != 0) 
+                    guard.addTimeout(System.currentTimeMillis(), timeout);
+                else if((op & SelectionKey.OP_READ) != 0)
+                    guard.changeReadStatus(true);
+            } catch(IOException iox) {
+                attachment.handleIOException(iox);
             }
         }
-    }
-    
-    /**
-     * Encapsulates an attachment.
-     * Contains methods for timing out an attachment,
-     * keeping track of the number of successive hits, etc...
-     */
-    class Attachment implements Timeoutable {        
-        private final IOErrorObserver attachment;
-        private long lastMod;
-        private int handled;
-        private SelectionKey key;
-
-        private boolean timeoutActive = false;
-        private long storedTimeoutLength = Long.MAX_VALUE;
-        private long storedExpireTime = Long.MAX_VALUE;
         
-        private volatile boolean discarded;
+        /**
+         * Adds any pending actions.
+         * <p>
+         * This works by adding any pending actions into a local list and then replacing
+         * LATER with a new list.  This is done so that actions to the outside world
+         * don't need to hold Q_LOCK.
+         * <p>
+         * Throttle is ticked outside the lock because ticking only hits items in this
+         * package and we can ensure it doesn't deadlock.
+         */
+        private void runPendingTasks() {
+            long now = System.currentTimeMillis();
+            Collection<Runnable> localLater;
+            synchronized(Q_LOCK) {
+                localLater = LATER;
+                LATER = new LinkedList<Runnable>();
+            }
+            
+            DELAYED.drainTo(localLater);
+            
+            if(this == primaryLoop && now > lastCacheClearTime + CACHE_CLEAR_INTERVAL) {
+                BUFFER_CACHE.clearCache();
+                lastCacheClearTime = now;
+            }
+            
+            if(!localLater.isEmpty()) {
+                for(Runnable item : localLater) {
+                    try {
+                        item.run();
+                    } catch(Throwable t) {
+                        LOG.error(t);
+                        ErrorService.error(t);
+                    }
+                }
+            }
+            
+            now = System.currentTimeMillis();
+            for(NBThrottle t: THROTTLE)
+                t.tick(now, index);
+        }
         
-        Attachment(IOErrorObserver attachment) {
-            this.attachment = attachment;
+        /**
+         * Loops through all <code>Throttles</code> and gives them the ready keys.
+         */
+        private void readyThrottles(Collection<SelectionKey> keys) {
+            for (int i = 0; i < THROTTLE.size(); i++)
+                THROTTLE.get(i).selectableKeys(keys, index);
         }
         
-        @Override
-        public String toString() {
-            return "Attachment for: " + attachment;
+        /**
+         * Wakes up the selector if it wasn't already woken up,
+         * and the current thread is not the dispatch thread.
+         */
+        void wakeup() {
+            Selector sel = selector;
+            if(!wokeup && Thread.currentThread() != dispatchThread && sel != null) {
+                wokeup = true;
+                sel.wakeup();
+            }
         }
         
-        void discard() {
-            discarded = true;
+        /**
+         * The actual NIO run loop.
+         */
+        private void process() throws ProcessingException, SpinningException {
+            boolean checkTime = false;
+            long startSelect = -1;
+            int zeroes = 0;
+            int ignores = 0;
+            Selector primarySelector = selector;
+            
+            while(!stopped) {
+                runPendingTasks();
+                
+                Collection<SelectionKey> polled;
+                if(this == primaryLoop)
+                    polled = pollOtherSelectors();
+                else
+                    polled = Collections.emptySet();
+                boolean immediate = !polled.isEmpty();
+                try {
+                    if(!immediate && checkTime)
+                        startSelect = System.currentTimeMillis();
+                    
+                    if(!immediate) {
+                    	long delay = nextSelectTimeout();
+                    	if (delay == 0) {
+                    		immediate = true;
+                        } else {
+                            long nanoNow = System.nanoTime();
+                            try {
+                                if (Thread.interrupted())
+                                    LOG.warn("interrupted?");
+                                primarySelector.select(Math.min(delay, Integer.MAX_VALUE));
+                            } finally {
+                                stats.updateSelectTime(System.nanoTime() - nanoNow);
+                            }
+                        }
+                    }
+                    
+                    if (immediate) {
+                        stats.countSelectNow();
+                        primarySelector.selectNow();
+                    }
+                } catch (NullPointerException err) {
+                    LOG.warn("npe", err);
+                    continue;
+                } catch (CancelledKeyException err) {
+                    LOG.warn("cancelled", err);
+                    continue;
+                } catch (IOException iox) {
+                    throw new ProcessingException(iox);
+                }
+                
+                Collection<SelectionKey> keys = primarySelector.selectedKeys();
+                if(!immediate && !wokeup) {
+                    if(keys.isEmpty()) {
+                        long now = System.currentTimeMillis();
+                        if(startSelect == -1) {
+                            LOG.trace("No keys selected, starting spin check.");
+                            checkTime = true;
+                        } else if(startSelect + 30 >= now) {
+                            if(LOG.isWarnEnabled())
+                                LOG.warn("Spinning detected, current spins: " + zeroes+" startSelect "+startSelect+" now "+now+" keys "+primarySelector.keys());
+                            if(zeroes++ > SPIN_AMOUNT)
+                                throw new SpinningException();
+                        } else { // waited the timeout just fine, reset everything.
+                            checkTime = false;
+                            startSelect = -1;
+                            zeroes = 0;
+                            ignores = 0;
+                        }
+                        TIMEOUTER.processTimeouts(now);
+                        continue;                
+                    } else if (checkTime) {             
+                        // skip up to certain number of good selects if we suspect the selector is broken
+                        ignores++;
+                        if (ignores > MAX_IGNORES) {
+                            checkTime = false;
+                            zeroes = 0;
+                            startSelect = -1;
+                            ignores = 0;
+                        }
+                    }
+                }
+                
+                if(LOG.isTraceEnabled())
+                    LOG.trace("Selected keys: (" + keys.size() + "), polled: (" + polled.size() + "). wokeup "+wokeup+" immediate "+immediate);
+                
+                Collection<SelectionKey> allKeys;
+                if(!polled.isEmpty()) {
+                    allKeys = new HashSet<SelectionKey>(keys.size() + polled.size());
+                    allKeys.addAll(keys);
+                    allKeys.addAll(polled);
+                } else {
+                    allKeys = keys;
+                }
+                
+                readyThrottles(allKeys);
+                
+                long now = System.currentTimeMillis();
+                for(SelectionKey sk : allKeys) 
+    				process(now, sk, sk.attachment(), 0xFFFF);
+                
+                keys.clear();
+                iteration++;
+                TIMEOUTER.processTimeouts(now);
+                wokeup = false;
+            }
         }
         
-        synchronized void clearTimeout() {
-            timeoutActive = false;
+        /**
+         * @return the timeout of the next select call. 0 if it should be immediate
+         */
+        private long nextSelectTimeout() {
+            // first see when the next throttle should tick
+            long next = Long.MAX_VALUE;
+            for (NBThrottle t : THROTTLE)
+                next = Math.min(next, t.nextTickTime(index));
+            long now = System.currentTimeMillis();
+            next -= now;
+            if (next <= 0)
+                return 0;
+    
+            // then check when the next timeout is due
+            long timeout = TIMEOUTER.getNextExpireTime();
+            if (timeout > -1)
+                next = Math.min(next, timeout - now);
+            if (next <= 0)
+                return 0;
+    
+            // then see when the next scheduled task is due
+            // Note: DelayedQueue.peek() returns the element even if not expired.
+            Delayed nextScheduled = DELAYED.peek();
+            if (nextScheduled != null)
+                next = Math.min(next, nextScheduled.getDelay(TimeUnit.MILLISECONDS));
+            return Math.max(0, next);
         }
         
-        synchronized void updateReadTimeout(long now) {
-            if(!discarded) {
-                if(attachment instanceof ReadTimeout) {
-                    long timeoutLength = ((ReadTimeout)attachment).getReadTimeout();
-                    if(timeoutLength != 0) {
-                        long expireTime = now + timeoutLength;
-                        // We need to add a new timeout if none is scheduled or we need
-                        // to timeout before the next one.
-                        if(expireTime < storedExpireTime || storedExpireTime == -1 || storedExpireTime < now) {
-                            addTimeout(now, timeoutLength);
+        /**
+         * Returns true if the channel of <code>sk</code> is going to have handleRead
+         * called on its attachment in this iteration of the loop's processing.
+         */
+        boolean isReadReadyThisIteration(SelectionKey sk) {
+            Object proxyAttachment = sk.attachment();
+            if(proxyAttachment instanceof Attachment) {
+                Attachment proxy = (Attachment)sk.attachment();
+                if(proxy.lastMod == iteration+1) {
+                    if(sk.isValid()) {
+                        try {
+                            return (sk.readyOps() & (~proxy.handled) & SelectionKey.OP_READ) != 0;
+                        } catch(CancelledKeyException ignored) {}
+                    }
+                }
+            }
+            
+            return false;
+        }
+        
+        /**
+         * Processes a single SelectionKey & attachment, processing only
+         * ops that are in allowedOps.
+         */
+        void process(long now, SelectionKey sk, Object proxyAttachment, int allowedOps) {
+            Attachment proxy = (Attachment)proxyAttachment;
+            IOErrorObserver attachment = proxy.attachment;
+            
+            // NOTE: handled is updated in proxy to prevent items that were processed
+            //       from throttles from being reprocessed.
+            //       it is reset to 0 whenever the item is being processed for the first
+            //       time in a given iteration.
+    
+            if(proxy.lastMod <= iteration)
+                proxy.handled = 0;
+                
+            proxy.lastMod = iteration + 1;
+            
+            if(sk.isValid()) {
+                try {
+                    try {
+                        int notHandled = ~proxy.handled;
+                        int readyOps = sk.readyOps();
+                        if ((allowedOps & readyOps & notHandled & SelectionKey.OP_ACCEPT) != 0)  {
+                            proxy.handled |= SelectionKey.OP_ACCEPT;
+                            processAccept(now, sk, (AcceptChannelObserver)attachment, proxy);
+                        } else if((allowedOps & readyOps & notHandled & SelectionKey.OP_CONNECT) != 0) {
+                            proxy.handled |= SelectionKey.OP_CONNECT;
+                            processConnect(now, sk, (ConnectObserver)attachment, proxy);
                         } else {
-                            // Otherwise, store the timeout info so when we get notified
-                            // we can reschedule it for the future.
-                            storedExpireTime = expireTime;
-                            storedTimeoutLength = timeoutLength;
-                            timeoutActive = true;
+                            if ((allowedOps & readyOps & notHandled & SelectionKey.OP_READ) != 0) {
+                                proxy.handled |= SelectionKey.OP_READ;
+                                processRead(now, (ReadObserver)attachment, proxy);
+                            }
+                            if ((allowedOps & readyOps & notHandled & SelectionKey.OP_WRITE) != 0) {
+                                proxy.handled |= SelectionKey.OP_WRITE;
+                                processWrite(now, (WriteObserver)attachment, proxy);
+                            }
                         }
-                    } else {
-                        clearTimeout();
+                    } catch (CancelledKeyException err) {
+                        LOG.warn("Ignoring cancelled key", err);
+                    } catch(IOException iox) {
+                        LOG.warn("IOX processing", iox);
+                        try {
+                            sk.cancel(); // make sure its cancelled.
+                        } catch(Throwable ignored) {}
+                        attachment.handleIOException(iox);
                     }
+                } catch(Throwable t) {
+                    ErrorService.error(t, "Unhandled exception while dispatching");
+                    safeCancel(sk, attachment);
                 }
+            } else {
+                if(LOG.isErrorEnabled())
+                    LOG.error("SelectionKey cancelled for: " + attachment);
+                // we've had too many hits in a row.  kill this attachment.
+                safeCancel(sk, attachment);
             }
         }
         
-        synchronized void changeReadStatus(boolean reading) {
-            if(!discarded) {
-                if(reading)
-                    updateReadTimeout(System.currentTimeMillis());
-                else
-                    clearTimeout();
+        /**
+         * Swaps all channels out of the old selector & puts them in the new one.
+         */
+        private void swapSelector() {
+            Selector oldSelector = selector;
+            Collection<SelectionKey> oldKeys = Collections.emptySet();
+            try {
+                if(oldSelector != null)
+                    oldKeys = oldSelector.keys();
+            } catch(ClosedSelectorException ignored) {
+                LOG.warn("error getting keys", ignored);
+            }
+            
+            Selector newSelector;
+            try {
+                newSelector = Selector.open();
+            } catch(IOException iox) {
+                LOG.error("Can't make a new selector!!!", iox);
+                throw new RuntimeException(iox);
+            }
+            
+            // We do not have to concern ourselves with secondary selectors,
+            // because we only retrieves keys from the primary one.
+            for(SelectionKey key : oldKeys ) {
+                try {
+                    SelectableChannel channel = key.channel();
+                    Attachment attachment = (Attachment)key.attachment();
+                    int ops = key.interestOps();
+                    try {
+                        SelectionKey newKey = channel.register(newSelector, ops, attachment);
+                        attachment.setKey(newKey);
+                    } catch(IOException iox) {
+                        attachment.attachment.handleIOException(iox);
+                    }
+                } catch(CancelledKeyException ignored) {
+                    LOG.warn("key cancelled while swapping", ignored);
+                }
+            }
+            selector = newSelector;
+            
+            try {
+                if(oldSelector != null)
+                    oldSelector.close();
+            } catch(IOException ignored) {
+                LOG.warn("error closing old selector", ignored);
             }
         }
-
-        synchronized void addTimeout(long now, long timeoutLength) {
-            if(!discarded) {
-                timeoutActive = true;
-                storedTimeoutLength = timeoutLength;
-                storedExpireTime = now + timeoutLength;
-                TIMEOUTER.addTimeout(this, now, timeoutLength);
+        
+        /**
+         * The <code>run</code> loop.
+         */
+        public void run() {
+            while(!stopped) {
+                try {
+                    if(selector == null)
+                        selector = Selector.open();
+                    process();
+                } catch(SpinningException spin) {
+                    LOG.warn("selector is spinning!", spin);
+                    swapSelector();
+                } catch(ProcessingException uhoh) {
+                    LOG.warn("unknown exception while selecting", uhoh);
+                    swapSelector();
+                } catch(IOException iox) {
+                    LOG.error("Unable to create a new Selector!!!", iox);
+                    throw new RuntimeException(iox);
+                } catch(Throwable err) {
+                    LOG.error("Error in Selector!", err);
+                    ErrorService.error(err);
+                    
+                    swapSelector();
+                }
+            }
+            
+            try {
+                Selector sel = selector;
+                if(sel != null)
+                    sel.close();
+            } catch(IOException ignored) {
+                LOG.warn("error closing selector", ignored);
             }
         }
         
-        public void notifyTimeout(long now, long expireTime, long timeoutLength) {
-            if(!discarded) {
-                boolean cancel = false;
-                long timeToUse = 0;
-                synchronized(this) {
-                    if(timeoutActive) {
-                        if(expireTime == storedExpireTime) {
-                            cancel = true;
-                            timeoutActive = false;
-                            timeToUse = storedTimeoutLength;
-                            storedExpireTime = -1;
-                        } else if(expireTime < storedExpireTime) {
-                            TIMEOUTER.addTimeout(this, now, storedExpireTime - now);
-                        } else { // expireTime > storedExpireTime
-                            storedExpireTime = -1;
-                            if(LOG.isWarnEnabled())
-                                LOG.warn("Ignoring extra timeout for: " + attachment);
+        /**
+         * Encapsulates an attachment.
+         * Contains methods for timing out an attachment,
+         * keeping track of the number of successive hits, etc...
+         */
+        class Attachment implements Timeoutable {        
+            private final IOErrorObserver attachment;
+            private long lastMod;
+            private int handled;
+            private SelectionKey key;
+    
+            private boolean timeoutActive = false;
+            private long storedTimeoutLength = Long.MAX_VALUE;
+            private long storedExpireTime = Long.MAX_VALUE;
+            
+            private volatile boolean discarded;
+            
+            Attachment(IOErrorObserver attachment) {
+                this.attachment = attachment;
+            }
+            
+            @Override
+            public String toString() {
+                return "Attachment for: " + attachment;
+            }
+            
+            /** Returns the event loop that services this attachment. */
+            EventLoop getLoop() {
+                return EventLoop.this;
+            }
+            
+            void discard() {
+                discarded = true;
+            }
+            
+            synchronized void clearTimeout() {
+                timeoutActive = false;
+            }
+            
+            synchronized void updateReadTimeout(long now) {
+                if(!discarded) {
+                    if(attachment instanceof ReadTimeout) {
+                        long timeoutLength = ((ReadTimeout)attachment).getReadTimeout();
+                        if(timeoutLength != 0) {
+                            long expireTime = now + timeoutLength;
+                            // We need to add a new timeout if none is scheduled or we need
+                            // to timeout before the next one.
+                            if(expireTime < storedExpireTime || storedExpireTime == -1 || storedExpireTime < now) {
+                                addTimeout(now, timeoutLength);
+                            } else {
+                                // Otherwise, store the timeout info so when we get notified
+                                // we can reschedule it for the future.
+                                storedExpireTime = expireTime;
+                                storedTimeoutLength = timeoutLength;
+                                timeoutActive = true;
+                            }
+                        } else {
+                            clearTimeout();
                         }
-                    } else {
-                        storedExpireTime = -1;
-                        storedTimeoutLength = -1;
                     }
                 }
-                
-                // must do cancel & IOException outside of the lock.
-                if(cancel) {
-                    if (LOG.isDebugEnabled())
-                        LOG.debug("Closing due to read timeout: " + attachment); 
-                    cancel(key, attachment);
-                    attachment.handleIOException(new SocketTimeoutException("operation timed out (" + timeToUse + ")"));
+            }
+            
+            synchronized void changeReadStatus(boolean reading) {
+                if(!discarded) {
+                    if(reading)
+                        updateReadTimeout(System.currentTimeMillis());
+                    else
+                        clearTimeout();
                 }
             }
-        }
-        
-        public void setKey(SelectionKey key) {
-            this.key = key;
-        }
-    }    
     
-    /** Encapsulates a register op. */
-    private class RegisterOp implements Runnable {
-        private final SelectableChannel channel;
-        private final IOErrorObserver handler;
-        private final int op;
-        private final int timeout;
-    
-        RegisterOp(SelectableChannel channel, IOErrorObserver handler, int op, int timeout) {
-            this.channel = channel;
-            this.handler = handler;
-            this.op = op;
-            this.timeout = timeout;
-        }
+            synchronized void addTimeout(long now, long timeoutLength) {
+                if(!discarded) {
+                    timeoutActive = true;
+                    storedTimeoutLength = timeoutLength;
+                    storedExpireTime = now + timeoutLength;
+                    TIMEOUTER.addTimeout(this, now, timeoutLength);
+                }
+            }
+            
+            public void notifyTimeout(long now, long expireTime, long timeoutLength) {
+                if(!discarded) {
+                    boolean cancel = false;
+                    long timeToUse = 0;
+                    synchronized(this) {
+                        if(timeoutActive) {
+                            if(expireTime == storedExpireTime) {
+                                cancel = true;
+                                timeoutActive = false;
+                                timeToUse = storedTimeoutLength;
+                                storedExpireTime = -1;
+                            } else if(expireTime < storedExpireTime) {
+                                TIMEOUTER.addTimeout(this, now, storedExpireTime - now);
+                            } else { // expireTime > storedExpireTime
+                                storedExpireTime = -1;
+                                if(LOG.isWarnEnabled())
+                                    LOG.warn("Ignoring extra timeout for: " + attachment);
+                            }
+                        } else {
+                            storedExpireTime = -1;
+                            storedTimeoutLength = -1;
+                        }
+                    }
+                    
+                    // must do cancel & IOException outside of the lock.
+                    if(cancel) {
+                        if (LOG.isDebugEnabled())
+                            LOG.debug("Closing due to read timeout: " + attachment); 
+                        cancel(key, attachment);
+                        attachment.handleIOException(new SocketTimeoutException("operation timed out (" + timeToUse + ")"));
+                    }
+                }
+            }
+            
+            public void setKey(SelectionKey key) {
+                this.key = key;
+            }
+        }    
         
-        public void run() {
-            registerImpl(getSelectorFor(channel), channel, op, handler, timeout);
+        /** Encapsulates a register op. */
+        private class RegisterOp implements Runnable {
+            private final SelectableChannel channel;
+            private final IOErrorObserver handler;
+            private final int op;
+            private final int timeout;
+        
+            RegisterOp(SelectableChannel channel, IOErrorObserver handler, int op, int timeout) {
+                this.channel = channel;
+                this.handler = handler;
+                this.op = op;
+                this.timeout = timeout;
+            }
+            
+            public void run() {
+                registerImpl(getSelectorFor(channel, EventLoop.this), channel, op, handler, timeout);
+            }
         }
     }
     
@@ -1029,12 +1325,16 @@ public class NIODispatcher implements Runnable {
         public ProcessingException(Throwable t) { super(t); }
     }
     
-    /** An ExecutorService that runs all tasks on the NIODispatch thread. */
-    private static class NIOExecutorService extends AbstractExecutorService implements ScheduledExecutorService {
-        private final Thread nioThread;
+    /**
+     * An ExecutorService that runs all tasks on the thread of an event loop.
+     * If no loop is given, tasks are run on the current loop, or the primary
+     * loop if not submitted from an NIO thread.
+     */
+    private class NIOExecutorService extends AbstractExecutorService implements ScheduledExecutorService {
+        private final EventLoop loop;
         
-        private NIOExecutorService(Thread nioThread) {
-            this.nioThread = nioThread;
+        private NIOExecutorService(EventLoop loop) {
+            this.loop = loop;
         }
         
         public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
@@ -1059,24 +1359,23 @@ public class NIODispatcher implements Runnable {
         }
 
         public void execute(Runnable command) {
-            if(Thread.currentThread() == nioThread) {
+            EventLoop current = currentLoop();
+            if(current != null && (loop == null || loop == current)) {
                 command.run();
             } else {
-                instance().executeLaterAlways(command);
+                (loop != null ? loop : primaryLoop).executeLaterAlways(command);
             }
         }
 
         public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
            ScheduledFutureTask<?> ret = new ScheduledFutureTask<Void>(command, null, unit.toNanos(delay));
-           instance().DELAYED.add(ret);
-           instance().wakeup();
+           getSchedulingLoop().schedule(ret);
            return ret;
         }
 
         public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
             ScheduledFutureTask<V> ret = new ScheduledFutureTask<V>(callable, unit.toNanos(delay));
-            instance().DELAYED.add(ret);
-            instance().wakeup();
+            getSchedulingLoop().schedule(ret);
             return ret;
         }
 
@@ -1088,6 +1387,14 @@ public class NIODispatcher implements Runnable {
             throw new UnsupportedOperationException();
         }
         
+        /** Returns the loop that scheduled tasks are run on. */
+        private EventLoop getSchedulingLoop() {
+            if(loop != null)
+                return loop;
+            EventLoop current = currentLoop();
+            return current != null ? current : primaryLoop;
+        }
+        
     }
 
     public TransportListener getTransportListener() {
@@ -1097,7 +1404,7 @@ public class NIODispatcher implements Runnable {
     /** A transport listener that wakes up the selector when an event is pending. */
     private class MyTransportListener implements TransportListener {
     	public void eventPending() {
-    		wakeup();
+    		primaryLoop.wakeup();
     	}
     }
     
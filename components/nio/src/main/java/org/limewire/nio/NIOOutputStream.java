@@ -3,6 +3,7 @@ package org.limewire.nio;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 import org.limewire.nio.channel.InterestWritableByteChannel;
 import org.limewire.nio.observer.Shutdownable;
@@ -19,6 +20,7 @@ class NIOOutputStream implements WriteObserver {
     
     private final Shutdownable handler;
     private final InterestWritableByteChannel channel;
+    private final Executor nioExecutor;
     private BufferOutputStream sink;
     private volatile Object bufferLock;
     private ByteBuffer buffer;
@@ -26,11 +28,13 @@ class NIOOutputStream implements WriteObserver {
     
     /**
      * Constructs a new pipe to allow SocketChannel's reading to funnel
-     * to a blocking InputStream.
+     * to a blocking InputStream, releasing the buffer on the NIO thread
+     * that <code>nioExecutor</code> runs tasks on.
      */
-    NIOOutputStream(Shutdownable handler, InterestWritableByteChannel channel) {
+    NIOOutputStream(Shutdownable handler, InterestWritableByteChannel channel, Executor nioExecutor) {
         this.handler = handler;
         this.channel = channel;
+        this.nioExecutor = nioExecutor;
     }
     
     /**
@@ -105,7 +109,7 @@ class NIOOutputStream implements WriteObserver {
             sink.shutdown();
         
         if(buffer != null) {
-            NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+            nioExecutor.execute(new Runnable() {
                 public void run() {
                     NIODispatcher.instance().getBufferCache().release(buffer);
                 }
@@ -2,8 +2,10 @@ package org.limewire.nio;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 
+import org.limewire.nio.channel.FileTransferChannel;
 import org.limewire.nio.channel.InterestWritableByteChannel;
 import org.limewire.nio.observer.Shutdownable;
 import org.limewire.nio.observer.WriteObserver;
@@ -13,8 +15,11 @@ import org.limewire.nio.observer.WriteObserver;
  * calls on to NIODispatcher, as well as forwarding handleWrite
  * events to the last party that was interested.  All WritableByteChannel
  * calls are delegated to the SocketChannel.
+ * <p>
+ * File regions can be written directly to the SocketChannel through
+ * {@link #transferFrom(FileChannel, long, long)}.
  */
-class SocketInterestWriteAdapter implements InterestWritableByteChannel {
+class SocketInterestWriteAdapter implements InterestWritableByteChannel, FileTransferChannel {
     
     /** the last party that was interested.  null if none. */
     private volatile WriteObserver interested;
@@ -33,6 +38,16 @@ class SocketInterestWriteAdapter implements InterestWritableByteChannel {
         return channel.write(buffer);
     }
     
+    /** Always returns true, the SocketChannel does not need to see the data. */
+    public boolean isFileTransferSupported() {
+        return true;
+    }
+    
+    /** Transfers the file region to the underlying SocketChannel, returning the amount written. */
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+        return src.transferTo(position, count, channel);
+    }
+    
     /** Closes the SocketChannel */
     public void close() throws IOException {
         channel.close();
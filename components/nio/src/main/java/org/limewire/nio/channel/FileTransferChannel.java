@@ -0,0 +1,33 @@
+package org.limewire.nio.channel;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Defines an interface for a channel that can write a region of a
+ * <code>FileChannel</code> without copying it through a user-space buffer,
+ * e.g. by using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * <p>
+ * Channels that need to look at the data that is written, for instance to
+ * encrypt or throttle it, can not support direct transfers and return false
+ * from {@link #isFileTransferSupported()}.
+ */
+public interface FileTransferChannel {
+
+    /**
+     * Returns true, if {@link #transferFrom(FileChannel, long, long)} can
+     * currently be used to write to this channel.
+     */
+    boolean isFileTransferSupported();
+
+    /**
+     * Writes up to <code>count</code> bytes of <code>src</code> starting at
+     * <code>position</code> to this channel.
+     *
+     * @return the number of bytes written, possibly 0
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalStateException if file transfers are not supported
+     */
+    long transferFrom(FileChannel src, long position, long count) throws IOException;
+
+}
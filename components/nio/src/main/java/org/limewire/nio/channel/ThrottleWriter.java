@@ -1,8 +1,11 @@
 package org.limewire.nio.channel;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 import org.limewire.nio.NIODispatcher;
 import org.limewire.nio.RequiresSelectionKeyAttachment;
@@ -14,8 +17,12 @@ import org.limewire.nio.observer.WriteObserver;
 /**
  * Writes data to a channel. The data writes are controlled by a {@link 
  * Throttle}.
+ * <p>
+ * Direct file transfers are forwarded to the sink if the sink supports them
+ * and are controlled by the throttle in the same way as writes.
  */
-public class ThrottleWriter implements ChannelWriter, InterestWritableByteChannel, RequiresSelectionKeyAttachment {
+public class ThrottleWriter implements ChannelWriter, InterestWritableByteChannel, RequiresSelectionKeyAttachment,
+        FileTransferChannel {
     
     //private static final Log LOG = LogFactory.getLog(ThrottleWriter.class);
     
@@ -120,6 +127,41 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
         return totalWrote;
     }
     
+    /**
+     * Returns true, if the underlying channel supports direct file transfers.
+     */
+    public boolean isFileTransferSupported() {
+        InterestWritableByteChannel chain = channel;
+        return chain instanceof FileTransferChannel
+                && ((FileTransferChannel)chain).isFileTransferSupported();
+    }
+    
+    /**
+     * Transfers the file region to the chain.
+     * <p>
+     * Only transfers up to 'available' amount of data.
+     * 
+     * @throws IllegalStateException if {@link #isFileTransferSupported()}
+     *         returns false
+     */
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+        if (!isFileTransferSupported())
+            throw new IllegalStateException("file transfer not supported");
+        FileTransferChannel chain = (FileTransferChannel)channel;
+        
+        // throttling is disabled, just forward to underlying channel
+        if (throttle == null) {
+            return chain.transferFrom(src, position, count);
+        }
+        
+        if(available == 0)
+            return 0;
+        
+        long totalWrote = chain.transferFrom(src, position, Math.min(count, available));
+        available -= totalWrote;
+        return totalWrote;
+    }
+    
     /** Closes the underlying channel. */
     public void close() throws IOException {
         Channel source = channel;
@@ -180,7 +222,10 @@ public class ThrottleWriter implements ChannelWriter, InterestWritableByteChanne
     }
  
     public void setThrottle(final Throttle throttle) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        // the attachment is the socket, whose event loop runs this writer
+        Object attachment = throttleListener.getAttachment();
+        SocketChannel channel = attachment instanceof Socket ? ((Socket)attachment).getChannel() : null;
+        NIODispatcher.instance().getScheduledExecutorService(channel).execute(new Runnable() {
             public void run() {
                 setThrottleInternal(throttle);
             }
@@ -91,7 +91,7 @@ public abstract class AbstractSSLSocket extends NIOSocket {
      * & from the network.
      */
     protected Executor getNetworkExecutor() {
-        return NIODispatcher.instance().getScheduledExecutorService();
+        return getNIOExecutor();
     }
     
     /**
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,12 +37,34 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
     private ByteBuffer readBuffer;
     /** Whether or not we've shutdown this handshaker. */
     private volatile boolean shutdown;
+    /** The executor that runs tasks on the NIO thread notifying this of events. */
+    private final Executor nioExecutor;
     
+    /**
+     * Constructs a state machine for a channel serviced by the primary
+     * event loop.
+     */
     public IOStateMachine(IOStateObserver observer, List<IOState> states) {
         this(observer, states, 2048);
     }
 
+    /**
+     * Constructs a state machine for a channel serviced by the primary
+     * event loop.  If there is more than one event loop, use
+     * {@link #IOStateMachine(IOStateObserver, List, int, Executor)} with
+     * the executor of the channel's loop.
+     */
     public IOStateMachine(IOStateObserver observer, List<IOState> states, int bufferSize) {
+        this(observer, states, bufferSize, NIODispatcher.instance().getScheduledExecutorService());
+    }
+
+    /**
+     * Constructs a state machine that adds states and releases its buffer
+     * using <code>nioExecutor</code>, which must run tasks on the NIO thread
+     * that notifies the state machine of read and write events.
+     */
+    public IOStateMachine(IOStateObserver observer, List<IOState> states, int bufferSize, Executor nioExecutor) {
+        this.nioExecutor = nioExecutor;
         this.observer = observer;
         this.states = states;
         this.readBuffer = NIODispatcher.instance().getBufferCache().getHeap(bufferSize);
@@ -53,7 +76,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds a new state to process.
      */
     public void addState(final IOState newState) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        nioExecutor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding single state: " + newState);
@@ -69,7 +92,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds a collection of new states to process.
      */
     public void addStates(final List<? extends IOState> newStates) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        nioExecutor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding multiple states: " + newStates);
@@ -84,7 +107,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
      * Adds an array of new states to process.
      */
     public void addStates(final IOState... newStates) {
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        nioExecutor.execute(new Runnable() {
             public void run() {
                 if(LOG.isDebugEnabled())
                     LOG.debug("Adding multiple states...");
@@ -284,7 +307,7 @@ public class IOStateMachine implements ChannelReadObserver, ChannelWriter, Inter
         // This must be done on the NIO thread, else the NIO thread could
         // currently be processing this buffer, and things may continue to
         // process it after we release it.
-        NIODispatcher.instance().getScheduledExecutorService().execute(new Runnable() {
+        nioExecutor.execute(new Runnable() {
             public void run() {
                 NIODispatcher.instance().getBufferCache().release(readBuffer);
             }
@@ -111,4 +111,36 @@ public class ByteBufferCacheTest extends BaseTestCase {
         buf = CACHE.getHeap(100);
         assertNotEquals(hashCode, System.identityHashCode(buf));
     }
+    
+    /**
+     * Tests that releasing a burst of direct buffers keeps only a bounded
+     * number of them.
+     */
+    public void testDirectCacheIsBoundedAfterBurst() throws Exception {
+        ByteBuffer[] burst = new ByteBuffer[DirectByteBufferCache.MAX_BUFFERS * 4];
+        for (int i = 0; i < burst.length; i++)
+            burst[i] = CACHE.getDirect();
+        for (ByteBuffer buf : burst)
+            CACHE.release(buf);
+        assertEquals(DirectByteBufferCache.MAX_BUFFERS, CACHE.getDirectCacheCount());
+        
+        ByteBuffer buf = CACHE.getDirect();
+        assertEquals(DirectByteBufferCache.MAX_BUFFERS - 1, CACHE.getDirectCacheCount());
+        assertEquals(0, buf.position());
+        assertEquals(buf.capacity(), buf.limit());
+    }
+    
+    /**
+     * Tests that releasing a burst of heap buffers of many sizes keeps only
+     * a bounded number of bytes.
+     */
+    public void testHeapCacheIsBoundedAfterBurst() throws Exception {
+        ByteBuffer[] burst = new ByteBuffer[4000];
+        for (int i = 0; i < burst.length; i++)
+            burst[i] = CACHE.getHeap(23 + i % 1000);
+        for (ByteBuffer buf : burst)
+            CACHE.release(buf);
+        assertGreaterThan(0, CACHE.getHeapCacheSize());
+        assertLessThanOrEquals(HeapByteBufferCache.MAX_SIZE + 1023, CACHE.getHeapCacheSize());
+    }
 }
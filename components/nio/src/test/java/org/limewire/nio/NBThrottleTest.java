@@ -283,7 +283,7 @@ public final class NBThrottleTest extends BaseTestCase {
         Data(Throttle throttle) {
             ATTACHMENT  = new StubReadWriteObserver();
             STUB = new StubThrottleListener(ATTACHMENT, throttle);
-            KEY =  new FakeSelectionKey(NIODispatcher.instance().new Attachment(ATTACHMENT));
+            KEY =  new FakeSelectionKey(NIODispatcher.instance().newAttachment(ATTACHMENT));
         }
     }
     
@@ -0,0 +1,227 @@
+package org.limewire.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+
+import org.limewire.nio.observer.ReadObserver;
+import org.limewire.util.BaseTestCase;
+
+public class NIODispatcherEventLoopTest extends BaseTestCase {
+
+    private ServerSocketChannel server;
+
+    private List<SocketChannel> channels;
+
+    private NIODispatcher dispatcher;
+
+    public NIODispatcherEventLoopTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(NIODispatcherEventLoopTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        channels = new ArrayList<SocketChannel>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.close();
+        if (dispatcher != null) {
+            dispatcher.stopEventLoops();
+        }
+    }
+
+    public void testDefaultsToSingleLoop() throws Exception {
+        assertNull(System.getProperty(NIODispatcher.EVENT_LOOPS_PROPERTY));
+        assertEquals(1, NIODispatcher.instance().getNumEventLoops());
+    }
+
+    public void testChannelsArePinnedToLoops() throws Exception {
+        dispatcher = new NIODispatcher(2);
+        assertEquals(2, dispatcher.getNumEventLoops());
+
+        int numChannels = 4;
+        ThreadRecordingObserver[] observers = new ThreadRecordingObserver[numChannels];
+        SocketChannel[] clients = new SocketChannel[numChannels];
+        for (int i = 0; i < numChannels; i++) {
+            clients[i] = connect();
+            SocketChannel accepted = accept();
+            observers[i] = new ThreadRecordingObserver(accepted, 3);
+            dispatcher.registerRead(accepted, observers[i]);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < numChannels; i++) {
+                clients[i].write(ByteBuffer.wrap(new byte[] { (byte) round }));
+            }
+            Thread.sleep(50);
+        }
+
+        Set<Thread> allThreads = new HashSet<Thread>();
+        for (ThreadRecordingObserver observer : observers) {
+            assertTrue(observer.awaitReads());
+            assertEquals(observer.getThreads().toString(), 1, observer.getThreads().size());
+            allThreads.addAll(observer.getThreads());
+        }
+        assertEquals(2, allThreads.size());
+    }
+
+    public void testExecutorIsAffineToChannel() throws Exception {
+        dispatcher = new NIODispatcher(2);
+        connect();
+        SocketChannel first = accept();
+        connect();
+        SocketChannel second = accept();
+
+        Thread firstThread = dispatcher.getScheduledExecutorService(first).submit(new CurrentThread()).get();
+        Thread secondThread = dispatcher.getScheduledExecutorService(second).submit(new CurrentThread()).get();
+        assertNotSame(firstThread, secondThread);
+        assertSame(firstThread, dispatcher.getScheduledExecutorService(first).submit(new CurrentThread()).get());
+        assertSame(firstThread, dispatcher.getScheduledExecutorService(first).schedule(new CurrentThread(), 10,
+                TimeUnit.MILLISECONDS).get());
+
+        // tasks submitted from a loop thread to another loop's channel switch threads
+        final SocketChannel secondChannel = second;
+        Thread nested = dispatcher.getScheduledExecutorService(first).submit(new Callable<Thread>() {
+            public Thread call() throws Exception {
+                assertTrue(dispatcher.isDispatchThread());
+                final Thread[] ran = new Thread[1];
+                final CountDownLatch latch = new CountDownLatch(1);
+                dispatcher.getScheduledExecutorService(secondChannel).execute(new Runnable() {
+                    public void run() {
+                        ran[0] = Thread.currentThread();
+                        latch.countDown();
+                    }
+                });
+                assertTrue(latch.await(5, TimeUnit.SECONDS));
+                return ran[0];
+            }
+        }).get();
+        assertSame(secondThread, nested);
+
+        // the shared executor runs inline on whichever loop it is called from
+        Thread inline = dispatcher.getScheduledExecutorService(second).submit(new Callable<Thread>() {
+            public Thread call() throws Exception {
+                return dispatcher.getScheduledExecutorService().submit(new CurrentThread()).get();
+            }
+        }).get();
+        assertSame(secondThread, inline);
+        assertFalse(dispatcher.isDispatchThread());
+    }
+
+    public void testExecuteLaterAlwaysRunsOnChannelLoop() throws Exception {
+        dispatcher = new NIODispatcher(2);
+        connect();
+        SocketChannel channel = accept();
+        Thread expected = dispatcher.getScheduledExecutorService(channel).submit(new CurrentThread()).get();
+
+        final Thread[] ran = new Thread[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        dispatcher.executeLaterAlways(channel, new Runnable() {
+            public void run() {
+                ran[0] = Thread.currentThread();
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertSame(expected, ran[0]);
+    }
+
+    public void testStoppedLoopsEnd() throws Exception {
+        dispatcher = new NIODispatcher(2);
+        connect();
+        SocketChannel first = accept();
+        connect();
+        SocketChannel second = accept();
+        Thread firstThread = dispatcher.getScheduledExecutorService(first).submit(new CurrentThread()).get();
+        Thread secondThread = dispatcher.getScheduledExecutorService(second).submit(new CurrentThread()).get();
+
+        dispatcher.stopEventLoops();
+        firstThread.join(5000);
+        secondThread.join(5000);
+        assertFalse(firstThread.isAlive());
+        assertFalse(secondThread.isAlive());
+    }
+
+    private SocketChannel connect() throws IOException {
+        SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.socket()
+                .getLocalPort()));
+        channels.add(client);
+        return client;
+    }
+
+    private SocketChannel accept() throws IOException {
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        channels.add(accepted);
+        return accepted;
+    }
+
+    private static class CurrentThread implements Callable<Thread> {
+        public Thread call() {
+            return Thread.currentThread();
+        }
+    }
+
+    private static class ThreadRecordingObserver implements ReadObserver {
+
+        private final SocketChannel channel;
+
+        private final CountDownLatch reads;
+
+        private final Set<Thread> threads = new HashSet<Thread>();
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(16);
+
+        ThreadRecordingObserver(SocketChannel channel, int expectedBytes) {
+            this.channel = channel;
+            this.reads = new CountDownLatch(expectedBytes);
+        }
+
+        public synchronized void handleRead() throws IOException {
+            threads.add(Thread.currentThread());
+            buffer.clear();
+            int read = channel.read(buffer);
+            for (int i = 0; i < read; i++) {
+                reads.countDown();
+            }
+        }
+
+        boolean awaitReads() throws InterruptedException {
+            return reads.await(5, TimeUnit.SECONDS);
+        }
+
+        synchronized Set<Thread> getThreads() {
+            return new HashSet<Thread>(threads);
+        }
+
+        public void handleIOException(IOException iox) {
+        }
+
+        public void shutdown() {
+        }
+
+    }
+
+}
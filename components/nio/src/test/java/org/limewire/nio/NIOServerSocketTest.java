@@ -8,7 +8,6 @@ import junit.framework.Test;
 
 import org.limewire.nio.observer.StubAcceptObserver;
 import org.limewire.util.BaseTestCase;
-import org.limewire.util.PrivilegedAccessor;
 
 public class NIOServerSocketTest extends BaseTestCase {
     
@@ -83,7 +82,7 @@ public class NIOServerSocketTest extends BaseTestCase {
     
     private int interestOps(Socket socket) throws Exception {
         // peeks into the NIODispatcher to get the Selector so we can assert the interetOps
-        Selector selector = (Selector)PrivilegedAccessor.getValue(NIODispatcher.instance(), "primarySelector");
+        Selector selector = NIODispatcher.instance().getSelectorFor(socket.getChannel());
         return socket.getChannel().keyFor(selector).interestOps();
     }
     
@@ -1,6 +1,8 @@
 package org.limewire.nio.channel;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Random;
 
 import junit.framework.Test;
@@ -192,6 +194,35 @@ public final class ThrottleWriterTest extends BaseTestCase {
         assertFalse(WRITER.hasBufferedOutput());
     }
 
+    public void testFileTransferNotSupportedBySink() throws Exception {
+        assertFalse(WRITER.isFileTransferSupported());
+        try {
+            WRITER.transferFrom(null, 0, 100);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+    
+    public void testFileTransferIsThrottled() throws Exception {
+        FakeThrottle throttle = new FakeThrottle();
+        FileTransferSink sink = new FileTransferSink();
+        ThrottleWriter writer = new ThrottleWriter(throttle, sink);
+        assertTrue(writer.isFileTransferSupported());
+        writer.interestWrite(new WriteBufferChannel(), true);
+        
+        throttle.setAvailable(250);
+        for(int i = 0; i < throttle.listeners(); i++)
+            throttle.getListener(i).requestBandwidth();
+        assertEquals(250, writer.transferFrom(null, 0, 1000));
+        assertEquals(0, writer.transferFrom(null, 250, 750));
+        assertEquals(250, sink.transferred);
+        
+        // throttling disabled
+        writer.setThrottleInternal(null);
+        assertEquals(750, writer.transferFrom(null, 250, 750));
+        assertEquals(1000, sink.transferred);
+    }
+
 	private byte[] data(int size) {
 	    byte[] data = new byte[size];
 	    RND.nextBytes(data);
@@ -212,4 +243,18 @@ public final class ThrottleWriterTest extends BaseTestCase {
             THROTTLE.getListener(i).releaseBandwidth();
         return ret;
     }
-}
\ No newline at end of file
+    
+    private static class FileTransferSink extends WriteBufferChannel implements FileTransferChannel {
+        
+        private long transferred;
+        
+        public boolean isFileTransferSupported() {
+            return true;
+        }
+        
+        public long transferFrom(FileChannel src, long position, long count) throws IOException {
+            transferred += count;
+            return count;
+        }
+    }
+}
@@ -2,7 +2,6 @@ package org.limewire.rudp;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.limewire.collection.LongHashMap;
 import org.limewire.rudp.messages.DataMessage;
 
 
@@ -19,7 +18,17 @@ import org.limewire.rudp.messages.DataMessage;
  * For the writer, if the round trip time (RTT) for ACK messages of the older 
  * data is greatly exceeded ({@link #getRTTVar()}), the data can be resent to 
  * try to receive an ACK message.
- *</p>
+ * </p><p>
+ * The records are kept in a ring buffer indexed by sequence number, and
+ * the records themselves are reused once they have been cleared, so adding,
+ * acknowledging and clearing data does not allocate. The round trip times
+ * are kept in fixed point with {@link #RTT_SHIFT} fractional bits.
+ * </p><p>
+ * The receiving window can describe the data it holds beyond the start of
+ * the window in a bit set for selective ACKs ({@link #getSelectiveAcks()}),
+ * which the sending window applies with {@link #selectiveAckBlocks(long, int)}
+ * so that data after a lost message is not resent.
+ * </p>
  * All methods in this class rely on external synchronization of access.
  */ 
  /*  TODO: DataMessage timing still requires work.
@@ -30,18 +39,29 @@ public class DataWindow
     
     public  static final int   MAX_SEQUENCE_NUMBER = 0xFFFF;
     private static final int   HIST_SIZE           = 4;
-    private static final float RTT_GAIN            = 1.0f / 8.0f;
-    private static final float DEVIATION_GAIN      = 1.0f / 4.0f;
 
-    private final LongHashMap<DataRecord> window;
+    /** The number of sequence numbers covered by selective ACKs. */
+    public  static final int   SELECTIVE_ACK_RANGE = 32;
+
+    /** The number of fractional bits of the round trip times. */
+    private static final int   RTT_SHIFT           = 3;
+    /** The gain of the SRTT is 1/8. */
+    private static final int   RTT_GAIN_SHIFT      = 3;
+    /** The gain of the RTTVar is 1/4. */
+    private static final int   DEVIATION_GAIN_SHIFT = 2;
+
+    /** The records by sequence number modulo the length. */
+    private DataRecord[] window;
+    private int     mask;
     private long    windowStart;
     private int     windowSize;
     private long    averageRTT;
     private long    averageLowRTT;
     private int     lowRTTCount;
-    private float   srtt;
-    private float   rttvar;
-    private float   rto;
+    /** The SRTT, the RTTVar and the RTO, with RTT_SHIFT fractional bits. */
+    private long    srtt;
+    private long    rttvar;
+    private long    rto;
     
     /**
      * optimization: use this instead of iterating through data to see
@@ -62,7 +82,11 @@ public class DataWindow
         
         windowStart = start;
         windowSize  = size;
-        window      = new LongHashMap<DataRecord>(size+2);
+        
+        // Leave room for the data read ahead of the window
+        int capacity = Integer.highestOneBit(size + SELECTIVE_ACK_RANGE) << 1;
+        window      = new DataRecord[capacity];
+        mask        = capacity - 1;
     }
 
     /**
@@ -77,7 +101,7 @@ public class DataWindow
         if (seqNo == windowStart)
             readableData = true;
 
-        DataRecord d = window.get(seqNo);
+        DataRecord d = getBlock(seqNo);
         if (d != null) {
             if (LOG.isDebugEnabled())
                 LOG.debug("received duplicate message seq: " + msg.getSequenceNumber() + ", window start: " + windowStart);
@@ -87,8 +111,18 @@ public class DataWindow
         if (LOG.isDebugEnabled())
             LOG.debug("adding message seq: " + msg.getSequenceNumber() + ", window start: " + windowStart);
 
-        d = new DataRecord(msg);
-        window.put(seqNo, d);
+        while (seqNo - windowStart > mask) {
+            grow();
+        }
+
+        int index = (int)(seqNo & mask);
+        d = window[index];
+        if (d == null) {
+            d = new DataRecord(msg);
+            window[index] = d;
+        } else {
+            d.reset(msg);
+        }
         return d;
     }
 
@@ -96,7 +130,33 @@ public class DataWindow
      *  Get the block based on the sequenceNumber.
      */
     public DataRecord getBlock(long pnum) {
-        return window.get(pnum);
+        if (pnum < windowStart || pnum - windowStart > mask) {
+            return null;
+        }
+        DataRecord d = window[(int)(pnum & mask)];
+        return d != null && d.msg != null ? d : null;
+    }
+
+    /**
+     *  Removes the block with the sequenceNumber, keeping its record
+     *  for reuse.
+     */
+    private void removeBlock(long pnum) {
+        window[(int)(pnum & mask)].reset(null);
+    }
+
+    /**
+     *  Doubles the length of the ring buffer to hold data read
+     *  further ahead of the window.
+     */
+    private void grow() {
+        DataRecord[] records = new DataRecord[window.length << 1];
+        int newMask = records.length - 1;
+        for (long i = windowStart; i <= windowStart + mask; i++) {
+            records[(int)(i & newMask)] = window[(int)(i & mask)];
+        }
+        window = records;
+        mask = newMask;
     }
 
     /** 
@@ -122,7 +182,7 @@ public class DataWindow
         int        count = 0;
         for (long i = windowStart; i < windowStart+windowSize+3; i++) {
             // Count the spots that are full and not written
-            if ( (d = window.get(i)) != null &&
+            if ( (d = getBlock(i)) != null &&
                   (!d.read || i != windowStart))
                 count++;
         }
@@ -167,13 +227,13 @@ public class DataWindow
         DataRecord d;
         int        count = 0;
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            d = window.get(i);
+            d = getBlock(i);
             if ( d != null && d.acks > 0 ) {
-                window.remove(i);
-                count++;
-                
                 if(releaser != null)
                     releaser.releaseChunk(d.msg.getChunk());
+                
+                removeBlock(i);
+                count++;
             } else {
                 break;
             }
@@ -188,7 +248,7 @@ public class DataWindow
      */
     public long getLowestUnsentBlock() {
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            if (window.get(i) == null)
+            if (getBlock(i) == null)
                 return(i);
         }
         return -1;
@@ -204,7 +264,7 @@ public class DataWindow
         DataRecord d;
         int        count = 0;
         for (long i = windowStart+1; i < windowStart+windowSize+1; i++) {
-            d = window.get(i);
+            d = getBlock(i);
             if ( d != null && d.acks > 0 ) {
                 count++;
             } 
@@ -221,7 +281,7 @@ public class DataWindow
     //DataWindow is not TCP, but the rfc document is a good
     //resource to find similar methods.
     public boolean acksAppearToBeMissing(long time, int multiple) {
-        int irto = (int) rto;
+        int irto = getRTO();
         // Check for first record being old
         DataRecord drec = getBlock(windowStart);
         if (irto > 0 && drec != null && drec.acks < 1 && drec.sentTime + (multiple * irto) < time) {
@@ -238,7 +298,7 @@ public class DataWindow
      *  delivery in the absence of any feedback from the remote data receiver.
      */
     public int getRTO() {
-        return (int)rto;
+        return (int)(rto >> RTT_SHIFT);
     }
 
     /** 
@@ -246,7 +306,7 @@ public class DataWindow
      *  range of Round-Trip Time (RTT) values.
      */
     public float getRTTVar() {
-        return rttvar;
+        return (float)rttvar / (1 << RTT_SHIFT);
     }
 
     /** 
@@ -256,7 +316,7 @@ public class DataWindow
      *  samples.
      */
     public float getSRTT() {
-        return srtt;
+        return (float)srtt / (1 << RTT_SHIFT);
     }
 
 
@@ -295,36 +355,28 @@ public class DataWindow
             // Add to the averageRTT
             if (drec.acks == 1 && drec.sends == 1) {
                 long rtt = (drec.ackTime - drec.sentTime);
-                float delta = rtt - srtt;
+                long delta = (rtt << RTT_SHIFT) - srtt;
                 if (rtt > 0) {
                     // Compute RTO
-                    if (srtt <= 0.1)
+                    if (srtt == 0)
                         srtt = delta;
                     else
-                        srtt = srtt + RTT_GAIN * delta;
-                    rttvar = rttvar + DEVIATION_GAIN * (Math.abs(delta) - rttvar);
-                    rto = (float) (srtt + 4 * rttvar + 0.5);
+                        srtt = srtt + (delta >> RTT_GAIN_SHIFT);
+                    rttvar = rttvar + ((Math.abs(delta) - rttvar) >> DEVIATION_GAIN_SHIFT);
+                    rto = srtt + 4 * rttvar + (1 << (RTT_SHIFT - 1));
 
                     // Compute the average RTT
                     if (averageRTT == 0)
                         averageRTT = rtt;
-                    else {
-                        float avgRTT = ((float) (averageRTT * (HIST_SIZE - 1) + rtt)) / HIST_SIZE;
-
-                        averageRTT = (long) avgRTT;
-
-                    }
+                    else
+                        averageRTT = (averageRTT * (HIST_SIZE - 1) + rtt) / HIST_SIZE;
 
                     // Compute a measure of the lowest RTT
                     if (lowRTTCount < 10 || rtt < averageLowRTT) {
                         if (averageLowRTT == 0)
                             averageLowRTT = rtt;
-                        else {
-                            float lowRtt = ((float) (averageLowRTT * (HIST_SIZE - 1) + rtt))
-                                    / HIST_SIZE;
-
-                            averageLowRTT = (long) lowRtt;
-                        }
+                        else
+                            averageLowRTT = (averageLowRTT * (HIST_SIZE - 1) + rtt) / HIST_SIZE;
                         lowRTTCount++;
                     }
                 }
@@ -350,11 +402,51 @@ public class DataWindow
                 // Presumably the ack got lost or is still incoming so ack it
                 drec.acks++;
                 // Create a fake ackTime since we don't know when it should be
-                drec.ackTime = drec.sentTime + (int) rto;
+                drec.ackTime = drec.sentTime + getRTO();
             }
         }
     }
 
+    /**
+     *  Record an ACK if not yet present for the blocks set in the selective
+     *  ACKs sent from the receiving connection along with its windowStart.
+     *  Bit <code>i</code> of <code>acks</code> stands for the block 
+     *  <code>wStart + i</code>. Like pseudo-ACKs these do not count towards
+     *  the round trip time.
+     *  
+     *  @return the number of blocks that were newly ACK'ed
+     */
+    public int selectiveAckBlocks(long wStart, int acks) {
+        int count = 0;
+        while (acks != 0) {
+            int i = Integer.numberOfTrailingZeros(acks);
+            acks &= acks - 1;
+
+            DataRecord drec = getBlock(wStart + i);
+            if (drec != null && drec.acks == 0) {
+                drec.acks++;
+                drec.ackTime = drec.sentTime + getRTO();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     *  Return the selective ACKs for the received blocks starting at
+     *  the windowStart. Bit <code>i</code> is set if the block
+     *  <code>windowStart + i</code> has been received.
+     */
+    public int getSelectiveAcks() {
+        int acks = 0;
+        for (int i = 0; i < SELECTIVE_ACK_RANGE; i++) {
+            if (getBlock(windowStart + i) != null) {
+                acks |= 1 << i;
+            }
+        }
+        return acks;
+    }
+
     /** 
      *  Get the oldest un-ACK'ed block.
      */
@@ -437,9 +529,9 @@ public class DataWindow
         // potential space.   
         //for (int i = windowStart; i < lastBlock - windowSize + 1; i++) {
         for (long i = windowStart; i < windowStart + windowSize + 1; i++) {
-            d = window.get(i);
+            d = getBlock(i);
             if ( d != null && d.read) {
-                window.remove(i);
+                removeBlock(i);
                 count++;
             } else {
                 if(d == null)
@@ -519,7 +611,7 @@ public class DataWindow
  *  round trip time and a calculation for timeout resends.
  */
 class DataRecord {
-    final DataMessage msg;      // the actual data message
+    DataMessage                 msg;      // the actual data message
     int                         sends;    // count of the sends
     boolean                     read;     // whether the data was read
     int                         acks;     // count of the number of acks
@@ -529,5 +621,15 @@ class DataRecord {
     DataRecord(DataMessage msg) {
         this.msg=msg;
     }
+
+    /** Reuses this record for another message, or none. */
+    void reset(DataMessage msg) {
+        this.msg = msg;
+        sends    = 0;
+        read     = false;
+        acks     = 0;
+        sentTime = 0;
+        ackTime  = 0;
+    }
 }
 
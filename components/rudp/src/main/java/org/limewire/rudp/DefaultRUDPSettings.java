@@ -23,4 +23,8 @@ public class DefaultRUDPSettings implements RUDPSettings {
         return true;
     }
 
+    public boolean isSelectiveAckEnabled() {
+        return true;
+    }
+
 }
@@ -3,7 +3,7 @@ package org.limewire.rudp;
 
 /**
  * Defines the interface of settings to control the RUDP algorithm.
- * Currently only supports the ACK skipping algorithm.
+ * Currently supports the ACK skipping algorithm and selective ACKs.
  */
 public interface RUDPSettings {
 
@@ -22,4 +22,7 @@ public interface RUDPSettings {
     /** Returns the size of the history remembered for skipping acks. */
     public int getSkipAckHistorySize();
 
+    /** Returns true if selective ACKs are sent and used. */
+    public boolean isSelectiveAckEnabled();
+
 }
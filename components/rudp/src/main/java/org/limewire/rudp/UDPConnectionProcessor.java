@@ -193,6 +193,12 @@ public class UDPConnectionProcessor {
     /** Keep track of the reason for shutting down. */
     private byte              _closeReasonCode;
 
+    /** 
+     * Whether to send selective acks and to use the ones we get, 
+     * so that data after a lost message need not be resent.
+     */
+    private final boolean _selectiveAcks;
+    
     ////////////////////////////////////////////
     // Some settings related to skipping acks
     ///////////////////////////////////////////
@@ -279,6 +285,7 @@ public class UDPConnectionProcessor {
         _localExtender     = new SequenceNumberExtender();
         _extender          = new SequenceNumberExtender();
         
+        _selectiveAcks = _context.getRUDPSettings().isSelectiveAckEnabled();
         _skipAcks = _context.getRUDPSettings().isSkipAcksEnabled();
         _maxSkipAck = _context.getRUDPSettings().getMaxSkipAcks();
         _deviation = _context.getRUDPSettings().getMaxSkipDeviation();
@@ -387,23 +394,23 @@ public class UDPConnectionProcessor {
             throw new IOException("already closed");
         
         if(_connectEvent != null)
-            _connectEvent.unregister();
+            _scheduler.cancel(_connectEvent);
 
         // Shutdown keepalive event callbacks
         if ( _keepaliveEvent  != null ) 
-        	_keepaliveEvent.unregister();
+        	_scheduler.cancel(_keepaliveEvent);
 
         // Shutdown write event callbacks
         if ( _writeDataEvent != null ) 
-            _writeDataEvent.unregister();
+            _scheduler.cancel(_writeDataEvent);
 
         // Shutdown ack timeout event callbacks
         if ( _ackTimeoutEvent != null ) 
-            _ackTimeoutEvent.unregister();
+            _scheduler.cancel(_ackTimeoutEvent);
 
         // Unregister the safeWriteWakeup handler
         if ( _safeWriteWakeup != null ) 
-            _safeWriteWakeup.unregister();
+            _scheduler.cancel(_safeWriteWakeup);
         
         // Store the old state.
         ConnectionState oldState = _connectionState;
@@ -435,7 +442,7 @@ public class UDPConnectionProcessor {
             safeSendFin();
 
         // Clean up my caller
-        _closedCleanupEvent.unregister();
+        _scheduler.cancel(_closedCleanupEvent);
 
         _scheduler.register(new ChannelCloseTimerEvent(System.currentTimeMillis() +
                                                        CHANNEL_SHUTDOWN_DELAY, this));
@@ -590,9 +597,10 @@ public class UDPConnectionProcessor {
         if ( _ackTimeoutEvent == null )
             return;
 
-        // Set an existing event to an infinite wait
-        // Note: No need to explicitly inform scheduler.
+        // Set an existing event to an infinite wait, which takes
+        // it off the schedule until it is rescheduled
         _ackTimeoutEvent.updateTime(Long.MAX_VALUE);
+        _scheduler.scheduleEvent(_ackTimeoutEvent);
     }
 
     /**
@@ -713,13 +721,16 @@ public class UDPConnectionProcessor {
     /**
      *  Build and send an ack with default error handling with
      *  the messages sequenceNumber, receive window start and 
-     *  receive window space.
+     *  receive window space, and the selective acks if enabled.
      */
     private synchronized void safeSendAck(RUDPMessage msg) {
         // Ack the message
         AckMessage ack = null;
         try {
-          ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace());
+          if (_selectiveAcks)
+              ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace(), _receiveWindow.getSelectiveAcks());
+          else
+              ack = _context.getMessageFactory().createAckMessage(_theirConnectionID, msg.getSequenceNumber(), _receiveWindow.getWindowStart(), _receiveWindow.getWindowSpace());
           
           	if (LOG.isDebugEnabled()) {
           	    LOG.debug("total data packets "+_totalDataPackets+
@@ -1049,6 +1060,11 @@ public class UDPConnectionProcessor {
             // Ensure that all messages up to sent windowStart are acked
             _sendWindow.pseudoAckToReceiverWindow(amsg.getWindowStart());
             
+            // Ack the messages the receiver holds past a lost one
+            // so that they don't get resent
+            if (_selectiveAcks)
+                _sendWindow.selectiveAckBlocks(wStart, amsg.getSelectiveAcks());
+            
             // Clear out the acked blocks at window start
             _sendWindow.clearLowAckedBlocks(_channel);  
 
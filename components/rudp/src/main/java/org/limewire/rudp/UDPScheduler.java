@@ -3,53 +3,48 @@ package org.limewire.rudp;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.limewire.collection.TimerWheel;
 import org.limewire.concurrent.ManagedThread;
 
 
-/** 
- *  <p>Manages the timing of messages within {@link UDPConnection} processing. 
+/**
+ *  <p>Manages the timing of messages within {@link UDPConnection} processing.
  *  </p><p>
  *  To use the scheduler, you must first register and then schedule an event.
- *  Events are submitted as objects that extend {@link UDPTimerEvent} with 
+ *  Events are submitted as objects that extend {@link UDPTimerEvent} with
  *  a {@link UDPTimerEvent#handleEvent()} method defined.
  *  </p><p>
- *  Re-call {@link #scheduleEvent(UDPTimerEvent)} if the time of your event changes. 
+ *  Re-call {@link #scheduleEvent(UDPTimerEvent)} if the time of your event
+ *  moves closer. An event whose time moves further away is moved when its
+ *  old time comes up.
+ *  </p><p>
+ *  The events must be unregister when you are done with them via
+ *  {@link UDPTimerEvent#unregister()} or {@link #cancel(UDPTimerEvent)}.
  *  </p>
- *  The events must be unregister when you are done with them via 
- *  {@link UDPTimerEvent#unregister()}. 
+ *  Events are kept in a {@link TimerWheel} with a tick of one millisecond,
+ *  so registering, rescheduling and cancelling take constant time no matter
+ *  how many connections there are. Events are run on the scheduler thread
+ *  without holding the lock of the wheel, so they may reschedule themselves
+ *  and other events.
  */
-
 public class UDPScheduler extends ManagedThread {
-    
-   // private static final Log LOG = LogFactory.getLog(UDPScheduler.class);
-
-    /** This is the default event when nothing is scheduled. */
-    public static final  UDPTimerEvent NO_EVENT  = new NoEvent(Long.MAX_VALUE);
 
     /** The name that the scheduler thread will have. */
     private static final String NAME_OF_THREAD = "UDPScheduler";
 
-    /** The active list of scheduled events. */
-    private List<UDPTimerEvent> _connectionEvents;
-
-    /** The next event to be handled. */
-    private UDPTimerEvent       _scheduledEvent;
-
-    private boolean             _started;
+    /** The length of a tick of the timer wheel. */
+    private static final long TICK_MILLIS = 1L;
 
     /** Keep track of a singleton instance. */
     private static UDPScheduler _instance    = null;
 
-    /** For offloading the synchronization issues, maintain a second thread
-        for updating events. */
-    private UpdateThread                _updateThread;
-    
-    /**
-     * Object used to make sure only one copy of the two threads exist per
-     * enclosing object.
-     */
-    private final Object _updateThreadLock = new Object();
-    private final Object _mainThreadLock = new Object();
+    /** The scheduled events, guarded by this. */
+    private final TimerWheel<UDPTimerEvent> _wheel;
+
+    /** The time the scheduler thread waits until, guarded by this. */
+    private long _wakeupTime = Long.MAX_VALUE;
+
+    private boolean _started;
 
     /**
      *  Return the <code>UDPScheduler</code> singleton.
@@ -65,247 +60,128 @@ public class UDPScheduler extends ManagedThread {
     /**
      *  Initialize the <code>UDPScheduler</code>.
      */
-    private UDPScheduler() {
+    UDPScheduler() {
         super(NAME_OF_THREAD);
-        
-        _connectionEvents    = new ArrayList<UDPTimerEvent>();
-        _scheduledEvent      = NO_EVENT;
-        _started             = false;
-        _updateThread        = null;
+        _wheel = new TimerWheel<UDPTimerEvent>(TICK_MILLIS, System.currentTimeMillis());
     }
 
     /**
      *  Register a <code>UDPTimerEvent</code> for scheduling events.
+     *  The event is scheduled for its current time.
      */
     public void register(UDPTimerEvent evt) {
-        
-        startThreads();
-        _updateThread.registerEvent(evt);
-
-    }
-
-
-    private final synchronized void registerSync(UDPTimerEvent evt) {
-        _connectionEvents.add(evt);
+        scheduleEvent(evt);
     }
 
     /**
-     * starts both threads if they haven't been started yet.
+     *  Notify the scheduler that a connection has a new scheduled event.
      */
-    private final void startThreads() {
-        synchronized(_mainThreadLock) {
-            if ( !_started ) {
-                _started = true;
-                setDaemon(true);
-                start();
+    public void scheduleEvent(UDPTimerEvent evt) {
+        startThread();
+
+        synchronized (this) {
+            if (evt.shouldUnregister()) {
+                _wheel.cancel(evt);
+                return;
             }
-        }
 
-        synchronized(_updateThreadLock) {
-            if ( _updateThread == null ) {
-                _updateThread = new UpdateThread();
-                _updateThread.setDaemon(true);
-                _updateThread.start();
+            _wheel.schedule(evt);
+            if (evt.getEventTime() < _wakeupTime) {
+                notify();
             }
         }
     }
 
-
     /**
-     *  Notify the scheduler that a connection has a new scheduled event.
+     *  Unregisters the event and removes it from the schedule right away.
      */
-    public void scheduleEvent(UDPTimerEvent evt) {
-
-        startThreads();
-
-        // Pass the event update to the update thread.
-        _updateThread.addEvent(evt);
+    public void cancel(UDPTimerEvent evt) {
+        evt.unregister();
+        synchronized (this) {
+            _wheel.cancel(evt);
+        }
     }
 
     /**
-     *  Shortcut test for a second thread to deal with the new schedule handoff.
+     *  Returns the number of scheduled events.
      */
-    class UpdateThread extends ManagedThread {
-        List<UDPTimerEvent> _listSchedule;
-        List<UDPTimerEvent> _listRegister;
-
-        /**
-         *  Initialize the list of pending event updates.
-         */
-        public UpdateThread() {
-            super("UDPUpdateThread");
-            _listSchedule = new ArrayList<UDPTimerEvent>();
-            _listRegister = new ArrayList<UDPTimerEvent>();
-        }
-
-        /**
-         *  Schedule an event for update in the main event list.
-         */
-        public synchronized void addEvent(UDPTimerEvent evt) {
-              _listSchedule.add(evt);
-              notify();
-        }
-        
-        
-        public synchronized void registerEvent(UDPTimerEvent evt) {
-            _listRegister.add(evt);
-            notify();
-        }
-        
-        /**
-         *  Process incoming event updates by interacting with the main thread.
-         */
-        @Override
-        public void run() {
-            UDPTimerEvent evt;
-            List<UDPTimerEvent> localListSchedule;
-            List<UDPTimerEvent> localListRegister;
-            while (true) {
-               // Make sure that there is some idle time in the event updating
-               // Otherwise, it will burn cpu
-               try {
-                    Thread.sleep(1);
-               } catch(InterruptedException e) {}
-
-                // Clone list for safe unlocked access
-                synchronized(this) {
-                    localListSchedule = new ArrayList<UDPTimerEvent>(_listSchedule);
-                    _listSchedule.clear();
-                    localListRegister = new ArrayList<UDPTimerEvent>(_listRegister);
-                    _listRegister.clear();
-                }
-
-                
-                //then add any events
-                for(int i = 0; i < localListRegister.size(); i++)
-                    registerSync(localListRegister.get(i));
-                
-                //then reschedule any events
-                for (int i=0; i < localListSchedule.size(); i++) {
-                    evt = localListSchedule.get(i);
-                    updateSchedule(evt);
-                }
-                
-                
-
-
-                // Wait for more event updates
-                synchronized(this) {
-                    if (_listSchedule.size() > 0 || 
-                            _listRegister.size() > 0)
-                        continue;
-                    try {
-                        wait();
-                    } catch(InterruptedException e) {}
-                }
-            }
-        }
+    public synchronized int size() {
+        return _wheel.size();
+    }
 
-        /**
-         *  Process the updating of an event.
-         */
-        private void updateSchedule(UDPTimerEvent evt) {
-            synchronized(UDPScheduler.this) {
-                // If the event is sooner and still active, make it current
-                if ( evt.getEventTime() < _scheduledEvent.getEventTime() &&
-                     _connectionEvents.contains(evt) ) {
-                    _scheduledEvent      = evt;
-                    
-                    // Notifying 
-                    UDPScheduler.this.notify();
-                }
-            }
+    /**
+     * Starts the scheduler thread if it hasn't been started yet.
+     */
+    private synchronized void startThread() {
+        if ( !_started ) {
+            _started = true;
+            setDaemon(true);
+            start();
         }
     }
 
     /**
-     *  Wait for scheduled events on UDPTimerEvent, 
+     *  Wait for scheduled events on UDPTimerEvent,
      *  run them and reschedule.
      */
     @Override
     public void run() {
-        long  waitTime;
-
-        // Specify that an interrupt is okay
+        List<UDPTimerEvent> events = new ArrayList<UDPTimerEvent>();
 
         while (true) {
-            // wait for an existing or future event
             try {
-                synchronized(this) {
-                    if ( _scheduledEvent == NO_EVENT ) {
-                        // Wait a long time since there is nothing to do
-                        waitTime = 0;
-                    } else {
-                        // Wait for specific event
-                        waitTime = _scheduledEvent.getEventTime() - 
-                          System.currentTimeMillis();
-                        if (waitTime ==0)
-                        	waitTime=-1;
-                    }
-                    
-                    if (waitTime >=0)
-                		wait(waitTime);
-                }
+                waitForEvents(events);
             } catch(InterruptedException e) {
+                continue;
             }
 
-            // Determine whether to run existing event
-            // or to just sleep on a possibly changed event
-            synchronized(this) {
-
-                waitTime = _scheduledEvent.getEventTime() - 
-                  System.currentTimeMillis();
-                if ( waitTime > 0 )
-                    continue;
+            for (int i = 0; i < events.size(); i++) {
+                runEvent(events.get(i));
             }
-
-            // Run the event and rework the schedule.
-            runEvent();
-            reworkSchedule();
+            events.clear();
         }
     }
 
     /**
-     *  Run the scheduled UDPTimerEvent event.
+     *  Waits until some events are due and adds them to the given List.
      */
-    private synchronized void runEvent() {
-
-        if (_scheduledEvent.shouldUnregister())
-            _connectionEvents.remove(_scheduledEvent);
-        else
-            _scheduledEvent.handleEvent();
+    private synchronized void waitForEvents(List<? super UDPTimerEvent> events)
+            throws InterruptedException {
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (_wheel.expire(now, events) > 0) {
+                    return;
+                }
 
+                _wakeupTime = _wheel.getNextExpiration();
+                if (_wakeupTime == Long.MAX_VALUE) {
+                    // Wait a long time since there is nothing to do
+                    wait();
+                } else if (_wakeupTime > now) {
+                    wait(_wakeupTime - now);
+                }
+            }
+        } finally {
+            _wakeupTime = Long.MAX_VALUE;
+        }
     }
 
     /**
-     *  Go through the active UDPTimerEvent and find the next event.
-     *  For now, I don't think it is necessary to resort the list.
+     *  Run the given UDPTimerEvent and reschedule it.
      */
-    private synchronized void reworkSchedule() {
-        UDPTimerEvent evt;
-        long          time;
-
-        _scheduledEvent      = NO_EVENT;
-        for (int i = 0; i < _connectionEvents.size(); i++) {
-            evt = _connectionEvents.get(i);
-            time = evt.getEventTime();
-            if ( evt  != NO_EVENT && 
-                    (time < _scheduledEvent.getEventTime() || 
-                 _scheduledEvent == NO_EVENT)) {
-                _scheduledEvent = evt;
-            }
+    private void runEvent(UDPTimerEvent evt) {
+        if (evt.shouldUnregister())
+            return;
+
+        evt.handleEvent();
+
+        // Reschedule for whatever time the event has now
+        synchronized (this) {
+            if (evt.shouldUnregister())
+                _wheel.cancel(evt);
+            else
+                _wheel.schedule(evt);
         }
     }
-
-    private static final class NoEvent extends UDPTimerEvent {
-        public NoEvent(long time) {
-            super(time,null);
-        }
-
-        @Override
-        protected void doActualEvent(UDPConnectionProcessor udpCon) {
-        }
-    } 
-
 }
-
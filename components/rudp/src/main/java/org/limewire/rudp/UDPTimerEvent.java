@@ -4,6 +4,7 @@ import java.lang.ref.WeakReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.limewire.collection.TimerWheel;
 
 /**<p>
  * An abstract class that provides a timed task to be repeated and rescheduled 
@@ -12,7 +13,8 @@ import org.apache.commons.logging.LogFactory;
  * </p>
  * When done with the event, unregister it.
  */
-public abstract class UDPTimerEvent implements Comparable<UDPTimerEvent> {
+public abstract class UDPTimerEvent extends TimerWheel.Timer
+        implements Comparable<UDPTimerEvent> {
 
     private static final Log LOG =
         LogFactory.getLog(UDPTimerEvent.class);
@@ -65,6 +67,7 @@ public abstract class UDPTimerEvent implements Comparable<UDPTimerEvent> {
    /**
     *  Return the time that an event should take place in milliseconds.
     */
+    @Override
     public long getEventTime() {
         return _eventTime;
     }
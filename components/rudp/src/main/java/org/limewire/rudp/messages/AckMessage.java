@@ -26,4 +26,12 @@ public interface AckMessage extends RUDPMessage {
      */
     public int getWindowSpace();
 
+    /**
+     *  The selective ACKs are a bit set of the messages the receiver holds
+     *  from the windowStart on, bit <code>i</code> standing for 
+     *  <code>windowStart + i</code>. This is zero if the receiver does
+     *  not send selective ACKs.
+     */
+    public int getSelectiveAcks();
+
 }
\ No newline at end of file
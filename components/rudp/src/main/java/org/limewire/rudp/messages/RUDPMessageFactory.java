@@ -15,6 +15,9 @@ public interface RUDPMessageFactory {
     /** Constructs a new AckMessage. */
     public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace);
     
+    /** Constructs a new AckMessage with selective ACKs. */
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, int selectiveAcks);
+    
     /** Creates a new DataMessage. */
     public DataMessage createDataMessage(byte connectionID, long sequenceNumber, ByteBuffer chunk);
     
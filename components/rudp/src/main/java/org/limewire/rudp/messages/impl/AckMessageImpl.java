@@ -7,11 +7,15 @@ import org.limewire.rudp.messages.AckMessage;
 import org.limewire.rudp.messages.MessageFormatException;
 
 /** The ack message is used to acknowledge all non-ack packets in the protocol.
+ *  <p>
+ *  The selective ACKs go into the four bytes after the window space, which
+ *  older versions leave empty.
  */
 class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
 
     private long _windowStart;
     private int  _windowSpace;
+    private int  _selectiveAcks;
 
     /**
      * Construct a new AckMessage with the specified settings and data
@@ -24,6 +28,26 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
         _windowSpace = windowSpace;
     }
 
+    /**
+     * Construct a new AckMessage with selective ACKs
+     */
+    AckMessageImpl(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, int selectiveAcks) {
+        super(connectionID, OpCode.OP_ACK, sequenceNumber,
+              deriveData(windowStart, windowSpace, selectiveAcks));
+        _windowStart   = windowStart;
+        _windowSpace   = windowSpace;
+        _selectiveAcks = selectiveAcks;
+    }
+
+    static byte[] deriveData(long windowStart, int windowSpace, int selectiveAcks) {
+        ByteBuffer data = ByteBuffer.allocate(8);
+        data.order(ByteOrder.BIG_ENDIAN);
+        data.putShort((short)(windowStart & 0xFFFF));
+        data.putShort((short)(windowSpace < 0 ? 0 : windowSpace & 0xFFFF));
+        data.putInt(selectiveAcks);
+        return data.array();
+    }
+
     /**
      * Construct a new AckMessage from the network
      */
@@ -36,6 +60,9 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
         data1.order(ByteOrder.BIG_ENDIAN);
         _windowStart = data1.getShort();
         _windowSpace = data1.getShort();
+        if (data1.remaining() >= 4) {
+            _selectiveAcks = data1.getInt();
+        }
         data1.rewind();
     }
 
@@ -60,10 +87,15 @@ class AckMessageImpl extends RUDPMessageImpl implements AckMessage {
         return _windowSpace;
     }
 
+    public int getSelectiveAcks() {
+        return _selectiveAcks;
+    }
+
 	@Override
     public String toString() {
 		return "AckMessage DestID:"+getConnectionID()+
 		  " start:"+_windowStart+" space:"+_windowSpace+
+		  " sack:"+Integer.toHexString(_selectiveAcks)+
 		  " seq:"+getSequenceNumber();
 	}
 }
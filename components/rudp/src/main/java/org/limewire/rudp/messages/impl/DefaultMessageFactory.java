@@ -103,6 +103,10 @@ public class DefaultMessageFactory implements RUDPMessageFactory {
     public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace) {
         return new AckMessageImpl(connectionID, sequenceNumber, windowStart, windowSpace);
     }
+
+    public AckMessage createAckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, int selectiveAcks) {
+        return new AckMessageImpl(connectionID, sequenceNumber, windowStart, windowSpace, selectiveAcks);
+    }
     
     public FinMessage createFinMessage(byte connectionID, long sequenceNumber, byte reasonCode) {
         return new FinMessageImpl(connectionID, sequenceNumber, reasonCode);
@@ -147,4 +147,86 @@ public class DataWindowTest extends TestCase {
         window.clearEarlyReadBlocks();
         assertFalse(window.hasReadableData());
     }
+
+    public void testRingBufferReusesRecords() {
+        DataWindow window = new DataWindow(4, 0);
+        DataRecord first = window.addData(new StubDataMessage(0));
+        first.read = true;
+        window.clearEarlyReadBlocks();
+        
+        // Go around the ring buffer a few times
+        DataRecord rec = null;
+        for (int i = 1; i < 200; i++) {
+            rec = window.addData(new StubDataMessage(i));
+            assertEquals(i, rec.msg.getSequenceNumber());
+            assertEquals(0, rec.acks);
+            assertFalse(rec.read);
+            assertSame(rec, window.getBlock(i));
+            rec.read = true;
+            assertEquals(1, window.clearEarlyReadBlocks());
+            assertNull(window.getBlock(i));
+        }
+        assertEquals(200, window.getWindowStart());
+    }
+    
+    public void testDataReadAhead() {
+        DataWindow window = new DataWindow(4, 0);
+        // Far beyond the window, the ring buffer grows
+        DataRecord ahead = window.addData(new StubDataMessage(100));
+        assertSame(ahead, window.getBlock(100));
+        assertNull(window.getBlock(99));
+        
+        window.addData(new StubDataMessage(1));
+        assertNotNull(window.getBlock(1));
+        assertSame(ahead, window.getBlock(100));
+    }
+    
+    public void testSelectiveAcks() {
+        DataWindow receiver = new DataWindow(20, 10);
+        assertEquals(0, receiver.getSelectiveAcks());
+        receiver.addData(new StubDataMessage(10));
+        receiver.addData(new StubDataMessage(12));
+        receiver.addData(new StubDataMessage(41));
+        receiver.addData(new StubDataMessage(42));
+        assertEquals(1 | 1 << 2 | 1 << 31, receiver.getSelectiveAcks());
+        
+        DataWindow sender = new DataWindow(20, 10);
+        for (int i = 10; i < 16; i++) {
+            DataRecord rec = sender.addData(new StubDataMessage(i));
+            rec.sends = 1;
+        }
+        assertEquals(2, sender.selectiveAckBlocks(10, 1 << 2 | 1 << 4));
+        assertEquals(0, sender.getBlock(10).acks);
+        assertEquals(1, sender.getBlock(12).acks);
+        assertEquals(1, sender.getBlock(14).acks);
+        assertEquals(2, sender.countHigherAckBlocks());
+        // Already acked blocks are not acked again
+        assertEquals(1, sender.selectiveAckBlocks(10, 1 | 1 << 2));
+        assertEquals(1, sender.getBlock(12).acks);
+        
+        assertEquals(1, sender.clearLowAckedBlocks(null));
+        assertEquals(11, sender.getWindowStart());
+        assertSame(sender.getBlock(11), sender.getOldestUnackedBlock());
+        
+        // Once the lost block is acked the window moves past the others
+        sender.selectiveAckBlocks(11, 1 | 1 << 2 | 1 << 4);
+        assertEquals(5, sender.clearLowAckedBlocks(null));
+        assertEquals(16, sender.getWindowStart());
+        assertNull(sender.getOldestUnackedBlock());
+    }
+    
+    public void testRoundTripTime() throws Exception {
+        DataWindow window = new DataWindow(20, 0);
+        assertEquals(0, window.getRTO());
+        
+        long now = System.currentTimeMillis();
+        DataRecord rec = window.addData(new StubDataMessage(0));
+        rec.sends = 1;
+        rec.sentTime = now - 100;
+        window.ackBlock(0);
+        long rtt = rec.ackTime - rec.sentTime;
+        assertEquals(rtt, window.getSRTT(), 0.01f);
+        assertEquals(rtt / 4.0f, window.getRTTVar(), 0.25f);
+        assertEquals(2 * rtt, window.getRTO(), 1);
+    }
 }
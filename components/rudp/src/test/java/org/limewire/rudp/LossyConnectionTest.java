@@ -0,0 +1,266 @@
+package org.limewire.rudp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.limewire.concurrent.ExecutorsHelper;
+import org.limewire.concurrent.ManagedThread;
+import org.limewire.listener.AsynchronousMulticasterImpl;
+import org.limewire.nio.AbstractNBSocket;
+import org.limewire.nio.NIODispatcher;
+import org.limewire.rudp.messages.RUDPMessageFactory;
+import org.limewire.rudp.messages.impl.DefaultMessageFactory;
+import org.limewire.util.BaseTestCase;
+
+/**
+ * Measures the throughput and latency of UDPConnections over the loopback
+ * {@link UDPServiceStub}, which delays and drops messages, with and without
+ * selective acks.
+ */
+public final class LossyConnectionTest extends BaseTestCase {
+
+    private static final Log LOG = LogFactory.getLog(LossyConnectionTest.class);
+
+    private static final int TIMEOUT = 10 * 1000;
+
+    private static final int NUM_BYTES = 300000;
+
+    private static final int NUM_PINGS = 50;
+
+    private volatile UDPServiceStub stubService;
+    private volatile UDPMultiplexor udpMultiplexor;
+    private volatile UDPSelectorProvider udpSelectorProvider;
+
+    private volatile AbstractNBSocket uconn1;
+    private volatile AbstractNBSocket uconn2;
+
+    public LossyConnectionTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return buildTestSuite(LossyConnectionTest.class);
+    }
+
+    /**
+     * Runs this test individually.
+     */
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        closeConnections();
+    }
+
+    public void testTransferWithoutLoss() throws Exception {
+        Result result = transfer(10, 0, true);
+        // Only the odd message is resent early
+        assertLessThan(result.sent / 10, result.resent);
+    }
+
+    public void testTransferWithLoss() throws Exception {
+        Result result = transfer(20, 5, true);
+        assertGreaterThan(0, result.resent);
+    }
+
+    public void testTransferWithLossWithoutSelectiveAcks() throws Exception {
+        transfer(20, 5, false);
+    }
+
+    public void testLatencyWithLoss() throws Exception {
+        Result result = ping(20, 5, true);
+        // A round trip takes two delays at the least
+        assertGreaterThanOrEquals(40L, result.latency);
+    }
+
+    /**
+     * Sends NUM_BYTES from one connection to the other.
+     */
+    private Result transfer(int delay, int pctFlaky, boolean selectiveAcks) throws Exception {
+        openConnections(delay, pctFlaky, selectiveAcks);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        class Reader extends ManagedThread {
+            volatile Throwable error;
+
+            @Override
+            public void run() {
+                try {
+                    InputStream in = uconn1.getInputStream();
+                    for (int i = 0; i < NUM_BYTES; i++) {
+                        assertEquals("Unexpected data at offset: " + i, i % 256, in.read());
+                    }
+                } catch (Throwable t) {
+                    error = t;
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+        Reader reader = new Reader();
+        reader.setDaemon(true);
+
+        long start = System.currentTimeMillis();
+        reader.start();
+        OutputStream out = uconn2.getOutputStream();
+        byte[] block = new byte[1024];
+        for (int i = 0; i < NUM_BYTES; i += block.length) {
+            int length = Math.min(block.length, NUM_BYTES - i);
+            for (int j = 0; j < length; j++) {
+                block[j] = (byte)(i + j);
+            }
+            out.write(block, 0, length);
+        }
+        assertTrue(done.await(2 * 60, TimeUnit.SECONDS));
+        if (reader.error != null) {
+            throw new RuntimeException(reader.error);
+        }
+
+        Result result = new Result();
+        result.time = System.currentTimeMillis() - start;
+        result.sent = stubService.getDataMessagesSent();
+        result.resent = stubService.getDataMessagesResent();
+        report("transfer", delay, pctFlaky, selectiveAcks, result);
+        return result;
+    }
+
+    /**
+     * Echoes single bytes and measures their average round trip time.
+     */
+    private Result ping(int delay, int pctFlaky, boolean selectiveAcks) throws Exception {
+        openConnections(delay, pctFlaky, selectiveAcks);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        class Echo extends ManagedThread {
+            @Override
+            public void run() {
+                try {
+                    UStandalone.echoServer(uconn1, NUM_PINGS);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+        Echo echo = new Echo();
+        echo.setDaemon(true);
+        echo.start();
+
+        long start = System.currentTimeMillis();
+        OutputStream out = uconn2.getOutputStream();
+        InputStream in = uconn2.getInputStream();
+        for (int i = 0; i < NUM_PINGS; i++) {
+            out.write(i);
+            assertEquals(i, in.read());
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+
+        Result result = new Result();
+        result.time = System.currentTimeMillis() - start;
+        result.latency = result.time / NUM_PINGS;
+        result.sent = stubService.getDataMessagesSent();
+        result.resent = stubService.getDataMessagesResent();
+        report("ping", delay, pctFlaky, selectiveAcks, result);
+        return result;
+    }
+
+    private void openConnections(int delay, int pctFlaky, final boolean selectiveAcks)
+            throws Exception {
+        RUDPMessageFactory factory = new DefaultMessageFactory();
+        stubService = new UDPServiceStub(factory);
+        RUDPContext context = new DefaultRUDPContext(factory,
+                NIODispatcher.instance().getTransportListener(), stubService,
+                new DefaultRUDPSettings() {
+                    @Override
+                    public boolean isSelectiveAckEnabled() {
+                        return selectiveAcks;
+                    }
+                });
+        Executor executor = ExecutorsHelper.newProcessingQueue("TestEventThread");
+        udpSelectorProvider = new UDPSelectorProvider(context,
+                new AsynchronousMulticasterImpl<UDPSocketChannelConnectionEvent>(executor));
+        udpMultiplexor = udpSelectorProvider.openSelector();
+        stubService.setUDPMultiplexor(udpMultiplexor);
+        NIODispatcher.instance().registerSelector(udpMultiplexor,
+                udpSelectorProvider.getUDPSocketChannelClass());
+
+        // Connect without loss, then start losing messages
+        stubService.addReceiver(6346, 6348, delay, 0);
+        stubService.addReceiver(6348, 6346, delay, 0);
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        Thread acceptor = new ManagedThread() {
+            @Override
+            public void run() {
+                try {
+                    uconn1 = udpSelectorProvider.openAcceptorSocketChannel().socket();
+                    uconn1.connect(new InetSocketAddress("127.0.0.1", 6348), 5000);
+                    uconn1.setSoTimeout(TIMEOUT);
+                    connected.countDown();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        uconn2 = udpSelectorProvider.openSocketChannel().socket();
+        uconn2.connect(new InetSocketAddress("127.0.0.1", 6346), 5000);
+        uconn2.setSoTimeout(TIMEOUT);
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+
+        stubService.clearReceivers();
+        stubService.addReceiver(6346, 6348, delay, pctFlaky);
+        stubService.addReceiver(6348, 6346, delay, pctFlaky);
+    }
+
+    private void closeConnections() throws Exception {
+        if (uconn1 != null) {
+            uconn1.shutdown();
+        }
+        if (uconn2 != null) {
+            uconn2.shutdown();
+        }
+        if (stubService != null) {
+            stubService.clearReceivers();
+            NIODispatcher.instance().removeSelector(udpMultiplexor);
+        }
+    }
+
+    private void report(String test, int delay, int pctFlaky, boolean selectiveAcks,
+            Result result) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info(test + " delay: " + delay + "ms loss: " + pctFlaky + "%"
+                    + " sack: " + selectiveAcks + " time: " + result.time + "ms"
+                    + " latency: " + result.latency + "ms"
+                    + " sent: " + result.sent + " resent: " + result.resent);
+        }
+    }
+
+    private static class Result {
+        /** The duration of the test in milliseconds. */
+        long time;
+
+        /** The average round trip time in milliseconds. */
+        long latency;
+
+        /** The data messages that were sent. */
+        int sent;
+
+        /** The data messages that were sent more than once. */
+        int resent;
+    }
+}
@@ -13,14 +13,17 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.Timer;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 
 import org.limewire.concurrent.ExecutorsHelper;
 import org.limewire.io.NetworkUtils;
+import org.limewire.rudp.messages.DataMessage;
 import org.limewire.rudp.messages.RUDPMessageFactory;
 import org.limewire.rudp.messages.MessageFormatException;
 import org.limewire.rudp.messages.RUDPMessage;
@@ -46,6 +49,12 @@ public class UDPServiceStub implements UDPService {
     
     /** The active receivers of messages */
     private final ArrayList RECEIVER_LIST = new ArrayList();
+    
+    /** The number of data messages sent. */
+    private int dataMessagesSent;
+    
+    /** The destination ports and sequence numbers of the data messages sent. */
+    private final Set<Long> dataMessages = new HashSet<Long>();
 
 	/** Constructs a new <tt>UDPServiceStub</tt>. */
 	public UDPServiceStub(RUDPMessageFactory factory) {
@@ -65,6 +74,16 @@ public class UDPServiceStub implements UDPService {
 		}
 	}
 
+	/** Returns the number of data messages that were sent. */
+	public synchronized int getDataMessagesSent() {
+	    return dataMessagesSent;
+	}
+	
+	/** Returns the number of data messages that were sent again. */
+	public synchronized int getDataMessagesResent() {
+	    return dataMessagesSent - dataMessages.size();
+	}
+
 	/** Clean up the receiver list */
 	public void clearReceivers() {
 		synchronized(RECEIVER_LIST) {
@@ -190,6 +209,14 @@ public class UDPServiceStub implements UDPService {
             throw new IllegalArgumentException("Null Message");
         if (!NetworkUtils.isValidSocketAddress(host))
             throw new IllegalArgumentException("invalid host: " + host);
+        
+        if (msg instanceof DataMessage) {
+            synchronized (this) {
+                dataMessagesSent++;
+                int port = ((InetSocketAddress)host).getPort();
+                dataMessages.add(((long)port << 32) | msg.getSequenceNumber());
+            }
+        }
 
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {